@@ -28,10 +28,6 @@ import java.util.TimeZone;
 import uk.me.jstott.jcoord.LatLng;
 import uk.me.jstott.jcoord.MGRSRef;
 import android.hardware.GeomagneticField;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.location.GpsSatellite;
-import android.location.GpsStatus;
 import android.location.Location;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
@@ -43,13 +39,20 @@ import android.view.ViewGroup.LayoutParams;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.event.Subscription;
+import com.vonglasow.michael.satstat.event.Topic;
+import com.vonglasow.michael.satstat.nmea.NmeaLogger;
+import com.vonglasow.michael.satstat.sensor.AltitudeEngine;
+import com.vonglasow.michael.satstat.sensor.OrientationEngine;
 import com.vonglasow.michael.satstat.widgets.GpsSnrView;
 import com.vonglasow.michael.satstat.widgets.GpsStatusView;
+import com.vonglasow.michael.satstat.widgets.TextUpdater;
 
 /**
  * The fragment which displays GPS data.
  */
-public class GpsSectionFragment extends Fragment {
+public class GpsSectionFragment extends Fragment implements OrientationEngine.Listener, AltitudeEngine.Listener {
 	public static final String TAG = "GpsSectionFragment";
 	/**
 	 * The fragment argument representing the section number for this
@@ -57,6 +60,12 @@ public class GpsSectionFragment extends Fragment {
 	 */
 	public static final String ARG_SECTION_NUMBER = "section_number";
 
+	/** Time span shown in the NMEA console, in milliseconds */
+	private static final long NMEA_CONSOLE_SPAN = 5000;
+
+	/** Maximum number of sentences shown in the NMEA console */
+	private static final int NMEA_CONSOLE_LINES = 8;
+
 	private MainActivity mainActivity = null;
 
 	private DateFormat df;
@@ -65,23 +74,46 @@ public class GpsSectionFragment extends Fragment {
 	private GpsStatusView gpsStatusView;
 	private GpsSnrView gpsSnrView;
 	private LinearLayout gpsLatLayout;
-	private TextView gpsLat;
+	private TextUpdater gpsLat;
 	private LinearLayout gpsLonLayout;
-	private TextView gpsLon;
+	private TextUpdater gpsLon;
 	private LinearLayout gpsCoordLayout;
-	private TextView gpsCoord;
-	private TextView orDeclination;
-	private TextView gpsSpeed;
-	private TextView gpsSpeedUnit;
-	private TextView gpsAlt;
-	private TextView gpsAltUnit;
-	private TextView gpsTime;
-	private TextView gpsBearing;
-	private TextView gpsAccuracy;
-	private TextView gpsAccuracyUnit;
-	private TextView gpsOrientation;
-	private TextView gpsSats;
-	private TextView gpsTtff;
+	private TextUpdater gpsCoord;
+	private TextUpdater orDeclination;
+	private TextUpdater gpsSpeed;
+	private TextUpdater gpsSpeedUnit;
+	private TextUpdater gpsAlt;
+	private TextUpdater gpsAltUnit;
+	private TextUpdater gpsClimb;
+	private TextUpdater gpsClimbUnit;
+	private TextUpdater gpsTime;
+	private TextUpdater gpsBearing;
+	private TextUpdater gpsAccuracy;
+	private TextUpdater gpsAccuracyUnit;
+	private TextUpdater gpsOrientation;
+	private TextUpdater gpsSats;
+	private TextUpdater gpsTtff;
+	private TextView gpsNmeaConsole;
+	private final StringBuilder nmeaTail = new StringBuilder();
+
+	private Subscription<GpsSnapshot> gpsStatusSubscription;
+	private Subscription<Location> gpsLocationSubscription;
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	private final Date date = new Date();
+
+	/* Resource strings used for every update */
+	private String unitDegree;
+	private String unitMeter;
+	private String unitFeet;
+	private String unitMs;
+	private String unitFtMin;
+	private String unitKmh;
+	private String unitMph;
+	private String valueNone;
+
+	/** Labels for the compass directions returned by {@link MainActivity#getOrientationIndex(float)} */
+	private final String[] orientations = new String[MainActivity.ORIENTATIONS.length];
 
 
 	public GpsSectionFragment() {
@@ -103,27 +135,56 @@ public class GpsSectionFragment extends Fragment {
 		params.weight = 1;
 		gpsRootLayout.addView(gpsStatusView, 0, params);
 		gpsLatLayout = (LinearLayout) rootView.findViewById(R.id.gpsLatLayout);
-		gpsLat = (TextView) rootView.findViewById(R.id.gpsLat);
+		gpsLat = new TextUpdater((TextView) rootView.findViewById(R.id.gpsLat));
 		gpsLonLayout = (LinearLayout) rootView.findViewById(R.id.gpsLonLayout);
-		gpsLon = (TextView) rootView.findViewById(R.id.gpsLon);
+		gpsLon = new TextUpdater((TextView) rootView.findViewById(R.id.gpsLon));
 		gpsCoordLayout = (LinearLayout) rootView.findViewById(R.id.gpsCoordLayout);
-		gpsCoord = (TextView) rootView.findViewById(R.id.gpsCoord);
-		orDeclination = (TextView) rootView.findViewById(R.id.orDeclination);
-		gpsSpeed = (TextView) rootView.findViewById(R.id.gpsSpeed);
-		gpsSpeedUnit = (TextView) rootView.findViewById(R.id.gpsSpeedUnit);
-		gpsAlt = (TextView) rootView.findViewById(R.id.gpsAlt);
-		gpsAltUnit = (TextView) rootView.findViewById(R.id.gpsAltUnit);
-		gpsTime = (TextView) rootView.findViewById(R.id.gpsTime);
-		gpsBearing = (TextView) rootView.findViewById(R.id.gpsBearing);
-		gpsAccuracy = (TextView) rootView.findViewById(R.id.gpsAccuracy);
-		gpsAccuracyUnit = (TextView) rootView.findViewById(R.id.gpsAccuracyUnit);
-		gpsOrientation = (TextView) rootView.findViewById(R.id.gpsOrientation);
-		gpsSats = (TextView) rootView.findViewById(R.id.gpsSats);
-		gpsTtff = (TextView) rootView.findViewById(R.id.gpsTtff);
+		gpsCoord = new TextUpdater((TextView) rootView.findViewById(R.id.gpsCoord));
+		orDeclination = new TextUpdater((TextView) rootView.findViewById(R.id.orDeclination));
+		gpsSpeed = new TextUpdater((TextView) rootView.findViewById(R.id.gpsSpeed));
+		gpsSpeedUnit = new TextUpdater((TextView) rootView.findViewById(R.id.gpsSpeedUnit));
+		gpsAlt = new TextUpdater((TextView) rootView.findViewById(R.id.gpsAlt));
+		gpsAltUnit = new TextUpdater((TextView) rootView.findViewById(R.id.gpsAltUnit));
+		gpsClimb = new TextUpdater((TextView) rootView.findViewById(R.id.gpsClimb));
+		gpsClimbUnit = new TextUpdater((TextView) rootView.findViewById(R.id.gpsClimbUnit));
+		gpsTime = new TextUpdater((TextView) rootView.findViewById(R.id.gpsTime));
+		gpsBearing = new TextUpdater((TextView) rootView.findViewById(R.id.gpsBearing));
+		gpsAccuracy = new TextUpdater((TextView) rootView.findViewById(R.id.gpsAccuracy));
+		gpsAccuracyUnit = new TextUpdater((TextView) rootView.findViewById(R.id.gpsAccuracyUnit));
+		gpsOrientation = new TextUpdater((TextView) rootView.findViewById(R.id.gpsOrientation));
+		gpsSats = new TextUpdater((TextView) rootView.findViewById(R.id.gpsSats));
+		gpsTtff = new TextUpdater((TextView) rootView.findViewById(R.id.gpsTtff));
+		gpsNmeaConsole = (TextView) rootView.findViewById(R.id.gpsNmeaConsole);
 
 		df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ROOT);
 
+		unitDegree = getString(R.string.unit_degree);
+		unitMeter = getString(R.string.unit_meter);
+		unitFeet = getString(R.string.unit_feet);
+		unitMs = getString(R.string.unit_m_s);
+		unitFtMin = getString(R.string.unit_ft_min);
+		unitKmh = getString(R.string.unit_km_h);
+		unitMph = getString(R.string.unit_mph);
+		valueNone = getString(R.string.value_none);
+		for (int i = 0; i < orientations.length; i++)
+			orientations[i] = getString(MainActivity.ORIENTATIONS[i]);
+
 		mainActivity.gpsSectionFragment = this;
+		mainActivity.startOrientationUpdates(this);
+		mainActivity.altitudeEngine.setListener(this);
+
+		gpsStatusSubscription = mainActivity.eventBus.gpsStatus.subscribe(new Topic.Listener<GpsSnapshot>() {
+			@Override
+			public void onEvent(GpsSnapshot snapshot) {
+				onGpsStatusChanged(snapshot);
+			}
+		}, mainActivity.eventBus.mainThread, 0);
+		gpsLocationSubscription = mainActivity.eventBus.gpsLocation.subscribe(new Topic.Listener<Location>() {
+			@Override
+			public void onEvent(Location location) {
+				onLocationChanged(location);
+			}
+		}, mainActivity.eventBus.mainThread, 0);
 
 		return rootView;
 	}
@@ -132,38 +193,67 @@ public class GpsSectionFragment extends Fragment {
 	@Override
 	public void onDestroyView() {
 		super.onDestroyView();
-		if (mainActivity.gpsSectionFragment == this)
+		gpsStatusSubscription.cancel();
+		gpsLocationSubscription.cancel();
+		if (mainActivity.gpsSectionFragment == this) {
 			mainActivity.gpsSectionFragment = null;
+			mainActivity.stopOrientationUpdates();
+			mainActivity.altitudeEngine.setListener(null);
+		}
+	}
+
+
+	/**
+	 * Called when the status of the GPS changes. Updates GPS display.
+	 */
+	public void onGpsStatusChanged(GpsSnapshot snapshot) {
+		gpsSats.begin().appendLong(snapshot.getUsedCount()).append('/').appendLong(snapshot.getCount()).commit();
+		gpsTtff.begin().appendLong(snapshot.getTimeToFirstFix() / 1000).commit();
+		gpsStatusView.showSats(snapshot);
+		gpsSnrView.showSats(snapshot);
+		updateNmeaConsole();
 	}
 
 
 	/**
-	 * Called by {@link MainActivity} when the status of the GPS changes. Updates GPS display.
+	 * Shows the most recent NMEA sentences while NMEA logging is enabled.
+	 * <p>
+	 * NMEA sentences are received on the main thread, which is required by
+	 * {@link NmeaLogger#getTail(long, int, StringBuilder)}.
 	 */
-	public void onGpsStatusChanged(GpsStatus status, int satsInView, int satsUsed, Iterable<GpsSatellite> sats) {
-		gpsSats.setText(String.valueOf(satsUsed) + "/" + String.valueOf(satsInView));
-		gpsTtff.setText(String.valueOf(status.getTimeToFirstFix() / 1000));
-		gpsStatusView.showSats(sats);
-		gpsSnrView.showSats(sats);
+	private void updateNmeaConsole() {
+		NmeaLogger logger = mainActivity.nmeaLogger;
+		if (logger == null) {
+			gpsNmeaConsole.setVisibility(View.GONE);
+			return;
+		}
+		nmeaTail.setLength(0);
+		if (logger.getTail(NMEA_CONSOLE_SPAN, NMEA_CONSOLE_LINES, nmeaTail) > 0)
+			// drop the final line break
+			nmeaTail.setLength(nmeaTail.length() - 1);
+		gpsNmeaConsole.setText(nmeaTail);
+		gpsNmeaConsole.setVisibility(View.VISIBLE);
 	}
 
 
 	/**
-	 * Called by {@link MainActivity} when a new location is found by the GPS location provider.
-	 * Stores the location and updates GPS display and map view.
+	 * Called when a new location is found by the GPS location provider.
+	 * Updates GPS display.
+	 * <p>
+	 * Text fields are updated only if their content has changed.
 	 */
 	public void onLocationChanged(Location location) {
 		if (location.hasAccuracy()) {
-			Float getAcc = (float) 0.0;
+			float getAcc;
 			if(mainActivity.prefUnitType) {
-				getAcc = (float)(location.getAccuracy());
+				getAcc = location.getAccuracy();
 			} else {
-				getAcc = (float)(location.getAccuracy() * (float) 3.28084);
+				getAcc = location.getAccuracy() * 3.28084f;
 			}
-			gpsAccuracy.setText(String.format("%.0f", getAcc));
-			gpsAccuracyUnit.setText(getString(((mainActivity.prefUnitType) ? R.string.unit_meter : R.string.unit_feet)));
+			gpsAccuracy.setFixed(getAcc, 0);
+			gpsAccuracyUnit.setText((mainActivity.prefUnitType) ? unitMeter : unitFeet);
 		} else {
-			gpsAccuracy.setText(getString(R.string.value_none));
+			gpsAccuracy.setText(valueNone);
 			gpsAccuracyUnit.setText("");
 		}
 
@@ -171,8 +261,8 @@ public class GpsSectionFragment extends Fragment {
 			gpsCoordLayout.setVisibility(View.GONE);
 			gpsLatLayout.setVisibility(View.VISIBLE);
 			gpsLonLayout.setVisibility(View.VISIBLE);
-			gpsLat.setText(String.format("%.5f%s", location.getLatitude(), getString(R.string.unit_degree)));
-			gpsLon.setText(String.format("%.5f%s", location.getLongitude(), getString(R.string.unit_degree)));
+			gpsLat.begin().appendFixed(location.getLatitude(), 5).append(unitDegree).commit();
+			gpsLon.begin().appendFixed(location.getLongitude(), 5).append(unitDegree).commit();
 		} else if (mainActivity.prefCoord == SettingsActivity.KEY_PREF_COORD_MIN) {
 			gpsCoordLayout.setVisibility(View.GONE);
 			gpsLatLayout.setVisibility(View.VISIBLE);
@@ -180,11 +270,13 @@ public class GpsSectionFragment extends Fragment {
 			double dec = location.getLatitude();
 			double deg = (int) dec;
 			double min = 60.0 * (dec - deg);
-			gpsLat.setText(String.format("%.0f%s %.3f'", deg, getString(R.string.unit_degree), min + /*rounding*/ 0.0005));
+			gpsLat.begin().appendFixed(deg, 0).append(unitDegree).append(' ')
+					.appendFixed(min + /*rounding*/ 0.0005, 3).append('\'').commit();
 			dec = location.getLongitude();
 			deg = (int) dec;
 			min = 60.0 * (dec - deg);
-			gpsLon.setText(String.format("%.0f%s %.3f'", deg, getString(R.string.unit_degree), min + /*rounding*/ 0.0005));
+			gpsLon.begin().appendFixed(deg, 0).append(unitDegree).append(' ')
+					.appendFixed(min + /*rounding*/ 0.0005, 3).append('\'').commit();
 		} else if (mainActivity.prefCoord == SettingsActivity.KEY_PREF_COORD_SEC) {
 			gpsCoordLayout.setVisibility(View.GONE);
 			gpsLatLayout.setVisibility(View.VISIBLE);
@@ -194,13 +286,15 @@ public class GpsSectionFragment extends Fragment {
 			double tmp = 60.0 * (dec - deg);
 			double min = (int) tmp;
 			double sec = 60.0 * (tmp - min);
-			gpsLat.setText(String.format("%.0f%s %.0f' %.1f\"", deg, getString(R.string.unit_degree), min, sec + /*rounding*/ 0.05));
+			gpsLat.begin().appendFixed(deg, 0).append(unitDegree).append(' ')
+					.appendFixed(min, 0).append("' ").appendFixed(sec + /*rounding*/ 0.05, 1).append('"').commit();
 			dec = location.getLongitude();
 			deg = (int) dec;
 			tmp = 60.0 * (dec - deg);
 			min = (int) tmp;
 			sec = 60.0 * (tmp - min);
-			gpsLon.setText(String.format("%.0f%s %.0f' %.1f\"", deg, getString(R.string.unit_degree), min, sec + /*rounding*/ 0.05));
+			gpsLon.begin().appendFixed(deg, 0).append(unitDegree).append(' ')
+					.appendFixed(min, 0).append("' ").appendFixed(sec + /*rounding*/ 0.05, 1).append('"').commit();
 		} else if (mainActivity.prefCoord == SettingsActivity.KEY_PREF_COORD_MGRS) {
 			gpsLatLayout.setVisibility(View.GONE);
 			gpsLonLayout.setVisibility(View.GONE);
@@ -208,51 +302,54 @@ public class GpsSectionFragment extends Fragment {
 			gpsCoord.setText(new LatLng(location.getLatitude(), location.getLongitude()).toMGRSRef().toString(MGRSRef.PRECISION_1M));
 		}
 		if (mainActivity.prefUtc)
-			df.setTimeZone(TimeZone.getTimeZone("UTC"));
+			df.setTimeZone(UTC);
 		else
 			df.setTimeZone(TimeZone.getDefault());
-		gpsTime.setText(df.format(new Date(location.getTime())));
+		date.setTime(location.getTime());
+		gpsTime.setText(df.format(date));
 
+		// barometric altitude, if available, is shown by onAltitudeChanged()
+		boolean hasFusedAltitude = mainActivity.altitudeEngine.hasAltitude();
 		if (location.hasAltitude()) {
-			Float getAltitude = (float) 0.0;
-			if(mainActivity.prefUnitType) {
-				getAltitude = (float)(location.getAltitude());
-			} else {
-				getAltitude = (float)(location.getAltitude() * (float) 3.28084);
-			}
-			gpsAlt.setText(String.format("%.0f", getAltitude));
-			gpsAltUnit.setText(getString(((mainActivity.prefUnitType) ? R.string.unit_meter : R.string.unit_feet)));
-			orDeclination.setText(String.format("%.0f%s", new GeomagneticField(
+			if (!hasFusedAltitude)
+				showAltitude((float) location.getAltitude());
+			orDeclination.begin().appendFixed(new GeomagneticField(
 					(float) location.getLatitude(),
 					(float) location.getLongitude(),
-					(float) (getAltitude),
+					(float) location.getAltitude(),
 					location.getTime()
-					).getDeclination(), getString(R.string.unit_degree)));
+					).getDeclination(), 0).append(unitDegree).commit();
 		} else {
-			gpsAlt.setText(getString(R.string.value_none));
-			gpsAltUnit.setText("");
-			orDeclination.setText(getString(R.string.value_none));
+			if (!hasFusedAltitude) {
+				gpsAlt.setText(valueNone);
+				gpsAltUnit.setText("");
+			}
+			orDeclination.setText(valueNone);
+		}
+		if (!hasFusedAltitude) {
+			gpsClimb.setText(valueNone);
+			gpsClimbUnit.setText("");
 		}
 
 		if (location.hasBearing()) {
-			gpsBearing.setText(String.format("%.0f%s", location.getBearing(), getString(R.string.unit_degree)));
-			gpsOrientation.setText(MainActivity.formatOrientation(this.getContext(), location.getBearing()));
+			gpsBearing.begin().appendFixed(location.getBearing(), 0).append(unitDegree).commit();
+			gpsOrientation.setText(orientations[MainActivity.getOrientationIndex(location.getBearing())]);
 		} else {
-			gpsBearing.setText(getString(R.string.value_none));
-			gpsOrientation.setText(getString(R.string.value_none));
+			gpsBearing.setText(valueNone);
+			gpsOrientation.setText(valueNone);
 		}
 
 		if (location.hasSpeed()) {
-			Float getSpeed = (float) 0.0;
+			float getSpeed;
 			if(mainActivity.prefUnitType) {
-				getSpeed = (float)(location.getSpeed() * 3.6f);
+				getSpeed = location.getSpeed() * 3.6f;
 			} else {
-				getSpeed = (float)(location.getSpeed() * 3.6f * 2.23694f);
+				getSpeed = location.getSpeed() * 3.6f * 2.23694f;
 			}
-			gpsSpeed.setText(String.format("%.0f", getSpeed));
-			gpsSpeedUnit.setText(getString(((mainActivity.prefUnitType) ? R.string.unit_km_h : R.string.unit_mph)));
+			gpsSpeed.setFixed(getSpeed, 0);
+			gpsSpeedUnit.setText((mainActivity.prefUnitType) ? unitKmh : unitMph);
 		} else {
-			gpsSpeed.setText(getString(R.string.value_none));
+			gpsSpeed.setText(valueNone);
 			gpsSpeedUnit.setText("");
 		}
 
@@ -262,14 +359,44 @@ public class GpsSectionFragment extends Fragment {
 
 
 	/**
-	 * Called by {@link MainActivity} when a sensor's reading changes.
-	 * Rotates sky plot according to bearing.
+	 * Called by {@link AltitudeEngine} on the main thread when the barometric altitude changes.
+	 * Updates elevation and climb rate.
 	 */
-	public void onSensorChanged(SensorEvent event) {
-		switch (event.sensor.getType()) {
-		case Sensor.TYPE_ORIENTATION:
-			gpsStatusView.setOrientation(event.values[0], event.values[1], event.values[2]);
-			break;
+	@Override
+	public void onAltitudeChanged(float altitude, float verticalSpeed) {
+		showAltitude(altitude);
+		if (mainActivity.prefUnitType) {
+			gpsClimb.setFixed(verticalSpeed, 1);
+			gpsClimbUnit.setText(unitMs);
+		} else {
+			gpsClimb.setFixed(verticalSpeed * 196.85f, 0);
+			gpsClimbUnit.setText(unitFtMin);
 		}
 	}
+
+
+	/**
+	 * Shows an altitude in the selected units.
+	 *
+	 * @param altitude The altitude, in m
+	 */
+	private void showAltitude(float altitude) {
+		if (mainActivity.prefUnitType) {
+			gpsAlt.setFixed(altitude, 0);
+			gpsAltUnit.setText(unitMeter);
+		} else {
+			gpsAlt.setFixed(altitude * 3.28084f, 0);
+			gpsAltUnit.setText(unitFeet);
+		}
+	}
+
+
+	/**
+	 * Called by {@link OrientationEngine} when the device orientation changes.
+	 * Rotates sky plot according to bearing.
+	 */
+	@Override
+	public void onOrientationChanged(float azimuth, float pitch, float roll) {
+		gpsStatusView.setOrientation(azimuth, pitch, roll);
+	}
 }
\ No newline at end of file
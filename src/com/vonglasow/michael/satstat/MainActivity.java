@@ -28,12 +28,14 @@ import java.lang.Thread.UncaughtExceptionHandler;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
 
 import android.Manifest;
 import android.annotation.TargetApi;
@@ -48,19 +50,20 @@ import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.graphics.drawable.Drawable;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.location.GpsSatellite;
 import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
+import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.design.widget.TabLayout;
 import android.support.v4.app.Fragment;
@@ -88,14 +91,34 @@ import android.view.Surface;
 import android.view.ViewGroup.LayoutParams;
 import android.view.WindowManager;
 import android.widget.LinearLayout;
+import android.widget.Toast;
 
 import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
 
 import com.vonglasow.michael.satstat.R;
 import com.vonglasow.michael.satstat.data.CellTower;
 import com.vonglasow.michael.satstat.data.CellTowerList;
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.data.GpsSnapshotPool;
+import com.vonglasow.michael.satstat.data.WifiApStore;
+import com.vonglasow.michael.satstat.event.EventBus;
+import com.vonglasow.michael.satstat.location.PositionFilter;
+import com.vonglasow.michael.satstat.location.RadioLocationEngine;
+import com.vonglasow.michael.satstat.location.RadioPositionEstimator;
+import com.vonglasow.michael.satstat.nmea.NmeaFix;
+import com.vonglasow.michael.satstat.nmea.NmeaLogger;
+import com.vonglasow.michael.satstat.nmea.NmeaReplay;
+import com.vonglasow.michael.satstat.sensor.AltitudeEngine;
+import com.vonglasow.michael.satstat.sensor.OrientationEngine;
+import com.vonglasow.michael.satstat.sensor.SensorHub;
+import com.vonglasow.michael.satstat.sensor.SensorLogger;
+import com.vonglasow.michael.satstat.sensor.SpectrumAnalyzer;
+import com.vonglasow.michael.satstat.stats.FixStatisticsRecorder;
+import com.vonglasow.michael.satstat.track.TrackExportTask;
+import com.vonglasow.michael.satstat.track.TrackExporter;
+import com.vonglasow.michael.satstat.track.TrackRecorder;
 
-public class MainActivity extends AppCompatActivity implements GpsStatus.Listener, LocationListener, OnSharedPreferenceChangeListener, SensorEventListener {
+public class MainActivity extends AppCompatActivity implements GpsStatus.Listener, LocationListener, OnSharedPreferenceChangeListener, SensorHub.Listener {
     /**
      * The {@link android.support.v4.view.PagerAdapter} that will provide
      * fragments for each of the sections. We use a
@@ -127,39 +150,81 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
     boolean isWideScreen;
     
 	//The rate in microseconds at which we would like to receive updates from the sensors.
-	//private static final int iSensorRate = SensorManager.SENSOR_DELAY_UI;
-	private static final int iSensorRate = 200000; //Default is 20,000 for accel, 5,000 for gyro
+	//static final int iSensorRate = SensorManager.SENSOR_DELAY_UI;
+	static final int iSensorRate = SensorHub.DEFAULT_SAMPLING_PERIOD; //Default is 20,000 for accel, 5,000 for gyro
 
 	GpsSectionFragment gpsSectionFragment = null;
 	SensorSectionFragment sensorSectionFragment = null;
-	RadioSectionFragment radioSectionFragment = null;
-	MapSectionFragment mapSectionFragment = null;
+
+	/**
+	 * Location, GPS and radio events, to which the fragments subscribe
+	 */
+	final EventBus eventBus = new EventBus();
 	
 	TelephonyManager telephonyManager;
 	ConnectivityManager connectivityManager;
 	WifiManager wifiManager;
+	WifiScanScheduler wifiScanScheduler;
+	WifiApStore wifiApStore;
+	/** Tracks the cells in view and estimates our position from radio transmitters. */
+	RadioLocationEngine radioLocationEngine;
+	GpsSnapshotPool gpsSnapshotPool = new GpsSnapshotPool();
+	/** The most recent GPS status snapshot, from {@link #gpsSnapshotPool} or an NMEA replay. */
+	GpsSnapshot gpsSnapshot = null;
+	TrackRecorder trackRecorder;
+	FixStatisticsRecorder fixStatisticsRecorder;
+
+	/** Maximum age of a GPS fix for recording Wi-Fi observations, in milliseconds */
+	private static final long WIFI_OBSERVATION_MAX_AGE = 5000;
+	/** Maximum accuracy radius of a GPS fix for recording Wi-Fi observations, in meters */
+	private static final float WIFI_OBSERVATION_MAX_ACCURACY = 50;
+	/** Name of the subdirectory for NMEA logs */
+	private static final String NMEA_DIR = "nmea";
+	/** Name of the subdirectory for sensor logs */
+	private static final String SENSOR_DIR = "sensors";
+	/**
+	 * Intent action to replay an NMEA log, whose path is passed as the intent data. Replay
+	 * speed relative to real time can be set with {@link #EXTRA_REPLAY_SPEED}.
+	 */
+	public static final String ACTION_REPLAY_NMEA = "com.vonglasow.michael.satstat.REPLAY_NMEA";
+	/** Float extra for {@link #ACTION_REPLAY_NMEA}: replay speed relative to real time, default 1. */
+	public static final String EXTRA_REPLAY_SPEED = "com.vonglasow.michael.satstat.REPLAY_SPEED";
 	LocationManager locationManager;
 	SensorManager sensorManager;
-	
-	private Sensor mOrSensor;
-	private Sensor mAccSensor;
-	private Sensor mGyroSensor;
-	private Sensor mMagSensor;
-	private Sensor mLightSensor;
-	private Sensor mProximitySensor;
-	private Sensor mPressureSensor;
-	private Sensor mHumiditySensor;
-	private Sensor mTempSensor;
-	
-	private long mOrLast = 0;
-	private long mAccLast = 0;
-	private long mGyroLast = 0;
-	private long mMagLast = 0;
-	private long mLightLast = 0;
-	private long mProximityLast = 0;
-	private long mPressureLast = 0;
-	private long mHumidityLast = 0;
-	private long mTempLast = 0;
+
+	/** Dispatches sensor events to the activity and its fragments. */
+	SensorHub sensorHub;
+
+	/** Provides fused device orientation for the sky plot. */
+	OrientationEngine orientationEngine;
+
+	/** Provides altitude fused from barometric pressure and GPS. */
+	AltitudeEngine altitudeEngine;
+
+	/**
+	 * Minimum interval between accelerometer and magnetic field events processed by the activity,
+	 * in microseconds. Each event is handled on the main thread, which only needs a few updates
+	 * per second for the orientation lock, motion detection and the position filter, even when
+	 * sensors run at full rate for capture. The smoothing factors of motion detection and
+	 * gravity isolation are tuned for this rate.
+	 */
+	private static final int ACTIVITY_SENSOR_INTERVAL = iSensorRate;
+
+	/** Handler for the main thread, used for sensor events which update the UI. */
+	Handler mainHandler;
+
+	/** The last orientation requested with {@link #setRequestedOrientation(int)} */
+	private int mRequestedOrientation = ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED;
+
+	/**
+	 * String resources for the 16 compass directions, starting at north and going clockwise.
+	 */
+	static final int ORIENTATIONS[] = {
+		R.string.value_N, R.string.value_NNE, R.string.value_NE, R.string.value_ENE,
+		R.string.value_E, R.string.value_ESE, R.string.value_SE, R.string.value_SSE,
+		R.string.value_S, R.string.value_SSW, R.string.value_SW, R.string.value_WSW,
+		R.string.value_W, R.string.value_WNW, R.string.value_NW, R.string.value_NNW
+	};
 
 	/**
 	 * Converts screen rotation to orientation for devices with a naturally tall screen.
@@ -185,6 +250,92 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 	int prefCoord = SettingsActivity.KEY_PREF_COORD_DECIMAL;
 	boolean prefUtc = false;
 	boolean prefCid = false;
+	boolean prefNmeaLog = false;
+	boolean prefSensorCapture = false;
+	boolean prefVibration = false;
+
+	/**
+	 * Writes raw NMEA sentences to log files while {@link #prefNmeaLog} is set, else {@code null}.
+	 * The NMEA listener is registered on the main thread, where {@link GpsSectionFragment} also
+	 * reads the most recent sentences for its console.
+	 */
+	NmeaLogger nmeaLogger = null;
+
+	private final GpsStatus.NmeaListener mNmeaListener = new GpsStatus.NmeaListener() {
+		@Override
+		public void onNmeaReceived(long timestamp, String nmea) {
+			if (nmeaLogger != null)
+				nmeaLogger.onNmeaReceived(timestamp, nmea);
+		}
+	};
+
+	/**
+	 * Writes full-rate sensor samples to log files while {@link #prefSensorCapture} is set, else {@code null}.
+	 * Written on the main thread and read on the sensor thread.
+	 */
+	volatile SensorLogger sensorLogger = null;
+
+	/** Sensors captured at full rate by {@link #sensorLogger}. */
+	private static final int[] CAPTURE_SENSORS = {
+		Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_GYROSCOPE, Sensor.TYPE_MAGNETIC_FIELD, Sensor.TYPE_PRESSURE};
+
+	/** Maximum time by which captured sensor events may be batched by the hardware, in microseconds. */
+	private static final int CAPTURE_MAX_LATENCY = 1000000;
+
+	/** Passes sensor events to {@link #sensorLogger}. Called on the sensor thread. */
+	private final SensorHub.Listener mCaptureListener = new SensorHub.Listener() {
+		@Override
+		public void onSensorChanged(int type, long timestamp, int accuracy, float[] values) {
+			SensorLogger logger = sensorLogger;
+			if (logger != null)
+				logger.onSensorChanged(type, timestamp, values);
+		}
+	};
+
+	/**
+	 * Computes the vibration spectrum from the accelerometer while {@link #prefVibration} is set, else {@code null}.
+	 * Written on the main thread and read on the sensor thread.
+	 */
+	volatile SpectrumAnalyzer spectrumAnalyzer = null;
+
+	/** Accelerometer sampling period for vibration analysis, in microseconds (400 Hz). */
+	private static final int SPECTRUM_SAMPLING_PERIOD = 2500;
+
+	/** Passes accelerometer events to {@link #spectrumAnalyzer}. Called on the sensor thread. */
+	private final SensorHub.Listener mSpectrumListener = new SensorHub.Listener() {
+		@Override
+		public void onSensorChanged(int type, long timestamp, int accuracy, float[] values) {
+			SpectrumAnalyzer analyzer = spectrumAnalyzer;
+			if (analyzer != null)
+				analyzer.onSensorChanged(timestamp, values);
+		}
+	};
+
+	/**
+	 * The NMEA replay in progress, or {@code null}.
+	 */
+	NmeaReplay nmeaReplay = null;
+
+	/**
+	 * The most recent location received from any provider, or {@code null}.
+	 */
+	Location lastLocation = null;
+
+	/**
+	 * Smoothes GPS and network fixes into locations from the {@link PositionFilter#PROVIDER} provider.
+	 */
+	PositionFilter positionFilter = new PositionFilter();
+	/** Whether the {@link PositionFilter#PROVIDER} provider is selected. */
+	boolean isFilterSelected = false;
+	private final Location mFilteredLocation = new Location(PositionFilter.PROVIDER);
+
+	/** Weight of the previous value in the low-pass filter which isolates gravity from acceleration. */
+	private static final float GRAVITY_FILTER_ALPHA = 0.8f;
+	private final float[] mGravity = new float[3];
+	private final float[] mGeomagnetic = new float[3];
+	private final float[] mRotation = new float[9];
+	private boolean mHasGravity = false;
+	private boolean mHasGeomagnetic = false;
 
 	/** 
 	 * The {@link PhoneStateListener} for getting radio network updates 
@@ -194,23 +345,22 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 	 	public void onCellInfoChanged(List<CellInfo> cellInfo) {
 			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) 
 				return;
-			if (radioSectionFragment != null)
-				radioSectionFragment.updateCellData(null, null, cellInfo);
+			// some devices always report null, which means the cells must be queried
+			eventBus.cellInfo.publish((cellInfo != null) ? cellInfo : Collections.<CellInfo>emptyList());
 	 	}
 	 	
 		public void onCellLocationChanged (CellLocation location) {
-			if (radioSectionFragment != null)
-				radioSectionFragment.updateCellData(location, null, null);
+			if (location != null)
+				eventBus.cellLocation.publish(location);
 		}
 		
 		public void onDataConnectionStateChanged (int state, int networkType) {
-			if (radioSectionFragment != null)
-				radioSectionFragment.onNetworkTypeChanged(networkType);
+			eventBus.networkType.publish(networkType);
 		}
 		
 		public void onSignalStrengthsChanged (SignalStrength signalStrength) {
-			if (radioSectionFragment != null)
-				radioSectionFragment.updateCellData(null, signalStrength, null);
+			if (signalStrength != null)
+				eventBus.signalStrength.publish(signalStrength);
 		}
 	};
 	
@@ -221,13 +371,20 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 		@Override
 		public void onReceive(Context c, Intent intent) {
 			if (intent.getAction() == WifiManager.SCAN_RESULTS_AVAILABLE_ACTION) {
-				if (radioSectionFragment != null) {
-					radioSectionFragment.scanResults = wifiManager.getScanResults();
-					radioSectionFragment.refreshWifiResults();
-				}
+				List<ScanResult> results = wifiManager.getScanResults();
+				wifiScanScheduler.onScanResults(results);
+				recordWifiObservations(results);
+				if (results != null)
+					eventBus.wifiScanResults.publish(results);
+			} else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(intent.getAction())) {
+				// the scheduler rescans early only if we connected, disconnected or roamed
+				NetworkInfo info = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+				if (info != null)
+					wifiScanScheduler.onConnectionChanged(info.isConnected(),
+							intent.getStringExtra(WifiManager.EXTRA_BSSID));
 			} else {
-				//something has changed about WiFi setup, rescan
-				wifiManager.startScan();
+				//something has changed about WiFi setup, rescan when the interval permits
+				wifiScanScheduler.requestScan();
 			}
 		}
 	};
@@ -239,18 +396,21 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
      * Converts a bearing (in degrees) into a directional name.
      */
     public static String formatOrientation(Context context, float bearing) {
-		final int orients[] = {
-				R.string.value_N, R.string.value_NNE, R.string.value_NE, R.string.value_ENE,
-				R.string.value_E, R.string.value_ESE, R.string.value_SE, R.string.value_SSE,
-				R.string.value_S, R.string.value_SSW, R.string.value_SW, R.string.value_WSW,
-				R.string.value_W, R.string.value_WNW, R.string.value_NW, R.string.value_NNW
-		};
-		final int nOrients = orients.length;
+		return context.getString(ORIENTATIONS[getOrientationIndex(bearing)]);
+    }
+
+    /**
+     * Returns the index of the compass direction in {@link #ORIENTATIONS} closest to a bearing.
+     * 
+     * @param bearing The bearing, in degrees
+     */
+    static int getOrientationIndex(float bearing) {
+		final int nOrients = ORIENTATIONS.length;
 
 		bearing += 360f / nOrients / 2;
 		if (bearing >= 360)
 			bearing = 0;
-		return context.getString(orients[(int) (bearing / 360f * nOrients)]);
+		return (int) (bearing / 360f * nOrients);
     }
 	
     
@@ -277,11 +437,6 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 	}
     
 
-    /**
-     * Called when a sensor's accuracy has changed. Does nothing.
-     */
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-    
 	@Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -337,6 +492,9 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 		prefCoord = Integer.valueOf(mSharedPreferences.getString(SettingsActivity.KEY_PREF_COORD, Integer.toString(prefCoord)));
 		prefUtc = mSharedPreferences.getBoolean(SettingsActivity.KEY_PREF_UTC, prefUtc);
 		prefCid = mSharedPreferences.getBoolean(SettingsActivity.KEY_PREF_CID, prefCid);
+		prefNmeaLog = mSharedPreferences.getBoolean(SettingsActivity.KEY_PREF_NMEA_LOG, prefNmeaLog);
+		prefSensorCapture = mSharedPreferences.getBoolean(SettingsActivity.KEY_PREF_SENSOR_CAPTURE, prefSensorCapture);
+		prefVibration = mSharedPreferences.getBoolean(SettingsActivity.KEY_PREF_VIBRATION, prefVibration);
 
         ActionBar actionBar = getSupportActionBar();
         
@@ -383,18 +541,31 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
         // Get system services for event delivery
     	locationManager = (LocationManager) this.getSystemService(Context.LOCATION_SERVICE);
         sensorManager = (SensorManager)getSystemService(Context.SENSOR_SERVICE);
-        mOrSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ORIENTATION);        
-        mAccSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);     
-        mGyroSensor = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE); 
-        mMagSensor = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD); 
-        mLightSensor = sensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
-        mProximitySensor = sensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
-        mPressureSensor = sensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
-        mHumiditySensor = sensorManager.getDefaultSensor(Sensor.TYPE_RELATIVE_HUMIDITY);
-        mTempSensor = sensorManager.getDefaultSensor(Sensor.TYPE_AMBIENT_TEMPERATURE);
+        mainHandler = new Handler();
+        sensorHub = new SensorHub(sensorManager);
+        orientationEngine = new OrientationEngine(sensorHub);
+        // accelerometer and magnetic field feed orientation lock, Wi-Fi scheduler and position filter
+        sensorHub.subscribe(Sensor.TYPE_ACCELEROMETER, this, ACTIVITY_SENSOR_INTERVAL, mainHandler);
+        sensorHub.subscribe(Sensor.TYPE_MAGNETIC_FIELD, this, ACTIVITY_SENSOR_INTERVAL, mainHandler);
         telephonyManager = (TelephonyManager)getSystemService(Context.TELEPHONY_SERVICE);
         connectivityManager = (ConnectivityManager)getSystemService(Context.CONNECTIVITY_SERVICE);
         wifiManager = (WifiManager)getSystemService(Context.WIFI_SERVICE);
+        wifiScanScheduler = new WifiScanScheduler(wifiManager);
+
+        wifiApStore = WifiApStore.getInstance(this);
+        wifiApStore.start(this);
+        radioLocationEngine = new RadioLocationEngine(this, eventBus, telephonyManager, connectivityManager);
+        radioLocationEngine.setWifiLocationLookup(wifiApStore);
+
+        trackRecorder = TrackRecorder.getInstance(this);
+        altitudeEngine = AltitudeEngine.getInstance(this);
+        fixStatisticsRecorder = FixStatisticsRecorder.getInstance(this);
+        if (trackRecorder.isRecording())
+        	// resume recording in the background if we were terminated while recording
+        	startService(new Intent(this, PasvLocListenerService.class));
+
+        if (savedInstanceState == null)
+        	handleIntent(getIntent());
     }
 	
 	
@@ -406,10 +577,27 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
         
         return true;
     }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+    	MenuItem recordItem = menu.findItem(R.id.action_record);
+    	if (trackRecorder.isRecording()) {
+    		recordItem.setTitle(R.string.action_stop_record);
+    		recordItem.setIcon(R.drawable.ic_action_stop);
+    	} else {
+    		recordItem.setTitle(R.string.action_record);
+    		recordItem.setIcon(R.drawable.ic_action_record);
+    	}
+    	return super.onPrepareOptionsMenu(menu);
+    }
     
     @Override
     protected void onDestroy() {
+		if (nmeaReplay != null)
+			nmeaReplay.cancel();
 		mSharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+		radioLocationEngine.close();
+		wifiApStore.stop(this);
 		super.onDestroy();
     }
     
@@ -417,41 +605,111 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
      * Called when the status of the GPS changes. Updates GPS display.
      */
     public void onGpsStatusChanged (int event) {
-		GpsStatus status = locationManager.getGpsStatus(null);
-		int satsInView = 0;
-		int satsUsed = 0;
-		Iterable<GpsSatellite> sats = status.getSatellites();
-		for (GpsSatellite sat : sats) {
-			satsInView++;
-			if (sat.usedInFix()) {
-				satsUsed++;
-			}
-		}
-
-		if (gpsSectionFragment != null) {
-    		gpsSectionFragment.onGpsStatusChanged(status, satsInView, satsUsed, sats);
-    	}
-    	
-		if (mapSectionFragment != null) {
-			mapSectionFragment.onGpsStatusChanged(status, satsInView, satsUsed, sats);
-		}
+		GpsSnapshot snapshot = gpsSnapshotPool.obtain(locationManager);
+		fixStatisticsRecorder.onGpsSnapshot(snapshot);
+		onGpsSnapshot(snapshot);
+    }
+    
+    /**
+     * Called when a new GPS status snapshot is available, either from the GPS or from an NMEA replay.
+     * Publishes it to the fragments.
+     */
+    void onGpsSnapshot(GpsSnapshot snapshot) {
+		gpsSnapshot = snapshot;
+		eventBus.gpsStatus.publish(snapshot);
     }
     
     /**
      * Called when a new location is found by a registered location provider.
-     * Stores the location and updates GPS display and map view.
+     * Stores the location and publishes it to the fragments.
      */
     public void onLocationChanged(Location location) {
-    	// update map view
-		if (mapSectionFragment != null) {
-			mapSectionFragment.onLocationChanged(location);
-		}
-    	
-    	// update GPS view
-    	if ((location.getProvider().equals(LocationManager.GPS_PROVIDER)) && (gpsSectionFragment != null)) {
-    		gpsSectionFragment.onLocationChanged(location);
+    	if (!Double.isNaN(location.getLatitude()) && !Double.isNaN(location.getLongitude()))
+    		lastLocation = location;
+
+    	trackRecorder.onLocationChanged(location, gpsSnapshot);
+    	if (nmeaReplay == null) {
+    		// replayed fixes would distort the statistics and the barometer calibration
+    		fixStatisticsRecorder.onLocationChanged(location);
+    		altitudeEngine.onLocationChanged(location);
     	}
+
+    	eventBus.location.publish(location);
+    	if (location.getProvider().equals(LocationManager.GPS_PROVIDER))
+    		eventBus.gpsLocation.publish(location);
+
+    	filterLocation(location);
     }
+
+	/**
+	 * Feeds a GPS or network location into {@link #positionFilter} and publishes the result
+	 * as a location from the {@link PositionFilter#PROVIDER} provider.
+	 */
+	private void filterLocation(Location location) {
+		if (!isFilterSelected || !location.hasAccuracy())
+			return;
+		String provider = location.getProvider();
+		if (!provider.equals(LocationManager.GPS_PROVIDER) && !provider.equals(LocationManager.NETWORK_PROVIDER))
+			return;
+		if (!positionFilter.update(getFilterTime(location), location.getLatitude(), location.getLongitude(), location.getAccuracy()))
+			return;
+		mFilteredLocation.reset();
+		mFilteredLocation.setProvider(PositionFilter.PROVIDER);
+		mFilteredLocation.setTime(location.getTime());
+		mFilteredLocation.setLatitude(positionFilter.getLatitude());
+		mFilteredLocation.setLongitude(positionFilter.getLongitude());
+		mFilteredLocation.setAccuracy(positionFilter.getAccuracy());
+		mFilteredLocation.setSpeed(positionFilter.getSpeed());
+		mFilteredLocation.setBearing(positionFilter.getBearing());
+		eventBus.location.publish(mFilteredLocation);
+	}
+
+	/**
+	 * Returns the time at which a location was determined, in the time base of {@link #positionFilter}.
+	 * <p>
+	 * Fixes reach the main thread some time after they were taken, and how
+	 * long that takes varies, so the time of the fix is used rather than the
+	 * time of delivery. This is elapsed realtime on API 17 and above, else
+	 * UTC time. Replayed fixes carry the time from the log, which preserves
+	 * the intervals between fixes at any replay speed.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+	private long getFilterTime(Location location) {
+		if ((nmeaReplay == null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1))
+			return location.getElapsedRealtimeNanos() / 1000000;
+		return location.getTime();
+	}
+
+	/**
+	 * Feeds linear acceleration in world coordinates into {@link #positionFilter}.
+	 * <p>
+	 * Gravity is isolated from the accelerometer readings with a low-pass
+	 * filter, and the remainder is rotated into world coordinates using the
+	 * device orientation derived from gravity and the magnetic field. The time
+	 * is taken in the same time base as {@link #getFilterTime(Location)}.
+	 * During an NMEA replay, acceleration is not used, as the motion of the
+	 * device has nothing to do with the replayed fixes.
+	 */
+	private void filterAcceleration(float[] values) {
+		if (!mHasGravity) {
+			System.arraycopy(values, 0, mGravity, 0, 3);
+			mHasGravity = true;
+			return;
+		}
+		for (int i = 0; i < 3; i++)
+			mGravity[i] = GRAVITY_FILTER_ALPHA * mGravity[i] + (1 - GRAVITY_FILTER_ALPHA) * values[i];
+		if (!isFilterSelected || (nmeaReplay != null) || !mHasGeomagnetic || !positionFilter.hasEstimate()
+				|| !SensorManager.getRotationMatrix(mRotation, null, mGravity, mGeomagnetic))
+			return;
+		float x = values[0] - mGravity[0];
+		float y = values[1] - mGravity[1];
+		float z = values[2] - mGravity[2];
+		long time = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+				? SystemClock.elapsedRealtime() : System.currentTimeMillis();
+		positionFilter.setAcceleration(time,
+				mRotation[0] * x + mRotation[1] * y + mRotation[2] * z,
+				mRotation[3] * x + mRotation[4] * y + mRotation[5] * z);
+	}
     
     /**
      * Called when a menu item is selected, and triggers the appropriate action.
@@ -463,6 +721,16 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 			Log.i(this.getLocalClassName(), "User requested AGPS data update");
 			GpsEventReceiver.refreshAgps(this, false, true);
 			return true;
+		} else if (itemId == R.id.action_record) {
+			boolean recording = !trackRecorder.isRecording();
+			trackRecorder.setRecording(recording);
+			if (recording)
+				Toast.makeText(this, R.string.info_start_rec, Toast.LENGTH_SHORT).show();
+			supportInvalidateOptionsMenu();
+			return true;
+		} else if (itemId == R.id.action_export) {
+			new TrackExportTask(this, TrackExporter.FORMAT_GPX).execute();
+			return true;
 		} else if (itemId == R.id.action_settings) {
 			startActivity(new Intent(this, SettingsActivity.class));
 			return true;
@@ -497,19 +765,16 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
         super.onResume();
         isStopped = false;
         registerLocationProviders(this);
-        sensorManager.registerListener(this, mOrSensor, iSensorRate);
-        sensorManager.registerListener(this, mAccSensor, iSensorRate);
-        sensorManager.registerListener(this, mGyroSensor, iSensorRate);
-        sensorManager.registerListener(this, mMagSensor, iSensorRate);
-        sensorManager.registerListener(this, mLightSensor, iSensorRate);
-        sensorManager.registerListener(this, mProximitySensor, iSensorRate);
-        sensorManager.registerListener(this, mPressureSensor, iSensorRate);
-        sensorManager.registerListener(this, mHumiditySensor, iSensorRate);
-        sensorManager.registerListener(this, mTempSensor, iSensorRate);
+        updateNmeaLogging();
+        updateSensorCapture();
+        updateSpectrumAnalysis();
+        sensorHub.start();
+        altitudeEngine.start(this);
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED)
         	telephonyManager.listen(mPhoneStateListener, (LISTEN_CELL_INFO | LISTEN_CELL_LOCATION | LISTEN_DATA_CONNECTION_STATE | LISTEN_SIGNAL_STRENGTHS));
         else
         	Log.w("MainActivity", "ACCESS_COARSE_LOCATION permission not granted. Cell info will not be available.");
+        radioLocationEngine.start();
         
         // register for certain WiFi events indicating that new networks may be in range
         // An access point scan has completed, and results are available.
@@ -518,100 +783,42 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
         // The state of Wi-Fi connectivity has changed.
         registerReceiver(mWifiScanReceiver, new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION));
         
-        // The RSSI (signal strength) has changed.
-        registerReceiver(mWifiScanReceiver, new IntentFilter(WifiManager.RSSI_CHANGED_ACTION));
-        
         // A connection to the supplicant has been established or the connection to the supplicant has been lost.
         registerReceiver(mWifiScanReceiver, new IntentFilter(WifiManager.SUPPLICANT_CONNECTION_CHANGE_ACTION));
+        
+        wifiScanScheduler.start();
     }
 
     /**
-     * Called when a sensor's reading changes. Updates sensor display and rotates sky plot according
-     * to bearing.
+     * Called by {@link #sensorHub} on the main thread when the accelerometer or magnetic field
+     * reading changes.
+     * <p>
+     * Sensor readings are delivered to the fragments by {@link #sensorHub} directly.
      */
-    public void onSensorChanged(SensorEvent event) {
-		//to enforce sensor rate
-		boolean isRateElapsed = false;
-		
-		switch (event.sensor.getType()) {
+	@Override
+	public void onSensorChanged(int type, long timestamp, int accuracy, float[] values) {
+		switch (type) {
 			case Sensor.TYPE_ACCELEROMETER:
-				isRateElapsed = (event.timestamp / 1000) - mAccLast >= iSensorRate;
+				wifiScanScheduler.onAccelerometerChanged(values[0], values[1], values[2]);
+				filterAcceleration(values);
 				// if Z acceleration is greater than X/Y combined, lock rotation, else unlock
-				if (Math.pow(event.values[2], 2) > Math.pow(event.values[0], 2) + Math.pow(event.values[1], 2)) {
+				int orientation = ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED;
+				if (values[2] * values[2] > values[0] * values[0] + values[1] * values[1]) {
 					// workaround (SCREEN_ORIENTATION_LOCK is unsupported on API < 18)
 					if (isWideScreen)
-						setRequestedOrientation(OR_FROM_ROT_WIDE[this.getWindowManager().getDefaultDisplay().getRotation()]);
+						orientation = OR_FROM_ROT_WIDE[this.getWindowManager().getDefaultDisplay().getRotation()];
 					else
-						setRequestedOrientation(OR_FROM_ROT_TALL[this.getWindowManager().getDefaultDisplay().getRotation()]);
-				} else {
-					setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED);
+						orientation = OR_FROM_ROT_TALL[this.getWindowManager().getDefaultDisplay().getRotation()];
+				}
+				if (orientation != mRequestedOrientation) {
+					mRequestedOrientation = orientation;
+					setRequestedOrientation(orientation);
 				}
-				break;
-			case Sensor.TYPE_ORIENTATION:
-				isRateElapsed = (event.timestamp / 1000) - mOrLast >= iSensorRate;
-				break;
-			case Sensor.TYPE_GYROSCOPE:
-				isRateElapsed = (event.timestamp / 1000) - mGyroLast >= iSensorRate;
 				break;
 			case Sensor.TYPE_MAGNETIC_FIELD:
-				isRateElapsed = (event.timestamp / 1000) - mMagLast >= iSensorRate;
-				break;
-			case Sensor.TYPE_LIGHT:
-				isRateElapsed = (event.timestamp / 1000) - mLightLast >= iSensorRate;
-				break;
-			case Sensor.TYPE_PROXIMITY:
-				isRateElapsed = (event.timestamp / 1000) - mProximityLast >= iSensorRate;
-				break;
-			case Sensor.TYPE_PRESSURE:
-				isRateElapsed = (event.timestamp / 1000) - mPressureLast >= iSensorRate;
-				break;
-			case Sensor.TYPE_RELATIVE_HUMIDITY:
-				isRateElapsed = (event.timestamp / 1000) - mHumidityLast >= iSensorRate;
+				System.arraycopy(values, 0, mGeomagnetic, 0, 3);
+				mHasGeomagnetic = true;
 				break;
-			case Sensor.TYPE_AMBIENT_TEMPERATURE:
-				isRateElapsed = (event.timestamp / 1000) - mTempLast >= iSensorRate;
-				break;
-		}
-		
-		if (!isRateElapsed)
-			return;
-		
-		switch (event.sensor.getType()) {
-		case Sensor.TYPE_ACCELEROMETER:
-			mAccLast = event.timestamp / 1000;
-			break;
-		case Sensor.TYPE_ORIENTATION:
-			mOrLast = event.timestamp / 1000;
-			break;
-		case Sensor.TYPE_GYROSCOPE:
-			mGyroLast = event.timestamp / 1000;
-			break;
-		case Sensor.TYPE_MAGNETIC_FIELD:
-			mMagLast = event.timestamp / 1000;
-			break;
-		case Sensor.TYPE_LIGHT:
-			mLightLast = event.timestamp / 1000;
-			break;
-		case Sensor.TYPE_PROXIMITY:
-			mProximityLast = event.timestamp / 1000;
-			break;
-		case Sensor.TYPE_PRESSURE:
-			mPressureLast = event.timestamp / 1000;
-			break;
-		case Sensor.TYPE_RELATIVE_HUMIDITY:
-			mHumidityLast = event.timestamp / 1000;
-			break;
-		case Sensor.TYPE_AMBIENT_TEMPERATURE:
-			mTempLast = event.timestamp / 1000;
-			break;
-		}
-
-		
-		if (sensorSectionFragment != null) {
-			sensorSectionFragment.onSensorChanged(event);
-    	}
-		if (gpsSectionFragment != null) {
-			gpsSectionFragment.onSensorChanged(event);
 		}
     }
     	
@@ -639,9 +846,265 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 			prefUtc = sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_UTC, prefUtc);
 		} else if (key.equals(SettingsActivity.KEY_PREF_CID)) {
 			prefCid = sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_CID, prefCid);
+		} else if (key.equals(SettingsActivity.KEY_PREF_NMEA_LOG)) {
+			prefNmeaLog = sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_NMEA_LOG, prefNmeaLog);
+			updateNmeaLogging();
+		} else if (key.equals(SettingsActivity.KEY_PREF_SENSOR_CAPTURE)) {
+			prefSensorCapture = sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_SENSOR_CAPTURE, prefSensorCapture);
+			updateSensorCapture();
+		} else if (key.equals(SettingsActivity.KEY_PREF_VIBRATION)) {
+			prefVibration = sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_VIBRATION, prefVibration);
+			updateSpectrumAnalysis();
+		} else if (key.equals(SettingsActivity.KEY_PREF_RECORD)) {
+			// recording may have been stopped from the notification
+			supportInvalidateOptionsMenu();
+		}
+	}
+
+	/**
+	 * Starts or stops NMEA logging.
+	 * <p>
+	 * NMEA sentences are logged while {@link #prefNmeaLog} is set and the
+	 * activity is not stopped.
+	 */
+	private void updateNmeaLogging() {
+		if (prefNmeaLog && !isStopped) {
+			if (nmeaLogger != null)
+				return;
+			File dir = getExternalFilesDir(NMEA_DIR);
+			if (dir == null)
+				dir = new File(getFilesDir(), NMEA_DIR);
+			try {
+				nmeaLogger = new NmeaLogger(dir);
+				locationManager.addNmeaListener(mNmeaListener);
+			} catch (SecurityException e) {
+				Log.w("MainActivity", "Permission not granted for NMEA data. NMEA sentences will not be logged.");
+				nmeaLogger.close();
+				nmeaLogger = null;
+			}
+		} else if (nmeaLogger != null) {
+			locationManager.removeNmeaListener(mNmeaListener);
+			nmeaLogger.close();
+			if (nmeaLogger.getLastError() != null)
+				Log.w("MainActivity", "Error writing NMEA log: " + nmeaLogger.getLastError().getMessage());
+			Log.d("MainActivity", String.format("NMEA log: %d sentences, %d dropped",
+					nmeaLogger.getSentenceCount(), nmeaLogger.getDroppedCount()));
+			nmeaLogger = null;
+		}
+	}
+
+	/**
+	 * Starts or stops full-rate sensor capture.
+	 * <p>
+	 * Sensors are captured while {@link #prefSensorCapture} is set and the
+	 * activity is not stopped. Captured sensors are registered at their
+	 * highest rate, with hardware batching where available. Their events are
+	 * passed to {@link #sensorLogger} on the sensor thread, while the UI
+	 * continues to receive them at its usual rate.
+	 */
+	private void updateSensorCapture() {
+		if (prefSensorCapture && !isStopped) {
+			if (sensorLogger != null)
+				return;
+			File dir = getExternalFilesDir(SENSOR_DIR);
+			if (dir == null)
+				dir = new File(getFilesDir(), SENSOR_DIR);
+			sensorLogger = new SensorLogger(dir, System.currentTimeMillis(), SystemClock.elapsedRealtime() * 1000000L);
+			updateSamplingPeriods();
+			for (int type : CAPTURE_SENSORS) {
+				sensorHub.setMaxReportLatency(type, CAPTURE_MAX_LATENCY);
+				sensorHub.subscribe(type, mCaptureListener, 0, null);
+			}
+		} else if (sensorLogger != null) {
+			sensorHub.unsubscribe(mCaptureListener);
+			SensorLogger logger = sensorLogger;
+			sensorLogger = null;
+			logger.close();
+			if (logger.getLastError() != null)
+				Log.w("MainActivity", "Error writing sensor log: " + logger.getLastError().getMessage());
+			Log.d("MainActivity", String.format("Sensor log: %d samples, %d dropped",
+					logger.getSampleCount(), logger.getDroppedCount()));
+			updateSamplingPeriods();
+			for (int type : CAPTURE_SENSORS)
+				sensorHub.setMaxReportLatency(type, 0);
 		}
 	}
 
+	/**
+	 * Starts or stops vibration analysis.
+	 * <p>
+	 * The accelerometer is analyzed while {@link #prefVibration} is set and
+	 * the activity is not stopped. Events are passed to
+	 * {@link #spectrumAnalyzer} on the sensor thread, and the sensor fragment
+	 * picks up the results whenever it refreshes the accelerometer display.
+	 */
+	private void updateSpectrumAnalysis() {
+		if (prefVibration && !isStopped) {
+			if (spectrumAnalyzer != null)
+				return;
+			spectrumAnalyzer = new SpectrumAnalyzer();
+			updateSamplingPeriods();
+			sensorHub.subscribe(Sensor.TYPE_ACCELEROMETER, mSpectrumListener, 0, null);
+		} else if (spectrumAnalyzer != null) {
+			sensorHub.unsubscribe(mSpectrumListener);
+			SpectrumAnalyzer analyzer = spectrumAnalyzer;
+			spectrumAnalyzer = null;
+			analyzer.close();
+			Log.d("MainActivity", String.format("Vibration analysis: %d samples, %d windows analyzed, %d skipped",
+					analyzer.getSampleCount(), analyzer.getWindowsAnalyzed(), analyzer.getWindowsSkipped()));
+			updateSamplingPeriods();
+		}
+	}
+
+	/**
+	 * Starts delivering fused orientation to a listener on the main thread, replacing any previous listener.
+	 */
+	void startOrientationUpdates(OrientationEngine.Listener listener) {
+		orientationEngine.start(listener, mainHandler);
+		updateSamplingPeriods();
+	}
+
+	/**
+	 * Stops delivering fused orientation.
+	 */
+	void stopOrientationUpdates() {
+		orientationEngine.stop();
+		updateSamplingPeriods();
+	}
+
+	/**
+	 * Sets the sampling period of each sensor used for capture, analysis or
+	 * orientation to the fastest one currently needed.
+	 */
+	private void updateSamplingPeriods() {
+		for (int type : CAPTURE_SENSORS) {
+			int period = iSensorRate;
+			if (orientationEngine.isStarted() && OrientationEngine.usesSensor(type))
+				period = Math.min(period, OrientationEngine.SAMPLING_PERIOD);
+			if ((type == Sensor.TYPE_ACCELEROMETER) && (spectrumAnalyzer != null))
+				period = Math.min(period, SPECTRUM_SAMPLING_PERIOD);
+			if (sensorLogger != null)
+				period = SensorManager.SENSOR_DELAY_FASTEST;
+			sensorHub.setSamplingPeriod(type, period);
+		}
+	}
+
+	/**
+	 * Handles the intent with which the activity was started.
+	 * <p>
+	 * If the intent has the {@link #ACTION_REPLAY_NMEA} action, the NMEA log
+	 * passed as its data is replayed, e.g.:
+	 * <pre>
+	 * adb shell am start -n com.vonglasow.michael.satstat/.MainActivity \
+	 *     -a com.vonglasow.michael.satstat.REPLAY_NMEA -d file:///sdcard/track.nmea.gz
+	 * </pre>
+	 */
+	@Override
+	protected void onNewIntent(Intent intent) {
+		super.onNewIntent(intent);
+		handleIntent(intent);
+	}
+
+	private void handleIntent(Intent intent) {
+		if ((intent == null) || !ACTION_REPLAY_NMEA.equals(intent.getAction()) || (intent.getData() == null))
+			return;
+		startNmeaReplay(new File(intent.getData().getPath()), intent.getFloatExtra(EXTRA_REPLAY_SPEED, 1));
+	}
+
+	/**
+	 * Replays an NMEA log.
+	 * <p>
+	 * The log is parsed on a background thread, and the resulting satellite
+	 * snapshots and locations are passed to {@link #onGpsSnapshot(GpsSnapshot)}
+	 * and {@link #onLocationChanged(Location)} on the main thread, just like
+	 * data from the GPS. Snapshots are copied into {@link #gpsSnapshotPool} on
+	 * the main thread, while the replay thread waits, as the replay reuses its
+	 * snapshot for the next epoch. Any replay in progress is cancelled.
+	 * <p>
+	 * Replayed fixes are filtered by the time in the log rather than by
+	 * elapsed realtime, so {@link #positionFilter} is reset when a replay
+	 * starts and when it ends.
+	 *
+	 * @param file The log file, plain or gzip-compressed
+	 * @param speed The replay speed relative to real time
+	 */
+	void startNmeaReplay(final File file, float speed) {
+		if (nmeaReplay != null)
+			nmeaReplay.cancel();
+		final NmeaReplay replay = new NmeaReplay(new NmeaReplay.Listener() {
+			@Override
+			public void onSatellites(final GpsSnapshot snapshot) {
+				final CountDownLatch copied = new CountDownLatch(1);
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						GpsSnapshot copy = gpsSnapshotPool.obtain(snapshot);
+						copied.countDown();
+						onGpsSnapshot(copy);
+					}
+				});
+				try {
+					copied.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			@Override
+			public void onFix(NmeaFix fix) {
+				final Location location = new Location(LocationManager.GPS_PROVIDER);
+				location.setTime(fix.time);
+				location.setLatitude(fix.latitude);
+				location.setLongitude(fix.longitude);
+				if (!Double.isNaN(fix.altitude))
+					location.setAltitude(fix.altitude);
+				if (!Float.isNaN(fix.accuracy))
+					location.setAccuracy(fix.accuracy);
+				if (!Float.isNaN(fix.speed))
+					location.setSpeed(fix.speed);
+				if (!Float.isNaN(fix.bearing))
+					location.setBearing(fix.bearing);
+				if (fix.satsUsed >= 0) {
+					Bundle extras = new Bundle();
+					extras.putInt("satellites", fix.satsUsed);
+					location.setExtras(extras);
+				}
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						onLocationChanged(location);
+					}
+				});
+			}
+		});
+		// the replay paces itself, so the main thread is never more than one epoch behind
+		replay.setSpeed(Math.max(speed, 1));
+		nmeaReplay = replay;
+		positionFilter.reset();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					replay.replay(file);
+				} catch (IOException e) {
+					Log.w("MainActivity", "Cannot replay NMEA log: " + e.getMessage());
+				}
+				Log.d("MainActivity", String.format("NMEA replay: %d sentences, %d checksum errors, %d fixes",
+						replay.getParser().getParsedCount(), replay.getParser().getChecksumErrorCount(),
+						replay.getFixCount()));
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (nmeaReplay == replay) {
+							nmeaReplay = null;
+							positionFilter.reset();
+						}
+					}
+				});
+			}
+		}, "NmeaReplay").start();
+	}
+
     /**
      * Called when a location provider's status changes. Does nothing.
      */
@@ -652,8 +1115,15 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
     	isStopped = true;
     	locationManager.removeUpdates(this);
     	locationManager.removeGpsStatusListener(this);
-    	sensorManager.unregisterListener(this);
+    	updateNmeaLogging();
+    	updateSensorCapture();
+    	updateSpectrumAnalysis();
+    	fixStatisticsRecorder.save();
+    	sensorHub.stop();
+    	altitudeEngine.stop(this);
         telephonyManager.listen(mPhoneStateListener, LISTEN_NONE);
+        radioLocationEngine.stop();
+        wifiScanScheduler.stop();
         try {
         	unregisterReceiver(mWifiScanReceiver);
         } catch (IllegalArgumentException e) {
@@ -665,6 +1135,27 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
         super.onStop();
     }
     
+	/**
+	 * Adds the results of a Wi-Fi scan to {@link #wifiApStore}.
+	 * <p>
+	 * Results are only recorded if we have a recent and accurate GPS fix.
+	 * @param results The scan results
+	 */
+	private void recordWifiObservations(List<ScanResult> results) {
+		Location location = lastLocation;
+		if ((wifiApStore == null) || (results == null) || (location == null)
+				|| !LocationManager.GPS_PROVIDER.equals(location.getProvider())
+				|| !location.hasAccuracy() || (location.getAccuracy() > WIFI_OBSERVATION_MAX_ACCURACY))
+			return;
+		long now = System.currentTimeMillis();
+		if (Math.abs(now - location.getTime()) > WIFI_OBSERVATION_MAX_AGE)
+			return;
+		for (ScanResult result : results)
+			wifiApStore.add(now, result.BSSID, result.SSID, result.frequency, result.level,
+					WifiCapabilities.getCapabilityFlags(result.capabilities),
+					location.getLatitude(), location.getLongitude(), location.getAccuracy());
+	}
+
 	/**
 	 * Registers for updates with selected location providers.
 	 * @param context
@@ -675,8 +1166,11 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 		
 		locationManager.removeUpdates(this);
 		
-		if (mapSectionFragment != null)
-			mapSectionFragment.onLocationProvidersChanged(providers);
+		isFilterSelected = providers.contains(PositionFilter.PROVIDER);
+		if (!isFilterSelected)
+			positionFilter.reset();
+
+		eventBus.locationProviders.publish(providers);
 		
 		if (!isStopped) {
 			for (String pr : providers) {
@@ -687,7 +1181,8 @@ public class MainActivity extends AppCompatActivity implements GpsStatus.Listene
 					} catch (SecurityException e) {
 						Log.w("MainActivity", "Permission not granted for " + pr + " location provider. Data display will not be available for this provider.");
 					}
-				} else {
+				} else if (!pr.equals(RadioPositionEstimator.PROVIDER) && !pr.equals(PositionFilter.PROVIDER)) {
+					// the radio and filtered providers are internal and get their data from within the app
 					Log.w("MainActivity", "No " + pr + " location provider found. Data display will not be available for this provider.");
 				}
 			}
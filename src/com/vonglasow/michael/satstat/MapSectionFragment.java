@@ -19,6 +19,7 @@
 
 package com.vonglasow.michael.satstat;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -38,21 +39,19 @@ import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
 import org.mapsforge.map.android.view.MapView;
 import org.mapsforge.map.layer.LayerManager;
 import org.mapsforge.map.layer.Layers;
+import org.mapsforge.map.layer.TileLayer;
 import org.mapsforge.map.layer.cache.TileCache;
-import org.mapsforge.map.layer.download.TileDownloadLayer;
-import org.mapsforge.map.layer.download.tilesource.OnlineTileSource;
 import org.mapsforge.map.layer.overlay.Circle;
 import org.mapsforge.map.layer.overlay.Marker;
-import org.mapsforge.map.layer.renderer.TileRendererLayer;
+import org.mapsforge.map.rendertheme.InternalRenderTheme;
 import org.mapsforge.map.util.MapViewProjection;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.drawable.Drawable;
-import android.location.GpsSatellite;
-import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Bundle;
@@ -67,8 +66,20 @@ import android.view.ViewGroup;
 import android.view.View.OnClickListener;
 import android.widget.FrameLayout;
 import android.widget.ImageButton;
-
+import android.widget.TextView;
+
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.event.EventBus;
+import com.vonglasow.michael.satstat.event.Subscription;
+import com.vonglasow.michael.satstat.event.Topic;
+import com.vonglasow.michael.satstat.location.PositionFilter;
+import com.vonglasow.michael.satstat.location.RadioPositionEstimator;
+import com.vonglasow.michael.satstat.mapsforge.OnlineTileLayer;
+import com.vonglasow.michael.satstat.mapsforge.ParallelTileRendererLayer;
 import com.vonglasow.michael.satstat.mapsforge.PersistentTileCache;
+import com.vonglasow.michael.satstat.mapsforge.TileFetcher;
+import com.vonglasow.michael.satstat.mapsforge.UrlTemplateTileSource;
+import com.vonglasow.michael.satstat.widgets.TileSourcePreference;
 
 /**
  * The fragment which displays the map view.
@@ -122,15 +133,22 @@ public class MapSectionFragment extends Fragment {
 
 	private MainActivity mainActivity = null;
 
-	OnlineTileSource onlineTileSource;
 	private MapView mapMap;
-	private TileDownloadLayer mapDownloadLayer = null;
+	private OnlineTileLayer mapDownloadLayer = null;
 	private TileCache mapTileCache = null;
+	private TileFetcher tileFetcher = null;
+	private ParallelTileRendererLayer mapRendererLayer = null;
+	private TileCache mapRendererTileCache = null;
 	private ImageButton mapReattach;
+	private TextView mapAttribution;
 	private boolean isMapViewAttached = true;
 	private HashMap<String, Circle> mapCircles;
 	private HashMap<String, Marker> mapMarkers;
 
+	private Subscription<Set<String>> providersSubscription;
+	private Subscription<Location> locationSubscription;
+	private Subscription<GpsSnapshot> gpsStatusSubscription;
+
 
 	/**
 	 * Cached map of locations reported by the providers.
@@ -147,11 +165,50 @@ public class MapSectionFragment extends Fragment {
 
 	private HashMap<String, String> providerStyles;
 	private HashMap<String, String> providerAppliedStyles;
+	/** Resolved styles, keyed by style name */
+	private HashMap<String, ProviderStyle> styleCache;
 	private List<String> mAvailableProviderStyles;
 	private Handler providerInvalidationHandler = null;
 	private HashMap<String, Runnable> providerInvalidators;
 
 
+	/**
+	 * A location provider style with its resources resolved.
+	 * <p>
+	 * Looking up the style array by name and rasterizing the marker drawable
+	 * is expensive, hence each style is resolved once and its marker bitmap
+	 * shared by all markers which use the style.
+	 */
+	private static class ProviderStyle {
+		final int fillColor;
+		final int strokeColor;
+		/**
+		 * The marker bitmap. The cache holds one reference to it, and each
+		 * marker showing it holds another one, which the marker releases
+		 * when its bitmap is replaced or the marker is destroyed.
+		 */
+		final Bitmap marker;
+
+		ProviderStyle(Context context, String styleName) {
+			Resources res = context.getResources();
+			TypedArray style = res.obtainTypedArray(res.getIdentifier(styleName, "array", context.getPackageName()));
+			fillColor = style.getColor(STYLE_FILL, R.color.circle_gray_fill);
+			strokeColor = style.getColor(STYLE_STROKE, R.color.circle_gray_stroke);
+			Drawable drawable = style.getDrawable(STYLE_MARKER);
+			marker = AndroidGraphicFactory.convertToBitmap(drawable);
+			style.recycle();
+		}
+
+		/**
+		 * Returns the marker bitmap with an additional reference for a marker to take over.
+		 */
+		Bitmap obtainMarker() {
+			marker.incrementRefCount();
+			return marker;
+		}
+	}
+
+
 	public MapSectionFragment() {
 	}
 	
@@ -173,33 +230,49 @@ public class MapSectionFragment extends Fragment {
 	protected void applyLocationProviderStyle(Context context, String provider, String styleName) {
 		String sn = (styleName != null)?styleName:assignLocationProviderStyle(provider);
 
-		Boolean isStyleChanged = !sn.equals(providerAppliedStyles.get(provider));
-		Boolean needsRedraw = false;
+		// overlays are created with the style they show, so an unchanged style means there is nothing to do
+		if (sn.equals(providerAppliedStyles.get(provider)))
+			return;
+		providerAppliedStyles.put(provider, sn);
+		Circle circle = mapCircles.get(provider);
+		Marker marker = mapMarkers.get(provider);
+		if ((circle == null) && (marker == null))
+			return;
+		boolean needsRedraw = false;
 
-		Resources res = context.getResources();
-		TypedArray style = res.obtainTypedArray(res.getIdentifier(sn, "array", context.getPackageName()));
+		ProviderStyle style = getProviderStyle(context, sn);
 
 		// Circle layer
-		Circle circle = mapCircles.get(provider);
 		if (circle != null) {
-			circle.getPaintFill().setColor(style.getColor(STYLE_FILL, R.color.circle_gray_fill));
-			circle.getPaintStroke().setColor(style.getColor(STYLE_STROKE, R.color.circle_gray_stroke));
-			needsRedraw = isStyleChanged && circle.isVisible();
+			circle.getPaintFill().setColor(style.fillColor);
+			circle.getPaintStroke().setColor(style.strokeColor);
+			needsRedraw = circle.isVisible();
 		}
 
 		//Marker layer
-		Marker marker = mapMarkers.get(provider);
-		if (marker != null) {
-			Drawable drawable = style.getDrawable(STYLE_MARKER);
-			Bitmap bitmap = AndroidGraphicFactory.convertToBitmap(drawable);
-			marker.setBitmap(bitmap);
-			needsRedraw = needsRedraw || (isStyleChanged && marker.isVisible());
+		if ((marker != null) && (marker.getBitmap() != style.marker)) {
+			marker.setBitmap(style.obtainMarker());
+			needsRedraw = needsRedraw || marker.isVisible();
 		}
 
 		if (needsRedraw)
 			mapMap.getLayerManager().redrawLayers();
-		providerAppliedStyles.put(provider, sn);
-		style.recycle();
+	}
+
+
+	/**
+	 * Returns a style with its resources resolved, resolving it on first use.
+	 * 
+	 * @param context The context of the caller
+	 * @param styleName The name of the style
+	 */
+	private ProviderStyle getProviderStyle(Context context, String styleName) {
+		ProviderStyle style = styleCache.get(styleName);
+		if (style == null) {
+			style = new ProviderStyle(context, styleName);
+			styleCache.put(styleName, style);
+		}
+		return style;
 	}
 
 
@@ -268,6 +341,7 @@ public class MapSectionFragment extends Fragment {
 		View rootView = inflater.inflate(R.layout.fragment_main_map, container, false);
 
 		mapReattach = (ImageButton) rootView.findViewById(R.id.mapReattach);
+		mapAttribution = (TextView) rootView.findViewById(R.id.mapAttribution);
 
 		mapReattach.setVisibility(View.GONE);
 		isMapViewAttached = true;
@@ -300,27 +374,27 @@ public class MapSectionFragment extends Fragment {
 
 		providerStyles = new HashMap<String, String>();
 		providerAppliedStyles = new HashMap<String, String>();
+		styleCache = new HashMap<String, ProviderStyle>();
 
 		providerInvalidationHandler = new Handler();
 		providerInvalidators = new HashMap<String, Runnable>();
 
-		if (mapTileCache == null)
-			mapTileCache = PersistentTileCache.createTileCache(rootView.getContext(), "MapQuest",
+		if (mapTileCache == null) {
+			// earlier versions cached MapQuest tiles, which are no longer used
+			PersistentTileCache.deleteExternalStorageTileCache(rootView.getContext(), "MapQuest");
+			mapTileCache = PersistentTileCache.createTileCache(rootView.getContext(), "online",
 					mapMap.getModel().displayModel.getTileSize(), 1f,
 					mapMap.getModel().frameBufferModel.getOverdrawFactor());
+		}
 
-		onlineTileSource = new OnlineTileSource(new String[]{
-				"otile1.mqcdn.com", "otile2.mqcdn.com", "otile3.mqcdn.com", "otile4.mqcdn.com"
-		}, 80);
-		onlineTileSource.setName("MapQuest")
-		.setAlpha(false)
-		.setBaseUrl("/tiles/1.0.0/map/")
-		.setExtension("png")
-		.setParallelRequestsLimit(8)
-		.setProtocol("http")
-		.setTileSize(256)
-		.setZoomLevelMax((byte) 18)
-		.setZoomLevelMin((byte) 0);
+		// tile servers require a user agent which identifies the app
+		String userAgent = getString(R.string.app_name);
+		try {
+			userAgent += "/" + mainActivity.getPackageManager().getPackageInfo(mainActivity.getPackageName(), 0).versionName;
+		} catch (NameNotFoundException e) {
+			// we are looking up our own package, this should never happen
+		}
+		tileFetcher = new TileFetcher(userAgent);
 
 		GestureDetector gd = new GestureDetector(rootView.getContext(),
 				new GestureDetector.SimpleOnGestureListener() {
@@ -334,19 +408,27 @@ public class MapSectionFragment extends Fragment {
 
 		mapMap.setGestureDetector(gd);
 
-		mainActivity.mapSectionFragment = this;
-
 		return rootView;
 	}
 
 	
 	@Override
 	public void onDestroyView() {
-		if (mainActivity.mapSectionFragment == this)
-			mainActivity.mapSectionFragment = null;
-
-		if (mapTileCache != null)
+		// markers still on the map release their bitmaps when the map is destroyed
+		if (mapMarkers != null)
+			mapMarkers.clear();
+		for (ProviderStyle style : styleCache.values())
+			style.marker.decrementRefCount();
+		styleCache.clear();
+
+		if (mapTileCache != null) {
 			mapTileCache.destroy();
+			mapTileCache = null;
+		}
+		if (mapRendererTileCache != null) {
+			mapRendererTileCache.destroy();
+			mapRendererTileCache = null;
+		}
 		if (mapMap != null) {
 			mapMap.getModel().mapViewPosition.destroy();
 			mapMap.destroy();
@@ -356,10 +438,10 @@ public class MapSectionFragment extends Fragment {
 	
 
 	/**
-	 * Called by {@link MainActivity} when the status of the GPS changes. Updates GPS display.
+	 * Called when the status of the GPS changes. Marks the GPS location as stale if there is no fix.
 	 */
-	public void onGpsStatusChanged(GpsStatus status, int satsInView, int satsUsed, Iterable<GpsSatellite> sats) {
-		if (satsUsed == 0) {
+	public void onGpsStatusChanged(GpsSnapshot snapshot) {
+		if (snapshot.getUsedCount() == 0) {
 			Location location = providerLocations.get(LocationManager.GPS_PROVIDER);
 			if (location != null)
 				markLocationAsStale(location);
@@ -370,7 +452,7 @@ public class MapSectionFragment extends Fragment {
 
 	/**
 	 * Called when a new location is found by a registered location provider.
-	 * Stores the location and updates GPS display and map view.
+	 * Stores the location and updates the map view.
 	 */
 	public void onLocationChanged(Location location) {
 		// some providers may report NaN for latitude and longitude:
@@ -427,6 +509,8 @@ public class MapSectionFragment extends Fragment {
 	public void onLocationProvidersChanged(Set<String> providers) {
 		Context context = this.getContext();
 		List<String> allProviders = mainActivity.locationManager.getAllProviders();
+		allProviders.add(RadioPositionEstimator.PROVIDER);
+		allProviders.add(PositionFilter.PROVIDER);
 		ArrayList<String> removedProviders = new ArrayList<String>();
 
 		for (String pr : providerLocations.keySet())
@@ -450,6 +534,10 @@ public class MapSectionFragment extends Fragment {
 		// add overlays
 		updateLocationProviderStyles();
 
+		// the old markers are removed from the map below, release their bitmaps
+		if (mapMarkers != null)
+			for (Marker marker : mapMarkers.values())
+				marker.onDestroy();
 		mapCircles = new HashMap<String, Circle>();
 		mapMarkers = new HashMap<String, Marker>();
 
@@ -457,9 +545,9 @@ public class MapSectionFragment extends Fragment {
 
 		Layers layers = mapMap.getLayerManager().getLayers();
 
-		// remove all layers other than tile render layer from map
+		// remove all layers other than tile layers from map
 		for (int i = 0; i < layers.size(); )
-			if ((layers.get(i) instanceof TileRendererLayer) || (layers.get(i) instanceof TileDownloadLayer)) {
+			if (layers.get(i) instanceof TileLayer) {
 				i++;
 			} else {
 				layers.remove(i);
@@ -506,14 +594,13 @@ public class MapSectionFragment extends Fragment {
 			}
 
 			// Circle layer
-			Resources res = context.getResources();
-			TypedArray style = res.obtainTypedArray(res.getIdentifier(styleName, "array", context.getPackageName()));
+			ProviderStyle style = getProviderStyle(context, styleName);
 			Paint fill = AndroidGraphicFactory.INSTANCE.createPaint();
 			float density = context.getResources().getDisplayMetrics().density;
-			fill.setColor(style.getColor(STYLE_FILL, R.color.circle_gray_fill));
+			fill.setColor(style.fillColor);
 			fill.setStyle(Style.FILL);
 			Paint stroke = AndroidGraphicFactory.INSTANCE.createPaint();
-			stroke.setColor(style.getColor(STYLE_STROKE, R.color.circle_gray_stroke));
+			stroke.setColor(style.strokeColor);
 			stroke.setStrokeWidth(Math.max(1.5f * density, 1));
 			stroke.setStyle(Style.STROKE);
 			Circle circle = new Circle(latLong, acc, fill, stroke);
@@ -522,13 +609,12 @@ public class MapSectionFragment extends Fragment {
 			circle.setVisible(visible);
 
 			// Marker layer
-			Drawable drawable = style.getDrawable(STYLE_MARKER);
-			Bitmap bitmap = AndroidGraphicFactory.convertToBitmap(drawable);
+			Bitmap bitmap = style.obtainMarker();
 			Marker marker = new Marker(latLong, bitmap, 0, -bitmap.getHeight() * 9 / 20);
 			mapMarkers.put(pr, marker);
 			layers.add(marker);
 			marker.setVisible(visible);
-			style.recycle();
+			providerAppliedStyles.put(pr, styleName);
 		}
 
 		// move layers into view
@@ -539,14 +625,16 @@ public class MapSectionFragment extends Fragment {
 	@Override
 	public void onPause() {
 		super.onPause();
-		mapDownloadLayer.onPause();
+		if (mapDownloadLayer != null)
+			mapDownloadLayer.onPause();
 	}
 	
 
 	@Override
 	public void onResume() {
 		super.onResume();
-		mapDownloadLayer.onResume();
+		if (mapDownloadLayer != null)
+			mapDownloadLayer.onResume();
 	}
 	
 
@@ -567,31 +655,55 @@ public class MapSectionFragment extends Fragment {
 		int zoom = mainActivity.mSharedPreferences.getInt(SettingsActivity.KEY_PREF_MAP_ZOOM, 16);
 		mapMap.getModel().mapViewPosition.setZoomLevel((byte) zoom);
 
-		/*
-        TileRendererLayer tileRendererLayer = new TileRendererLayer(tileCache,
-        		mapMap.getModel().mapViewPosition, false, AndroidGraphicFactory.INSTANCE);
-
-        //FIXME: have user select map file
-        tileRendererLayer.setMapFile(new File(Environment.getExternalStorageDirectory(), "org.openbmap/maps/germany.map"));
-
-        tileRendererLayer.setXmlRenderTheme(InternalRenderTheme.OSMARENDER);
+		mapRendererLayer = createRendererLayer();
+		if (mapRendererLayer != null) {
+			layers.add(mapRendererLayer);
+			mapAttribution.setText(R.string.osm_attribution);
+		} else {
+			UrlTemplateTileSource tileSource = TileSourcePreference.createRegistry(mainActivity,
+					mainActivity.mSharedPreferences).get(mainActivity.mSharedPreferences.getString(
+							SettingsActivity.KEY_PREF_MAP_SOURCE, null));
+			mapDownloadLayer = new OnlineTileLayer(mapTileCache,
+					mapMap.getModel().mapViewPosition, tileSource, tileFetcher,
+					AndroidGraphicFactory.INSTANCE);
+			layers.add(mapDownloadLayer);
+			mapAttribution.setText(tileSource.getAttribution());
+		}
 
-        //tileRendererLayer.setTextScale(1.5f);
-        layers.add(tileRendererLayer);
+		/*
+		 * Overlays must be in place before locations are delivered. Providers
+		 * are delivered on the publishing thread, so if a set has been
+		 * published, it is applied before subscribe() returns.
 		 */
-
-		mapDownloadLayer = new TileDownloadLayer(mapTileCache,
-				mapMap.getModel().mapViewPosition, onlineTileSource,
-				AndroidGraphicFactory.INSTANCE);
-		layers.add(mapDownloadLayer);
-
-		//parse list of location providers
-		onLocationProvidersChanged(
-				mainActivity.mSharedPreferences.getStringSet(
-						SettingsActivity.KEY_PREF_LOC_PROV,
-						new HashSet<String>(Arrays.asList(
-								new String[] {LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER}
-								))));
+		EventBus eventBus = mainActivity.eventBus;
+		providersSubscription = eventBus.locationProviders.subscribe(new Topic.Listener<Set<String>>() {
+			@Override
+			public void onEvent(Set<String> providers) {
+				onLocationProvidersChanged(providers);
+			}
+		}, null, 0);
+		if (eventBus.locationProviders.getLatest() == null)
+			//parse list of location providers
+			onLocationProvidersChanged(
+					mainActivity.mSharedPreferences.getStringSet(
+							SettingsActivity.KEY_PREF_LOC_PROV,
+							new HashSet<String>(Arrays.asList(
+									new String[] {LocationManager.GPS_PROVIDER, LocationManager.NETWORK_PROVIDER}
+									))));
+
+		// locations from different providers must not replace each other, hence no conflation
+		locationSubscription = eventBus.location.subscribe(new Topic.Listener<Location>() {
+			@Override
+			public void onEvent(Location location) {
+				onLocationChanged(location);
+			}
+		}, null, 0);
+		gpsStatusSubscription = eventBus.gpsStatus.subscribe(new Topic.Listener<GpsSnapshot>() {
+			@Override
+			public void onEvent(GpsSnapshot snapshot) {
+				onGpsStatusChanged(snapshot);
+			}
+		}, eventBus.mainThread, 0);
 	}
 	
 
@@ -606,12 +718,62 @@ public class MapSectionFragment extends Fragment {
 		spEditor.putInt(SettingsActivity.KEY_PREF_MAP_ZOOM, zoom);
 		spEditor.commit();
 
+		providersSubscription.cancel();
+		locationSubscription.cancel();
+		gpsStatusSubscription.cancel();
+
 		super.onStop();
 
-		if (mapMap != null)
-			mapMap.getLayerManager().getLayers().remove(mapDownloadLayer);
-		if (mapDownloadLayer != null)
+		if (mapDownloadLayer != null) {
+			if (mapMap != null)
+				mapMap.getLayerManager().getLayers().remove(mapDownloadLayer);
 			mapDownloadLayer.onDestroy();
+			mapDownloadLayer = null;
+			Log.i(TAG, "Tile downloads: " + tileFetcher.getMetrics());
+		}
+		if (mapRendererLayer != null) {
+			if (mapMap != null)
+				mapMap.getLayerManager().getLayers().remove(mapRendererLayer);
+			mapRendererLayer.onDestroy();
+			mapRendererLayer = null;
+		}
+	}
+
+
+	/**
+	 * Creates a layer which renders the offline map selected by the user.
+	 * 
+	 * Tiles are rendered on one thread per processor core and stored in a
+	 * persistent cache, so they are rendered only once.
+	 * 
+	 * @return The layer, or {@code null} if online tiles are selected or the
+	 * map file cannot be opened
+	 */
+	private ParallelTileRendererLayer createRendererLayer() {
+		String path = mainActivity.mSharedPreferences.getString(SettingsActivity.KEY_PREF_MAP_FILE, "");
+		if (path.length() == 0)
+			return null;
+		File mapFile = new File(path);
+		if (!mapFile.isFile()) {
+			Log.w(TAG, "Map file not found: " + path);
+			return null;
+		}
+
+		if (mapRendererTileCache == null)
+			mapRendererTileCache = PersistentTileCache.createTileCache(mainActivity, "offline",
+					mapMap.getModel().displayModel.getTileSize(), 1f,
+					mapMap.getModel().frameBufferModel.getOverdrawFactor());
+		ParallelTileRendererLayer layer = new ParallelTileRendererLayer(mapRendererTileCache,
+				mapMap.getModel().mapViewPosition, false, AndroidGraphicFactory.INSTANCE,
+				ParallelTileRendererLayer.getDefaultThreadCount());
+		try {
+			layer.setMapFile(mapFile);
+		} catch (IllegalArgumentException e) {
+			Log.w(TAG, "Cannot open map file " + path + ": " + e.getMessage());
+			return null;
+		}
+		layer.setXmlRenderTheme(InternalRenderTheme.OSMARENDER);
+		return layer;
 	}
 
 
@@ -635,6 +797,8 @@ public class MapSectionFragment extends Fragment {
 		//FIXME: move code into assignLocationProviderStyle and use that
 		List<String> allProviders = mainActivity.locationManager.getAllProviders();
 		allProviders.remove(LocationManager.PASSIVE_PROVIDER);
+		allProviders.add(RadioPositionEstimator.PROVIDER);
+		allProviders.add(PositionFilter.PROVIDER);
 		if (allProviders.contains(LocationManager.GPS_PROVIDER)) {
 			providerStyles.put(LocationManager.GPS_PROVIDER,
 					mainActivity.mSharedPreferences.getString(SettingsActivity.KEY_PREF_LOC_PROV_STYLE + LocationManager.GPS_PROVIDER, LOCATION_PROVIDER_RED));
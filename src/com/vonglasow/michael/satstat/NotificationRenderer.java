@@ -0,0 +1,193 @@
+package com.vonglasow.michael.satstat;
+
+import android.app.Service;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+
+import com.vonglasow.michael.satstat.util.TextBuffer;
+
+/**
+ * Posts the ongoing notification of a foreground service, skipping redundant updates.
+ * <p>
+ * Each post is a binder call to the system and wakes up the status bar,
+ * therefore the renderer limits updates in two ways. Updates of the same
+ * {@link Content} are rendered at most once per interval; if one arrives
+ * earlier, rendering is deferred until the interval has elapsed, so only
+ * the latest state is rendered. A switch to a different content is
+ * rendered immediately. After rendering, the notification is only posted
+ * if icon, title or text differ from what is currently posted.
+ * <p>
+ * Content is composed into reusable {@link TextBuffer}s, so rendering
+ * does not allocate any strings unless the notification is actually posted.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class NotificationRenderer {
+	/**
+	 * Composes the content of the notification.
+	 */
+	public interface Content {
+		/**
+		 * Composes the notification into the title and text buffers of the renderer.
+		 * <p>
+		 * The buffers are empty when this method is called, the icon is 0 and big text style is off.
+		 *
+		 * @return The builder with which to post the notification, or null to remove the notification
+		 */
+		public NotificationCompat.Builder render(NotificationRenderer renderer);
+	}
+
+	private final Service service;
+	private final int id;
+	private final Handler handler = new Handler();
+	private long interval;
+
+	/* Content being composed */
+	private TextBuffer title = new TextBuffer();
+	private TextBuffer text = new TextBuffer();
+	private int icon;
+	private boolean isBigText;
+
+	/* Content currently posted */
+	private NotificationCompat.Builder postedBuilder = null;
+	private TextBuffer postedTitle = new TextBuffer();
+	private TextBuffer postedText = new TextBuffer();
+	private int postedIcon;
+	private boolean postedIsBigText;
+
+	/** The content last rendered */
+	private Content lastContent = null;
+	/** Time at which content was last rendered, in milliseconds of {@link SystemClock#elapsedRealtime()} */
+	private long lastRenderTime = 0;
+	/** Content to render when the interval has elapsed, null if none is pending */
+	private Content pendingContent = null;
+
+	private final Runnable renderTask = new Runnable() {
+		@Override
+		public void run() {
+			Content content = pendingContent;
+			pendingContent = null;
+			if (content != null)
+				render(content);
+		}
+	};
+
+	/**
+	 * @param service The service which posts the notification
+	 * @param id The ID of the notification
+	 * @param interval The minimum interval between two renderings of the same content, in milliseconds
+	 */
+	public NotificationRenderer(Service service, int id, long interval) {
+		this.service = service;
+		this.id = id;
+		this.interval = interval;
+	}
+
+	/**
+	 * Sets the minimum interval between two renderings of the same content.
+	 *
+	 * @param interval The interval in milliseconds, 0 to render every update
+	 */
+	public void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Returns the buffer for the title of the notification.
+	 */
+	public TextBuffer getTitle() {
+		return title;
+	}
+
+	/**
+	 * Returns the buffer for the text of the notification.
+	 */
+	public TextBuffer getText() {
+		return text;
+	}
+
+	/**
+	 * Sets the small icon of the notification.
+	 */
+	public void setIcon(int icon) {
+		this.icon = icon;
+	}
+
+	/**
+	 * Sets whether the text is shown in big text style when the notification is expanded.
+	 */
+	public void setBigText(boolean isBigText) {
+		this.isBigText = isBigText;
+	}
+
+	/**
+	 * Requests the notification to be rendered with the given content.
+	 * <p>
+	 * Rendering may be deferred, in which case {@code content} is called
+	 * later and should then render the latest state.
+	 */
+	public void update(Content content) {
+		long now = SystemClock.elapsedRealtime();
+		if ((content != lastContent) || (now - lastRenderTime >= interval)) {
+			handler.removeCallbacks(renderTask);
+			pendingContent = null;
+			render(content);
+		} else {
+			if (pendingContent == null)
+				handler.postDelayed(renderTask, lastRenderTime + interval - now);
+			pendingContent = content;
+		}
+	}
+
+	/**
+	 * Removes the notification and cancels any pending update.
+	 */
+	public void cancel() {
+		handler.removeCallbacks(renderTask);
+		pendingContent = null;
+		lastContent = null;
+		if (postedBuilder == null)
+			return;
+		postedBuilder = null;
+		service.stopForeground(true);
+	}
+
+	private void render(Content content) {
+		lastContent = content;
+		lastRenderTime = SystemClock.elapsedRealtime();
+		title.begin();
+		text.begin();
+		icon = 0;
+		isBigText = false;
+		NotificationCompat.Builder builder = content.render(this);
+		if (builder == null) {
+			if (postedBuilder != null) {
+				postedBuilder = null;
+				service.stopForeground(true);
+			}
+			return;
+		}
+		if ((builder == postedBuilder) && (icon == postedIcon) && (isBigText == postedIsBigText)
+				&& title.contentEquals(postedTitle) && text.contentEquals(postedText))
+			return;
+
+		String textString = text.toString();
+		if (icon != 0)
+			builder.setSmallIcon(icon);
+		builder.setContentTitle(title.toString());
+		builder.setContentText(textString);
+		builder.setStyle(isBigText ? new NotificationCompat.BigTextStyle().bigText(textString) : null);
+		service.startForeground(id, builder.build());
+
+		postedBuilder = builder;
+		postedIcon = icon;
+		postedIsBigText = isBigText;
+		TextBuffer tmp = postedTitle;
+		postedTitle = title;
+		title = tmp;
+		tmp = postedText;
+		postedText = text;
+		text = tmp;
+	}
+}
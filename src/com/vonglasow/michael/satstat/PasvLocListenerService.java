@@ -33,7 +33,6 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageManager;
-import android.location.GpsSatellite;
 import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationListener;
@@ -45,16 +44,29 @@ import android.support.v4.app.NotificationCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.data.GpsSnapshotPool;
+import com.vonglasow.michael.satstat.sensor.AltitudeEngine;
+import com.vonglasow.michael.satstat.stats.FixStatisticsRecorder;
+import com.vonglasow.michael.satstat.track.TrackRecorder;
+import com.vonglasow.michael.satstat.util.TextBuffer;
+
 public class PasvLocListenerService extends Service implements GpsStatus.Listener, LocationListener, OnSharedPreferenceChangeListener {
 
 	// The unique ID for the notification
 	private static final int ONGOING_NOTIFICATION = 1;
 	
+	// Intent action to stop recording a track
+	public static final String ACTION_STOP_RECORD = "com.vonglasow.michael.satstat.STOP_RECORD";
+	
 	// GPS status values
 	private static final int GPS_INACTIVE = 0;
 	private static final int GPS_SEARCH = 1;
 	private static final int GPS_FIX = 2;
 	
+	// Default minimum interval between notification updates, in seconds
+	private static final String DEFAULT_NOTIFY_INTERVAL = "1";
+
 	private int mStatus = GPS_INACTIVE;
 	
 	private boolean prefUnitType = true;
@@ -63,8 +75,33 @@ public class PasvLocListenerService extends Service implements GpsStatus.Listene
 	private boolean mNotifySearch = false;
 
 	private LocationManager mLocationManager;
+	private GpsSnapshotPool mGpsSnapshotPool = new GpsSnapshotPool();
 	private NotificationCompat.Builder mBuilder;
+	private NotificationCompat.Builder mRecordBuilder;
+	private NotificationRenderer mRenderer;
+	private Location mLastLocation = null;
+	private TrackRecorder mRecorder;
+	private FixStatisticsRecorder mStatisticsRecorder;
+	private AltitudeEngine mAltitudeEngine;
+	private boolean mIsRecordingGps = false;
 	private SharedPreferences mSharedPreferences;
+
+	/* Resource strings used for every notification update */
+	private String unitDegree;
+	private String unitMeter;
+	private String unitFeet;
+	private String unitKmh;
+	private String unitMph;
+	private String unitMs;
+	private String unitFtMin;
+	private String valueN;
+	private String valueS;
+	private String valueE;
+	private String valueW;
+	private String notifyNoLocationBody;
+	private String notifyRecordTitle;
+	private String notifyRecordBody;
+
 	private BroadcastReceiver mGpsStatusReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context c, Intent intent) {
@@ -72,7 +109,7 @@ public class PasvLocListenerService extends Service implements GpsStatus.Listene
 			if (intent.getAction().equals(GpsEventReceiver.GPS_ENABLED_CHANGE) && !intent.getBooleanExtra("enabled", true)) {
 				// GPS_ENABLED_CHANGE, enabled=false: GPS disabled, dismiss notification
 				mStatus = GPS_INACTIVE;
-				stopForeground(true);
+				showStatusIdle();
 			} else if (intent.getAction().equals(GpsEventReceiver.GPS_FIX_CHANGE) && intent.getBooleanExtra("enabled", false)) {
 				// GPS_FIX_CHANGE, enabled=true: GPS got fix, will be taken care of in onLocationChanged
 				mStatus = GPS_FIX;
@@ -85,6 +122,101 @@ public class PasvLocListenerService extends Service implements GpsStatus.Listene
 		}
 	};
 
+	/**
+	 * Keeps the GPS active while recording a track. Fixes are received through the passive provider.
+	 */
+	private LocationListener mRecordListener = new LocationListener() {
+		@Override
+		public void onLocationChanged(Location location) {
+		}
+
+		@Override
+		public void onProviderDisabled(String provider) {
+		}
+
+		@Override
+		public void onProviderEnabled(String provider) {
+		}
+
+		@Override
+		public void onStatusChanged(String provider, int status, Bundle extras) {
+		}
+	};
+
+	/**
+	 * Shows the last GPS fix.
+	 */
+	private NotificationRenderer.Content mFixContent = new NotificationRenderer.Content() {
+		@Override
+		public NotificationCompat.Builder render(NotificationRenderer renderer) {
+			Location location = mLastLocation;
+			GpsSnapshot snapshot = getGpsSnapshot();
+			TextBuffer title = renderer.getTitle();
+			TextBuffer text = renderer.getText();
+
+			appendCoordinates(title, location);
+			if (location.hasSpeed())
+				title.append(" | ").appendFixed(location.getSpeed() * 3.6, 0).append(unitKmh);
+
+			if (mAltitudeEngine.hasAltitude()) {
+				appendDistance(text, mAltitudeEngine.getAltitude());
+				float verticalSpeed = mAltitudeEngine.getVerticalSpeed() * (prefUnitType ? 1 : 196.85f);
+				text.append(' ');
+				if (Math.round(verticalSpeed * 10) >= 0)
+					text.append('+');
+				text.appendFixed(verticalSpeed, 1).append(prefUnitType ? unitMs : unitFtMin);
+			} else if (location.hasAltitude()) {
+				appendDistance(text, location.getAltitude());
+			}
+			if (location.hasSpeed()) {
+				appendSeparator(text, ", ");
+				text.appendFixed(location.getSpeed() * (prefUnitType ? 3.6 : 2.23694), 0).append(prefUnitType ? unitKmh : unitMph);
+			}
+			if (location.hasAccuracy()) {
+				appendSeparator(text, ", ");
+				text.append("\u03b5 = ");
+				appendDistance(text, location.getAccuracy());
+			}
+			appendSeparator(text, ", ");
+			text.append("SAT ").appendLong(snapshot.getUsedCount()).append('/').appendLong(snapshot.getCount());
+			text.append(",\nTTFF ").appendLong(snapshot.getTimeToFirstFix() / 1000).append(" s");
+
+			renderer.setIcon(R.drawable.ic_stat_notify_location);
+			renderer.setBigText(true);
+			return mBuilder;
+		}
+	};
+
+	/**
+	 * Shows the satellite status while searching for a fix.
+	 */
+	private NotificationRenderer.Content mNoLocationContent = new NotificationRenderer.Content() {
+		@Override
+		public NotificationCompat.Builder render(NotificationRenderer renderer) {
+			GpsSnapshot snapshot = getGpsSnapshot();
+			renderer.getTitle().append("SAT ").appendLong(snapshot.getUsedCount()).append('/').appendLong(snapshot.getCount())
+					.append(", TTFF ").appendLong(snapshot.getTimeToFirstFix() / 1000).append(" s");
+			renderer.getText().append(notifyNoLocationBody);
+			renderer.setIcon(R.drawable.ic_stat_notify_nolocation);
+			return mBuilder;
+		}
+	};
+
+	/**
+	 * Shows the recording notification if a track is being recorded, else removes the notification.
+	 */
+	private NotificationRenderer.Content mIdleContent = new NotificationRenderer.Content() {
+		@Override
+		public NotificationCompat.Builder render(NotificationRenderer renderer) {
+			if (!mRecorder.isRecording() || (mRecordBuilder == null))
+				return null;
+			renderer.getTitle().append(notifyRecordTitle);
+			renderer.getText().append(notifyRecordBody);
+			renderer.setIcon(R.drawable.ic_stat_notify_record);
+			return mRecordBuilder;
+		}
+	};
+
 	@Override
 	public IBinder onBind(Intent arg0) {
 		return null;
@@ -96,31 +228,57 @@ public class PasvLocListenerService extends Service implements GpsStatus.Listene
 
 		mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 		mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+		mRecorder = TrackRecorder.getInstance(this);
+		mStatisticsRecorder = FixStatisticsRecorder.getInstance(this);
+		mAltitudeEngine = AltitudeEngine.getInstance(this);
+		mRenderer = new NotificationRenderer(this, ONGOING_NOTIFICATION, Long.parseLong(DEFAULT_NOTIFY_INTERVAL) * 1000);
+
+		unitDegree = getString(R.string.unit_degree);
+		unitMeter = getString(R.string.unit_meter);
+		unitFeet = getString(R.string.unit_feet);
+		unitKmh = getString(R.string.unit_km_h);
+		unitMph = getString(R.string.unit_mph);
+		unitMs = getString(R.string.unit_m_s);
+		unitFtMin = getString(R.string.unit_ft_min);
+		valueN = getString(R.string.value_N);
+		valueS = getString(R.string.value_S);
+		valueE = getString(R.string.value_E);
+		valueW = getString(R.string.value_W);
+		notifyNoLocationBody = getString(R.string.notify_nolocation_body);
+		notifyRecordTitle = getString(R.string.notify_record_title);
+		notifyRecordBody = getString(R.string.notify_record_body);
+
 		registerReceiver(mGpsStatusReceiver, new IntentFilter(GpsEventReceiver.GPS_ENABLED_CHANGE));
 		registerReceiver(mGpsStatusReceiver, new IntentFilter(GpsEventReceiver.GPS_FIX_CHANGE));
 	}
 
 	@Override
 	public void onDestroy() {
-		stopForeground(true);
+		mRenderer.cancel();
 		unregisterReceiver(mGpsStatusReceiver);
 		mLocationManager.removeUpdates(this);
+		mLocationManager.removeUpdates(mRecordListener);
     	mLocationManager.removeGpsStatusListener(this);
 		mSharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+		mStatisticsRecorder.save();
+		mAltitudeEngine.stop(this);
+	}
+
+	/**
+	 * Returns the most recent GPS snapshot, obtaining a new one if none has been taken yet.
+	 */
+	private GpsSnapshot getGpsSnapshot() {
+		GpsSnapshot snapshot = mGpsSnapshotPool.getLast();
+		if (snapshot == null)
+			snapshot = mGpsSnapshotPool.obtain(mLocationManager);
+		return snapshot;
 	}
 
 	@Override
 	public void onGpsStatusChanged(int event) {
-		GpsStatus status = mLocationManager.getGpsStatus(null);
-		boolean satsUsed = false;
-		Iterable<GpsSatellite> sats = status.getSatellites();
-		for (GpsSatellite sat : sats) {
-			if (sat.usedInFix()) {
-				satsUsed = true;
-				break;
-			}
-		}
-		if (!satsUsed) {
+		GpsSnapshot snapshot = mGpsSnapshotPool.obtain(mLocationManager);
+		mStatisticsRecorder.onGpsSnapshot(snapshot);
+		if (snapshot.getUsedCount() == 0) {
 			if (mStatus != GPS_INACTIVE)
 				mStatus = GPS_SEARCH;
 			showStatusNoLocation();
@@ -129,99 +287,80 @@ public class PasvLocListenerService extends Service implements GpsStatus.Listene
 
 	@Override
 	public void onLocationChanged(Location location) {
+		mAltitudeEngine.onLocationChanged(location);
+		mRecorder.onLocationChanged(location, mGpsSnapshotPool.getLast());
+		mStatisticsRecorder.onLocationChanged(location);
 		if (!location.getProvider().equals(LocationManager.GPS_PROVIDER)) return;
+		mLastLocation = location;
 		if (mNotifyFix && (mStatus != GPS_INACTIVE)) {
 			mStatus = GPS_FIX;
-			GpsStatus status = mLocationManager.getGpsStatus(null);
-			int satsInView = 0;
-			int satsUsed = 0;
-			Iterable<GpsSatellite> sats = status.getSatellites();
-			for (GpsSatellite sat : sats) {
-				satsInView++;
-				if (sat.usedInFix()) {
-					satsUsed++;
-				}
-			}
-			double lat = Math.abs(location.getLatitude());
-			double lon = Math.abs(location.getLongitude());
-			String ns = (location.getLatitude() > 0)?
-					getString(R.string.value_N):
-						(location.getLatitude() < 0)?
-								getString(R.string.value_S):"";
-			String ew = (location.getLongitude() > 0)?
-					getString(R.string.value_E):
-						(location.getLongitude() < 0)?
-								getString(R.string.value_W):"";
-			String title = "";
-			if (prefCoord == SettingsActivity.KEY_PREF_COORD_DECIMAL) {
-				title = String.format("%.5f%s%s %.5f%s%s",
-						lat, getString(R.string.unit_degree), ns,
-						lon, getString(R.string.unit_degree), ew);
-			} else if (prefCoord == SettingsActivity.KEY_PREF_COORD_MIN) {
-				double decY = lat;
-				double degY = (int) decY;
-				double minY = 60.0 * (decY - degY);
-				double decX = lon;
-				double degX = (int) decX;
-				double minX = 60.0 * (decY - degY);
-				title = String.format("%.0f%s %.3f' %s %.0f%s %.3f' %s",
-						degY, getString(R.string.unit_degree), minY + /*rounding*/ 0.0005, ns,
-						degX, getString(R.string.unit_degree), minX + /*rounding*/ 0.0005, ew);
-			} else if (prefCoord == SettingsActivity.KEY_PREF_COORD_SEC) {
-				double decY = lat;
-				double degY = (int) decY;
-				double tmp = 60.0 * (decY - degY);
-				double minY = (int) tmp;
-				double secY = 60.0 * (tmp - minY);
-				double decX = lon;
-				double degX = (int) decX;
-				tmp = 60.0 * (decX - degX);
-				double minX = (int) tmp;
-				double secX = 60.0 * (tmp - minX);
-				title = String.format("%.0f%s %.0f' %.1f\" %s %.0f%s %.0f' %.1f\" %s",
-						degY, getString(R.string.unit_degree), minY, secY + /*rounding*/ 0.05, ns,
-						degX, getString(R.string.unit_degree), minX, secX + /*rounding*/ 0.05, ew);
-			} else if (prefCoord == SettingsActivity.KEY_PREF_COORD_MGRS) {
-				title = new LatLng(location.getLatitude(), location.getLongitude()).toMGRSRef().toString(MGRSRef.PRECISION_1M);
-			}
+			mRenderer.update(mFixContent);
+		} else {
+			showStatusIdle();
+		}
+	}
 
-			String text = "";
+	/**
+	 * Appends the coordinates of a location in the selected format.
+	 */
+	private void appendCoordinates(TextBuffer buf, Location location) {
+		double lat = Math.abs(location.getLatitude());
+		double lon = Math.abs(location.getLongitude());
+		String ns = (location.getLatitude() > 0) ? valueN : (location.getLatitude() < 0) ? valueS : "";
+		String ew = (location.getLongitude() > 0) ? valueE : (location.getLongitude() < 0) ? valueW : "";
+		if (prefCoord == SettingsActivity.KEY_PREF_COORD_DECIMAL) {
+			buf.appendFixed(lat, 5).append(unitDegree).append(ns).append(' ')
+					.appendFixed(lon, 5).append(unitDegree).append(ew);
+		} else if (prefCoord == SettingsActivity.KEY_PREF_COORD_MIN) {
+			appendMinutes(buf, lat, ns);
+			buf.append(' ');
+			appendMinutes(buf, lon, ew);
+		} else if (prefCoord == SettingsActivity.KEY_PREF_COORD_SEC) {
+			appendSeconds(buf, lat, ns);
+			buf.append(' ');
+			appendSeconds(buf, lon, ew);
+		} else if (prefCoord == SettingsActivity.KEY_PREF_COORD_MGRS) {
+			buf.append(new LatLng(location.getLatitude(), location.getLongitude()).toMGRSRef().toString(MGRSRef.PRECISION_1M));
+		}
+	}
 
-			if (location.hasSpeed()) {
-				title = title + (" | ") + String.format("%.0f%s",
-						(location.getSpeed() * 3.6),
-						getString(R.string.unit_km_h));
-			}
+	/**
+	 * Appends an absolute coordinate as degrees and decimal minutes, followed by the hemisphere.
+	 */
+	private void appendMinutes(TextBuffer buf, double dec, String hemisphere) {
+		int deg = (int) dec;
+		double min = 60.0 * (dec - deg);
+		buf.appendLong(deg).append(unitDegree).append(' ')
+				.appendFixed(min + /*rounding*/ 0.0005, 3).append("' ").append(hemisphere);
+	}
 
-			if (location.hasAltitude()) {
-				text = text + String.format("%.0f%s",
-						(location.getAltitude() * (prefUnitType ? 1 : 3.28084)),
-						getString(((prefUnitType) ? R.string.unit_meter : R.string.unit_feet)));
-			}
-			if (location.hasSpeed()) {
-				text = text + (text.equals("")?"":", ") + String.format("%.0f%s",
-						(location.getSpeed() * (prefUnitType ? 3.6 : 2.23694)),
-						getString(((prefUnitType) ? R.string.unit_km_h : R.string.unit_mph)));
-			}
-			if (location.hasAccuracy()) {
-				text = text + (text.equals("")?"":", ") + String.format("\u03b5 = %.0f%s",
-						(location.getAccuracy() * (prefUnitType ? 1 : 3.28084)),
-						getString(((prefUnitType) ? R.string.unit_meter : R.string.unit_feet)));
-			}
-			text = text + (text.equals("")?"":", ") + String.format("SAT %d/%d",
-					satsUsed,
-					satsInView);
-			text = text + (text.equals("")?"":",\n") + String.format("TTFF %d s",
-					status.getTimeToFirstFix() / 1000);
-			mBuilder.setSmallIcon(R.drawable.ic_stat_notify_location);
-			mBuilder.setContentTitle(title);
-			mBuilder.setContentText(text);
-			mBuilder.setStyle(new NotificationCompat.BigTextStyle().bigText(text));
-	
-			startForeground(ONGOING_NOTIFICATION, mBuilder.build());
-		} else {
-			stopForeground(true);
-		}
+	/**
+	 * Appends an absolute coordinate as degrees, minutes and decimal seconds, followed by the hemisphere.
+	 */
+	private void appendSeconds(TextBuffer buf, double dec, String hemisphere) {
+		int deg = (int) dec;
+		double tmp = 60.0 * (dec - deg);
+		int min = (int) tmp;
+		double sec = 60.0 * (tmp - min);
+		buf.appendLong(deg).append(unitDegree).append(' ').appendLong(min).append("' ")
+				.appendFixed(sec + /*rounding*/ 0.05, 1).append("\" ").append(hemisphere);
+	}
+
+	/**
+	 * Appends a distance in the selected units.
+	 *
+	 * @param meters The distance, in m
+	 */
+	private void appendDistance(TextBuffer buf, double meters) {
+		buf.appendFixed(meters * (prefUnitType ? 1 : 3.28084), 0).append(prefUnitType ? unitMeter : unitFeet);
+	}
+
+	/**
+	 * Appends a separator if the buffer is not empty.
+	 */
+	private static void appendSeparator(TextBuffer buf, String separator) {
+		if (buf.length() > 0)
+			buf.append(separator);
 	}
 
 	@Override
@@ -242,24 +381,45 @@ public class PasvLocListenerService extends Service implements GpsStatus.Listene
 		if (key.equals(SettingsActivity.KEY_PREF_NOTIFY_FIX) || key.equals(SettingsActivity.KEY_PREF_NOTIFY_SEARCH)) {
 			mNotifyFix = sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_NOTIFY_FIX, mNotifyFix);
 			mNotifySearch = sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_NOTIFY_SEARCH, mNotifySearch);
-			if (!(mNotifyFix || mNotifySearch)) {
+			if (!(mNotifyFix || mNotifySearch || mRecorder.isRecording())) {
+				stopSelf();
+			}
+		} else if (key.equals(SettingsActivity.KEY_PREF_RECORD)) {
+			updateRecording();
+			if (!(mNotifyFix || mNotifySearch || mRecorder.isRecording())) {
 				stopSelf();
 			}
 		} else if (key.equals(SettingsActivity.KEY_PREF_UNIT_TYPE)) {
 			prefUnitType = sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_UNIT_TYPE, prefUnitType);
 		} else if (key.equals(SettingsActivity.KEY_PREF_COORD)) {
 			prefCoord = Integer.valueOf(sharedPreferences.getString(SettingsActivity.KEY_PREF_COORD, Integer.toString(prefCoord)));
+		} else if (key.equals(SettingsActivity.KEY_PREF_NOTIFY_INTERVAL)) {
+			updateNotifyInterval();
 		}
 	}
 
 	@Override
 	public int onStartCommand(Intent intent, int flags, int startId) {
+		if ((intent != null) && ACTION_STOP_RECORD.equals(intent.getAction())) {
+			// user touched the recording notification
+			mRecorder.setRecording(false);
+			if (mBuilder == null) {
+				// not set up, e.g. restarted after the process was killed, nothing else to do
+				stopSelf(startId);
+				return START_NOT_STICKY;
+			}
+			return START_STICKY;
+		}
+
 		mSharedPreferences.registerOnSharedPreferenceChangeListener(this);
 
 		prefUnitType = mSharedPreferences.getBoolean(SettingsActivity.KEY_PREF_UNIT_TYPE, prefUnitType);
 		prefCoord = Integer.valueOf(mSharedPreferences.getString(SettingsActivity.KEY_PREF_COORD, Integer.toString(prefCoord)));
 		mNotifyFix = mSharedPreferences.getBoolean(SettingsActivity.KEY_PREF_NOTIFY_FIX, mNotifyFix);
 		mNotifySearch = mSharedPreferences.getBoolean(SettingsActivity.KEY_PREF_NOTIFY_SEARCH, mNotifySearch);
+		updateNotifyInterval();
+
+		mAltitudeEngine.start(this);
 
 		if (mLocationManager.getAllProviders().indexOf(LocationManager.PASSIVE_PROVIDER) >= 0) {
 			if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
@@ -290,6 +450,17 @@ public class PasvLocListenerService extends Service implements GpsStatus.Listene
 						);
 
 		mBuilder.setContentIntent(mainPendingIntent);
+
+		Intent stopRecordIntent = new Intent(this, PasvLocListenerService.class);
+		stopRecordIntent.setAction(ACTION_STOP_RECORD);
+		mRecordBuilder = new NotificationCompat.Builder(this)
+		.setSmallIcon(R.drawable.ic_stat_notify_record)
+		.setContentTitle(getString(R.string.notify_record_title))
+		.setContentText(getString(R.string.notify_record_body))
+		.setContentIntent(PendingIntent.getService(this, 0, stopRecordIntent, PendingIntent.FLAG_UPDATE_CURRENT))
+		.setWhen(0);
+
+		updateRecording();
 		
 		// if we were started through a broadcast, mGpsStatusReceiver had
 		// no way of picking it up, so we need to forward it manually
@@ -302,33 +473,45 @@ public class PasvLocListenerService extends Service implements GpsStatus.Listene
 	public void onStatusChanged(String provider, int status, Bundle extras) {
 	}
 
-	public void showStatusNoLocation() {
-		if (mNotifySearch && (mStatus != GPS_INACTIVE)) {
-			String text = "";
-			GpsStatus status = mLocationManager.getGpsStatus(null);
-			int satsInView = 0;
-			int satsUsed = 0;
-			Iterable<GpsSatellite> sats = status.getSatellites();
-			for (GpsSatellite sat : sats) {
-				satsInView++;
-				if (sat.usedInFix()) {
-					satsUsed++;
-				}
-			}
+	/**
+	 * Sets the minimum interval between notification updates from the preferences.
+	 */
+	private void updateNotifyInterval() {
+		mRenderer.setInterval(Long.parseLong(mSharedPreferences.getString(SettingsActivity.KEY_PREF_NOTIFY_INTERVAL,
+				DEFAULT_NOTIFY_INTERVAL)) * 1000);
+	}
 
-			text = text + (text.equals("")?"":", ") + String.format("SAT %d/%d",
-					satsUsed,
-					satsInView);
-			text = text + (text.equals("")?"":", ") + String.format("TTFF %d s",
-					status.getTimeToFirstFix() / 1000);
-			mBuilder.setSmallIcon(R.drawable.ic_stat_notify_nolocation);
-			mBuilder.setContentTitle(text);
-			mBuilder.setContentText(getString(R.string.notify_nolocation_body));
-			mBuilder.setStyle(null);
-			
-			startForeground(ONGOING_NOTIFICATION, mBuilder.build());
-		} else {
-			stopForeground(true);
+	/**
+	 * Keeps the GPS active while a track is being recorded and updates the notification accordingly.
+	 */
+	private void updateRecording() {
+		if (mRecorder.isRecording()) {
+			if (!mIsRecordingGps) {
+				if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED) {
+					mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, mRecordListener);
+					mIsRecordingGps = true;
+				} else
+					Log.w("PasvLocListenerService", "ACCESS_FINE_LOCATION permission not granted. Track will not be recorded.");
+			}
+		} else if (mIsRecordingGps) {
+			mLocationManager.removeUpdates(mRecordListener);
+			mIsRecordingGps = false;
 		}
+		if (!(((mStatus == GPS_FIX) && mNotifyFix) || ((mStatus == GPS_SEARCH) && mNotifySearch)))
+			showStatusIdle();
+	}
+
+	/**
+	 * Shows the recording notification if a track is being recorded, else removes the notification.
+	 */
+	private void showStatusIdle() {
+		mRenderer.update(mIdleContent);
+	}
+
+	public void showStatusNoLocation() {
+		if (mNotifySearch && (mStatus != GPS_INACTIVE))
+			mRenderer.update(mNoLocationContent);
+		else
+			showStatusIdle();
 	}
 }
@@ -19,24 +19,21 @@
 
 package com.vonglasow.michael.satstat;
 
-import static android.telephony.PhoneStateListener.LISTEN_CELL_INFO;
-import static android.telephony.PhoneStateListener.LISTEN_CELL_LOCATION;
-import static android.telephony.PhoneStateListener.LISTEN_DATA_CONNECTION_STATE;
-import static android.telephony.PhoneStateListener.LISTEN_NONE;
-import static android.telephony.PhoneStateListener.LISTEN_SIGNAL_STRENGTHS;
-import static android.telephony.TelephonyManager.PHONE_TYPE_CDMA;
-import static android.telephony.TelephonyManager.PHONE_TYPE_GSM;
-
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import com.vonglasow.michael.satstat.data.CellDatabase;
 import com.vonglasow.michael.satstat.data.CellTower;
 import com.vonglasow.michael.satstat.data.CellTowerCdma;
 import com.vonglasow.michael.satstat.data.CellTowerGsm;
-import com.vonglasow.michael.satstat.data.CellTowerListCdma;
-import com.vonglasow.michael.satstat.data.CellTowerListGsm;
-import com.vonglasow.michael.satstat.data.CellTowerListLte;
 import com.vonglasow.michael.satstat.data.CellTowerLte;
+import com.vonglasow.michael.satstat.data.WifiAccessPoint;
+import com.vonglasow.michael.satstat.data.WifiAccessPointList;
+import com.vonglasow.michael.satstat.event.EventBus;
+import com.vonglasow.michael.satstat.event.Subscription;
+import com.vonglasow.michael.satstat.event.Topic;
+import com.vonglasow.michael.satstat.location.RadioLocationEngine;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
@@ -44,23 +41,13 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.location.Location;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
-import android.telephony.CellInfo;
-import android.telephony.CellLocation;
-import android.telephony.NeighboringCellInfo;
-import android.telephony.PhoneStateListener;
-import android.telephony.SignalStrength;
-import android.telephony.cdma.CdmaCellLocation;
-import android.telephony.gsm.GsmCellLocation;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -82,25 +69,22 @@ public class RadioSectionFragment extends Fragment {
 	 * fragment.
 	 */
 	public static final String ARG_SECTION_NUMBER = "section_number";
-	private static final int NETWORK_REFRESH_DELAY = 1000; //the polling interval for the network type
-	private static final int WIFI_REFRESH_DELAY = 1000; //the time between two requests for WLAN rescan.
 
 	private MainActivity mainActivity = null;
 
-	private CellTower mServingCell;
-	private CellTowerListGsm mCellsGsm = new CellTowerListGsm();
-	private CellTowerListCdma mCellsCdma = new CellTowerListCdma();
-	private CellTowerListLte mCellsLte = new CellTowerListLte();
-	int mLastNetworkGen = 0; //the last observed (and displayed) network type
-	private int mLastCellAsu = NeighboringCellInfo.UNKNOWN_RSSI;
-	private int mLastCellDbm = CellTower.DBM_UNKNOWN;
-	private Handler networkTimehandler = null;
-	private Runnable networkTimeRunnable = null;
+	/** Offline cell location database while cells are shown, or {@code null} if not available */
+	private CellDatabase mCellDatabase = null;
+	/** Buffer for distance calculations, reused to avoid allocations */
+	private float[] mDistance = new float[1];
 
 	List <ScanResult> scanResults = null;
-	private String selectedBSSID = "";
-	private Handler wifiTimehandler = null;
-	private Runnable wifiTimeRunnable = null;
+	/** The access points in range, built from {@link #scanResults} */
+	private WifiAccessPointList mWifiAccessPoints = new WifiAccessPointList();
+	/** Views for the entries in {@link #wifiAps}, reused across scans */
+	private ArrayList<WifiViewHolder> mWifiViews = new ArrayList<WifiViewHolder>();
+
+	private Subscription<RadioLocationEngine> radioCellsSubscription;
+	private Subscription<List<ScanResult>> wifiScanSubscription;
 
 
 	private LinearLayout rilGsmLayout;
@@ -190,80 +174,61 @@ public class RadioSectionFragment extends Fragment {
 	}
 
 
-	private final void addWifiResult(ScanResult result) {
-		final ScanResult r = result;
-		android.view.View.OnClickListener clis = new android.view.View.OnClickListener () {
-
-			@Override
-			public void onClick(View v) {
-				onWifiEntryClick(r.BSSID);
-			}
-		};
-
-		View divider = new View(wifiAps.getContext());
-		divider.setLayoutParams(new TableRow.LayoutParams(LayoutParams.MATCH_PARENT, 1));
-		divider.setBackgroundColor(getResources().getColor(android.R.color.tertiary_text_dark));
-		divider.setOnClickListener(clis);
-		wifiAps.addView(divider);
-
-		LinearLayout wifiLayout = new LinearLayout(wifiAps.getContext());
-		wifiLayout.setLayoutParams(new LinearLayout.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
-		wifiLayout.setOrientation(LinearLayout.HORIZONTAL);
-		wifiLayout.setWeightSum(22);
-		wifiLayout.setMeasureWithLargestChildEnabled(false);
-
-		ImageView wifiType = new ImageView(wifiAps.getContext());
-		wifiType.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.MATCH_PARENT, 3));
-		if (WifiCapabilities.isAdhoc(result)) {
-			wifiType.setImageResource(R.drawable.ic_content_wifi_adhoc);
-		} else if ((WifiCapabilities.isEnterprise(result)) || (WifiCapabilities.getScanResultSecurity(result) == WifiCapabilities.EAP)) {
-			wifiType.setImageResource(R.drawable.ic_content_wifi_eap);
-		} else if (WifiCapabilities.getScanResultSecurity(result) == WifiCapabilities.PSK) {
-			wifiType.setImageResource(R.drawable.ic_content_wifi_psk);
-		} else if (WifiCapabilities.getScanResultSecurity(result) == WifiCapabilities.WEP) {
-			wifiType.setImageResource(R.drawable.ic_content_wifi_wep);
-		} else if (WifiCapabilities.getScanResultSecurity(result) == WifiCapabilities.OPEN) {
-			wifiType.setImageResource(R.drawable.ic_content_wifi_open);
-		} else {
-			wifiType.setImageResource(R.drawable.ic_content_wifi_unknown);
-		}
-
-		wifiType.setScaleType(ScaleType.CENTER);
-		wifiLayout.addView(wifiType);
+	/**
+	 * Creates the views for one entry in the list of access points and adds them to the list.
+	 * @return A holder for the views
+	 */
+	private final WifiViewHolder addWifiViews() {
+		WifiViewHolder holder = new WifiViewHolder();
+
+		holder.divider = new View(wifiAps.getContext());
+		holder.divider.setLayoutParams(new TableRow.LayoutParams(LayoutParams.MATCH_PARENT, 1));
+		holder.divider.setBackgroundColor(getResources().getColor(android.R.color.tertiary_text_dark));
+		holder.divider.setOnClickListener(holder);
+		wifiAps.addView(holder.divider);
+
+		holder.layout = new LinearLayout(wifiAps.getContext());
+		holder.layout.setLayoutParams(new LinearLayout.LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
+		holder.layout.setOrientation(LinearLayout.HORIZONTAL);
+		holder.layout.setWeightSum(22);
+		holder.layout.setMeasureWithLargestChildEnabled(false);
+
+		holder.type = new ImageView(wifiAps.getContext());
+		holder.type.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.MATCH_PARENT, 3));
+		holder.type.setScaleType(ScaleType.CENTER);
+		holder.layout.addView(holder.type);
 
 		TableLayout wifiDetails = new TableLayout(wifiAps.getContext());
 		wifiDetails.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 19));
 		TableRow innerRow1 = new TableRow(wifiAps.getContext());
-		TextView newMac = new TextView(wifiAps.getContext());
-		newMac.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 14));
-		newMac.setTextAppearance(wifiAps.getContext(), android.R.style.TextAppearance_Medium);
-		newMac.setText(result.BSSID);
-		innerRow1.addView(newMac);
-		TextView newCh = new TextView(wifiAps.getContext());
-		newCh.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 2));
-		newCh.setTextAppearance(wifiAps.getContext(), android.R.style.TextAppearance_Medium);
-		newCh.setText(getChannelFromFrequency(result.frequency));
-		innerRow1.addView(newCh);
-		TextView newLevel = new TextView(wifiAps.getContext());
-		newLevel.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 3));
-		newLevel.setTextAppearance(wifiAps.getContext(), android.R.style.TextAppearance_Medium);
-		newLevel.setText(String.valueOf(result.level));
-		innerRow1.addView(newLevel);
-		innerRow1.setOnClickListener(clis);
+		holder.mac = new TextView(wifiAps.getContext());
+		holder.mac.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 14));
+		holder.mac.setTextAppearance(wifiAps.getContext(), android.R.style.TextAppearance_Medium);
+		innerRow1.addView(holder.mac);
+		holder.ch = new TextView(wifiAps.getContext());
+		holder.ch.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 2));
+		holder.ch.setTextAppearance(wifiAps.getContext(), android.R.style.TextAppearance_Medium);
+		innerRow1.addView(holder.ch);
+		holder.level = new TextView(wifiAps.getContext());
+		holder.level.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 3));
+		holder.level.setTextAppearance(wifiAps.getContext(), android.R.style.TextAppearance_Medium);
+		innerRow1.addView(holder.level);
+		innerRow1.setOnClickListener(holder);
 		wifiDetails.addView(innerRow1,new TableLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
 
 		TableRow innerRow2 = new TableRow(wifiAps.getContext());
-		TextView newSSID = new TextView(wifiAps.getContext());
-		newSSID.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 19));
-		newSSID.setTextAppearance(wifiAps.getContext(), android.R.style.TextAppearance_Small);
-		newSSID.setText(result.SSID);
-		innerRow2.addView(newSSID);
-		innerRow2.setOnClickListener(clis);
+		holder.ssid = new TextView(wifiAps.getContext());
+		holder.ssid.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 19));
+		holder.ssid.setTextAppearance(wifiAps.getContext(), android.R.style.TextAppearance_Small);
+		innerRow2.addView(holder.ssid);
+		innerRow2.setOnClickListener(holder);
 		wifiDetails.addView(innerRow2, new TableLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
 
-		wifiLayout.addView(wifiDetails);
-		wifiLayout.setOnClickListener(clis);
-		wifiAps.addView(wifiLayout);
+		holder.layout.addView(wifiDetails);
+		holder.layout.setOnClickListener(holder);
+		wifiAps.addView(holder.layout);
+
+		return holder;
 	}
 
 
@@ -313,6 +278,25 @@ public class RadioSectionFragment extends Fragment {
 	}
 
 
+	/**
+	 * Gets the icon for an access point.
+	 * @param flags The capabilities of the access point, as returned by {@link WifiCapabilities#getCapabilityFlags(String)}
+	 * @return The resource ID of the icon
+	 */
+	public static int getWifiIcon(int flags) {
+		if ((flags & WifiCapabilities.FLAG_ADHOC) != 0)
+			return R.drawable.ic_content_wifi_adhoc;
+		else if ((flags & (WifiCapabilities.FLAG_ENTERPRISE | WifiCapabilities.FLAG_EAP)) != 0)
+			return R.drawable.ic_content_wifi_eap;
+		else if ((flags & WifiCapabilities.FLAG_PSK) != 0)
+			return R.drawable.ic_content_wifi_psk;
+		else if ((flags & WifiCapabilities.FLAG_WEP) != 0)
+			return R.drawable.ic_content_wifi_wep;
+		else
+			return R.drawable.ic_content_wifi_open;
+	}
+
+
 	/**
 	 * Gets the WiFi channel number for a frequency
 	 * @param frequency The frequency in MHz
@@ -365,41 +349,33 @@ public class RadioSectionFragment extends Fragment {
 		rilLteCells = (TableLayout) rootView.findViewById(R.id.rilLteCells);
 
 		wifiAps = (LinearLayout) rootView.findViewById(R.id.wifiAps);
+		mWifiViews.clear();
 
 		rilGsmLayout.setVisibility(View.GONE);
 		rilCdmaLayout.setVisibility(View.GONE);
 		rilLteLayout.setVisibility(View.GONE);
 
-		networkTimehandler = new Handler();
-		networkTimeRunnable = new Runnable() {
+		/*
+		 * Cells are tracked by the engine, also while this view does not
+		 * exist. Subscribing replays the current cells.
+		 */
+		EventBus eventBus = mainActivity.eventBus;
+		radioCellsSubscription = eventBus.radioCells.subscribe(new Topic.Listener<RadioLocationEngine>() {
 			@Override
-			public void run() {
-				int newNetworkType = mainActivity.telephonyManager.getNetworkType();
-				if (CellTower.getGenerationFromNetworkType(newNetworkType) != mLastNetworkGen)
-					onNetworkTypeChanged(newNetworkType);
-				else
-					networkTimehandler.postDelayed(this, NETWORK_REFRESH_DELAY);
+			public void onEvent(RadioLocationEngine engine) {
+				showCells(engine);
 			}
-		};
-
-		wifiTimehandler = new Handler();
-		wifiTimeRunnable = new Runnable() {
-
+		}, null, 0);
+		wifiScanSubscription = eventBus.wifiScanResults.subscribe(new Topic.Listener<List<ScanResult>>() {
 			@Override
-			public void run() {
-				mainActivity.wifiManager.startScan();
-				wifiTimehandler.postDelayed(this, WIFI_REFRESH_DELAY);
+			public void onEvent(List<ScanResult> results) {
+				scanResults = results;
+				refreshWifiResults();
 			}
-		};
+		}, eventBus.mainThread, 0);
 
-		//get current phone info (first update won't fire until the cell actually changes)
-		updateCellData(null, null, null);
-		//and make sure we have the correct network type
-		onNetworkTypeChanged(mainActivity.telephonyManager.getNetworkType());
-
-		mainActivity.wifiManager.startScan();
-
-		mainActivity.radioSectionFragment = this;
+		showWifiResults();
+		mainActivity.wifiScanScheduler.requestScan();
 
 		return rootView;
 	}
@@ -408,133 +384,100 @@ public class RadioSectionFragment extends Fragment {
 	@Override
 	public void onDestroyView() {
 		super.onDestroyView();
-		if (mainActivity.radioSectionFragment == this)
-			mainActivity.radioSectionFragment = null;
-	}
-
-
-	/**
-	 * Updates the network type indicator for the current cell. Called by
-	 * {@link networkTimeRunnable.run()} or
-	 * {@link android.telephony.PhoneStateListener#onDataConnectionStateChanged(int, int)}.
-	 * 
-	 * @param networkType One of the NETWORK_TYPE_xxxx constants defined in {@link android.telephony.TelephonyManager}
-	 */
-	protected void onNetworkTypeChanged(int networkType) {
-		Log.d("MainActivity", "Network type changed to " + Integer.toString(networkType));
-		int newNetworkGen = CellTower.getGenerationFromNetworkType(networkType);
-		int oldNetworkGen = mLastNetworkGen;
-		if (newNetworkGen != mLastNetworkGen) {
-			networkTimehandler.removeCallbacks(networkTimeRunnable);
-			mLastNetworkGen = newNetworkGen;
-			/*
-			 * Network type changes occur slightly before or after cell changes. Therefore, we may have
-			 * stored cells in the wrong list when switching from or to LTE.
-			 */
-			if ((newNetworkGen == 4) || (oldNetworkGen == 4))
-				updateCellData(null, null, null);
-			else if (mServingCell != null) {
-				mServingCell.setNetworkType(networkType);
-				Log.d(MainActivity.class.getSimpleName(), String.format("Setting network type to %d for cell %s (%s)", mServingCell.getGeneration(), mServingCell.getText(), mServingCell.getAltText()));
-			}
-		}
-		showCells();
+		radioCellsSubscription.cancel();
+		wifiScanSubscription.cancel();
 	}
 
 
-	@Override
-	public void onResume() {
-		super.onResume();
-		wifiTimehandler.postDelayed(wifiTimeRunnable, WIFI_REFRESH_DELAY);
-	}
-
-
-	@Override
-	public void onStop() {
-		networkTimehandler.removeCallbacks(networkTimeRunnable);
-		wifiTimehandler.removeCallbacks(wifiTimeRunnable);
-		// we'll just skip that so locations will get invalidated in any case
-		//providerInvalidationHandler.removeCallbacksAndMessages(null);
-		super.onStop();
+	private final void onWifiEntryClick(String BSSID) {
+		if (mWifiAccessPoints.setSelected(BSSID))
+			showWifiResults();
 	}
 
 
-	private final void onWifiEntryClick(String BSSID) {
-		selectedBSSID = BSSID;
-		refreshWifiResults();
+	/**
+	 * Updates the list of access points from {@link #scanResults}.
+	 * <p>
+	 * Views are only touched if the scan has brought any changes.
+	 */
+	final void refreshWifiResults() {
+		if ((scanResults != null) && mWifiAccessPoints.update(scanResults))
+			showWifiResults();
 	}
 
 
-	final void refreshWifiResults() {
-		if (scanResults != null) {
-			wifiAps.removeAllViews();
-			//add the selected network first
-			for (ScanResult result : scanResults) {
-				if (result.BSSID.equals(selectedBSSID)) {
-					addWifiResult(result);
-				}
-			}
-			for (ScanResult result : scanResults) {
-				if (!result.BSSID.equals(selectedBSSID)) {
-					addWifiResult(result);	
-				}
-			}
+	/**
+	 * Displays the access points in {@link #mWifiAccessPoints}.
+	 * <p>
+	 * Views for list entries are created only as needed and reused
+	 * afterwards. Surplus views are hidden rather than removed, so that they
+	 * can be reused when more access points come into range.
+	 */
+	private void showWifiResults() {
+		List<WifiAccessPoint> aps = mWifiAccessPoints.getSorted();
+		int i;
+		for (i = 0; i < aps.size(); i++) {
+			if (i == mWifiViews.size())
+				mWifiViews.add(addWifiViews());
+			WifiViewHolder holder = mWifiViews.get(i);
+			holder.bind(aps.get(i));
+			holder.setVisibility(View.VISIBLE);
 		}
+		for (; i < mWifiViews.size(); i++)
+			mWifiViews.get(i).setVisibility(View.GONE);
 	}
 
 
 	/**
 	 * Updates the list of cells in range.
 	 * <p>
-	 * This method is automatically called by
-	 * {@link PhoneStateListener#onCellInfoChanged(List)}
-	 * and {@link PhoneStateListener.onCellLocationChanged}. It must be called
-	 * manually whenever {@link #mCellsCdma}, {@link #mCellsGsm}, 
-	 * {@link #mCellsLte} or one of their values are modified, typically after
-	 * calling {@link android.telephony.TelephonyManager#getAllCellInfo()},
-	 * {@link android.telephony.TelephonyManager#getCellLocation()} or
-	 * {@link android.telephony.TelephonyManager#getNeighboringCellInfo()}. 
+	 * This method is called whenever the cells tracked by a
+	 * {@link RadioLocationEngine} change.
 	 */
-	protected void showCells() {
+	protected void showCells(RadioLocationEngine engine) {
+		CellTower servingCell = engine.getServingCell();
+		mCellDatabase = engine.getCellDatabase();
 		int cdmaVisibility = View.GONE;
 		int gsmVisibility = View.GONE;
 		int lteVisibility = View.GONE;
 
 		rilCells.removeAllViews();
-		if (mCellsGsm.containsValue(mServingCell)) {
-			showCellGsm((CellTowerGsm) mServingCell);
+		if (engine.getCellsGsm().containsValue(servingCell)) {
+			showCellGsm((CellTowerGsm) servingCell);
 			gsmVisibility = View.VISIBLE;
 		}
-		for (CellTowerGsm cell : mCellsGsm.getAll())
-			if (cell.hasSource() && (cell != mServingCell)) {
+		for (CellTowerGsm cell : engine.getCellsGsm().getAll())
+			if (cell.hasSource() && (cell != servingCell)) {
 				showCellGsm(cell);
 				gsmVisibility = View.VISIBLE;
 			}
 		rilGsmLayout.setVisibility(gsmVisibility);
 
 		rilCdmaCells.removeAllViews();
-		if (mCellsCdma.containsValue(mServingCell)) {
-			showCellCdma((CellTowerCdma) mServingCell);
+		if (engine.getCellsCdma().containsValue(servingCell)) {
+			showCellCdma((CellTowerCdma) servingCell);
 			cdmaVisibility = View.VISIBLE;
 		}
-		for (CellTowerCdma cell : mCellsCdma.getAll())
-			if (cell.hasSource() && (cell != mServingCell)) {
+		for (CellTowerCdma cell : engine.getCellsCdma().getAll())
+			if (cell.hasSource() && (cell != servingCell)) {
 				showCellCdma(cell);
 				cdmaVisibility = View.VISIBLE;
 			}
 		rilCdmaLayout.setVisibility(cdmaVisibility);
 
 		rilLteCells.removeAllViews();
-		if (mCellsLte.containsValue(mServingCell)) {
-			showCellLte((CellTowerLte) mServingCell);
+		if (engine.getCellsLte().containsValue(servingCell)) {
+			showCellLte((CellTowerLte) servingCell);
 			lteVisibility = View.VISIBLE;
 		}
-		for (CellTowerLte cell : mCellsLte.getAll())
-			if (cell.hasSource() && (cell != mServingCell)) {
+		for (CellTowerLte cell : engine.getCellsLte().getAll())
+			if (cell.hasSource() && (cell != servingCell)) {
 				showCellLte(cell);
 				lteVisibility = View.VISIBLE;
 			}
 		rilLteLayout.setVisibility(lteVisibility);
+
+		mCellDatabase = null;
 	}
 
 
@@ -630,6 +573,9 @@ public class RadioSectionFragment extends Fragment {
 		row.addView(newDbm);
 
 		rilCells.addView(row,new TableLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+
+		if (mCellDatabase != null)
+			showCellLocation(rilCells, mCellDatabase.find(cell));
 	}
 
 
@@ -686,149 +632,133 @@ public class RadioSectionFragment extends Fragment {
 		row.addView(newDbm);
 
 		rilLteCells.addView(row,new TableLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+
+		if (mCellDatabase != null)
+			showCellLocation(rilLteCells, mCellDatabase.find(cell));
 	}
 
 
 	/**
-	 * Updates all cell data.
-	 * 
-	 * This method is called whenever any change in the cell environment (cells in view or signal
-	 * strengths) is signaled, e.g. by a call to a {@link android.telephony.PhoneStateListener}. The
-	 * arguments of this method should be filled with the data passed to the
-	 * {@link android.telephony.PhoneStateListener} where possible, and null passed for all others.
-	 * 
-	 * To force an update of all cell data, simply call this method with each argument set to null.
-	 * 
-	 * If any of the arguments is null, this method will try to obtain that data by querying
-	 * {@link android.telephony.TelephonyManager}. The only exception is {@code signalStrength}, which
-	 * will not be explicitly queried if missing.
-	 * 
-	 * It will first process {@code aCellInfo}, then {@code aLocation}, querying current values from
-	 * {@link android.telephony.TelephonyManager} if one of these arguments is null. Next it will process
-	 * {@code signalStrength}, if supplied, and eventually obtain neighboring cells by calling
-	 * {@link android.telephony.TelephonyManager#getNeighboringCellInfo()} and process these. Eventually
-	 * it will refresh the list of cells.
-	 * 
-	 * @param aLocation The {@link android.telephony.CellLocation} reported by a
-	 * {@link android.telephony.PhoneStateListener}. If null, the current value will be queried.
-	 * @param aSignalStrength The {@link android.telephony.SignalStrength} reported by a
-	 * {@link android.telephony.PhoneStateListener}. If null, the signal strength of the serving cell
-	 * will either be taken from {@code aCellInfo}, if available, or not be updated at all.
-	 * @param aCellInfo A list of {@link android.telephony.CellInfo} instances reported by a
-	 * {@link android.telephony.PhoneStateListener}. If null, the current value will be queried.
+	 * Adds a row with the location of a cell, as found in the offline cell database.
+	 * <p>
+	 * The row shows the coordinates of the cell and, if the current location
+	 * is known, the distance to the cell. If the cell is not in the database,
+	 * nothing is added.
+	 * @param cells The table to which the row will be added
+	 * @param index The index of the cell in {@link #mCellDatabase}, as returned by one of its {@code find} methods
 	 */
-	@SuppressLint("NewApi")
-	public void updateCellData(CellLocation aLocation, SignalStrength signalStrength, List<CellInfo> aCellInfo) {
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-			try {
-				/*
-				 * CellInfo requires API 17+ and should in theory return all cells in view. In practice,
-				 * some devices do not implement it or return only a partial list. On some devices,
-				 * PhoneStateListener#onCellInfoChanged() will fire but always receive a null argument.
-				 */
-				List<CellInfo> cellInfo = (aCellInfo != null) ? aCellInfo : mainActivity.telephonyManager.getAllCellInfo();
-				mCellsGsm.updateAll(cellInfo);
-				mCellsCdma.updateAll(cellInfo);
-				mCellsLte.updateAll(cellInfo);
-			} catch (SecurityException e) {
-				// Permission not granted, can't retrieve cell data
-			}
-		}
+	protected void showCellLocation(TableLayout cells, int index) {
+		if (index == CellDatabase.NOT_FOUND)
+			return;
+		double lat = mCellDatabase.getLatitude(index);
+		double lon = mCellDatabase.getLongitude(index);
 
-		try {
-			/*
-			 * CellLocation should return the serving cell, unless it is LTE (in which case it should
-			 * return null). In practice, however, some devices do return LTE cells. The approach of
-			 * this method does not work well for devices with multiple radios.
-			 */
-			CellLocation location = (aLocation != null) ? aLocation : mainActivity.telephonyManager.getCellLocation();
-			String networkOperator = mainActivity.telephonyManager.getNetworkOperator();
-			mCellsGsm.removeSource(CellTower.SOURCE_CELL_LOCATION);
-			mCellsCdma.removeSource(CellTower.SOURCE_CELL_LOCATION);
-			mCellsLte.removeSource(CellTower.SOURCE_CELL_LOCATION);
-			if (location instanceof GsmCellLocation) {
-				if (mLastNetworkGen < 4) {
-					mServingCell = mCellsGsm.update(networkOperator, (GsmCellLocation) location);
-					if ((mServingCell.getDbm() == CellTower.DBM_UNKNOWN) && (mServingCell instanceof CellTowerGsm))
-						((CellTowerGsm) mServingCell).setAsu(mLastCellAsu);
-				} else {
-					mServingCell = mCellsLte.update(networkOperator, (GsmCellLocation) location);
-					if (mServingCell.getDbm() == CellTower.DBM_UNKNOWN)
-						((CellTowerLte) mServingCell).setAsu(mLastCellAsu);
-				}
-			} else if (location instanceof CdmaCellLocation) {
-				mServingCell = mCellsCdma.update((CdmaCellLocation) location);
-				if (mServingCell.getDbm() == CellTower.DBM_UNKNOWN)
-					((CellTowerCdma) mServingCell).setDbm(mLastCellDbm);
-			}
-			networkTimehandler.removeCallbacks(networkTimeRunnable);
-		} catch (SecurityException e) {
-			// Permission not granted, can't retrieve cell data
-		}
+		TableRow row = new TableRow(cells.getContext());
+		row.setWeightSum(29);
 
-		if ((mServingCell == null) || (mServingCell.getGeneration() <= 0)) {
-			if ((mLastNetworkGen != 0) && (mServingCell != null))
-				mServingCell.setGeneration(mLastNetworkGen);
-			NetworkInfo netinfo = mainActivity.connectivityManager.getActiveNetworkInfo();
-			if ((netinfo == null)
-					|| (netinfo.getType() < ConnectivityManager.TYPE_MOBILE_MMS)
-					|| (netinfo.getType() > ConnectivityManager.TYPE_MOBILE_HIPRI)) {
-				networkTimehandler.postDelayed(networkTimeRunnable, NETWORK_REFRESH_DELAY);
-			}
-		} else if (mServingCell != null) {
-			mLastNetworkGen = mServingCell.getGeneration();
-		}
+		TextView newSpacer = new TextView(cells.getContext());
+		newSpacer.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 2));
+		row.addView(newSpacer);
+
+		TextView newLocation = new TextView(cells.getContext());
+		newLocation.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 20));
+		newLocation.setTextAppearance(cells.getContext(), android.R.style.TextAppearance_Small);
+		newLocation.setText(getString(R.string.value_cell_location, lat, lon));
+		row.addView(newLocation);
+
+		TextView newDistance = new TextView(cells.getContext());
+		newDistance.setLayoutParams(new TableRow.LayoutParams(0, LayoutParams.WRAP_CONTENT, 7));
+		newDistance.setTextAppearance(cells.getContext(), android.R.style.TextAppearance_Small);
+		Location location = mainActivity.lastLocation;
+		if (location != null) {
+			Location.distanceBetween(location.getLatitude(), location.getLongitude(), lat, lon, mDistance);
+			newDistance.setText(formatDistance(mDistance[0]));
+		} else
+			newDistance.setText(getString(R.string.value_none));
+		row.addView(newDistance);
 
-		if ((signalStrength != null) && (mServingCell != null)) {
-			int pt = mainActivity.telephonyManager.getPhoneType();
-			if (pt == PHONE_TYPE_GSM) {
-				mLastCellAsu = signalStrength.getGsmSignalStrength();
-				updateNeighboringCellInfo();
-				if (mServingCell instanceof CellTowerGsm)
-					((CellTowerGsm) mServingCell).setAsu(mLastCellAsu);
-				else
-					Log.w(MainActivity.class.getSimpleName(),
-							"Got SignalStrength for PHONE_TYPE_GSM but serving cell is not GSM");
-			} else if (pt == PHONE_TYPE_CDMA) {
-				mLastCellDbm = signalStrength.getCdmaDbm();
-				if ((mServingCell != null) && (mServingCell instanceof CellTowerCdma))
-					mServingCell.setDbm(mLastCellDbm);
-				else
-					Log.w(MainActivity.class.getSimpleName(),
-							"Got SignalStrength for PHONE_TYPE_CDMA but serving cell is not CDMA");
-			} else
-				Log.w(MainActivity.class.getSimpleName(),
-						String.format("Got SignalStrength for unknown phone type (%d)", pt));
-		} else if (mServingCell == null) {
-			Log.w(MainActivity.class.getSimpleName(),
-					"Got SignalStrength but serving cell is null");
-		}
+		cells.addView(row,new TableLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT));
+	}
 
-		try {
-			/*
-			 * NeighboringCellInfo is not supported on some devices and will return no data. It lists
-			 * only GSM and successors' cells, but not CDMA cells.
-			 */
-			List<NeighboringCellInfo> neighboringCells = mainActivity.telephonyManager.getNeighboringCellInfo();
-			String networkOperator = mainActivity.telephonyManager.getNetworkOperator();
-			mCellsGsm.updateAll(networkOperator, neighboringCells);
-			mCellsLte.updateAll(networkOperator, neighboringCells);
-		} catch (SecurityException e) {
-			// Permission not granted, can't retrieve cell data
-		}
 
-		showCells();
+	/**
+	 * Formats a distance for display, using the unit system selected by the user.
+	 * @param meters The distance in meters
+	 */
+	private String formatDistance(float meters) {
+		if (mainActivity.prefUnitType) {
+			if (meters < 1000)
+				return String.format("%.0f%s", meters, getString(R.string.unit_meter));
+			else
+				return String.format("%.1f%s", meters / 1000, getString(R.string.unit_km));
+		} else {
+			float miles = meters / 1609.344f;
+			if (miles < 0.1f)
+				return String.format("%.0f%s", meters * 3.28084f, getString(R.string.unit_feet));
+			else
+				return String.format("%.1f%s", miles, getString(R.string.unit_mile));
+		}
 	}
 
 
 	/**
-	 * Requeries neighboring cells
+	 * Holds the views for one entry in the list of access points.
+	 * <p>
+	 * The values currently shown are cached so that views are only updated
+	 * when they change.
 	 */
-	protected void updateNeighboringCellInfo() {
-		// this may not be supported on some devices (returns no data)
-		String networkOperator = mainActivity.telephonyManager.getNetworkOperator();
-		List<NeighboringCellInfo> neighboringCells = mainActivity.telephonyManager.getNeighboringCellInfo();
-		mCellsGsm.updateAll(networkOperator, neighboringCells);
-		mCellsLte.updateAll(networkOperator, neighboringCells);
+	private class WifiViewHolder implements View.OnClickListener {
+		View divider;
+		LinearLayout layout;
+		ImageView type;
+		TextView mac;
+		TextView ch;
+		TextView level;
+		TextView ssid;
+
+		private String mBssid = null;
+		private String mSsid = null;
+		private int mFlags = -1;
+		private int mFrequency = -1;
+		private int mLevel = Integer.MIN_VALUE;
+
+		/**
+		 * Shows the data of an access point.
+		 */
+		void bind(WifiAccessPoint ap) {
+			if (!ap.getBssid().equals(mBssid)) {
+				mBssid = ap.getBssid();
+				mac.setText(mBssid);
+			}
+			if (ap.getFlags() != mFlags) {
+				mFlags = ap.getFlags();
+				type.setImageResource(getWifiIcon(mFlags));
+			}
+			if (ap.getFrequency() != mFrequency) {
+				mFrequency = ap.getFrequency();
+				ch.setText(getChannelFromFrequency(mFrequency));
+			}
+			if (ap.getLevel() != mLevel) {
+				mLevel = ap.getLevel();
+				level.setText(String.valueOf(mLevel));
+			}
+			if ((mSsid == null) || !mSsid.equals(ap.getSsid())) {
+				mSsid = ap.getSsid();
+				ssid.setText(mSsid);
+			}
+		}
+
+		void setVisibility(int visibility) {
+			if (layout.getVisibility() != visibility) {
+				divider.setVisibility(visibility);
+				layout.setVisibility(visibility);
+			}
+		}
+
+		@Override
+		public void onClick(View v) {
+			if (mBssid != null)
+				onWifiEntryClick(mBssid);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -24,7 +24,6 @@ import static android.hardware.SensorManager.SENSOR_STATUS_ACCURACY_LOW;
 import static android.hardware.SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM;
 import static android.hardware.SensorManager.SENSOR_STATUS_UNRELIABLE;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
@@ -32,10 +31,15 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import com.vonglasow.michael.satstat.sensor.SensorHub;
+import com.vonglasow.michael.satstat.sensor.SpectrumAnalyzer;
+import com.vonglasow.michael.satstat.widgets.SpectrumView;
+import com.vonglasow.michael.satstat.widgets.TextUpdater;
+
 /**
  * The fragment which displays sensor data.
  */
-public class SensorSectionFragment extends Fragment {
+public class SensorSectionFragment extends Fragment implements SensorHub.Listener {
 	public static final String TAG = "SensorSectionFragment";
 	/**
 	 * The fragment argument representing the section number for this
@@ -45,6 +49,18 @@ public class SensorSectionFragment extends Fragment {
 
 	private MainActivity mainActivity = null;
 
+	/** The sensors shown by this fragment. */
+	private static final int[] SENSOR_TYPES = {
+		Sensor.TYPE_ACCELEROMETER,
+		Sensor.TYPE_ORIENTATION,
+		Sensor.TYPE_GYROSCOPE,
+		Sensor.TYPE_MAGNETIC_FIELD,
+		Sensor.TYPE_LIGHT,
+		Sensor.TYPE_PROXIMITY,
+		Sensor.TYPE_PRESSURE,
+		Sensor.TYPE_RELATIVE_HUMIDITY,
+		Sensor.TYPE_AMBIENT_TEMPERATURE};
+
 	/*
 	 *  Maximum resolutions for sensors, expressed as number of decimals. These
 	 *  values were chosen based on screen real estate and significance. They
@@ -60,46 +76,66 @@ public class SensorSectionFragment extends Fragment {
 	private byte mHumiditySensorRes = 0;
 	private byte mTempSensorRes = 1;
 
-	private TextView accStatus;
+	private TextUpdater accStatus;
 	private TextView accHeader;
-	private TextView accTotal;
-	private TextView accX;
-	private TextView accY;
-	private TextView accZ;
-	private TextView rotStatus;
+	private TextUpdater accTotal;
+	private TextUpdater accX;
+	private TextUpdater accY;
+	private TextUpdater accZ;
+	private TextUpdater rotStatus;
 	private TextView rotHeader;
-	private TextView rotTotal;
-	private TextView rotX;
-	private TextView rotY;
-	private TextView rotZ;
-	private TextView magStatus;
+	private TextUpdater rotTotal;
+	private TextUpdater rotX;
+	private TextUpdater rotY;
+	private TextUpdater rotZ;
+	private TextUpdater magStatus;
 	private TextView magHeader;
-	private TextView magTotal;
-	private TextView magX;
-	private TextView magY;
-	private TextView magZ;
-	private TextView orStatus;
+	private TextUpdater magTotal;
+	private TextUpdater magX;
+	private TextUpdater magY;
+	private TextUpdater magZ;
+	private TextUpdater orStatus;
 	private TextView orHeader;
-	private TextView orAzimuth;
-	private TextView orAziText;
-	private TextView orPitch;
-	private TextView orRoll;
+	private TextUpdater orAzimuth;
+	private TextUpdater orAziText;
+	private TextUpdater orPitch;
+	private TextUpdater orRoll;
 	private TextView miscHeader;
-	private TextView tempStatus;
+	private TextUpdater tempStatus;
 	private TextView tempHeader;
-	private TextView metTemp;
-	private TextView pressureStatus;
+	private TextUpdater metTemp;
+	private TextUpdater pressureStatus;
 	private TextView pressureHeader;
-	private TextView metPressure;
-	private TextView humidStatus;
+	private TextUpdater metPressure;
+	private TextUpdater humidStatus;
 	private TextView humidHeader;
-	private TextView metHumid;
-	private TextView lightStatus;
+	private TextUpdater metHumid;
+	private TextUpdater lightStatus;
 	private TextView lightHeader;
-	private TextView light;
-	private TextView proximityStatus;
+	private TextUpdater light;
+	private TextUpdater proximityStatus;
 	private TextView proximityHeader;
-	private TextView proximity;
+	private TextUpdater proximity;
+	private View vibContainer;
+	private TextUpdater vibFrequency;
+	private TextUpdater vibRms;
+	private SpectrumView vibSpectrum;
+	private final TextUpdater[] vibBands = new TextUpdater[4];
+
+	/** The analyzer from which {@link #spectrum} was obtained, or null */
+	private SpectrumAnalyzer spectrumSource = null;
+
+	/** The latest vibration spectrum, only modified on the UI thread */
+	private SpectrumAnalyzer.Spectrum spectrum = null;
+
+	/** Text colors for sensor accuracy values 0 to 3, followed by the color for other values */
+	private final int[] accuracyColors = new int[5];
+
+	/** The degree sign */
+	private String unitDegree;
+
+	/** Labels for the compass directions returned by {@link MainActivity#getOrientationIndex(float)} */
+	private final String[] orientations = new String[MainActivity.ORIENTATIONS.length];
 
 
 	public SensorSectionFragment() {
@@ -165,49 +201,69 @@ public class SensorSectionFragment extends Fragment {
 		mHumiditySensorRes = getSensorDecimals(mHumiditySensor, mHumiditySensorRes);
 		mTempSensorRes = getSensorDecimals(mTempSensor, mTempSensorRes);
 
+		for (int i = 0; i < accuracyColors.length; i++)
+			accuracyColors[i] = getResources().getColor(accuracyToColor(i));
+		unitDegree = getString(R.string.unit_degree);
+		for (int i = 0; i < orientations.length; i++)
+			orientations[i] = getString(MainActivity.ORIENTATIONS[i]);
+
 		// Initialize controls
-		accStatus = (TextView) rootView.findViewById(R.id.accStatus);
+		accStatus = new TextUpdater((TextView) rootView.findViewById(R.id.accStatus));
 		accHeader = (TextView) rootView.findViewById(R.id.accHeader);
-		accX = (TextView) rootView.findViewById(R.id.accX);
-		accY = (TextView) rootView.findViewById(R.id.accY);
-		accZ = (TextView) rootView.findViewById(R.id.accZ);
-		accTotal = (TextView) rootView.findViewById(R.id.accTotal);
-		rotStatus = (TextView) rootView.findViewById(R.id.rotStatus);
+		accX = new TextUpdater((TextView) rootView.findViewById(R.id.accX));
+		accY = new TextUpdater((TextView) rootView.findViewById(R.id.accY));
+		accZ = new TextUpdater((TextView) rootView.findViewById(R.id.accZ));
+		accTotal = new TextUpdater((TextView) rootView.findViewById(R.id.accTotal));
+		rotStatus = new TextUpdater((TextView) rootView.findViewById(R.id.rotStatus));
 		rotHeader = (TextView) rootView.findViewById(R.id.rotHeader);
-		rotX = (TextView) rootView.findViewById(R.id.rotX);
-		rotY = (TextView) rootView.findViewById(R.id.rotY);
-		rotZ = (TextView) rootView.findViewById(R.id.rotZ);
-		rotTotal = (TextView) rootView.findViewById(R.id.rotTotal);
-		magStatus = (TextView) rootView.findViewById(R.id.magStatus);
+		rotX = new TextUpdater((TextView) rootView.findViewById(R.id.rotX));
+		rotY = new TextUpdater((TextView) rootView.findViewById(R.id.rotY));
+		rotZ = new TextUpdater((TextView) rootView.findViewById(R.id.rotZ));
+		rotTotal = new TextUpdater((TextView) rootView.findViewById(R.id.rotTotal));
+		magStatus = new TextUpdater((TextView) rootView.findViewById(R.id.magStatus));
 		magHeader = (TextView) rootView.findViewById(R.id.magHeader);
-		magX = (TextView) rootView.findViewById(R.id.magX);
-		magY = (TextView) rootView.findViewById(R.id.magY);
-		magZ = (TextView) rootView.findViewById(R.id.magZ);
-		magTotal = (TextView) rootView.findViewById(R.id.magTotal);
-		orStatus = (TextView) rootView.findViewById(R.id.orStatus);
+		magX = new TextUpdater((TextView) rootView.findViewById(R.id.magX));
+		magY = new TextUpdater((TextView) rootView.findViewById(R.id.magY));
+		magZ = new TextUpdater((TextView) rootView.findViewById(R.id.magZ));
+		magTotal = new TextUpdater((TextView) rootView.findViewById(R.id.magTotal));
+		orStatus = new TextUpdater((TextView) rootView.findViewById(R.id.orStatus));
 		orHeader = (TextView) rootView.findViewById(R.id.orHeader);
-		orAzimuth = (TextView) rootView.findViewById(R.id.orAzimuth);
-		orAziText = (TextView) rootView.findViewById(R.id.orAziText);
-		orPitch = (TextView) rootView.findViewById(R.id.orPitch);
-		orRoll = (TextView) rootView.findViewById(R.id.orRoll);
+		orAzimuth = new TextUpdater((TextView) rootView.findViewById(R.id.orAzimuth));
+		orAziText = new TextUpdater((TextView) rootView.findViewById(R.id.orAziText));
+		orPitch = new TextUpdater((TextView) rootView.findViewById(R.id.orPitch));
+		orRoll = new TextUpdater((TextView) rootView.findViewById(R.id.orRoll));
 		miscHeader = (TextView) rootView.findViewById(R.id.miscHeader);
-		tempStatus = (TextView) rootView.findViewById(R.id.tempStatus);
+		tempStatus = new TextUpdater((TextView) rootView.findViewById(R.id.tempStatus));
 		tempHeader = (TextView) rootView.findViewById(R.id.tempHeader);
-		metTemp = (TextView) rootView.findViewById(R.id.metTemp);
-		pressureStatus = (TextView) rootView.findViewById(R.id.pressureStatus);
+		metTemp = new TextUpdater((TextView) rootView.findViewById(R.id.metTemp));
+		pressureStatus = new TextUpdater((TextView) rootView.findViewById(R.id.pressureStatus));
 		pressureHeader = (TextView) rootView.findViewById(R.id.pressureHeader);
-		metPressure = (TextView) rootView.findViewById(R.id.metPressure);
-		humidStatus = (TextView) rootView.findViewById(R.id.humidStatus);
+		metPressure = new TextUpdater((TextView) rootView.findViewById(R.id.metPressure));
+		humidStatus = new TextUpdater((TextView) rootView.findViewById(R.id.humidStatus));
 		humidHeader = (TextView) rootView.findViewById(R.id.humidHeader);
-		metHumid = (TextView) rootView.findViewById(R.id.metHumid);
-		lightStatus = (TextView) rootView.findViewById(R.id.lightStatus);
+		metHumid = new TextUpdater((TextView) rootView.findViewById(R.id.metHumid));
+		lightStatus = new TextUpdater((TextView) rootView.findViewById(R.id.lightStatus));
 		lightHeader = (TextView) rootView.findViewById(R.id.lightHeader);
-		light = (TextView) rootView.findViewById(R.id.light);
-		proximityStatus = (TextView) rootView.findViewById(R.id.proximityStatus);
+		light = new TextUpdater((TextView) rootView.findViewById(R.id.light));
+		proximityStatus = new TextUpdater((TextView) rootView.findViewById(R.id.proximityStatus));
 		proximityHeader = (TextView) rootView.findViewById(R.id.proximityHeader);
-		proximity = (TextView) rootView.findViewById(R.id.proximity);
+		proximity = new TextUpdater((TextView) rootView.findViewById(R.id.proximity));
+		vibContainer = rootView.findViewById(R.id.vibContainer);
+		vibFrequency = new TextUpdater((TextView) rootView.findViewById(R.id.vibFrequency));
+		vibRms = new TextUpdater((TextView) rootView.findViewById(R.id.vibRms));
+		vibSpectrum = (SpectrumView) rootView.findViewById(R.id.vibSpectrum);
+		vibSpectrum.setBandEdges(SpectrumAnalyzer.DEFAULT_BANDS);
+		int[] vibBandIds = {R.id.vibBand0, R.id.vibBand1, R.id.vibBand2, R.id.vibBand3};
+		int[] vibBandHeaderIds = {R.id.vibBand0Header, R.id.vibBand1Header, R.id.vibBand2Header, R.id.vibBand3Header};
+		for (int i = 0; i < vibBands.length; i++) {
+			vibBands[i] = new TextUpdater((TextView) rootView.findViewById(vibBandIds[i]));
+			((TextView) rootView.findViewById(vibBandHeaderIds[i])).setText(getString(R.string.title_sensors_vibBand,
+					SpectrumAnalyzer.DEFAULT_BANDS[i], SpectrumAnalyzer.DEFAULT_BANDS[i + 1]));
+		}
 
 		mainActivity.sensorSectionFragment = this;
+		for (int type : SENSOR_TYPES)
+			mainActivity.sensorHub.subscribe(type, this, MainActivity.iSensorRate, mainActivity.mainHandler);
 
 		return rootView;
 	}
@@ -216,63 +272,94 @@ public class SensorSectionFragment extends Fragment {
 	@Override
 	public void onDestroyView() {
 		super.onDestroyView();
+		mainActivity.sensorHub.unsubscribe(this);
 		if (mainActivity.sensorSectionFragment == this)
 			mainActivity.sensorSectionFragment = null;
 	}
 
 	/**
-	 * Called by {@link MainActivity} when a sensor's reading changes. Updates sensor display.
+	 * Called by {@link SensorHub} when a sensor's reading changes. Updates sensor display.
 	 */
-	public void onSensorChanged(SensorEvent event) {
-		switch (event.sensor.getType()) {
+	@Override
+	public void onSensorChanged(int type, long timestamp, int accuracy, float[] values) {
+		switch (type) {
 		case Sensor.TYPE_ACCELEROMETER:
-			accX.setText(String.format("%." + mAccSensorRes + "f", event.values[0]));
-			accY.setText(String.format("%." + mAccSensorRes + "f", event.values[1]));
-			accZ.setText(String.format("%." + mAccSensorRes + "f", event.values[2]));
-			accTotal.setText(String.format("%." + mAccSensorRes + "f", Math.sqrt(Math.pow(event.values[0], 2) + Math.pow(event.values[1], 2) + Math.pow(event.values[2], 2))));
-			accStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			showVector(values, mAccSensorRes, accX, accY, accZ, accTotal);
+			showAccuracy(accStatus, accuracy);
+			showSpectrum();
 			break;
 		case Sensor.TYPE_ORIENTATION:
-			orAzimuth.setText(String.format("%.0f%s", event.values[0], getString(R.string.unit_degree)));
-			orAziText.setText(MainActivity.formatOrientation(this.getContext(), event.values[0]));
-			orPitch.setText(String.format("%.0f%s", event.values[1], getString(R.string.unit_degree)));
-			orRoll.setText(String.format("%.0f%s", event.values[2], getString(R.string.unit_degree)));
-			orStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			orAzimuth.begin().appendFixed(values[0], 0).append(unitDegree).commit();
+			orAziText.setText(orientations[MainActivity.getOrientationIndex(values[0])]);
+			orPitch.begin().appendFixed(values[1], 0).append(unitDegree).commit();
+			orRoll.begin().appendFixed(values[2], 0).append(unitDegree).commit();
+			showAccuracy(orStatus, accuracy);
 			break;
 		case Sensor.TYPE_GYROSCOPE:
-			rotX.setText(String.format("%." + mGyroSensorRes + "f", event.values[0]));
-			rotY.setText(String.format("%." + mGyroSensorRes + "f", event.values[1]));
-			rotZ.setText(String.format("%." + mGyroSensorRes + "f", event.values[2]));
-			rotTotal.setText(String.format("%." + mGyroSensorRes + "f", Math.sqrt(Math.pow(event.values[0], 2) + Math.pow(event.values[1], 2) + Math.pow(event.values[2], 2))));
-			rotStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			showVector(values, mGyroSensorRes, rotX, rotY, rotZ, rotTotal);
+			showAccuracy(rotStatus, accuracy);
 			break;
 		case Sensor.TYPE_MAGNETIC_FIELD:
-			magX.setText(String.format("%." + mMagSensorRes + "f", event.values[0]));
-			magY.setText(String.format("%." + mMagSensorRes + "f", event.values[1]));
-			magZ.setText(String.format("%." + mMagSensorRes + "f", event.values[2]));
-			magTotal.setText(String.format("%." + mMagSensorRes + "f", Math.sqrt(Math.pow(event.values[0], 2) + Math.pow(event.values[1], 2) + Math.pow(event.values[2], 2))));
-			magStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			showVector(values, mMagSensorRes, magX, magY, magZ, magTotal);
+			showAccuracy(magStatus, accuracy);
 			break;
 		case Sensor.TYPE_LIGHT:
-			light.setText(String.format("%." + mLightSensorRes + "f", event.values[0]));
-			lightStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			light.setFixed(values[0], mLightSensorRes);
+			showAccuracy(lightStatus, accuracy);
 			break;
 		case Sensor.TYPE_PROXIMITY:
-			proximity.setText(String.format("%." + mProximitySensorRes + "f", event.values[0]));
-			proximityStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			proximity.setFixed(values[0], mProximitySensorRes);
+			showAccuracy(proximityStatus, accuracy);
 			break;
 		case Sensor.TYPE_PRESSURE:
-			metPressure.setText(String.format("%." + mPressureSensorRes + "f", event.values[0]));
-			pressureStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			metPressure.setFixed(values[0], mPressureSensorRes);
+			showAccuracy(pressureStatus, accuracy);
 			break;
 		case Sensor.TYPE_RELATIVE_HUMIDITY:
-			metHumid.setText(String.format("%." + mHumiditySensorRes + "f", event.values[0]));
-			humidStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			metHumid.setFixed(values[0], mHumiditySensorRes);
+			showAccuracy(humidStatus, accuracy);
 			break;
 		case Sensor.TYPE_AMBIENT_TEMPERATURE:
-			metTemp.setText(String.format("%." + mTempSensorRes + "f", event.values[0]));
-			tempStatus.setTextColor(getResources().getColor(accuracyToColor(event.accuracy)));
+			metTemp.setFixed(values[0], mTempSensorRes);
+			showAccuracy(tempStatus, accuracy);
 			break;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Shows the latest vibration spectrum, or hides the vibration section if vibration analysis is off.
+	 */
+	private void showSpectrum() {
+		SpectrumAnalyzer analyzer = mainActivity.spectrumAnalyzer;
+		if (analyzer != spectrumSource) {
+			spectrumSource = analyzer;
+			spectrum = (analyzer == null) ? null : analyzer.createSpectrum();
+			vibContainer.setVisibility((analyzer == null) ? View.GONE : View.VISIBLE);
+			vibSpectrum.showSpectrum(spectrum);
+		}
+		if ((analyzer == null) || !analyzer.getSpectrum(spectrum))
+			return;
+		vibFrequency.setFixed(spectrum.getDominantFrequency(), 1);
+		vibRms.setFixed(spectrum.getRms(), 3);
+		for (int i = 0; i < vibBands.length; i++)
+			vibBands[i].setFixed(spectrum.getBandRms(i), 3);
+		vibSpectrum.showSpectrum(spectrum);
+	}
+
+	/**
+	 * Shows the accuracy of a sensor as the color of its status indicator.
+	 */
+	private void showAccuracy(TextUpdater status, int accuracy) {
+		status.setTextColor(accuracyColors[((accuracy >= 0) && (accuracy < 4)) ? accuracy : 4]);
+	}
+
+	/**
+	 * Shows the components and the magnitude of a three-dimensional sensor reading.
+	 */
+	private static void showVector(float[] values, int decimals, TextUpdater x, TextUpdater y, TextUpdater z, TextUpdater total) {
+		x.setFixed(values[0], decimals);
+		y.setFixed(values[1], decimals);
+		z.setFixed(values[2], decimals);
+		total.setFixed(Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]), decimals);
+	}
+}
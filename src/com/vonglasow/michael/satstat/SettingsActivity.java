@@ -37,10 +37,13 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 
+import com.vonglasow.michael.satstat.widgets.TileSourcePreference;
+
 public class SettingsActivity extends AppCompatActivity implements OnSharedPreferenceChangeListener{
 
 	public static final String KEY_PREF_NOTIFY_FIX = "pref_notify_fix";
 	public static final String KEY_PREF_NOTIFY_SEARCH = "pref_notify_search";
+	public static final String KEY_PREF_NOTIFY_INTERVAL = "pref_notify_interval";
 	public static final String KEY_PREF_UPDATE_WIFI = "pref_update_wifi";
 	public static final String KEY_PREF_UPDATE_NETWORKS = "pref_update_networks";
 	public static final String KEY_PREF_UPDATE_NETWORKS_WIFI = Integer.toString(ConnectivityManager.TYPE_WIFI);
@@ -52,6 +55,10 @@ public class SettingsActivity extends AppCompatActivity implements OnSharedPrefe
 	public static final String KEY_PREF_MAP_LAT = "pref_map_lat";
 	public static final String KEY_PREF_MAP_LON = "pref_map_lon";
 	public static final String KEY_PREF_MAP_ZOOM = "pref_map_zoom";
+	public static final String KEY_PREF_MAP_FILE = "pref_map_file";
+	public static final String KEY_PREF_MAP_SOURCE = "pref_map_source";
+	public static final String KEY_PREF_MAP_SOURCE_URL = "pref_map_source_url";
+	public static final String KEY_PREF_RECORD = "pref_record";
 	public static final String KEY_PREF_UNIT_TYPE = "pref_unit_type";
 	public static final String KEY_PREF_COORD = "pref_coord";
 	public static final int KEY_PREF_COORD_DECIMAL = 0;
@@ -60,6 +67,9 @@ public class SettingsActivity extends AppCompatActivity implements OnSharedPrefe
 	public static final int KEY_PREF_COORD_MGRS = 3;
 	public static final String KEY_PREF_UTC = "pref_utc";
 	public static final String KEY_PREF_CID = "pref_cid";
+	public static final String KEY_PREF_NMEA_LOG = "pref_nmea_log";
+	public static final String KEY_PREF_SENSOR_CAPTURE = "pref_sensor_capture";
+	public static final String KEY_PREF_VIBRATION = "pref_vibration";
 
 	private SharedPreferences mSharedPreferences;
 
@@ -132,18 +142,23 @@ public class SettingsActivity extends AppCompatActivity implements OnSharedPrefe
 				Intent stopServiceIntent = new Intent(this, PasvLocListenerService.class);
 				this.stopService(stopServiceIntent);
 			}
-		} else if (key.equals(SettingsActivity.KEY_PREF_UPDATE_FREQ)) {
+		} else if (key.equals(SettingsActivity.KEY_PREF_UPDATE_FREQ) || key.equals(SettingsActivity.KEY_PREF_NOTIFY_INTERVAL)
+				|| key.equals(SettingsActivity.KEY_PREF_MAP_FILE) || key.equals(SettingsActivity.KEY_PREF_MAP_SOURCE)) {
 			// this piece of code is necessary because Android has no way
 			// of updating the preference summary automatically. I am
 			// told the absence of such functionality is a feature...
 			SettingsFragment sf = (SettingsFragment) getFragmentManager().findFragmentById(android.R.id.content);
-			ListPreference prefUpdateFreq = (ListPreference) sf.findPreference(KEY_PREF_UPDATE_FREQ);
+			ListPreference prefUpdateFreq = (ListPreference) sf.findPreference(key);
             final String value = sharedPreferences.getString(key, key);
             final int index = prefUpdateFreq.findIndexOfValue(value);            
             if (index >= 0) {
                 final String summary = (String)prefUpdateFreq.getEntries()[index];         
                 prefUpdateFreq.setSummary(summary);
             }
+		} else if (key.equals(SettingsActivity.KEY_PREF_MAP_SOURCE_URL)) {
+			SettingsFragment sf = (SettingsFragment) getFragmentManager().findFragmentById(android.R.id.content);
+			TileSourcePreference prefMapSource = (TileSourcePreference) sf.findPreference(KEY_PREF_MAP_SOURCE);
+			prefMapSource.updateTileSources();
 		}
 	}
 
@@ -67,6 +67,40 @@ public abstract class WifiCapabilities {
     public static final int NETWORK_CAPTIVE_PORTAL = 1;
     public static final int NETWORK_ERROR = 2;
     
+    /* Flags for capabilities, as returned by getCapabilityFlags() */
+    public static final int FLAG_WEP = 0x1;
+    public static final int FLAG_PSK = 0x2;
+    public static final int FLAG_EAP = 0x4;
+    public static final int FLAG_ADHOC = 0x8;
+    public static final int FLAG_ENTERPRISE = 0x10;
+
+    /**
+     * Parses a capabilities string into a bit mask.
+     * <p>
+     * Since capabilities of an access point rarely change, callers should
+     * cache the result rather than calling this method for every scan.
+     * @param capabilities The capabilities string, as found in {@link ScanResult#capabilities}
+     * @return Any combination of {@link #FLAG_WEP}, {@link #FLAG_PSK},
+     * {@link #FLAG_EAP}, {@link #FLAG_ADHOC} and {@link #FLAG_ENTERPRISE}, or
+     * 0 for an open network
+     */
+    public static int getCapabilityFlags(String capabilities) {
+        int flags = 0;
+        if (capabilities == null)
+            return flags;
+        if (capabilities.contains(WEP))
+            flags |= FLAG_WEP;
+        if (capabilities.contains(PSK))
+            flags |= FLAG_PSK;
+        if (capabilities.contains(EAP))
+            flags |= FLAG_EAP;
+        if (capabilities.contains(ADHOC_CAPABILITY))
+            flags |= FLAG_ADHOC;
+        if (capabilities.contains(ENTERPRISE_CAPABILITY))
+            flags |= FLAG_ENTERPRISE;
+        return flags;
+    }
+
     /**
      * @return The security of a given {@link ScanResult}.
      */
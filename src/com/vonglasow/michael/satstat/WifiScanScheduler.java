@@ -0,0 +1,387 @@
+/*
+ * Copyright © 2013–2016 Michael von Glasow.
+ *
+ * This file is part of LSRN Tools.
+ *
+ * LSRN Tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSRN Tools is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSRN Tools.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.vonglasow.michael.satstat;
+
+import java.util.List;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Schedules Wi-Fi scans.
+ * <p>
+ * Scan requests from different sources (periodic rescans, Wi-Fi state
+ * changes) are coalesced, and there is never more than one scan in flight at
+ * any time. The interval between scans adapts to conditions: it is doubled
+ * each time a scan returns the same results as the previous one, up to
+ * {@link #MAX_INTERVAL}, and reset to {@link #MIN_INTERVAL} whenever
+ * results change, the device is moving or the Wi-Fi connection changes.
+ * Motion is detected from the variance of the acceleration magnitude, which
+ * is fed in through {@link #onAccelerometerChanged(float, float, float)}.
+ * Connection changes are fed in through
+ * {@link #onConnectionChanged(boolean, String)}; broadcasts which fire
+ * without a change, such as repeated network state broadcasts while
+ * connected, do not shorten the interval.
+ * <p>
+ * Results from scans which were initiated by other apps are processed like
+ * our own, delaying the next scan accordingly.
+ * <p>
+ * All methods must be called on the thread which created the instance.
+ */
+public class WifiScanScheduler {
+	private static final String TAG = "WifiScanScheduler";
+
+	/** Shortest interval between the start of two scans, in milliseconds. */
+	static final int MIN_INTERVAL = 1000;
+
+	/** Longest interval between the start of two scans, in milliseconds. */
+	static final int MAX_INTERVAL = 32000;
+
+	/** Time after which a scan without results is considered lost, in milliseconds. */
+	private static final int SCAN_TIMEOUT = 10000;
+
+	/** Smoothing factor for the acceleration mean and variance. */
+	private static final float MOTION_ALPHA = 0.2f;
+
+	/** Acceleration variance above which the device is considered moving, in (m/s²)². */
+	private static final float MOTION_THRESHOLD = 0.1f;
+
+	/** Interval at which statistics are logged, in scans. */
+	private static final int STATS_LOG_INTERVAL = 20;
+
+	private final WifiManager wifiManager;
+	private final Handler handler;
+
+	private boolean isRunning = false;
+	private boolean isScanInFlight = false;
+	private long lastScanTime = 0;
+	private long nextScanTime = 0;
+	private int interval = MIN_INTERVAL;
+
+	/** Signature of the last set of results, used to detect changes. */
+	private long lastSignature = 0;
+
+	private boolean isConnected = false;
+	private String connectedBssid = null;
+
+	private boolean hasMotionData = false;
+	private float accMean = 0;
+	private float accVariance = 0;
+	private boolean isMoving = false;
+
+	/* Statistics */
+	private long statsStartTime = 0;
+	private int scansStarted = 0;
+	private int scansTimedOut = 0;
+	private int resultsReceived = 0;
+	private int resultsNew = 0;
+
+	private final Runnable scanRunnable = new Runnable() {
+		@Override
+		public void run() {
+			startScan();
+		}
+	};
+
+	private final Runnable timeoutRunnable = new Runnable() {
+		@Override
+		public void run() {
+			Log.d(TAG, "Scan timed out");
+			isScanInFlight = false;
+			scansTimedOut++;
+			schedule(now() + interval);
+		}
+	};
+
+	public WifiScanScheduler(WifiManager wifiManager) {
+		this(wifiManager, new Handler());
+	}
+
+	/**
+	 * @param handler The handler on which scans are scheduled, or null if
+	 * {@link #post(Runnable, long)} and {@link #cancel(Runnable)} are overridden
+	 */
+	WifiScanScheduler(WifiManager wifiManager, Handler handler) {
+		this.wifiManager = wifiManager;
+		this.handler = handler;
+	}
+
+	/**
+	 * Starts scanning.
+	 * <p>
+	 * The first scan is started immediately unless a scan is already in flight.
+	 */
+	public void start() {
+		if (isRunning)
+			return;
+		isRunning = true;
+		interval = MIN_INTERVAL;
+		statsStartTime = now();
+		scansStarted = 0;
+		scansTimedOut = 0;
+		resultsReceived = 0;
+		resultsNew = 0;
+		requestScan();
+	}
+
+	/**
+	 * Stops scanning.
+	 * <p>
+	 * A scan which is in flight will still deliver its results.
+	 */
+	public void stop() {
+		isRunning = false;
+		cancel(scanRunnable);
+		cancel(timeoutRunnable);
+		isScanInFlight = false;
+		nextScanTime = 0;
+	}
+
+	/**
+	 * Requests a scan.
+	 * <p>
+	 * If a scan is in flight, this does nothing since its results will
+	 * arrive shortly. Otherwise the scan is scheduled at the earliest time
+	 * permitted by the current interval, which usually means that a scan is
+	 * already scheduled for that time. Multiple requests are coalesced into
+	 * one scan.
+	 */
+	public void requestScan() {
+		if (!isRunning || isScanInFlight)
+			return;
+		schedule(Math.max(now(), lastScanTime + interval));
+	}
+
+	/**
+	 * Processes a change in the state of the Wi-Fi connection.
+	 * <p>
+	 * This may be called for every network state broadcast. Only if the
+	 * connection was established, lost or moved to a different access point
+	 * is the scan interval reset to {@link #MIN_INTERVAL}, as access points in
+	 * range are likely to have changed.
+	 *
+	 * @param connected Whether Wi-Fi is connected
+	 * @param bssid The BSSID of the access point, if connected
+	 */
+	public void onConnectionChanged(boolean connected, String bssid) {
+		if (!connected)
+			bssid = null;
+		boolean isRoamed = (bssid != null) && (connectedBssid != null) && !bssid.equals(connectedBssid);
+		boolean isChanged = (connected != isConnected) || isRoamed;
+		isConnected = connected;
+		if (!connected || (bssid != null))
+			connectedBssid = bssid;
+		if (!isChanged)
+			return;
+		interval = MIN_INTERVAL;
+		if (isRunning && !isScanInFlight)
+			schedule(Math.max(now(), lastScanTime + MIN_INTERVAL));
+	}
+
+	/**
+	 * Processes new scan results.
+	 * <p>
+	 * This method must be called whenever scan results become available,
+	 * regardless of who initiated the scan.
+	 *
+	 * @param results The results, as returned by {@link WifiManager#getScanResults()}
+	 * @return true if the results differ from the previous ones, false if not
+	 */
+	public boolean onScanResults(List<ScanResult> results) {
+		return onScanResults(getSignature(results));
+	}
+
+	/**
+	 * Processes new scan results, identified by their signature.
+	 *
+	 * @see #onScanResults(List)
+	 */
+	boolean onScanResults(long signature) {
+		long now = now();
+		cancel(timeoutRunnable);
+		if (!isScanInFlight)
+			// scan was started by somebody else, count it as ours
+			lastScanTime = now;
+		isScanInFlight = false;
+
+		boolean isNew = (signature != lastSignature);
+		lastSignature = signature;
+
+		resultsReceived++;
+		if (isNew)
+			resultsNew++;
+
+		if (isNew || isMoving)
+			interval = MIN_INTERVAL;
+		else
+			interval = Math.min(interval * 2, MAX_INTERVAL);
+
+		if ((resultsReceived % STATS_LOG_INTERVAL) == 0)
+			Log.d(TAG, String.format("%.1f scans/min, %.1f new results/min, %d timeouts, interval %d ms",
+					getScanRate(), getNewResultRate(), scansTimedOut, interval));
+
+		if (isRunning) {
+			// the next scan is timed from these results, replacing any earlier schedule
+			nextScanTime = 0;
+			schedule(lastScanTime + interval);
+		}
+		return isNew;
+	}
+
+	/**
+	 * Processes accelerometer readings to detect motion.
+	 * <p>
+	 * When the device starts moving, the scan interval is reset to
+	 * {@link #MIN_INTERVAL} and the next scan is brought forward accordingly.
+	 */
+	public void onAccelerometerChanged(float x, float y, float z) {
+		float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+		if (!hasMotionData) {
+			accMean = magnitude;
+			accVariance = 0;
+			hasMotionData = true;
+			return;
+		}
+		float diff = magnitude - accMean;
+		accMean += MOTION_ALPHA * diff;
+		accVariance = (1 - MOTION_ALPHA) * (accVariance + MOTION_ALPHA * diff * diff);
+
+		boolean wasMoving = isMoving;
+		isMoving = accVariance > MOTION_THRESHOLD;
+		if (isMoving && !wasMoving) {
+			interval = MIN_INTERVAL;
+			if (isRunning && !isScanInFlight)
+				schedule(Math.max(now(), lastScanTime + MIN_INTERVAL));
+		}
+	}
+
+	/**
+	 * Returns the current interval between scans, in milliseconds.
+	 */
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Returns the number of scans started per minute since {@link #start()} was last called.
+	 */
+	public float getScanRate() {
+		return perMinute(scansStarted);
+	}
+
+	/**
+	 * Returns the number of scan results which differed from their predecessor, per minute since
+	 * {@link #start()} was last called.
+	 */
+	public float getNewResultRate() {
+		return perMinute(resultsNew);
+	}
+
+	/**
+	 * Whether the device is currently considered to be moving.
+	 */
+	public boolean isMoving() {
+		return isMoving;
+	}
+
+	private float perMinute(int count) {
+		long elapsed = now() - statsStartTime;
+		if (elapsed <= 0)
+			return 0;
+		return count * 60000.0f / elapsed;
+	}
+
+	/**
+	 * Schedules the next scan, unless one is already scheduled for an earlier time.
+	 *
+	 * @param time The time at which to scan, in the {@link SystemClock#elapsedRealtime()} time base
+	 */
+	private void schedule(long time) {
+		long now = now();
+		if ((nextScanTime > now) && (nextScanTime <= time))
+			return;
+		cancel(scanRunnable);
+		nextScanTime = time;
+		post(scanRunnable, Math.max(time - now, 0));
+	}
+
+	private void startScan() {
+		nextScanTime = 0;
+		if (!isRunning || isScanInFlight)
+			return;
+		long now = now();
+		if (startPlatformScan()) {
+			isScanInFlight = true;
+			lastScanTime = now;
+			scansStarted++;
+			post(timeoutRunnable, SCAN_TIMEOUT);
+		} else {
+			// Wi-Fi is probably off, try again later
+			interval = Math.min(interval * 2, MAX_INTERVAL);
+			schedule(now + interval);
+		}
+	}
+
+	/**
+	 * Returns the current time in the {@link SystemClock#elapsedRealtime()} time base.
+	 * <p>
+	 * This method and the following ones wrap the Android APIs used for
+	 * scheduling, so that tests can replace them.
+	 */
+	long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	void post(Runnable task, long delayMillis) {
+		handler.postDelayed(task, delayMillis);
+	}
+
+	void cancel(Runnable task) {
+		handler.removeCallbacks(task);
+	}
+
+	boolean startPlatformScan() {
+		return wifiManager.startScan();
+	}
+
+	/**
+	 * Calculates a signature for a set of scan results.
+	 * <p>
+	 * The signature depends on the BSSIDs and signal levels, but not on the
+	 * order of the results. Identical signatures indicate (with a very high
+	 * probability) that nothing has changed.
+	 */
+	private static long getSignature(List<ScanResult> results) {
+		if (results == null)
+			return 0;
+		long signature = results.size();
+		for (ScanResult result : results) {
+			long h = ((result.BSSID != null) ? result.BSSID.hashCode() : 0) * 31L + result.level;
+			// mix bits so that a simple sum is order-independent but still sensitive to changes
+			h *= 0x9E3779B97F4A7C15L;
+			h ^= (h >>> 32);
+			signature += h;
+		}
+		return signature;
+	}
+}
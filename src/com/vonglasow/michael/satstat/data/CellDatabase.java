@@ -0,0 +1,349 @@
+package com.vonglasow.michael.satstat.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only offline database of cell tower locations.
+ * <p>
+ * The database is a single binary file, created by
+ * {@link CellDatabaseImporter}, which is memory-mapped rather than read into
+ * the heap. Lookups are done through an interpolation search (with binary
+ * search as a fallback) over the sorted key section of the file, thus only
+ * the handful of pages touched by a lookup are ever read from storage.
+ * <p>
+ * The file has the following layout (all values big-endian):
+ * <ul>
+ * <li>Header: magic ({@link #MAGIC}), format version, number of records,
+ * reserved (4 {@code int}s)</li>
+ * <li>Keys: one {@code long} per record, as returned by
+ * {@link #getKey(int, int, int, int)}, sorted in ascending order</li>
+ * <li>Records: latitude and longitude in units of 1e-7 degrees, radio type
+ * (upper 8 bits) and range in meters (lower 24 bits) (3 {@code int}s per
+ * record), in the same order as the keys</li>
+ * </ul>
+ * The key does not include the radio type, thus cells of different radio
+ * types can share a key (e.g. a GSM and an LTE cell which happen to have the
+ * same identifiers). Such records are adjacent, sorted by radio type, and
+ * lookups pick the one matching the radio type of the cell.
+ * <p>
+ * Lookup methods return an index, which can then be passed to the getters.
+ * This allows lookups without any allocations.
+ */
+public class CellDatabase {
+	/** The default file name for the database. */
+	public static final String FILE_NAME = "celldb.bin";
+
+	/** Magic number at the start of a cell database file (ASCII {@code SSCD}). */
+	public static final int MAGIC = 0x53534344;
+
+	/** The current file format version. */
+	public static final int VERSION = 2;
+
+	/** Size of the file header in bytes. */
+	static final int HEADER_SIZE = 16;
+
+	/** Size of a record (excluding its key) in bytes. */
+	static final int RECORD_SIZE = 12;
+
+	/** Scale factor for coordinates, which are stored as integers. */
+	static final double COORD_SCALE = 1e7;
+
+	/** Number of interpolation steps before falling back to binary search. */
+	private static final int MAX_INTERPOLATION_STEPS = 6;
+
+	/** Return value of lookups which did not find a match. */
+	public static final int NOT_FOUND = -1;
+
+	/** Radio type for cells whose radio type is not known. Matches any radio type in lookups. */
+	public static final int RADIO_UNKNOWN = 0;
+
+	/** Radio type for GSM cells. */
+	public static final int RADIO_GSM = 1;
+
+	/** Radio type for UMTS cells. */
+	public static final int RADIO_UMTS = 2;
+
+	/** Radio type for LTE cells. */
+	public static final int RADIO_LTE = 3;
+
+	/** Radio type for CDMA cells. */
+	public static final int RADIO_CDMA = 4;
+
+	/** Largest range which can be stored, in meters. */
+	static final int MAX_RANGE = 0xFFFFFF;
+
+	private final RandomAccessFile file;
+	private final LongBuffer keys;
+	private final ByteBuffer records;
+	private final int count;
+
+	private CellDatabase(RandomAccessFile file, MappedByteBuffer buffer) throws IOException {
+		this.file = file;
+		if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC))
+			throw new IOException("Not a cell database file");
+		if (buffer.getInt(4) != VERSION)
+			throw new IOException(String.format("Unsupported cell database version %d", buffer.getInt(4)));
+		count = buffer.getInt(8);
+		if (buffer.capacity() < HEADER_SIZE + (long) count * (8 + RECORD_SIZE))
+			throw new IOException("Cell database file is truncated");
+
+		buffer.position(HEADER_SIZE);
+		buffer.limit(HEADER_SIZE + count * 8);
+		keys = buffer.slice().asLongBuffer();
+
+		buffer.limit(buffer.capacity());
+		buffer.position(HEADER_SIZE + count * 8);
+		records = buffer.slice();
+	}
+
+	/**
+	 * Opens a cell database.
+	 *
+	 * @param file The database file
+	 * @return The database, or {@code null} if {@code file} does not exist
+	 * @throws IOException if the file exists but cannot be read or is not a valid database
+	 */
+	public static CellDatabase open(File file) throws IOException {
+		if ((file == null) || !file.exists())
+			return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			return new CellDatabase(raf, buffer);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the underlying file.
+	 * <p>
+	 * Mapped memory is released by the garbage collector once the database
+	 * is no longer referenced. Do not call any other methods after this one.
+	 */
+	public void close() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			// nothing we can do about it
+		}
+	}
+
+	/**
+	 * Returns the number of cells in the database.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Packs a cell identity into a 64-bit key.
+	 * <p>
+	 * The key is made up of MCC (10 bits), MNC (10 bits), LAC or TAC
+	 * (16 bits) and cell ID (28 bits, which is enough for UMTS and LTE cell
+	 * IDs), in this order from the most significant bit downwards. Keys are
+	 * compared as signed values. Since MCC and MNC never exceed 999, no valid
+	 * key can be equal to {@link #NOT_FOUND}.
+	 *
+	 * @return The key, or {@link #NOT_FOUND} if any component is outside its range
+	 */
+	public static long getKey(int mcc, int mnc, int lac, int cid) {
+		if ((mcc < 0) || (mcc > 999)
+				|| (mnc < 0) || (mnc > 999)
+				|| (lac < 0) || (lac > 0xFFFF)
+				|| (cid < 0) || (cid > 0xFFFFFFF))
+			return NOT_FOUND;
+		return ((long) mcc << 54) | ((long) mnc << 44) | ((long) lac << 28) | cid;
+	}
+
+	/**
+	 * Looks up a cell of any radio type.
+	 *
+	 * @return The index of the cell, or {@link #NOT_FOUND}
+	 */
+	public int find(int mcc, int mnc, int lac, int cid) {
+		return find(mcc, mnc, lac, cid, RADIO_UNKNOWN);
+	}
+
+	/**
+	 * Looks up a cell.
+	 *
+	 * @param radio The radio type of the cell, one of the {@code RADIO_*} constants
+	 * @return The index of the cell, or {@link #NOT_FOUND}
+	 */
+	public int find(int mcc, int mnc, int lac, int cid, int radio) {
+		if ((mcc == CellTower.UNKNOWN) || (mnc == CellTower.UNKNOWN)
+				|| (lac == CellTower.UNKNOWN) || (cid == CellTower.UNKNOWN))
+			return NOT_FOUND;
+		long key = getKey(mcc, mnc, lac, cid);
+		if (key == NOT_FOUND)
+			return NOT_FOUND;
+		return find(key, radio);
+	}
+
+	/**
+	 * Looks up a GSM or UMTS cell.
+	 * <p>
+	 * If the generation of the cell is not known, a GSM cell is preferred
+	 * over a UMTS cell.
+	 *
+	 * @return The index of the cell, or {@link #NOT_FOUND}
+	 */
+	public int find(CellTowerGsm cell) {
+		int radio;
+		switch (cell.getGeneration()) {
+		case 2:
+			radio = RADIO_GSM;
+			break;
+		case 3:
+			radio = RADIO_UMTS;
+			break;
+		default:
+			int index = find(cell.getMcc(), cell.getMnc(), cell.getLac(), cell.getCid(), RADIO_GSM);
+			if (index != NOT_FOUND)
+				return index;
+			radio = RADIO_UMTS;
+		}
+		return find(cell.getMcc(), cell.getMnc(), cell.getLac(), cell.getCid(), radio);
+	}
+
+	/**
+	 * Looks up a LTE cell.
+	 *
+	 * @return The index of the cell, or {@link #NOT_FOUND}
+	 */
+	public int find(CellTowerLte cell) {
+		return find(cell.getMcc(), cell.getMnc(), cell.getTac(), cell.getCi(), RADIO_LTE);
+	}
+
+	/**
+	 * Looks up a key and radio type.
+	 * <p>
+	 * Among the records with the given key, a record with the requested
+	 * radio type is preferred, followed by one with an unknown radio type.
+	 * If {@code radio} is {@link #RADIO_UNKNOWN}, the first record with the
+	 * key is returned.
+	 *
+	 * @param key The key, as returned by {@link #getKey(int, int, int, int)}
+	 * @param radio The radio type, one of the {@code RADIO_*} constants
+	 * @return The index of the cell, or {@link #NOT_FOUND}
+	 */
+	public int find(long key, int radio) {
+		int index = find(key);
+		if (index == NOT_FOUND)
+			return NOT_FOUND;
+		while ((index > 0) && (keys.get(index - 1) == key))
+			index--;
+		if (radio == RADIO_UNKNOWN)
+			return index;
+		int fallback = NOT_FOUND;
+		for (int i = index; (i < count) && (keys.get(i) == key); i++) {
+			int recordRadio = getRadio(i);
+			if (recordRadio == radio)
+				return i;
+			if ((recordRadio == RADIO_UNKNOWN) && (fallback == NOT_FOUND))
+				fallback = i;
+		}
+		return fallback;
+	}
+
+	/**
+	 * Looks up a key.
+	 * <p>
+	 * Cell IDs are fairly evenly distributed within a network, which makes
+	 * interpolation search converge in very few steps. To guard against
+	 * skewed data, the search falls back to plain binary search after a few
+	 * interpolation steps.
+	 *
+	 * If records of several radio types share the key, the index of any of
+	 * them may be returned.
+	 *
+	 * @param key The key, as returned by {@link #getKey(int, int, int, int)}
+	 * @return The index of the cell, or {@link #NOT_FOUND}
+	 */
+	public int find(long key) {
+		int lo = 0;
+		int hi = count - 1;
+		int steps = 0;
+		while (lo <= hi) {
+			long loKey = keys.get(lo);
+			long hiKey = keys.get(hi);
+			if ((key < loKey) || (key > hiKey))
+				return NOT_FOUND;
+			int mid;
+			if ((steps < MAX_INTERPOLATION_STEPS) && (hiKey != loKey)) {
+				steps++;
+				mid = lo + (int) (unsignedToDouble(key - loKey) / unsignedToDouble(hiKey - loKey) * (hi - lo));
+				if (mid < lo)
+					mid = lo;
+				else if (mid > hi)
+					mid = hi;
+			} else
+				mid = (lo + hi) >>> 1;
+			long midKey = keys.get(mid);
+			if (midKey < key)
+				lo = mid + 1;
+			else if (midKey > key)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Converts the difference between two keys to a {@code double}.
+	 * <p>
+	 * Keys span the full range of {@code long}, hence their difference may
+	 * overflow into the sign bit. As long as the difference is known to be
+	 * non-negative, interpreting it as an unsigned value gives the correct
+	 * result.
+	 */
+	private static double unsignedToDouble(long value) {
+		if (value >= 0)
+			return value;
+		return ((value >>> 1) | (value & 1)) * 2.0;
+	}
+
+	/**
+	 * Returns the latitude of the cell at {@code index}, in degrees.
+	 */
+	public double getLatitude(int index) {
+		return records.getInt(index * RECORD_SIZE) / COORD_SCALE;
+	}
+
+	/**
+	 * Returns the longitude of the cell at {@code index}, in degrees.
+	 */
+	public double getLongitude(int index) {
+		return records.getInt(index * RECORD_SIZE + 4) / COORD_SCALE;
+	}
+
+	/**
+	 * Returns the range of the cell at {@code index}, in meters.
+	 */
+	public int getRange(int index) {
+		return records.getInt(index * RECORD_SIZE + 8) & MAX_RANGE;
+	}
+
+	/**
+	 * Returns the radio type of the cell at {@code index}, as one of the {@code RADIO_*} constants.
+	 */
+	public int getRadio(int index) {
+		return records.getInt(index * RECORD_SIZE + 8) >>> 24;
+	}
+
+	/**
+	 * Packs radio type and range into a single value, as stored in a record.
+	 */
+	static int packRange(int radio, int range) {
+		return (radio << 24) | Math.min(Math.max(range, 0), MAX_RANGE);
+	}
+}
@@ -0,0 +1,123 @@
+package com.vonglasow.michael.satstat.data;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.vonglasow.michael.satstat.R;
+
+/**
+ * Imports a CSV export of cell tower locations into the cell database.
+ * <p>
+ * The user places the export (as downloaded from OpenCellID or the Mozilla
+ * Location Service, optionally gzipped) in the external files directory of
+ * the app, under one of the names in {@link #CSV_FILE_NAMES}. The import is
+ * done if the database does not exist yet, is older than the export or
+ * cannot be opened (e.g. because it has an outdated format version). The
+ * database is written to a temporary file which then replaces the old one,
+ * thus readers never see a partially written database.
+ * <p>
+ * The result is reported to the user in a toast.
+ */
+public class CellDatabaseImportTask extends AsyncTask<Void, Void, Integer> {
+	private static final String TAG = CellDatabaseImportTask.class.getSimpleName();
+
+	/** File names under which an export is looked for, in order of preference. */
+	public static final String[] CSV_FILE_NAMES = {"cells.csv.gz", "cells.csv"};
+
+	/** The import in progress, accessed only from the main thread. */
+	private static CellDatabaseImportTask current = null;
+
+	private final Context context;
+	private final File csv;
+	private final File database;
+	private Runnable onImported;
+
+	private CellDatabaseImportTask(Context context, File csv, File database, Runnable onImported) {
+		this.context = context.getApplicationContext();
+		this.csv = csv;
+		this.database = database;
+		this.onImported = onImported;
+	}
+
+	/**
+	 * Starts an import if the cell database is missing, outdated or invalid.
+	 *
+	 * If an import is already running, {@code onImported} replaces the
+	 * callback passed when it was started, e.g. when the activity which
+	 * started it has been recreated.
+	 *
+	 * @param context The context
+	 * @param onImported Called on the main thread after a successful import, may be {@code null}
+	 * @return The task, or {@code null} if there is nothing to import
+	 */
+	public static CellDatabaseImportTask startIfNeeded(Context context, Runnable onImported) {
+		if (current != null) {
+			current.onImported = onImported;
+			return current;
+		}
+		File dir = context.getExternalFilesDir(null);
+		if (dir == null)
+			return null;
+		File database = new File(dir, CellDatabase.FILE_NAME);
+		for (String name : CSV_FILE_NAMES) {
+			File csv = new File(dir, name);
+			if (!csv.isFile())
+				continue;
+			if (database.exists() && (database.lastModified() >= csv.lastModified()) && isValid(database))
+				return null;
+			current = new CellDatabaseImportTask(context, csv, database, onImported);
+			current.execute();
+			return current;
+		}
+		return null;
+	}
+
+	private static boolean isValid(File database) {
+		try {
+			CellDatabase.open(database).close();
+			return true;
+		} catch (IOException e) {
+			Log.i(TAG, "Cell database needs to be imported again: " + e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	protected Integer doInBackground(Void... params) {
+		File temp = new File(database.getPath() + ".tmp");
+		CellDatabaseImporter importer = new CellDatabaseImporter(context.getCacheDir());
+		long start = System.currentTimeMillis();
+		try {
+			int count = importer.importFile(csv, temp);
+			if (!temp.renameTo(database))
+				throw new IOException("Cannot rename " + temp.getName() + " to " + database.getName());
+			Log.i(TAG, String.format("%d rows read, %d skipped, %d duplicates, %d cells written in %d ms",
+					importer.getRowsRead(), importer.getRowsSkipped(), importer.getRowsDuplicate(), count,
+					System.currentTimeMillis() - start));
+			return count;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot import cell database: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			// thrown for CSV headers which lack required columns
+			Log.w(TAG, "Cannot import cell database: " + e.getMessage());
+		}
+		temp.delete();
+		return null;
+	}
+
+	@Override
+	protected void onPostExecute(Integer result) {
+		current = null;
+		if (result != null) {
+			Toast.makeText(context, context.getString(R.string.info_cell_db_import, result), Toast.LENGTH_LONG).show();
+			if (onImported != null)
+				onImported.run();
+		} else
+			Toast.makeText(context, R.string.error_cell_db_import, Toast.LENGTH_SHORT).show();
+	}
+}
@@ -0,0 +1,597 @@
+package com.vonglasow.michael.satstat.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts a CSV export of cell tower locations into a {@link CellDatabase}.
+ * <p>
+ * Both the OpenCellID and the Mozilla Location Service export formats are
+ * supported, as well as plain files with the columns {@code mcc, mnc, lac,
+ * cid, lat, lon, range}. If the first line is a header, which is recognized
+ * by containing any of the column names {@code mcc}, {@code lat} or
+ * {@code lon}, columns are located by name ({@code net} and {@code area} are
+ * accepted as synonyms for {@code mnc} and {@code lac}, {@code cell} for
+ * {@code cid}). Without a header, the OpenCellID column order is assumed if
+ * the first field is a radio type, as in the per-country OpenCellID exports,
+ * else the plain column order. An optional {@code radio} column ({@code GSM},
+ * {@code UMTS}, {@code LTE} or {@code CDMA}) sets the radio type of each cell;
+ * without it, the radio type is unknown. Rows which cannot be parsed, whose
+ * cell identity does not fit into a key or which have any other radio type
+ * are skipped.
+ * <p>
+ * National or global exports can have tens of millions of rows. In order to
+ * keep memory usage bounded, the importer does an external merge sort: rows
+ * are read in chunks of at most {@link #DEFAULT_CHUNK_SIZE} rows, each chunk
+ * is sorted in memory and written to a temporary run file, and the runs are
+ * then merged into the final database. If the same cell (same key and radio
+ * type) appears more than once, the first occurrence in the input is kept:
+ * chunks are sorted by key, radio type and position in the input, and runs
+ * are merged in the same order with ties going to the earlier run.
+ * <p>
+ * This class does not depend on any Android APIs. In the app, imports are
+ * run by {@link CellDatabaseImportTask}.
+ */
+public class CellDatabaseImporter {
+	/** Number of rows sorted in memory at a time (24 bytes per row). */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	/** Size of a record in a temporary run file: key, lat, lon, radio and range. */
+	private static final int RUN_RECORD_SIZE = 20;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int COL_MCC = 0;
+	private static final int COL_MNC = 1;
+	private static final int COL_LAC = 2;
+	private static final int COL_CID = 3;
+	private static final int COL_LAT = 4;
+	private static final int COL_LON = 5;
+	private static final int COL_RANGE = 6;
+	private static final int COL_RADIO = 7;
+	private static final int NUM_COLS = 8;
+
+	/** Column positions in headerless files with the plain column order */
+	private static final int[] PLAIN_COLS = {0, 1, 2, 3, 4, 5, 6, -1};
+
+	/**
+	 * Column positions in headerless OpenCellID exports ({@code radio, mcc,
+	 * net, area, cell, unit, lon, lat, range, ...})
+	 */
+	private static final int[] OPENCELLID_COLS = {1, 2, 3, 4, 7, 6, 8, 0};
+
+	private final int chunkSize;
+	private final File tempDir;
+
+	private long[] chunkKeys;
+	private int[] chunkLat;
+	private int[] chunkLon;
+	private int[] chunkRange;
+	private int[] chunkSeq;
+
+	private long rowsRead = 0;
+	private long rowsSkipped = 0;
+	private long rowsDuplicate = 0;
+
+	/**
+	 * Creates a new importer with default settings.
+	 *
+	 * @param tempDir The directory for temporary files, or {@code null} to use the system default
+	 */
+	public CellDatabaseImporter(File tempDir) {
+		this(tempDir, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Creates a new importer.
+	 *
+	 * @param tempDir The directory for temporary files, or {@code null} to use the system default
+	 * @param chunkSize The maximum number of rows to hold in memory
+	 */
+	public CellDatabaseImporter(File tempDir, int chunkSize) {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("chunkSize must be positive");
+		this.tempDir = tempDir;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Returns the number of data rows read during the last import.
+	 */
+	public long getRowsRead() {
+		return rowsRead;
+	}
+
+	/**
+	 * Returns the number of rows skipped during the last import because they could not be parsed.
+	 */
+	public long getRowsSkipped() {
+		return rowsSkipped;
+	}
+
+	/**
+	 * Returns the number of duplicate rows dropped during the last import.
+	 */
+	public long getRowsDuplicate() {
+		return rowsDuplicate;
+	}
+
+	/**
+	 * Imports a CSV file into a cell database.
+	 *
+	 * @param csv The CSV file. If its name ends in {@code .gz}, it is decompressed on the fly.
+	 * @param output The database file to create. An existing file will be overwritten.
+	 * @return The number of cells in the database
+	 */
+	public int importFile(File csv, File output) throws IOException {
+		InputStream in = new FileInputStream(csv);
+		try {
+			if (csv.getName().endsWith(".gz"))
+				in = new GZIPInputStream(in, BUFFER_SIZE);
+			return importStream(new InputStreamReader(in, "US-ASCII"), output);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Imports CSV data into a cell database.
+	 *
+	 * @param csv A reader supplying the CSV data. It is not closed by this method.
+	 * @param output The database file to create. An existing file will be overwritten.
+	 * @return The number of cells in the database
+	 */
+	public int importStream(Reader csv, File output) throws IOException {
+		rowsRead = 0;
+		rowsSkipped = 0;
+		rowsDuplicate = 0;
+		chunkKeys = new long[chunkSize];
+		chunkLat = new int[chunkSize];
+		chunkLon = new int[chunkSize];
+		chunkRange = new int[chunkSize];
+		chunkSeq = new int[chunkSize];
+
+		List<File> runs = new ArrayList<File>();
+		try {
+			BufferedReader reader = new BufferedReader(csv, BUFFER_SIZE);
+			int[] cols = null;
+			int fill = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0)
+					continue;
+				String[] fields = line.split(",", -1);
+				if (cols == null) {
+					cols = parseHeader(fields);
+					if (cols != null)
+						continue;
+					cols = (parseRadio(fields[0].trim()) != CellDatabase.RADIO_UNKNOWN) ? OPENCELLID_COLS : PLAIN_COLS;
+				}
+				rowsRead++;
+				if (!parseRow(fields, cols, fill)) {
+					rowsSkipped++;
+					continue;
+				}
+				fill++;
+				if (fill == chunkSize) {
+					runs.add(writeRun(fill));
+					fill = 0;
+				}
+			}
+			if (fill > 0)
+				runs.add(writeRun(fill));
+
+			// release memory before merging
+			chunkKeys = null;
+			chunkLat = null;
+			chunkLon = null;
+			chunkRange = null;
+			chunkSeq = null;
+
+			return merge(runs, output);
+		} finally {
+			chunkKeys = null;
+			chunkLat = null;
+			chunkLon = null;
+			chunkRange = null;
+			chunkSeq = null;
+			for (File run : runs)
+				run.delete();
+		}
+	}
+
+	/**
+	 * Determines column positions from a header line.
+	 *
+	 * @return The position of each column, indexed by the {@code COL_*} constants, or {@code null} if
+	 * {@code fields} is not a header
+	 * @throws IllegalArgumentException if {@code fields} is a header but lacks required columns
+	 */
+	private static int[] parseHeader(String[] fields) {
+		int[] cols = new int[NUM_COLS];
+		for (int i = 0; i < NUM_COLS; i++)
+			cols[i] = -1;
+		for (int i = 0; i < fields.length; i++) {
+			String name = fields[i].trim().toLowerCase();
+			if (name.equals("mcc"))
+				cols[COL_MCC] = i;
+			else if (name.equals("mnc") || name.equals("net"))
+				cols[COL_MNC] = i;
+			else if (name.equals("lac") || name.equals("area") || name.equals("tac"))
+				cols[COL_LAC] = i;
+			else if (name.equals("cid") || name.equals("cell"))
+				cols[COL_CID] = i;
+			else if (name.equals("lat"))
+				cols[COL_LAT] = i;
+			else if (name.equals("lon"))
+				cols[COL_LON] = i;
+			else if (name.equals("range"))
+				cols[COL_RANGE] = i;
+			else if (name.equals("radio"))
+				cols[COL_RADIO] = i;
+		}
+		if ((cols[COL_MCC] < 0) && (cols[COL_LAT] < 0) && (cols[COL_LON] < 0))
+			return null;
+		for (int i = 0; i < NUM_COLS; i++)
+			if ((cols[i] < 0) && (i != COL_RANGE) && (i != COL_RADIO))
+				throw new IllegalArgumentException("CSV header lacks required columns: " + String.valueOf(fields.length) + " columns found");
+		return cols;
+	}
+
+	/**
+	 * Parses a data row into the current chunk.
+	 *
+	 * @return true on success, false if the row is invalid
+	 */
+	private boolean parseRow(String[] fields, int[] cols, int pos) {
+		try {
+			int mcc = Integer.parseInt(fields[cols[COL_MCC]].trim());
+			int mnc = Integer.parseInt(fields[cols[COL_MNC]].trim());
+			int lac = Integer.parseInt(fields[cols[COL_LAC]].trim());
+			int cid = Integer.parseInt(fields[cols[COL_CID]].trim());
+			double lat = Double.parseDouble(fields[cols[COL_LAT]].trim());
+			double lon = Double.parseDouble(fields[cols[COL_LON]].trim());
+			int range = 0;
+			if ((cols[COL_RANGE] >= 0) && (cols[COL_RANGE] < fields.length) && (fields[cols[COL_RANGE]].trim().length() > 0))
+				range = (int) Double.parseDouble(fields[cols[COL_RANGE]].trim());
+			int radio = CellDatabase.RADIO_UNKNOWN;
+			if (cols[COL_RADIO] >= 0) {
+				radio = parseRadio(fields[cols[COL_RADIO]].trim());
+				if (radio == CellDatabase.RADIO_UNKNOWN)
+					return false;
+			}
+			long key = CellDatabase.getKey(mcc, mnc, lac, cid);
+			if ((key == CellDatabase.NOT_FOUND) || (Math.abs(lat) > 90) || (Math.abs(lon) > 180))
+				return false;
+			chunkKeys[pos] = key;
+			chunkLat[pos] = (int) Math.round(lat * CellDatabase.COORD_SCALE);
+			chunkLon[pos] = (int) Math.round(lon * CellDatabase.COORD_SCALE);
+			chunkRange[pos] = CellDatabase.packRange(radio, range);
+			chunkSeq[pos] = pos;
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Converts the name of a radio type, as used in CSV exports, into one of
+	 * the {@code RADIO_*} constants of {@link CellDatabase}.
+	 *
+	 * @return The radio type, or {@link CellDatabase#RADIO_UNKNOWN} if the name is not recognized
+	 */
+	private static int parseRadio(String name) {
+		if (name.equalsIgnoreCase("GSM"))
+			return CellDatabase.RADIO_GSM;
+		else if (name.equalsIgnoreCase("UMTS"))
+			return CellDatabase.RADIO_UMTS;
+		else if (name.equalsIgnoreCase("LTE"))
+			return CellDatabase.RADIO_LTE;
+		else if (name.equalsIgnoreCase("CDMA"))
+			return CellDatabase.RADIO_CDMA;
+		return CellDatabase.RADIO_UNKNOWN;
+	}
+
+	/**
+	 * Sorts the first {@code len} rows of the current chunk and writes them to a temporary run file.
+	 */
+	private File writeRun(int len) throws IOException {
+		sort(0, len - 1);
+		File run = File.createTempFile("celldb", ".run", tempDir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+		try {
+			for (int i = 0; i < len; i++) {
+				out.writeLong(chunkKeys[i]);
+				out.writeInt(chunkLat[i]);
+				out.writeInt(chunkLon[i]);
+				out.writeInt(chunkRange[i]);
+			}
+		} finally {
+			out.close();
+		}
+		return run;
+	}
+
+	/**
+	 * Merges sorted run files into the final database.
+	 * <p>
+	 * Keys are written to the output file directly, while records go into
+	 * a temporary file which is appended to the output once all keys have
+	 * been written. Eventually the header is rewritten with the final count.
+	 */
+	private int merge(List<File> runs, File output) throws IOException {
+		int n = runs.size();
+		Run[] heap = new Run[n];
+		int heapSize = 0;
+		File recordFile = File.createTempFile("celldb", ".rec", tempDir);
+		DataOutputStream keyOut = null;
+		DataOutputStream recOut = null;
+		int count = 0;
+
+		try {
+			keyOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), BUFFER_SIZE));
+			recOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordFile), BUFFER_SIZE));
+
+			keyOut.writeInt(CellDatabase.MAGIC);
+			keyOut.writeInt(CellDatabase.VERSION);
+			keyOut.writeInt(0); // count, filled in later
+			keyOut.writeInt(0);
+
+			for (int i = 0; i < n; i++) {
+				Run run = new Run(runs.get(i), i);
+				if (run.advance()) {
+					heap[heapSize] = run;
+					siftUp(heap, heapSize);
+					heapSize++;
+				} else
+					run.close();
+			}
+
+			boolean hasLast = false;
+			long lastKey = 0;
+			int lastRadio = 0;
+			while (heapSize > 0) {
+				Run run = heap[0];
+				int radio = run.range >>> 24;
+				if (hasLast && (run.key == lastKey) && (radio == lastRadio))
+					rowsDuplicate++;
+				else {
+					keyOut.writeLong(run.key);
+					recOut.writeInt(run.lat);
+					recOut.writeInt(run.lon);
+					recOut.writeInt(run.range);
+					count++;
+					lastKey = run.key;
+					lastRadio = radio;
+					hasLast = true;
+				}
+				if (!run.advance()) {
+					run.close();
+					heapSize--;
+					heap[0] = heap[heapSize];
+					heap[heapSize] = null;
+				}
+				siftDown(heap, heapSize, 0);
+			}
+
+			recOut.close();
+			recOut = null;
+
+			// append records to output
+			InputStream recIn = new BufferedInputStream(new FileInputStream(recordFile), BUFFER_SIZE);
+			try {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int len;
+				while ((len = recIn.read(buf)) > 0)
+					keyOut.write(buf, 0, len);
+			} finally {
+				recIn.close();
+			}
+			keyOut.close();
+			keyOut = null;
+
+			RandomAccessFile raf = new RandomAccessFile(output, "rw");
+			try {
+				raf.seek(8);
+				raf.writeInt(count);
+			} finally {
+				raf.close();
+			}
+			return count;
+		} finally {
+			for (int i = 0; i < heapSize; i++)
+				heap[i].close();
+			if (keyOut != null)
+				keyOut.close();
+			if (recOut != null)
+				recOut.close();
+			recordFile.delete();
+		}
+	}
+
+	private static void siftUp(Run[] heap, int pos) {
+		while (pos > 0) {
+			int parent = (pos - 1) >> 1;
+			if (!heap[pos].precedes(heap[parent]))
+				break;
+			swap(heap, parent, pos);
+			pos = parent;
+		}
+	}
+
+	private static void siftDown(Run[] heap, int size, int pos) {
+		while (true) {
+			int min = pos;
+			int left = 2 * pos + 1;
+			int right = left + 1;
+			if ((left < size) && heap[left].precedes(heap[min]))
+				min = left;
+			if ((right < size) && heap[right].precedes(heap[min]))
+				min = right;
+			if (min == pos)
+				return;
+			swap(heap, min, pos);
+			pos = min;
+		}
+	}
+
+	private static void swap(Run[] heap, int i, int j) {
+		Run tmp = heap[i];
+		heap[i] = heap[j];
+		heap[j] = tmp;
+	}
+
+	/**
+	 * Compares two rows of the current chunk by key, radio type and position in the input.
+	 *
+	 * @return A negative value, zero or a positive value if row {@code i} sorts before, equal to or after row
+	 * {@code j}
+	 */
+	private int compareRows(int i, int j) {
+		if (chunkKeys[i] != chunkKeys[j])
+			return (chunkKeys[i] < chunkKeys[j]) ? -1 : 1;
+		int radioI = chunkRange[i] >>> 24;
+		int radioJ = chunkRange[j] >>> 24;
+		if (radioI != radioJ)
+			return radioI - radioJ;
+		return chunkSeq[i] - chunkSeq[j];
+	}
+
+	/**
+	 * Sorts the current chunk by key, radio type and position in the input.
+	 * <p>
+	 * This is an insertion sort for small ranges and a quicksort otherwise,
+	 * operating on the parallel primitive arrays of the chunk so that no
+	 * objects need to be created per row. Quicksort is not stable, but since
+	 * the position in the input is part of the sort order, no two rows compare
+	 * as equal and the result is the same as that of a stable sort.
+	 */
+	private void sort(int lo, int hi) {
+		while (hi - lo > 16) {
+			int mid = (lo + hi) >>> 1;
+			// median of three
+			if (compareRows(mid, lo) < 0)
+				swapRows(mid, lo);
+			if (compareRows(hi, lo) < 0)
+				swapRows(hi, lo);
+			if (compareRows(hi, mid) < 0)
+				swapRows(hi, mid);
+			// move the pivot out of the way so that swaps do not move it
+			swapRows(mid, hi - 1);
+			int pivot = hi - 1;
+			int i = lo;
+			int j = hi - 1;
+			while (true) {
+				while (compareRows(++i, pivot) < 0);
+				while (compareRows(--j, pivot) > 0);
+				if (i >= j)
+					break;
+				swapRows(i, j);
+			}
+			swapRows(i, hi - 1);
+			// recurse into the smaller half to bound stack depth
+			if (i - lo < hi - i) {
+				sort(lo, i - 1);
+				lo = i + 1;
+			} else {
+				sort(i + 1, hi);
+				hi = i - 1;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++)
+			for (int j = i; (j > lo) && (compareRows(j - 1, j) > 0); j--)
+				swapRows(j - 1, j);
+	}
+
+	private void swapRows(int i, int j) {
+		long k = chunkKeys[i];
+		chunkKeys[i] = chunkKeys[j];
+		chunkKeys[j] = k;
+		int t = chunkLat[i];
+		chunkLat[i] = chunkLat[j];
+		chunkLat[j] = t;
+		t = chunkLon[i];
+		chunkLon[i] = chunkLon[j];
+		chunkLon[j] = t;
+		t = chunkRange[i];
+		chunkRange[i] = chunkRange[j];
+		chunkRange[j] = t;
+		t = chunkSeq[i];
+		chunkSeq[i] = chunkSeq[j];
+		chunkSeq[j] = t;
+	}
+
+	/**
+	 * A temporary run file being merged, positioned at its current record.
+	 */
+	private static class Run {
+		private final DataInputStream in;
+		/** The position of the run in the input, used to break ties. */
+		private final int index;
+
+		long key;
+		int lat;
+		int lon;
+		int range;
+
+		Run(File file, int index) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+			this.index = index;
+		}
+
+		/**
+		 * Reads the next record.
+		 *
+		 * @return true if a record was read, false if the end of the run has been reached
+		 */
+		boolean advance() throws IOException {
+			try {
+				key = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			lat = in.readInt();
+			lon = in.readInt();
+			range = in.readInt();
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Whether the current record of this run sorts before that of {@code other}.
+		 * <p>
+		 * Records are ordered by key and radio type. On equal records, the run
+		 * with the lower index comes first, so that the first occurrence in the
+		 * input wins.
+		 */
+		boolean precedes(Run other) {
+			if (key != other.key)
+				return key < other.key;
+			int radio = range >>> 24;
+			int otherRadio = other.range >>> 24;
+			if (radio != otherRadio)
+				return radio < otherRadio;
+			return index < other.index;
+		}
+	}
+}
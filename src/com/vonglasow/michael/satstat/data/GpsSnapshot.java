@@ -0,0 +1,154 @@
+package com.vonglasow.michael.satstat.data;
+
+/**
+ * A snapshot of the GPS status at a given time.
+ * <p>
+ * The snapshot holds data on all satellites in view, in primitive arrays
+ * indexed from 0 to {@link #getCount()} - 1, along with the number of
+ * satellites used in the fix and the time to first fix. It is built once per
+ * status change and then handed to all consumers, which can iterate over it
+ * as often as they need without any further IPC or object allocation.
+ * <p>
+ * Snapshots are filled by their producer, usually a {@link GpsSnapshotPool},
+ * which recycles them. Producers use {@link #clear()}, {@link #add(int, float, float, float, boolean)},
+ * {@link #setTime(long)} and {@link #setTimeToFirstFix(int)}, or
+ * {@link #set(GpsSnapshot)}, to fill a snapshot before handing it out. Consumers must treat snapshots as
+ * immutable and must not hold on to a snapshot once they have received a
+ * newer one from the same producer.
+ */
+public final class GpsSnapshot {
+	/** Maximum number of satellites in a snapshot (same as the internal limit of {@code GpsStatus}). */
+	public static final int MAX_SATELLITES = 255;
+
+	private final int[] prn = new int[MAX_SATELLITES];
+	private final float[] snr = new float[MAX_SATELLITES];
+	private final float[] azimuth = new float[MAX_SATELLITES];
+	private final float[] elevation = new float[MAX_SATELLITES];
+	private final boolean[] usedInFix = new boolean[MAX_SATELLITES];
+	private int count = 0;
+	private int usedCount = 0;
+	private int timeToFirstFix = 0;
+	private long time = 0;
+
+	public GpsSnapshot() {
+	}
+
+	/**
+	 * Clears all data, in preparation for filling the snapshot with new data.
+	 */
+	public void clear() {
+		count = 0;
+		usedCount = 0;
+		timeToFirstFix = 0;
+		time = 0;
+	}
+
+	/**
+	 * Replaces all data with a copy of the data in {@code other}.
+	 */
+	public void set(GpsSnapshot other) {
+		count = other.count;
+		System.arraycopy(other.prn, 0, prn, 0, count);
+		System.arraycopy(other.snr, 0, snr, 0, count);
+		System.arraycopy(other.azimuth, 0, azimuth, 0, count);
+		System.arraycopy(other.elevation, 0, elevation, 0, count);
+		System.arraycopy(other.usedInFix, 0, usedInFix, 0, count);
+		usedCount = other.usedCount;
+		timeToFirstFix = other.timeToFirstFix;
+		time = other.time;
+	}
+
+	/**
+	 * Adds a satellite. Satellites in excess of {@link #MAX_SATELLITES} are ignored.
+	 */
+	public void add(int prn, float snr, float azimuth, float elevation, boolean usedInFix) {
+		if (count >= MAX_SATELLITES)
+			return;
+		this.prn[count] = prn;
+		this.snr[count] = snr;
+		this.azimuth[count] = azimuth;
+		this.elevation[count] = elevation;
+		this.usedInFix[count] = usedInFix;
+		if (usedInFix)
+			usedCount++;
+		count++;
+	}
+
+	/**
+	 * Sets the time at which the snapshot was taken, as UTC time in milliseconds.
+	 */
+	public void setTime(long time) {
+		this.time = time;
+	}
+
+	/**
+	 * Sets the time to first fix in milliseconds.
+	 */
+	public void setTimeToFirstFix(int timeToFirstFix) {
+		this.timeToFirstFix = timeToFirstFix;
+	}
+
+	/**
+	 * Returns the azimuth of the satellite at {@code index}, in degrees.
+	 */
+	public float getAzimuth(int index) {
+		return azimuth[index];
+	}
+
+	/**
+	 * Returns the number of satellites in view.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the elevation of the satellite at {@code index}, in degrees.
+	 */
+	public float getElevation(int index) {
+		return elevation[index];
+	}
+
+	/**
+	 * Returns the NMEA ID of the satellite at {@code index}.
+	 */
+	public int getPrn(int index) {
+		return prn[index];
+	}
+
+	/**
+	 * Returns the signal-to-noise ratio of the satellite at {@code index}, in dB.
+	 */
+	public float getSnr(int index) {
+		return snr[index];
+	}
+
+	/**
+	 * Returns the time at which the snapshot was taken, as UTC time in
+	 * milliseconds, in the same time base as {@code Location.getTime()}.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the time to first fix in milliseconds.
+	 */
+	public int getTimeToFirstFix() {
+		return timeToFirstFix;
+	}
+
+	/**
+	 * Returns the number of satellites used in the current fix.
+	 */
+	public int getUsedCount() {
+		return usedCount;
+	}
+
+	/**
+	 * Whether the satellite at {@code index} was used in the current fix.
+	 */
+	public boolean isUsedInFix(int index) {
+		return usedInFix[index];
+	}
+}
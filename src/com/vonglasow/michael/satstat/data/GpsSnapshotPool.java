@@ -0,0 +1,79 @@
+package com.vonglasow.michael.satstat.data;
+
+import android.location.GpsSatellite;
+import android.location.GpsStatus;
+import android.location.LocationManager;
+
+/**
+ * Builds {@link GpsSnapshot}s and recycles them.
+ * <p>
+ * The pool holds a small, fixed number of snapshots which are reused in
+ * turn, and a {@link GpsStatus} instance which is passed to
+ * {@link LocationManager#getGpsStatus(GpsStatus)} so that no new one needs
+ * to be created on every status change. A snapshot returned by
+ * {@link #obtain(LocationManager)} remains unchanged until
+ * {@link #POOL_SIZE} further snapshots have been obtained.
+ * <p>
+ * Snapshots from other sources, such as an NMEA replay, can be copied into
+ * the pool with {@link #obtain(GpsSnapshot)}, so that consumers receive
+ * snapshots from a single pool regardless of their source.
+ * <p>
+ * Each component which listens for GPS status changes should have its own
+ * pool. Pools are not thread-safe.
+ */
+public class GpsSnapshotPool {
+	/** Number of snapshots in the pool. */
+	public static final int POOL_SIZE = 3;
+
+	private final GpsSnapshot[] snapshots = new GpsSnapshot[POOL_SIZE];
+	private int next = 0;
+	private GpsStatus status = null;
+	private GpsSnapshot last = null;
+
+	public GpsSnapshotPool() {
+		for (int i = 0; i < POOL_SIZE; i++)
+			snapshots[i] = new GpsSnapshot();
+	}
+
+	/**
+	 * Returns the snapshot most recently obtained from this pool, or {@code null}.
+	 */
+	public GpsSnapshot getLast() {
+		return last;
+	}
+
+	/**
+	 * Obtains a snapshot of the current GPS status.
+	 * @param locationManager The location manager from which to retrieve GPS status
+	 * @return The snapshot
+	 */
+	public GpsSnapshot obtain(LocationManager locationManager) {
+		status = locationManager.getGpsStatus(status);
+		GpsSnapshot snapshot = next();
+		snapshot.clear();
+		for (GpsSatellite sat : status.getSatellites())
+			snapshot.add(sat.getPrn(), sat.getSnr(), sat.getAzimuth(), sat.getElevation(), sat.usedInFix());
+		snapshot.setTimeToFirstFix(status.getTimeToFirstFix());
+		snapshot.setTime(System.currentTimeMillis());
+		last = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * Obtains a copy of a snapshot.
+	 * @param source The snapshot to copy, which is not modified
+	 * @return The copy
+	 */
+	public GpsSnapshot obtain(GpsSnapshot source) {
+		GpsSnapshot snapshot = next();
+		snapshot.set(source);
+		last = snapshot;
+		return snapshot;
+	}
+
+	private GpsSnapshot next() {
+		GpsSnapshot snapshot = snapshots[next];
+		next = (next + 1) % POOL_SIZE;
+		return snapshot;
+	}
+}
@@ -0,0 +1,96 @@
+package com.vonglasow.michael.satstat.data;
+
+/**
+ * A hash map from {@code long} keys to {@code int} values.
+ * <p>
+ * Unlike a {@code HashMap<Long, Integer>}, this map does not box keys or
+ * values and creates no objects except when growing. It uses open addressing
+ * with linear probing. Entries cannot be removed individually.
+ */
+class LongIntHashMap {
+	/** Value returned by {@link #get(long)} if the key is not present. */
+	static final int NO_VALUE = -1;
+
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size = 0;
+	private int threshold;
+
+	LongIntHashMap(int initialCapacity) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < initialCapacity)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new int[capacity];
+		used = new boolean[capacity];
+		threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Returns the value for a key, or {@link #NO_VALUE} if the key is not present.
+	 */
+	int get(long key) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (used[i]) {
+			if (keys[i] == key)
+				return values[i];
+			i = (i + 1) & mask;
+		}
+		return NO_VALUE;
+	}
+
+	/**
+	 * Sets the value for a key, replacing any previous value.
+	 */
+	void put(long key, int value) {
+		if (size >= threshold)
+			grow();
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (used[i]) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		used[i] = true;
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		for (int i = 0; i < used.length; i++)
+			used[i] = false;
+		size = 0;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		boolean[] oldUsed = used;
+		allocate(keys.length * 2);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldUsed[i])
+				put(oldKeys[i], oldValues[i]);
+	}
+}
@@ -0,0 +1,221 @@
+package com.vonglasow.michael.satstat.data;
+
+/**
+ * Maps satellites to constellations and to positions in a chart with one bar per satellite.
+ * <p>
+ * Satellites are identified by their NMEA ID. The ID space is divided into
+ * fixed blocks, each of which belongs to one constellation. Some blocks are
+ * extensions of the preceding one (e.g. IDs which are reserved for future
+ * satellites of a constellation) and are shown only together with it.
+ * Blocks become visible once a satellite from them has been seen and stay
+ * visible from then on, so that bars do not move around as satellites come
+ * and go.
+ * <p>
+ * Constellations are looked up in a static table. Bar positions are kept in
+ * a table indexed by NMEA ID, which is rebuilt only when the set of visible
+ * blocks changes; looking up a satellite is then a single array access. The
+ * model also provides the positions of the grid lines between bars.
+ * Instances are not thread-safe.
+ */
+public class SatelliteModel {
+	public static final int CONSTELLATION_GPS = 0;
+	public static final int CONSTELLATION_SBAS = 1;
+	public static final int CONSTELLATION_GLONASS = 2;
+	public static final int CONSTELLATION_QZSS = 3;
+	public static final int CONSTELLATION_BEIDOU = 4;
+	public static final int CONSTELLATION_GALILEO = 5;
+	public static final int CONSTELLATION_OTHER = 6;
+	public static final int CONSTELLATION_COUNT = 7;
+
+	private static final String[] CONSTELLATION_NAMES = {"GPS", "SBAS", "GLONASS", "QZSS", "BeiDou", "Galileo", "other"};
+
+	/** The highest NMEA ID supported. */
+	public static final int MAX_NMEA_ID = 336;
+
+	/** Grid line between two bars in the same block, drawn after every 4th ID. */
+	public static final int LINE_NORMAL = 1;
+
+	/** Grid line at the end of a constellation. */
+	public static final int LINE_STRONG = 2;
+
+	/*
+	 * Blocks of NMEA IDs:
+	 * 1–32: GPS
+	 * 33–54: Various SBAS systems (EGNOS, WAAS, SDCM, GAGAN, MSAS) – some IDs still unused
+	 * 55–64: not used (might be assigned to further SBAS systems)
+	 * 65–88: GLONASS
+	 * 89–96: GLONASS (future extensions?)
+	 * 97–192: not used (some devices report SBAS as 120–158 here)
+	 * 193–195: QZSS
+	 * 196–200: QZSS (future extensions?)
+	 * 201–235: BeiDou
+	 * 236–263: BeiDou (future extensions?)
+	 * 301–336: Galileo
+	 */
+	private static final int[] BLOCK_FIRST = {1, 33, 55, 65, 89, 97, 193, 196, 201, 236, 301};
+	private static final int[] BLOCK_LAST = {32, 54, 64, 88, 96, 192, 195, 200, 235, 263, 336};
+	private static final int[] BLOCK_CONSTELLATION = {
+		CONSTELLATION_GPS, CONSTELLATION_SBAS, CONSTELLATION_SBAS, CONSTELLATION_GLONASS, CONSTELLATION_GLONASS,
+		CONSTELLATION_OTHER, CONSTELLATION_QZSS, CONSTELLATION_QZSS, CONSTELLATION_BEIDOU, CONSTELLATION_BEIDOU,
+		CONSTELLATION_GALILEO
+	};
+	/** Whether a block is an extension of the preceding one. */
+	private static final boolean[] BLOCK_IS_EXTENSION = {false, false, true, false, true, false, false, true, false, true, false};
+	private static final int BLOCK_COUNT = BLOCK_FIRST.length;
+
+	/** Block for each NMEA ID, -1 if unsupported. */
+	private static final byte[] ID_BLOCK = new byte[MAX_NMEA_ID + 1];
+
+	/** Constellation for each NMEA ID. */
+	private static final byte[] ID_CONSTELLATION = new byte[MAX_NMEA_ID + 1];
+
+	static {
+		for (int id = 0; id <= MAX_NMEA_ID; id++) {
+			ID_BLOCK[id] = -1;
+			ID_CONSTELLATION[id] = CONSTELLATION_OTHER;
+		}
+		for (int b = 0; b < BLOCK_COUNT; b++)
+			for (int id = BLOCK_FIRST[b]; id <= BLOCK_LAST[b]; id++) {
+				ID_BLOCK[id] = (byte) b;
+				ID_CONSTELLATION[id] = (byte) BLOCK_CONSTELLATION[b];
+			}
+		for (int id = 120; id <= 158; id++)
+			ID_CONSTELLATION[id] = CONSTELLATION_SBAS;
+	}
+
+	/** Bitmask of visible blocks. */
+	private int visibleBlocks = 0;
+
+	/** Bar position for each NMEA ID, 1-based, 0 if not shown. */
+	private final int[] barPos = new int[MAX_NMEA_ID + 1];
+	private int barCount = 0;
+
+	/* Grid lines: position (after which bar), type */
+	private final int[] linePos = new int[MAX_NMEA_ID];
+	private final int[] lineType = new int[MAX_NMEA_ID];
+	private int lineCount = 0;
+
+	/* IDs seen which are outside any block */
+	private int unsupportedCount = 0;
+
+	public SatelliteModel() {
+		rebuild();
+	}
+
+	/**
+	 * Returns the constellation to which a satellite belongs, based on its NMEA ID.
+	 */
+	public static int getConstellation(int nmeaId) {
+		if ((nmeaId < 0) || (nmeaId > MAX_NMEA_ID))
+			return CONSTELLATION_OTHER;
+		return ID_CONSTELLATION[nmeaId];
+	}
+
+	/**
+	 * Returns a short English name for a constellation.
+	 */
+	public static String getConstellationName(int constellation) {
+		return CONSTELLATION_NAMES[constellation];
+	}
+
+	/**
+	 * Makes the blocks of all satellites in a snapshot visible.
+	 *
+	 * @return true if the set of visible blocks has changed, requiring bar and grid line positions to be re-read
+	 */
+	public boolean update(GpsSnapshot snapshot) {
+		int blocks = visibleBlocks;
+		for (int i = 0; i < snapshot.getCount(); i++) {
+			int id = snapshot.getPrn(i);
+			int b = ((id >= 0) && (id <= MAX_NMEA_ID)) ? ID_BLOCK[id] : -1;
+			if (b < 0) {
+				unsupportedCount++;
+				continue;
+			}
+			blocks |= 1 << b;
+			// most likely an extended range, display the lower range, too
+			if (BLOCK_IS_EXTENSION[b])
+				blocks |= 1 << (b - 1);
+		}
+		if (blocks == visibleBlocks)
+			return false;
+		visibleBlocks = blocks;
+		rebuild();
+		return true;
+	}
+
+	/**
+	 * Returns the number of bars.
+	 */
+	public int getBarCount() {
+		return barCount;
+	}
+
+	/**
+	 * Returns the position of the bar for a satellite, starting at 1, or 0 if the satellite is not shown.
+	 */
+	public int getBarPosition(int nmeaId) {
+		if ((nmeaId < 0) || (nmeaId > MAX_NMEA_ID))
+			return 0;
+		return barPos[nmeaId];
+	}
+
+	/**
+	 * Returns the number of grid lines between bars.
+	 */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/**
+	 * Returns the position of a grid line, i.e. the position of the bar after which it is drawn.
+	 */
+	public int getLinePosition(int index) {
+		return linePos[index];
+	}
+
+	/**
+	 * Returns the type of a grid line, {@link #LINE_NORMAL} or {@link #LINE_STRONG}.
+	 */
+	public int getLineType(int index) {
+		return lineType[index];
+	}
+
+	/**
+	 * Returns the number of satellites encountered whose NMEA ID is not supported.
+	 */
+	public int getUnsupportedCount() {
+		return unsupportedCount;
+	}
+
+	/**
+	 * Rebuilds the bar position table and grid lines from {@link #visibleBlocks}.
+	 * <p>
+	 * If no block is visible, the GPS block is shown.
+	 */
+	private void rebuild() {
+		int blocks = (visibleBlocks != 0) ? visibleBlocks : 1;
+		for (int id = 0; id <= MAX_NMEA_ID; id++)
+			barPos[id] = 0;
+		barCount = 0;
+		lineCount = 0;
+		for (int b = 0; b < BLOCK_COUNT; b++) {
+			if ((blocks & (1 << b)) == 0)
+				continue;
+			boolean isContinued = (b + 1 < BLOCK_COUNT) && BLOCK_IS_EXTENSION[b + 1] && ((blocks & (1 << (b + 1))) != 0);
+			for (int id = BLOCK_FIRST[b]; id <= BLOCK_LAST[b]; id++) {
+				barPos[id] = ++barCount;
+				int type = 0;
+				if (id == BLOCK_LAST[b])
+					type = isContinued ? LINE_NORMAL : LINE_STRONG;
+				else if ((id % 4) == 0)
+					type = LINE_NORMAL;
+				if (type != 0) {
+					linePos[lineCount] = barCount;
+					lineType[lineCount] = type;
+					lineCount++;
+				}
+			}
+		}
+	}
+}
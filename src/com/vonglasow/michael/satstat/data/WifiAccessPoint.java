@@ -0,0 +1,84 @@
+package com.vonglasow.michael.satstat.data;
+
+import com.vonglasow.michael.satstat.WifiCapabilities;
+
+import android.net.wifi.ScanResult;
+
+/**
+ * A Wi-Fi access point, as seen in a scan.
+ * <p>
+ * Instances are kept across scans and updated in place. The capabilities
+ * string is parsed into a bit mask only when it changes.
+ */
+public class WifiAccessPoint {
+	private final String bssid;
+	private String ssid;
+	private String capabilities;
+	private int flags;
+	private int frequency;
+	private int level;
+
+	/** The scan in which this access point was last seen */
+	int generation;
+
+	public WifiAccessPoint(String bssid) {
+		this.bssid = bssid;
+	}
+
+	public String getBssid() {
+		return bssid;
+	}
+
+	/**
+	 * Returns the capabilities of the access point.
+	 * @return Any combination of the {@code FLAG_*} constants defined in {@link WifiCapabilities}
+	 */
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * Returns the frequency in MHz.
+	 */
+	public int getFrequency() {
+		return frequency;
+	}
+
+	/**
+	 * Returns the signal level in dBm.
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	public String getSsid() {
+		return ssid;
+	}
+
+	/**
+	 * Updates the access point with data from a scan result.
+	 * @param result A scan result with the same BSSID as this access point
+	 * @return true if any of the data has changed, false if not
+	 */
+	boolean update(ScanResult result) {
+		boolean changed = false;
+		if (level != result.level) {
+			level = result.level;
+			changed = true;
+		}
+		if (frequency != result.frequency) {
+			frequency = result.frequency;
+			changed = true;
+		}
+		if ((ssid == null) || !ssid.equals(result.SSID)) {
+			ssid = result.SSID;
+			changed = true;
+		}
+		if ((capabilities == null) || !capabilities.equals(result.capabilities)) {
+			capabilities = result.capabilities;
+			flags = WifiCapabilities.getCapabilityFlags(capabilities);
+			changed = true;
+		}
+		return changed;
+	}
+}
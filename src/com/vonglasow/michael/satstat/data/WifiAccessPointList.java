@@ -0,0 +1,101 @@
+package com.vonglasow.michael.satstat.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import android.net.wifi.ScanResult;
+
+/**
+ * The Wi-Fi access points in range, keyed by BSSID.
+ * <p>
+ * Each scan is merged into the list: access points are updated in place,
+ * new ones are added and those which were not part of the scan are removed.
+ * In addition, the list maintains a sort order for display, with the
+ * selected access point (if any) first and all others in descending order of
+ * signal level. Sorting is stable, so access points with equal signal levels
+ * keep their relative order between scans.
+ */
+public class WifiAccessPointList extends HashMap<String, WifiAccessPoint> {
+	private static final long serialVersionUID = 2391645731962837207L;
+
+	private final ArrayList<WifiAccessPoint> sorted = new ArrayList<WifiAccessPoint>();
+	private String selectedBssid = "";
+	private int generation = 0;
+
+	private final Comparator<WifiAccessPoint> comparator = new Comparator<WifiAccessPoint>() {
+		@Override
+		public int compare(WifiAccessPoint lhs, WifiAccessPoint rhs) {
+			boolean lSelected = lhs.getBssid().equals(selectedBssid);
+			boolean rSelected = rhs.getBssid().equals(selectedBssid);
+			if (lSelected != rSelected)
+				return lSelected ? -1 : 1;
+			return rhs.getLevel() - lhs.getLevel();
+		}
+	};
+
+	/**
+	 * Returns the access points in display order.
+	 * <p>
+	 * The list returned is owned by this instance and must not be modified.
+	 * It remains valid until the next call to {@link #update(List)} or
+	 * {@link #setSelected(String)}.
+	 */
+	public List<WifiAccessPoint> getSorted() {
+		return sorted;
+	}
+
+	/**
+	 * Selects an access point, which will be placed first in the sort order.
+	 * @param bssid The BSSID of the access point
+	 * @return true if the selection has changed, false if not
+	 */
+	public boolean setSelected(String bssid) {
+		if (selectedBssid.equals(bssid))
+			return false;
+		selectedBssid = (bssid != null) ? bssid : "";
+		Collections.sort(sorted, comparator);
+		return true;
+	}
+
+	/**
+	 * Merges the results of a scan into the list.
+	 * @param results The scan results
+	 * @return true if access points were added, removed or changed, false if the scan brought nothing new
+	 */
+	public boolean update(List<ScanResult> results) {
+		boolean changed = false;
+		generation++;
+		if (results != null)
+			for (ScanResult result : results) {
+				if (result.BSSID == null)
+					continue;
+				WifiAccessPoint ap = this.get(result.BSSID);
+				if (ap == null) {
+					ap = new WifiAccessPoint(result.BSSID);
+					this.put(result.BSSID, ap);
+					sorted.add(ap);
+					changed = true;
+				}
+				if (ap.update(result))
+					changed = true;
+				ap.generation = generation;
+			}
+
+		for (Iterator<WifiAccessPoint> it = sorted.iterator(); it.hasNext(); ) {
+			WifiAccessPoint ap = it.next();
+			if (ap.generation != generation) {
+				it.remove();
+				this.remove(ap.getBssid());
+				changed = true;
+			}
+		}
+
+		if (changed)
+			Collections.sort(sorted, comparator);
+		return changed;
+	}
+}
@@ -0,0 +1,933 @@
+package com.vonglasow.michael.satstat.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.vonglasow.michael.satstat.location.WifiLocationLookup;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * A persistent database of Wi-Fi access point observations.
+ * <p>
+ * Each time an access point is seen while the current position is known,
+ * an observation is added to the store. Observations are appended to a log
+ * file and aggregated into a running estimate of the access point's
+ * position: a weighted centroid of all positions at which the access point
+ * was seen, along with its variance. Observations are weighted by signal
+ * strength (stronger signals indicate the access point is closer) and the
+ * accuracy of the position.
+ * <p>
+ * Access points are indexed in a grid of {@link #GRID_SIZE} degrees, which
+ * allows fast queries for access points near a given position. Lookups by
+ * BSSID use a hash table. Both work on primitive arrays and do not create
+ * objects.
+ * <p>
+ * Adding an observation only updates in-memory data and appends it to a
+ * buffer. Writing to storage is done on a background thread, in batches,
+ * either every {@link #FLUSH_INTERVAL} milliseconds or when the buffer is
+ * half full. Periodically the aggregates are written to a snapshot file,
+ * along with the length of the log at that time. When the store is opened,
+ * it loads the snapshot and replays only the part of the log written
+ * afterwards. Loading happens on the background thread as well; until it has
+ * finished, observations are logged but lookups find nothing.
+ * <p>
+ * The SSID and capabilities are kept only for the last observation of each
+ * access point and stored in the snapshot, not in the log.
+ * <p>
+ * There is one store per process, obtained through
+ * {@link #getInstance(Context)}, so that no two instances ever write to the
+ * same files. Components using the store call {@link #start(Object)} and
+ * {@link #stop(Object)}; when the last one stops, all pending data is
+ * written.
+ * <p>
+ * All public methods are thread-safe.
+ */
+public class WifiApStore implements WifiLocationLookup {
+	private static final String TAG = "WifiApStore";
+
+	/** File name of the observation log. */
+	public static final String LOG_FILE_NAME = "wifi_obs.bin";
+
+	/** File name of the aggregate snapshot. */
+	public static final String SNAPSHOT_FILE_NAME = "wifi_aps.bin";
+
+	/** Size of a grid cell, in degrees. */
+	static final double GRID_SIZE = 0.002;
+
+	/** Interval at which buffered observations are written, in milliseconds. */
+	static final int FLUSH_INTERVAL = 5000;
+
+	/** Number of flushes after which a new snapshot is written. */
+	private static final int SNAPSHOT_INTERVAL = 12;
+
+	/** Maximum number of observations buffered in memory. */
+	private static final int BUFFER_CAPACITY = 4096;
+
+	/*
+	 * Log record: time (long), BSSID (long), latitude and longitude (int,
+	 * 1e-7 degrees), accuracy (short, m), frequency (short, MHz), level (byte,
+	 * dBm), flags (byte).
+	 */
+	private static final int LOG_RECORD_SIZE = 30;
+
+	private static final int SNAPSHOT_MAGIC = 0x53535741; // SSWA
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private static final double COORD_SCALE = 1e7;
+
+	/** Meters per degree of latitude. */
+	private static final double METERS_PER_DEGREE = 111195;
+
+	/** Value returned by BSSID lookups if the BSSID is unknown or invalid. */
+	public static final int NOT_FOUND = -1;
+
+	private static WifiApStore instance = null;
+
+	private final File logFile;
+	private final File snapshotFile;
+	private final ScheduledExecutorService executor;
+
+	/* Access point data, indexed by access point number */
+	private int count = 0;
+	private long[] bssids;
+	private String[] ssids;
+	private int[] flags;
+	private int[] frequencies;
+	private int[] observations;
+	private long[] firstSeen;
+	private long[] lastSeen;
+	private double[] weights;
+	private double[] meanLat;
+	private double[] meanLon;
+	private double[] m2Lat;
+	private double[] m2Lon;
+
+	/* Indexes */
+	private final LongIntHashMap bssidIndex = new LongIntHashMap(1024);
+	private final LongIntHashMap gridIndex = new LongIntHashMap(1024);
+	/** Grid cell of each access point */
+	private long[] gridCells;
+	/** Next access point in the same grid cell, or -1 */
+	private int[] gridNext;
+
+	/* Write buffers, swapped on each flush */
+	private ByteBuffer pending = ByteBuffer.allocate(BUFFER_CAPACITY * LOG_RECORD_SIZE);
+	private ByteBuffer writing = ByteBuffer.allocate(BUFFER_CAPACITY * LOG_RECORD_SIZE);
+	private boolean isFlushQueued = false;
+
+	/** Length of the log once all swapped buffers have been written */
+	private long logLength = 0;
+	private int flushesSinceSnapshot = 0;
+	private int droppedObservations = 0;
+	/** Whether the snapshot and log have been loaded */
+	private boolean isLoaded = false;
+	private boolean isClosed = false;
+
+	/** Components which have started the store */
+	private final ArrayList<Object> clients = new ArrayList<Object>();
+	private ScheduledFuture<?> periodicFlush = null;
+
+	/** Copy of the aggregates for the snapshot, reused for each snapshot and only used by the background thread */
+	private final Snapshot snapshot = new Snapshot();
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush(false);
+		}
+	};
+
+	private final Runnable finalFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush(true);
+		}
+	};
+
+	private final Runnable loadTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				long replayFrom = loadSnapshot();
+				replayLog(replayFrom);
+			} catch (IOException e) {
+				Log.w(TAG, "Cannot read data, starting over: " + e.getMessage());
+				count = 0;
+				bssidIndex.clear();
+				gridIndex.clear();
+				// never overwrite the existing log
+				logLength = logFile.length() - logFile.length() % LOG_RECORD_SIZE;
+			}
+			synchronized (WifiApStore.this) {
+				replayPending();
+				isLoaded = true;
+			}
+		}
+	};
+
+	/**
+	 * Returns the store instance, creating it if necessary.
+	 * <p>
+	 * Store files are kept in the external files directory of the app, or in
+	 * its internal files directory if external storage is not available.
+	 * A new instance starts loading its data in the background right away.
+	 */
+	public static synchronized WifiApStore getInstance(Context context) {
+		if (instance == null) {
+			File dir = context.getExternalFilesDir(null);
+			if (dir == null)
+				dir = context.getFilesDir();
+			instance = new WifiApStore(dir);
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a store, starting to load its data in the background.
+	 * <p>
+	 * Outside of tests, use {@link #getInstance(Context)} instead, as there
+	 * must be only one store for a directory.
+	 *
+	 * @param dir The directory for the store files
+	 */
+	WifiApStore(File dir) {
+		logFile = new File(dir, LOG_FILE_NAME);
+		snapshotFile = new File(dir, SNAPSHOT_FILE_NAME);
+		allocate(256);
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.execute(loadTask);
+	}
+
+	/**
+	 * Starts using the store on behalf of a client.
+	 * <p>
+	 * While at least one client uses the store, observations are written to
+	 * storage periodically.
+	 *
+	 * @param client The client, usually an activity or service
+	 */
+	public synchronized void start(Object client) {
+		if (isClosed || clients.contains(client))
+			return;
+		clients.add(client);
+		if (clients.size() == 1)
+			periodicFlush = executor.scheduleWithFixedDelay(flushTask, FLUSH_INTERVAL, FLUSH_INTERVAL,
+					TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops using the store on behalf of a client.
+	 * <p>
+	 * When the last client stops, all pending data is written in the
+	 * background, along with a snapshot. This method does not block.
+	 *
+	 * @param client The client which previously started the store
+	 */
+	public synchronized void stop(Object client) {
+		if (!clients.remove(client) || !clients.isEmpty())
+			return;
+		periodicFlush.cancel(false);
+		periodicFlush = null;
+		executor.execute(finalFlushTask);
+	}
+
+	/**
+	 * Writes all pending data and shuts down the background thread.
+	 * <p>
+	 * Writing happens in the background; this method does not block. The
+	 * store cannot be used afterwards. This is for tests only, as the
+	 * instance returned by {@link #getInstance(Context)} lives as long as
+	 * the process.
+	 */
+	synchronized void close() {
+		if (isClosed)
+			return;
+		isClosed = true;
+		executor.execute(finalFlushTask);
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits until all work queued on the background thread so far has been done.
+	 */
+	void awaitBackground() throws InterruptedException {
+		try {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Waits until the background thread has terminated after {@link #close()}.
+	 */
+	void awaitTermination() throws InterruptedException {
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Whether the data of the store has been loaded.
+	 */
+	public synchronized boolean isLoaded() {
+		return isLoaded;
+	}
+
+	/**
+	 * Adds an observation.
+	 *
+	 * @param time The time of the observation, in milliseconds since the epoch
+	 * @param bssid The BSSID of the access point
+	 * @param ssid The SSID of the access point
+	 * @param frequency The frequency in MHz
+	 * @param level The signal level in dBm
+	 * @param capabilities The capabilities of the access point, as a bit mask
+	 * @param lat The latitude of the observer
+	 * @param lon The longitude of the observer
+	 * @param accuracy The accuracy of the observer's position, in meters
+	 * @return true if the observation was added, false if the BSSID is invalid or the store has been closed
+	 */
+	public synchronized boolean add(long time, String bssid, String ssid, int frequency, int level,
+			int capabilities, double lat, double lon, float accuracy) {
+		long key = parseBssid(bssid);
+		if ((key == NOT_FOUND) || isClosed)
+			return false;
+		if (isLoaded) {
+			// else it is aggregated from the buffer once loading has finished
+			int index = aggregate(key, time, frequency, level, lat, lon, accuracy);
+			ssids[index] = ssid;
+			flags[index] = capabilities;
+		}
+
+		if (pending.remaining() < LOG_RECORD_SIZE) {
+			// background thread cannot keep up, don't block the caller
+			droppedObservations++;
+			return true;
+		}
+		pending.putLong(time);
+		pending.putLong(key);
+		pending.putInt((int) Math.round(lat * COORD_SCALE));
+		pending.putInt((int) Math.round(lon * COORD_SCALE));
+		pending.putShort((short) Math.min(Math.round(accuracy), Short.MAX_VALUE));
+		pending.putShort((short) frequency);
+		pending.put((byte) Math.max(level, Byte.MIN_VALUE));
+		pending.put((byte) capabilities);
+
+		if (!isFlushQueued && (pending.position() >= pending.capacity() / 2)) {
+			isFlushQueued = true;
+			executor.execute(flushTask);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of access points in the store.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of observations which could not be written because the buffer was full.
+	 */
+	public synchronized int getDroppedObservations() {
+		return droppedObservations;
+	}
+
+	/**
+	 * Finds an access point by its BSSID.
+	 *
+	 * @return The index of the access point, or {@link #NOT_FOUND}
+	 */
+	public synchronized int find(String bssid) {
+		long key = parseBssid(bssid);
+		if ((key == NOT_FOUND) || !isLoaded)
+			return NOT_FOUND;
+		return bssidIndex.get(key);
+	}
+
+	/**
+	 * Finds access points near a position.
+	 *
+	 * @param lat The latitude of the position
+	 * @param lon The longitude of the position
+	 * @param radius The search radius in meters
+	 * @param result Receives the indices of the access points found, in no particular order
+	 * @return The number of access points found. If this is greater than the size of
+	 * {@code result}, only as many indices as fit were stored.
+	 */
+	public synchronized int near(double lat, double lon, double radius, int[] result) {
+		double radiusLat = radius / METERS_PER_DEGREE;
+		double cosLat = Math.max(Math.cos(Math.toRadians(lat)), 1e-6);
+		double radiusLon = radiusLat / cosLat;
+		long minRow = (long) Math.floor((lat - radiusLat) / GRID_SIZE);
+		long maxRow = (long) Math.floor((lat + radiusLat) / GRID_SIZE);
+		long minCol = (long) Math.floor((lon - radiusLon) / GRID_SIZE);
+		long maxCol = (long) Math.floor((lon + radiusLon) / GRID_SIZE);
+		double radius2 = radius * radius;
+		int found = 0;
+		if (!isLoaded)
+			return 0;
+		for (long row = minRow; row <= maxRow; row++)
+			for (long col = minCol; col <= maxCol; col++) {
+				int i = gridIndex.get(getGridKey(row, col));
+				while (i != LongIntHashMap.NO_VALUE) {
+					double dy = (meanLat[i] - lat) * METERS_PER_DEGREE;
+					double dx = (meanLon[i] - lon) * METERS_PER_DEGREE * cosLat;
+					if (dx * dx + dy * dy <= radius2) {
+						if (found < result.length)
+							result[found] = i;
+						found++;
+					}
+					i = gridNext[i];
+				}
+			}
+		return found;
+	}
+
+	@Override
+	public synchronized boolean lookup(String bssid, double[] result) {
+		int i = find(bssid);
+		if (i == NOT_FOUND)
+			return false;
+		result[0] = meanLat[i];
+		result[1] = meanLon[i];
+		// the spread of observer positions is not a coverage radius, let the estimator use signal strength
+		result[2] = 0;
+		return true;
+	}
+
+	/**
+	 * Returns the BSSID of the access point at {@code index}.
+	 */
+	public synchronized String getBssid(int index) {
+		long key = bssids[index];
+		StringBuilder builder = new StringBuilder(17);
+		for (int shift = 40; shift >= 0; shift -= 8) {
+			int b = (int) (key >>> shift) & 0xFF;
+			builder.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xF, 16));
+			if (shift > 0)
+				builder.append(':');
+		}
+		return builder.toString();
+	}
+
+	public synchronized int getCapabilities(int index) {
+		return flags[index];
+	}
+
+	public synchronized long getFirstSeen(int index) {
+		return firstSeen[index];
+	}
+
+	public synchronized int getFrequency(int index) {
+		return frequencies[index];
+	}
+
+	public synchronized long getLastSeen(int index) {
+		return lastSeen[index];
+	}
+
+	/**
+	 * Returns the estimated latitude of the access point at {@code index}.
+	 */
+	public synchronized double getLatitude(int index) {
+		return meanLat[index];
+	}
+
+	/**
+	 * Returns the estimated longitude of the access point at {@code index}.
+	 */
+	public synchronized double getLongitude(int index) {
+		return meanLon[index];
+	}
+
+	/**
+	 * Returns the number of observations of the access point at {@code index}.
+	 */
+	public synchronized int getObservations(int index) {
+		return observations[index];
+	}
+
+	/**
+	 * Returns the spread of the positions at which the access point at {@code index} was seen.
+	 * <p>
+	 * This is the weighted standard deviation of the observer positions, in
+	 * meters. It grows with the range of the access point but is usually much
+	 * smaller, so it must not be taken as the coverage radius.
+	 */
+	public synchronized double getRange(int index) {
+		if (weights[index] <= 0)
+			return 0;
+		double varLat = m2Lat[index] / weights[index];
+		double varLon = m2Lon[index] / weights[index];
+		double cosLat = Math.cos(Math.toRadians(meanLat[index]));
+		return Math.sqrt(varLat + varLon * cosLat * cosLat) * METERS_PER_DEGREE;
+	}
+
+	public synchronized String getSsid(int index) {
+		return ssids[index];
+	}
+
+	/**
+	 * Converts a BSSID to a 48-bit key.
+	 *
+	 * @param bssid A BSSID in the form {@code 01:23:45:67:89:ab}
+	 * @return The key, or {@link #NOT_FOUND} if {@code bssid} is not a valid BSSID
+	 */
+	static long parseBssid(String bssid) {
+		if ((bssid == null) || (bssid.length() != 17))
+			return NOT_FOUND;
+		long key = 0;
+		for (int i = 0; i < 17; i++) {
+			char c = bssid.charAt(i);
+			if ((i % 3) == 2) {
+				if ((c != ':') && (c != '-'))
+					return NOT_FOUND;
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			if (digit < 0)
+				return NOT_FOUND;
+			key = (key << 4) | digit;
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the weight of an observation.
+	 * <p>
+	 * Each 20 dB of signal strength increase the weight by a factor of 10,
+	 * which corresponds to a path loss exponent of 2. Weight is inversely
+	 * proportional to the variance of the observer's position.
+	 */
+	private static double getWeight(int level, float accuracy) {
+		double acc = Math.max(accuracy, 1);
+		return Math.pow(10, (level + 100) / 20.0) / (acc * acc);
+	}
+
+	private static long getGridKey(long row, long col) {
+		return (row << 32) ^ (col & 0xFFFFFFFFL);
+	}
+
+	private static long getGridKey(double lat, double lon) {
+		return getGridKey((long) Math.floor(lat / GRID_SIZE), (long) Math.floor(lon / GRID_SIZE));
+	}
+
+	/**
+	 * Updates the aggregate for an access point with an observation.
+	 *
+	 * @return The index of the access point
+	 */
+	private int aggregate(long key, long time, int frequency, int level, double lat, double lon, float accuracy) {
+		int i = bssidIndex.get(key);
+		if (i == LongIntHashMap.NO_VALUE) {
+			if (count == bssids.length)
+				allocate(count * 2);
+			i = count++;
+			bssids[i] = key;
+			firstSeen[i] = time;
+			weights[i] = 0;
+			meanLat[i] = lat;
+			meanLon[i] = lon;
+			m2Lat[i] = 0;
+			m2Lon[i] = 0;
+			observations[i] = 0;
+			bssidIndex.put(key, i);
+			gridCells[i] = getGridKey(lat, lon);
+			gridNext[i] = gridIndex.get(gridCells[i]);
+			gridIndex.put(gridCells[i], i);
+		}
+
+		// weighted incremental mean and variance (West's algorithm)
+		double w = getWeight(level, accuracy);
+		double newWeight = weights[i] + w;
+		double dLat = lat - meanLat[i];
+		double dLon = lon - meanLon[i];
+		double rLat = dLat * w / newWeight;
+		double rLon = dLon * w / newWeight;
+		meanLat[i] += rLat;
+		meanLon[i] += rLon;
+		m2Lat[i] += weights[i] * dLat * rLat;
+		m2Lon[i] += weights[i] * dLon * rLon;
+		weights[i] = newWeight;
+
+		observations[i]++;
+		frequencies[i] = frequency;
+		if (time > lastSeen[i])
+			lastSeen[i] = time;
+
+		long cell = getGridKey(meanLat[i], meanLon[i]);
+		if (cell != gridCells[i])
+			moveToCell(i, cell);
+		return i;
+	}
+
+	/**
+	 * Moves an access point to a different grid cell.
+	 */
+	private void moveToCell(int index, long cell) {
+		// unlink from old cell
+		long oldCell = gridCells[index];
+		int head = gridIndex.get(oldCell);
+		if (head == index)
+			gridIndex.put(oldCell, gridNext[index]);
+		else
+			for (int j = head; j != LongIntHashMap.NO_VALUE; j = gridNext[j])
+				if (gridNext[j] == index) {
+					gridNext[j] = gridNext[index];
+					break;
+				}
+		// link into new cell
+		gridCells[index] = cell;
+		gridNext[index] = gridIndex.get(cell);
+		gridIndex.put(cell, index);
+	}
+
+	/**
+	 * Allocates or grows the arrays for access point data.
+	 */
+	private void allocate(int capacity) {
+		bssids = grow(bssids, capacity);
+		ssids = grow(ssids, capacity);
+		flags = grow(flags, capacity);
+		frequencies = grow(frequencies, capacity);
+		observations = grow(observations, capacity);
+		firstSeen = grow(firstSeen, capacity);
+		lastSeen = grow(lastSeen, capacity);
+		weights = grow(weights, capacity);
+		meanLat = grow(meanLat, capacity);
+		meanLon = grow(meanLon, capacity);
+		m2Lat = grow(m2Lat, capacity);
+		m2Lon = grow(m2Lon, capacity);
+		gridCells = grow(gridCells, capacity);
+		gridNext = grow(gridNext, capacity);
+	}
+
+	private static long[] grow(long[] array, int capacity) {
+		long[] result = new long[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] result = new int[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static double[] grow(double[] array, int capacity) {
+		double[] result = new double[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	private static String[] grow(String[] array, int capacity) {
+		String[] result = new String[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, result, 0, array.length);
+		return result;
+	}
+
+	/**
+	 * Writes buffered observations to the log and, if due, writes a snapshot.
+	 * <p>
+	 * This runs on the background thread. The buffers are swapped and the
+	 * aggregates for a snapshot are copied while holding the lock, while
+	 * serialization and I/O happen without it. The snapshot is streamed to
+	 * the file rather than built in memory first.
+	 *
+	 * @param forceSnapshot Whether to write a snapshot regardless of when the last one was written
+	 */
+	private void flush(boolean forceSnapshot) {
+		ByteBuffer buffer;
+		long offset;
+		boolean isSnapshotDue = false;
+		synchronized (this) {
+			isFlushQueued = false;
+			buffer = pending;
+			pending = writing;
+			writing = buffer;
+			pending.clear();
+			offset = logLength;
+			logLength += buffer.position();
+			if (buffer.position() > 0)
+				flushesSinceSnapshot++;
+			if (forceSnapshot ? (flushesSinceSnapshot > 0) : (flushesSinceSnapshot >= SNAPSHOT_INTERVAL)) {
+				snapshot.copy(logLength);
+				isSnapshotDue = true;
+				flushesSinceSnapshot = 0;
+			}
+		}
+		try {
+			if (buffer.position() > 0) {
+				buffer.flip();
+				RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+				try {
+					FileChannel channel = raf.getChannel();
+					channel.position(offset);
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+				} finally {
+					raf.close();
+				}
+			}
+			if (isSnapshotDue) {
+				File tmpFile = new File(snapshotFile.getPath() + ".tmp");
+				FileOutputStream out = new FileOutputStream(tmpFile);
+				try {
+					snapshot.write(out);
+					out.getFD().sync();
+				} finally {
+					out.close();
+				}
+				if (!tmpFile.renameTo(snapshotFile))
+					throw new IOException("Cannot rename " + tmpFile.getPath());
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write data: " + e.getMessage());
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Aggregates the observations in the pending buffer, which were added while loading.
+	 * Must be called while holding the lock.
+	 */
+	private void replayPending() {
+		ByteBuffer buffer = pending.duplicate();
+		buffer.flip();
+		while (buffer.remaining() >= LOG_RECORD_SIZE) {
+			long time = buffer.getLong();
+			long key = buffer.getLong();
+			double lat = buffer.getInt() / COORD_SCALE;
+			double lon = buffer.getInt() / COORD_SCALE;
+			float accuracy = buffer.getShort();
+			int frequency = buffer.getShort() & 0xFFFF;
+			int level = buffer.get();
+			int capabilities = buffer.get() & 0xFF;
+			int i = aggregate(key, time, frequency, level, lat, lon, accuracy);
+			if (ssids[i] == null) {
+				ssids[i] = "";
+				flags[i] = capabilities;
+			}
+		}
+	}
+
+	/**
+	 * A copy of all aggregates, to be written to the snapshot file.
+	 * <p>
+	 * The copy is taken while holding the lock of the store, which only takes
+	 * a few array copies, and written afterwards without the lock. The arrays
+	 * are kept for the next snapshot and only grow when the store does.
+	 */
+	private class Snapshot {
+		private long logOffset;
+		private int n;
+		private long[] sBssids;
+		private String[] sSsids;
+		private int[] sFlags;
+		private int[] sFrequencies;
+		private int[] sObservations;
+		private long[] sFirstSeen;
+		private long[] sLastSeen;
+		private double[] sWeights;
+		private double[] sMeanLat;
+		private double[] sMeanLon;
+		private double[] sM2Lat;
+		private double[] sM2Lon;
+
+		/**
+		 * Copies the aggregates. Must be called while holding the lock.
+		 *
+		 * @param logOffset The log length covered by the aggregates
+		 */
+		void copy(long logOffset) {
+			this.logOffset = logOffset;
+			n = count;
+			if ((sBssids == null) || (sBssids.length < n)) {
+				int capacity = bssids.length;
+				sBssids = new long[capacity];
+				sSsids = new String[capacity];
+				sFlags = new int[capacity];
+				sFrequencies = new int[capacity];
+				sObservations = new int[capacity];
+				sFirstSeen = new long[capacity];
+				sLastSeen = new long[capacity];
+				sWeights = new double[capacity];
+				sMeanLat = new double[capacity];
+				sMeanLon = new double[capacity];
+				sM2Lat = new double[capacity];
+				sM2Lon = new double[capacity];
+			}
+			System.arraycopy(bssids, 0, sBssids, 0, n);
+			System.arraycopy(ssids, 0, sSsids, 0, n);
+			System.arraycopy(flags, 0, sFlags, 0, n);
+			System.arraycopy(frequencies, 0, sFrequencies, 0, n);
+			System.arraycopy(observations, 0, sObservations, 0, n);
+			System.arraycopy(firstSeen, 0, sFirstSeen, 0, n);
+			System.arraycopy(lastSeen, 0, sLastSeen, 0, n);
+			System.arraycopy(weights, 0, sWeights, 0, n);
+			System.arraycopy(meanLat, 0, sMeanLat, 0, n);
+			System.arraycopy(meanLon, 0, sMeanLon, 0, n);
+			System.arraycopy(m2Lat, 0, sM2Lat, 0, n);
+			System.arraycopy(m2Lon, 0, sM2Lon, 0, n);
+		}
+
+		/**
+		 * Writes the aggregates to a stream.
+		 * <p>
+		 * The stream is flushed but not closed.
+		 */
+		void write(OutputStream stream) throws IOException {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeLong(logOffset);
+			out.writeInt(n);
+			for (int i = 0; i < n; i++) {
+				out.writeLong(sBssids[i]);
+				out.writeUTF((sSsids[i] != null) ? sSsids[i] : "");
+				out.writeInt(sFlags[i]);
+				out.writeInt(sFrequencies[i]);
+				out.writeInt(sObservations[i]);
+				out.writeLong(sFirstSeen[i]);
+				out.writeLong(sLastSeen[i]);
+				out.writeDouble(sWeights[i]);
+				out.writeDouble(sMeanLat[i]);
+				out.writeDouble(sMeanLon[i]);
+				out.writeDouble(sM2Lat[i]);
+				out.writeDouble(sM2Lon[i]);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Loads aggregates from the snapshot file. This runs on the background thread.
+	 *
+	 * @return The log length covered by the snapshot, or 0 if there is no valid snapshot
+	 */
+	private long loadSnapshot() throws IOException {
+		if (!snapshotFile.exists())
+			return 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+		try {
+			if ((in.readInt() != SNAPSHOT_MAGIC) || (in.readInt() != SNAPSHOT_VERSION))
+				return 0;
+			long logOffset = in.readLong();
+			int n = in.readInt();
+			int capacity = bssids.length;
+			while (capacity < n)
+				capacity *= 2;
+			allocate(capacity);
+			for (int i = 0; i < n; i++) {
+				bssids[i] = in.readLong();
+				ssids[i] = in.readUTF();
+				flags[i] = in.readInt();
+				frequencies[i] = in.readInt();
+				observations[i] = in.readInt();
+				firstSeen[i] = in.readLong();
+				lastSeen[i] = in.readLong();
+				weights[i] = in.readDouble();
+				meanLat[i] = in.readDouble();
+				meanLon[i] = in.readDouble();
+				m2Lat[i] = in.readDouble();
+				m2Lon[i] = in.readDouble();
+				bssidIndex.put(bssids[i], i);
+				gridCells[i] = getGridKey(meanLat[i], meanLon[i]);
+				gridNext[i] = gridIndex.get(gridCells[i]);
+				gridIndex.put(gridCells[i], i);
+			}
+			count = n;
+			return logOffset;
+		} catch (EOFException e) {
+			// truncated snapshot, start over from the log
+			count = 0;
+			bssidIndex.clear();
+			gridIndex.clear();
+			return 0;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replays the log, starting at {@code offset}.
+	 * <p>
+	 * A partial record at the end of the log (from an interrupted write) is
+	 * discarded. This runs on the background thread.
+	 */
+	private void replayLog(long offset) throws IOException {
+		logLength = 0;
+		if (!logFile.exists())
+			return;
+		long length = logFile.length();
+		length -= length % LOG_RECORD_SIZE;
+		if (offset > length)
+			// log is shorter than the snapshot thinks, nothing to replay
+			offset = length;
+		logLength = length;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 65536));
+		try {
+			long skipped = 0;
+			while (skipped < offset)
+				skipped += in.skip(offset - skipped);
+			for (long pos = offset; pos < length; pos += LOG_RECORD_SIZE) {
+				long time = in.readLong();
+				long key = in.readLong();
+				double lat = in.readInt() / COORD_SCALE;
+				double lon = in.readInt() / COORD_SCALE;
+				float accuracy = in.readShort();
+				int frequency = in.readShort() & 0xFFFF;
+				int level = in.readByte();
+				int capabilities = in.readByte() & 0xFF;
+				if ((time == 0) && (key == 0))
+					// gap left by a failed write
+					continue;
+				int i = aggregate(key, time, frequency, level, lat, lon, accuracy);
+				if (ssids[i] == null) {
+					ssids[i] = "";
+					flags[i] = capabilities;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (length < logFile.length()) {
+			// truncate partial record so that new records are aligned
+			RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package com.vonglasow.michael.satstat.event;
+
+/**
+ * A thread on which events are delivered to subscribers.
+ * <p>
+ * This abstracts the Android {@code Handler} away, so that {@link Topic}
+ * can run on a plain JVM.
+ */
+public interface DeliveryThread {
+	/**
+	 * Runs a task on this thread.
+	 *
+	 * @param task The task
+	 * @param delayMillis The delay after which to run the task, in milliseconds, 0 to run it as soon as possible
+	 */
+	public void post(Runnable task, long delayMillis);
+}
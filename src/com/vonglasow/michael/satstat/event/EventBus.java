@@ -0,0 +1,72 @@
+package com.vonglasow.michael.satstat.event;
+
+import java.util.List;
+import java.util.Set;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.os.Looper;
+import android.telephony.CellInfo;
+import android.telephony.CellLocation;
+import android.telephony.SignalStrength;
+
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.location.RadioLocationEngine;
+
+/**
+ * The topics on which location, GPS and radio events are published.
+ * <p>
+ * The activity publishes the events it receives from the system, and
+ * components such as fragments subscribe to the topics they display,
+ * choosing the thread and rate at which they are updated (see
+ * {@link Topic#subscribe(Topic.Listener, DeliveryThread, long)}).
+ * Publishers thus do not need to know which components are currently
+ * alive, and components created later receive the latest event of each
+ * topic right away.
+ * <p>
+ * Sensor readings are not published here; see
+ * {@link com.vonglasow.michael.satstat.sensor.SensorHub}, which offers the
+ * same delivery policies without wrapping each sample in an object.
+ */
+public class EventBus {
+	/** Locations from all providers, including derived ones such as the position filter */
+	public final Topic<Location> location = new Topic<Location>("location");
+
+	/** Locations from the GPS provider, also published on {@link #location} */
+	public final Topic<Location> gpsLocation = new Topic<Location>("gpsLocation");
+
+	/**
+	 * GPS status. Snapshots come from a
+	 * {@link com.vonglasow.michael.satstat.data.GpsSnapshotPool} and must not
+	 * be kept beyond the call.
+	 */
+	public final Topic<GpsSnapshot> gpsStatus = new Topic<GpsSnapshot>("gpsStatus");
+
+	/** The set of location providers selected by the user */
+	public final Topic<Set<String>> locationProviders = new Topic<Set<String>>("locationProviders");
+
+	/** Cells in view. An empty list means the cells have changed but were not reported. */
+	public final Topic<List<CellInfo>> cellInfo = new Topic<List<CellInfo>>("cellInfo");
+
+	/** Location of the serving cell */
+	public final Topic<CellLocation> cellLocation = new Topic<CellLocation>("cellLocation");
+
+	/** Signal strength of the serving cell */
+	public final Topic<SignalStrength> signalStrength = new Topic<SignalStrength>("signalStrength");
+
+	/** Network type of the data connection, one of the {@code NETWORK_TYPE_*} constants in {@link android.telephony.TelephonyManager} */
+	public final Topic<Integer> networkType = new Topic<Integer>("networkType");
+
+	/**
+	 * Cells in view, published on the main thread by the engine which tracks
+	 * them whenever they change. The cell lists must only be read, and only
+	 * during delivery on the main thread.
+	 */
+	public final Topic<RadioLocationEngine> radioCells = new Topic<RadioLocationEngine>("radioCells");
+
+	/** Results of Wi-Fi scans */
+	public final Topic<List<ScanResult>> wifiScanResults = new Topic<List<ScanResult>>("wifiScanResults");
+
+	/** Delivers events on the main thread */
+	public final DeliveryThread mainThread = new HandlerDeliveryThread(Looper.getMainLooper());
+}
@@ -0,0 +1,26 @@
+package com.vonglasow.michael.satstat.event;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Delivers events on the thread of a {@link Looper}.
+ */
+public class HandlerDeliveryThread implements DeliveryThread {
+	private final Handler handler;
+
+	/**
+	 * @param looper The looper of the thread on which to deliver events
+	 */
+	public HandlerDeliveryThread(Looper looper) {
+		handler = new Handler(looper);
+	}
+
+	@Override
+	public void post(Runnable task, long delayMillis) {
+		if (delayMillis > 0)
+			handler.postDelayed(task, delayMillis);
+		else
+			handler.post(task);
+	}
+}
@@ -0,0 +1,139 @@
+package com.vonglasow.michael.satstat.event;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A subscription of a listener to a {@link Topic}.
+ * <p>
+ * Subscriptions with a {@link DeliveryThread} hold at most one pending
+ * event: if a new event is published before the pending one has been
+ * delivered, it replaces the pending one, which is counted as conflated.
+ * A slow subscriber thus always gets the latest event and never builds up
+ * a backlog. If the subscription has a minimum interval, delivery of an
+ * event which arrives earlier is deferred until the interval has elapsed.
+ * <p>
+ * Subscriptions without a delivery thread are called on the publishing
+ * thread; events arriving before the minimum interval has elapsed are
+ * dropped.
+ * <p>
+ * Pending events are exchanged through atomic variables, so neither the
+ * publisher nor the delivery thread ever blocks.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class Subscription<T> implements Runnable {
+	private final Topic<T> topic;
+	private final Topic.Listener<T> listener;
+	private final DeliveryThread thread;
+	private final long minInterval;
+
+	private final AtomicReference<T> pending = new AtomicReference<T>();
+	/** Whether a delivery task has been posted to {@link #thread} and has not started yet */
+	private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+	private volatile boolean isCancelled = false;
+	/** Time of the last delivery, in nanoseconds of {@link System#nanoTime()} */
+	private volatile long lastDelivery;
+
+	/* Statistics */
+	private final AtomicLong deliveredCount = new AtomicLong();
+	private final AtomicLong conflatedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	Subscription(Topic<T> topic, Topic.Listener<T> listener, DeliveryThread thread, long minIntervalMillis) {
+		this.topic = topic;
+		this.listener = listener;
+		this.thread = thread;
+		this.minInterval = minIntervalMillis * 1000000;
+		lastDelivery = System.nanoTime() - minInterval;
+	}
+
+	/**
+	 * Returns the topic of this subscription.
+	 */
+	public Topic<T> getTopic() {
+		return topic;
+	}
+
+	/**
+	 * Ends the subscription. Events not yet delivered are discarded.
+	 * <p>
+	 * When called on the delivery thread, no events will be delivered after this method returns.
+	 */
+	public void cancel() {
+		topic.remove(this);
+		isCancelled = true;
+		pending.set(null);
+	}
+
+	/**
+	 * Whether the subscription has been cancelled.
+	 */
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	/**
+	 * Returns the number of events delivered to the listener.
+	 */
+	public long getDeliveredCount() {
+		return deliveredCount.get();
+	}
+
+	/**
+	 * Returns the number of events replaced by a newer one before they could be delivered.
+	 */
+	public long getConflatedCount() {
+		return conflatedCount.get();
+	}
+
+	/**
+	 * Returns the number of events dropped because they arrived before the minimum interval had elapsed.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Delivers an event, or schedules its delivery. Called on the publishing thread.
+	 */
+	void offer(T value) {
+		if (isCancelled)
+			return;
+		if (thread == null) {
+			if (minInterval > 0) {
+				long now = System.nanoTime();
+				if (now - lastDelivery < minInterval) {
+					droppedCount.incrementAndGet();
+					return;
+				}
+				lastDelivery = now;
+			}
+			listener.onEvent(value);
+			deliveredCount.incrementAndGet();
+			return;
+		}
+		if (pending.getAndSet(value) != null)
+			conflatedCount.incrementAndGet();
+		if (isScheduled.compareAndSet(false, true)) {
+			long wait = lastDelivery + minInterval - System.nanoTime();
+			thread.post(this, (wait > 0) ? (wait + 999999) / 1000000 : 0);
+		}
+	}
+
+	/**
+	 * Delivers the pending event to the listener. Called on the delivery thread.
+	 */
+	@Override
+	public void run() {
+		// clear the flag first, so that an event offered from now on schedules another run
+		isScheduled.set(false);
+		T value = pending.getAndSet(null);
+		if ((value == null) || isCancelled)
+			return;
+		lastDelivery = System.nanoTime();
+		listener.onEvent(value);
+		deliveredCount.incrementAndGet();
+	}
+}
@@ -0,0 +1,157 @@
+package com.vonglasow.michael.satstat.event;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A channel for events of one type, to which listeners can subscribe.
+ * <p>
+ * The topic keeps the latest event, which is delivered to new subscribers
+ * immediately, so that a component created after an event was published
+ * (e.g. a fragment recreated after a configuration change) does not have
+ * to wait for the next one. Each subscriber chooses the thread on which it
+ * is called and the minimum interval between two deliveries; see
+ * {@link Subscription} for how events are conflated.
+ * <p>
+ * Events are delivered by reference, so subscribers which keep an event
+ * beyond the call must copy it if the publisher reuses the object.
+ * <p>
+ * Publishing and subscribing are lock-free and may happen on any thread.
+ * The list of subscriptions is replaced on every change, so publishing
+ * never allocates. A subscriber which is added while an event is being
+ * published on another thread may receive that event twice.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class Topic<T> {
+	/**
+	 * Receives events published on a topic.
+	 */
+	public interface Listener<T> {
+		/**
+		 * Called when an event is delivered.
+		 *
+		 * @param value The event, never null
+		 */
+		public void onEvent(T value);
+	}
+
+	private final String name;
+	private final AtomicReference<T> latest = new AtomicReference<T>();
+	private final AtomicReference<Subscription<T>[]> subscriptions;
+	private final AtomicLong publishedCount = new AtomicLong();
+
+	public Topic(String name) {
+		this.name = name;
+		subscriptions = new AtomicReference<Subscription<T>[]>(Topic.<T>newArray(0));
+	}
+
+	/**
+	 * Returns the name of the topic, for debugging purposes.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Publishes an event to all subscribers.
+	 *
+	 * @param value The event, which becomes the latest event of the topic
+	 */
+	public void publish(T value) {
+		if (value == null)
+			throw new NullPointerException("Cannot publish null on topic " + name);
+		latest.set(value);
+		publishedCount.incrementAndGet();
+		for (Subscription<T> subscription : subscriptions.get())
+			subscription.offer(value);
+	}
+
+	/**
+	 * Returns the latest event published on the topic, or null if none has been published yet.
+	 */
+	public T getLatest() {
+		return latest.get();
+	}
+
+	/**
+	 * Returns the number of events published on the topic.
+	 */
+	public long getPublishedCount() {
+		return publishedCount.get();
+	}
+
+	/**
+	 * Returns the number of current subscriptions.
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.get().length;
+	}
+
+	/**
+	 * Subscribes a listener to the topic.
+	 * <p>
+	 * If an event has been published before, the latest one is delivered right away.
+	 *
+	 * @param listener The listener
+	 * @param thread The thread on which to call the listener, or null to call it on the publishing thread
+	 * @param minIntervalMillis The minimum interval between two deliveries, in milliseconds, 0 for no limit
+	 * @return The subscription, which can be cancelled when the listener is no longer interested in events
+	 */
+	public Subscription<T> subscribe(Listener<T> listener, DeliveryThread thread, long minIntervalMillis) {
+		Subscription<T> subscription = new Subscription<T>(this, listener, thread, minIntervalMillis);
+		Subscription<T>[] current;
+		Subscription<T>[] updated;
+		do {
+			current = subscriptions.get();
+			updated = copyOf(current, current.length + 1);
+			updated[current.length] = subscription;
+		} while (!subscriptions.compareAndSet(current, updated));
+		T value = latest.get();
+		if (value != null)
+			subscription.offer(value);
+		return subscription;
+	}
+
+	/**
+	 * Removes a subscription. Called by {@link Subscription#cancel()}.
+	 */
+	void remove(Subscription<T> subscription) {
+		Subscription<T>[] current;
+		Subscription<T>[] updated;
+		do {
+			current = subscriptions.get();
+			int index = -1;
+			for (int i = 0; i < current.length; i++)
+				if (current[i] == subscription) {
+					index = i;
+					break;
+				}
+			if (index < 0)
+				return;
+			updated = copyOf(current, current.length - 1);
+			System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+		} while (!subscriptions.compareAndSet(current, updated));
+	}
+
+	private static <T> Subscription<T>[] copyOf(Subscription<T>[] array, int length) {
+		Subscription<T>[] result = newArray(length);
+		System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+		return result;
+	}
+
+	/**
+	 * Creates an array of subscriptions. Java cannot create arrays of a
+	 * parameterized type, so this creates a wildcard array and casts it;
+	 * the cast is safe because the array never leaves the topic.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> Subscription<T>[] newArray(int length) {
+		return (Subscription<T>[]) new Subscription<?>[length];
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,430 @@
+package com.vonglasow.michael.satstat.location;
+
+import java.util.Arrays;
+
+/**
+ * Smoothes position fixes with a Kalman filter.
+ * <p>
+ * The filter uses a constant-velocity model with four states (east and north
+ * position, east and north velocity) in a local east-north-up (ENU) plane
+ * around a reference point, which is moved along with the position so that
+ * the plane approximation stays accurate. Altitude is not filtered.
+ * Unmodelled acceleration is treated as white noise. Optionally, measured
+ * acceleration in ENU coordinates can be supplied as a control input through
+ * {@link #setAcceleration(long, double, double)}.
+ * <p>
+ * Fixes from any source (GPS, network) are weighted by their accuracy, so an
+ * imprecise network fix barely moves a position established by GPS. Fixes
+ * which are statistically inconsistent with the current estimate are
+ * rejected; if several fixes in a row are rejected, the filter is reset to
+ * the latest fix, assuming that the estimate was wrong.
+ * <p>
+ * All matrices are preallocated, so updates do not allocate any objects and
+ * the filter can be fed every fix. It does not depend on any Android APIs.
+ * Instances are not thread-safe.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * if (filter.update(time, lat, lon, accuracy))
+ *     // use getLatitude(), getLongitude(), getAccuracy(), getSpeed() and getBearing()
+ * </pre>
+ */
+public class PositionFilter {
+	/** The name of the location provider for positions obtained from this class. */
+	public static final String PROVIDER = "filtered";
+
+	/** Default process noise, i.e. spectral density of unmodelled acceleration, in m^2/s^3. */
+	public static final double DEFAULT_PROCESS_NOISE = 4.0;
+
+	/**
+	 * Ratio between the radius of 68% confidence, which Android uses for accuracy, and the
+	 * standard deviation per axis of a circular normal distribution.
+	 */
+	private static final double ACCURACY_PER_SIGMA = 1.51;
+
+	/** Initial standard deviation of the velocity (m/s). */
+	private static final double INITIAL_VELOCITY_SIGMA = 10;
+
+	/** Fixes whose squared Mahalanobis distance exceeds this value are rejected (99.9% for 2 degrees of freedom). */
+	private static final double GATE = 13.8;
+
+	/** Number of consecutive rejected fixes after which the filter is reset. */
+	private static final int MAX_REJECTIONS = 3;
+
+	/** If no fix has been received for this time (ms), the filter is reset on the next fix. */
+	private static final long RESET_INTERVAL = 300000;
+
+	/** Distance from the reference point (m) after which the reference point is moved. */
+	private static final double REANCHOR_DISTANCE = 10000;
+
+	/** Acceleration input beyond this magnitude (m/s^2) is considered bogus and ignored. */
+	private static final double MAX_ACCELERATION = 20;
+
+	/** Mean radius of the earth (m). */
+	private static final double EARTH_RADIUS = 6371000;
+
+	private final double processNoise;
+
+	/* State: east, north (m), east velocity, north velocity (m/s) */
+	private final double[] x = new double[4];
+
+	/* Covariance, transition matrix and scratch space, 4x4 in row-major order */
+	private final double[] p = new double[16];
+	private final double[] f = new double[16];
+	private final double[] tmp = new double[16];
+
+	/* Kalman gain, 4x2 in row-major order */
+	private final double[] k = new double[8];
+
+	/* Reference point of the local plane */
+	private double refLat;
+	private double refLon;
+	private double mPerDegLat = Math.toRadians(EARTH_RADIUS);
+	private double mPerDegLon;
+
+	/* Control input (m/s^2) */
+	private double accEast = 0;
+	private double accNorth = 0;
+
+	private boolean initialized = false;
+	private long time = 0;
+	/** Time of the last fix, which may be older than the estimate if acceleration has been supplied since */
+	private long fixTime = 0;
+	private int rejections = 0;
+
+	/* Statistics */
+	private long updateCount = 0;
+	private long rejectCount = 0;
+	private long resetCount = 0;
+	private long updateNanos = 0;
+
+	/**
+	 * Creates a new filter with the default process noise.
+	 */
+	public PositionFilter() {
+		this(DEFAULT_PROCESS_NOISE);
+	}
+
+	/**
+	 * Creates a new filter.
+	 *
+	 * @param processNoise The spectral density of unmodelled acceleration, in m^2/s^3. Higher
+	 * values make the filter follow changes in speed and direction more quickly, lower values
+	 * give smoother output.
+	 */
+	public PositionFilter(double processNoise) {
+		this.processNoise = processNoise;
+	}
+
+	/**
+	 * Discards the current estimate. The next fix will initialize the filter.
+	 */
+	public void reset() {
+		initialized = false;
+		rejections = 0;
+		accEast = 0;
+		accNorth = 0;
+	}
+
+	/**
+	 * Processes a fix.
+	 *
+	 * @param time The time of the fix in milliseconds. Fixes older than the
+	 * previous fix are rejected. A fix older than the estimate, which has
+	 * been advanced by acceleration input since the previous fix, is applied
+	 * at the time of the estimate.
+	 * @param lat The latitude of the fix
+	 * @param lon The longitude of the fix
+	 * @param accuracy The accuracy of the fix in meters (radius of 68% confidence)
+	 * @return true if the estimate was updated, false if the fix was rejected
+	 */
+	public boolean update(long time, double lat, double lon, float accuracy) {
+		if (Double.isNaN(lat) || Double.isNaN(lon) || !(accuracy > 0))
+			return false;
+		long start = System.nanoTime();
+		boolean result;
+		if (!initialized || (time - fixTime > RESET_INTERVAL))
+			result = init(time, lat, lon, accuracy);
+		else if (time < fixTime)
+			// out of order
+			result = false;
+		else {
+			// fixes are delivered with some delay, during which acceleration input may have advanced the estimate
+			predict(Math.max(time, this.time));
+			fixTime = time;
+			result = correct(lat, lon, accuracy);
+			if (!result && (++rejections >= MAX_REJECTIONS))
+				result = init(time, lat, lon, accuracy);
+		}
+		if (result)
+			updateCount++;
+		else
+			rejectCount++;
+		updateNanos += System.nanoTime() - start;
+		return result;
+	}
+
+	/**
+	 * Supplies measured acceleration, which is used as a control input until the next call.
+	 * <p>
+	 * Acceleration must be linear acceleration (without gravity) in world coordinates.
+	 *
+	 * @param time The time of the measurement in milliseconds, in the same time base as fixes
+	 * @param east The east component of acceleration in m/s^2
+	 * @param north The north component of acceleration in m/s^2
+	 */
+	public void setAcceleration(long time, double east, double north) {
+		if (initialized && (time > this.time))
+			predict(time);
+		if (east * east + north * north > MAX_ACCELERATION * MAX_ACCELERATION) {
+			accEast = 0;
+			accNorth = 0;
+		} else {
+			accEast = east;
+			accNorth = north;
+		}
+	}
+
+	/**
+	 * Whether the filter has an estimate.
+	 */
+	public boolean hasEstimate() {
+		return initialized;
+	}
+
+	/**
+	 * Returns the time of the estimate in milliseconds.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Returns the estimated latitude.
+	 */
+	public double getLatitude() {
+		return refLat + x[1] / mPerDegLat;
+	}
+
+	/**
+	 * Returns the estimated longitude.
+	 */
+	public double getLongitude() {
+		double lon = refLon + x[0] / mPerDegLon;
+		if (lon > 180)
+			lon -= 360;
+		else if (lon < -180)
+			lon += 360;
+		return lon;
+	}
+
+	/**
+	 * Returns the accuracy of the estimate in meters (radius of 68% confidence).
+	 */
+	public float getAccuracy() {
+		return (float) (ACCURACY_PER_SIGMA * Math.sqrt((p[0] + p[5]) / 2));
+	}
+
+	/**
+	 * Returns the estimated speed in m/s.
+	 */
+	public float getSpeed() {
+		return (float) Math.sqrt(x[2] * x[2] + x[3] * x[3]);
+	}
+
+	/**
+	 * Returns the estimated bearing in degrees.
+	 */
+	public float getBearing() {
+		double bearing = Math.toDegrees(Math.atan2(x[2], x[3]));
+		return (float) ((bearing < 0) ? bearing + 360 : bearing);
+	}
+
+	/**
+	 * Returns the number of fixes which updated the estimate.
+	 */
+	public long getUpdateCount() {
+		return updateCount;
+	}
+
+	/**
+	 * Returns the number of fixes which were rejected.
+	 */
+	public long getRejectCount() {
+		return rejectCount;
+	}
+
+	/**
+	 * Returns the number of times the filter was reset because of consistently rejected fixes.
+	 */
+	public long getResetCount() {
+		return resetCount;
+	}
+
+	/**
+	 * Returns the average time taken by {@link #update(long, double, double, float)}, in nanoseconds.
+	 */
+	public long getAverageUpdateNanos() {
+		long count = updateCount + rejectCount;
+		return (count > 0) ? updateNanos / count : 0;
+	}
+
+	/**
+	 * Initializes the filter with a fix, with zero velocity.
+	 */
+	private boolean init(long time, double lat, double lon, float accuracy) {
+		if (initialized && (rejections >= MAX_REJECTIONS))
+			resetCount++;
+		initialized = true;
+		rejections = 0;
+		this.time = time;
+		fixTime = time;
+		setReference(lat, lon);
+		x[0] = 0;
+		x[1] = 0;
+		x[2] = 0;
+		x[3] = 0;
+		Arrays.fill(p, 0);
+		double sigma = accuracy / ACCURACY_PER_SIGMA;
+		p[0] = sigma * sigma;
+		p[5] = sigma * sigma;
+		p[10] = INITIAL_VELOCITY_SIGMA * INITIAL_VELOCITY_SIGMA;
+		p[15] = INITIAL_VELOCITY_SIGMA * INITIAL_VELOCITY_SIGMA;
+		return true;
+	}
+
+	/**
+	 * Advances the estimate to a given time: x = Fx + Bu, P = FPF' + Q.
+	 */
+	private void predict(long time) {
+		double dt = (time - this.time) / 1000.0;
+		this.time = time;
+		if (dt <= 0)
+			return;
+		double dt2 = dt * dt / 2;
+		x[0] += x[2] * dt + accEast * dt2;
+		x[1] += x[3] * dt + accNorth * dt2;
+		x[2] += accEast * dt;
+		x[3] += accNorth * dt;
+
+		Arrays.fill(f, 0);
+		f[0] = 1;
+		f[5] = 1;
+		f[10] = 1;
+		f[15] = 1;
+		f[2] = dt;
+		f[7] = dt;
+		multiply(f, p, tmp);
+		multiplyTransposed(tmp, f, p);
+
+		// white noise acceleration, per axis [dt^3/3, dt^2/2; dt^2/2, dt] * q
+		double q11 = processNoise * dt * dt * dt / 3;
+		double q12 = processNoise * dt2;
+		double q22 = processNoise * dt;
+		p[0] += q11;
+		p[5] += q11;
+		p[2] += q12;
+		p[8] += q12;
+		p[7] += q12;
+		p[13] += q12;
+		p[10] += q22;
+		p[15] += q22;
+	}
+
+	/**
+	 * Corrects the estimate with a position measurement (H = [I 0], R = sigma^2 I).
+	 *
+	 * @return true if the measurement was applied, false if it failed the consistency check
+	 */
+	private boolean correct(double lat, double lon, float accuracy) {
+		double ye = (unwrap(lon, refLon) - refLon) * mPerDegLon - x[0];
+		double yn = (lat - refLat) * mPerDegLat - x[1];
+		double sigma = accuracy / ACCURACY_PER_SIGMA;
+		double r = sigma * sigma;
+
+		// innovation covariance S = HPH' + R and its inverse
+		double s00 = p[0] + r;
+		double s01 = p[1];
+		double s10 = p[4];
+		double s11 = p[5] + r;
+		double det = s00 * s11 - s01 * s10;
+		if (det <= 0)
+			return false;
+		double i00 = s11 / det;
+		double i01 = -s01 / det;
+		double i10 = -s10 / det;
+		double i11 = s00 / det;
+
+		if (ye * (i00 * ye + i01 * yn) + yn * (i10 * ye + i11 * yn) > GATE)
+			return false;
+		rejections = 0;
+
+		// K = PH'S^-1
+		for (int i = 0; i < 4; i++) {
+			double p0 = p[i * 4];
+			double p1 = p[i * 4 + 1];
+			k[i * 2] = p0 * i00 + p1 * i10;
+			k[i * 2 + 1] = p0 * i01 + p1 * i11;
+		}
+		for (int i = 0; i < 4; i++)
+			x[i] += k[i * 2] * ye + k[i * 2 + 1] * yn;
+
+		// P = (I - KH)P, symmetrized to counter rounding errors
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 4; j++)
+				tmp[i * 4 + j] = p[i * 4 + j] - k[i * 2] * p[j] - k[i * 2 + 1] * p[4 + j];
+		for (int i = 0; i < 4; i++)
+			for (int j = i; j < 4; j++) {
+				double v = (tmp[i * 4 + j] + tmp[j * 4 + i]) / 2;
+				p[i * 4 + j] = v;
+				p[j * 4 + i] = v;
+			}
+
+		if ((Math.abs(x[0]) > REANCHOR_DISTANCE) || (Math.abs(x[1]) > REANCHOR_DISTANCE)) {
+			setReference(getLatitude(), getLongitude());
+			x[0] = 0;
+			x[1] = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the reference point of the local plane.
+	 */
+	private void setReference(double lat, double lon) {
+		refLat = lat;
+		refLon = lon;
+		mPerDegLon = mPerDegLat * Math.max(Math.cos(Math.toRadians(lat)), 1e-6);
+	}
+
+	/**
+	 * Computes out = a * b for 4x4 matrices.
+	 */
+	private static void multiply(double[] a, double[] b, double[] out) {
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 4; j++)
+				out[i * 4 + j] = a[i * 4] * b[j] + a[i * 4 + 1] * b[4 + j]
+						+ a[i * 4 + 2] * b[8 + j] + a[i * 4 + 3] * b[12 + j];
+	}
+
+	/**
+	 * Computes out = a * b' for 4x4 matrices.
+	 */
+	private static void multiplyTransposed(double[] a, double[] b, double[] out) {
+		for (int i = 0; i < 4; i++)
+			for (int j = 0; j < 4; j++)
+				out[i * 4 + j] = a[i * 4] * b[j * 4] + a[i * 4 + 1] * b[j * 4 + 1]
+						+ a[i * 4 + 2] * b[j * 4 + 2] + a[i * 4 + 3] * b[j * 4 + 3];
+	}
+
+	/**
+	 * Shifts a longitude by a multiple of 360 degrees so that it is within 180 degrees of a reference.
+	 */
+	private static double unwrap(double lon, double ref) {
+		if (lon - ref > 180)
+			return lon - 360;
+		else if (lon - ref < -180)
+			return lon + 360;
+		return lon;
+	}
+}
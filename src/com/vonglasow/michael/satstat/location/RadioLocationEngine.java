@@ -0,0 +1,478 @@
+package com.vonglasow.michael.satstat.location;
+
+import static android.telephony.TelephonyManager.PHONE_TYPE_CDMA;
+import static android.telephony.TelephonyManager.PHONE_TYPE_GSM;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.location.Location;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.ScanResult;
+import android.os.Build;
+import android.os.Handler;
+import android.telephony.CellInfo;
+import android.telephony.CellLocation;
+import android.telephony.NeighboringCellInfo;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+import android.telephony.cdma.CdmaCellLocation;
+import android.telephony.gsm.GsmCellLocation;
+import android.util.Log;
+
+import com.vonglasow.michael.satstat.data.CellDatabase;
+import com.vonglasow.michael.satstat.data.CellDatabaseImportTask;
+import com.vonglasow.michael.satstat.data.CellTower;
+import com.vonglasow.michael.satstat.data.CellTowerCdma;
+import com.vonglasow.michael.satstat.data.CellTowerGsm;
+import com.vonglasow.michael.satstat.data.CellTowerListCdma;
+import com.vonglasow.michael.satstat.data.CellTowerListGsm;
+import com.vonglasow.michael.satstat.data.CellTowerListLte;
+import com.vonglasow.michael.satstat.data.CellTowerLte;
+import com.vonglasow.michael.satstat.event.EventBus;
+import com.vonglasow.michael.satstat.event.Subscription;
+import com.vonglasow.michael.satstat.event.Topic;
+
+/**
+ * Tracks the cells in view and estimates our position from cells and Wi-Fi access points.
+ * <p>
+ * The engine subscribes to the cell and Wi-Fi topics of an {@link EventBus}
+ * while it is started, independently of which views exist. It keeps the
+ * lists of cells in view, publishes itself on {@link EventBus#radioCells}
+ * whenever they change, and publishes position estimates on
+ * {@link EventBus#location} as locations from the
+ * {@link RadioPositionEstimator#PROVIDER} provider.
+ * <p>
+ * Cell locations come from the offline {@link CellDatabase}, which the
+ * engine opens and, if a new export is found, imports first (see
+ * {@link CellDatabaseImportTask}). Access point locations come from a
+ * {@link WifiLocationLookup}.
+ * <p>
+ * All methods must be called on the main thread. Subscribers to
+ * {@link EventBus#radioCells} may read the cell lists and the database
+ * during delivery, but must not modify them.
+ */
+public class RadioLocationEngine {
+	private static final String TAG = RadioLocationEngine.class.getSimpleName();
+
+	private static final int NETWORK_REFRESH_DELAY = 1000; //the polling interval for the network type
+	private static final long SIGNAL_STRENGTH_INTERVAL = 1000; //the minimum interval between signal strength updates
+
+	private final Context context;
+	private final EventBus eventBus;
+	private final TelephonyManager telephonyManager;
+	private final ConnectivityManager connectivityManager;
+
+	private CellTower mServingCell;
+	private final CellTowerListGsm mCellsGsm = new CellTowerListGsm();
+	private final CellTowerListCdma mCellsCdma = new CellTowerListCdma();
+	private final CellTowerListLte mCellsLte = new CellTowerListLte();
+	private int mLastNetworkGen = 0; //the last observed network type
+	private int mLastCellAsu = NeighboringCellInfo.UNKNOWN_RSSI;
+	private int mLastCellDbm = CellTower.DBM_UNKNOWN;
+	private final Handler networkTimehandler = new Handler();
+	private final Runnable networkTimeRunnable = new Runnable() {
+		@Override
+		public void run() {
+			int newNetworkType = telephonyManager.getNetworkType();
+			if (CellTower.getGenerationFromNetworkType(newNetworkType) != mLastNetworkGen)
+				onNetworkTypeChanged(newNetworkType);
+			else
+				networkTimehandler.postDelayed(this, NETWORK_REFRESH_DELAY);
+		}
+	};
+
+	/** Offline cell location database, or {@code null} if not available */
+	private CellDatabase mCellDatabase = null;
+	/** Source of access point locations, or {@code null} if not available */
+	private WifiLocationLookup wifiLocationLookup = null;
+	/** Estimates our position from cells and access points in view */
+	private final RadioPositionEstimator mEstimator = new RadioPositionEstimator();
+	/** The last position estimate, reused for each update */
+	private final Location mRadioLocation = new Location(RadioPositionEstimator.PROVIDER);
+	/** Buffer for access point location lookups */
+	private final double[] mApLocation = new double[3];
+	/** The last Wi-Fi scan results */
+	private List<ScanResult> scanResults = null;
+
+	private Subscription<List<CellInfo>> cellInfoSubscription = null;
+	private Subscription<CellLocation> cellLocationSubscription;
+	private Subscription<Integer> networkTypeSubscription;
+	private Subscription<SignalStrength> signalStrengthSubscription;
+	private Subscription<List<ScanResult>> wifiScanSubscription;
+
+	private boolean isClosed = false;
+
+	/** Reopens the cell database when an import has finished */
+	private final Runnable onDatabaseImported = new Runnable() {
+		@Override
+		public void run() {
+			if (isClosed)
+				return;
+			closeDatabase();
+			openDatabase();
+			updateRadioLocation();
+		}
+	};
+
+	public RadioLocationEngine(Context context, EventBus eventBus, TelephonyManager telephonyManager,
+			ConnectivityManager connectivityManager) {
+		this.context = context.getApplicationContext();
+		this.eventBus = eventBus;
+		this.telephonyManager = telephonyManager;
+		this.connectivityManager = connectivityManager;
+		openDatabase();
+		CellDatabaseImportTask.startIfNeeded(this.context, onDatabaseImported);
+	}
+
+	/**
+	 * Sets the source of access point locations.
+	 *
+	 * @param lookup The lookup, or {@code null} to use cells only
+	 */
+	public void setWifiLocationLookup(WifiLocationLookup lookup) {
+		wifiLocationLookup = lookup;
+	}
+
+	/**
+	 * Starts tracking cells and estimating positions. Does nothing if the engine is already started.
+	 */
+	public void start() {
+		if (isClosed || (cellInfoSubscription != null))
+			return;
+		/*
+		 * Cell events are delivered on the publishing thread, so that the
+		 * latest ones are replayed before the current state is queried below
+		 * and cannot overwrite it.
+		 */
+		cellInfoSubscription = eventBus.cellInfo.subscribe(new Topic.Listener<List<CellInfo>>() {
+			@Override
+			public void onEvent(List<CellInfo> cellInfo) {
+				updateCellData(null, null, cellInfo.isEmpty() ? null : cellInfo);
+			}
+		}, null, 0);
+		cellLocationSubscription = eventBus.cellLocation.subscribe(new Topic.Listener<CellLocation>() {
+			@Override
+			public void onEvent(CellLocation location) {
+				updateCellData(location, null, null);
+			}
+		}, null, 0);
+		networkTypeSubscription = eventBus.networkType.subscribe(new Topic.Listener<Integer>() {
+			@Override
+			public void onEvent(Integer networkType) {
+				onNetworkTypeChanged(networkType);
+			}
+		}, null, 0);
+		signalStrengthSubscription = eventBus.signalStrength.subscribe(new Topic.Listener<SignalStrength>() {
+			@Override
+			public void onEvent(SignalStrength signalStrength) {
+				updateCellData(null, signalStrength, null);
+			}
+		}, eventBus.mainThread, SIGNAL_STRENGTH_INTERVAL);
+		wifiScanSubscription = eventBus.wifiScanResults.subscribe(new Topic.Listener<List<ScanResult>>() {
+			@Override
+			public void onEvent(List<ScanResult> results) {
+				scanResults = results;
+				updateRadioLocation();
+			}
+		}, eventBus.mainThread, 0);
+
+		//get current phone info (first update won't fire until the cell actually changes)
+		updateCellData(null, null, null);
+		//and make sure we have the correct network type
+		onNetworkTypeChanged(telephonyManager.getNetworkType());
+	}
+
+	/**
+	 * Stops tracking cells. Does nothing if the engine is not started.
+	 */
+	public void stop() {
+		if (cellInfoSubscription == null)
+			return;
+		cellInfoSubscription.cancel();
+		cellLocationSubscription.cancel();
+		networkTypeSubscription.cancel();
+		signalStrengthSubscription.cancel();
+		wifiScanSubscription.cancel();
+		cellInfoSubscription = null;
+		networkTimehandler.removeCallbacks(networkTimeRunnable);
+	}
+
+	/**
+	 * Stops the engine and closes the cell database. The engine cannot be restarted afterwards.
+	 */
+	public void close() {
+		stop();
+		isClosed = true;
+		closeDatabase();
+	}
+
+	/**
+	 * Returns the offline cell database, or {@code null} if not available.
+	 */
+	public CellDatabase getCellDatabase() {
+		return mCellDatabase;
+	}
+
+	public CellTower getServingCell() {
+		return mServingCell;
+	}
+
+	public CellTowerListGsm getCellsGsm() {
+		return mCellsGsm;
+	}
+
+	public CellTowerListCdma getCellsCdma() {
+		return mCellsCdma;
+	}
+
+	public CellTowerListLte getCellsLte() {
+		return mCellsLte;
+	}
+
+	private void openDatabase() {
+		File dbDir = context.getExternalFilesDir(null);
+		if (dbDir != null)
+			try {
+				mCellDatabase = CellDatabase.open(new File(dbDir, CellDatabase.FILE_NAME));
+			} catch (IOException e) {
+				Log.w(TAG, "Cannot open cell database: " + e.getMessage());
+			}
+	}
+
+	private void closeDatabase() {
+		if (mCellDatabase != null) {
+			mCellDatabase.close();
+			mCellDatabase = null;
+		}
+	}
+
+	/**
+	 * Called when the cells in view have changed. Publishes the change and updates the position estimate.
+	 */
+	private void onCellsChanged() {
+		eventBus.radioCells.publish(this);
+		updateRadioLocation();
+	}
+
+	/**
+	 * Updates the network type of the serving cell.
+	 *
+	 * @param networkType One of the NETWORK_TYPE_xxxx constants defined in {@link android.telephony.TelephonyManager}
+	 */
+	private void onNetworkTypeChanged(int networkType) {
+		Log.d(TAG, "Network type changed to " + Integer.toString(networkType));
+		int newNetworkGen = CellTower.getGenerationFromNetworkType(networkType);
+		int oldNetworkGen = mLastNetworkGen;
+		if (newNetworkGen != mLastNetworkGen) {
+			networkTimehandler.removeCallbacks(networkTimeRunnable);
+			mLastNetworkGen = newNetworkGen;
+			/*
+			 * Network type changes occur slightly before or after cell changes. Therefore, we may have
+			 * stored cells in the wrong list when switching from or to LTE.
+			 */
+			if ((newNetworkGen == 4) || (oldNetworkGen == 4)) {
+				updateCellData(null, null, null);
+				return;
+			} else if (mServingCell != null) {
+				mServingCell.setNetworkType(networkType);
+				Log.d(TAG, String.format("Setting network type to %d for cell %s (%s)", mServingCell.getGeneration(), mServingCell.getText(), mServingCell.getAltText()));
+			}
+		}
+		onCellsChanged();
+	}
+
+	/**
+	 * Estimates our position from the cells and access points in view.
+	 * <p>
+	 * Cells are looked up in {@link #mCellDatabase}, access points through
+	 * {@link #wifiLocationLookup}. If at least one of them is found, the
+	 * position estimate is published as a location from the
+	 * {@link RadioPositionEstimator#PROVIDER} provider.
+	 */
+	private void updateRadioLocation() {
+		if ((mCellDatabase == null) && (wifiLocationLookup == null))
+			return;
+		mEstimator.reset();
+		if (mCellDatabase != null) {
+			for (CellTowerGsm cell : mCellsGsm.values())
+				if (cell.hasSource())
+					addCellObservation(mCellDatabase.find(cell), cell.getDbm());
+			for (CellTowerLte cell : mCellsLte.values())
+				if (cell.hasSource())
+					addCellObservation(mCellDatabase.find(cell), cell.getDbm());
+		}
+		if ((wifiLocationLookup != null) && (scanResults != null))
+			for (ScanResult result : scanResults)
+				if (wifiLocationLookup.lookup(result.BSSID, mApLocation))
+					mEstimator.add(RadioPositionEstimator.TYPE_WIFI, mApLocation[0], mApLocation[1], result.level, (int) mApLocation[2]);
+		if (!mEstimator.estimate())
+			return;
+
+		mRadioLocation.reset();
+		mRadioLocation.setProvider(RadioPositionEstimator.PROVIDER);
+		mRadioLocation.setLatitude(mEstimator.getLatitude());
+		mRadioLocation.setLongitude(mEstimator.getLongitude());
+		mRadioLocation.setAccuracy(mEstimator.getAccuracy());
+		mRadioLocation.setTime(System.currentTimeMillis());
+		if (Log.isLoggable(TAG, Log.VERBOSE))
+			Log.v(TAG, String.format("Radio position from %d transmitters, %d iterations, %d µs",
+					mEstimator.getCount(), mEstimator.getIterations(), mEstimator.getEstimateNanos() / 1000));
+
+		eventBus.location.publish(mRadioLocation);
+	}
+
+	/**
+	 * Adds a cell from the offline cell database to the position estimate.
+	 * @param index The index of the cell in {@link #mCellDatabase}, or {@link CellDatabase#NOT_FOUND}
+	 * @param dbm The signal strength of the cell, or {@link CellTower#DBM_UNKNOWN}
+	 */
+	private void addCellObservation(int index, int dbm) {
+		if (index == CellDatabase.NOT_FOUND)
+			return;
+		mEstimator.add(RadioPositionEstimator.TYPE_CELL,
+				mCellDatabase.getLatitude(index),
+				mCellDatabase.getLongitude(index),
+				(dbm == CellTower.DBM_UNKNOWN) ? RadioPositionEstimator.SIGNAL_UNKNOWN : dbm,
+				mCellDatabase.getRange(index));
+	}
+
+	/**
+	 * Updates all cell data.
+	 *
+	 * This method is called whenever any change in the cell environment (cells in view or signal
+	 * strengths) is signaled, e.g. by a call to a {@link android.telephony.PhoneStateListener}. The
+	 * arguments of this method should be filled with the data passed to the
+	 * {@link android.telephony.PhoneStateListener} where possible, and null passed for all others.
+	 *
+	 * To force an update of all cell data, simply call this method with each argument set to null.
+	 *
+	 * If any of the arguments is null, this method will try to obtain that data by querying
+	 * {@link android.telephony.TelephonyManager}. The only exception is {@code signalStrength}, which
+	 * will not be explicitly queried if missing.
+	 *
+	 * It will first process {@code aCellInfo}, then {@code aLocation}, querying current values from
+	 * {@link android.telephony.TelephonyManager} if one of these arguments is null. Next it will process
+	 * {@code signalStrength}, if supplied, and eventually obtain neighboring cells by calling
+	 * {@link android.telephony.TelephonyManager#getNeighboringCellInfo()} and process these. Eventually
+	 * it will publish the new cell data.
+	 *
+	 * @param aLocation The {@link android.telephony.CellLocation} reported by a
+	 * {@link android.telephony.PhoneStateListener}. If null, the current value will be queried.
+	 * @param aSignalStrength The {@link android.telephony.SignalStrength} reported by a
+	 * {@link android.telephony.PhoneStateListener}. If null, the signal strength of the serving cell
+	 * will either be taken from {@code aCellInfo}, if available, or not be updated at all.
+	 * @param aCellInfo A list of {@link android.telephony.CellInfo} instances reported by a
+	 * {@link android.telephony.PhoneStateListener}. If null, the current value will be queried.
+	 */
+	@SuppressLint("NewApi")
+	private void updateCellData(CellLocation aLocation, SignalStrength signalStrength, List<CellInfo> aCellInfo) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+			try {
+				/*
+				 * CellInfo requires API 17+ and should in theory return all cells in view. In practice,
+				 * some devices do not implement it or return only a partial list. On some devices,
+				 * PhoneStateListener#onCellInfoChanged() will fire but always receive a null argument.
+				 */
+				List<CellInfo> cellInfo = (aCellInfo != null) ? aCellInfo : telephonyManager.getAllCellInfo();
+				mCellsGsm.updateAll(cellInfo);
+				mCellsCdma.updateAll(cellInfo);
+				mCellsLte.updateAll(cellInfo);
+			} catch (SecurityException e) {
+				// Permission not granted, can't retrieve cell data
+			}
+		}
+
+		try {
+			/*
+			 * CellLocation should return the serving cell, unless it is LTE (in which case it should
+			 * return null). In practice, however, some devices do return LTE cells. The approach of
+			 * this method does not work well for devices with multiple radios.
+			 */
+			CellLocation location = (aLocation != null) ? aLocation : telephonyManager.getCellLocation();
+			String networkOperator = telephonyManager.getNetworkOperator();
+			mCellsGsm.removeSource(CellTower.SOURCE_CELL_LOCATION);
+			mCellsCdma.removeSource(CellTower.SOURCE_CELL_LOCATION);
+			mCellsLte.removeSource(CellTower.SOURCE_CELL_LOCATION);
+			if (location instanceof GsmCellLocation) {
+				if (mLastNetworkGen < 4) {
+					mServingCell = mCellsGsm.update(networkOperator, (GsmCellLocation) location);
+					if ((mServingCell.getDbm() == CellTower.DBM_UNKNOWN) && (mServingCell instanceof CellTowerGsm))
+						((CellTowerGsm) mServingCell).setAsu(mLastCellAsu);
+				} else {
+					mServingCell = mCellsLte.update(networkOperator, (GsmCellLocation) location);
+					if (mServingCell.getDbm() == CellTower.DBM_UNKNOWN)
+						((CellTowerLte) mServingCell).setAsu(mLastCellAsu);
+				}
+			} else if (location instanceof CdmaCellLocation) {
+				mServingCell = mCellsCdma.update((CdmaCellLocation) location);
+				if (mServingCell.getDbm() == CellTower.DBM_UNKNOWN)
+					((CellTowerCdma) mServingCell).setDbm(mLastCellDbm);
+			}
+			networkTimehandler.removeCallbacks(networkTimeRunnable);
+		} catch (SecurityException e) {
+			// Permission not granted, can't retrieve cell data
+		}
+
+		if ((mServingCell == null) || (mServingCell.getGeneration() <= 0)) {
+			if ((mLastNetworkGen != 0) && (mServingCell != null))
+				mServingCell.setGeneration(mLastNetworkGen);
+			NetworkInfo netinfo = connectivityManager.getActiveNetworkInfo();
+			if ((netinfo == null)
+					|| (netinfo.getType() < ConnectivityManager.TYPE_MOBILE_MMS)
+					|| (netinfo.getType() > ConnectivityManager.TYPE_MOBILE_HIPRI)) {
+				networkTimehandler.postDelayed(networkTimeRunnable, NETWORK_REFRESH_DELAY);
+			}
+		} else if (mServingCell != null) {
+			mLastNetworkGen = mServingCell.getGeneration();
+		}
+
+		if ((signalStrength != null) && (mServingCell != null)) {
+			int pt = telephonyManager.getPhoneType();
+			if (pt == PHONE_TYPE_GSM) {
+				mLastCellAsu = signalStrength.getGsmSignalStrength();
+				updateNeighboringCellInfo();
+				if (mServingCell instanceof CellTowerGsm)
+					((CellTowerGsm) mServingCell).setAsu(mLastCellAsu);
+				else
+					Log.w(TAG, "Got SignalStrength for PHONE_TYPE_GSM but serving cell is not GSM");
+			} else if (pt == PHONE_TYPE_CDMA) {
+				mLastCellDbm = signalStrength.getCdmaDbm();
+				if ((mServingCell != null) && (mServingCell instanceof CellTowerCdma))
+					mServingCell.setDbm(mLastCellDbm);
+				else
+					Log.w(TAG, "Got SignalStrength for PHONE_TYPE_CDMA but serving cell is not CDMA");
+			} else
+				Log.w(TAG, String.format("Got SignalStrength for unknown phone type (%d)", pt));
+		} else if (mServingCell == null) {
+			Log.w(TAG, "Got SignalStrength but serving cell is null");
+		}
+
+		try {
+			/*
+			 * NeighboringCellInfo is not supported on some devices and will return no data. It lists
+			 * only GSM and successors' cells, but not CDMA cells.
+			 */
+			updateNeighboringCellInfo();
+		} catch (SecurityException e) {
+			// Permission not granted, can't retrieve cell data
+		}
+
+		onCellsChanged();
+	}
+
+	/**
+	 * Requeries neighboring cells
+	 */
+	private void updateNeighboringCellInfo() {
+		// this may not be supported on some devices (returns no data)
+		String networkOperator = telephonyManager.getNetworkOperator();
+		List<NeighboringCellInfo> neighboringCells = telephonyManager.getNeighboringCellInfo();
+		mCellsGsm.updateAll(networkOperator, neighboringCells);
+		mCellsLte.updateAll(networkOperator, neighboringCells);
+	}
+}
@@ -0,0 +1,357 @@
+package com.vonglasow.michael.satstat.location;
+
+/**
+ * Estimates a position from radio transmitters with known locations.
+ * <p>
+ * The estimator works on a set of observations, each of which consists of
+ * the location of a transmitter (a cell tower or a Wi-Fi access point) and
+ * the signal strength at which it was received. Signal strength is converted
+ * into an approximate distance using a log-distance path loss model. A first
+ * estimate is obtained as a centroid of all transmitters, weighted by inverse
+ * square distance. This is then refined by an iterative least-squares fit of
+ * the distances (Gauss-Newton with Levenberg-Marquardt damping), carried out
+ * in a local planar coordinate system around the centroid.
+ * <p>
+ * Observations are stored in preallocated arrays. Neither adding
+ * observations nor estimating a position allocates any objects, so this
+ * class can be used on every radio update. It does not depend on any Android
+ * APIs. Instances are not thread-safe.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * estimator.reset();
+ * estimator.add(RadioPositionEstimator.TYPE_CELL, lat, lon, dbm, range);
+ * // add more observations
+ * if (estimator.estimate())
+ *     // use getLatitude(), getLongitude() and getAccuracy()
+ * </pre>
+ */
+public class RadioPositionEstimator {
+	/** The name of the location provider for positions obtained from this class. */
+	public static final String PROVIDER = "radio";
+
+	/** Observation type for a cell tower. */
+	public static final int TYPE_CELL = 0;
+
+	/** Observation type for a Wi-Fi access point. */
+	public static final int TYPE_WIFI = 1;
+
+	/** Signal strength value to indicate the signal strength is unknown. */
+	public static final int SIGNAL_UNKNOWN = Integer.MIN_VALUE;
+
+	/** Default maximum number of observations. */
+	public static final int DEFAULT_CAPACITY = 128;
+
+	/*
+	 * Path loss model parameters, per observation type: signal strength at
+	 * the reference distance (dBm), reference distance (m), path loss
+	 * exponent, default distance if signal strength is unknown (m), minimum
+	 * and maximum distance (m).
+	 */
+	private static final double[] REF_DBM = {-50, -40};
+	private static final double[] REF_DISTANCE = {100, 1};
+	private static final double[] PATH_LOSS_EXPONENT = {3.5, 3.0};
+	private static final double[] DEFAULT_DISTANCE = {1000, 50};
+	private static final double[] MIN_DISTANCE = {50, 1};
+	private static final double[] MAX_DISTANCE = {35000, 250};
+
+	/** Relative uncertainty of a distance derived from signal strength. */
+	private static final double DISTANCE_ERROR = 0.5;
+
+	/** Maximum number of least-squares iterations. */
+	private static final int MAX_ITERATIONS = 8;
+
+	/** Iteration stops when the position changes by less than this distance (m). */
+	private static final double CONVERGENCE_THRESHOLD = 0.1;
+
+	/** Minimum number of observations for a least-squares fit. */
+	private static final int MIN_FIT_OBSERVATIONS = 3;
+
+	/** Minimum reported accuracy (m). */
+	private static final float MIN_ACCURACY = 5;
+
+	/** Mean radius of the earth (m). */
+	private static final double EARTH_RADIUS = 6371000;
+
+	private final int capacity;
+	private int count = 0;
+
+	/* Observations */
+	private final double[] obsLat;
+	private final double[] obsLon;
+	private final double[] obsDistance;
+
+	/* Working arrays: local coordinates (m) and weights */
+	private final double[] x;
+	private final double[] y;
+	private final double[] weight;
+
+	/* Result */
+	private double latitude = Double.NaN;
+	private double longitude = Double.NaN;
+	private float accuracy = 0;
+	private int iterations = 0;
+	private long estimateNanos = 0;
+
+	/**
+	 * Creates a new estimator with the default capacity.
+	 */
+	public RadioPositionEstimator() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new estimator.
+	 *
+	 * @param capacity The maximum number of observations
+	 */
+	public RadioPositionEstimator(int capacity) {
+		this.capacity = capacity;
+		obsLat = new double[capacity];
+		obsLon = new double[capacity];
+		obsDistance = new double[capacity];
+		x = new double[capacity];
+		y = new double[capacity];
+		weight = new double[capacity];
+	}
+
+	/**
+	 * Removes all observations.
+	 * <p>
+	 * The last result is kept until the next call to {@link #estimate()}.
+	 */
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * Adds an observation.
+	 *
+	 * @param type The type of transmitter, {@link #TYPE_CELL} or {@link #TYPE_WIFI}
+	 * @param lat The latitude of the transmitter
+	 * @param lon The longitude of the transmitter
+	 * @param dbm The signal strength in dBm, or {@link #SIGNAL_UNKNOWN}
+	 * @param range The known coverage radius of the transmitter in meters, or 0 if unknown. If
+	 * nonzero, the distance derived from the signal strength will not exceed this value.
+	 * @return true if the observation was added, false if the estimator is full or arguments are invalid
+	 */
+	public boolean add(int type, double lat, double lon, int dbm, int range) {
+		if ((count >= capacity) || (type < TYPE_CELL) || (type > TYPE_WIFI)
+				|| Double.isNaN(lat) || Double.isNaN(lon))
+			return false;
+		double distance;
+		if (dbm == SIGNAL_UNKNOWN)
+			distance = (range > 0) ? range : DEFAULT_DISTANCE[type];
+		else
+			distance = REF_DISTANCE[type] * Math.pow(10, (REF_DBM[type] - dbm) / (10 * PATH_LOSS_EXPONENT[type]));
+		if (distance < MIN_DISTANCE[type])
+			distance = MIN_DISTANCE[type];
+		else if (distance > MAX_DISTANCE[type])
+			distance = MAX_DISTANCE[type];
+		if ((range > 0) && (distance > range))
+			distance = Math.max(range, MIN_DISTANCE[type]);
+		obsLat[count] = lat;
+		obsLon[count] = lon;
+		obsDistance[count] = distance;
+		count++;
+		return true;
+	}
+
+	/**
+	 * Returns the number of observations.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Estimates the position from the current observations.
+	 *
+	 * @return true if a position was obtained, false if there are no observations
+	 */
+	public boolean estimate() {
+		long start = System.nanoTime();
+		iterations = 0;
+		if (count == 0) {
+			latitude = Double.NaN;
+			longitude = Double.NaN;
+			accuracy = 0;
+			estimateNanos = System.nanoTime() - start;
+			return false;
+		}
+
+		// weighted centroid in geographic coordinates, used as origin for local coordinates
+		double sumW = 0;
+		double refLat = 0;
+		double refLon = 0;
+		double lon0 = obsLon[0];
+		for (int i = 0; i < count; i++) {
+			double w = 1 / (obsDistance[i] * obsDistance[i]);
+			weight[i] = w;
+			sumW += w;
+			refLat += w * obsLat[i];
+			// unwrap longitudes around the first observation to handle the antimeridian
+			refLon += w * unwrap(obsLon[i], lon0);
+		}
+		refLat /= sumW;
+		refLon /= sumW;
+
+		// project into local coordinates (equirectangular, accurate enough at radio scale)
+		double mPerDegLat = Math.toRadians(EARTH_RADIUS);
+		double mPerDegLon = mPerDegLat * Math.cos(Math.toRadians(refLat));
+		for (int i = 0; i < count; i++) {
+			x[i] = (unwrap(obsLon[i], lon0) - refLon) * mPerDegLon;
+			y[i] = (obsLat[i] - refLat) * mPerDegLat;
+			// weights for least squares: inverse variance of distance
+			double sigma = DISTANCE_ERROR * obsDistance[i];
+			weight[i] = 1 / (sigma * sigma);
+		}
+
+		// the centroid is the origin of the local system
+		double px = 0;
+		double py = 0;
+		double sse = residuals(px, py);
+
+		if (count >= MIN_FIT_OBSERVATIONS) {
+			double lambda = 1e-3;
+			while (iterations < MAX_ITERATIONS) {
+				iterations++;
+				// normal equations: (J'WJ + lambda diag) d = -J'Wr
+				double a11 = 0, a12 = 0, a22 = 0, b1 = 0, b2 = 0;
+				for (int i = 0; i < count; i++) {
+					double dx = px - x[i];
+					double dy = py - y[i];
+					double dist = Math.sqrt(dx * dx + dy * dy);
+					if (dist < 1e-6)
+						continue;
+					double jx = dx / dist;
+					double jy = dy / dist;
+					double r = dist - obsDistance[i];
+					double w = weight[i];
+					a11 += w * jx * jx;
+					a12 += w * jx * jy;
+					a22 += w * jy * jy;
+					b1 -= w * jx * r;
+					b2 -= w * jy * r;
+				}
+				double d11 = a11 * (1 + lambda);
+				double d22 = a22 * (1 + lambda);
+				double det = d11 * d22 - a12 * a12;
+				if (Math.abs(det) < 1e-30)
+					break;
+				double sx = (d22 * b1 - a12 * b2) / det;
+				double sy = (d11 * b2 - a12 * b1) / det;
+				double newSse = residuals(px + sx, py + sy);
+				if (newSse < sse) {
+					px += sx;
+					py += sy;
+					sse = newSse;
+					lambda /= 10;
+					if (Math.sqrt(sx * sx + sy * sy) < CONVERGENCE_THRESHOLD)
+						break;
+				} else {
+					lambda *= 10;
+					if (lambda > 1e6)
+						break;
+				}
+			}
+		}
+
+		/*
+		 * Accuracy: RMS of distance residuals (weighted by 1/distance^2),
+		 * but no better than the closest transmitter allows and no worse
+		 * than the weighted mean distance if the geometry is poor.
+		 */
+		double sumRw = 0;
+		double sumR2 = 0;
+		double meanDist = 0;
+		double minDist = Double.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			double dx = px - x[i];
+			double dy = py - y[i];
+			double r = Math.sqrt(dx * dx + dy * dy) - obsDistance[i];
+			double w = 1 / (obsDistance[i] * obsDistance[i]);
+			sumRw += w;
+			sumR2 += w * r * r;
+			meanDist += w * obsDistance[i];
+			if (obsDistance[i] < minDist)
+				minDist = obsDistance[i];
+		}
+		meanDist /= sumRw;
+		double acc;
+		if (count < MIN_FIT_OBSERVATIONS)
+			acc = meanDist;
+		else
+			acc = Math.min(Math.max(Math.sqrt(sumR2 / sumRw), DISTANCE_ERROR * minDist), meanDist);
+
+		latitude = refLat + py / mPerDegLat;
+		longitude = refLon + px / mPerDegLon;
+		if (longitude > 180)
+			longitude -= 360;
+		else if (longitude < -180)
+			longitude += 360;
+		accuracy = (float) Math.max(acc, MIN_ACCURACY);
+		estimateNanos = System.nanoTime() - start;
+		return true;
+	}
+
+	/**
+	 * Returns the weighted sum of squared distance residuals for a position in local coordinates.
+	 */
+	private double residuals(double px, double py) {
+		double sum = 0;
+		for (int i = 0; i < count; i++) {
+			double dx = px - x[i];
+			double dy = py - y[i];
+			double r = Math.sqrt(dx * dx + dy * dy) - obsDistance[i];
+			sum += weight[i] * r * r;
+		}
+		return sum;
+	}
+
+	/**
+	 * Shifts a longitude by a multiple of 360 degrees so that it is within 180 degrees of a reference.
+	 */
+	private static double unwrap(double lon, double ref) {
+		if (lon - ref > 180)
+			return lon - 360;
+		else if (lon - ref < -180)
+			return lon + 360;
+		return lon;
+	}
+
+	/**
+	 * Returns the estimated accuracy of the last estimate in meters.
+	 */
+	public float getAccuracy() {
+		return accuracy;
+	}
+
+	/**
+	 * Returns the time taken by the last call to {@link #estimate()}, in nanoseconds.
+	 */
+	public long getEstimateNanos() {
+		return estimateNanos;
+	}
+
+	/**
+	 * Returns the number of least-squares iterations carried out in the last estimate.
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * Returns the latitude of the last estimate, or {@code NaN} if no estimate is available.
+	 */
+	public double getLatitude() {
+		return latitude;
+	}
+
+	/**
+	 * Returns the longitude of the last estimate, or {@code NaN} if no estimate is available.
+	 */
+	public double getLongitude() {
+		return longitude;
+	}
+}
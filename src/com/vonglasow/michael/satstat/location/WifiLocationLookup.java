@@ -0,0 +1,20 @@
+package com.vonglasow.michael.satstat.location;
+
+/**
+ * Looks up the location of Wi-Fi access points.
+ * <p>
+ * Implementations supply access point locations to
+ * {@link RadioPositionEstimator}. Lookups happen on every Wi-Fi scan and
+ * should therefore be fast and should not allocate objects.
+ */
+public interface WifiLocationLookup {
+	/**
+	 * Looks up the location of an access point.
+	 *
+	 * @param bssid The BSSID of the access point, as reported in a scan result
+	 * @param result Receives latitude, longitude (both in degrees) and range (in meters, 0 if
+	 * unknown) in its first three elements if the access point is found
+	 * @return true if the access point was found, false if not
+	 */
+	public boolean lookup(String bssid, double[] result);
+}
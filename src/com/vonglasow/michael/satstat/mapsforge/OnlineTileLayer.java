@@ -0,0 +1,185 @@
+package com.vonglasow.michael.satstat.mapsforge;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.CorruptedInputStreamException;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.TileLayer;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.download.DownloadJob;
+import org.mapsforge.map.layer.download.TileDownloadLayer;
+import org.mapsforge.map.layer.download.tilesource.TileSource;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.model.MapViewPosition;
+import org.mapsforge.map.util.PausableThread;
+
+/**
+ * A layer which downloads tiles from an online tile source.
+ * <p>
+ * This works like {@link TileDownloadLayer}, but tiles are downloaded through a {@link TileFetcher}, which reuses
+ * connections, limits concurrent requests to each host and retries failed requests. The fetcher can be shared
+ * between layers, so that its limits and metrics apply to all of them.
+ * <p>
+ * The layer has one worker thread for each parallel request allowed by the tile source, up to
+ * {@link #DOWNLOAD_THREADS_MAX}. Workers are started by {@link #start()} or the first call to {@link #onResume()}.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class OnlineTileLayer extends TileLayer<DownloadJob> {
+    /**
+     * The maximum number of worker threads.
+     */
+    public static final int DOWNLOAD_THREADS_MAX = 8;
+
+    private static final Logger LOGGER = Logger.getLogger(OnlineTileLayer.class.getName());
+
+    private final TileSource tileSource;
+    private final TileFetcher tileFetcher;
+    private final GraphicFactory graphicFactory;
+    private boolean started;
+    private DownloadWorker[] workers;
+
+    /**
+     * @param tileCache The cache for downloaded tiles
+     * @param mapViewPosition The position of the map view
+     * @param tileSource The tile source from which to download tiles
+     * @param tileFetcher The tile fetcher through which tiles are downloaded
+     * @param graphicFactory The graphic factory of the platform
+     */
+    public OnlineTileLayer(TileCache tileCache, MapViewPosition mapViewPosition, TileSource tileSource,
+            TileFetcher tileFetcher, GraphicFactory graphicFactory) {
+        super(tileCache, mapViewPosition, graphicFactory.createMatrix(), tileSource.hasAlpha());
+        this.tileSource = tileSource;
+        this.tileFetcher = tileFetcher;
+        this.graphicFactory = graphicFactory;
+    }
+
+    @Override
+    public void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas, Point topLeftPoint) {
+        if ((zoomLevel < tileSource.getZoomLevelMin()) || (zoomLevel > tileSource.getZoomLevelMax()))
+            return;
+        super.draw(boundingBox, zoomLevel, canvas, topLeftPoint);
+    }
+
+    public TileFetcher getTileFetcher() {
+        return tileFetcher;
+    }
+
+    public TileSource getTileSource() {
+        return tileSource;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (workers != null)
+            for (DownloadWorker worker : workers)
+                worker.interrupt();
+        super.onDestroy();
+    }
+
+    /**
+     * Pauses downloads, e.g. when the map view is no longer visible.
+     */
+    public void onPause() {
+        if (workers != null)
+            for (DownloadWorker worker : workers)
+                worker.pause();
+    }
+
+    /**
+     * Resumes downloads, starting the workers if they have not been started yet.
+     */
+    public void onResume() {
+        if (!started)
+            start();
+        if (workers != null)
+            for (DownloadWorker worker : workers)
+                worker.proceed();
+    }
+
+    @Override
+    public synchronized void setDisplayModel(DisplayModel displayModel) {
+        super.setDisplayModel(displayModel);
+        int count = Math.min(tileSource.getParallelRequestsLimit(), DOWNLOAD_THREADS_MAX);
+        if (displayModel != null) {
+            workers = new DownloadWorker[count];
+            for (int i = 0; i < count; i++)
+                workers[i] = new DownloadWorker(displayModel);
+        } else if (workers != null) {
+            for (DownloadWorker worker : workers)
+                worker.interrupt();
+        }
+    }
+
+    /**
+     * Starts the workers.
+     */
+    public void start() {
+        if (workers != null)
+            for (DownloadWorker worker : workers)
+                worker.start();
+        started = true;
+    }
+
+    @Override
+    protected DownloadJob createJob(Tile tile) {
+        return new DownloadJob(tile, displayModel.getTileSize(), tileSource);
+    }
+
+    /**
+     * Takes jobs from the job queue of the layer, downloads the tiles and puts them into the tile cache.
+     */
+    private class DownloadWorker extends PausableThread {
+        private final DisplayModel displayModel;
+
+        DownloadWorker(DisplayModel displayModel) {
+            this.displayModel = displayModel;
+        }
+
+        @Override
+        protected void doWork() throws InterruptedException {
+            DownloadJob job = jobQueue.get();
+            try {
+                if (!tileCache.containsKey(job))
+                    download(job);
+            } catch (IOException e) {
+                if (isInterrupted())
+                    throw new InterruptedException();
+                LOGGER.log(Level.SEVERE, e.getMessage(), e);
+            } catch (CorruptedInputStreamException e) {
+                LOGGER.log(Level.WARNING, "invalid tile: " + job.tile, e);
+            } finally {
+                jobQueue.remove(job);
+            }
+        }
+
+        @Override
+        protected ThreadPriority getThreadPriority() {
+            return ThreadPriority.BELOW_NORMAL;
+        }
+
+        @Override
+        protected boolean hasWork() {
+            return true;
+        }
+
+        private void download(DownloadJob job) throws IOException {
+            byte[] data = tileFetcher.fetch(job.tileSource.getTileUrl(job.tile));
+            if ((data == null) || isInterrupted())
+                return;
+            TileBitmap bitmap = graphicFactory.createTileBitmap(new ByteArrayInputStream(data), job.tileSize,
+                    job.hasAlpha);
+            bitmap.scaleTo(displayModel.getTileSize(), displayModel.getTileSize());
+            tileCache.put(job, bitmap);
+            requestRedraw();
+        }
+    }
+}
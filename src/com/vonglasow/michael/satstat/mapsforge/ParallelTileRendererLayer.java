@@ -0,0 +1,215 @@
+package com.vonglasow.michael.satstat.mapsforge;
+
+import java.io.File;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.TileLayer;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.MapWorker;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.layer.renderer.TileRendererLayer;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.model.MapViewPosition;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.reader.header.FileOpenResult;
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+
+/**
+ * A layer which renders tiles from a map file on several worker threads.
+ * <p>
+ * This works like {@link TileRendererLayer}, which renders on a single thread. Here each worker has its own
+ * {@link MapDatabase} and {@link DatabaseRenderer}, as neither is thread-safe, and all workers take jobs from the
+ * job queue of the layer. Rendered tiles are put into the tile cache of the layer, so with a persistent cache they
+ * are rendered only once.
+ * <p>
+ * The renderer keeps track of labels which cross tile borders, so that the neighboring tile is drawn to match.
+ * This only works between tiles rendered by the same worker, so such labels may occasionally be cut off at tile
+ * borders.
+ * <p>
+ * {@link #setMapFile(File)} and {@link #setXmlRenderTheme(XmlRenderTheme)} must be called before the layer is added
+ * to a map view.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class ParallelTileRendererLayer extends TileLayer<RendererJob> {
+    private final GraphicFactory graphicFactory;
+    private final int threadCount;
+
+    private File mapFile;
+    private XmlRenderTheme xmlRenderTheme;
+    private float textScale = 1;
+
+    private MapDatabase[] mapDatabases;
+    private DatabaseRenderer[] databaseRenderers;
+    private MapWorker[] mapWorkers;
+
+    /**
+     * Returns the default number of worker threads, which is the number of processor cores.
+     */
+    public static int getDefaultThreadCount() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @param tileCache The cache for rendered tiles
+     * @param mapViewPosition The position of the map view
+     * @param isTransparent Whether the tiles have a transparent background
+     * @param graphicFactory The graphic factory of the platform
+     * @param threadCount The number of worker threads, see {@link #getDefaultThreadCount()}
+     */
+    public ParallelTileRendererLayer(TileCache tileCache, MapViewPosition mapViewPosition, boolean isTransparent,
+            GraphicFactory graphicFactory, int threadCount) {
+        super(tileCache, mapViewPosition, graphicFactory.createMatrix(), isTransparent);
+        if (threadCount < 1)
+            throw new IllegalArgumentException("threadCount must be at least 1: " + threadCount);
+        this.graphicFactory = graphicFactory;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * Returns the map file from which tiles are rendered.
+     */
+    public File getMapFile() {
+        return mapFile;
+    }
+
+    /**
+     * Returns the number of worker threads.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Returns the database of the first worker, e.g. to obtain information about the map file.
+     * <p>
+     * The database must not be used to read map data while the layer is on a map view.
+     */
+    public MapDatabase getMapDatabase() {
+        return (mapDatabases == null) ? null : mapDatabases[0];
+    }
+
+    /**
+     * Opens the map file from which to render tiles, once for each worker.
+     *
+     * @throws IllegalArgumentException if the file cannot be opened
+     */
+    public void setMapFile(File mapFile) {
+        if (mapWorkers != null)
+            throw new IllegalStateException("map file cannot be changed while the layer is on a map view");
+        closeDatabases();
+        MapDatabase[] databases = new MapDatabase[threadCount];
+        DatabaseRenderer[] renderers = new DatabaseRenderer[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            databases[i] = new MapDatabase();
+            FileOpenResult result = databases[i].openFile(mapFile);
+            if (!result.isSuccess()) {
+                for (int j = 0; j <= i; j++)
+                    databases[j].closeFile();
+                throw new IllegalArgumentException(result.getErrorMessage());
+            }
+            renderers[i] = new DatabaseRenderer(databases[i], graphicFactory);
+        }
+        this.mapFile = mapFile;
+        this.mapDatabases = databases;
+        this.databaseRenderers = renderers;
+    }
+
+    public void setTextScale(float textScale) {
+        this.textScale = textScale;
+    }
+
+    public void setXmlRenderTheme(XmlRenderTheme xmlRenderTheme) {
+        this.xmlRenderTheme = xmlRenderTheme;
+    }
+
+    @Override
+    public synchronized void setDisplayModel(DisplayModel displayModel) {
+        super.setDisplayModel(displayModel);
+        if (displayModel != null) {
+            if (databaseRenderers == null)
+                throw new IllegalStateException("no map file set");
+            mapWorkers = new MapWorker[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                mapWorkers[i] = new MapWorker(tileCache, jobQueue, databaseRenderers[i], this);
+                mapWorkers[i].start();
+            }
+        } else if (mapWorkers != null) {
+            for (MapWorker worker : mapWorkers)
+                worker.interrupt();
+        }
+    }
+
+    /**
+     * Stops the workers and closes the map file.
+     * <p>
+     * Workers may be in the middle of rendering a tile, hence this happens on a separate thread, like in
+     * {@link TileRendererLayer}.
+     */
+    @Override
+    public void onDestroy() {
+        final MapWorker[] workers = mapWorkers;
+        final MapDatabase[] databases = mapDatabases;
+        final DatabaseRenderer[] renderers = databaseRenderers;
+        mapWorkers = null;
+        mapDatabases = null;
+        databaseRenderers = null;
+        new Thread() {
+            @Override
+            public void run() {
+                if (workers != null) {
+                    for (MapWorker worker : workers)
+                        worker.interrupt();
+                    for (MapWorker worker : workers)
+                        try {
+                            worker.join();
+                        } catch (InterruptedException e) {
+                            // restore the interrupted status
+                            interrupt();
+                        }
+                }
+                if (renderers != null)
+                    for (DatabaseRenderer renderer : renderers)
+                        renderer.destroy();
+                if (databases != null)
+                    for (MapDatabase database : databases)
+                        database.closeFile();
+            }
+        }.start();
+        super.onDestroy();
+    }
+
+    @Override
+    protected RendererJob createJob(Tile tile) {
+        return new RendererJob(tile, mapFile, xmlRenderTheme, displayModel, textScale, isTransparent);
+    }
+
+    @Override
+    protected void onAdd() {
+        if (mapWorkers != null)
+            for (MapWorker worker : mapWorkers)
+                worker.proceed();
+        super.onAdd();
+    }
+
+    @Override
+    protected void onRemove() {
+        if (mapWorkers != null)
+            for (MapWorker worker : mapWorkers)
+                worker.pause();
+        super.onRemove();
+    }
+
+    private void closeDatabases() {
+        if (mapDatabases == null)
+            return;
+        for (DatabaseRenderer renderer : databaseRenderers)
+            renderer.destroy();
+        for (MapDatabase database : mapDatabases)
+            database.closeFile();
+        mapDatabases = null;
+        databaseRenderers = null;
+    }
+}
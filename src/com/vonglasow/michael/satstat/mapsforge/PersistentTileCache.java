@@ -6,6 +6,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,13 +20,21 @@ import org.mapsforge.map.layer.cache.InMemoryTileCache;
 import org.mapsforge.map.layer.cache.TileCache;
 import org.mapsforge.map.layer.cache.TwoLevelTileCache;
 import org.mapsforge.map.layer.queue.Job;
-
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
 
 import android.content.Context;
 import android.util.Log;
 
 /**
  * A thread-safe cache for image files with a fixed size and LRU policy. Contents are kept across instances and thus survive app restarts.
+ * <p>
+ * A new instance picks up the tiles left in its directory by previous instances, so that the size limit and LRU
+ * policy apply to them as well. {@link #destroy()} keeps the tile files.
+ * <p>
+ * Tiles are stored under a key built by {@link #getKey(Job)}, which must be the same in every process for the
+ * same tile. {@link Job#hashCode()} is not suitable for this: {@link RendererJob} includes the identity hash code
+ * of the render theme, which changes with every start of the app.
  */
 public class PersistentTileCache implements TileCache {
 
@@ -49,7 +59,7 @@ public class PersistentTileCache implements TileCache {
 
     private final File cacheDirectory;
     private final GraphicFactory graphicFactory;
-    private FileLRUCache<Integer> lruCache;
+    private FileLRUCache<String> lruCache;
 
     /**
      * @param capacity
@@ -60,20 +70,98 @@ public class PersistentTileCache implements TileCache {
      *             if the capacity is negative.
      */
 	public PersistentTileCache(int capacity, File cacheDirectory, GraphicFactory graphicFactory) {
-        this.lruCache = new FileLRUCache<Integer>(capacity);
+        this.lruCache = new FileLRUCache<String>(capacity);
         this.cacheDirectory = checkDirectory(cacheDirectory);
         this.graphicFactory = graphicFactory;
+        readIndex();
 	}
 
+    /**
+     * Returns the key under which the tile of a job is stored.
+     * <p>
+     * The key consists of zoom level, tile coordinates and tile size, followed by a hash which identifies the
+     * source of the tile. For a {@link RendererJob}, this is a hash of the path and modification time of the map
+     * file, the name of the render theme and the text scale, so that tiles are rendered again when any of these
+     * change. For other jobs, it is the hash code of the job, which is stable for download jobs with a
+     * {@code UrlTemplateTileSource}.
+     */
+    static String getKey(Job job) {
+            int hash;
+            if (job instanceof RendererJob) {
+                    RendererJob rendererJob = (RendererJob) job;
+                    hash = (rendererJob.mapFile.getAbsolutePath() + '|' + rendererJob.mapFile.lastModified() + '|'
+                                    + getThemeName(rendererJob.xmlRenderTheme) + '|' + rendererJob.textScale).hashCode();
+            } else
+                    hash = job.hashCode();
+            return job.tile.zoomLevel + "_" + job.tile.tileX + "_" + job.tile.tileY + "_" + job.tileSize + "_"
+                            + Integer.toHexString(hash);
+    }
+
+    /**
+     * Returns a name for a render theme which is the same in every process. Built-in themes are enum constants and
+     * are identified by their name; other themes, such as {@code ExternalRenderTheme}, must provide a stable hash
+     * code.
+     */
+    private static String getThemeName(XmlRenderTheme theme) {
+            if (theme instanceof Enum)
+                    return theme.getClass().getName() + "." + ((Enum<?>) theme).name();
+            return theme.getClass().getName() + "@" + Integer.toHexString(theme.hashCode());
+    }
+
+    /**
+     * Adds the tiles in the cache directory to the index, least recently written first. Expired tiles are deleted,
+     * and the oldest tiles are evicted if there are more than the capacity. Tiles stored under numeric keys by
+     * earlier versions are deleted, as their keys cannot be matched to jobs.
+     */
+    private void readIndex() {
+            File[] files = this.cacheDirectory.listFiles(ImageFileNameFilter.INSTANCE);
+            if (files == null)
+                    return;
+            final long[] lastModified = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                    lastModified[i] = files[i].lastModified();
+                    order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer lhs, Integer rhs) {
+                            long l = lastModified[lhs];
+                            long r = lastModified[rhs];
+                            return (l < r) ? -1 : ((l == r) ? 0 : 1);
+                    }
+            });
+            long now = System.currentTimeMillis();
+            for (int i : order) {
+                    File file = files[i];
+                    String name = file.getName();
+                    String key = name.substring(0, name.length() - FILE_EXTENSION.length());
+                    if ((now - lastModified[i] > TTL) || (key.indexOf('_') < 0)) {
+                            if (!file.delete())
+                                    LOGGER.log(Level.SEVERE, "could not delete file: " + file);
+                            continue;
+                    }
+                    this.lruCache.put(key, file);
+            }
+    }
+
     @Override
     public synchronized boolean containsKey(Job key) {
-            return this.lruCache.containsKey(key.hashCode());
+            return this.lruCache.containsKey(getKey(key));
     }
 
+    /**
+     * Releases the index of the cache. Tile files are kept for the next instance.
+     */
     @Override
     public synchronized void destroy() {
             this.lruCache.clear();
+    }
 
+    /**
+     * Deletes all tile files.
+     */
+    private void deleteFiles() {
             File[] filesToDelete = this.cacheDirectory.listFiles(ImageFileNameFilter.INSTANCE);
             if (filesToDelete != null) {
                     for (File file : filesToDelete) {
@@ -86,11 +174,12 @@ public class PersistentTileCache implements TileCache {
 
     @Override
     public synchronized TileBitmap get(Job key) {
-            File file = this.lruCache.get(key.hashCode());
+            String name = getKey(key);
+            File file = this.lruCache.get(name);
 
             if (file == null) {
             	// if file exists on disk and is not yet expired, return it.
-            	file = new File(this.cacheDirectory, key.hashCode() + FILE_EXTENSION);
+            	file = new File(this.cacheDirectory, name + FILE_EXTENSION);
             	if ((file == null) || ((System.currentTimeMillis() - file.lastModified()) > TTL))
             		return null;
             }
@@ -103,11 +192,11 @@ public class PersistentTileCache implements TileCache {
                     // this can happen, at least on Android, when the input stream
                     // is somehow corrupted, returning null ensures it will be loaded
                     // from another source
-                    this.lruCache.remove(key.hashCode());
+                    this.lruCache.remove(name);
                     LOGGER.log(Level.WARNING, "input stream from file system cache invalid", e);
                     return null;
             } catch (IOException e) {
-                    this.lruCache.remove(key.hashCode());
+                    this.lruCache.remove(name);
                     LOGGER.log(Level.SEVERE, null, e);
                     return null;
             } finally {
@@ -134,11 +223,12 @@ public class PersistentTileCache implements TileCache {
 
             OutputStream outputStream = null;
             try {
-                    File file = getOutputFile(key);
+                    String name = getKey(key);
+                    File file = new File(this.cacheDirectory, name + FILE_EXTENSION);
                     outputStream = new FileOutputStream(file);
                     bitmap.compress(outputStream);
-                    if (this.lruCache.put(key.hashCode(), file) != null) {
-                            LOGGER.warning("overwriting cached entry: " + key.hashCode());
+                    if (this.lruCache.put(name, file) != null) {
+                            LOGGER.warning("overwriting cached entry: " + name);
                     }
             } catch (IOException e) {
                     LOGGER.log(Level.SEVERE, "Disabling filesystem cache", e);
@@ -146,16 +236,14 @@ public class PersistentTileCache implements TileCache {
                     // cache otherwise
                     // more and more exceptions will be thrown.
                     this.destroy();
-                    this.lruCache = new FileLRUCache<Integer>(0);
+                    this.deleteFiles();
+                    this.lruCache = new FileLRUCache<String>(0);
 
             } finally {
                     IOUtils.closeQuietly(outputStream);
             }
     }
 
-    private File getOutputFile(Job job) {
-            return new File(this.cacheDirectory, job.hashCode() + FILE_EXTENSION);
-    }
 	
     /**
      * @param c
@@ -193,6 +281,46 @@ public class PersistentTileCache implements TileCache {
             return firstLevelTileCache;
     }
 
+    /**
+     * Deletes a tile cache directory left on the external storage by earlier versions, along with all its tiles.
+     * <p>
+     * Deletion happens on a background thread, as the directory may hold thousands of files. Nothing is done if
+     * the directory does not exist.
+     *
+     * @param c
+     *            the Android context
+     * @param id
+     *            name of the directory
+     */
+    public static void deleteExternalStorageTileCache(Context c, String id) {
+            File cacheDir = c.getExternalCacheDir();
+            if (cacheDir == null)
+                    return;
+            final File cacheDirectory = new File(cacheDir, id);
+            if (!cacheDirectory.isDirectory())
+                    return;
+            new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                            if (!deleteDirectory(cacheDirectory))
+                                    Log.w("TILECACHE", "could not delete " + cacheDirectory);
+                    }
+            }, "TileCacheCleanup").start();
+    }
+
+    /**
+     * Deletes a tile cache directory and all files in it.
+     *
+     * @return true if the directory no longer exists
+     */
+    static boolean deleteDirectory(File cacheDirectory) {
+            File[] files = cacheDirectory.listFiles();
+            if (files != null)
+                    for (File file : files)
+                            file.delete();
+            return cacheDirectory.delete() || !cacheDirectory.exists();
+    }
+
     /**
      * Utility function to create a two-level tile cache with the right size. When the cache is created we do not
      * actually know the size of the mapview, so the screenRatio is an approximation of the required size.
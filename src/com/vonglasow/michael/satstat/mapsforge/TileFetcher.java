@@ -0,0 +1,402 @@
+package com.vonglasow.michael.satstat.mapsforge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads map tiles over HTTP, reusing connections and retrying failed requests.
+ * <p>
+ * Requests go through {@link HttpURLConnection}, which keeps connections alive and reuses them for later requests
+ * to the same host, but only if the response has been read to the end and the stream has been closed. This class
+ * does so for every response, including error responses. The number of concurrent requests to each host is limited,
+ * which bounds the number of open connections and keeps within the usage policies of public tile servers.
+ * <p>
+ * Requests which fail with an I/O error, a server error (5xx) or a rate limit (429) are retried after a delay, which
+ * grows exponentially with each attempt and is randomized so that several clients do not retry in lockstep. A
+ * {@code Retry-After} header sent by the server is honored. A 404 response means the server has no such tile and is
+ * not retried.
+ * <p>
+ * {@link HttpURLConnection} does not pipeline requests. With a few connections per host kept alive, requests still
+ * do not wait for a connection to be set up. Connections are opened through {@link #openConnection(URL)}, which can
+ * be overridden to use a different HTTP client.
+ * <p>
+ * Download statistics are available through {@link #getMetrics()}.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class TileFetcher {
+    /**
+     * The default maximum number of concurrent requests to one host.
+     */
+    public static final int DEFAULT_CONNECTIONS_PER_HOST = 2;
+
+    /**
+     * The default number of times a request is retried.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * The default delay before the first retry, in milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF = 500;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 20000;
+    private static final long MAX_BACKOFF = 30000;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The number of downloads over which latency percentiles are calculated.
+     */
+    private static final int LATENCY_SAMPLES = 256;
+
+    private final String userAgent;
+    private final int connectionsPerHost;
+    private final int maxRetries;
+    private final long initialBackoff;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    private final Random random = new Random();
+
+    /* Statistics, guarded by this */
+    private long requests;
+    private long successes;
+    private long notFound;
+    private long failures;
+    private long retries;
+    private long bytes;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount;
+    private long latencyTotal;
+    private int active;
+    private long activeSince;
+    private long activeTime;
+
+    /**
+     * Creates a tile fetcher with default settings.
+     *
+     * @param userAgent The {@code User-Agent} header to send, which tile servers require to identify the app
+     */
+    public TileFetcher(String userAgent) {
+        this(userAgent, DEFAULT_CONNECTIONS_PER_HOST, DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF);
+    }
+
+    /**
+     * @param userAgent The {@code User-Agent} header to send, which tile servers require to identify the app
+     * @param connectionsPerHost The maximum number of concurrent requests to one host
+     * @param maxRetries The number of times a failed request is retried
+     * @param initialBackoff The delay before the first retry, in milliseconds
+     */
+    public TileFetcher(String userAgent, int connectionsPerHost, int maxRetries, long initialBackoff) {
+        if (connectionsPerHost < 1)
+            throw new IllegalArgumentException("connectionsPerHost must be at least 1: " + connectionsPerHost);
+        this.userAgent = userAgent;
+        this.connectionsPerHost = connectionsPerHost;
+        this.maxRetries = maxRetries;
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * Downloads a tile.
+     * <p>
+     * This method blocks until the tile has been downloaded or all attempts have failed. It may be called from
+     * several threads at once.
+     *
+     * @param url The URL of the tile
+     * @return The content of the tile, or null if the server does not have the tile
+     * @throws InterruptedIOException if the thread is interrupted
+     * @throws IOException if the tile could not be downloaded
+     */
+    public byte[] fetch(URL url) throws IOException {
+        Semaphore permits = getPermits(url);
+        long start = System.nanoTime();
+        onStart(start);
+        try {
+            for (int attempt = 0; ; attempt++) {
+                long retryAfter = 0;
+                try {
+                    acquire(permits);
+                    try {
+                        byte[] data = request(url);
+                        onFinish(start, data, true);
+                        return data;
+                    } finally {
+                        permits.release();
+                    }
+                } catch (HttpStatusException e) {
+                    if (!isRetryable(e.status) || (attempt >= maxRetries))
+                        throw e;
+                    retryAfter = e.retryAfter;
+                } catch (IOException e) {
+                    if (Thread.currentThread().isInterrupted() || (attempt >= maxRetries))
+                        throw e;
+                }
+                synchronized (this) {
+                    retries++;
+                }
+                sleep(Math.max(getBackoff(attempt), retryAfter));
+            }
+        } catch (IOException e) {
+            onFinish(start, null, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the maximum number of concurrent requests to one host.
+     */
+    public int getConnectionsPerHost() {
+        return connectionsPerHost;
+    }
+
+    /**
+     * Returns download statistics since this tile fetcher was created.
+     */
+    public synchronized Metrics getMetrics() {
+        long now = System.nanoTime();
+        long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+        Arrays.sort(sorted);
+        long busy = activeTime + ((active > 0) ? (now - activeSince) : 0);
+        return new Metrics(requests, successes, notFound, failures, retries, bytes,
+                (latencyCount == 0) ? 0 : latencyTotal / latencyCount,
+                percentile(sorted, 50), percentile(sorted, 95),
+                (busy == 0) ? 0 : bytes * 1000000000L / busy);
+    }
+
+    /**
+     * Opens a connection for a request.
+     * <p>
+     * The default implementation returns a {@link HttpURLConnection}. Subclasses may override this method to set
+     * additional request properties or to use a different HTTP client.
+     */
+    protected HttpURLConnection openConnection(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    private static void acquire(Semaphore permits) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+    }
+
+    /**
+     * Reads a stream to the end and closes it, which allows the underlying connection to be reused.
+     */
+    private static void drain(InputStream in) {
+        if (in == null)
+            return;
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1)
+                ;
+        } catch (IOException e) {
+            // the connection will not be reused
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private long getBackoff(int attempt) {
+        long backoff = Math.min(initialBackoff << Math.min(attempt, 16), MAX_BACKOFF);
+        synchronized (random) {
+            return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+        }
+    }
+
+    private Semaphore getPermits(URL url) {
+        String host = url.getProtocol() + "://" + url.getHost() + ":"
+                + ((url.getPort() == -1) ? url.getDefaultPort() : url.getPort());
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(connectionsPerHost, true);
+            permits = hostPermits.putIfAbsent(host, newPermits);
+            if (permits == null)
+                permits = newPermits;
+        }
+        return permits;
+    }
+
+    private static boolean isRetryable(int status) {
+        return (status == HTTP_TOO_MANY_REQUESTS) || (status >= HttpURLConnection.HTTP_INTERNAL_ERROR);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((length > 0) ? length : BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+                out.write(buffer, 0, count);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    private synchronized void onFinish(long start, byte[] data, boolean success) {
+        long now = System.nanoTime();
+        if (success) {
+            if (data != null) {
+                successes++;
+                bytes += data.length;
+            } else
+                notFound++;
+            long latency = (now - start) / 1000000;
+            latencies[latencyCount % LATENCY_SAMPLES] = latency;
+            latencyCount++;
+            latencyTotal += latency;
+        } else
+            failures++;
+        active--;
+        if (active == 0)
+            activeTime += now - activeSince;
+    }
+
+    private synchronized void onStart(long start) {
+        requests++;
+        if (active == 0)
+            activeSince = start;
+        active++;
+    }
+
+    /**
+     * Makes a single request.
+     *
+     * @return The response body, or null if the server does not have the tile
+     * @throws HttpStatusException if the server returns an error
+     */
+    private byte[] request(URL url) throws IOException {
+        HttpURLConnection connection = openConnection(url);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("User-Agent", userAgent);
+        connection.setUseCaches(false);
+        int status;
+        try {
+            status = connection.getResponseCode();
+        } catch (IOException e) {
+            drain(connection.getErrorStream());
+            throw e;
+        }
+        if (status == HttpURLConnection.HTTP_OK) {
+            InputStream in = connection.getInputStream();
+            if ("gzip".equals(connection.getContentEncoding()))
+                in = new GZIPInputStream(in);
+            return readFully(in, connection.getContentLength());
+        }
+        drain(connection.getErrorStream());
+        if ((status == HttpURLConnection.HTTP_NOT_FOUND) || (status == HttpURLConnection.HTTP_NO_CONTENT))
+            return null;
+        long retryAfter = 0;
+        try {
+            String value = connection.getHeaderField("Retry-After");
+            if (value != null)
+                retryAfter = Math.min(Long.parseLong(value.trim()) * 1000, MAX_BACKOFF);
+        } catch (NumberFormatException e) {
+            // HTTP date, use our own backoff instead
+        }
+        throw new HttpStatusException(url, status, retryAfter);
+    }
+
+    /**
+     * Thrown when a server responds with an error status.
+     */
+    private static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+        final long retryAfter;
+
+        HttpStatusException(URL url, int status, long retryAfter) {
+            super("HTTP " + status + ": " + url);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /**
+     * Download statistics.
+     * <p>
+     * Latencies are measured from the call to {@link TileFetcher#fetch(URL)} until it returns, including time spent
+     * waiting for a connection and for retries, for the most recent downloads. Throughput is calculated over the
+     * time during which at least one download was in progress.
+     */
+    public static class Metrics {
+        /** Calls to {@link TileFetcher#fetch(URL)} */
+        public final long requests;
+        /** Tiles downloaded */
+        public final long successes;
+        /** Tiles which the server does not have */
+        public final long notFound;
+        /** Downloads which failed after all retries */
+        public final long failures;
+        /** Requests which were retried */
+        public final long retries;
+        /** Bytes downloaded */
+        public final long bytes;
+        /** Mean latency, in milliseconds */
+        public final long meanLatency;
+        /** Median latency, in milliseconds */
+        public final long medianLatency;
+        /** 95th percentile latency, in milliseconds */
+        public final long p95Latency;
+        /** Throughput, in bytes per second */
+        public final long throughput;
+
+        Metrics(long requests, long successes, long notFound, long failures, long retries, long bytes,
+                long meanLatency, long medianLatency, long p95Latency, long throughput) {
+            this.requests = requests;
+            this.successes = successes;
+            this.notFound = notFound;
+            this.failures = failures;
+            this.retries = retries;
+            this.bytes = bytes;
+            this.meanLatency = meanLatency;
+            this.medianLatency = medianLatency;
+            this.p95Latency = p95Latency;
+            this.throughput = throughput;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%d requests: %d downloaded, %d not found, %d failed, %d retries; %d KiB at %d KiB/s; "
+                    + "latency mean %d ms, median %d ms, 95th percentile %d ms",
+                    requests, successes, notFound, failures, retries, bytes / 1024, throughput / 1024,
+                    meanLatency, medianLatency, p95Latency);
+        }
+    }
+}
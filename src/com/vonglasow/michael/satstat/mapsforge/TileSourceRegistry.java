@@ -0,0 +1,78 @@
+package com.vonglasow.michael.satstat.mapsforge;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The online tile sources from which the user can choose.
+ * <p>
+ * The registry comes with a number of built-in tile sources. Further ones, such as a tile source with a URL
+ * template supplied by the user, can be added with {@link #register(UrlTemplateTileSource)}. Tile sources are kept
+ * in the order in which they were registered.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class TileSourceRegistry {
+    /**
+     * The identifier of the tile source used when none has been chosen.
+     */
+    public static final String DEFAULT_SOURCE = "osm";
+
+    /**
+     * The identifier for a tile source with a URL template supplied by the user.
+     */
+    public static final String CUSTOM_SOURCE = "custom";
+
+    private static final String OSM_ATTRIBUTION = "© OpenStreetMap contributors";
+
+    private final Map<String, UrlTemplateTileSource> sources = new LinkedHashMap<String, UrlTemplateTileSource>();
+
+    /**
+     * Creates a registry which holds the built-in tile sources.
+     */
+    public TileSourceRegistry() {
+        register(new UrlTemplateTileSource(DEFAULT_SOURCE, "https://tile.openstreetmap.org/{z}/{x}/{y}.png")
+                .setName("OpenStreetMap")
+                .setAttribution(OSM_ATTRIBUTION)
+                .setZoomLevelMax(19)
+                .setParallelRequestsLimit(2));
+        register(new UrlTemplateTileSource("osmfr-hot", "https://{s}.tile.openstreetmap.fr/hot/{z}/{x}/{y}.png")
+                .setName("Humanitarian")
+                .setSubdomains("a", "b", "c")
+                .setAttribution(OSM_ATTRIBUTION + ", Humanitarian OpenStreetMap Team")
+                .setZoomLevelMax(19)
+                .setParallelRequestsLimit(6));
+        register(new UrlTemplateTileSource("opentopomap", "https://{s}.tile.opentopomap.org/{z}/{x}/{y}.png")
+                .setName("OpenTopoMap")
+                .setSubdomains("a", "b", "c")
+                .setAttribution(OSM_ATTRIBUTION + ", SRTM | © OpenTopoMap (CC-BY-SA)")
+                .setZoomLevelMax(17)
+                .setParallelRequestsLimit(6));
+    }
+
+    /**
+     * Returns the tile source with the given identifier.
+     * <p>
+     * If there is no such tile source, the default tile source is returned.
+     */
+    public UrlTemplateTileSource get(String id) {
+        UrlTemplateTileSource source = (id == null) ? null : sources.get(id);
+        return (source != null) ? source : sources.get(DEFAULT_SOURCE);
+    }
+
+    /**
+     * Returns all tile sources, in the order in which they were registered.
+     */
+    public List<UrlTemplateTileSource> getSources() {
+        return new ArrayList<UrlTemplateTileSource>(sources.values());
+    }
+
+    /**
+     * Adds a tile source, replacing any tile source with the same identifier.
+     */
+    public void register(UrlTemplateTileSource source) {
+        sources.put(source.getId(), source);
+    }
+}
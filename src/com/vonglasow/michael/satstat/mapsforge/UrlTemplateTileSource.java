@@ -0,0 +1,189 @@
+package com.vonglasow.michael.satstat.mapsforge;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.download.tilesource.OnlineTileSource;
+import org.mapsforge.map.layer.download.tilesource.TileSource;
+
+/**
+ * An online tile source which is described by a URL template.
+ * <p>
+ * The template contains the placeholders {@code {z}}, {@code {x}} and {@code {y}} for the zoom level and the tile
+ * coordinates, and optionally {@code {s}} for one of several subdomains, e.g.
+ * {@code https://{s}.tile.example.org/{z}/{x}/{y}.png}. A given tile is always requested from the same subdomain, so
+ * that caches along the way are hit and connections to each host are reused.
+ * <p>
+ * Like in {@link OnlineTileSource}, setters return the tile source so that calls can be chained.
+ * <p>
+ * Two tile sources are equal if they have the same URL template and subdomains. The hash code is stable across
+ * runs, as tile caches use it to name their files.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class UrlTemplateTileSource implements TileSource {
+    private static final String SUBDOMAIN = "{s}";
+    private static final String ZOOM = "{z}";
+    private static final String X = "{x}";
+    private static final String Y = "{y}";
+
+    private final String id;
+    private final String urlTemplate;
+    private String name;
+    private String attribution = "";
+    private String[] subdomains = new String[0];
+    private int zoomLevelMin = 0;
+    private int zoomLevelMax = 18;
+    private int parallelRequestsLimit = TileFetcher.DEFAULT_CONNECTIONS_PER_HOST;
+    private boolean alpha = false;
+
+    /**
+     * @param id A unique identifier for the tile source, which is also its default name
+     * @param urlTemplate The URL template, see class description
+     *
+     * @throws IllegalArgumentException if the template lacks a placeholder or is not a valid HTTP(S) URL
+     */
+    public UrlTemplateTileSource(String id, String urlTemplate) {
+        for (String placeholder : new String[] {ZOOM, X, Y})
+            if (!urlTemplate.contains(placeholder))
+                throw new IllegalArgumentException("URL template lacks " + placeholder + ": " + urlTemplate);
+        try {
+            URL url = new URL(substitute(urlTemplate, "a", 0, 0, 0));
+            if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol()))
+                throw new IllegalArgumentException("URL template must be HTTP or HTTPS: " + urlTemplate);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid URL template: " + urlTemplate, e);
+        }
+        this.id = id;
+        this.name = id;
+        this.urlTemplate = urlTemplate;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof UrlTemplateTileSource))
+            return false;
+        UrlTemplateTileSource other = (UrlTemplateTileSource) obj;
+        return urlTemplate.equals(other.urlTemplate) && Arrays.equals(subdomains, other.subdomains);
+    }
+
+    /**
+     * Returns the attribution which must be displayed along with the tiles.
+     */
+    public String getAttribution() {
+        return attribution;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getParallelRequestsLimit() {
+        return parallelRequestsLimit;
+    }
+
+    public String[] getSubdomains() {
+        return subdomains.clone();
+    }
+
+    @Override
+    public URL getTileUrl(Tile tile) throws MalformedURLException {
+        String subdomain = null;
+        if (subdomains.length > 0)
+            subdomain = subdomains[(int) ((tile.tileX + tile.tileY) % subdomains.length)];
+        else if (urlTemplate.contains(SUBDOMAIN))
+            throw new MalformedURLException("No subdomains set for URL template: " + urlTemplate);
+        return new URL(substitute(urlTemplate, subdomain, tile.zoomLevel, tile.tileX, tile.tileY));
+    }
+
+    public String getUrlTemplate() {
+        return urlTemplate;
+    }
+
+    @Override
+    public byte getZoomLevelMax() {
+        return (byte) zoomLevelMax;
+    }
+
+    @Override
+    public byte getZoomLevelMin() {
+        return (byte) zoomLevelMin;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * urlTemplate.hashCode() + Arrays.hashCode(subdomains);
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+    public UrlTemplateTileSource setAlpha(boolean alpha) {
+        this.alpha = alpha;
+        return this;
+    }
+
+    public UrlTemplateTileSource setAttribution(String attribution) {
+        this.attribution = attribution;
+        return this;
+    }
+
+    public UrlTemplateTileSource setName(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public UrlTemplateTileSource setParallelRequestsLimit(int parallelRequestsLimit) {
+        if (parallelRequestsLimit < 1)
+            throw new IllegalArgumentException("parallelRequestsLimit must be at least 1: " + parallelRequestsLimit);
+        this.parallelRequestsLimit = parallelRequestsLimit;
+        return this;
+    }
+
+    /**
+     * Sets the subdomains which replace {@code {s}} in the URL template.
+     *
+     * @throws IllegalArgumentException if the template contains {@code {s}} and no subdomains are given
+     */
+    public UrlTemplateTileSource setSubdomains(String... subdomains) {
+        if (urlTemplate.contains(SUBDOMAIN) && (subdomains.length == 0))
+            throw new IllegalArgumentException("URL template requires subdomains: " + urlTemplate);
+        this.subdomains = subdomains.clone();
+        return this;
+    }
+
+    public UrlTemplateTileSource setZoomLevelMax(int zoomLevelMax) {
+        this.zoomLevelMax = zoomLevelMax;
+        return this;
+    }
+
+    public UrlTemplateTileSource setZoomLevelMin(int zoomLevelMin) {
+        this.zoomLevelMin = zoomLevelMin;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static String substitute(String template, String subdomain, int zoom, long x, long y) {
+        String result = template.replace(ZOOM, Integer.toString(zoom))
+                .replace(X, Long.toString(x))
+                .replace(Y, Long.toString(y));
+        if (subdomain != null)
+            result = result.replace(SUBDOMAIN, subdomain);
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+package com.vonglasow.michael.satstat.nmea;
+
+/**
+ * A position fix assembled from the NMEA sentences of one epoch.
+ * <p>
+ * Fields which were not reported are {@code NaN} (for floating-point values)
+ * or -1 (for counts). Instances are reused by {@link NmeaReplay}; consumers
+ * must copy any data they need to keep beyond the callback.
+ */
+public class NmeaFix {
+	/** UTC time of the fix in milliseconds since the epoch. */
+	public long time;
+
+	/** Latitude in degrees. */
+	public double latitude;
+
+	/** Longitude in degrees. */
+	public double longitude;
+
+	/** Altitude above the WGS84 ellipsoid in meters, as reported by Android. */
+	public double altitude;
+
+	/** Estimated horizontal accuracy (68% confidence radius) in meters. */
+	public float accuracy;
+
+	/** Speed over ground in m/s. */
+	public float speed;
+
+	/** Course over ground in degrees. */
+	public float bearing;
+
+	/** Horizontal dilution of precision. */
+	public float hdop;
+
+	/** Number of satellites used in the fix. */
+	public int satsUsed;
+
+	/** Number of satellites in view. */
+	public int satsInView;
+
+	/**
+	 * Resets all fields to their "not reported" values.
+	 */
+	public void clear() {
+		time = 0;
+		latitude = Double.NaN;
+		longitude = Double.NaN;
+		altitude = Double.NaN;
+		accuracy = Float.NaN;
+		speed = Float.NaN;
+		bearing = Float.NaN;
+		hdop = Float.NaN;
+		satsUsed = -1;
+		satsInView = -1;
+	}
+}
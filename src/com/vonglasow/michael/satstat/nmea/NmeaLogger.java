@@ -0,0 +1,364 @@
+package com.vonglasow.michael.satstat.nmea;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Logs raw NMEA sentences to compressed files.
+ * <p>
+ * Sentences are passed to {@link #onNmeaReceived(long, String)}, which only
+ * copies them into a {@link NmeaRingBuffer} and never blocks, so it can be
+ * called directly from an NMEA listener. A background thread drains the
+ * buffer every {@link #DRAIN_INTERVAL} milliseconds and writes the sentences
+ * to gzip files, one sentence per line. The sentences of the last few
+ * seconds can be retrieved through {@link #getTail(long, int, StringBuilder)}
+ * for display.
+ * <p>
+ * Each log file consists of multiple gzip members, each of which covers
+ * {@link #MEMBER_INTERVAL} milliseconds. Standard tools decompress such
+ * files as a whole. If the app is terminated, all members written so far
+ * remain readable. A new file is started after {@link #FILE_DURATION} or
+ * {@link #FILE_SIZE} uncompressed bytes, and the oldest files are deleted so
+ * that there are never more than {@link #MAX_FILES}.
+ * <p>
+ * This class does not depend on any Android APIs. I/O errors are not
+ * logged but can be retrieved through {@link #getLastError()}.
+ */
+public class NmeaLogger {
+	/** Interval at which the ring buffer is drained, in milliseconds. */
+	public static final int DRAIN_INTERVAL = 1000;
+
+	/** Time span covered by one gzip member, in milliseconds. */
+	public static final long MEMBER_INTERVAL = 30000;
+
+	/** Maximum time span covered by one file, in milliseconds. */
+	public static final long FILE_DURATION = 3600000;
+
+	/** Uncompressed size after which a new file is started, in bytes. */
+	public static final long FILE_SIZE = 32 * 1024 * 1024;
+
+	/** Maximum number of log files kept. */
+	public static final int MAX_FILES = 48;
+
+	/** Capacity of the ring buffer, in bytes. */
+	static final int BUFFER_CAPACITY = 256 * 1024;
+
+	public static final String FILE_PREFIX = "nmea-";
+	public static final String FILE_SUFFIX = ".nmea.gz";
+
+	private final File dir;
+	private final NmeaRingBuffer buffer;
+	private final ScheduledExecutorService executor;
+	private volatile boolean isClosed = false;
+
+	/* Writer state, only accessed by the background thread */
+	private FileOutputStream file = null;
+	private MemberOutputStream member = null;
+	private long fileStart = 0;
+	private long memberStart = 0;
+	private long fileBytes = 0;
+	private final CountingOutputStream counter = new CountingOutputStream();
+
+	/* Statistics */
+	private volatile long bytesWritten = 0;
+	private volatile long rawBytesWritten = 0;
+	private volatile IOException lastError = null;
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain(false);
+		}
+	};
+
+	/**
+	 * Creates a new logger and starts the background writer.
+	 *
+	 * @param dir The directory for log files
+	 */
+	public NmeaLogger(File dir) {
+		this(dir, BUFFER_CAPACITY);
+	}
+
+	/**
+	 * Creates a new logger and starts the background writer.
+	 *
+	 * @param dir The directory for log files
+	 * @param capacity The capacity of the ring buffer, in bytes
+	 */
+	public NmeaLogger(File dir, int capacity) {
+		this.dir = dir;
+		buffer = new NmeaRingBuffer(capacity);
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(drainTask, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a sentence. This method never blocks.
+	 * <p>
+	 * All calls must come from the same thread.
+	 *
+	 * @param timestamp The timestamp of the sentence, in milliseconds since the epoch
+	 * @param nmea The sentence
+	 */
+	public void onNmeaReceived(long timestamp, String nmea) {
+		if (!isClosed)
+			buffer.offer(timestamp, nmea);
+	}
+
+	/**
+	 * Appends the sentences received in the last {@code span} milliseconds to a string builder, one per line.
+	 * <p>
+	 * The time span ends with the timestamp of the most recent sentence,
+	 * rather than the current time, so that it does not depend on the
+	 * offset between the system clock and GPS time. Sentences are available
+	 * until they are overwritten in the ring buffer, regardless of whether
+	 * they have been written to the file.
+	 * <p>
+	 * Must be called on the thread which calls {@link #onNmeaReceived(long, String)}.
+	 *
+	 * @param span The time span, in milliseconds
+	 * @param maxCount The maximum number of sentences to return; if more match, the most recent ones are returned
+	 * @param out The string builder to which sentences are appended
+	 * @return The number of sentences appended
+	 */
+	public int getTail(long span, int maxCount, StringBuilder out) {
+		long last = buffer.getLastTimestamp();
+		if (last == Long.MIN_VALUE)
+			return 0;
+		return buffer.getTail(last - span, maxCount, out);
+	}
+
+	/**
+	 * Writes all pending sentences, closes the current file and stops the background writer.
+	 * <p>
+	 * Writing happens in the background; this method does not block.
+	 */
+	public void close() {
+		if (isClosed)
+			return;
+		isClosed = true;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				drain(true);
+			}
+		});
+		executor.shutdown();
+	}
+
+	/**
+	 * Blocks until the background writer has finished after {@link #close()}.
+	 *
+	 * @return true if the writer has finished, false if the timeout elapsed
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Returns the number of sentences received.
+	 */
+	public long getSentenceCount() {
+		return buffer.getOffered();
+	}
+
+	/**
+	 * Returns the number of sentences dropped because the background writer could not keep up.
+	 */
+	public long getDroppedCount() {
+		return buffer.getDropped();
+	}
+
+	/**
+	 * Returns the number of compressed bytes written to log files.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the number of uncompressed bytes written to log files.
+	 */
+	public long getRawBytesWritten() {
+		return rawBytesWritten;
+	}
+
+	/**
+	 * Returns the last I/O error, or null if no error has occurred.
+	 */
+	public IOException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Drains the ring buffer into the current log file. Runs on the background thread.
+	 *
+	 * @param close Whether to close the log file afterwards
+	 */
+	private void drain(boolean close) {
+		try {
+			long now = System.currentTimeMillis();
+			if ((file != null) && ((now - fileStart >= FILE_DURATION) || (fileBytes >= FILE_SIZE)))
+				closeFile();
+			if ((buffer.getPending() > 0) && (file == null))
+				openFile(now);
+			if (file != null) {
+				if (member == null) {
+					member = new MemberOutputStream(counter);
+					memberStart = now;
+				}
+				buffer.drainTo(member);
+				if (close || (now - memberStart >= MEMBER_INTERVAL)) {
+					member.end();
+					member = null;
+				}
+				rawBytesWritten += counter.getAndResetRaw();
+				bytesWritten += counter.getAndReset();
+			}
+			if (close)
+				closeFile();
+		} catch (IOException e) {
+			lastError = e;
+			try {
+				closeFile();
+			} catch (IOException e2) {
+				// nothing we can do
+			}
+			member = null;
+		}
+	}
+
+	private void openFile(long time) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir.getPath());
+		deleteOldFiles();
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		File f = new File(dir, FILE_PREFIX + format.format(new Date(time)) + FILE_SUFFIX);
+		file = new FileOutputStream(f, true);
+		counter.setOut(new BufferedOutputStream(file, 8192));
+		fileStart = time;
+		fileBytes = 0;
+	}
+
+	private void closeFile() throws IOException {
+		if (file == null)
+			return;
+		try {
+			if (member != null) {
+				member.end();
+				member = null;
+			}
+			counter.flush();
+		} finally {
+			file.close();
+			file = null;
+		}
+	}
+
+	/**
+	 * Deletes the oldest log files so that there is room for one more.
+	 */
+	private void deleteOldFiles() {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+			}
+		});
+		if ((files == null) || (files.length < MAX_FILES))
+			return;
+		Arrays.sort(files);
+		for (int i = 0; i <= files.length - MAX_FILES; i++)
+			files[i].delete();
+	}
+
+	/**
+	 * A gzip stream which releases its compressor when finished and does not close the underlying stream.
+	 */
+	private class MemberOutputStream extends GZIPOutputStream {
+		MemberOutputStream(OutputStream out) throws IOException {
+			super(out, 8192);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			counter.addRaw(len);
+		}
+
+		/**
+		 * Finishes the member and releases the compressor.
+		 */
+		void end() throws IOException {
+			finish();
+			def.end();
+			counter.flush();
+		}
+	}
+
+	/**
+	 * Counts the compressed bytes passed to the underlying stream and the uncompressed bytes reported to it.
+	 */
+	private class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+		private long raw = 0;
+
+		CountingOutputStream() {
+			super(null);
+		}
+
+		void setOut(OutputStream out) {
+			this.out = out;
+		}
+
+		void addRaw(int len) {
+			raw += len;
+			fileBytes += len;
+		}
+
+		long getAndReset() {
+			long result = count;
+			count = 0;
+			return result;
+		}
+
+		long getAndResetRaw() {
+			long result = raw;
+			raw = 0;
+			return result;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() {
+			// the underlying file is closed separately
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package com.vonglasow.michael.satstat.nmea;
+
+/**
+ * Parses NMEA 0183 sentences.
+ * <p>
+ * Supported sentences are GGA, RMC, GSA, GSV and GNS from any talker. The
+ * talkers GP (GPS), GL (GLONASS), GA (Galileo), GB and BD (BeiDou), GQ
+ * (QZSS) and GN (multiple constellations) are recognized, and satellite
+ * numbers are converted to the NMEA IDs used throughout the app (e.g.
+ * GLONASS satellites are numbered 65&ndash;96, BeiDou satellites 201 and
+ * above).
+ * <p>
+ * The parser works directly on the bytes of a sentence. It locates the
+ * fields, verifies the checksum and decodes numeric fields on demand, without
+ * creating any objects. Results are available through the getters until the
+ * next call to {@link #parse(byte[], int, int)}. Getters which do not apply to
+ * the last sentence type return meaningless values. Instances are not
+ * thread-safe.
+ */
+public class NmeaParser {
+	public static final int TYPE_UNKNOWN = 0;
+	public static final int TYPE_GGA = 1;
+	public static final int TYPE_RMC = 2;
+	public static final int TYPE_GSA = 3;
+	public static final int TYPE_GSV = 4;
+	public static final int TYPE_GNS = 5;
+
+	/** Returned by {@link #parse(byte[], int, int)} if the sentence is not well-formed. */
+	public static final int ERROR_FORMAT = -1;
+
+	/** Returned by {@link #parse(byte[], int, int)} if the checksum does not match. */
+	public static final int ERROR_CHECKSUM = -2;
+
+	public static final int TALKER_OTHER = 0;
+	public static final int TALKER_GPS = 1;
+	public static final int TALKER_GLONASS = 2;
+	public static final int TALKER_GALILEO = 3;
+	public static final int TALKER_BEIDOU = 4;
+	public static final int TALKER_QZSS = 5;
+	public static final int TALKER_MULTI = 6;
+
+	/** Offset added to Galileo satellite numbers to obtain NMEA IDs. */
+	public static final int GALILEO_ID_OFFSET = 300;
+
+	/** Maximum number of fields in a sentence, including the address field. */
+	private static final int MAX_FIELDS = 40;
+
+	private static final double[] POWERS_OF_TEN = {
+		1, 10, 100, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+	};
+
+	/** Conversion factor from knots to m/s. */
+	private static final double KNOTS_TO_MPS = 1852.0 / 3600.0;
+
+	private byte[] buf;
+	private final int[] fieldStart = new int[MAX_FIELDS];
+	private final int[] fieldEnd = new int[MAX_FIELDS];
+	private int fieldCount = 0;
+	private int type = TYPE_UNKNOWN;
+	private int talker = TALKER_OTHER;
+
+	/* Statistics */
+	private long parsed = 0;
+	private long checksumErrors = 0;
+	private long formatErrors = 0;
+
+	/**
+	 * Parses a sentence.
+	 * <p>
+	 * The sentence must start with {@code $} and may end with a checksum and
+	 * line break. Sentences without a checksum are accepted.
+	 *
+	 * @param buf The buffer holding the sentence
+	 * @param off The offset of the sentence in the buffer
+	 * @param len The length of the sentence
+	 * @return The type of the sentence, one of the {@code TYPE_*} constants, or
+	 * {@link #ERROR_FORMAT} or {@link #ERROR_CHECKSUM}
+	 */
+	public int parse(byte[] buf, int off, int len) {
+		this.buf = buf;
+		type = TYPE_UNKNOWN;
+		talker = TALKER_OTHER;
+		fieldCount = 0;
+		int end = off + len;
+		while ((end > off) && (buf[end - 1] <= ' '))
+			end--;
+		if ((end - off < 7) || (buf[off] != '$')) {
+			formatErrors++;
+			return ERROR_FORMAT;
+		}
+
+		int checksum = 0;
+		int start = off + 1;
+		int i = start;
+		for (; (i < end) && (buf[i] != '*'); i++) {
+			byte b = buf[i];
+			checksum ^= b;
+			if (b == ',') {
+				if (fieldCount >= MAX_FIELDS - 1) {
+					formatErrors++;
+					return ERROR_FORMAT;
+				}
+				fieldStart[fieldCount] = start;
+				fieldEnd[fieldCount] = i;
+				fieldCount++;
+				start = i + 1;
+			}
+		}
+		fieldStart[fieldCount] = start;
+		fieldEnd[fieldCount] = i;
+		fieldCount++;
+		if (i < end) {
+			// checksum present
+			if ((end - i != 3) || (hex(buf[i + 1]) < 0) || (hex(buf[i + 2]) < 0)) {
+				formatErrors++;
+				return ERROR_FORMAT;
+			}
+			if (((hex(buf[i + 1]) << 4) | hex(buf[i + 2])) != checksum) {
+				checksumErrors++;
+				return ERROR_CHECKSUM;
+			}
+		}
+
+		// address field: 2-character talker ID and 3-character sentence formatter
+		int a = fieldStart[0];
+		if (fieldEnd[0] - a != 5) {
+			formatErrors++;
+			return ERROR_FORMAT;
+		}
+		talker = parseTalker(buf[a], buf[a + 1]);
+		byte f0 = buf[a + 2];
+		byte f1 = buf[a + 3];
+		byte f2 = buf[a + 4];
+		if ((f0 == 'G') && (f1 == 'G') && (f2 == 'A'))
+			type = TYPE_GGA;
+		else if ((f0 == 'R') && (f1 == 'M') && (f2 == 'C'))
+			type = TYPE_RMC;
+		else if ((f0 == 'G') && (f1 == 'S') && (f2 == 'A'))
+			type = TYPE_GSA;
+		else if ((f0 == 'G') && (f1 == 'S') && (f2 == 'V'))
+			type = TYPE_GSV;
+		else if ((f0 == 'G') && (f1 == 'N') && (f2 == 'S'))
+			type = TYPE_GNS;
+		parsed++;
+		return type;
+	}
+
+	/**
+	 * Returns the type of the last sentence.
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the talker of the last sentence, one of the {@code TALKER_*} constants.
+	 */
+	public int getTalker() {
+		return talker;
+	}
+
+	/**
+	 * Returns the time of day (UTC) of a GGA, RMC or GNS sentence in milliseconds, or -1 if empty.
+	 */
+	public int getTimeOfDay() {
+		int i = 1;
+		if ((fieldCount <= i) || (fieldEnd[i] - fieldStart[i] < 6))
+			return -1;
+		int s = fieldStart[i];
+		int hh = digits(s, 2);
+		int mm = digits(s + 2, 2);
+		double ss = parseDouble(s + 4, fieldEnd[i]);
+		if ((hh < 0) || (mm < 0) || Double.isNaN(ss))
+			return -1;
+		return (int) Math.round(((hh * 60 + mm) * 60 + ss) * 1000);
+	}
+
+	/**
+	 * Returns the date of an RMC sentence as days since the epoch, or -1 if empty.
+	 * <p>
+	 * Two-digit years are interpreted as 1980&ndash;2079.
+	 */
+	public int getDate() {
+		int i = 9;
+		if ((type != TYPE_RMC) || (fieldCount <= i) || (fieldEnd[i] - fieldStart[i] != 6))
+			return -1;
+		int s = fieldStart[i];
+		int day = digits(s, 2);
+		int month = digits(s + 2, 2);
+		int year = digits(s + 4, 2);
+		if ((day < 1) || (month < 1) || (month > 12) || (year < 0))
+			return -1;
+		year += (year < 80) ? 2000 : 1900;
+		return daysFromCivil(year, month, day);
+	}
+
+	/**
+	 * Whether a GGA, RMC or GNS sentence reports a valid fix.
+	 */
+	public boolean isFixValid() {
+		switch (type) {
+		case TYPE_GGA:
+			return getInt(6) > 0;
+		case TYPE_RMC:
+			return (fieldCount > 2) && (fieldEnd[2] > fieldStart[2]) && (buf[fieldStart[2]] == 'A');
+		case TYPE_GNS:
+			// mode indicator, one character per constellation, N = no fix
+			if (fieldCount <= 6)
+				return false;
+			for (int i = fieldStart[6]; i < fieldEnd[6]; i++)
+				if (buf[i] != 'N')
+					return true;
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the latitude of a GGA, RMC or GNS sentence in degrees, or {@code NaN} if empty.
+	 */
+	public double getLatitude() {
+		int i = (type == TYPE_RMC) ? 3 : 2;
+		return parseCoordinate(i, 2, 'S');
+	}
+
+	/**
+	 * Returns the longitude of a GGA, RMC or GNS sentence in degrees, or {@code NaN} if empty.
+	 */
+	public double getLongitude() {
+		int i = (type == TYPE_RMC) ? 5 : 4;
+		return parseCoordinate(i, 3, 'W');
+	}
+
+	/**
+	 * Returns the altitude above mean sea level of a GGA or GNS sentence in meters, or {@code NaN} if empty.
+	 */
+	public double getAltitude() {
+		return getDouble(9);
+	}
+
+	/**
+	 * Returns the geoidal separation of a GGA or GNS sentence in meters, or {@code NaN} if empty.
+	 */
+	public double getGeoidSeparation() {
+		return (type == TYPE_GGA) ? getDouble(11) : getDouble(10);
+	}
+
+	/**
+	 * Returns the horizontal dilution of precision of a GGA, GNS or GSA sentence, or {@code NaN} if empty.
+	 */
+	public double getHdop() {
+		return (type == TYPE_GSA) ? getDouble(16) : getDouble(8);
+	}
+
+	/**
+	 * Returns the number of satellites used in a GGA or GNS fix, or -1 if empty.
+	 */
+	public int getSatsUsed() {
+		return getInt(7);
+	}
+
+	/**
+	 * Returns the speed over ground of an RMC sentence in m/s, or {@code NaN} if empty.
+	 */
+	public double getSpeed() {
+		return getDouble(7) * KNOTS_TO_MPS;
+	}
+
+	/**
+	 * Returns the course over ground of an RMC sentence in degrees, or {@code NaN} if empty.
+	 */
+	public double getCourse() {
+		return getDouble(8);
+	}
+
+	/**
+	 * Returns the fix type of a GSA sentence (1 = no fix, 2 = 2D, 3 = 3D), or -1 if empty.
+	 */
+	public int getFixType() {
+		return getInt(2);
+	}
+
+	/**
+	 * Returns the number of satellite fields in a GSA sentence, including empty ones.
+	 */
+	public int getGsaSatCount() {
+		return Math.max(0, Math.min(fieldCount, 15) - 3);
+	}
+
+	/**
+	 * Returns the NMEA ID of a satellite used in the fix, as reported in a GSA sentence, or -1 if empty.
+	 *
+	 * @param index The index of the satellite, between 0 and {@link #getGsaSatCount()} - 1
+	 */
+	public int getGsaSat(int index) {
+		int prn = getInt(3 + index);
+		if (prn <= 0)
+			return -1;
+		return toNmeaId(getGsaTalker(), prn);
+	}
+
+	/**
+	 * Returns the total number of messages in the GSV group to which the last sentence belongs.
+	 */
+	public int getGsvMessageCount() {
+		return getInt(1);
+	}
+
+	/**
+	 * Returns the number of the last GSV message in its group, starting at 1.
+	 */
+	public int getGsvMessageNumber() {
+		return getInt(2);
+	}
+
+	/**
+	 * Returns the total number of satellites in view reported in a GSV sentence.
+	 */
+	public int getGsvSatsInView() {
+		return getInt(3);
+	}
+
+	/**
+	 * Returns the number of satellites in a GSV sentence (at most 4).
+	 */
+	public int getGsvSatCount() {
+		return Math.max(0, Math.min((fieldCount - 4) / 4, 4));
+	}
+
+	/**
+	 * Returns the NMEA ID of a satellite in a GSV sentence, or -1 if empty.
+	 */
+	public int getGsvSatId(int index) {
+		int prn = getInt(4 + index * 4);
+		if (prn <= 0)
+			return -1;
+		return toNmeaId(talker, prn);
+	}
+
+	/**
+	 * Returns the elevation of a satellite in a GSV sentence in degrees, or {@code NaN} if empty.
+	 */
+	public float getGsvElevation(int index) {
+		return (float) getDouble(5 + index * 4);
+	}
+
+	/**
+	 * Returns the azimuth of a satellite in a GSV sentence in degrees, or {@code NaN} if empty.
+	 */
+	public float getGsvAzimuth(int index) {
+		return (float) getDouble(6 + index * 4);
+	}
+
+	/**
+	 * Returns the SNR of a satellite in a GSV sentence in dB, or 0 if the satellite is not tracked.
+	 */
+	public float getGsvSnr(int index) {
+		double snr = getDouble(7 + index * 4);
+		return Double.isNaN(snr) ? 0 : (float) snr;
+	}
+
+	/**
+	 * Returns the number of sentences parsed successfully.
+	 */
+	public long getParsedCount() {
+		return parsed;
+	}
+
+	/**
+	 * Returns the number of sentences rejected because of a checksum mismatch.
+	 */
+	public long getChecksumErrorCount() {
+		return checksumErrors;
+	}
+
+	/**
+	 * Returns the number of sentences rejected because they were not well-formed.
+	 */
+	public long getFormatErrorCount() {
+		return formatErrors;
+	}
+
+	/**
+	 * Converts a satellite number to an NMEA ID, based on the talker which reported it.
+	 */
+	public static int toNmeaId(int talker, int prn) {
+		switch (talker) {
+		case TALKER_GLONASS:
+			return (prn <= 32) ? prn + 64 : prn;
+		case TALKER_GALILEO:
+			return (prn <= 36) ? prn + GALILEO_ID_OFFSET : prn;
+		case TALKER_BEIDOU:
+			return (prn <= 63) ? prn + 200 : prn;
+		case TALKER_QZSS:
+			return (prn <= 10) ? prn + 192 : prn;
+		default:
+			return prn;
+		}
+	}
+
+	/**
+	 * Returns the talker to which the satellites of a GSA sentence belong.
+	 * <p>
+	 * For GN sentences, NMEA 4.1 adds a system ID field, which is evaluated if present.
+	 */
+	private int getGsaTalker() {
+		if ((talker != TALKER_MULTI) || (fieldCount <= 18))
+			return talker;
+		switch (getInt(18)) {
+		case 1:
+			return TALKER_GPS;
+		case 2:
+			return TALKER_GLONASS;
+		case 3:
+			return TALKER_GALILEO;
+		case 4:
+			return TALKER_BEIDOU;
+		default:
+			return talker;
+		}
+	}
+
+	private static int parseTalker(byte t0, byte t1) {
+		if (t0 == 'G') {
+			switch (t1) {
+			case 'P':
+				return TALKER_GPS;
+			case 'L':
+				return TALKER_GLONASS;
+			case 'A':
+				return TALKER_GALILEO;
+			case 'B':
+				return TALKER_BEIDOU;
+			case 'Q':
+				return TALKER_QZSS;
+			case 'N':
+				return TALKER_MULTI;
+			}
+		} else if ((t0 == 'B') && (t1 == 'D'))
+			return TALKER_BEIDOU;
+		return TALKER_OTHER;
+	}
+
+	/**
+	 * Parses a coordinate in (d)ddmm.mmmm format with a hemisphere field following it.
+	 *
+	 * @param i The index of the field
+	 * @param degreeDigits The number of digits for degrees
+	 * @param negative The hemisphere character which indicates a negative value
+	 */
+	private double parseCoordinate(int i, int degreeDigits, char negative) {
+		if ((fieldCount <= i + 1) || (fieldEnd[i] - fieldStart[i] < degreeDigits + 2))
+			return Double.NaN;
+		int deg = digits(fieldStart[i], degreeDigits);
+		double min = parseDouble(fieldStart[i] + degreeDigits, fieldEnd[i]);
+		if ((deg < 0) || Double.isNaN(min))
+			return Double.NaN;
+		double result = deg + min / 60;
+		if ((fieldEnd[i + 1] > fieldStart[i + 1]) && (buf[fieldStart[i + 1]] == negative))
+			result = -result;
+		return result;
+	}
+
+	/**
+	 * Returns a numeric field as a double, or {@code NaN} if it is empty or not a number.
+	 */
+	private double getDouble(int i) {
+		if (i >= fieldCount)
+			return Double.NaN;
+		return parseDouble(fieldStart[i], fieldEnd[i]);
+	}
+
+	/**
+	 * Returns a numeric field as an integer, or -1 if it is empty or not a number.
+	 */
+	private int getInt(int i) {
+		if ((i >= fieldCount) || (fieldEnd[i] == fieldStart[i]))
+			return -1;
+		int result = 0;
+		for (int j = fieldStart[i]; j < fieldEnd[i]; j++) {
+			int d = buf[j] - '0';
+			if ((d < 0) || (d > 9))
+				return -1;
+			result = result * 10 + d;
+		}
+		return result;
+	}
+
+	/**
+	 * Parses a decimal number from a range of the buffer.
+	 */
+	private double parseDouble(int start, int end) {
+		if (start >= end)
+			return Double.NaN;
+		boolean isNegative = false;
+		if ((buf[start] == '-') || (buf[start] == '+')) {
+			isNegative = (buf[start] == '-');
+			start++;
+		}
+		long mantissa = 0;
+		int decimals = -1;
+		int digitCount = 0;
+		for (int j = start; j < end; j++) {
+			byte b = buf[j];
+			if (b == '.') {
+				if (decimals >= 0)
+					return Double.NaN;
+				decimals = 0;
+			} else if ((b >= '0') && (b <= '9')) {
+				if (digitCount < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					digitCount++;
+					if (decimals >= 0)
+						decimals++;
+				} else if (decimals < 0)
+					// too many integer digits, scale instead of accumulating
+					decimals--;
+			} else
+				return Double.NaN;
+		}
+		if (digitCount == 0)
+			return Double.NaN;
+		double result;
+		if (decimals <= 0)
+			result = mantissa * ((decimals < -1) ? Math.pow(10, -decimals - 1) : 1);
+		else if (decimals < POWERS_OF_TEN.length)
+			result = mantissa / POWERS_OF_TEN[decimals];
+		else
+			result = mantissa / Math.pow(10, decimals);
+		return isNegative ? -result : result;
+	}
+
+	/**
+	 * Parses a fixed number of decimal digits, returning -1 if any of them is not a digit.
+	 */
+	private int digits(int start, int count) {
+		int result = 0;
+		for (int j = start; j < start + count; j++) {
+			int d = buf[j] - '0';
+			if ((d < 0) || (d > 9))
+				return -1;
+			result = result * 10 + d;
+		}
+		return result;
+	}
+
+	private static int hex(byte b) {
+		if ((b >= '0') && (b <= '9'))
+			return b - '0';
+		if ((b >= 'A') && (b <= 'F'))
+			return b - 'A' + 10;
+		if ((b >= 'a') && (b <= 'f'))
+			return b - 'a' + 10;
+		return -1;
+	}
+
+	/**
+	 * Returns the number of days since the epoch for a date in the proleptic Gregorian calendar.
+	 */
+	static int daysFromCivil(int year, int month, int day) {
+		if (month <= 2)
+			year--;
+		int era = ((year >= 0) ? year : (year - 399)) / 400;
+		int yoe = year - era * 400;
+		int doy = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+		int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+}
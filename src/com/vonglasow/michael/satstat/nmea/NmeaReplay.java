@@ -0,0 +1,366 @@
+package com.vonglasow.michael.satstat.nmea;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+
+/**
+ * Replays recorded NMEA logs.
+ * <p>
+ * The log is read line by line and each sentence is passed to a
+ * {@link NmeaParser}. Sentences are grouped into epochs: an epoch starts with
+ * each new time of day reported in a GGA, RMC or GNS sentence, and all
+ * sentences up to the next time change belong to it. At the end of each
+ * epoch the listener receives the satellites reported in GSV sentences as a
+ * {@link GpsSnapshot}, with satellites reported in GSA sentences marked as
+ * used in the fix, followed by the position fix if the epoch had a valid one.
+ * This is the same data which {@code MainActivity} receives from the GPS
+ * status and location callbacks, so a replay can drive the same display and
+ * recording code as a live GPS.
+ * <p>
+ * Logs can be plain text or gzip-compressed, such as those written by
+ * {@link NmeaLogger}. Reading and parsing do not allocate objects per
+ * sentence; the snapshot and the fix are recycled and are only valid until
+ * the listener method which receives them returns. Listeners which pass
+ * them on to another thread must copy them first, e.g. into a
+ * {@link com.vonglasow.michael.satstat.data.GpsSnapshotPool} owned by that
+ * thread.
+ * <p>
+ * Snapshot and fix times are the UTC times reported in the log. Listener
+ * methods are called on the thread which calls {@link #replay(InputStream)}.
+ */
+public class NmeaReplay {
+	/**
+	 * Receives replayed data.
+	 */
+	public interface Listener {
+		/**
+		 * Called at the end of each epoch with the satellites in view.
+		 */
+		public void onSatellites(GpsSnapshot snapshot);
+
+		/**
+		 * Called at the end of each epoch with a valid position fix, after {@link #onSatellites(GpsSnapshot)}.
+		 */
+		public void onFix(NmeaFix fix);
+	}
+
+	/**
+	 * Factor by which HDOP is multiplied to estimate the accuracy of a fix, in meters.
+	 * NMEA does not report accuracy, so this is a rough estimate of the user
+	 * equivalent range error.
+	 */
+	public static final float ACCURACY_PER_HDOP = 5;
+
+	/** Maximum time to wait between two epochs when replaying in real time. */
+	private static final long MAX_PAUSE = 10000;
+
+	private static final int MAX_LINE_LENGTH = 256;
+	private static final int READ_BUFFER_SIZE = 65536;
+	private static final int MAX_SAT_ID = 512;
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	private final Listener listener;
+	private final NmeaParser parser = new NmeaParser();
+	private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+	private final byte[] line = new byte[MAX_LINE_LENGTH];
+	private float speed = 0;
+	private volatile boolean cancelled = false;
+
+	/* Current epoch */
+	private int epochTime = -1;
+	private int epochDate = -1;
+	private boolean epochValid = false;
+	private boolean epochHasSats = false;
+	private final NmeaFix fix = new NmeaFix();
+
+	/* Satellites of the current epoch, indexed by position in the epoch */
+	private final int[] satId = new int[GpsSnapshot.MAX_SATELLITES];
+	private final float[] satSnr = new float[GpsSnapshot.MAX_SATELLITES];
+	private final float[] satAzimuth = new float[GpsSnapshot.MAX_SATELLITES];
+	private final float[] satElevation = new float[GpsSnapshot.MAX_SATELLITES];
+	private int satCount = 0;
+
+	/* Satellites of the current epoch, indexed by NMEA ID */
+	private final int[] satIndex = new int[MAX_SAT_ID];
+	private final boolean[] satUsed = new boolean[MAX_SAT_ID];
+	private final int[] usedIds = new int[MAX_SAT_ID];
+	private int usedCount = 0;
+
+	/* Previous epochs */
+	private final GpsSnapshot snapshot = new GpsSnapshot();
+	private int lastDate = -1;
+	private int lastTime = -1;
+	private long lastEpochTime = -1;
+	private long firstEpochTime = -1;
+	private int timeToFirstFix = 0;
+
+	/* Statistics */
+	private long lines = 0;
+	private long epochs = 0;
+	private long fixes = 0;
+	private long elapsed = 0;
+
+	/**
+	 * @param listener The listener which receives replayed data
+	 */
+	public NmeaReplay(Listener listener) {
+		this.listener = listener;
+		for (int i = 0; i < MAX_SAT_ID; i++)
+			satIndex[i] = -1;
+		fix.clear();
+	}
+
+	/**
+	 * Sets the replay speed.
+	 *
+	 * @param speed The replay speed relative to real time (e.g. 2 for twice
+	 * the original speed), or 0 (the default) to replay as fast as possible
+	 */
+	public void setSpeed(float speed) {
+		this.speed = speed;
+	}
+
+	/**
+	 * Stops a replay in progress. May be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Replays a log file. Files whose name ends in {@code .gz} are decompressed.
+	 */
+	public void replay(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			if (file.getName().endsWith(".gz"))
+				in = new GZIPInputStream(in, READ_BUFFER_SIZE);
+			replay(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Replays a log from a stream, until the end of the stream is reached or
+	 * the replay is cancelled. The stream is not closed.
+	 */
+	public void replay(InputStream in) throws IOException {
+		long start = System.nanoTime();
+		int lineLength = 0;
+		boolean overflow = false;
+		int read;
+		while (!cancelled && ((read = in.read(readBuffer)) > 0)) {
+			for (int i = 0; (i < read) && !cancelled; i++) {
+				byte b = readBuffer[i];
+				if ((b == '\n') || (b == '\r')) {
+					if ((lineLength > 0) && !overflow)
+						onSentence(lineLength);
+					lineLength = 0;
+					overflow = false;
+				} else if (lineLength < MAX_LINE_LENGTH)
+					line[lineLength++] = b;
+				else
+					overflow = true;
+			}
+		}
+		if ((lineLength > 0) && !overflow && !cancelled)
+			onSentence(lineLength);
+		if (!cancelled)
+			endEpoch();
+		elapsed += System.nanoTime() - start;
+	}
+
+	/**
+	 * Returns the number of lines read.
+	 */
+	public long getLineCount() {
+		return lines;
+	}
+
+	/**
+	 * Returns the number of epochs replayed.
+	 */
+	public long getEpochCount() {
+		return epochs;
+	}
+
+	/**
+	 * Returns the number of valid fixes replayed.
+	 */
+	public long getFixCount() {
+		return fixes;
+	}
+
+	/**
+	 * Returns the parser, which provides statistics on parsed and rejected sentences.
+	 */
+	public NmeaParser getParser() {
+		return parser;
+	}
+
+	/**
+	 * Returns the number of lines processed per second, including time spent in the listener.
+	 */
+	public double getLinesPerSecond() {
+		return (elapsed > 0) ? lines * 1e9 / elapsed : 0;
+	}
+
+	private void onSentence(int length) {
+		lines++;
+		int type = parser.parse(line, 0, length);
+		switch (type) {
+		case NmeaParser.TYPE_GGA:
+		case NmeaParser.TYPE_GNS:
+			if (!startEpoch())
+				return;
+			if (parser.isFixValid()) {
+				epochValid = true;
+				fix.latitude = parser.getLatitude();
+				fix.longitude = parser.getLongitude();
+				double altitude = parser.getAltitude();
+				double separation = parser.getGeoidSeparation();
+				fix.altitude = Double.isNaN(separation) ? altitude : altitude + separation;
+				fix.hdop = (float) parser.getHdop();
+				fix.accuracy = fix.hdop * ACCURACY_PER_HDOP;
+				int sats = parser.getSatsUsed();
+				if (sats >= 0)
+					fix.satsUsed = sats;
+			}
+			break;
+		case NmeaParser.TYPE_RMC:
+			if (!startEpoch())
+				return;
+			epochDate = parser.getDate();
+			if (parser.isFixValid()) {
+				epochValid = true;
+				// GGA has more precise data, so only use RMC coordinates if we have nothing else
+				if (Double.isNaN(fix.latitude)) {
+					fix.latitude = parser.getLatitude();
+					fix.longitude = parser.getLongitude();
+				}
+				fix.speed = (float) parser.getSpeed();
+				fix.bearing = (float) parser.getCourse();
+			}
+			break;
+		case NmeaParser.TYPE_GSA:
+			for (int i = 0; i < parser.getGsaSatCount(); i++) {
+				int id = parser.getGsaSat(i);
+				if ((id > 0) && (id < MAX_SAT_ID) && !satUsed[id]) {
+					satUsed[id] = true;
+					usedIds[usedCount++] = id;
+				}
+			}
+			break;
+		case NmeaParser.TYPE_GSV:
+			epochHasSats = true;
+			for (int i = 0; i < parser.getGsvSatCount(); i++) {
+				int id = parser.getGsvSatId(i);
+				if ((id <= 0) || (id >= MAX_SAT_ID))
+					continue;
+				int index = satIndex[id];
+				if (index < 0) {
+					if (satCount >= GpsSnapshot.MAX_SATELLITES)
+						continue;
+					index = satCount++;
+					satIndex[id] = index;
+					satId[index] = id;
+				}
+				satSnr[index] = parser.getGsvSnr(i);
+				satAzimuth[index] = parser.getGsvAzimuth(i);
+				satElevation[index] = parser.getGsvElevation(i);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Handles the time of a GGA, RMC or GNS sentence, ending the previous epoch if the time has changed.
+	 *
+	 * @return false if the sentence has no time and should be ignored
+	 */
+	private boolean startEpoch() {
+		int time = parser.getTimeOfDay();
+		if (time < 0)
+			return false;
+		if (time != epochTime) {
+			endEpoch();
+			epochTime = time;
+		}
+		return true;
+	}
+
+	/**
+	 * Delivers the data of the current epoch to the listener and resets it.
+	 */
+	private void endEpoch() {
+		if (epochTime >= 0) {
+			int date = epochDate;
+			if (date < 0) {
+				date = lastDate;
+				// past midnight
+				if ((date >= 0) && (epochTime < lastTime))
+					date++;
+			}
+			lastDate = date;
+			lastTime = epochTime;
+			long time = ((date >= 0) ? date * MILLIS_PER_DAY : 0) + epochTime;
+			pace(time);
+			if (firstEpochTime < 0)
+				firstEpochTime = time;
+			if (epochValid && (timeToFirstFix == 0))
+				timeToFirstFix = (int) Math.max(1, time - firstEpochTime);
+			epochs++;
+
+			if (epochHasSats) {
+				snapshot.clear();
+				for (int i = 0; i < satCount; i++)
+					snapshot.add(satId[i], satSnr[i], satAzimuth[i], satElevation[i], satUsed[satId[i]]);
+				snapshot.setTime(time);
+				snapshot.setTimeToFirstFix(timeToFirstFix);
+				listener.onSatellites(snapshot);
+			}
+
+			if (epochValid && !Double.isNaN(fix.latitude) && !Double.isNaN(fix.longitude)) {
+				fix.time = time;
+				fix.satsInView = epochHasSats ? satCount : -1;
+				if ((fix.satsUsed < 0) && (usedCount > 0))
+					fix.satsUsed = usedCount;
+				fixes++;
+				listener.onFix(fix);
+			}
+		}
+
+		epochTime = -1;
+		epochDate = -1;
+		epochValid = false;
+		epochHasSats = false;
+		fix.clear();
+		for (int i = 0; i < satCount; i++)
+			satIndex[satId[i]] = -1;
+		satCount = 0;
+		for (int i = 0; i < usedCount; i++)
+			satUsed[usedIds[i]] = false;
+		usedCount = 0;
+	}
+
+	/**
+	 * Waits until an epoch is due, if replaying in real time.
+	 */
+	private void pace(long time) {
+		if ((speed > 0) && (lastEpochTime >= 0) && (time > lastEpochTime)) {
+			long pause = Math.min((long) ((time - lastEpochTime) / speed), MAX_PAUSE);
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				cancelled = true;
+			}
+		}
+		lastEpochTime = time;
+	}
+}
@@ -0,0 +1,211 @@
+package com.vonglasow.michael.satstat.nmea;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free ring buffer for NMEA sentences with one producer and one consumer.
+ * <p>
+ * Sentences are stored as ASCII bytes in a byte array, each preceded by its
+ * timestamp (8 bytes) and length (2 bytes). The producer and consumer
+ * positions increase monotonically and are published through
+ * {@link AtomicLong}s, so neither side ever blocks or takes a lock. If the
+ * consumer falls behind and the buffer is full, new sentences are dropped
+ * rather than blocking the producer. Offering a sentence does not allocate
+ * any objects.
+ * <p>
+ * Sentences which have been consumed stay in the buffer until the producer
+ * overwrites them. The producer keeps track of the oldest sentence which is
+ * still intact, so that {@link #getTail(long, int, StringBuilder)} can
+ * return the sentences of a recent time span (e.g. for display), whether
+ * or not they have been consumed.
+ * <p>
+ * {@link #offer(long, String)} and
+ * {@link #getTail(long, int, StringBuilder)} must be called on the producer
+ * thread, {@link #drainTo(OutputStream)} on the consumer thread.
+ */
+public class NmeaRingBuffer {
+	/** Maximum length of a sentence; longer sentences are truncated. */
+	public static final int MAX_SENTENCE_LENGTH = 255;
+
+	private static final int RECORD_HEADER_SIZE = 10;
+
+	private final byte[] data;
+	private final int mask;
+
+	/** Position after the last byte written, published by the producer. */
+	private final AtomicLong head = new AtomicLong();
+
+	/** Position of the first byte not yet consumed, published by the consumer. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/* Producer state */
+	/** Position of the oldest record which has not been overwritten. */
+	private long oldest = 0;
+	private long lastTimestamp = Long.MIN_VALUE;
+	private volatile long offered = 0;
+	private volatile long dropped = 0;
+
+	/* Consumer state */
+	private final byte[] header = new byte[RECORD_HEADER_SIZE];
+
+	/**
+	 * Creates a new ring buffer.
+	 *
+	 * @param capacity The capacity in bytes, rounded up to a power of two
+	 */
+	public NmeaRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+		data = new byte[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds a sentence. Trailing line breaks and whitespace are removed.
+	 *
+	 * @param timestamp The timestamp of the sentence
+	 * @param sentence The sentence
+	 * @return true if the sentence was added, false if the buffer is full
+	 */
+	public boolean offer(long timestamp, String sentence) {
+		int len = sentence.length();
+		while ((len > 0) && (sentence.charAt(len - 1) <= ' '))
+			len--;
+		if (len > MAX_SENTENCE_LENGTH)
+			len = MAX_SENTENCE_LENGTH;
+		offered++;
+		long h = head.get();
+		int size = RECORD_HEADER_SIZE + len;
+		if (h + size - tail.get() > data.length) {
+			dropped++;
+			return false;
+		}
+		// skip consumed records which are about to be overwritten
+		while (oldest < h + size - data.length)
+			oldest += RECORD_HEADER_SIZE + getLength(oldest);
+		lastTimestamp = timestamp;
+		long p = h;
+		for (int shift = 56; shift >= 0; shift -= 8)
+			data[(int) (p++ & mask)] = (byte) (timestamp >>> shift);
+		data[(int) (p++ & mask)] = (byte) (len >>> 8);
+		data[(int) (p++ & mask)] = (byte) len;
+		for (int i = 0; i < len; i++)
+			data[(int) (p++ & mask)] = (byte) sentence.charAt(i);
+		head.lazySet(p);
+		return true;
+	}
+
+	/**
+	 * Writes all available sentences to a stream, one per line, and releases their space.
+	 *
+	 * @return The number of sentences written
+	 */
+	public int drainTo(OutputStream out) throws IOException {
+		long t = tail.get();
+		long h = head.get();
+		int count = 0;
+		while (t < h) {
+			for (int i = 0; i < RECORD_HEADER_SIZE; i++)
+				header[i] = data[(int) (t++ & mask)];
+			int len = ((header[8] & 0xFF) << 8) | (header[9] & 0xFF);
+			int start = (int) (t & mask);
+			int first = Math.min(len, data.length - start);
+			out.write(data, start, first);
+			if (first < len)
+				out.write(data, 0, len - first);
+			out.write('\n');
+			t += len;
+			count++;
+			tail.lazySet(t);
+		}
+		return count;
+	}
+
+	/**
+	 * Appends recent sentences to a string builder, one per line, oldest first.
+	 * <p>
+	 * Sentences are returned as long as they have not been overwritten,
+	 * whether or not they have been consumed. This method does not change
+	 * the state of the buffer.
+	 *
+	 * @param since The earliest timestamp to return
+	 * @param maxCount The maximum number of sentences to return; if more match, the most recent ones are returned
+	 * @param out The string builder to which sentences are appended
+	 * @return The number of sentences appended
+	 */
+	public int getTail(long since, int maxCount, StringBuilder out) {
+		long h = head.get();
+		long first = oldest;
+		int count = 0;
+		for (long p = oldest; p < h; p += RECORD_HEADER_SIZE + getLength(p))
+			if (getTimestamp(p) >= since) {
+				if (count == 0)
+					first = p;
+				count++;
+			}
+		int skip = Math.max(0, count - maxCount);
+		int appended = 0;
+		for (long p = first; p < h; p += RECORD_HEADER_SIZE + getLength(p)) {
+			if (getTimestamp(p) < since)
+				continue;
+			if (skip > 0) {
+				skip--;
+				continue;
+			}
+			int len = getLength(p);
+			for (long q = p + RECORD_HEADER_SIZE; q < p + RECORD_HEADER_SIZE + len; q++)
+				out.append((char) data[(int) (q & mask)]);
+			out.append('\n');
+			appended++;
+		}
+		return appended;
+	}
+
+	/**
+	 * Returns the timestamp of the last sentence added, or {@link Long#MIN_VALUE} if there is none.
+	 * <p>
+	 * Must be called on the producer thread.
+	 */
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	/**
+	 * Returns the timestamp of the record at a given position.
+	 */
+	private long getTimestamp(long p) {
+		long timestamp = 0;
+		for (int i = 0; i < 8; i++)
+			timestamp = (timestamp << 8) | (data[(int) (p++ & mask)] & 0xFF);
+		return timestamp;
+	}
+
+	/**
+	 * Returns the sentence length of the record at a given position.
+	 */
+	private int getLength(long p) {
+		return ((data[(int) ((p + 8) & mask)] & 0xFF) << 8) | (data[(int) ((p + 9) & mask)] & 0xFF);
+	}
+
+	/**
+	 * Returns the number of bytes waiting to be consumed.
+	 */
+	public long getPending() {
+		return head.get() - tail.get();
+	}
+
+	/**
+	 * Returns the number of sentences offered to the buffer.
+	 */
+	public long getOffered() {
+		return offered;
+	}
+
+	/**
+	 * Returns the number of sentences dropped because the buffer was full.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+}
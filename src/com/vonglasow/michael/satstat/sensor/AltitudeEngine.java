@@ -0,0 +1,212 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.vonglasow.michael.satstat.util.TripleBuffer;
+
+/**
+ * Provides altitude and vertical speed fused from barometric pressure and GPS altitude.
+ * <p>
+ * There is one engine per process, which receives GPS fixes from all
+ * location listeners in the app. It runs while at least one client has
+ * started it, using its own {@link SensorHub} so that it keeps running when
+ * the activity is stopped. Pressure samples are fed into an
+ * {@link AltitudeEstimator} on the sensor thread; GPS altitudes are passed
+ * to the sensor thread, and the results back to the main thread, through a
+ * {@link TripleBuffer} each, so that the sensor thread never blocks or
+ * allocates objects.
+ * <p>
+ * On devices without a pressure sensor, the engine never has an altitude.
+ * <p>
+ * All methods must be called on the main thread. Results are picked up on
+ * the main thread by a single task, which also calls the listener; at most
+ * one such task is pending at any time, and updates arriving in the meantime
+ * are merged into it. The getters return the result picked up last.
+ */
+public class AltitudeEngine implements SensorHub.Listener {
+	/** Sampling period for the pressure sensor, in microseconds (25 Hz). */
+	public static final int SAMPLING_PERIOD = 40000;
+
+	/**
+	 * Ratio of vertical to horizontal GPS accuracy. Android does not report
+	 * vertical accuracy before API 26, and vertical errors are typically
+	 * larger than horizontal ones.
+	 */
+	private static final float VERTICAL_ACCURACY_FACTOR = 1.5f;
+
+	/** Horizontal accuracy assumed for GPS fixes which do not report one, in m. */
+	private static final float DEFAULT_ACCURACY = 20;
+
+	/**
+	 * Receives altitude updates.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the altitude has changed.
+		 *
+		 * @param altitude The calibrated altitude, in m
+		 * @param verticalSpeed The vertical speed in m/s, positive when ascending
+		 */
+		public void onAltitudeChanged(float altitude, float verticalSpeed);
+	}
+
+	private static AltitudeEngine instance = null;
+
+	private final SensorHub sensorHub;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final ArrayList<Object> clients = new ArrayList<Object>();
+
+	/** The estimator, used only on the sensor thread */
+	private final AltitudeEstimator estimator = new AltitudeEstimator();
+
+	/** GPS altitude and its accuracy, written on the main thread and read on the sensor thread */
+	private final TripleBuffer gpsAltitudes = new TripleBuffer(2);
+
+	/** Time of the last GPS fix passed to the estimator, to skip fixes received through more than one listener */
+	private long lastFixTime = 0;
+
+	/** Altitude, vertical speed and calibration flag, written on the sensor thread and read on the main thread */
+	private final TripleBuffer estimates = new TripleBuffer(3);
+
+	/** Only accessed on the main thread */
+	private Listener listener = null;
+
+	/** Whether a delivery to the main thread is pending */
+	private final AtomicBoolean isPending = new AtomicBoolean(false);
+
+	/** Picks up the latest result on the main thread; the only consumer of {@link #estimates} */
+	private final Runnable deliverTask = new Runnable() {
+		@Override
+		public void run() {
+			isPending.set(false);
+			if (!estimates.update())
+				return;
+			Listener l = listener;
+			float[] v = estimates.getFrontBuffer();
+			if ((l != null) && (v[2] != 0))
+				l.onAltitudeChanged(v[0], v[1]);
+		}
+	};
+
+	/**
+	 * Returns the engine instance, creating it if necessary.
+	 */
+	public static AltitudeEngine getInstance(Context context) {
+		if (instance == null)
+			instance = new AltitudeEngine((SensorManager) context.getApplicationContext().getSystemService(Context.SENSOR_SERVICE));
+		return instance;
+	}
+
+	private AltitudeEngine(SensorManager sensorManager) {
+		sensorHub = new SensorHub(sensorManager);
+		sensorHub.setSamplingPeriod(Sensor.TYPE_PRESSURE, SAMPLING_PERIOD);
+		sensorHub.subscribe(Sensor.TYPE_PRESSURE, this, 0, null);
+	}
+
+	/**
+	 * Starts the engine on behalf of a client. The engine runs until all clients have stopped it.
+	 *
+	 * @param client The client, usually an activity or service
+	 */
+	public void start(Object client) {
+		if (clients.contains(client))
+			return;
+		clients.add(client);
+		if (clients.size() == 1)
+			sensorHub.start();
+	}
+
+	/**
+	 * Stops the engine on behalf of a client.
+	 *
+	 * @param client The client which previously started the engine
+	 */
+	public void stop(Object client) {
+		if (clients.remove(client) && clients.isEmpty())
+			sensorHub.stop();
+	}
+
+	/**
+	 * Sets the listener which receives altitude updates.
+	 *
+	 * @param listener The listener, or null to stop delivering updates
+	 */
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Calibrates the barometric altitude against the altitude of a GPS fix.
+	 * <p>
+	 * Fixes from other providers, fixes without altitude and fixes already
+	 * passed to the engine are ignored.
+	 */
+	public void onLocationChanged(Location location) {
+		if (!LocationManager.GPS_PROVIDER.equals(location.getProvider()) || !location.hasAltitude()
+				|| (location.getTime() == lastFixTime))
+			return;
+		lastFixTime = location.getTime();
+		float[] fix = gpsAltitudes.getBackBuffer();
+		fix[0] = (float) location.getAltitude();
+		fix[1] = (location.hasAccuracy() ? location.getAccuracy() : DEFAULT_ACCURACY) * VERTICAL_ACCURACY_FACTOR;
+		gpsAltitudes.publish();
+	}
+
+	/**
+	 * Whether a calibrated altitude is available.
+	 * <p>
+	 * This is the case if the engine is running, the device has a pressure
+	 * sensor and at least one GPS altitude has been received.
+	 */
+	public boolean hasAltitude() {
+		if (clients.isEmpty())
+			return false;
+		return estimates.getFrontBuffer()[2] != 0;
+	}
+
+	/**
+	 * Returns the latest calibrated altitude in m. Only valid if {@link #hasAltitude()} returns true.
+	 */
+	public float getAltitude() {
+		return estimates.getFrontBuffer()[0];
+	}
+
+	/**
+	 * Returns the latest vertical speed in m/s. Only valid if {@link #hasAltitude()} returns true.
+	 */
+	public float getVerticalSpeed() {
+		return estimates.getFrontBuffer()[1];
+	}
+
+	/**
+	 * Called by {@link SensorHub} on the sensor thread. Updates the estimator and publishes the result.
+	 */
+	@Override
+	public void onSensorChanged(int type, long timestamp, int accuracy, float[] values) {
+		if (gpsAltitudes.update()) {
+			float[] fix = gpsAltitudes.getFrontBuffer();
+			estimator.onGpsAltitude(fix[0], fix[1]);
+		}
+		estimator.onPressure(timestamp, values[0]);
+		if (!estimator.hasPressure())
+			return;
+
+		float[] out = estimates.getBackBuffer();
+		out[0] = (float) estimator.getAltitude();
+		out[1] = (float) estimator.getVerticalSpeed();
+		out[2] = estimator.isCalibrated() ? 1 : 0;
+		estimates.publish();
+
+		if (isPending.compareAndSet(false, true))
+			handler.post(deliverTask);
+	}
+}
@@ -0,0 +1,195 @@
+package com.vonglasow.michael.satstat.sensor;
+
+/**
+ * Estimates altitude and vertical speed from barometric pressure, calibrated against GPS altitude.
+ * <p>
+ * Each pressure sample is converted into a pressure altitude with the
+ * international barometric formula for a standard sea-level pressure of
+ * {@link #STANDARD_PRESSURE}. A constant-velocity Kalman filter smooths the
+ * pressure altitude and estimates the vertical speed; it runs at the rate
+ * of the pressure sensor.
+ * <p>
+ * The difference between pressure altitude and true altitude depends on
+ * the actual sea-level pressure, which changes with the weather. It is
+ * tracked by a second, one-dimensional Kalman filter, which models the
+ * offset as a random walk and updates it with each GPS altitude. GPS
+ * altitude is noisy, but its errors average out over minutes, while
+ * pressure changes only slowly; the result combines the short-term
+ * precision of the barometer with the long-term accuracy of GPS. Until the
+ * first GPS altitude has been supplied, the estimator reports pressure
+ * altitude.
+ * <p>
+ * Note that GPS altitude on most Android devices is relative to the WGS84
+ * ellipsoid rather than to sea level; the calibrated altitude follows
+ * whatever reference the GPS altitudes use.
+ * <p>
+ * All state is kept in primitive fields, so updates do not allocate any
+ * objects. Instances are not thread-safe.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class AltitudeEstimator {
+	/** Standard sea-level pressure, in hPa. */
+	public static final float STANDARD_PRESSURE = 1013.25f;
+
+	/** Standard deviation of the pressure altitude of a single sample, in m. */
+	private static final double PRESSURE_NOISE = 0.5;
+
+	/** Spectral density of vertical acceleration, in m²/s³, which determines how fast the vertical speed may change. */
+	private static final double ACCELERATION_NOISE = 0.1;
+
+	/** Rate at which the variance of the offset grows, in m²/s (about 3 m per hour). */
+	private static final double OFFSET_DRIFT = 0.0025;
+
+	/** Longest gap between pressure samples, in seconds, after which the altitude filter is restarted. */
+	private static final double MAX_GAP = 5;
+
+	/* Altitude filter: pressure altitude (m), vertical speed (m/s) and their covariance */
+	private double height;
+	private double speed;
+	private double p11, p12, p22;
+	private boolean hasPressure = false;
+
+	/** Timestamp of the last pressure sample, in nanoseconds */
+	private long lastTimestamp = 0;
+
+	/* Offset filter: true altitude minus pressure altitude (m) and its variance */
+	private double offset = 0;
+	private double offsetVariance = Double.POSITIVE_INFINITY;
+
+	/** Latest pressure, in hPa */
+	private float pressure;
+
+	/**
+	 * Supplies a pressure sample.
+	 *
+	 * @param timestamp The timestamp of the sample, in nanoseconds
+	 * @param pressure The pressure, in hPa
+	 */
+	public void onPressure(long timestamp, float pressure) {
+		if (!(pressure > 0))
+			return;
+		this.pressure = pressure;
+		double z = getPressureAltitude(pressure);
+		double r = PRESSURE_NOISE * PRESSURE_NOISE;
+		double dt = (timestamp - lastTimestamp) / 1e9;
+		lastTimestamp = timestamp;
+
+		if (hasPressure && (dt > 0))
+			offsetVariance += OFFSET_DRIFT * dt;
+
+		if (!hasPressure || (dt > MAX_GAP) || (dt < 0)) {
+			height = z;
+			speed = 0;
+			p11 = r;
+			p12 = 0;
+			p22 = 1;
+			hasPressure = true;
+			return;
+		}
+
+		// predict
+		double q = ACCELERATION_NOISE;
+		height += speed * dt;
+		p11 += dt * (2 * p12 + dt * p22) + q * dt * dt * dt / 3;
+		p12 += dt * p22 + q * dt * dt / 2;
+		p22 += q * dt;
+
+		// correct
+		double s = p11 + r;
+		double k1 = p11 / s;
+		double k2 = p12 / s;
+		double y = z - height;
+		height += k1 * y;
+		speed += k2 * y;
+		p22 -= k2 * p12;
+		p12 -= k1 * p12;
+		p11 -= k1 * p11;
+	}
+
+	/**
+	 * Supplies a GPS altitude to calibrate the pressure altitude against.
+	 * <p>
+	 * GPS altitudes supplied before the first pressure sample are ignored.
+	 *
+	 * @param altitude The GPS altitude, in m
+	 * @param accuracy The standard deviation of the GPS altitude, in m
+	 */
+	public void onGpsAltitude(double altitude, float accuracy) {
+		if (!hasPressure || !(accuracy > 0) || Double.isNaN(altitude))
+			return;
+		double z = altitude - height;
+		double r = (double) accuracy * accuracy;
+		if (!isCalibrated()) {
+			offset = z;
+			offsetVariance = r;
+			return;
+		}
+		double k = offsetVariance / (offsetVariance + r);
+		offset += k * (z - offset);
+		offsetVariance -= k * offsetVariance;
+	}
+
+	/**
+	 * Whether at least one pressure sample has been supplied.
+	 */
+	public boolean hasPressure() {
+		return hasPressure;
+	}
+
+	/**
+	 * Whether the estimator has been calibrated against GPS altitude.
+	 */
+	public boolean isCalibrated() {
+		return offsetVariance < Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Returns the estimated altitude in m, or the pressure altitude if the estimator is not calibrated.
+	 */
+	public double getAltitude() {
+		return isCalibrated() ? height + offset : height;
+	}
+
+	/**
+	 * Returns the standard deviation of the calibrated altitude in m, or infinity if the estimator is not calibrated.
+	 */
+	public double getAltitudeAccuracy() {
+		return Math.sqrt(offsetVariance + p11);
+	}
+
+	/**
+	 * Returns the smoothed pressure altitude, in m.
+	 */
+	public double getPressureAltitude() {
+		return height;
+	}
+
+	/**
+	 * Returns the estimated vertical speed in m/s, positive when ascending.
+	 */
+	public double getVerticalSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Returns the sea-level pressure at which the latest pressure sample
+	 * corresponds to the estimated altitude, in hPa, or
+	 * {@link #STANDARD_PRESSURE} if the estimator is not calibrated.
+	 */
+	public double getSeaLevelPressure() {
+		if (!isCalibrated())
+			return STANDARD_PRESSURE;
+		return pressure / Math.pow(1 - getAltitude() / 44330.0, 5.255);
+	}
+
+	/**
+	 * Converts pressure to altitude in the standard atmosphere.
+	 *
+	 * @param pressure The pressure, in hPa
+	 * @return The altitude, in m
+	 */
+	public static double getPressureAltitude(float pressure) {
+		return 44330.0 * (1 - Math.pow(pressure / STANDARD_PRESSURE, 1 / 5.255));
+	}
+}
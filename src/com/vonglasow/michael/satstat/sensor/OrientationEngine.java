@@ -0,0 +1,164 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.hardware.Sensor;
+import android.os.Handler;
+
+import com.vonglasow.michael.satstat.util.TripleBuffer;
+
+/**
+ * Provides device orientation fused from gyroscope, accelerometer and magnetometer.
+ * <p>
+ * The engine subscribes to the three sensors on the sensor thread of a
+ * {@link SensorHub} and feeds them into an {@link OrientationFilter}. After
+ * each update, the new orientation is published through a {@link TripleBuffer},
+ * so that neither side ever blocks or allocates objects, and the consumer
+ * always sees the latest consistent value.
+ * <p>
+ * The listener is called on the thread of the handler passed to
+ * {@link #start(Listener, Handler)}. At most one delivery is pending at any
+ * time; updates arriving in the meantime are merged into it, so the
+ * listener receives values as fast as its thread can process them, and no
+ * faster than the sensors deliver them.
+ * <p>
+ * The sensors should be run at {@link #SAMPLING_PERIOD} while the engine is
+ * started, see {@link SensorHub#setSamplingPeriod(int, int)}.
+ * {@link #start(Listener, Handler)} and {@link #stop()} must be called on
+ * the same thread as the other {@link SensorHub} methods.
+ */
+public class OrientationEngine implements SensorHub.Listener {
+	/** Sampling period for the sensors used by the engine, in microseconds (100 Hz). */
+	public static final int SAMPLING_PERIOD = 10000;
+
+	/**
+	 * Receives orientation updates.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the orientation has changed.
+		 *
+		 * @param azimuth The azimuth in degrees, 0 to 360 clockwise from magnetic north
+		 * @param pitch The pitch in degrees, -180 to 180, as in {@code Sensor.TYPE_ORIENTATION}
+		 * @param roll The roll in degrees, -90 to 90, as in {@code Sensor.TYPE_ORIENTATION}
+		 */
+		public void onOrientationChanged(float azimuth, float pitch, float roll);
+	}
+
+	private final SensorHub sensorHub;
+
+	/** The filter, replaced on each start and used only on the sensor thread */
+	private volatile OrientationFilter filter = null;
+
+	/* Written on the thread which starts and stops the engine, read on the sensor thread */
+	private volatile Listener listener = null;
+	private volatile Handler handler = null;
+
+	/** Azimuth, pitch and roll, written on the sensor thread and read on the handler thread */
+	private final TripleBuffer angles = new TripleBuffer(3);
+
+	/** Whether a delivery to the listener is pending */
+	private final AtomicBoolean isPending = new AtomicBoolean(false);
+
+	private final Runnable deliverTask = new Runnable() {
+		@Override
+		public void run() {
+			isPending.set(false);
+			Listener l = listener;
+			if ((l == null) || !angles.update())
+				return;
+			float[] v = angles.getFrontBuffer();
+			l.onOrientationChanged(v[0], v[1], v[2]);
+		}
+	};
+
+	public OrientationEngine(SensorHub sensorHub) {
+		this.sensorHub = sensorHub;
+	}
+
+	/**
+	 * Whether the engine uses a sensor type.
+	 */
+	public static boolean usesSensor(int type) {
+		return (type == Sensor.TYPE_ACCELEROMETER) || (type == Sensor.TYPE_GYROSCOPE) || (type == Sensor.TYPE_MAGNETIC_FIELD);
+	}
+
+	/**
+	 * Starts delivering orientation updates to a listener.
+	 * <p>
+	 * If the engine is already started, the listener and handler are replaced.
+	 *
+	 * @param listener The listener
+	 * @param handler The handler on whose thread the listener will be called
+	 */
+	public void start(Listener listener, Handler handler) {
+		if (this.handler != null)
+			this.handler.removeCallbacks(deliverTask);
+		this.listener = listener;
+		this.handler = handler;
+		isPending.set(false);
+		if (filter != null)
+			return;
+		filter = new OrientationFilter(sensorHub.getSensor(Sensor.TYPE_GYROSCOPE) != null,
+				sensorHub.getSensor(Sensor.TYPE_MAGNETIC_FIELD) != null);
+		sensorHub.subscribe(Sensor.TYPE_ACCELEROMETER, this, 0, null);
+		sensorHub.subscribe(Sensor.TYPE_MAGNETIC_FIELD, this, 0, null);
+		sensorHub.subscribe(Sensor.TYPE_GYROSCOPE, this, 0, null);
+	}
+
+	/**
+	 * Stops delivering orientation updates. No updates are delivered after this method returns.
+	 */
+	public void stop() {
+		if (filter == null)
+			return;
+		sensorHub.unsubscribe(this);
+		filter = null;
+		handler.removeCallbacks(deliverTask);
+		listener = null;
+		handler = null;
+	}
+
+	/**
+	 * Whether the engine is started.
+	 */
+	public boolean isStarted() {
+		return filter != null;
+	}
+
+	/**
+	 * Called by {@link SensorHub} on the sensor thread. Updates the filter and publishes the result.
+	 */
+	@Override
+	public void onSensorChanged(int type, long timestamp, int accuracy, float[] values) {
+		OrientationFilter f = filter;
+		if (f == null)
+			return;
+		boolean updated;
+		switch (type) {
+		case Sensor.TYPE_GYROSCOPE:
+			updated = f.onGyroscope(timestamp, values[0], values[1], values[2]);
+			break;
+		case Sensor.TYPE_ACCELEROMETER:
+			updated = f.onAccelerometer(timestamp, values[0], values[1], values[2]);
+			break;
+		case Sensor.TYPE_MAGNETIC_FIELD:
+			updated = f.onMagneticField(timestamp, values[0], values[1], values[2]);
+			break;
+		default:
+			return;
+		}
+		if (!updated)
+			return;
+
+		float[] out = angles.getBackBuffer();
+		out[0] = f.getAzimuth();
+		out[1] = f.getPitch();
+		out[2] = f.getRoll();
+		angles.publish();
+
+		Handler h = handler;
+		if ((h != null) && isPending.compareAndSet(false, true))
+			h.post(deliverTask);
+	}
+}
@@ -0,0 +1,371 @@
+package com.vonglasow.michael.satstat.sensor;
+
+/**
+ * Estimates device orientation from gyroscope, accelerometer and magnetometer readings.
+ * <p>
+ * This is the MARG variant of Madgwick's gradient descent filter: gyroscope
+ * rates are integrated into an orientation quaternion, and each step is
+ * corrected towards the orientation indicated by gravity and the magnetic
+ * field, at a rate of {@code beta} rad/s. Gyroscope samples drive the
+ * filter; accelerometer and magnetometer samples only update the reference
+ * vectors used for the next step. On devices without a gyroscope, the
+ * filter is driven by accelerometer samples instead, with zero rotation
+ * rates, and then works as a smoothing filter for the accelerometer and
+ * magnetometer. Without magnetometer samples, only pitch and roll are
+ * corrected.
+ * <p>
+ * The filter starts from the orientation given by the first accelerometer
+ * and magnetometer samples, so it does not need to converge from an
+ * arbitrary initial state.
+ * <p>
+ * The quaternion describes the rotation from the device frame to an earth
+ * frame with X pointing to magnetic north, Y to the west and Z up; the
+ * device frame is that of Android sensors. Angles are reported in degrees,
+ * with the conventions of the deprecated {@code Sensor.TYPE_ORIENTATION}:
+ * azimuth from 0 to 360 clockwise from magnetic north, pitch from -180 to
+ * 180 (negative when the top of the device is raised) and roll from -90 to
+ * 90 (positive when the right edge of the device is raised).
+ * <p>
+ * All state is kept in primitive fields, so updates do not allocate any
+ * objects. Instances are not thread-safe.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class OrientationFilter {
+	/** Default correction rate with a gyroscope, in rad/s. */
+	public static final float DEFAULT_BETA = 0.1f;
+
+	/** Default correction rate without a gyroscope, in rad/s. */
+	public static final float DEFAULT_BETA_NO_GYRO = 0.5f;
+
+	/** Longest time step integrated, in seconds; longer gaps (such as after a pause) are treated as this. */
+	private static final float MAX_STEP = 0.1f;
+
+	private final float beta;
+	private final boolean hasGyro;
+	private final boolean hasMagnetometer;
+
+	/* Orientation quaternion, w, x, y, z */
+	private float q0 = 1;
+	private float q1 = 0;
+	private float q2 = 0;
+	private float q3 = 0;
+	private boolean isInitialized = false;
+
+	/* Latest reference vectors */
+	private float ax, ay, az;
+	private float mx, my, mz;
+	private boolean hasAccel = false;
+	private boolean hasMag = false;
+
+	/** Timestamp of the last step, in nanoseconds */
+	private long lastTimestamp = 0;
+
+	/* Output, in degrees */
+	private float azimuth;
+	private float pitch;
+	private float roll;
+
+	/**
+	 * Creates a new filter with the default correction rate.
+	 *
+	 * @param hasGyro Whether gyroscope samples will be supplied
+	 * @param hasMagnetometer Whether magnetometer samples will be supplied
+	 */
+	public OrientationFilter(boolean hasGyro, boolean hasMagnetometer) {
+		this(hasGyro, hasMagnetometer, hasGyro ? DEFAULT_BETA : DEFAULT_BETA_NO_GYRO);
+	}
+
+	/**
+	 * Creates a new filter.
+	 *
+	 * @param hasGyro Whether gyroscope samples will be supplied
+	 * @param hasMagnetometer Whether magnetometer samples will be supplied
+	 * @param beta The rate at which errors are corrected, in rad/s
+	 */
+	public OrientationFilter(boolean hasGyro, boolean hasMagnetometer, float beta) {
+		this.hasGyro = hasGyro;
+		this.hasMagnetometer = hasMagnetometer;
+		this.beta = beta;
+	}
+
+	/**
+	 * Processes a gyroscope sample and updates the orientation.
+	 *
+	 * @param timestamp The timestamp, in nanoseconds
+	 * @param gx The rotation rate around the X axis, in rad/s
+	 * @param gy The rotation rate around the Y axis, in rad/s
+	 * @param gz The rotation rate around the Z axis, in rad/s
+	 * @return Whether the orientation was updated
+	 */
+	public boolean onGyroscope(long timestamp, float gx, float gy, float gz) {
+		return step(timestamp, gx, gy, gz);
+	}
+
+	/**
+	 * Processes an accelerometer sample.
+	 * <p>
+	 * The orientation is updated only if the filter has no gyroscope, or on the first call.
+	 *
+	 * @param timestamp The timestamp, in nanoseconds
+	 * @return Whether the orientation was updated
+	 */
+	public boolean onAccelerometer(long timestamp, float x, float y, float z) {
+		float norm = (float) Math.sqrt(x * x + y * y + z * z);
+		if (norm == 0)
+			return false;
+		ax = x / norm;
+		ay = y / norm;
+		az = z / norm;
+		hasAccel = true;
+		if (!isInitialized)
+			return initialize(timestamp);
+		if (!hasGyro)
+			return step(timestamp, 0, 0, 0);
+		return false;
+	}
+
+	/**
+	 * Processes a magnetometer sample. The orientation is updated only on the first call.
+	 *
+	 * @param timestamp The timestamp, in nanoseconds
+	 * @return Whether the orientation was updated
+	 */
+	public boolean onMagneticField(long timestamp, float x, float y, float z) {
+		float norm = (float) Math.sqrt(x * x + y * y + z * z);
+		if (norm == 0)
+			return false;
+		mx = x / norm;
+		my = y / norm;
+		mz = z / norm;
+		hasMag = true;
+		if (!isInitialized)
+			return initialize(timestamp);
+		return false;
+	}
+
+	/**
+	 * Whether an orientation is available.
+	 */
+	public boolean isInitialized() {
+		return isInitialized;
+	}
+
+	/** Returns the azimuth, in degrees from 0 to 360. */
+	public float getAzimuth() {
+		return azimuth;
+	}
+
+	/** Returns the pitch, in degrees from -180 to 180. */
+	public float getPitch() {
+		return pitch;
+	}
+
+	/** Returns the roll, in degrees from -90 to 90. */
+	public float getRoll() {
+		return roll;
+	}
+
+	/**
+	 * Copies the orientation quaternion (w, x, y, z) into an array.
+	 */
+	public void getQuaternion(float[] q) {
+		q[0] = q0;
+		q[1] = q1;
+		q[2] = q2;
+		q[3] = q3;
+	}
+
+	/**
+	 * Sets the initial orientation from the accelerometer and magnetometer, once both are available.
+	 * <p>
+	 * Without a magnetometer, the device axis closest to horizontal is taken as magnetic north.
+	 */
+	private boolean initialize(long timestamp) {
+		if (!hasAccel || (hasMagnetometer && !hasMag))
+			return false;
+		float rx = mx, ry = my, rz = mz;
+		if (!hasMagnetometer) {
+			float absX = Math.abs(ax), absY = Math.abs(ay), absZ = Math.abs(az);
+			rx = ((absX <= absY) && (absX <= absZ)) ? 1 : 0;
+			ry = ((rx == 0) && (absY <= absZ)) ? 1 : 0;
+			rz = ((rx == 0) && (ry == 0)) ? 1 : 0;
+		}
+
+		// east = m × up, north = up × east, as in SensorManager.getRotationMatrix()
+		float ex = ry * az - rz * ay;
+		float ey = rz * ax - rx * az;
+		float ez = rx * ay - ry * ax;
+		float norm = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+		if (norm < 0.1f)
+			// device in free fall or magnetic field close to vertical
+			return false;
+		ex /= norm;
+		ey /= norm;
+		ez /= norm;
+		float nx = ay * ez - az * ey;
+		float ny = az * ex - ax * ez;
+		float nz = ax * ey - ay * ex;
+
+		// rows of the rotation matrix are north, west and up in device coordinates
+		float m00 = nx, m01 = ny, m02 = nz;
+		float m10 = -ex, m11 = -ey, m12 = -ez;
+		float m20 = ax, m21 = ay, m22 = az;
+		float trace = m00 + m11 + m22;
+		if (trace > 0) {
+			float s = 0.5f / (float) Math.sqrt(trace + 1);
+			q0 = 0.25f / s;
+			q1 = (m21 - m12) * s;
+			q2 = (m02 - m20) * s;
+			q3 = (m10 - m01) * s;
+		} else if ((m00 > m11) && (m00 > m22)) {
+			float s = 2 * (float) Math.sqrt(1 + m00 - m11 - m22);
+			q0 = (m21 - m12) / s;
+			q1 = 0.25f * s;
+			q2 = (m01 + m10) / s;
+			q3 = (m02 + m20) / s;
+		} else if (m11 > m22) {
+			float s = 2 * (float) Math.sqrt(1 + m11 - m00 - m22);
+			q0 = (m02 - m20) / s;
+			q1 = (m01 + m10) / s;
+			q2 = 0.25f * s;
+			q3 = (m12 + m21) / s;
+		} else {
+			float s = 2 * (float) Math.sqrt(1 + m22 - m00 - m11);
+			q0 = (m10 - m01) / s;
+			q1 = (m02 + m20) / s;
+			q2 = (m12 + m21) / s;
+			q3 = 0.25f * s;
+		}
+		normalizeQuaternion();
+		lastTimestamp = timestamp;
+		isInitialized = true;
+		updateAngles();
+		return true;
+	}
+
+	/**
+	 * Integrates rotation rates and corrects towards the reference vectors.
+	 */
+	private boolean step(long timestamp, float gx, float gy, float gz) {
+		if (!isInitialized)
+			return false;
+		float dt = (timestamp - lastTimestamp) * 1e-9f;
+		lastTimestamp = timestamp;
+		if (dt <= 0)
+			return false;
+		if (dt > MAX_STEP)
+			dt = MAX_STEP;
+
+		// rate of change of the quaternion from the gyroscope
+		float qDot0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+		float qDot1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+		float qDot2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+		float qDot3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+		if (hasAccel) {
+			float s0, s1, s2, s3;
+			float _2q0 = 2 * q0;
+			float _2q1 = 2 * q1;
+			float _2q2 = 2 * q2;
+			float _2q3 = 2 * q3;
+			float q0q0 = q0 * q0;
+			float q1q1 = q1 * q1;
+			float q2q2 = q2 * q2;
+			float q3q3 = q3 * q3;
+
+			if (hasMag) {
+				float _2q0mx = 2 * q0 * mx;
+				float _2q0my = 2 * q0 * my;
+				float _2q0mz = 2 * q0 * mz;
+				float _2q1mx = 2 * q1 * mx;
+				float _2q0q2 = 2 * q0 * q2;
+				float _2q2q3 = 2 * q2 * q3;
+				float q0q1 = q0 * q1;
+				float q0q2 = q0 * q2;
+				float q0q3 = q0 * q3;
+				float q1q2 = q1 * q2;
+				float q1q3 = q1 * q3;
+				float q2q3 = q2 * q3;
+
+				// reference direction of the magnetic field in the earth frame
+				float hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2 + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+				float hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1 + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+				float _2bx = (float) Math.sqrt(hx * hx + hy * hy);
+				float _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1 + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+				float _4bx = 2 * _2bx;
+				float _4bz = 2 * _2bz;
+
+				// errors between estimated and measured directions of gravity and magnetic field
+				float fax = 2 * q1q3 - _2q0q2 - ax;
+				float fay = 2 * q0q1 + _2q2q3 - ay;
+				float faz = 1 - 2 * q1q1 - 2 * q2q2 - az;
+				float fmx = _2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+				float fmy = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+				float fmz = _2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz;
+
+				// gradient of the objective function
+				s0 = -_2q2 * fax + _2q1 * fay - _2bz * q2 * fmx + (-_2bx * q3 + _2bz * q1) * fmy + _2bx * q2 * fmz;
+				s1 = _2q3 * fax + _2q0 * fay - 4 * q1 * faz + _2bz * q3 * fmx + (_2bx * q2 + _2bz * q0) * fmy + (_2bx * q3 - _4bz * q1) * fmz;
+				s2 = -_2q0 * fax + _2q3 * fay - 4 * q2 * faz + (-_4bx * q2 - _2bz * q0) * fmx + (_2bx * q1 + _2bz * q3) * fmy + (_2bx * q0 - _4bz * q2) * fmz;
+				s3 = _2q1 * fax + _2q2 * fay + (-_4bx * q3 + _2bz * q1) * fmx + (-_2bx * q0 + _2bz * q2) * fmy + _2bx * q1 * fmz;
+			} else {
+				float _4q0 = 4 * q0;
+				float _4q1 = 4 * q1;
+				float _4q2 = 4 * q2;
+				float _8q1 = 8 * q1;
+				float _8q2 = 8 * q2;
+
+				// gradient for gravity alone
+				s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+				s1 = _4q1 * q3q3 - _2q3 * ax + 4 * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+				s2 = 4 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+				s3 = 4 * q1q1 * q3 - _2q1 * ax + 4 * q2q2 * q3 - _2q2 * ay;
+			}
+
+			float norm = (float) Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+			if (norm > 0) {
+				norm = beta / norm;
+				qDot0 -= s0 * norm;
+				qDot1 -= s1 * norm;
+				qDot2 -= s2 * norm;
+				qDot3 -= s3 * norm;
+			}
+		}
+
+		q0 += qDot0 * dt;
+		q1 += qDot1 * dt;
+		q2 += qDot2 * dt;
+		q3 += qDot3 * dt;
+		normalizeQuaternion();
+		updateAngles();
+		return true;
+	}
+
+	private void normalizeQuaternion() {
+		float norm = (float) Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+		q0 /= norm;
+		q1 /= norm;
+		q2 /= norm;
+		q3 /= norm;
+	}
+
+	/**
+	 * Derives azimuth, pitch and roll from the quaternion.
+	 */
+	private void updateAngles() {
+		// elements of the rotation matrix, whose rows are north, west and up in device coordinates
+		float m01 = 2 * (q1 * q2 - q0 * q3);
+		float m11 = 1 - 2 * (q1 * q1 + q3 * q3);
+		float m20 = 2 * (q1 * q3 - q0 * q2);
+		float m21 = 2 * (q2 * q3 + q0 * q1);
+		float m22 = 1 - 2 * (q1 * q1 + q2 * q2);
+
+		// device Y axis projected on east (which is -west) and north
+		azimuth = (float) Math.toDegrees(Math.atan2(-m11, m01));
+		if (azimuth < 0)
+			azimuth += 360;
+		pitch = (float) Math.toDegrees(Math.atan2(-m21, m22));
+		roll = (float) Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, m20))));
+	}
+}
@@ -0,0 +1,427 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Receives sensor events and dispatches them to subscribers.
+ * <p>
+ * State is kept per sensor type, in arrays indexed by type. Each sensor is
+ * registered only while it has subscribers, at a sampling period which can
+ * be configured per sensor with {@link #setSamplingPeriod(int, int)}. On
+ * Android 4.4 and later, a maximum report latency can also be set with
+ * {@link #setMaxReportLatency(int, int)}, which allows the sensor hardware
+ * to batch events in its FIFO and deliver them in bursts.
+ * Events are received on a dedicated sensor thread.
+ * <p>
+ * Each subscriber receives only the sensor types it has subscribed to, and
+ * can set a minimum interval between two events; events arriving earlier
+ * are dropped for that subscriber. Subscribers which pass a
+ * {@link Handler} get their events on the thread of that handler. Sensor
+ * values are copied for them, and if the subscriber has not yet processed
+ * the previous event when a new one arrives, the pending event is replaced
+ * by the new one and counted as dropped. This keeps the UI thread from
+ * falling behind. Subscribers without a handler are called on the sensor
+ * thread itself, without copying; this is intended for consumers which do
+ * heavy processing and must not block the UI thread.
+ * <p>
+ * The number of events received, dropped and delivered is counted per
+ * sensor type and logged when the hub is stopped.
+ * <p>
+ * {@link #subscribe(int, Listener, int, Handler)}, {@link #unsubscribe(Listener)},
+ * {@link #start()} and {@link #stop()} must be called on the same thread,
+ * usually the main thread.
+ */
+public class SensorHub implements SensorEventListener {
+	private static final String TAG = SensorHub.class.getSimpleName();
+
+	/** The highest sensor type supported. */
+	public static final int MAX_TYPE = 63;
+
+	/** Default sampling period, in microseconds. */
+	public static final int DEFAULT_SAMPLING_PERIOD = 200000;
+
+	/**
+	 * Receives sensor events.
+	 */
+	public interface Listener {
+		/**
+		 * Called when a new sensor event is available.
+		 * <p>
+		 * {@code values} is only valid until this method returns and must not be modified.
+		 *
+		 * @param type The sensor type, one of the {@code Sensor.TYPE_*} constants
+		 * @param timestamp The event timestamp, in nanoseconds
+		 * @param accuracy The accuracy of the event, as in {@link SensorEvent#accuracy}
+		 * @param values The sensor values
+		 */
+		public void onSensorChanged(int type, long timestamp, int accuracy, float[] values);
+	}
+
+	private final SensorManager sensorManager;
+
+	/* Per-type state */
+	private final Sensor[] sensors = new Sensor[MAX_TYPE + 1];
+	private final int[] samplingPeriods = new int[MAX_TYPE + 1];
+	private final int[] maxReportLatencies = new int[MAX_TYPE + 1];
+	/** Whether the sensor for each type is registered, 1 if it is, 0 if not */
+	private final AtomicIntegerArray registered = new AtomicIntegerArray(MAX_TYPE + 1);
+	/**
+	 * Subscriptions per type. Arrays are replaced rather than modified, and
+	 * published through an {@link AtomicReferenceArray}, so that the sensor
+	 * thread always sees a complete array without locking.
+	 */
+	private final AtomicReferenceArray<Subscription[]> subscriptions =
+			new AtomicReferenceArray<Subscription[]>(MAX_TYPE + 1);
+
+	/* Statistics per type */
+	private final AtomicLongArray receivedCounts = new AtomicLongArray(MAX_TYPE + 1);
+	private final AtomicLongArray droppedCounts = new AtomicLongArray(MAX_TYPE + 1);
+	private final AtomicLongArray deliveredCounts = new AtomicLongArray(MAX_TYPE + 1);
+
+	private HandlerThread sensorThread = null;
+	private Handler sensorHandler = null;
+
+	private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+	public SensorHub(SensorManager sensorManager) {
+		this.sensorManager = sensorManager;
+		for (int i = 0; i <= MAX_TYPE; i++) {
+			samplingPeriods[i] = DEFAULT_SAMPLING_PERIOD;
+			subscriptions.set(i, NO_SUBSCRIPTIONS);
+		}
+	}
+
+	/**
+	 * Returns the default sensor for a type, or null if the device does not have one.
+	 */
+	public Sensor getSensor(int type) {
+		if ((type < 0) || (type > MAX_TYPE))
+			return null;
+		if (sensors[type] == null)
+			sensors[type] = sensorManager.getDefaultSensor(type);
+		return sensors[type];
+	}
+
+	/**
+	 * Sets the sampling period for a sensor type.
+	 * <p>
+	 * This is a hint to the system, which may deliver events at a higher rate.
+	 * If the sensor is currently registered, it is registered again.
+	 *
+	 * @param period The sampling period in microseconds, or one of the {@code SensorManager.SENSOR_DELAY_*} constants
+	 */
+	public void setSamplingPeriod(int type, int period) {
+		if (samplingPeriods[type] == period)
+			return;
+		samplingPeriods[type] = period;
+		reregister(type);
+	}
+
+	/**
+	 * Sets the maximum time by which events from a sensor type may be delayed for batching.
+	 * <p>
+	 * This has an effect only on Android 4.4 and later, and only if the sensor
+	 * has a FIFO. If the sensor is currently registered, it is registered again.
+	 *
+	 * @param latency The maximum report latency in microseconds, 0 to deliver events immediately
+	 */
+	public void setMaxReportLatency(int type, int latency) {
+		if (maxReportLatencies[type] == latency)
+			return;
+		maxReportLatencies[type] = latency;
+		reregister(type);
+	}
+
+	/**
+	 * Subscribes to events from a sensor type.
+	 * <p>
+	 * A listener may subscribe to multiple sensor types, but only once per type.
+	 *
+	 * @param type The sensor type
+	 * @param listener The listener which will receive events
+	 * @param interval The minimum interval between two events delivered to the listener, in microseconds, or 0 for all events
+	 * @param handler The handler on whose thread events will be delivered, or null to receive them on the sensor thread
+	 * @return Whether the device has a sensor of the requested type
+	 */
+	public boolean subscribe(int type, Listener listener, int interval, Handler handler) {
+		if (getSensor(type) == null)
+			return false;
+		Subscription[] old = subscriptions.get(type);
+		for (int i = 0; i < old.length; i++)
+			if (old[i].listener == listener)
+				return true;
+		Subscription[] subs = new Subscription[old.length + 1];
+		System.arraycopy(old, 0, subs, 0, old.length);
+		subs[old.length] = new Subscription(type, listener, interval, handler);
+		subscriptions.set(type, subs);
+		if (sensorThread != null)
+			register(type);
+		return true;
+	}
+
+	/**
+	 * Removes all subscriptions of a listener.
+	 * <p>
+	 * When called on the thread of the listener's handler, no events will be
+	 * delivered to the listener after this method returns.
+	 */
+	public void unsubscribe(Listener listener) {
+		for (int type = 0; type <= MAX_TYPE; type++) {
+			Subscription[] old = subscriptions.get(type);
+			int index = -1;
+			for (int i = 0; i < old.length; i++)
+				if (old[i].listener == listener)
+					index = i;
+			if (index < 0)
+				continue;
+			old[index].cancel();
+			Subscription[] subs = NO_SUBSCRIPTIONS;
+			if (old.length > 1) {
+				subs = new Subscription[old.length - 1];
+				System.arraycopy(old, 0, subs, 0, index);
+				System.arraycopy(old, index + 1, subs, index, old.length - index - 1);
+			}
+			subscriptions.set(type, subs);
+			if ((subs.length == 0) && isRegistered(type)) {
+				sensorManager.unregisterListener(this, sensors[type]);
+				setRegistered(type, false);
+			}
+		}
+	}
+
+	/**
+	 * Starts the sensor thread and registers all sensors which have subscribers.
+	 */
+	public void start() {
+		if (sensorThread != null)
+			return;
+		sensorThread = new HandlerThread("SensorHub", Process.THREAD_PRIORITY_DISPLAY);
+		sensorThread.start();
+		sensorHandler = new Handler(sensorThread.getLooper());
+		for (int type = 0; type <= MAX_TYPE; type++)
+			if (subscriptions.get(type).length > 0)
+				register(type);
+	}
+
+	/**
+	 * Unregisters all sensors, stops the sensor thread and logs statistics.
+	 * <p>
+	 * Subscriptions are kept and will receive events again after the next call to {@link #start()}.
+	 */
+	public void stop() {
+		if (sensorThread == null)
+			return;
+		sensorManager.unregisterListener(this);
+		for (int type = 0; type <= MAX_TYPE; type++)
+			setRegistered(type, false);
+		sensorThread.quit();
+		sensorThread = null;
+		sensorHandler = null;
+		logStatistics();
+	}
+
+	/**
+	 * Returns the number of events received from a sensor type.
+	 */
+	public long getReceivedCount(int type) {
+		return receivedCounts.get(type);
+	}
+
+	/**
+	 * Returns the number of events from a sensor type which were not delivered to a subscriber.
+	 * <p>
+	 * Each event is counted once per subscriber, as is the case for {@link #getDeliveredCount(int)}.
+	 */
+	public long getDroppedCount(int type) {
+		return droppedCounts.get(type);
+	}
+
+	/**
+	 * Returns the number of events from a sensor type which were delivered to a subscriber.
+	 */
+	public long getDeliveredCount(int type) {
+		return deliveredCounts.get(type);
+	}
+
+	/**
+	 * Logs the number of events received, dropped and delivered for each sensor type.
+	 */
+	public void logStatistics() {
+		for (int type = 0; type <= MAX_TYPE; type++) {
+			long received = receivedCounts.get(type);
+			if (received == 0)
+				continue;
+			Log.d(TAG, String.format("%s: %d events received, %d dropped, %d delivered",
+					sensors[type].getName(), received, droppedCounts.get(type), deliveredCounts.get(type)));
+		}
+	}
+
+	/**
+	 * Called on the sensor thread when a sensor's accuracy has changed. Does nothing.
+	 */
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+	/**
+	 * Called on the sensor thread when a sensor's reading changes, and dispatches the event to subscribers.
+	 */
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		int type = event.sensor.getType();
+		if ((type < 0) || (type > MAX_TYPE))
+			return;
+		receivedCounts.incrementAndGet(type);
+		Subscription[] subs = subscriptions.get(type);
+		for (int i = 0; i < subs.length; i++)
+			subs[i].dispatch(event);
+	}
+
+	/**
+	 * Registers a sensor on the sensor thread, if it is not registered yet.
+	 */
+	private void register(int type) {
+		if (isRegistered(type))
+			return;
+		boolean success;
+		if ((maxReportLatencies[type] > 0) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT))
+			success = sensorManager.registerListener(this, sensors[type], samplingPeriods[type],
+					maxReportLatencies[type], sensorHandler);
+		else
+			success = sensorManager.registerListener(this, sensors[type], samplingPeriods[type], sensorHandler);
+		setRegistered(type, success);
+		if (!success)
+			Log.w(TAG, "Could not register sensor " + sensors[type].getName());
+	}
+
+	/**
+	 * Registers a sensor again if it is registered, so that changed parameters take effect.
+	 */
+	private void reregister(int type) {
+		if (!isRegistered(type))
+			return;
+		sensorManager.unregisterListener(this, sensors[type]);
+		setRegistered(type, false);
+		register(type);
+	}
+
+	private boolean isRegistered(int type) {
+		return registered.get(type) != 0;
+	}
+
+	private void setRegistered(int type, boolean value) {
+		registered.set(type, value ? 1 : 0);
+	}
+
+	/**
+	 * A subscription of a listener to one sensor type.
+	 * <p>
+	 * Delivery through a handler uses two value buffers: the sensor thread
+	 * writes into {@link #pendingValues}, and the run() method swaps it with
+	 * {@link #deliveredValues} before calling the listener.
+	 */
+	private class Subscription implements Runnable {
+		private final int type;
+		private final Listener listener;
+		private final long interval;
+		private final Handler handler;
+
+		/** Timestamp of the last event accepted, in microseconds, accessed only on the sensor thread */
+		private long lastTimestamp = Long.MIN_VALUE / 2;
+
+		/* Guarded by this */
+		private float[] pendingValues = null;
+		private float[] deliveredValues = null;
+		private long pendingTimestamp;
+		private int pendingAccuracy;
+		private boolean isPending = false;
+		private boolean isCancelled = false;
+
+		private Subscription(int type, Listener listener, int interval, Handler handler) {
+			this.type = type;
+			this.listener = listener;
+			this.interval = interval;
+			this.handler = handler;
+		}
+
+		/**
+		 * Stops delivery of any events which have not yet been delivered.
+		 */
+		private synchronized void cancel() {
+			isCancelled = true;
+			if (isPending && (handler != null))
+				handler.removeCallbacks(this);
+		}
+
+		/**
+		 * Delivers an event to the listener, or passes it to its handler. Called on the sensor thread.
+		 */
+		private void dispatch(SensorEvent event) {
+			long timestamp = event.timestamp / 1000;
+			if (timestamp - lastTimestamp < interval) {
+				droppedCounts.incrementAndGet(type);
+				return;
+			}
+			lastTimestamp = timestamp;
+
+			if (handler == null) {
+				listener.onSensorChanged(type, event.timestamp, event.accuracy, event.values);
+				deliveredCounts.incrementAndGet(type);
+				return;
+			}
+
+			boolean post;
+			synchronized (this) {
+				if (isCancelled)
+					return;
+				if ((pendingValues == null) || (pendingValues.length != event.values.length)) {
+					pendingValues = new float[event.values.length];
+					deliveredValues = new float[event.values.length];
+				}
+				System.arraycopy(event.values, 0, pendingValues, 0, pendingValues.length);
+				pendingTimestamp = event.timestamp;
+				pendingAccuracy = event.accuracy;
+				post = !isPending;
+				isPending = true;
+			}
+			if (post)
+				handler.post(this);
+			else
+				// the previous event was not delivered yet and has just been overwritten
+				droppedCounts.incrementAndGet(type);
+		}
+
+		/**
+		 * Delivers the pending event to the listener. Called on the handler's thread.
+		 */
+		@Override
+		public void run() {
+			float[] values;
+			long timestamp;
+			int accuracy;
+			synchronized (this) {
+				if (isCancelled || !isPending)
+					return;
+				values = pendingValues;
+				pendingValues = deliveredValues;
+				deliveredValues = values;
+				timestamp = pendingTimestamp;
+				accuracy = pendingAccuracy;
+				isPending = false;
+			}
+			listener.onSensorChanged(type, timestamp, accuracy, values);
+			deliveredCounts.incrementAndGet(type);
+		}
+	}
+}
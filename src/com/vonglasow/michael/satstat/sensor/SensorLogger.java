@@ -0,0 +1,374 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs sensor samples at full rate to binary files.
+ * <p>
+ * Samples are passed to {@link #onSensorChanged(int, long, float[])}, which
+ * only copies them into a {@link SensorRingBuffer} and never blocks, so it
+ * can be called directly from a sensor listener. A background thread drains
+ * the buffer every {@link #DRAIN_INTERVAL} milliseconds and appends the
+ * samples to the log file.
+ * <p>
+ * Each logger writes one file, named after the time it was created. The
+ * file starts with a header of {@link #MAGIC} (4 bytes), a format version
+ * (2 bytes), the wall clock time in milliseconds since the epoch and the
+ * sensor timestamp in nanoseconds at that time (8 bytes each), followed by
+ * samples as written by {@link SensorRingBuffer#drainTo(java.io.DataOutput)}.
+ * All values are big-endian. The oldest files are deleted so that there are
+ * never more than {@link #MAX_FILES}.
+ * <p>
+ * This class does not depend on any Android APIs. I/O errors are not
+ * logged but can be retrieved through {@link #getLastError()}.
+ */
+public class SensorLogger {
+	/** Interval at which the ring buffer is drained, in milliseconds. */
+	public static final int DRAIN_INTERVAL = 250;
+
+	/** Maximum number of log files kept. */
+	public static final int MAX_FILES = 16;
+
+	/** Capacity of the ring buffer, in samples (about 10 seconds of four sensors at 400 Hz). */
+	static final int BUFFER_CAPACITY = 16384;
+
+	/** Magic number at the start of each file, "SSSL". */
+	public static final int MAGIC = 0x5353534C;
+
+	/** Version of the file format. */
+	public static final int VERSION = 1;
+
+	public static final String FILE_PREFIX = "sensors-";
+	public static final String FILE_SUFFIX = ".bin";
+
+	private final File dir;
+	private final long wallTime;
+	private final long sensorTime;
+	private final SensorRingBuffer buffer;
+	private final ScheduledExecutorService executor;
+	private volatile boolean isClosed = false;
+
+	/* Writer state, only accessed by the background thread */
+	private File file = null;
+	private DataOutputStream out = null;
+	private CountingOutputStream counter = null;
+
+	/* Statistics */
+	private volatile long samplesWritten = 0;
+	private volatile long bytesWritten = 0;
+	private volatile IOException lastError = null;
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain(false);
+		}
+	};
+
+	/**
+	 * Creates a new logger and starts the background writer.
+	 *
+	 * @param dir The directory for log files
+	 * @param wallTime The current wall clock time, in milliseconds since the epoch
+	 * @param sensorTime The current time on the clock used for sensor timestamps, in nanoseconds
+	 */
+	public SensorLogger(File dir, long wallTime, long sensorTime) {
+		this(dir, wallTime, sensorTime, BUFFER_CAPACITY);
+	}
+
+	/**
+	 * Creates a new logger and starts the background writer.
+	 *
+	 * @param dir The directory for log files
+	 * @param wallTime The current wall clock time, in milliseconds since the epoch
+	 * @param sensorTime The current time on the clock used for sensor timestamps, in nanoseconds
+	 * @param capacity The capacity of the ring buffer, in samples
+	 */
+	public SensorLogger(File dir, long wallTime, long sensorTime, int capacity) {
+		this.dir = dir;
+		this.wallTime = wallTime;
+		this.sensorTime = sensorTime;
+		buffer = new SensorRingBuffer(capacity);
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(drainTask, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a sample. This method never blocks.
+	 * <p>
+	 * All calls must come from the same thread.
+	 *
+	 * @param type The sensor type
+	 * @param timestamp The timestamp of the sample, in nanoseconds
+	 * @param values The sensor values
+	 */
+	public void onSensorChanged(int type, long timestamp, float[] values) {
+		if (!isClosed)
+			buffer.offer(type, timestamp, values);
+	}
+
+	/**
+	 * Writes all pending samples, closes the file and stops the background writer.
+	 * <p>
+	 * Writing happens in the background; this method does not block.
+	 */
+	public void close() {
+		if (isClosed)
+			return;
+		isClosed = true;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				drain(true);
+			}
+		});
+		executor.shutdown();
+	}
+
+	/**
+	 * Blocks until the background writer has finished after {@link #close()}.
+	 *
+	 * @return true if the writer has finished, false if the timeout elapsed
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Returns the log file, or null if it has not been created yet.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of samples received.
+	 */
+	public long getSampleCount() {
+		return buffer.getOffered();
+	}
+
+	/**
+	 * Returns the number of samples dropped because the background writer could not keep up.
+	 */
+	public long getDroppedCount() {
+		return buffer.getDropped();
+	}
+
+	/**
+	 * Returns the number of samples written to the log file.
+	 */
+	public long getSamplesWritten() {
+		return samplesWritten;
+	}
+
+	/**
+	 * Returns the number of bytes written to the log file.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the last I/O error, or null if no error has occurred.
+	 */
+	public IOException getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Drains the ring buffer into the log file. Runs on the background thread.
+	 *
+	 * @param close Whether to close the log file afterwards
+	 */
+	private void drain(boolean close) {
+		try {
+			if ((out == null) && (buffer.getPending() > 0) && (lastError == null))
+				openFile();
+			if (out != null) {
+				samplesWritten += buffer.drainTo(out);
+				out.flush();
+				bytesWritten = counter.count;
+			}
+			if (close)
+				closeFile();
+		} catch (IOException e) {
+			lastError = e;
+			try {
+				closeFile();
+			} catch (IOException e2) {
+				// nothing we can do
+			}
+		}
+	}
+
+	private void openFile() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir.getPath());
+		deleteOldFiles();
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		file = new File(dir, FILE_PREFIX + format.format(new Date(wallTime)) + FILE_SUFFIX);
+		counter = new CountingOutputStream(new FileOutputStream(file));
+		out = new DataOutputStream(new BufferedOutputStream(counter, 65536));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeLong(wallTime);
+		out.writeLong(sensorTime);
+	}
+
+	private void closeFile() throws IOException {
+		if (out == null)
+			return;
+		try {
+			out.flush();
+			bytesWritten = counter.count;
+		} finally {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Deletes the oldest log files so that there is room for one more.
+	 */
+	private void deleteOldFiles() {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+			}
+		});
+		if ((files == null) || (files.length < MAX_FILES))
+			return;
+		Arrays.sort(files);
+		for (int i = 0; i <= files.length - MAX_FILES; i++)
+			files[i].delete();
+	}
+
+	/**
+	 * Counts the bytes written to the file.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Reads samples from a log file written by {@link SensorLogger}.
+	 */
+	public static class Reader {
+		private final DataInputStream in;
+		private final long wallTime;
+		private final long sensorTime;
+		private final float[] values = new float[SensorRingBuffer.MAX_VALUES];
+		private int type;
+		private int count;
+		private long timestamp;
+
+		/**
+		 * Opens a log file and reads its header.
+		 *
+		 * @throws IOException if the stream is not a sensor log
+		 */
+		public Reader(InputStream in) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(in, 65536));
+			if ((this.in.readInt() != MAGIC) || (this.in.readUnsignedShort() != VERSION))
+				throw new IOException("Not a sensor log");
+			wallTime = this.in.readLong();
+			sensorTime = this.in.readLong();
+		}
+
+		/**
+		 * Reads the next sample.
+		 *
+		 * @return false at the end of the file
+		 * @throws IOException if the file is truncated in the middle of a sample or cannot be read
+		 */
+		public boolean next() throws IOException {
+			int t = in.read();
+			if (t < 0)
+				return false;
+			try {
+				type = t;
+				count = in.readUnsignedByte();
+				if (count > SensorRingBuffer.MAX_VALUES)
+					throw new IOException("Invalid sample");
+				timestamp = in.readLong();
+				for (int i = 0; i < count; i++)
+					values[i] = in.readFloat();
+			} catch (EOFException e) {
+				throw new IOException("Truncated sample");
+			}
+			return true;
+		}
+
+		/** Returns the wall clock time from the file header, in milliseconds since the epoch. */
+		public long getWallTime() {
+			return wallTime;
+		}
+
+		/** Returns the sensor timestamp corresponding to {@link #getWallTime()}, in nanoseconds. */
+		public long getSensorTime() {
+			return sensorTime;
+		}
+
+		/** Returns the sensor type of the current sample. */
+		public int getType() {
+			return type;
+		}
+
+		/** Returns the timestamp of the current sample, in nanoseconds. */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/** Returns the number of values of the current sample. */
+		public int getValueCount() {
+			return count;
+		}
+
+		/** Returns a value of the current sample. */
+		public float getValue(int index) {
+			return values[index];
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
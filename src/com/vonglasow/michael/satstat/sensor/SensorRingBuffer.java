@@ -0,0 +1,130 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free ring buffer for sensor samples with one producer and one consumer.
+ * <p>
+ * Each sample consists of a sensor type, a timestamp and up to
+ * {@link #MAX_VALUES} values. Samples are stored in preallocated primitive
+ * arrays, one slot per sample, so offering a sample does not allocate any
+ * objects. The producer and consumer positions increase monotonically and
+ * are published through {@link AtomicLong}s, so neither side ever blocks or
+ * takes a lock. If the consumer falls behind and the buffer is full, new
+ * samples are dropped rather than blocking the producer.
+ * <p>
+ * {@link #offer(int, long, float[])} must be called on the producer thread,
+ * {@link #drainTo(DataOutput)} on the consumer thread.
+ */
+public class SensorRingBuffer {
+	/** Maximum number of values per sample; additional values are discarded. */
+	public static final int MAX_VALUES = 6;
+
+	private final int mask;
+	private final byte[] types;
+	private final byte[] counts;
+	private final long[] timestamps;
+	private final float[] values;
+
+	/** Position after the last sample written, published by the producer. */
+	private final AtomicLong head = new AtomicLong();
+
+	/** Position of the first sample not yet consumed, published by the consumer. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/* Producer state */
+	private volatile long offered = 0;
+	private volatile long dropped = 0;
+
+	/**
+	 * Creates a new ring buffer.
+	 *
+	 * @param capacity The capacity in samples, rounded up to a power of two
+	 */
+	public SensorRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		mask = size - 1;
+		types = new byte[size];
+		counts = new byte[size];
+		timestamps = new long[size];
+		values = new float[size * MAX_VALUES];
+	}
+
+	/**
+	 * Adds a sample.
+	 *
+	 * @param type The sensor type, between 0 and 127
+	 * @param timestamp The timestamp of the sample
+	 * @param v The values of the sample
+	 * @return true if the sample was added, false if the buffer is full
+	 */
+	public boolean offer(int type, long timestamp, float[] v) {
+		offered++;
+		long h = head.get();
+		if (h - tail.get() > mask) {
+			dropped++;
+			return false;
+		}
+		int slot = (int) h & mask;
+		int count = Math.min(v.length, MAX_VALUES);
+		types[slot] = (byte) type;
+		counts[slot] = (byte) count;
+		timestamps[slot] = timestamp;
+		System.arraycopy(v, 0, values, slot * MAX_VALUES, count);
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	/**
+	 * Writes all pending samples and removes them from the buffer.
+	 * <p>
+	 * Each sample is written as its type (1 byte), number of values (1 byte),
+	 * timestamp (8 bytes) and values (4 bytes each).
+	 *
+	 * @return The number of samples written
+	 */
+	public int drainTo(DataOutput out) throws IOException {
+		long t = tail.get();
+		long h = head.get();
+		int n = 0;
+		while (t < h) {
+			int slot = (int) t & mask;
+			int count = counts[slot];
+			out.writeByte(types[slot]);
+			out.writeByte(count);
+			out.writeLong(timestamps[slot]);
+			for (int i = 0; i < count; i++)
+				out.writeFloat(values[slot * MAX_VALUES + i]);
+			t++;
+			n++;
+			// release slots in batches, so the producer sees free space early on large backlogs
+			if ((n & 0xFF) == 0)
+				tail.lazySet(t);
+		}
+		tail.lazySet(t);
+		return n;
+	}
+
+	/**
+	 * Returns the number of samples waiting to be consumed.
+	 */
+	public long getPending() {
+		return head.get() - tail.get();
+	}
+
+	/**
+	 * Returns the number of samples offered, including dropped ones.
+	 */
+	public long getOffered() {
+		return offered;
+	}
+
+	/**
+	 * Returns the number of samples dropped because the buffer was full.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,411 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vonglasow.michael.satstat.util.Histogram;
+import com.vonglasow.michael.satstat.util.RealFft;
+
+/**
+ * Computes the vibration spectrum of accelerometer data over a sliding window.
+ * <p>
+ * Samples are passed to {@link #onSensorChanged(long, float[])}, which only
+ * stores the magnitude of the acceleration in a ring buffer and never
+ * blocks, so it can be called directly from a sensor listener. Using the
+ * magnitude makes the spectrum independent of how the device is held.
+ * <p>
+ * A background thread checks the buffer every {@link #POLL_INTERVAL}
+ * milliseconds. Each time another {@code hop} samples have arrived, it
+ * analyzes the last {@code windowSize} samples: the mean (mostly gravity) is
+ * subtracted, a Hann window is applied and the spectrum is computed with a
+ * {@link RealFft}. If the thread has fallen behind by more than one hop, only
+ * the most recent window is analyzed and the others are counted as skipped.
+ * All buffers are allocated when the analyzer is created.
+ * <p>
+ * The result of each analysis is a {@link Spectrum}: amplitudes per
+ * frequency bin, scaled so that a sine wave of amplitude A shows a peak of
+ * height A, the dominant frequency, the total RMS of the vibration and the
+ * RMS within a number of frequency bands. The sample rate is derived from
+ * the sample timestamps. The latest result can be copied with
+ * {@link #getSpectrum(Spectrum)} from any thread.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class SpectrumAnalyzer {
+	/** Interval at which the background thread checks for new samples, in milliseconds. */
+	public static final int POLL_INTERVAL = 20;
+
+	/** Default window size, about 0.64 seconds at 400 Hz. */
+	public static final int DEFAULT_WINDOW_SIZE = 256;
+
+	/** Default number of samples between two analyses. */
+	public static final int DEFAULT_HOP = 64;
+
+	/** Default frequency bands, as band edges in Hz. */
+	public static final float[] DEFAULT_BANDS = {1, 10, 30, 100, 200};
+
+	private final int windowSize;
+	private final int hop;
+	private final float[] bandEdges;
+	private final RealFft fft;
+	private final float[] window;
+	/** Sum of the window coefficients */
+	private final float windowSum;
+	/** Sum of the squares of the window coefficients */
+	private final float windowPowerSum;
+
+	/* Ring buffer, written by the producer and read by the background thread */
+	private final int mask;
+	private final float[] samples;
+	private final long[] timestamps;
+	/** Position after the last sample written, published by the producer. */
+	private final AtomicLong head = new AtomicLong();
+
+	private final ScheduledExecutorService executor;
+	private volatile boolean isClosed = false;
+
+	/* Analysis state, only accessed by the background thread */
+	private long lastEnd = 0;
+	private final float[] frame;
+	private final float[] re;
+	private final float[] im;
+	private final Spectrum current;
+	private final Histogram analysisTimes = new Histogram(1000000, 7);
+
+	/** The latest result, guarded by itself */
+	private final Spectrum published;
+
+	/* Statistics */
+	private volatile long windowsAnalyzed = 0;
+	private volatile long windowsSkipped = 0;
+
+	private final Runnable analyzeTask = new Runnable() {
+		@Override
+		public void run() {
+			analyze();
+		}
+	};
+
+	/**
+	 * Creates a new analyzer with the default window size, hop and bands, and starts the background thread.
+	 */
+	public SpectrumAnalyzer() {
+		this(DEFAULT_WINDOW_SIZE, DEFAULT_HOP, DEFAULT_BANDS);
+	}
+
+	/**
+	 * Creates a new analyzer and starts the background thread.
+	 *
+	 * @param windowSize The number of samples analyzed at a time, a power of two of at least 4
+	 * @param hop The number of samples between two analyses, between 1 and {@code windowSize}
+	 * @param bandEdges The edges of the frequency bands in Hz, in ascending order; n + 1 edges define n bands
+	 */
+	public SpectrumAnalyzer(int windowSize, int hop, float[] bandEdges) {
+		if ((hop < 1) || (hop > windowSize))
+			throw new IllegalArgumentException("Hop must be between 1 and the window size");
+		if (bandEdges.length < 2)
+			throw new IllegalArgumentException("At least one band is required");
+		this.windowSize = windowSize;
+		this.hop = hop;
+		this.bandEdges = bandEdges.clone();
+		fft = new RealFft(windowSize);
+
+		// periodic Hann window
+		window = new float[windowSize];
+		float sum = 0;
+		float powerSum = 0;
+		for (int i = 0; i < windowSize; i++) {
+			window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / windowSize));
+			sum += window[i];
+			powerSum += window[i] * window[i];
+		}
+		windowSum = sum;
+		windowPowerSum = powerSum;
+
+		// room for four windows, so the producer cannot overtake a window being read
+		int capacity = Integer.highestOneBit(windowSize * 4 - 1) << 1;
+		mask = capacity - 1;
+		samples = new float[capacity];
+		timestamps = new long[capacity];
+
+		frame = new float[windowSize];
+		re = new float[fft.getBinCount()];
+		im = new float[fft.getBinCount()];
+		current = createSpectrum();
+		published = createSpectrum();
+
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(analyzeTask, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds an accelerometer sample. This method never blocks.
+	 * <p>
+	 * All calls must come from the same thread.
+	 *
+	 * @param timestamp The timestamp of the sample, in nanoseconds
+	 * @param values The acceleration along the X, Y and Z axes
+	 */
+	public void onSensorChanged(long timestamp, float[] values) {
+		if (isClosed)
+			return;
+		long h = head.get();
+		int slot = (int) h & mask;
+		samples[slot] = (float) Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+		timestamps[slot] = timestamp;
+		head.lazySet(h + 1);
+	}
+
+	/**
+	 * Creates a spectrum whose size matches this analyzer, for use with {@link #getSpectrum(Spectrum)}.
+	 */
+	public Spectrum createSpectrum() {
+		return new Spectrum(fft.getBinCount(), bandEdges.length - 1);
+	}
+
+	/**
+	 * Copies the latest result, unless it is older than or the same as the one already held by {@code dest}.
+	 *
+	 * @param dest A spectrum created by {@link #createSpectrum()}
+	 * @return Whether {@code dest} was updated
+	 */
+	public boolean getSpectrum(Spectrum dest) {
+		synchronized (published) {
+			if (dest.sequence >= published.sequence)
+				return false;
+			dest.copyFrom(published);
+			return true;
+		}
+	}
+
+	/**
+	 * Stops the background thread. Results obtained so far remain available.
+	 */
+	public void close() {
+		if (isClosed)
+			return;
+		isClosed = true;
+		executor.shutdown();
+	}
+
+	/**
+	 * Blocks until the background thread has finished after {@link #close()}.
+	 *
+	 * @return true if the thread has finished, false if the timeout elapsed
+	 */
+	public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Returns the number of samples received.
+	 */
+	public long getSampleCount() {
+		return head.get();
+	}
+
+	/**
+	 * Returns the number of windows analyzed.
+	 */
+	public long getWindowsAnalyzed() {
+		return windowsAnalyzed;
+	}
+
+	/**
+	 * Returns the number of windows skipped because the background thread fell behind.
+	 */
+	public long getWindowsSkipped() {
+		return windowsSkipped;
+	}
+
+	/**
+	 * Returns the time taken by each analysis, in microseconds.
+	 * <p>
+	 * The histogram is updated by the background thread and may only be read
+	 * after {@link #awaitClose(long, TimeUnit)} has returned true.
+	 */
+	public Histogram getAnalysisTimes() {
+		return analysisTimes;
+	}
+
+	/**
+	 * Analyzes the most recent complete window, if there is a new one. Runs on the background thread.
+	 */
+	private void analyze() {
+		long h = head.get();
+		if ((h < windowSize) || (h - lastEnd < hop))
+			return;
+		long hops = (h - lastEnd) / hop;
+		long end = lastEnd + hops * hop;
+		if (lastEnd >= windowSize)
+			windowsSkipped += hops - 1;
+		lastEnd = end;
+
+		long startNanos = System.nanoTime();
+		long start = end - windowSize;
+		float mean = 0;
+		for (int i = 0; i < windowSize; i++) {
+			frame[i] = samples[(int) (start + i) & mask];
+			mean += frame[i];
+		}
+		long firstTimestamp = timestamps[(int) start & mask];
+		long lastTimestamp = timestamps[(int) (end - 1) & mask];
+		// discard the window if the producer has overwritten part of it in the meantime
+		if (head.get() - start >= samples.length)
+			return;
+		if (lastTimestamp <= firstTimestamp)
+			return;
+		float sampleRate = (float) ((windowSize - 1) * 1e9 / (lastTimestamp - firstTimestamp));
+
+		mean /= windowSize;
+		for (int i = 0; i < windowSize; i++)
+			frame[i] = (frame[i] - mean) * window[i];
+		fft.forward(frame, re, im);
+
+		int bins = fft.getBinCount();
+		float binWidth = sampleRate / windowSize;
+		float ampScale = 2 / windowSum;
+		float powerScale = 2 / (windowSize * windowPowerSum);
+		float[] amplitudes = current.amplitudes;
+		float[] bandPowers = current.bandRms;
+		for (int b = 0; b < bandPowers.length; b++)
+			bandPowers[b] = 0;
+		float totalPower = 0;
+		float maxAmplitude = 0;
+		int peak = 0;
+		for (int k = 0; k < bins; k++) {
+			float p = re[k] * re[k] + im[k] * im[k];
+			// DC and Nyquist bins have no mirror image in the one-sided spectrum
+			float weight = ((k == 0) || (k == bins - 1)) ? 0.5f : 1;
+			amplitudes[k] = (float) Math.sqrt(p) * ampScale * weight;
+			if (k == 0)
+				continue;
+			float power = p * powerScale * weight;
+			totalPower += power;
+			float f = k * binWidth;
+			for (int b = 0; b < bandPowers.length; b++)
+				if ((f >= bandEdges[b]) && (f < bandEdges[b + 1]))
+					bandPowers[b] += power;
+			if (amplitudes[k] > maxAmplitude) {
+				maxAmplitude = amplitudes[k];
+				peak = k;
+			}
+		}
+
+		// refine the peak by fitting a parabola through it and its neighbors
+		float peakPos = peak;
+		if ((peak > 1) && (peak < bins - 1)) {
+			float a = amplitudes[peak - 1];
+			float b = amplitudes[peak];
+			float c = amplitudes[peak + 1];
+			float d = a - 2 * b + c;
+			if (d < 0)
+				peakPos += 0.5f * (a - c) / d;
+		}
+
+		for (int b = 0; b < bandPowers.length; b++)
+			bandPowers[b] = (float) Math.sqrt(bandPowers[b]);
+		current.timestamp = lastTimestamp;
+		current.sampleRate = sampleRate;
+		current.binWidth = binWidth;
+		current.rms = (float) Math.sqrt(totalPower);
+		current.maxAmplitude = maxAmplitude;
+		current.dominantFrequency = (peak > 0) ? peakPos * binWidth : 0;
+		current.sequence++;
+		synchronized (published) {
+			published.copyFrom(current);
+		}
+
+		windowsAnalyzed++;
+		analysisTimes.record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * The result of analyzing one window.
+	 */
+	public static class Spectrum {
+		private final float[] amplitudes;
+		private final float[] bandRms;
+		private long sequence = 0;
+		private long timestamp;
+		private float sampleRate;
+		private float binWidth;
+		private float rms;
+		private float maxAmplitude;
+		private float dominantFrequency;
+
+		private Spectrum(int binCount, int bandCount) {
+			amplitudes = new float[binCount];
+			bandRms = new float[bandCount];
+		}
+
+		private void copyFrom(Spectrum other) {
+			System.arraycopy(other.amplitudes, 0, amplitudes, 0, amplitudes.length);
+			System.arraycopy(other.bandRms, 0, bandRms, 0, bandRms.length);
+			sequence = other.sequence;
+			timestamp = other.timestamp;
+			sampleRate = other.sampleRate;
+			binWidth = other.binWidth;
+			rms = other.rms;
+			maxAmplitude = other.maxAmplitude;
+			dominantFrequency = other.dominantFrequency;
+		}
+
+		/** Whether this spectrum holds a result. */
+		public boolean isValid() {
+			return sequence > 0;
+		}
+
+		/** Returns the timestamp of the last sample in the window, in nanoseconds. */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/** Returns the sample rate, in Hz. */
+		public float getSampleRate() {
+			return sampleRate;
+		}
+
+		/** Returns the number of frequency bins. */
+		public int getBinCount() {
+			return amplitudes.length;
+		}
+
+		/** Returns the center frequency of a bin, in Hz. */
+		public float getFrequency(int bin) {
+			return bin * binWidth;
+		}
+
+		/** Returns the amplitude in a bin, in the unit of the input (m/s²). */
+		public float getAmplitude(int bin) {
+			return amplitudes[bin];
+		}
+
+		/** Returns the highest amplitude of all bins except the DC bin. */
+		public float getMaxAmplitude() {
+			return maxAmplitude;
+		}
+
+		/** Returns the frequency with the highest amplitude, in Hz, or 0 if there is no vibration at all. */
+		public float getDominantFrequency() {
+			return dominantFrequency;
+		}
+
+		/** Returns the RMS of the vibration, excluding the mean. */
+		public float getRms() {
+			return rms;
+		}
+
+		/** Returns the number of frequency bands. */
+		public int getBandCount() {
+			return bandRms.length;
+		}
+
+		/** Returns the RMS of the vibration within a frequency band. */
+		public float getBandRms(int band) {
+			return bandRms[band];
+		}
+	}
+}
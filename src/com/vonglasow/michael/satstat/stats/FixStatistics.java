@@ -0,0 +1,373 @@
+package com.vonglasow.michael.satstat.stats;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Locale;
+
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.data.SatelliteModel;
+import com.vonglasow.michael.satstat.track.TrackFormat;
+import com.vonglasow.michael.satstat.util.Histogram;
+
+/**
+ * Collects statistics on time to first fix (TTFF) and fix quality.
+ * <p>
+ * Each TTFF reported by the GPS is classified as a hot, warm or cold start,
+ * based on the time since the previous GPS fix, and recorded along with the
+ * time since the last AGPS data injection. In addition, signal-to-noise
+ * ratios are sampled per constellation, and the accuracy of fixes and the
+ * number of satellites used are recorded per location provider.
+ * <p>
+ * The GPS does not report how much assistance data it had at the start of a
+ * session, so the start type is an estimate: a start is considered hot if
+ * the previous fix is less than {@link #HOT_MAX_AGE} old (ephemeris data is
+ * usually still valid then), warm if it is less than {@link #WARM_MAX_AGE}
+ * old, and cold otherwise.
+ * <p>
+ * All data is kept in {@link Histogram}s with a fixed layout, so memory and
+ * storage requirements do not grow over time. Statistics from multiple
+ * sessions or devices can be merged, and the serialized form contains only
+ * non-empty buckets. Instances are not thread-safe.
+ */
+public class FixStatistics {
+	public static final int START_HOT = 0;
+	public static final int START_WARM = 1;
+	public static final int START_COLD = 2;
+	public static final int START_COUNT = 3;
+
+	private static final String[] START_NAMES = {"hot", "warm", "cold"};
+
+	/** Maximum time since the previous fix for a hot start (ms). */
+	public static final long HOT_MAX_AGE = 4 * 3600 * 1000L;
+
+	/** Maximum time since the previous fix for a warm start (ms). */
+	public static final long WARM_MAX_AGE = 7 * 24 * 3600 * 1000L;
+
+	/** Upper limits of AGPS data age bands (ms); the last band holds everything older, or no AGPS data at all. */
+	private static final long[] AGPS_AGE_LIMITS = {3600 * 1000L, 4 * 3600 * 1000L, 24 * 3600 * 1000L, 7 * 24 * 3600 * 1000L};
+
+	private static final String[] AGPS_AGE_NAMES = {"<1h", "<4h", "<24h", "<7d", "older"};
+
+	/** Number of AGPS data age bands. */
+	public static final int AGPS_AGE_COUNT = AGPS_AGE_LIMITS.length + 1;
+
+	/** Minimum interval between two SNR samples (ms). */
+	public static final long SNR_SAMPLE_INTERVAL = 1000;
+
+	/** Minimum gap between two GPS fixes (ms) for them to be considered separate sessions. */
+	private static final long SESSION_GAP = 30000;
+
+	private static final int MAGIC = 0x53535453;
+	private static final int VERSION = 1;
+
+	/* Histogram layouts */
+	private static final long MAX_TTFF = 30 * 60 * 1000L;
+	private static final int TTFF_PRECISION = 7;
+	private static final long MAX_AGPS_AGE = 365 * 24 * 3600L;
+	private static final int AGPS_AGE_PRECISION = 6;
+	private static final long MAX_SNR = 1000;
+	private static final int SNR_PRECISION = 8;
+	private static final long MAX_ACCURACY = 1000000;
+	private static final int ACCURACY_PRECISION = 7;
+	private static final long MAX_SATS = GpsSnapshot.MAX_SATELLITES;
+	private static final int SATS_PRECISION = 8;
+
+	/** TTFF in ms, by start type. */
+	private final Histogram[] ttffByStart = new Histogram[START_COUNT];
+
+	/** TTFF in ms, by age of AGPS data. */
+	private final Histogram[] ttffByAgpsAge = new Histogram[AGPS_AGE_COUNT];
+
+	/** Age of AGPS data at the start of a session, in seconds. */
+	private final Histogram agpsAge = new Histogram(MAX_AGPS_AGE, AGPS_AGE_PRECISION);
+
+	/** SNR in tenths of dB, by constellation. */
+	private final Histogram[] snr = new Histogram[SatelliteModel.CONSTELLATION_COUNT];
+
+	/** Accuracy in decimeters, by provider. */
+	private final Histogram[] accuracy = new Histogram[TrackFormat.PROVIDER_COUNT];
+
+	/** Satellites used per GPS fix. */
+	private final Histogram satsUsed = new Histogram(MAX_SATS, SATS_PRECISION);
+
+	/* Persistent state */
+	private long lastFixTime = 0;
+	private long prevSessionFixTime = 0;
+	private int lastTtff = 0;
+
+	/* Transient state */
+	private long lastSnrSample = 0;
+	private final long[] lastLocationTime = new long[TrackFormat.PROVIDER_COUNT];
+
+	public FixStatistics() {
+		for (int i = 0; i < START_COUNT; i++)
+			ttffByStart[i] = new Histogram(MAX_TTFF, TTFF_PRECISION);
+		for (int i = 0; i < AGPS_AGE_COUNT; i++)
+			ttffByAgpsAge[i] = new Histogram(MAX_TTFF, TTFF_PRECISION);
+		for (int i = 0; i < SatelliteModel.CONSTELLATION_COUNT; i++)
+			snr[i] = new Histogram(MAX_SNR, SNR_PRECISION);
+		for (int i = 0; i < TrackFormat.PROVIDER_COUNT; i++)
+			accuracy[i] = new Histogram(MAX_ACCURACY, ACCURACY_PRECISION);
+	}
+
+	/**
+	 * Processes a GPS status snapshot.
+	 * <p>
+	 * Satellite SNRs are sampled at most once every {@link #SNR_SAMPLE_INTERVAL}
+	 * ms, so snapshots can be passed in as often as they are received. A TTFF
+	 * is recorded whenever the snapshot reports one different from the last.
+	 *
+	 * @param snapshot The snapshot
+	 * @param now The current time in milliseconds since the epoch
+	 * @param agpsTime The time at which AGPS data was last injected, in milliseconds since the epoch,
+	 * or 0 if unknown
+	 * @return true if a new TTFF was recorded
+	 */
+	public boolean onGpsSnapshot(GpsSnapshot snapshot, long now, long agpsTime) {
+		if ((now < lastSnrSample) || (now - lastSnrSample >= SNR_SAMPLE_INTERVAL)) {
+			lastSnrSample = now;
+			for (int i = 0; i < snapshot.getCount(); i++) {
+				float s = snapshot.getSnr(i);
+				if (s > 0)
+					snr[SatelliteModel.getConstellation(snapshot.getPrn(i))].record(Math.round(s * 10));
+			}
+		}
+
+		int ttff = snapshot.getTimeToFirstFix();
+		if ((ttff <= 0) || (ttff == lastTtff))
+			return false;
+		lastTtff = ttff;
+		long start = now - ttff;
+		// if a fix from this session has already been processed, use the one from the previous session
+		long previousFix = (lastFixTime < start) ? lastFixTime : prevSessionFixTime;
+		ttffByStart[getStartType(start, previousFix)].record(ttff);
+		int band = AGPS_AGE_COUNT - 1;
+		if ((agpsTime > 0) && (agpsTime <= start)) {
+			long age = start - agpsTime;
+			agpsAge.record(age / 1000);
+			for (band = 0; band < AGPS_AGE_LIMITS.length; band++)
+				if (age < AGPS_AGE_LIMITS[band])
+					break;
+		}
+		ttffByAgpsAge[band].record(ttff);
+		return true;
+	}
+
+	/**
+	 * Processes a location fix.
+	 * <p>
+	 * Fixes with a time not later than the last fix from the same provider are
+	 * ignored, so the same fix can be passed in from multiple listeners.
+	 *
+	 * @param provider The provider ID, as returned by {@link TrackFormat#getProviderId(String)}
+	 * @param time The time of the fix in milliseconds since the epoch
+	 * @param accuracy The accuracy in meters, or {@code NaN} if unknown
+	 * @param sats The number of satellites used in the fix, or -1 if unknown
+	 */
+	public void onLocation(int provider, long time, float accuracy, int sats) {
+		if ((provider < 0) || (provider >= TrackFormat.PROVIDER_COUNT) || (time <= lastLocationTime[provider]))
+			return;
+		lastLocationTime[provider] = time;
+		if (!Float.isNaN(accuracy))
+			this.accuracy[provider].record(Math.round(accuracy * 10));
+		if (provider == TrackFormat.PROVIDER_GPS) {
+			if (sats >= 0)
+				satsUsed.record(sats);
+			if (time - lastFixTime > SESSION_GAP)
+				prevSessionFixTime = lastFixTime;
+			lastFixTime = time;
+		}
+	}
+
+	/**
+	 * Adds all data from another instance to this one.
+	 * <p>
+	 * The state used to detect sessions and classify starts is taken from the more recent instance.
+	 */
+	public void merge(FixStatistics other) {
+		for (int i = 0; i < START_COUNT; i++)
+			ttffByStart[i].merge(other.ttffByStart[i]);
+		for (int i = 0; i < AGPS_AGE_COUNT; i++)
+			ttffByAgpsAge[i].merge(other.ttffByAgpsAge[i]);
+		agpsAge.merge(other.agpsAge);
+		for (int i = 0; i < SatelliteModel.CONSTELLATION_COUNT; i++)
+			snr[i].merge(other.snr[i]);
+		for (int i = 0; i < TrackFormat.PROVIDER_COUNT; i++)
+			accuracy[i].merge(other.accuracy[i]);
+		satsUsed.merge(other.satsUsed);
+		if (other.lastFixTime > lastFixTime) {
+			lastFixTime = other.lastFixTime;
+			prevSessionFixTime = other.prevSessionFixTime;
+			lastTtff = other.lastTtff;
+		}
+	}
+
+	/**
+	 * Removes all data.
+	 */
+	public void clear() {
+		for (Histogram h : getHistograms())
+			h.clear();
+	}
+
+	/**
+	 * Returns the TTFF histogram (in ms) for a start type.
+	 */
+	public Histogram getTtffHistogram(int startType) {
+		return ttffByStart[startType];
+	}
+
+	/**
+	 * Returns the TTFF histogram (in ms) for an AGPS data age band.
+	 */
+	public Histogram getTtffByAgpsAgeHistogram(int band) {
+		return ttffByAgpsAge[band];
+	}
+
+	/**
+	 * Returns the histogram of AGPS data age at session start, in seconds.
+	 */
+	public Histogram getAgpsAgeHistogram() {
+		return agpsAge;
+	}
+
+	/**
+	 * Returns the SNR histogram (in tenths of dB) for a constellation, see {@link SatelliteModel}.
+	 */
+	public Histogram getSnrHistogram(int constellation) {
+		return snr[constellation];
+	}
+
+	/**
+	 * Returns the accuracy histogram (in decimeters) for a provider.
+	 */
+	public Histogram getAccuracyHistogram(int provider) {
+		return accuracy[provider];
+	}
+
+	/**
+	 * Returns the histogram of satellites used per GPS fix.
+	 */
+	public Histogram getSatsUsedHistogram() {
+		return satsUsed;
+	}
+
+	/**
+	 * Writes all data.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(lastFixTime);
+		out.writeLong(prevSessionFixTime);
+		out.writeInt(lastTtff);
+		for (Histogram h : getHistograms())
+			h.writeTo(out);
+	}
+
+	/**
+	 * Reads data written by {@link #writeTo(DataOutput)} into a new instance.
+	 *
+	 * @throws IOException if the data cannot be read or is not in the expected format
+	 */
+	public static FixStatistics readFrom(DataInput in) throws IOException {
+		if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+			throw new IOException("Not a statistics file or unsupported version");
+		FixStatistics result = new FixStatistics();
+		result.lastFixTime = in.readLong();
+		result.prevSessionFixTime = in.readLong();
+		result.lastTtff = in.readInt();
+		for (Histogram h : result.getHistograms())
+			h.mergeFrom(in);
+		return result;
+	}
+
+	/**
+	 * Appends a human-readable summary with counts and percentiles.
+	 */
+	public void appendReport(StringBuilder out) {
+		for (int i = 0; i < START_COUNT; i++)
+			appendSummary(out, "TTFF " + START_NAMES[i], ttffByStart[i], 1000, "s");
+		for (int i = 0; i < AGPS_AGE_COUNT; i++)
+			appendSummary(out, "TTFF AGPS " + AGPS_AGE_NAMES[i], ttffByAgpsAge[i], 1000, "s");
+		appendSummary(out, "AGPS age", agpsAge, 3600, "h");
+		for (int i = 0; i < SatelliteModel.CONSTELLATION_COUNT; i++)
+			appendSummary(out, "SNR " + SatelliteModel.getConstellationName(i), snr[i], 10, "dB");
+		for (int i = 0; i < TrackFormat.PROVIDER_COUNT; i++)
+			appendSummary(out, "Accuracy " + TrackFormat.getProviderName(i), accuracy[i], 10, "m");
+		appendSummary(out, "Sats used", satsUsed, 1, "");
+	}
+
+	/**
+	 * Appends all non-empty buckets as CSV, one line per bucket.
+	 * <p>
+	 * Columns are the name of the histogram, the lower and upper bound of the
+	 * bucket (in the units of the histogram) and the number of values in it.
+	 */
+	public void appendCsv(StringBuilder out) {
+		out.append("histogram,lower,upper,count\n");
+		for (int i = 0; i < START_COUNT; i++)
+			appendBuckets(out, "ttff_" + START_NAMES[i] + "_ms", ttffByStart[i]);
+		for (int i = 0; i < AGPS_AGE_COUNT; i++)
+			appendBuckets(out, "ttff_agps" + AGPS_AGE_NAMES[i].replace('<', '_') + "_ms", ttffByAgpsAge[i]);
+		appendBuckets(out, "agps_age_s", agpsAge);
+		for (int i = 0; i < SatelliteModel.CONSTELLATION_COUNT; i++)
+			appendBuckets(out, "snr_" + SatelliteModel.getConstellationName(i).toLowerCase(Locale.ROOT) + "_ddb", snr[i]);
+		for (int i = 0; i < TrackFormat.PROVIDER_COUNT; i++)
+			appendBuckets(out, "accuracy_" + TrackFormat.getProviderName(i) + "_dm", accuracy[i]);
+		appendBuckets(out, "sats_used", satsUsed);
+	}
+
+	/**
+	 * Classifies a start based on the time of the previous fix.
+	 */
+	private static int getStartType(long start, long previousFix) {
+		if (previousFix <= 0)
+			return START_COLD;
+		long age = start - previousFix;
+		if (age < HOT_MAX_AGE)
+			return START_HOT;
+		else if (age < WARM_MAX_AGE)
+			return START_WARM;
+		return START_COLD;
+	}
+
+	/**
+	 * Returns all histograms, in the order in which they are serialized.
+	 */
+	private Histogram[] getHistograms() {
+		Histogram[] result = new Histogram[START_COUNT + AGPS_AGE_COUNT + 1 + SatelliteModel.CONSTELLATION_COUNT + TrackFormat.PROVIDER_COUNT + 1];
+		int n = 0;
+		for (Histogram h : ttffByStart)
+			result[n++] = h;
+		for (Histogram h : ttffByAgpsAge)
+			result[n++] = h;
+		result[n++] = agpsAge;
+		for (Histogram h : snr)
+			result[n++] = h;
+		for (Histogram h : accuracy)
+			result[n++] = h;
+		result[n++] = satsUsed;
+		return result;
+	}
+
+	private static void appendSummary(StringBuilder out, String name, Histogram h, double scale, String unit) {
+		if (h.getTotalCount() == 0)
+			return;
+		out.append(String.format(Locale.ROOT, "%-18s n=%-8d min %.1f, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f %s\n",
+				name, h.getTotalCount(), h.getMin() / scale, h.getValueAtPercentile(50) / scale,
+				h.getValueAtPercentile(90) / scale, h.getValueAtPercentile(99) / scale, h.getMax() / scale, unit));
+	}
+
+	private static void appendBuckets(StringBuilder out, String name, Histogram h) {
+		for (int i = 0; i < h.getBucketCount(); i++)
+			if (h.getBucketValueCount(i) != 0) {
+				out.append(name).append(',').append(h.getBucketLowerBound(i)).append(',');
+				long upper = h.getBucketUpperBound(i);
+				if (upper != Long.MAX_VALUE)
+					out.append(upper);
+				out.append(',').append(h.getBucketValueCount(i)).append('\n');
+			}
+	}
+}
@@ -0,0 +1,151 @@
+package com.vonglasow.michael.satstat.stats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.vonglasow.michael.satstat.SettingsActivity;
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.track.TrackFormat;
+
+/**
+ * Records {@link FixStatistics} and keeps them in a file.
+ * <p>
+ * There is one recorder per process. GPS status snapshots and location fixes
+ * are fed to it by {@link com.vonglasow.michael.satstat.MainActivity}, except
+ * during NMEA replays, and by
+ * {@link com.vonglasow.michael.satstat.PasvLocListenerService}, which
+ * receives them through the passive provider while it is running. When both
+ * are running, each snapshot and fix arrives twice; duplicates are filtered
+ * out by {@link FixStatistics}. Statistics are saved whenever a new TTFF has been
+ * recorded and when {@link #save()} is called, and accumulate across
+ * sessions. The file, {@link #FILE_NAME} in the app's external files
+ * directory, can be collected from multiple devices, read with
+ * {@link FixStatistics#readFrom(java.io.DataInput)} and combined with
+ * {@link FixStatistics#merge(FixStatistics)}.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class FixStatisticsRecorder {
+	private static final String TAG = FixStatisticsRecorder.class.getSimpleName();
+
+	/** Name of the statistics file. */
+	public static final String FILE_NAME = "fixstats.bin";
+
+	private static FixStatisticsRecorder instance = null;
+
+	private final File file;
+	private final SharedPreferences sharedPreferences;
+	private FixStatistics statistics;
+	private boolean isDirty = false;
+
+	/**
+	 * Returns the recorder instance, creating it and loading saved statistics if necessary.
+	 */
+	public static FixStatisticsRecorder getInstance(Context context) {
+		if (instance == null)
+			instance = new FixStatisticsRecorder(context.getApplicationContext());
+		return instance;
+	}
+
+	private FixStatisticsRecorder(Context context) {
+		sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+		File dir = context.getExternalFilesDir(null);
+		if (dir == null)
+			dir = context.getFilesDir();
+		file = new File(dir, FILE_NAME);
+		statistics = null;
+		if (file.exists()) {
+			InputStream in = null;
+			try {
+				in = new BufferedInputStream(new FileInputStream(file));
+				statistics = FixStatistics.readFrom(new DataInputStream(in));
+			} catch (IOException e) {
+				Log.w(TAG, "Cannot read statistics, starting over: " + e.getMessage());
+			} finally {
+				if (in != null)
+					try {
+						in.close();
+					} catch (IOException e) {
+						// nothing to do
+					}
+			}
+		}
+		if (statistics == null)
+			statistics = new FixStatistics();
+	}
+
+	/**
+	 * Returns the statistics.
+	 */
+	public FixStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Processes a GPS status snapshot.
+	 */
+	public void onGpsSnapshot(GpsSnapshot snapshot) {
+		long agpsTime = sharedPreferences.getLong(SettingsActivity.KEY_PREF_UPDATE_LAST, 0);
+		isDirty = true;
+		if (statistics.onGpsSnapshot(snapshot, System.currentTimeMillis(), agpsTime))
+			save();
+	}
+
+	/**
+	 * Processes a location fix.
+	 */
+	public void onLocationChanged(Location location) {
+		int sats = -1;
+		Bundle extras = location.getExtras();
+		if ((extras != null) && extras.containsKey("satellites"))
+			sats = extras.getInt("satellites");
+		statistics.onLocation(TrackFormat.getProviderId(location.getProvider()), location.getTime(),
+				location.hasAccuracy() ? location.getAccuracy() : Float.NaN, sats);
+		isDirty = true;
+	}
+
+	/**
+	 * Writes the statistics to the file if they have changed since they were last written.
+	 * <p>
+	 * The file is small (a few kilobytes at most), so this is done synchronously.
+	 */
+	public void save() {
+		if (!isDirty)
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(tmp));
+			statistics.writeTo(new DataOutputStream(out));
+			out.close();
+			out = null;
+			if (!tmp.renameTo(file))
+				throw new IOException("Cannot rename " + tmp.getName());
+			isDirty = false;
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write statistics: " + e.getMessage());
+		} finally {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.vonglasow.michael.satstat.track;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.vonglasow.michael.satstat.R;
+
+/**
+ * Exports all recorded track segments to a single file in the track directory.
+ * <p>
+ * The result is reported to the user in a toast.
+ */
+public class TrackExportTask extends AsyncTask<Void, Void, File> {
+	private static final String TAG = TrackExportTask.class.getSimpleName();
+
+	private final Context context;
+	private final int format;
+
+	/**
+	 * @param context The context
+	 * @param format The export format, see {@link TrackExporter}
+	 */
+	public TrackExportTask(Context context, int format) {
+		this.context = context.getApplicationContext();
+		this.format = format;
+	}
+
+	@Override
+	protected File doInBackground(Void... params) {
+		File dir = TrackRecorder.getTrackDir(context);
+		TrackExporter exporter = new TrackExporter(format);
+		File file = new File(dir, TrackFormat.getFileName(System.currentTimeMillis())
+				.replace(TrackFormat.FILE_SUFFIX, exporter.getExtension()));
+		try {
+			exporter.export(TrackExporter.listSegments(dir), file);
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot export track: " + e.getMessage());
+			return null;
+		}
+		Log.i(TAG, String.format("Exported %d fixes to %s, %.0f fixes/s",
+				exporter.getPointCount(), file.getName(), exporter.getPointsPerSecond()));
+		return file;
+	}
+
+	@Override
+	protected void onPostExecute(File result) {
+		if (result != null)
+			Toast.makeText(context, context.getString(R.string.info_export, result.getPath()), Toast.LENGTH_LONG).show();
+		else
+			Toast.makeText(context, R.string.error_write_file, Toast.LENGTH_SHORT).show();
+	}
+}
@@ -0,0 +1,378 @@
+package com.vonglasow.michael.satstat.track;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import uk.me.jstott.jcoord.LatLng;
+import uk.me.jstott.jcoord.MGRSRef;
+import uk.me.jstott.jcoord.OSRef;
+import uk.me.jstott.jcoord.UTMRef;
+
+import com.vonglasow.michael.satstat.util.CharFormatter;
+
+/**
+ * Converts recorded tracks to GPX 1.1, KML or CSV.
+ * <p>
+ * The exporter streams through the segment files with a
+ * {@link TrackReader} and formats each fix into a reusable character
+ * buffer using {@link CharFormatter}, so memory use does not depend on the
+ * size of the track and no objects are allocated per fix. The only exception
+ * are the optional grid reference columns for CSV, which are calculated with
+ * jcoord and therefore allocate a few objects per fix.
+ * <p>
+ * Each segment file becomes a track segment in GPX, a line string in KML
+ * and a group of rows in CSV.
+ */
+public class TrackExporter {
+	public static final int FORMAT_GPX = 0;
+	public static final int FORMAT_KML = 1;
+	public static final int FORMAT_CSV = 2;
+
+	/** File name extensions, indexed by format. */
+	private static final String[] EXTENSIONS = {".gpx", ".kml", ".csv"};
+
+	/** Flag for CSV UTM columns (zone, easting, northing). */
+	public static final int COLUMN_UTM = 0x01;
+
+	/** Flag for a CSV MGRS column. */
+	public static final int COLUMN_MGRS = 0x02;
+
+	/** Flag for CSV OSGB columns (easting, northing). */
+	public static final int COLUMN_OSGB = 0x04;
+
+	private static final int BUFFER_SIZE = 16384;
+
+	/** Maximum number of characters written for a single fix. */
+	private static final int MAX_LINE_LENGTH = 512;
+
+	private static final int COORD_DECIMALS = 7;
+
+	private final int format;
+	private int columns = 0;
+	private final char[] buf = new char[BUFFER_SIZE];
+	private int pos = 0;
+	private Writer out;
+
+	/* Statistics for the last export */
+	private long pointCount = 0;
+	private long exportNanos = 0;
+
+	/**
+	 * Creates a new exporter.
+	 *
+	 * @param format One of {@link #FORMAT_GPX}, {@link #FORMAT_KML} or {@link #FORMAT_CSV}
+	 */
+	public TrackExporter(int format) {
+		if ((format < FORMAT_GPX) || (format > FORMAT_CSV))
+			throw new IllegalArgumentException("Unknown format " + format);
+		this.format = format;
+	}
+
+	/**
+	 * Sets additional coordinate columns for CSV export.
+	 *
+	 * @param columns Any combination of {@link #COLUMN_UTM}, {@link #COLUMN_MGRS} and {@link #COLUMN_OSGB}
+	 */
+	public void setColumns(int columns) {
+		this.columns = columns;
+	}
+
+	/**
+	 * Returns the file name extension for the format of this exporter, including the dot.
+	 */
+	public String getExtension() {
+		return EXTENSIONS[format];
+	}
+
+	/**
+	 * Returns all segment files in a directory, sorted by time.
+	 */
+	public static File[] listSegments(File dir) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(TrackFormat.FILE_PREFIX) && name.endsWith(TrackFormat.FILE_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+		// file names start with the time, so sorting by name sorts by time
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Exports segments to a file.
+	 *
+	 * @param segments The segment files, in chronological order
+	 * @param file The file to write
+	 * @return The number of fixes exported
+	 */
+	public long export(File[] segments, File file) throws IOException {
+		Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file)), "UTF-8");
+		try {
+			return export(segments, writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Exports segments.
+	 * <p>
+	 * Segments which are not valid track files are skipped.
+	 *
+	 * @param segments The segment files, in chronological order
+	 * @param out The writer to which output is written. It is flushed but not closed.
+	 * @return The number of fixes exported
+	 */
+	public long export(File[] segments, Writer out) throws IOException {
+		long start = System.nanoTime();
+		this.out = out;
+		pos = 0;
+		pointCount = 0;
+		writeHeader();
+		for (File segment : segments) {
+			TrackReader reader;
+			try {
+				reader = new TrackReader(segment);
+			} catch (IOException e) {
+				continue;
+			}
+			try {
+				ensureSpace();
+				writeSegmentStart();
+				while (reader.next()) {
+					ensureSpace();
+					writeFix(reader);
+					pointCount++;
+				}
+				ensureSpace();
+				writeSegmentEnd();
+			} finally {
+				reader.close();
+			}
+		}
+		ensureSpace();
+		writeFooter();
+		flushBuffer();
+		out.flush();
+		this.out = null;
+		exportNanos = System.nanoTime() - start;
+		return pointCount;
+	}
+
+	/**
+	 * Returns the number of fixes exported in the last export.
+	 */
+	public long getPointCount() {
+		return pointCount;
+	}
+
+	/**
+	 * Returns the throughput of the last export, in fixes per second.
+	 */
+	public double getPointsPerSecond() {
+		if (exportNanos <= 0)
+			return 0;
+		return pointCount * 1e9 / exportNanos;
+	}
+
+	private void writeHeader() {
+		switch (format) {
+		case FORMAT_GPX:
+			append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<gpx version=\"1.1\" creator=\"SatStat\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n"
+					+ "<trk>\n");
+			break;
+		case FORMAT_KML:
+			append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+					+ "<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n"
+					+ "<Document>\n<Placemark>\n<MultiGeometry>\n");
+			break;
+		case FORMAT_CSV:
+			append("time,provider,latitude,longitude,altitude,accuracy,speed,bearing,sats_used,sats_in_view");
+			if ((columns & COLUMN_UTM) != 0)
+				append(",utm_zone,utm_easting,utm_northing");
+			if ((columns & COLUMN_MGRS) != 0)
+				append(",mgrs");
+			if ((columns & COLUMN_OSGB) != 0)
+				append(",osgb_easting,osgb_northing");
+			append('\n');
+			break;
+		}
+	}
+
+	private void writeFooter() {
+		switch (format) {
+		case FORMAT_GPX:
+			append("</trk>\n</gpx>\n");
+			break;
+		case FORMAT_KML:
+			append("</MultiGeometry>\n</Placemark>\n</Document>\n</kml>\n");
+			break;
+		}
+	}
+
+	private void writeSegmentStart() {
+		switch (format) {
+		case FORMAT_GPX:
+			append("<trkseg>\n");
+			break;
+		case FORMAT_KML:
+			append("<LineString>\n<coordinates>\n");
+			break;
+		}
+	}
+
+	private void writeSegmentEnd() {
+		switch (format) {
+		case FORMAT_GPX:
+			append("</trkseg>\n");
+			break;
+		case FORMAT_KML:
+			append("</coordinates>\n</LineString>\n");
+			break;
+		}
+	}
+
+	private void writeFix(TrackReader reader) {
+		switch (format) {
+		case FORMAT_GPX:
+			append("<trkpt lat=\"");
+			pos = CharFormatter.formatFixed(buf, pos, reader.getLatitude(), COORD_DECIMALS);
+			append("\" lon=\"");
+			pos = CharFormatter.formatFixed(buf, pos, reader.getLongitude(), COORD_DECIMALS);
+			append("\">");
+			if (reader.hasAltitude()) {
+				append("<ele>");
+				pos = CharFormatter.formatFixed(buf, pos, reader.getAltitude(), 2);
+				append("</ele>");
+			}
+			append("<time>");
+			pos = CharFormatter.formatIsoTime(buf, pos, reader.getTime());
+			append("</time><src>");
+			append(TrackFormat.getProviderName(reader.getProvider()));
+			append("</src>");
+			if (reader.hasSats()) {
+				append("<sat>");
+				pos = CharFormatter.formatLong(buf, pos, reader.getSatsUsed());
+				append("</sat>");
+			}
+			append("</trkpt>\n");
+			break;
+		case FORMAT_KML:
+			pos = CharFormatter.formatFixed(buf, pos, reader.getLongitude(), COORD_DECIMALS);
+			append(',');
+			pos = CharFormatter.formatFixed(buf, pos, reader.getLatitude(), COORD_DECIMALS);
+			if (reader.hasAltitude()) {
+				append(',');
+				pos = CharFormatter.formatFixed(buf, pos, reader.getAltitude(), 2);
+			}
+			append('\n');
+			break;
+		case FORMAT_CSV:
+			pos = CharFormatter.formatIsoTime(buf, pos, reader.getTime());
+			append(',');
+			append(TrackFormat.getProviderName(reader.getProvider()));
+			append(',');
+			pos = CharFormatter.formatFixed(buf, pos, reader.getLatitude(), COORD_DECIMALS);
+			append(',');
+			pos = CharFormatter.formatFixed(buf, pos, reader.getLongitude(), COORD_DECIMALS);
+			append(',');
+			if (reader.hasAltitude())
+				pos = CharFormatter.formatFixed(buf, pos, reader.getAltitude(), 2);
+			append(',');
+			if (reader.hasAccuracy())
+				pos = CharFormatter.formatFixed(buf, pos, reader.getAccuracy(), 2);
+			append(',');
+			if (reader.hasSpeed())
+				pos = CharFormatter.formatFixed(buf, pos, reader.getSpeed(), 2);
+			append(',');
+			if (reader.hasBearing())
+				pos = CharFormatter.formatFixed(buf, pos, reader.getBearing(), 2);
+			append(',');
+			if (reader.hasSats())
+				pos = CharFormatter.formatLong(buf, pos, reader.getSatsUsed());
+			append(',');
+			if (reader.hasSats())
+				pos = CharFormatter.formatLong(buf, pos, reader.getSatsInView());
+			if (columns != 0)
+				writeGridColumns(reader.getLatitude(), reader.getLongitude());
+			append('\n');
+			break;
+		}
+	}
+
+	/**
+	 * Writes the optional grid reference columns for CSV. Columns are left empty where a grid is not defined.
+	 */
+	private void writeGridColumns(double lat, double lon) {
+		boolean isOnUtmGrid = (lat >= -80) && (lat <= 84);
+		if ((columns & COLUMN_UTM) != 0) {
+			append(',');
+			if (isOnUtmGrid) {
+				UTMRef utm = new LatLng(lat, lon).toUTMRef();
+				pos = CharFormatter.formatLong(buf, pos, utm.getLngZone());
+				append(utm.getLatZone());
+				append(',');
+				pos = CharFormatter.formatFixed(buf, pos, utm.getEasting(), 0);
+				append(',');
+				pos = CharFormatter.formatFixed(buf, pos, utm.getNorthing(), 0);
+			} else
+				append(",,");
+		}
+		if ((columns & COLUMN_MGRS) != 0) {
+			append(',');
+			if (isOnUtmGrid)
+				append(new LatLng(lat, lon).toMGRSRef().toString(MGRSRef.PRECISION_1M));
+		}
+		if ((columns & COLUMN_OSGB) != 0) {
+			LatLng ll = new LatLng(lat, lon);
+			ll.toOSGB36();
+			OSRef os;
+			try {
+				os = ll.toOSRef();
+			} catch (IllegalArgumentException e) {
+				// outside the OSGB grid
+				os = null;
+			}
+			append(',');
+			if (os != null)
+				pos = CharFormatter.formatFixed(buf, pos, os.getEasting(), 0);
+			append(',');
+			if (os != null)
+				pos = CharFormatter.formatFixed(buf, pos, os.getNorthing(), 0);
+		}
+	}
+
+	private void append(char c) {
+		buf[pos++] = c;
+	}
+
+	/**
+	 * Appends a string. The caller must make sure there is enough room in the buffer.
+	 */
+	private void append(String s) {
+		pos = CharFormatter.copy(buf, pos, s);
+	}
+
+	/**
+	 * Flushes the buffer if there may not be enough room for another fix.
+	 */
+	private void ensureSpace() throws IOException {
+		if (pos > BUFFER_SIZE - MAX_LINE_LENGTH)
+			flushBuffer();
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buf, 0, pos);
+		pos = 0;
+	}
+}
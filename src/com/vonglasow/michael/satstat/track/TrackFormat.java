@@ -0,0 +1,146 @@
+package com.vonglasow.michael.satstat.track;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Constants and helpers for the binary track format.
+ * <p>
+ * A track is stored as a series of segment files. Each segment starts with a
+ * header of {@link #HEADER_SIZE} bytes: the magic number {@link #MAGIC}
+ * (int), the format version (byte) and the time at which the segment was
+ * started (long, milliseconds since the epoch). All multi-byte header values
+ * are big-endian.
+ * <p>
+ * The header is followed by fix records, each of which consists of:
+ * <ul>
+ * <li>flags (byte): any combination of {@link #FLAG_KEYFRAME},
+ * {@link #FLAG_ALTITUDE}, {@link #FLAG_ACCURACY}, {@link #FLAG_SPEED},
+ * {@link #FLAG_BEARING} and {@link #FLAG_SATS}</li>
+ * <li>provider (byte): one of the {@code PROVIDER_*} constants</li>
+ * <li>time (signed varint, milliseconds)</li>
+ * <li>latitude and longitude (signed varints, 1e-7 degrees)</li>
+ * <li>altitude (signed varint, cm), if {@link #FLAG_ALTITUDE} is set</li>
+ * <li>accuracy (unsigned varint, cm), if {@link #FLAG_ACCURACY} is set</li>
+ * <li>speed (unsigned varint, cm/s), if {@link #FLAG_SPEED} is set</li>
+ * <li>bearing (unsigned varint, 1/100 degree), if {@link #FLAG_BEARING} is set</li>
+ * <li>satellites used and in view (one byte each), if {@link #FLAG_SATS} is set</li>
+ * </ul>
+ * Time, latitude, longitude and altitude are stored as the difference to
+ * the last record which had a value for the respective field. In a keyframe
+ * record, flagged with {@link #FLAG_KEYFRAME}, they are stored as absolute
+ * values. Every segment starts with a keyframe, and keyframes are repeated at
+ * regular intervals to limit the effect of a damaged record. Varints use
+ * 7 bits per byte, least significant group first, with the high bit set on
+ * all bytes except the last one. Signed varints are zigzag-encoded.
+ * <p>
+ * The last record of a segment may be incomplete if the app was terminated
+ * while writing it. Readers must ignore such a record.
+ */
+public final class TrackFormat {
+	/** Magic number at the start of each segment (SSTR). */
+	public static final int MAGIC = 0x53535452;
+
+	/** Current format version. */
+	public static final int VERSION = 1;
+
+	/** Size of the segment header, in bytes. */
+	public static final int HEADER_SIZE = 13;
+
+	/** Maximum size of a fix record, in bytes. */
+	public static final int MAX_RECORD_SIZE = 48;
+
+	/** Prefix for segment file names. */
+	public static final String FILE_PREFIX = "track-";
+
+	/** Suffix for segment file names. */
+	public static final String FILE_SUFFIX = ".sst";
+
+	public static final int FLAG_KEYFRAME = 0x01;
+	public static final int FLAG_ALTITUDE = 0x02;
+	public static final int FLAG_ACCURACY = 0x04;
+	public static final int FLAG_SPEED = 0x08;
+	public static final int FLAG_BEARING = 0x10;
+	public static final int FLAG_SATS = 0x20;
+
+	public static final int PROVIDER_OTHER = 0;
+	public static final int PROVIDER_GPS = 1;
+	public static final int PROVIDER_NETWORK = 2;
+	public static final int PROVIDER_FUSED = 3;
+	public static final int PROVIDER_RADIO = 4;
+
+	/** Number of provider IDs. */
+	public static final int PROVIDER_COUNT = 5;
+
+	/** Provider names, indexed by provider ID. */
+	private static final String[] PROVIDER_NAMES = {"other", "gps", "network", "fused", "radio"};
+
+	/** Scale factor for coordinates (units per degree). */
+	public static final double COORD_SCALE = 1e7;
+
+	/** Scale factor for altitude (units per meter). */
+	public static final double ALTITUDE_SCALE = 100;
+
+	/** Scale factor for accuracy (units per meter). */
+	public static final float ACCURACY_SCALE = 100;
+
+	/** Scale factor for speed (units per m/s). */
+	public static final float SPEED_SCALE = 100;
+
+	/** Scale factor for bearing (units per degree). */
+	public static final float BEARING_SCALE = 100;
+
+	private TrackFormat() {
+	}
+
+	/**
+	 * Returns the file name for a segment.
+	 *
+	 * @param time The time at which the segment was started, in milliseconds since the epoch
+	 */
+	public static String getFileName(long time) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return FILE_PREFIX + format.format(new Date(time)) + FILE_SUFFIX;
+	}
+
+	/**
+	 * Returns the provider ID for a location provider name.
+	 */
+	public static int getProviderId(String provider) {
+		for (int i = 1; i < PROVIDER_COUNT; i++)
+			if (PROVIDER_NAMES[i].equals(provider))
+				return i;
+		return PROVIDER_OTHER;
+	}
+
+	/**
+	 * Returns the location provider name for a provider ID.
+	 */
+	public static String getProviderName(int id) {
+		if ((id < 0) || (id >= PROVIDER_COUNT))
+			return PROVIDER_NAMES[PROVIDER_OTHER];
+		return PROVIDER_NAMES[id];
+	}
+
+	/**
+	 * Writes an unsigned varint.
+	 */
+	static void putVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Writes a signed, zigzag-encoded varint.
+	 */
+	static void putSignedVarLong(ByteBuffer buffer, long value) {
+		putVarLong(buffer, (value << 1) ^ (value >> 63));
+	}
+}
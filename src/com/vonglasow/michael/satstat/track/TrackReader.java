@@ -0,0 +1,251 @@
+package com.vonglasow.michael.satstat.track;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads fixes from a track segment file.
+ * <p>
+ * The reader works like a cursor: each call to {@link #next()} decodes the
+ * next fix, whose values are then available through the getters until the
+ * following call. The file is read in chunks into a reusable buffer, so
+ * reading does not allocate any objects and memory use does not depend on
+ * the size of the file.
+ * <p>
+ * Typical usage:
+ * <pre>
+ * TrackReader reader = new TrackReader(file);
+ * try {
+ *     while (reader.next())
+ *         // use getTime(), getLatitude() etc.
+ * } finally {
+ *     reader.close();
+ * }
+ * </pre>
+ */
+public class TrackReader {
+	private static final int BUFFER_SIZE = 65536;
+
+	private final FileInputStream in;
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private boolean isEof = false;
+	private final long startTime;
+
+	/* Current record */
+	private int flags;
+	private int provider;
+	private long time = 0;
+	private int lat = 0;
+	private int lon = 0;
+	private int alt = 0;
+	private int accuracy;
+	private int speed;
+	private int bearing;
+	private int satsUsed;
+	private int satsInView;
+
+	/**
+	 * Opens a segment file and reads its header.
+	 *
+	 * @throws IOException if the file cannot be read or is not a track segment
+	 */
+	public TrackReader(File file) throws IOException {
+		in = new FileInputStream(file);
+		channel = in.getChannel();
+		buffer.flip();
+		try {
+			fill();
+			if ((buffer.remaining() < TrackFormat.HEADER_SIZE) || (buffer.getInt() != TrackFormat.MAGIC))
+				throw new IOException(file.getName() + " is not a track file");
+			int version = buffer.get();
+			if (version != TrackFormat.VERSION)
+				throw new IOException(file.getName() + " has unsupported version " + version);
+			startTime = buffer.getLong();
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Decodes the next fix.
+	 *
+	 * @return true if a fix was decoded, false if the end of the file has been reached
+	 * @throws IOException if the file cannot be read or contains an invalid record
+	 */
+	public boolean next() throws IOException {
+		if (buffer.remaining() < TrackFormat.MAX_RECORD_SIZE)
+			fill();
+		if (!buffer.hasRemaining())
+			return false;
+		int start = buffer.position();
+		try {
+			flags = buffer.get() & 0xFF;
+			provider = buffer.get() & 0xFF;
+			if ((flags & TrackFormat.FLAG_KEYFRAME) != 0) {
+				time = 0;
+				lat = 0;
+				lon = 0;
+				alt = 0;
+			}
+			time += getSignedVarLong();
+			lat += (int) getSignedVarLong();
+			lon += (int) getSignedVarLong();
+			if ((flags & TrackFormat.FLAG_ALTITUDE) != 0)
+				alt += (int) getSignedVarLong();
+			if ((flags & TrackFormat.FLAG_ACCURACY) != 0)
+				accuracy = (int) getVarLong();
+			if ((flags & TrackFormat.FLAG_SPEED) != 0)
+				speed = (int) getVarLong();
+			if ((flags & TrackFormat.FLAG_BEARING) != 0)
+				bearing = (int) getVarLong();
+			if ((flags & TrackFormat.FLAG_SATS) != 0) {
+				satsUsed = buffer.get() & 0xFF;
+				satsInView = buffer.get() & 0xFF;
+			}
+		} catch (BufferUnderflowException e) {
+			if (isEof) {
+				// incomplete last record, written while the app was terminated
+				buffer.position(buffer.limit());
+				return false;
+			}
+			throw new IOException("Invalid record at offset " + start);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the time at which the segment was started, in milliseconds since the epoch.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns the provider ID of the current fix, see {@link TrackFormat}.
+	 */
+	public int getProvider() {
+		return provider;
+	}
+
+	/**
+	 * Returns the time of the current fix, in milliseconds since the epoch.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public double getLatitude() {
+		return lat / TrackFormat.COORD_SCALE;
+	}
+
+	public double getLongitude() {
+		return lon / TrackFormat.COORD_SCALE;
+	}
+
+	public boolean hasAltitude() {
+		return (flags & TrackFormat.FLAG_ALTITUDE) != 0;
+	}
+
+	/**
+	 * Returns the altitude of the current fix in meters. Only valid if {@link #hasAltitude()} is true.
+	 */
+	public double getAltitude() {
+		return alt / TrackFormat.ALTITUDE_SCALE;
+	}
+
+	public boolean hasAccuracy() {
+		return (flags & TrackFormat.FLAG_ACCURACY) != 0;
+	}
+
+	/**
+	 * Returns the accuracy of the current fix in meters. Only valid if {@link #hasAccuracy()} is true.
+	 */
+	public float getAccuracy() {
+		return accuracy / TrackFormat.ACCURACY_SCALE;
+	}
+
+	public boolean hasSpeed() {
+		return (flags & TrackFormat.FLAG_SPEED) != 0;
+	}
+
+	/**
+	 * Returns the speed of the current fix in m/s. Only valid if {@link #hasSpeed()} is true.
+	 */
+	public float getSpeed() {
+		return speed / TrackFormat.SPEED_SCALE;
+	}
+
+	public boolean hasBearing() {
+		return (flags & TrackFormat.FLAG_BEARING) != 0;
+	}
+
+	/**
+	 * Returns the bearing of the current fix in degrees. Only valid if {@link #hasBearing()} is true.
+	 */
+	public float getBearing() {
+		return bearing / TrackFormat.BEARING_SCALE;
+	}
+
+	public boolean hasSats() {
+		return (flags & TrackFormat.FLAG_SATS) != 0;
+	}
+
+	/**
+	 * Returns the number of satellites used in the current fix. Only valid if {@link #hasSats()} is true.
+	 */
+	public int getSatsUsed() {
+		return satsUsed;
+	}
+
+	/**
+	 * Returns the number of satellites in view. Only valid if {@link #hasSats()} is true.
+	 */
+	public int getSatsInView() {
+		return satsInView;
+	}
+
+	/**
+	 * Reads more data from the file into the buffer, keeping any unread data.
+	 */
+	private void fill() throws IOException {
+		if (isEof)
+			return;
+		buffer.compact();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				isEof = true;
+				break;
+			}
+		}
+		buffer.flip();
+	}
+
+	private long getVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Invalid varint at offset " + buffer.position());
+	}
+
+	private long getSignedVarLong() throws IOException {
+		long value = getVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
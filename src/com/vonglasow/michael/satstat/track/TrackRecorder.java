@@ -0,0 +1,136 @@
+package com.vonglasow.michael.satstat.track;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.location.LocationManager;
+import android.preference.PreferenceManager;
+
+import com.vonglasow.michael.satstat.PasvLocListenerService;
+import com.vonglasow.michael.satstat.SettingsActivity;
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.sensor.AltitudeEngine;
+
+/**
+ * Records location fixes to a track.
+ * <p>
+ * There is one recorder per process, which receives fixes from all
+ * location listeners in the app. Whether a recording is in progress is
+ * stored in the preferences, so that recording resumes when the process is
+ * restarted after having been terminated. While recording,
+ * {@link PasvLocListenerService} runs in the foreground and keeps the GPS
+ * active.
+ * <p>
+ * If {@link AltitudeEngine} has a barometric altitude, it is recorded in
+ * place of the altitude reported with the fix.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+public class TrackRecorder {
+	/** Name of the subdirectory for track files. */
+	public static final String TRACK_DIR = "tracks";
+
+	private static TrackRecorder instance = null;
+
+	private final Context context;
+	private final SharedPreferences sharedPreferences;
+	private final AltitudeEngine altitudeEngine;
+	private TrackWriter writer = null;
+
+	/**
+	 * Returns the recorder instance, creating it if necessary.
+	 * <p>
+	 * If a recording was in progress when the process was last terminated,
+	 * it is resumed in a new segment.
+	 */
+	public static TrackRecorder getInstance(Context context) {
+		if (instance == null)
+			instance = new TrackRecorder(context.getApplicationContext());
+		return instance;
+	}
+
+	/**
+	 * Returns the directory in which tracks are stored.
+	 */
+	public static File getTrackDir(Context context) {
+		File dir = context.getExternalFilesDir(TRACK_DIR);
+		if (dir == null)
+			dir = new File(context.getFilesDir(), TRACK_DIR);
+		return dir;
+	}
+
+	private TrackRecorder(Context context) {
+		this.context = context;
+		sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+		altitudeEngine = AltitudeEngine.getInstance(context);
+		if (sharedPreferences.getBoolean(SettingsActivity.KEY_PREF_RECORD, false))
+			writer = new TrackWriter(getTrackDir(context));
+	}
+
+	/**
+	 * Whether a recording is in progress.
+	 */
+	public boolean isRecording() {
+		return writer != null;
+	}
+
+	/**
+	 * Starts or stops recording.
+	 * <p>
+	 * Starting a recording also starts {@link PasvLocListenerService}, which
+	 * picks up the change through the preferences.
+	 */
+	public void setRecording(boolean recording) {
+		if (recording == isRecording())
+			return;
+		if (recording) {
+			writer = new TrackWriter(getTrackDir(context));
+		} else {
+			writer.close();
+			writer = null;
+		}
+		SharedPreferences.Editor spEditor = sharedPreferences.edit();
+		spEditor.putBoolean(SettingsActivity.KEY_PREF_RECORD, recording);
+		spEditor.commit();
+		if (recording)
+			context.startService(new Intent(context, PasvLocListenerService.class));
+	}
+
+	/**
+	 * Records a fix if a recording is in progress.
+	 *
+	 * @param location The fix
+	 * @param snapshot The latest GPS status, used to record the number of satellites for GPS fixes;
+	 * can be null
+	 */
+	public void onLocationChanged(Location location, GpsSnapshot snapshot) {
+		if (writer == null)
+			return;
+		boolean isGps = LocationManager.GPS_PROVIDER.equals(location.getProvider());
+		double altitude = Double.NaN;
+		if (altitudeEngine.hasAltitude())
+			altitude = altitudeEngine.getAltitude();
+		else if (location.hasAltitude())
+			altitude = location.getAltitude();
+		writer.add(TrackFormat.getProviderId(location.getProvider()),
+				location.getTime(),
+				location.getLatitude(),
+				location.getLongitude(),
+				altitude,
+				location.hasAccuracy() ? location.getAccuracy() : Float.NaN,
+				location.hasSpeed() ? location.getSpeed() : Float.NaN,
+				location.hasBearing() ? location.getBearing() : Float.NaN,
+				(isGps && (snapshot != null)) ? snapshot.getUsedCount() : -1,
+				(isGps && (snapshot != null)) ? snapshot.getCount() : -1);
+	}
+
+	/**
+	 * Returns the writer for the current recording, or null if not recording.
+	 */
+	public TrackWriter getWriter() {
+		return writer;
+	}
+}
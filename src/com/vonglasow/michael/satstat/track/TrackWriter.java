@@ -0,0 +1,378 @@
+package com.vonglasow.michael.satstat.track;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Writes location fixes to track segment files.
+ * <p>
+ * Fixes are added to a fixed-size ring buffer of primitive arrays, which
+ * does not allocate any objects. A background thread drains the ring buffer
+ * every {@link #FLUSH_INTERVAL} milliseconds, encodes the fixes as described
+ * in {@link TrackFormat} into a preallocated direct buffer and writes it to
+ * the current segment file through a {@link FileChannel}. If the app is
+ * terminated, at most the fixes added since the last flush are lost.
+ * <p>
+ * A new segment is started after {@link #SEGMENT_DURATION} or when the
+ * current segment exceeds {@link #SEGMENT_SIZE}, and whenever a new writer is
+ * created. Memory use is bounded by the capacity of the ring buffer; if the
+ * background thread cannot keep up, new fixes are dropped.
+ * <p>
+ * Fixes from a provider whose time is not newer than that of the last fix
+ * from the same provider are ignored. This allows the same fixes to be fed
+ * in through multiple listeners.
+ */
+public class TrackWriter {
+	private static final String TAG = TrackWriter.class.getSimpleName();
+
+	/** Interval at which buffered fixes are written, in milliseconds. */
+	public static final int FLUSH_INTERVAL = 2000;
+
+	/** Maximum time span covered by a segment, in milliseconds. */
+	public static final long SEGMENT_DURATION = 3600000;
+
+	/** Size above which a new segment is started, in bytes. */
+	public static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	/** Number of records after which a keyframe is written. */
+	static final int KEYFRAME_INTERVAL = 600;
+
+	/** Default capacity of the ring buffer, in fixes. */
+	public static final int DEFAULT_CAPACITY = 512;
+
+	private final File dir;
+	private final int capacity;
+	private final ScheduledExecutorService executor;
+
+	/* Ring buffer, guarded by this */
+	private final byte[] fixFlags;
+	private final byte[] fixProvider;
+	private final long[] fixTime;
+	private final int[] fixLat;
+	private final int[] fixLon;
+	private final int[] fixAlt;
+	private final int[] fixAccuracy;
+	private final int[] fixSpeed;
+	private final int[] fixBearing;
+	private final byte[] fixSatsUsed;
+	private final byte[] fixSatsInView;
+	private int head = 0;
+	private int size = 0;
+	private final long[] lastTime = new long[TrackFormat.PROVIDER_COUNT];
+	private int droppedFixes = 0;
+	private long fixesWritten = 0;
+	private long bytesWritten = 0;
+	private boolean isClosed = false;
+
+	/* Writer state, only accessed by the background thread */
+	private final ByteBuffer buffer;
+	private RandomAccessFile segmentFile = null;
+	private FileChannel channel = null;
+	private long segmentStart = 0;
+	private long segmentBytes = 0;
+	private int recordsSinceKeyframe = 0;
+	private long prevTime = 0;
+	private int prevLat = 0;
+	private int prevLon = 0;
+	private int prevAlt = 0;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Creates a new writer with the default capacity.
+	 *
+	 * @param dir The directory for the segment files
+	 */
+	public TrackWriter(File dir) {
+		this(dir, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new writer.
+	 *
+	 * @param dir The directory for the segment files
+	 * @param capacity The maximum number of fixes buffered between two flushes
+	 */
+	public TrackWriter(File dir, int capacity) {
+		this.dir = dir;
+		this.capacity = capacity;
+		fixFlags = new byte[capacity];
+		fixProvider = new byte[capacity];
+		fixTime = new long[capacity];
+		fixLat = new int[capacity];
+		fixLon = new int[capacity];
+		fixAlt = new int[capacity];
+		fixAccuracy = new int[capacity];
+		fixSpeed = new int[capacity];
+		fixBearing = new int[capacity];
+		fixSatsUsed = new byte[capacity];
+		fixSatsInView = new byte[capacity];
+		buffer = ByteBuffer.allocateDirect(TrackFormat.HEADER_SIZE + capacity * TrackFormat.MAX_RECORD_SIZE);
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(flushTask, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds a fix.
+	 *
+	 * @param provider The provider ID, see {@link TrackFormat}
+	 * @param time The time of the fix, in milliseconds since the epoch
+	 * @param lat The latitude
+	 * @param lon The longitude
+	 * @param alt The altitude in meters, or {@code NaN} if unknown
+	 * @param accuracy The accuracy in meters, or {@code NaN} if unknown
+	 * @param speed The speed in m/s, or {@code NaN} if unknown
+	 * @param bearing The bearing in degrees, or {@code NaN} if unknown
+	 * @param satsUsed The number of satellites used in the fix, or -1 if unknown
+	 * @param satsInView The number of satellites in view, or -1 if unknown
+	 * @return true if the fix was added, false if it was a duplicate, was dropped or the writer has been closed
+	 */
+	public synchronized boolean add(int provider, long time, double lat, double lon, double alt,
+			float accuracy, float speed, float bearing, int satsUsed, int satsInView) {
+		if (isClosed || Double.isNaN(lat) || Double.isNaN(lon))
+			return false;
+		if ((provider < 0) || (provider >= TrackFormat.PROVIDER_COUNT))
+			provider = TrackFormat.PROVIDER_OTHER;
+		if (time <= lastTime[provider])
+			return false;
+		if (size >= capacity) {
+			droppedFixes++;
+			return false;
+		}
+		lastTime[provider] = time;
+
+		int i = (head + size) % capacity;
+		int flags = 0;
+		fixProvider[i] = (byte) provider;
+		fixTime[i] = time;
+		fixLat[i] = (int) Math.round(lat * TrackFormat.COORD_SCALE);
+		fixLon[i] = (int) Math.round(lon * TrackFormat.COORD_SCALE);
+		if (!Double.isNaN(alt)) {
+			flags |= TrackFormat.FLAG_ALTITUDE;
+			fixAlt[i] = (int) Math.round(alt * TrackFormat.ALTITUDE_SCALE);
+		}
+		if (!Float.isNaN(accuracy) && (accuracy >= 0)) {
+			flags |= TrackFormat.FLAG_ACCURACY;
+			fixAccuracy[i] = Math.round(accuracy * TrackFormat.ACCURACY_SCALE);
+		}
+		if (!Float.isNaN(speed) && (speed >= 0)) {
+			flags |= TrackFormat.FLAG_SPEED;
+			fixSpeed[i] = Math.round(speed * TrackFormat.SPEED_SCALE);
+		}
+		if (!Float.isNaN(bearing)) {
+			flags |= TrackFormat.FLAG_BEARING;
+			fixBearing[i] = Math.round((((bearing % 360) + 360) % 360) * TrackFormat.BEARING_SCALE);
+		}
+		if ((satsUsed >= 0) && (satsInView >= 0)) {
+			flags |= TrackFormat.FLAG_SATS;
+			fixSatsUsed[i] = (byte) Math.min(satsUsed, 255);
+			fixSatsInView[i] = (byte) Math.min(satsInView, 255);
+		}
+		fixFlags[i] = (byte) flags;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Writes all buffered fixes, closes the current segment and releases resources.
+	 * <p>
+	 * Writing happens in the background; this method does not block.
+	 */
+	public synchronized void close() {
+		if (isClosed)
+			return;
+		isClosed = true;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+				closeSegment();
+			}
+		});
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits until all data has been written after {@link #close()}.
+	 */
+	void awaitTermination() throws InterruptedException {
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Returns the number of fixes dropped because the buffer was full.
+	 */
+	public synchronized int getDroppedFixes() {
+		return droppedFixes;
+	}
+
+	/**
+	 * Returns the number of bytes written to segment files, including headers.
+	 */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the number of fixes written to segment files.
+	 */
+	public synchronized long getFixesWritten() {
+		return fixesWritten;
+	}
+
+	/**
+	 * Writes buffered fixes to the current segment, starting a new segment if needed.
+	 * <p>
+	 * This runs on the background thread. Fixes are encoded while holding the
+	 * lock, the actual I/O happens without it.
+	 */
+	private void flush() {
+		int pending;
+		long firstTime;
+		synchronized (this) {
+			pending = size;
+			firstTime = (size > 0) ? fixTime[head] : 0;
+		}
+		if (pending == 0)
+			return;
+
+		if ((channel != null) && ((segmentBytes >= SEGMENT_SIZE) || (firstTime - segmentStart >= SEGMENT_DURATION)))
+			closeSegment();
+		if (channel == null) {
+			try {
+				openSegment(firstTime);
+			} catch (IOException e) {
+				Log.w(TAG, "Cannot create track segment: " + e.getMessage());
+				closeSegment();
+				return;
+			}
+		}
+
+		int written = 0;
+		synchronized (this) {
+			while (size > 0) {
+				encode(head);
+				head = (head + 1) % capacity;
+				size--;
+				written++;
+			}
+		}
+
+		buffer.flip();
+		int bytes = buffer.remaining();
+		try {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			segmentBytes += bytes;
+			synchronized (this) {
+				fixesWritten += written;
+				bytesWritten += bytes;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot write track data: " + e.getMessage());
+			closeSegment();
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Encodes the fix at a ring buffer position into the write buffer. Must be called while holding the lock.
+	 */
+	private void encode(int i) {
+		int flags = fixFlags[i];
+		if ((recordsSinceKeyframe == 0) || (recordsSinceKeyframe >= KEYFRAME_INTERVAL)) {
+			flags |= TrackFormat.FLAG_KEYFRAME;
+			prevTime = 0;
+			prevLat = 0;
+			prevLon = 0;
+			prevAlt = 0;
+			recordsSinceKeyframe = 0;
+		}
+		recordsSinceKeyframe++;
+		buffer.put((byte) flags);
+		buffer.put(fixProvider[i]);
+		TrackFormat.putSignedVarLong(buffer, fixTime[i] - prevTime);
+		TrackFormat.putSignedVarLong(buffer, (long) fixLat[i] - prevLat);
+		TrackFormat.putSignedVarLong(buffer, (long) fixLon[i] - prevLon);
+		prevTime = fixTime[i];
+		prevLat = fixLat[i];
+		prevLon = fixLon[i];
+		if ((flags & TrackFormat.FLAG_ALTITUDE) != 0) {
+			TrackFormat.putSignedVarLong(buffer, (long) fixAlt[i] - prevAlt);
+			prevAlt = fixAlt[i];
+		}
+		if ((flags & TrackFormat.FLAG_ACCURACY) != 0)
+			TrackFormat.putVarLong(buffer, fixAccuracy[i]);
+		if ((flags & TrackFormat.FLAG_SPEED) != 0)
+			TrackFormat.putVarLong(buffer, fixSpeed[i]);
+		if ((flags & TrackFormat.FLAG_BEARING) != 0)
+			TrackFormat.putVarLong(buffer, fixBearing[i]);
+		if ((flags & TrackFormat.FLAG_SATS) != 0) {
+			buffer.put(fixSatsUsed[i]);
+			buffer.put(fixSatsInView[i]);
+		}
+	}
+
+	/**
+	 * Creates a new segment file and puts its header into the write buffer.
+	 *
+	 * @param time The time of the first fix in the segment
+	 */
+	private void openSegment(long time) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir.getPath());
+		File file = new File(dir, TrackFormat.getFileName(time));
+		for (int i = 1; file.exists(); i++)
+			file = new File(dir, TrackFormat.getFileName(time).replace(TrackFormat.FILE_SUFFIX,
+					"-" + i + TrackFormat.FILE_SUFFIX));
+		segmentFile = new RandomAccessFile(file, "rw");
+		channel = segmentFile.getChannel();
+		segmentStart = time;
+		segmentBytes = 0;
+		recordsSinceKeyframe = 0;
+		buffer.clear();
+		buffer.putInt(TrackFormat.MAGIC);
+		buffer.put((byte) TrackFormat.VERSION);
+		buffer.putLong(time);
+		Log.d(TAG, "Started track segment " + file.getName());
+	}
+
+	/**
+	 * Syncs and closes the current segment, if any.
+	 */
+	private void closeSegment() {
+		if (segmentFile == null)
+			return;
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot sync track segment: " + e.getMessage());
+		}
+		try {
+			segmentFile.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Cannot close track segment: " + e.getMessage());
+		}
+		synchronized (this) {
+			if (fixesWritten > 0)
+				Log.d(TAG, String.format("Closed track segment, %d bytes; %d fixes, %.1f bytes/fix, %d dropped so far",
+						segmentBytes, fixesWritten, (double) bytesWritten / fixesWritten, droppedFixes));
+		}
+		segmentFile = null;
+		channel = null;
+	}
+}
@@ -0,0 +1,177 @@
+package com.vonglasow.michael.satstat.util;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Formats numbers and times into character arrays.
+ * <p>
+ * This is a fast, allocation-free alternative to {@code String.format()}
+ * for the few number formats we use in bulk. All methods write into a
+ * caller-supplied {@code char[]} starting at a given position and return the
+ * position after the last character written. The caller must make sure the
+ * array is large enough: {@link #MAX_LONG_LENGTH} characters for an integer,
+ * {@link #MAX_LONG_LENGTH} plus the number of decimals plus one for a
+ * decimal number and {@link #ISO_TIME_LENGTH} characters for a time.
+ * <p>
+ * Output does not depend on the locale: the minus sign is always
+ * {@code '-'}, the decimal separator is always {@code '.'} and no grouping
+ * separators are used. Otherwise it is the same as that of
+ * {@code String.format(Locale.ROOT, ...)} with {@code %d}, {@code %.nf} and
+ * {@code %tFT%<tT.%<tLZ} (for a UTC calendar).
+ */
+public final class CharFormatter {
+	/** Maximum number of characters needed for a {@code long}, including the sign. */
+	public static final int MAX_LONG_LENGTH = 20;
+
+	/** Number of characters in a time formatted by {@link #formatIsoTime(char[], int, long)}. */
+	public static final int ISO_TIME_LENGTH = 24;
+
+	/** Maximum number of decimals supported by {@link #formatFixed(char[], int, double, int)}. */
+	public static final int MAX_DECIMALS = 9;
+
+	private static final long[] POWERS_OF_TEN = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	/**
+	 * Scaled values closer to a rounding tie than this many ulps may round
+	 * differently in binary than in their shortest decimal representation.
+	 */
+	private static final double TIE_MARGIN = 4;
+
+	private CharFormatter() {
+	}
+
+	/**
+	 * Formats an integer.
+	 *
+	 * @return The position after the last character written
+	 */
+	public static int formatLong(char[] buf, int pos, long value) {
+		if (value == Long.MIN_VALUE)
+			return copy(buf, pos, Long.toString(value));
+		if (value < 0) {
+			buf[pos++] = '-';
+			value = -value;
+		}
+		return formatUnsigned(buf, pos, value, 1);
+	}
+
+	/**
+	 * Formats a decimal number with a fixed number of decimals.
+	 * <p>
+	 * Like {@code String.format()}, this rounds half up, based on the
+	 * shortest decimal representation of {@code value} as returned by
+	 * {@link Double#toString(double)}, so that e.g. 0.125 and 1.005 (which is
+	 * slightly less than 1.005 in binary) both round up to 2 decimals, and
+	 * negative values which round to zero keep their sign. This is done in
+	 * binary, except for values very close to a tie, which take the slow
+	 * path through their decimal representation.
+	 * <p>
+	 * {@code NaN} and infinite values are formatted as by {@link Double#toString(double)}, as
+	 * are values too large to be represented with the requested number of decimals.
+	 *
+	 * @param decimals The number of decimals, between 0 and {@link #MAX_DECIMALS}
+	 * @return The position after the last character written
+	 */
+	public static int formatFixed(char[] buf, int pos, double value, int decimals) {
+		long scale = POWERS_OF_TEN[decimals];
+		double abs = Math.abs(value);
+		if (Double.isNaN(value) || Double.isInfinite(value) || (abs >= Long.MAX_VALUE / scale))
+			return copy(buf, pos, Double.toString(value));
+		double x = abs * scale;
+		long scaled = (long) Math.floor(x);
+		double fraction = x - scaled;
+		if (Math.abs(fraction - 0.5) > TIE_MARGIN * Math.ulp(x)) {
+			if (fraction > 0.5)
+				scaled++;
+		} else
+			scaled = new BigDecimal(Double.toString(abs)).setScale(decimals, RoundingMode.HALF_UP)
+					.unscaledValue().longValue();
+		// also true for -0.0
+		if (Double.compare(value, 0.0) < 0)
+			buf[pos++] = '-';
+		pos = formatUnsigned(buf, pos, scaled / scale, 1);
+		if (decimals > 0) {
+			buf[pos++] = '.';
+			pos = formatUnsigned(buf, pos, scaled % scale, decimals);
+		}
+		return pos;
+	}
+
+	/**
+	 * Formats a time as an ISO 8601 date and time in UTC with milliseconds,
+	 * e.g. {@code 2016-03-01T12:34:56.789Z}.
+	 * <p>
+	 * Times before the year 0 or after the year 9999 are not supported.
+	 *
+	 * @param millis The time in milliseconds since the epoch
+	 * @return The position after the last character written
+	 */
+	public static int formatIsoTime(char[] buf, int pos, long millis) {
+		long days = millis / MILLIS_PER_DAY;
+		long msOfDay = millis % MILLIS_PER_DAY;
+		if (msOfDay < 0) {
+			days--;
+			msOfDay += MILLIS_PER_DAY;
+		}
+
+		// civil date from days since the epoch (proleptic Gregorian calendar)
+		long z = days + 719468;
+		long era = ((z >= 0) ? z : (z - 146096)) / 146097;
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		long day = doy - (153 * mp + 2) / 5 + 1;
+		long month = (mp < 10) ? (mp + 3) : (mp - 9);
+		long year = yoe + era * 400 + ((month <= 2) ? 1 : 0);
+
+		pos = formatUnsigned(buf, pos, year, 4);
+		buf[pos++] = '-';
+		pos = formatUnsigned(buf, pos, month, 2);
+		buf[pos++] = '-';
+		pos = formatUnsigned(buf, pos, day, 2);
+		buf[pos++] = 'T';
+		pos = formatUnsigned(buf, pos, msOfDay / 3600000, 2);
+		buf[pos++] = ':';
+		pos = formatUnsigned(buf, pos, (msOfDay / 60000) % 60, 2);
+		buf[pos++] = ':';
+		pos = formatUnsigned(buf, pos, (msOfDay / 1000) % 60, 2);
+		buf[pos++] = '.';
+		pos = formatUnsigned(buf, pos, msOfDay % 1000, 3);
+		buf[pos++] = 'Z';
+		return pos;
+	}
+
+	/**
+	 * Copies a string.
+	 *
+	 * @return The position after the last character written
+	 */
+	public static int copy(char[] buf, int pos, String s) {
+		int len = s.length();
+		s.getChars(0, len, buf, pos);
+		return pos + len;
+	}
+
+	/**
+	 * Formats a non-negative integer, padded with leading zeros to a minimum number of digits.
+	 */
+	private static int formatUnsigned(char[] buf, int pos, long value, int minDigits) {
+		int digits = 1;
+		for (long v = value / 10; v != 0; v /= 10)
+			digits++;
+		if (digits < minDigits)
+			digits = minDigits;
+		int end = pos + digits;
+		for (int i = end - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + (value % 10));
+			value /= 10;
+		}
+		return end;
+	}
+}
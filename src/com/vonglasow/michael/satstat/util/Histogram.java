@@ -0,0 +1,261 @@
+package com.vonglasow.michael.satstat.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A histogram of non-negative integer values with a fixed number of buckets.
+ * <p>
+ * Buckets are laid out as in an HDR histogram: values below
+ * 2<sup>precisionBits</sup> each get their own bucket, above that every power
+ * of two is split into 2<sup>precisionBits - 1</sup> buckets of equal width.
+ * The relative error of any value reported by the histogram is therefore at
+ * most 2<sup>1 - precisionBits</sup>, regardless of the magnitude of the
+ * value, while the number of buckets grows only logarithmically with the
+ * maximum value. Values above the maximum are counted in the last bucket.
+ * <p>
+ * The memory used by a histogram is fixed at creation time, and recording a
+ * value is a constant-time operation which does not allocate any objects.
+ * Histograms with the same layout can be merged by adding up their buckets.
+ * Only non-empty buckets are serialized. Instances are not thread-safe.
+ */
+public class Histogram {
+	private final int precisionBits;
+	private final long maxValue;
+	private final int halfCount;
+	private final long[] counts;
+
+	private long totalCount = 0;
+	private long minValue = Long.MAX_VALUE;
+	private long maxRecorded = 0;
+	private double sum = 0;
+
+	/**
+	 * Creates a new histogram.
+	 *
+	 * @param maxValue The highest value to track accurately
+	 * @param precisionBits The number of significant bits per value, between 2 and 10
+	 */
+	public Histogram(long maxValue, int precisionBits) {
+		if ((precisionBits < 2) || (precisionBits > 10) || (maxValue < 1))
+			throw new IllegalArgumentException("Invalid histogram layout");
+		this.precisionBits = precisionBits;
+		this.maxValue = maxValue;
+		this.halfCount = 1 << (precisionBits - 1);
+		counts = new long[indexOf(maxValue) + 1];
+	}
+
+	/**
+	 * Records a value once. Negative values are recorded as zero.
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+
+	/**
+	 * Records a value multiple times. Negative values are recorded as zero.
+	 */
+	public void record(long value, long count) {
+		if (count <= 0)
+			return;
+		if (value < 0)
+			value = 0;
+		int index = indexOf(Math.min(value, maxValue));
+		counts[index] += count;
+		totalCount += count;
+		sum += (double) value * count;
+		if (value < minValue)
+			minValue = value;
+		if (value > maxRecorded)
+			maxRecorded = value;
+	}
+
+	/**
+	 * Adds all values recorded in another histogram to this one.
+	 *
+	 * @throws IllegalArgumentException if the histograms have different layouts
+	 */
+	public void merge(Histogram other) {
+		if (!hasSameLayout(other))
+			throw new IllegalArgumentException("Cannot merge histograms with different layouts");
+		if (other.totalCount == 0)
+			return;
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		totalCount += other.totalCount;
+		sum += other.sum;
+		minValue = Math.min(minValue, other.minValue);
+		maxRecorded = Math.max(maxRecorded, other.maxRecorded);
+	}
+
+	/**
+	 * Removes all values.
+	 */
+	public void clear() {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = 0;
+		totalCount = 0;
+		minValue = Long.MAX_VALUE;
+		maxRecorded = 0;
+		sum = 0;
+	}
+
+	/**
+	 * Whether another histogram has the same bucket layout as this one.
+	 */
+	public boolean hasSameLayout(Histogram other) {
+		return (other.precisionBits == precisionBits) && (other.maxValue == maxValue);
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Returns the lowest value recorded, or 0 if the histogram is empty.
+	 */
+	public long getMin() {
+		return (totalCount > 0) ? minValue : 0;
+	}
+
+	/**
+	 * Returns the highest value recorded, or 0 if the histogram is empty.
+	 */
+	public long getMax() {
+		return maxRecorded;
+	}
+
+	/**
+	 * Returns the mean of all values recorded, or {@code NaN} if the histogram is empty.
+	 */
+	public double getMean() {
+		return (totalCount > 0) ? sum / totalCount : Double.NaN;
+	}
+
+	/**
+	 * Returns the value at a given percentile.
+	 * <p>
+	 * The result is the highest value in the bucket which contains the
+	 * percentile, but no higher than the highest value recorded.
+	 *
+	 * @param percentile The percentile, between 0 and 100
+	 * @return The value, or 0 if the histogram is empty
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (totalCount == 0)
+			return 0;
+		long target = (long) Math.ceil(Math.max(0, Math.min(percentile, 100)) / 100 * totalCount);
+		if (target < 1)
+			target = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return Math.max(Math.min(getBucketUpperBound(i), maxRecorded), getMin());
+		}
+		return maxRecorded;
+	}
+
+	/**
+	 * Returns the number of buckets.
+	 */
+	public int getBucketCount() {
+		return counts.length;
+	}
+
+	/**
+	 * Returns the number of values in a bucket.
+	 */
+	public long getBucketValueCount(int index) {
+		return counts[index];
+	}
+
+	/**
+	 * Returns the lowest value which falls into a bucket.
+	 */
+	public long getBucketLowerBound(int index) {
+		if (index < 2 * halfCount)
+			return index;
+		int shift = index / halfCount - 1;
+		return (long) (index - shift * halfCount) << shift;
+	}
+
+	/**
+	 * Returns the highest value which falls into a bucket.
+	 */
+	public long getBucketUpperBound(int index) {
+		if (index == counts.length - 1)
+			return Long.MAX_VALUE;
+		return getBucketLowerBound(index + 1) - 1;
+	}
+
+	/**
+	 * Writes the histogram, including its layout.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(maxValue);
+		out.writeByte(precisionBits);
+		out.writeLong(totalCount);
+		out.writeLong(minValue);
+		out.writeLong(maxRecorded);
+		out.writeDouble(sum);
+		int nonEmpty = 0;
+		for (int i = 0; i < counts.length; i++)
+			if (counts[i] != 0)
+				nonEmpty++;
+		out.writeShort(nonEmpty);
+		for (int i = 0; i < counts.length; i++)
+			if (counts[i] != 0) {
+				out.writeShort(i);
+				out.writeLong(counts[i]);
+			}
+	}
+
+	/**
+	 * Reads a histogram written by {@link #writeTo(DataOutput)} and merges it into this one.
+	 *
+	 * @throws IOException if the data cannot be read or has a different layout
+	 */
+	public void mergeFrom(DataInput in) throws IOException {
+		long inMaxValue = in.readLong();
+		int inPrecisionBits = in.readByte();
+		if ((inMaxValue != maxValue) || (inPrecisionBits != precisionBits))
+			throw new IOException("Histogram layout mismatch");
+		long inTotalCount = in.readLong();
+		long inMinValue = in.readLong();
+		long inMaxRecorded = in.readLong();
+		double inSum = in.readDouble();
+		int nonEmpty = in.readUnsignedShort();
+		long check = 0;
+		for (int i = 0; i < nonEmpty; i++) {
+			int index = in.readUnsignedShort();
+			long count = in.readLong();
+			if ((index >= counts.length) || (count < 0))
+				throw new IOException("Invalid histogram bucket");
+			counts[index] += count;
+			check += count;
+		}
+		if (check != inTotalCount)
+			throw new IOException("Histogram count mismatch");
+		if (inTotalCount == 0)
+			return;
+		totalCount += inTotalCount;
+		sum += inSum;
+		minValue = Math.min(minValue, inMinValue);
+		maxRecorded = Math.max(maxRecorded, inMaxRecorded);
+	}
+
+	/**
+	 * Returns the index of the bucket for a value between 0 and {@link #maxValue}.
+	 */
+	private int indexOf(long value) {
+		if (value < 2 * halfCount)
+			return (int) value;
+		int shift = 64 - Long.numberOfLeadingZeros(value) - precisionBits;
+		return (int) (shift * halfCount + (value >>> shift));
+	}
+}
@@ -0,0 +1,129 @@
+package com.vonglasow.michael.satstat.util;
+
+/**
+ * A fast Fourier transform for real-valued input of a fixed size.
+ * <p>
+ * A real input of N samples is transformed by packing it into a complex
+ * sequence of N/2 samples (even samples as real parts, odd samples as
+ * imaginary parts), running an iterative radix-2 FFT on that and splitting
+ * the result into the N/2 + 1 bins of the real spectrum. This takes about
+ * half the work of a complex FFT of size N.
+ * <p>
+ * Twiddle factors and the bit reversal permutation are computed once, when
+ * the transform is created, and transforming does not allocate any objects.
+ * Instances are not thread-safe, as they use internal work buffers.
+ */
+public class RealFft {
+	private final int size;
+	private final int half;
+
+	/** cos(2πk/N) and sin(2πk/N) for k = 0 … N/2 - 1 */
+	private final float[] cos;
+	private final float[] sin;
+
+	/** Bit reversal permutation for the complex FFT of size N/2 */
+	private final int[] reversed;
+
+	/* Work buffers for the complex FFT */
+	private final float[] workRe;
+	private final float[] workIm;
+
+	/**
+	 * Creates a new transform.
+	 *
+	 * @param size The number of input samples, a power of two of at least 4
+	 */
+	public RealFft(int size) {
+		if ((size < 4) || (Integer.bitCount(size) != 1))
+			throw new IllegalArgumentException("FFT size must be a power of two of at least 4");
+		this.size = size;
+		half = size / 2;
+		cos = new float[half];
+		sin = new float[half];
+		for (int k = 0; k < half; k++) {
+			double phi = 2 * Math.PI * k / size;
+			cos[k] = (float) Math.cos(phi);
+			sin[k] = (float) Math.sin(phi);
+		}
+		reversed = new int[half];
+		int bits = Integer.numberOfTrailingZeros(half);
+		for (int i = 0; i < half; i++)
+			reversed[i] = Integer.reverse(i) >>> (32 - bits);
+		workRe = new float[half];
+		workIm = new float[half];
+	}
+
+	/**
+	 * Returns the number of input samples.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of frequency bins, N/2 + 1.
+	 */
+	public int getBinCount() {
+		return half + 1;
+	}
+
+	/**
+	 * Computes the spectrum of a real signal.
+	 * <p>
+	 * Bin k corresponds to a frequency of k / N times the sample rate. The
+	 * result is not scaled, i.e. bin 0 holds the sum of all input samples.
+	 *
+	 * @param input The input samples, at least N; not modified
+	 * @param re Receives the real parts of bins 0 to N/2
+	 * @param im Receives the imaginary parts of bins 0 to N/2
+	 */
+	public void forward(float[] input, float[] re, float[] im) {
+		// pack even and odd samples into a complex sequence, in bit-reversed order
+		for (int i = 0; i < half; i++) {
+			int j = reversed[i];
+			workRe[j] = input[2 * i];
+			workIm[j] = input[2 * i + 1];
+		}
+
+		// complex FFT of size N/2; exp(-2πik/len) is entry k * N/len of the table for N
+		for (int len = 2, stride = half; len <= half; len <<= 1, stride >>= 1) {
+			int step = len / 2;
+			for (int start = 0; start < half; start += len)
+				for (int k = 0; k < step; k++) {
+					float wr = cos[k * stride];
+					float wi = -sin[k * stride];
+					int a = start + k;
+					int b = a + step;
+					float tr = workRe[b] * wr - workIm[b] * wi;
+					float ti = workRe[b] * wi + workIm[b] * wr;
+					workRe[b] = workRe[a] - tr;
+					workIm[b] = workIm[a] - ti;
+					workRe[a] += tr;
+					workIm[a] += ti;
+				}
+		}
+
+		/*
+		 * Split into the spectrum of the real signal: with Z the spectrum of the
+		 * packed sequence, E = (Z[k] + conj(Z[M-k])) / 2 is the spectrum of the
+		 * even samples, O = (Z[k] - conj(Z[M-k])) / 2i that of the odd samples,
+		 * and X[k] = E + exp(-2πik/N) O.
+		 */
+		for (int k = 0; k <= half; k++) {
+			int k1 = (k == half) ? 0 : k;
+			int k2 = (k == 0) ? 0 : half - k;
+			float zr = workRe[k1];
+			float zi = workIm[k1];
+			float cr = workRe[k2];
+			float ci = -workIm[k2];
+			float er = (zr + cr) / 2;
+			float ei = (zi + ci) / 2;
+			float or = (zi - ci) / 2;
+			float oi = -(zr - cr) / 2;
+			float wr = (k == half) ? -1 : cos[k];
+			float wi = (k == half) ? 0 : -sin[k];
+			re[k] = er + or * wr - oi * wi;
+			im[k] = ei + or * wi + oi * wr;
+		}
+	}
+}
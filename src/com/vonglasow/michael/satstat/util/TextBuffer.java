@@ -0,0 +1,155 @@
+package com.vonglasow.michael.satstat.util;
+
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Composes text in a reusable {@code char[]}.
+ * <p>
+ * Call {@link #begin()}, then any of the {@code append} methods. Numbers
+ * are formatted with {@link CharFormatter}, so composing text does not
+ * allocate any objects, except for {@link #append(String)}, which needs a
+ * string in the first place, and for growing the buffer. Two buffers can
+ * be compared with {@link #contentEquals(TextBuffer)}, which allows
+ * callers to skip updates whose text has not changed.
+ * <p>
+ * Decimal numbers use the decimal separator of the default locale, like
+ * {@code String.format()}.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class TextBuffer implements CharSequence {
+	private static final int INITIAL_CAPACITY = 32;
+
+	/** Room needed for a decimal number, also enough for {@link Double#toString(double)} */
+	private static final int NUMBER_CAPACITY = CharFormatter.MAX_LONG_LENGTH + CharFormatter.MAX_DECIMALS + 2;
+
+	private final char decimalSeparator;
+
+	private char[] buf = new char[INITIAL_CAPACITY];
+	private int len = 0;
+
+	public TextBuffer() {
+		decimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+	}
+
+	/**
+	 * Starts composing a new text, discarding the current one.
+	 */
+	public TextBuffer begin() {
+		len = 0;
+		return this;
+	}
+
+	/**
+	 * Appends a decimal number with a fixed number of decimals.
+	 *
+	 * @param decimals The number of decimals, between 0 and {@link CharFormatter#MAX_DECIMALS}
+	 */
+	public TextBuffer appendFixed(double value, int decimals) {
+		ensureCapacity(NUMBER_CAPACITY);
+		int start = len;
+		len = CharFormatter.formatFixed(buf, len, value, decimals);
+		if (decimalSeparator != '.')
+			for (int i = start; i < len; i++)
+				if (buf[i] == '.')
+					buf[i] = decimalSeparator;
+		return this;
+	}
+
+	/**
+	 * Appends an integer.
+	 */
+	public TextBuffer appendLong(long value) {
+		ensureCapacity(CharFormatter.MAX_LONG_LENGTH);
+		len = CharFormatter.formatLong(buf, len, value);
+		return this;
+	}
+
+	/**
+	 * Appends a single character.
+	 */
+	public TextBuffer append(char c) {
+		ensureCapacity(1);
+		buf[len++] = c;
+		return this;
+	}
+
+	/**
+	 * Appends a string.
+	 */
+	public TextBuffer append(String s) {
+		ensureCapacity(s.length());
+		len = CharFormatter.copy(buf, len, s);
+		return this;
+	}
+
+	/**
+	 * Appends the text of another buffer.
+	 */
+	public TextBuffer append(TextBuffer other) {
+		ensureCapacity(other.len);
+		System.arraycopy(other.buf, 0, buf, len, other.len);
+		len += other.len;
+		return this;
+	}
+
+	/**
+	 * Whether this buffer holds the same text as another one.
+	 */
+	public boolean contentEquals(TextBuffer other) {
+		if (len != other.len)
+			return false;
+		for (int i = 0; i < len; i++)
+			if (buf[i] != other.buf[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the array holding the text, which starts at index 0 and is {@link #length()} characters long.
+	 * <p>
+	 * The array is replaced when the buffer grows, and its contents change
+	 * with the next call to {@link #begin()}.
+	 */
+	public char[] getChars() {
+		return buf;
+	}
+
+	@Override
+	public int length() {
+		return len;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index >= len)
+			throw new IndexOutOfBoundsException();
+		return buf[index];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (end > len)
+			throw new IndexOutOfBoundsException();
+		return new String(buf, start, end - start);
+	}
+
+	/**
+	 * Returns the text as a new string.
+	 */
+	@Override
+	public String toString() {
+		return new String(buf, 0, len);
+	}
+
+	/**
+	 * Makes sure the buffer has room for a number of additional characters.
+	 */
+	private void ensureCapacity(int extra) {
+		if (len + extra <= buf.length)
+			return;
+		char[] newBuf = new char[Math.max(buf.length * 2, len + extra)];
+		System.arraycopy(buf, 0, newBuf, 0, len);
+		buf = newBuf;
+	}
+}
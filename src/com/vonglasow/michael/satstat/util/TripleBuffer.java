@@ -0,0 +1,82 @@
+package com.vonglasow.michael.satstat.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Passes the latest value of a fixed number of floats from one thread to another.
+ * <p>
+ * The producer writes into a back buffer and swaps it with the middle one
+ * when done. The consumer swaps the middle buffer with its front buffer when
+ * a new value is available. Neither side ever blocks or allocates objects,
+ * and the consumer always sees the latest consistent value. Values which the
+ * consumer does not pick up in time are overwritten.
+ * <p>
+ * {@link #getBackBuffer()} and {@link #publish()} must only be called on
+ * one producer thread at a time, {@link #update()} and
+ * {@link #getFrontBuffer()} on one consumer thread at a time.
+ * <p>
+ * This class does not depend on any Android APIs.
+ */
+public class TripleBuffer {
+	/** Flag in {@link #middle} indicating that the middle buffer holds a value not yet seen by the consumer */
+	private static final int FLAG_NEW = 4;
+
+	private final float[][] buffers;
+	/** Index of the buffer written by the producer */
+	private int back = 0;
+	/** Index of the middle buffer, combined with {@link #FLAG_NEW} */
+	private final AtomicInteger middle = new AtomicInteger(1);
+	/** Index of the buffer read by the consumer */
+	private int front = 2;
+
+	/**
+	 * @param size The number of floats in each value
+	 */
+	public TripleBuffer(int size) {
+		buffers = new float[3][size];
+	}
+
+	/**
+	 * Returns the buffer into which the producer writes the next value.
+	 */
+	public float[] getBackBuffer() {
+		return buffers[back];
+	}
+
+	/**
+	 * Makes the value in the back buffer available to the consumer.
+	 */
+	public void publish() {
+		back = middle.getAndSet(back | FLAG_NEW) & ~FLAG_NEW;
+	}
+
+	/**
+	 * Whether a value has been published which the consumer has not picked up yet.
+	 * <p>
+	 * This method may be called on any thread.
+	 */
+	public boolean hasUpdate() {
+		return (middle.get() & FLAG_NEW) != 0;
+	}
+
+	/**
+	 * Picks up the latest published value, if any, into the front buffer.
+	 *
+	 * @return True if a new value was picked up, false if the front buffer is unchanged
+	 */
+	public boolean update() {
+		if (!hasUpdate())
+			return false;
+		front = middle.getAndSet(front) & ~FLAG_NEW;
+		return true;
+	}
+
+	/**
+	 * Returns the buffer holding the value last picked up by {@link #update()}.
+	 * <p>
+	 * Before the first successful call to {@link #update()}, all values are zero.
+	 */
+	public float[] getFrontBuffer() {
+		return buffers[front];
+	}
+}
@@ -23,54 +23,41 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.location.GpsSatellite;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.View;
 
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.data.SatelliteModel;
+
 /**
  * Displays the signal-to-noise ratio of the GPS satellites in a bar chart.
  */
 public class GpsSnrView extends View {
 	private final String TAG = "GpsSnrView";
 	
-	/**
-	 * The highest currently supported NMEA ID.
-	 */
-	private final int MAX_NMEA_ID = 235;
+	private GpsSnapshot mSats;
 
-	private Iterable<GpsSatellite> mSats;
+	/** Maps satellites to bar positions and provides grid lines. */
+	private final SatelliteModel mModel = new SatelliteModel();
 
 	private Paint activePaint;
 	private Paint inactivePaint;
 	private Paint gridPaint;
 	private Paint gridPaintStrong;
-	private Paint gridPaintNone;
 
 	//FIXME: should be DPI-dependent, this is OK for MDPI
 	private int gridStrokeWidth = 2;
 
 	/*
-	 * Which satellites to draw:
-	 * 1–32: GPS
-	 * 33–54: Various SBAS systems (EGNOS, WAAS, SDCM, GAGAN, MSAS) – some IDs still unused
-	 * 55–64: not used (might be assigned to further SBAS systems)
-	 * 65–88: GLONASS
-	 * 89–96: GLONASS (future extensions?)
-	 * 97–192: not used
-	 * 193–195: QZSS
-	 * 196–200: QZSS (future extensions?)
-	 * 201–235: Beidou
+	 * Grid lines as arrays of coordinates for Canvas.drawLines(), 4 per line.
+	 * They are rebuilt only when the view size or the satellite model changes.
 	 */
-	private boolean draw_1_32 = false;
-	private boolean draw_33_54 = false;
-	private boolean draw_55_64 = false;
-	private boolean draw_65_88 = false;
-	private boolean draw_89_96 = false;
-	private boolean draw_97_192 = false;
-	private boolean draw_193_195 = false;
-	private boolean draw_196_200 = false;
-	private boolean draw_201_235 = false;
+	private float[] gridLines = new float[0];
+	private int gridLineCount = 0;
+	private float[] gridLinesStrong = new float[0];
+	private int gridLineStrongCount = 0;
+	private boolean isGridValid = false;
 
 
 	/**
@@ -116,83 +103,69 @@ public class GpsSnrView extends View {
 
 		gridPaintStrong = new Paint(gridPaint);
 		gridPaintStrong.setColor(Color.parseColor("#FFFFFFFF"));
-
-		gridPaintNone = new Paint(gridPaint);
-		gridPaintNone.setColor(Color.parseColor("#00000000"));
 	}
 
 	/**
-	 * Draws the grid lines.
+	 * Rebuilds the cached grid lines from the satellite model and the current view size.
 	 */
-	private void drawGrid(Canvas canvas) {
+	private void buildGrid() {
 		//don't use Canvas.getWidth() and Canvas.getHeight() here, they may return incorrect values
 		int w = getWidth();
 		int h = getHeight();
+		int numBars = mModel.getBarCount();
+		int lineCount = mModel.getLineCount();
+		float half = (float) gridStrokeWidth / 2;
+
+		// left and right boundary and bottom line, plus the strongest case of one line per bar
+		if (gridLinesStrong.length < (lineCount + 3) * 4)
+			gridLinesStrong = new float[(lineCount + 3) * 4];
+		if (gridLines.length < lineCount * 4)
+			gridLines = new float[lineCount * 4];
+		gridLineCount = 0;
+		gridLineStrongCount = 0;
+
+		gridLineStrongCount = putLine(gridLinesStrong, gridLineStrongCount, half, 0, half, h);
 
-		// left boundary
-		canvas.drawLine((float) gridStrokeWidth / 2, 0, (float) gridStrokeWidth / 2, h, gridPaintStrong);
-		
 		// range boundaries and auxiliary lines (after every 4th satellite)
-		for (int nmeaID = 1; nmeaID < MAX_NMEA_ID; nmeaID++) {
-			int pos = getGridPos(nmeaID);
-			if (pos > 0) {
-				float x = (float) gridStrokeWidth / 2
-						+ pos * (w - gridStrokeWidth) / getNumBars();
-				Paint paint = gridPaintNone;
-				switch(nmeaID) {
-				case 32:
-				case 64:
-				case 96:
-				case 192:
-				case 200:
-				case 235:
-					paint = gridPaintStrong;
-					break;
-				case 54:
-					if (!draw_55_64)
-						paint = gridPaintStrong;
-					break;
-				case 88:
-					if (!draw_89_96)
-						paint = gridPaintStrong;
-					else
-						paint = gridPaint;
-					break;
-				case 195:
-					if (!draw_196_200)
-						paint = gridPaintStrong;
-				default:
-					if ((nmeaID % 4) == 0)
-						paint = gridPaint;
-					break;
-				}
-				canvas.drawLine(x, 0, x, h, paint);
-			}
+		for (int i = 0; i < lineCount; i++) {
+			float x = half + mModel.getLinePosition(i) * (w - gridStrokeWidth) / numBars;
+			if (mModel.getLineType(i) == SatelliteModel.LINE_STRONG)
+				gridLineStrongCount = putLine(gridLinesStrong, gridLineStrongCount, x, 0, x, h);
+			else
+				gridLineCount = putLine(gridLines, gridLineCount, x, 0, x, h);
 		}
-		
-		// right boundary
-		canvas.drawLine(w - (float) gridStrokeWidth / 2, h, w - (float) gridStrokeWidth / 2, 0, gridPaintStrong);
-		
-		// bottom line
-		canvas.drawLine(0, h - (float) gridStrokeWidth / 2, w, h - (float) gridStrokeWidth / 2, gridPaintStrong);
+
+		gridLineStrongCount = putLine(gridLinesStrong, gridLineStrongCount, w - half, h, w - half, 0);
+		gridLineStrongCount = putLine(gridLinesStrong, gridLineStrongCount, 0, h - half, w, h - half);
+		isGridValid = true;
 	}
-	
+
+	/**
+	 * Stores the coordinates of a line in an array and returns the new number of coordinates.
+	 */
+	private static int putLine(float[] lines, int count, float x0, float y0, float x1, float y1) {
+		lines[count++] = x0;
+		lines[count++] = y0;
+		lines[count++] = x1;
+		lines[count++] = y1;
+		return count;
+	}
+
 	/**
 	 * Draws the SNR bar for a satellite.
 	 * 
 	 * @param canvas The {@code Canvas} on which the SNR view will appear.
-	 * @param nmeaID The NMEA ID of the satellite, as returned by {@link android.location.GpsSatellite#getPrn()}.
+	 * @param pos The position of the bar, as returned by {@link SatelliteModel#getBarPosition(int)}.
 	 * @param snr The signal-to-noise ratio (SNR) for the satellite.
 	 * @param used Whether the satellite is used in the fix.
 	 */
-	private void drawSat(Canvas canvas, int nmeaID, float snr, boolean used) {
+	private void drawSat(Canvas canvas, int pos, float snr, boolean used) {
 		int w = getWidth();
 		int h = getHeight();
+		int numBars = mModel.getBarCount();
 
-		int i = getGridPos(nmeaID);
-
-		int x0 = (i - 1) * (w - gridStrokeWidth) / getNumBars() + gridStrokeWidth / 2;
-		int x1 = i * (w - gridStrokeWidth) / getNumBars() - gridStrokeWidth / 2;
+		int x0 = (pos - 1) * (w - gridStrokeWidth) / numBars + gridStrokeWidth / 2;
+		int x1 = pos * (w - gridStrokeWidth) / numBars - gridStrokeWidth / 2;
 
 		int y0 = h - gridStrokeWidth;
 		int y1 = (int) (y0 * (1 - Math.min(snr, 60) / 60));
@@ -200,165 +173,36 @@ public class GpsSnrView extends View {
 		canvas.drawRect(x0, y1, x1, h, used?activePaint:inactivePaint);
 	}
 
-	/**
-	 * Returns the position of the SNR bar for a satellite in the grid.
-	 * <p>
-	 * This function returns the position at which the SNR bar for the
-	 * satellite with the given {@code nmeaID} will appear in the grid, taking
-	 * into account the visibility of NMEA ID ranges.
-	 * 
-	 * @param nmeaID The NMEA ID of the satellite, as returned by {@link android.location.GpsSatellite#getPrn()}.
-	 * @return The position of the SNR bar in the grid. The position of the first visible bar is 1. If {@code nmeaID} falls within a hidden range, -1 is returned. 
-	 */
-	private int getGridPos(int nmeaID) {
-		if (nmeaID < 1) return -1;
-		
-		int skip = 0;
-		if (nmeaID > 32) {
-			if (!draw_1_32) skip+=32;
-			if (nmeaID > 54) {
-				if (!draw_33_54) skip+=22;
-				if (nmeaID > 64) {
-					if (!draw_55_64) skip+=10;
-					if (nmeaID > 88) {
-						if (!draw_65_88) skip+=24;
-						if (nmeaID > 96) {
-							if (!draw_89_96) skip+=8;
-							if (nmeaID > 192) {
-								if (!draw_97_192) skip+=96;
-								if (nmeaID > 195) {
-									if (!draw_193_195) skip+=3;
-									if (nmeaID > 200) {
-										if (nmeaID > MAX_NMEA_ID) return -1;
-										else if (!draw_201_235) return -1;
-										else if (!draw_196_200) skip+=5;
-									} else {
-										// 195 < nmeaID <= 200
-										if (!draw_196_200) return -1;
-									}
-								} else {
-									// 192 < nmeaID <= 195
-									if (!draw_193_195) return -1;
-								}
-							} else {
-								// 96 < nmeaID <= 192
-								if (!draw_97_192) return -1;
-							}
-						} else {
-							// 88 < nmeaID <= 96
-							if (!draw_89_96) return -1;
-						}
-					} else {
-						// 64 < nmeaID <= 88
-						if (!draw_65_88) return -1;
-					}
-				} else {
-					// 54 < nmeaID <= 64
-					if (!draw_55_64) return -1;
-				}
-			} else {
-				// 32 < nmeaID <= 54
-				if (!draw_33_54) return -1;
-			}
-		} else {
-			// nmeaID <= 32
-			if (!draw_1_32) return -1;
-		}
-		
-		return nmeaID - skip;
-	}
-	
-	/**
-	 * Returns the number of SNR bars to draw
-	 * 
-	 * The number of bars to draw varies depending on the systems supported by
-	 * the device. The most common numbers are 32 for a GPS-only receiver or 56
-	 * for a combined GPS/GLONASS receiver.
-	 * 
-	 * @return The number of bars to draw
-	 */
-	private int getNumBars() {
-		return (draw_1_32 ? 32 : 0) 
-				+ (draw_33_54 ? 22 : 0)
-				+ (draw_55_64 ? 10 : 0)
-				+ (draw_65_88 ? 24 : 0)
-				+ (draw_89_96 ? 8 : 0)
-				+ (draw_97_192 ? 96 : 0)
-				+ (draw_193_195 ? 3 : 0)
-				+ (draw_196_200 ? 5 : 0)
-				+ (draw_201_235 ? 35 : 0);
-	}
-
-	/**
-	 * Initializes the SNR grid.
-	 * <p>
-	 * This method iterates through {@link #mSats} to determine which ranges of
-	 * NMEA IDs will be drawn. 
-	 */
-	protected void initializeGrid() {
-		// iterate through list to find out how many bars to draw
-		if (mSats != null)
-			for (GpsSatellite sat : mSats) {
-				int prn = sat.getPrn();
-				if (prn < 1) {
-					Log.wtf(TAG, String.format("Got satellite with invalid NMEA ID %d", prn));
-				} else if (prn <= 32) {
-					draw_1_32 = true;
-				} else if (prn <= 54) {
-					draw_33_54 = true;
-				} else if (prn <= 64) {
-					// most likely an extended SBAS range, display the lower range, too
-					draw_33_54 = true;
-					draw_55_64 = true;
-				} else if (prn <= 88) {
-					draw_65_88 = true;
-				} else if (prn <= 96) {
-					// most likely an extended GLONASS range, display the lower range, too
-					draw_65_88 = true;
-					draw_89_96 = true;
-				} else if (prn <= 192) {
-					draw_97_192 = true; // TODO: do we really want to enable this huge 96-sat block?
-					Log.w(TAG, String.format("Got satellite with NMEA ID %d (from the huge unassigned 97-192 range)", prn));
-				} else if (prn <= 195) {
-					draw_193_195 = true;
-				} else if (prn <= 200) {
-					// most likely an extended QZSS range, display the lower range, too
-					draw_193_195 = true;
-					draw_196_200 = true;
-				} else if (prn <= 235) {
-					draw_201_235 = true;
-				} else {
-					Log.w(TAG, String.format("Got satellite with NMEA ID %d, possibly unsupported system", prn));
-				}
-			}
-		/*
-		 * If we didn't get any valid ranges, display at least the GPS range.
-		 * No need to check for extended ranges here - if they get drawn, so
-		 * will their corresponding base range.
-		 */
-		if (!(draw_1_32 || draw_33_54 || draw_65_88 || draw_97_192 || draw_193_195 || draw_201_235))
-			draw_1_32 = true;
-	}
-	
 	/**
 	 * Redraws the SNR view.
 	 * <p>
 	 * This method is called whenever the view needs to be redrawn. Besides the
 	 * usual cases of view creation/recreation, this also occurs when the
-	 * {@link #showSats(Iterable)} has been called to indicate new SNR data is
+	 * {@link #showSats(GpsSnapshot)} has been called to indicate new SNR data is
 	 * available.
 	 */
 	@Override
 	protected void onDraw(Canvas canvas) {
-		initializeGrid();
-		
+		if (!isGridValid)
+			buildGrid();
+
 		// draw the SNR bars
 		if (mSats != null)
-			for (GpsSatellite sat : mSats)
-				drawSat(canvas, sat.getPrn(), sat.getSnr(), sat.usedInFix());
+			for (int i = 0; i < mSats.getCount(); i++) {
+				int pos = mModel.getBarPosition(mSats.getPrn(i));
+				if (pos > 0)
+					drawSat(canvas, pos, mSats.getSnr(i), mSats.isUsedInFix(i));
+			}
 		
 		// draw the grid on top
-		drawGrid(canvas);
+		canvas.drawLines(gridLines, 0, gridLineCount, gridPaint);
+		canvas.drawLines(gridLinesStrong, 0, gridLineStrongCount, gridPaintStrong);
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		isGridValid = false;
 	}
 
 	@Override
@@ -371,12 +215,17 @@ public class GpsSnrView extends View {
 	 * Refreshes the SNR view with current data.
 	 * <p>
 	 * Call this method when new SNR data is available. It will update the SNR
-	 * view's internal list of {@code GpsSatellite}s and trigger a redraw.
+	 * view's internal satellite data and trigger a redraw.
 	 * 
-	 * @param sats A list of satellites currently in view.
+	 * @param sats A snapshot of the satellites currently in view.
 	 */
-	public void showSats(Iterable<GpsSatellite> sats) {
+	public void showSats(GpsSnapshot sats) {
 		mSats = sats;
+		if (mModel.update(sats)) {
+			isGridValid = false;
+			if (mModel.getUnsupportedCount() > 0)
+				Log.w(TAG, String.format("Got %d satellites with unsupported NMEA IDs", mModel.getUnsupportedCount()));
+		}
 		invalidate();
 	}
 }
@@ -20,23 +20,67 @@
 package com.vonglasow.michael.satstat.widgets;
 
 import com.vonglasow.michael.satstat.R;
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.util.Histogram;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.location.GpsSatellite;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.Choreographer;
 
+/**
+ * Displays satellites in a sky plot, together with a compass rose and a levelling bubble.
+ * <p>
+ * Orientation updates only store the new values; the view then applies them
+ * and redraws at most once per frame. The compass rose (rings, cross hairs
+ * and north arrow) is rendered once into an offscreen bitmap, which is
+ * rotated when drawn. Screen positions of satellites are calculated when new
+ * satellite data arrives, so drawing a frame does not allocate any objects
+ * and requires only a few trigonometric functions.
+ * <p>
+ * Draw times are recorded in a histogram, available through
+ * {@link #getDrawTimes()}, and logged when the view is detached from its
+ * window.
+ */
 public class GpsStatusView extends SquareView {
+	private static final String TAG = GpsStatusView.class.getSimpleName();
+
+	/** Relative radius of the outer ring. */
+	private static final float OUTER_SIZE = 0.405f;
+
+	/** Delay between redraws if Choreographer is not available, in milliseconds. */
+	private static final long FRAME_DELAY = 16;
+
+	/* Orientation as last reported, applied on the next frame */
 	private float mYaw = 0, mPitch = 0, mRoll = 0;
+	private boolean isOrientationDirty = false;
+	private boolean isFrameScheduled = false;
+
+	/* Orientation as currently drawn */
 	private float mRotation = 0;
+	private float mRotationSin = 0;
+	private float mRotationCos = 1;
+	private float mLevelX = 0, mLevelY = 0, mLevelRadius = 0;
+
 	private int mW = 0;
 	private int mH = 0;
-	private Iterable<GpsSatellite> mSats;
+	private GpsSnapshot mSats;
+
+	/* Screen positions of satellites, relative to the center and unrotated */
+	private int mSatCount = 0;
+	private float[] mSatX = new float[0];
+	private float[] mSatY = new float[0];
+	private float[] mSatRadius = new float[0];
+	private boolean[] mSatUsed = new boolean[0];
 	
 	private Paint activePaint;
 	private Paint inactivePaint;
@@ -45,16 +89,32 @@ public class GpsStatusView extends SquareView {
 	private Paint gridBorderPaint;
 	private Paint labelPaint;
 	private Paint levellingPaint;
+	private Paint compassPaint;
 	private Path northArrow = new Path();
-	private Path labelPathN = new Path();
-	private Path labelPathE = new Path();
-	private Path labelPathS = new Path();
-	private Path labelPathW = new Path();
 
+	/** The compass rose, rendered at the current size */
+	private Bitmap compassBitmap = null;
+
+	private String labelN;
+	private String labelE;
+	private String labelS;
+	private String labelW;
+	private float labelOffset;
 	
 	private int gridStrokeWidth;
 	private float snrScale;
 	private float density;
+
+	/** Draw times in microseconds */
+	private final Histogram drawTimes = new Histogram(1000000, 7);
+
+	private final Runnable frameRunnable = new Runnable() {
+		@Override
+		public void run() {
+			doFrame();
+		}
+	};
+	private Object frameCallback = null;
 	
 	// Compensation for display rotation. Use Surface.ROTATION_* as index (0, 90, 180, 270 deg).
 	@SuppressWarnings("boxing")
@@ -110,94 +170,61 @@ public class GpsStatusView extends SquareView {
 		labelPaint.setColor(Color.parseColor("#FFFF9800")); // Orange 500
 		labelPaint.setStyle(Paint.Style.FILL);
 		labelPaint.setTextAlign(Paint.Align.CENTER);
+
+		compassPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+		labelN = context.getString(R.string.value_N);
+		labelE = context.getString(R.string.value_E);
+		labelS = context.getString(R.string.value_S);
+		labelW = context.getString(R.string.value_W);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			frameCallback = new FrameCallback();
 	}
-	
-	/*
-	 * Draws a satellite in the sky grid.
-	 */
-	private void drawSat(Canvas canvas, int prn, float azimuth, float elevation, float snr, boolean used) {
 
-		float r = (90 - elevation) * mW * 0.9f / 200;
-		float x = (float) (r * Math.sin(azimuth * Math.PI / 180));
-		float y = (float) -(r * Math.cos(azimuth * Math.PI / 180));
-		
-		canvas.drawCircle(x, y, snr * snrScale, used?activePaint:inactivePaint);
+	/**
+	 * Draws a compass label, keeping the text upright on screen.
+	 * 
+	 * @param x The X coordinate of the label position on the unrotated compass rose
+	 * @param y The Y coordinate of the label position on the unrotated compass rose
+	 */
+	private void drawLabel(Canvas canvas, String label, float x, float y) {
+		float sx = x * mRotationCos + y * mRotationSin;
+		float sy = y * mRotationCos - x * mRotationSin;
+		canvas.drawText(label, sx, sy + labelOffset, labelPaint);
 	}
 	
 	@Override
 	protected void onDraw(Canvas canvas) {
-		final float outerSize = 0.405f;
-		int cx = mW / 2;
-		int cy = mH / 2;
-		float levelX = mRoll / 90, levelY = mPitch / 90;
-		float levelDistance, levelAngle;
+		long start = System.nanoTime();
+		float labelPos = mH * 0.4275f;
 
 		//Log.d("GpsStatusView", String.format("Drawing on a %dx%d canvas", w, h));
 
-		canvas.translate(cx, cy);
+		canvas.save();
+		canvas.translate(mW / 2, mH / 2);
 
 		// Draw levelling circle in the background
-		if (levelY > 1)
-			levelY = 2 - levelY;
-		if (levelY < -1)
-			levelY = -2 - levelY;
-		levelDistance = (float) Math.min(Math.sqrt(levelX * levelX + levelY * levelY), 1);
-		if (levelX == 0) {
-			// Quite improbable, but...
-			if (levelY > 0)
-				levelAngle = (float)Math.PI / 2f;
-			else
-				levelAngle = (float)Math.PI * 3f / 2f;
-		} else {
-			levelAngle = (float) Math.atan(levelY / levelX);
-			if (levelX < 0)
-				levelAngle += Math.PI;
-			else if (levelY < 0)
-				levelAngle += Math.PI * 2;
-		}
-
-		levellingPaint.setAlpha(
-			(int)(16.0f + 80.0f * Math.pow(
-				Math.max(1 - levelDistance, 1 - Math.min(Math.abs(levelY), Math.abs(levelX))), 3)
-			)
-		);
-		canvas.drawCircle(
-			levelDistance * (float)Math.cos(levelAngle) * mW * outerSize / 6f * 5f,
-			levelDistance * (float)Math.sin(levelAngle) * mW * outerSize / 6f * 5f,
-			mW * outerSize / 3f * (0.5f + (1 - levelDistance) * 0.5f), levellingPaint
-		);
+		canvas.drawCircle(mLevelX, mLevelY, mLevelRadius, levellingPaint);
 
 		// Draw the rest of the compass...
+		canvas.save();
 		canvas.rotate(-mRotation);
+		if (compassBitmap != null)
+			canvas.drawBitmap(compassBitmap, -mW / 2, -mH / 2, compassPaint);
+		canvas.restore();
 
-		canvas.drawCircle(0, 0, mW * outerSize / 1.091f, gridBorderPaint);
-
-		canvas.drawLine(-mW * outerSize, 0, mW * outerSize, 0, gridPaint);
-		canvas.drawLine(0, -mH * outerSize, 0, mH * outerSize, gridPaint);
+		drawLabel(canvas, labelN, 0, -labelPos);
+		drawLabel(canvas, labelS, 0, labelPos);
+		drawLabel(canvas, labelE, labelPos, 0);
+		drawLabel(canvas, labelW, -labelPos, 0);
 
-		canvas.drawCircle(0,  0,  mW * outerSize, gridPaint);
-		canvas.drawCircle(0,  0,  mW * outerSize / 1.5f, gridPaint);
-		canvas.drawCircle(0,  0,  mW * outerSize / 3f, gridPaint);
-		
-		canvas.drawPath(northArrow, northPaint);
-		
-		canvas.drawTextOnPath(((Activity) getContext()).getString(R.string.value_N),
-				labelPathN, 0, -labelPaint.descent(), labelPaint);
-
-		canvas.drawTextOnPath(((Activity) getContext()).getString(R.string.value_S),
-				labelPathS, 0, -labelPaint.descent(), labelPaint);
-
-		canvas.drawTextOnPath(((Activity) getContext()).getString(R.string.value_E),
-				labelPathE, 0, -labelPaint.descent(), labelPaint);
-
-		canvas.drawTextOnPath(((Activity) getContext()).getString(R.string.value_W),
-				labelPathW, 0, -labelPaint.descent(), labelPaint);
+		canvas.rotate(-mRotation);
+		for (int i = 0; i < mSatCount; i++)
+			canvas.drawCircle(mSatX[i], mSatY[i], mSatRadius[i], mSatUsed[i]?activePaint:inactivePaint);
+		canvas.restore();
 
-		if (mSats != null) {
-			for (GpsSatellite sat : mSats) {
-				drawSat(canvas, sat.getPrn(), sat.getAzimuth(), sat.getElevation(), sat.getSnr(), sat.usedInFix());
-			}
-		}
+		drawTimes.record((System.nanoTime() - start) / 1000);
 	}
 	
 	@Override
@@ -205,8 +232,35 @@ public class GpsStatusView extends SquareView {
 		mW = w;
 		mH = h;
 		refreshGeometries();
+		updateSats();
+		updateLevel();
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		cancelFrame();
+		if (drawTimes.getTotalCount() > 0)
+			Log.d(TAG, String.format("Drew %d frames, median %d us, 90%% %d us, 99%% %d us, max %d us",
+					drawTimes.getTotalCount(),
+					drawTimes.getValueAtPercentile(50),
+					drawTimes.getValueAtPercentile(90),
+					drawTimes.getValueAtPercentile(99),
+					drawTimes.getMax()));
+	}
+
+	/**
+	 * Returns the time taken by each call to {@link #onDraw(Canvas)}, in microseconds.
+	 */
+	public Histogram getDrawTimes() {
+		return drawTimes;
 	}
 	
+	/**
+	 * Recalculates all size-dependent geometries and renders the compass rose.
+	 * <p>
+	 * This needs to be called only when the size of the view changes.
+	 */
 	public void refreshGeometries() {
 		gridBorderPaint.setStrokeWidth(mW * 0.0625f);
 		
@@ -219,41 +273,156 @@ public class GpsStatusView extends SquareView {
 		northArrow.close();
 
 		labelPaint.setTextSize(mH * 0.045f);
+		labelOffset = mW * 0.0275f - labelPaint.descent();
+
+		if (compassBitmap != null) {
+			compassBitmap.recycle();
+			compassBitmap = null;
+		}
+		if ((mW <= 0) || (mH <= 0))
+			return;
+		compassBitmap = Bitmap.createBitmap(mW, mH, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(compassBitmap);
+		canvas.translate(mW / 2, mH / 2);
+
+		canvas.drawCircle(0, 0, mW * OUTER_SIZE / 1.091f, gridBorderPaint);
+
+		canvas.drawLine(-mW * OUTER_SIZE, 0, mW * OUTER_SIZE, 0, gridPaint);
+		canvas.drawLine(0, -mH * OUTER_SIZE, 0, mH * OUTER_SIZE, gridPaint);
+
+		canvas.drawCircle(0,  0,  mW * OUTER_SIZE, gridPaint);
+		canvas.drawCircle(0,  0,  mW * OUTER_SIZE / 1.5f, gridPaint);
+		canvas.drawCircle(0,  0,  mW * OUTER_SIZE / 3f, gridPaint);
 		
-		float offsetX = mW * 0.0275f * (float) Math.cos(Math.toRadians(mRotation + 90));
-		float offsetY = mW * 0.0275f * (float) Math.sin(Math.toRadians(mRotation + 90));
-		float relX = mW * (float) Math.cos(Math.toRadians(mRotation));
-		float relY = mH * (float) Math.sin(Math.toRadians(mRotation));
-		
-		labelPathN.reset();
-		labelPathN.moveTo(offsetX - relX, - mH * 0.4275f + offsetY - relY);
-		labelPathN.rLineTo(2 * relX, 2 * relY);
-		
-		labelPathE.reset();
-		labelPathE.moveTo(mW * 0.4275f + offsetX - relX, offsetY - relY);
-		labelPathE.rLineTo(2 * relX, 2 * relY);
-		
-		labelPathS.reset();
-		labelPathS.moveTo(offsetX - relX, mH * 0.4275f + offsetY - relY);
-		labelPathS.rLineTo(2 * relX, 2 * relY);
-		
-		labelPathW.reset();
-		labelPathW.moveTo(- mW * 0.4275f + offsetX - relX, offsetY - relY);
-		labelPathW.rLineTo(2 * relX, 2 * relY);
+		canvas.drawPath(northArrow, northPaint);
+	}
+
+	/**
+	 * Applies the last orientation reported and requests a redraw.
+	 */
+	private void doFrame() {
+		isFrameScheduled = false;
+		if (isOrientationDirty) {
+			isOrientationDirty = false;
+			mRotation = mYaw + zeroYaw[((Activity) getContext()).getWindowManager().getDefaultDisplay().getRotation()];
+			double rad = Math.toRadians(mRotation);
+			mRotationSin = (float) Math.sin(rad);
+			mRotationCos = (float) Math.cos(rad);
+			updateLevel();
+		}
+		invalidate();
+	}
+
+	/**
+	 * Schedules {@link #doFrame()} for the next frame, unless it is already scheduled.
+	 */
+	private void scheduleFrame() {
+		if (isFrameScheduled)
+			return;
+		isFrameScheduled = true;
+		if (frameCallback != null)
+			((FrameCallback) frameCallback).post();
+		else
+			postDelayed(frameRunnable, FRAME_DELAY);
+	}
+
+	/**
+	 * Cancels a scheduled call to {@link #doFrame()}.
+	 */
+	private void cancelFrame() {
+		if (!isFrameScheduled)
+			return;
+		isFrameScheduled = false;
+		if (frameCallback != null)
+			((FrameCallback) frameCallback).remove();
+		else
+			removeCallbacks(frameRunnable);
 	}
 	
+	/**
+	 * Sets the device orientation.
+	 * <p>
+	 * Orientation sensors report values far more often than the display is
+	 * refreshed. This method only stores the values; they are applied, and
+	 * the view is redrawn, once per frame.
+	 */
 	public void setOrientation(float yaw, float pitch, float roll) {
 		mYaw = yaw;
-		mRotation = mYaw + zeroYaw[((Activity) getContext()).getWindowManager().getDefaultDisplay().getRotation()];
-
 		mPitch = pitch;
 		mRoll = roll;
-		refreshGeometries();
-		invalidate();
+		isOrientationDirty = true;
+		scheduleFrame();
 	}
 	
-	public void showSats(Iterable<GpsSatellite> sats) {
+	public void showSats(GpsSnapshot sats) {
 		mSats = sats;
+		updateSats();
 		invalidate();
 	}
+
+	/**
+	 * Calculates position, size and alpha of the levelling bubble from pitch and roll.
+	 */
+	private void updateLevel() {
+		float levelX = mRoll / 90, levelY = mPitch / 90;
+		if (levelY > 1)
+			levelY = 2 - levelY;
+		if (levelY < -1)
+			levelY = -2 - levelY;
+		float length = (float) Math.sqrt(levelX * levelX + levelY * levelY);
+		float levelDistance = Math.min(length, 1);
+
+		float alphaBase = Math.max(1 - levelDistance, 1 - Math.min(Math.abs(levelY), Math.abs(levelX)));
+		levellingPaint.setAlpha((int)(16.0f + 80.0f * alphaBase * alphaBase * alphaBase));
+
+		// scale the bubble offset to the outer ring if it falls outside
+		float scale = mW * OUTER_SIZE / 6f * 5f;
+		if (length > 1)
+			scale /= length;
+		mLevelX = levelX * scale;
+		mLevelY = levelY * scale;
+		mLevelRadius = mW * OUTER_SIZE / 3f * (0.5f + (1 - levelDistance) * 0.5f);
+	}
+
+	/**
+	 * Calculates the positions of all satellites in the sky plot.
+	 */
+	private void updateSats() {
+		mSatCount = (mSats != null) ? mSats.getCount() : 0;
+		if (mSatX.length < mSatCount) {
+			mSatX = new float[mSatCount];
+			mSatY = new float[mSatCount];
+			mSatRadius = new float[mSatCount];
+			mSatUsed = new boolean[mSatCount];
+		}
+		for (int i = 0; i < mSatCount; i++) {
+			float r = (90 - mSats.getElevation(i)) * mW * 0.9f / 200;
+			double azimuth = Math.toRadians(mSats.getAzimuth(i));
+			mSatX[i] = (float) (r * Math.sin(azimuth));
+			mSatY[i] = (float) -(r * Math.cos(azimuth));
+			mSatRadius[i] = mSats.getSnr(i) * snrScale;
+			mSatUsed[i] = mSats.isUsedInFix(i);
+		}
+	}
+
+	/**
+	 * Runs {@link #doFrame()} on the next display frame through {@link Choreographer}.
+	 * <p>
+	 * This is a separate class so that it is loaded only on devices which support it.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private class FrameCallback implements Choreographer.FrameCallback {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			GpsStatusView.this.doFrame();
+		}
+
+		void post() {
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+
+		void remove() {
+			Choreographer.getInstance().removeFrameCallback(this);
+		}
+	}
 }
@@ -8,6 +8,9 @@ import android.location.LocationManager;
 import android.preference.MultiSelectListPreference;
 import android.util.AttributeSet;
 
+import com.vonglasow.michael.satstat.location.PositionFilter;
+import com.vonglasow.michael.satstat.location.RadioPositionEstimator;
+
 public class LocProviderPreference extends MultiSelectListPreference {
 
 	private Context mContext;
@@ -37,6 +40,10 @@ public class LocProviderPreference extends MultiSelectListPreference {
 				entries.add(pr);
 				values.add(pr);
 			}
+			entries.add(RadioPositionEstimator.PROVIDER);
+			values.add(RadioPositionEstimator.PROVIDER);
+			entries.add(PositionFilter.PROVIDER);
+			values.add(PositionFilter.PROVIDER);
 			
 			setEntries(entries.toArray(new CharSequence[]{}));
 			setEntryValues(values.toArray(new CharSequence[]{}));
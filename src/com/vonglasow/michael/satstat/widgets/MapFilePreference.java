@@ -0,0 +1,80 @@
+package com.vonglasow.michael.satstat.widgets;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.preference.ListPreference;
+import android.util.AttributeSet;
+
+import com.vonglasow.michael.satstat.R;
+
+/**
+ * Lets the user choose between online map tiles and one of the offline maps on the device.
+ * <p>
+ * Offline maps are mapsforge {@code .map} files in the {@link #MAP_DIR} subdirectory of the external files
+ * directory of the app. The value of the preference is the absolute path of the map file, or an empty string for
+ * online tiles.
+ */
+public class MapFilePreference extends ListPreference {
+	/**
+	 * The directory for offline maps, relative to the external files directory.
+	 */
+	public static final String MAP_DIR = "maps";
+
+	private static final String MAP_EXTENSION = ".map";
+
+	private Context mContext;
+
+	public MapFilePreference(Context context) {
+		super(context);
+		mContext = context;
+		updateMapFiles();
+	}
+
+	public MapFilePreference(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		mContext = context;
+		updateMapFiles();
+	}
+
+	/**
+	 * Regenerates the list of selectable map files.
+	 * <p>
+	 * If there are no map files, the summary tells the user where to put them.
+	 */
+	public void updateMapFiles() {
+		List<CharSequence> entries = new ArrayList<CharSequence>();
+		List<CharSequence> values = new ArrayList<CharSequence>();
+		entries.add(mContext.getString(R.string.pref_map_file_online));
+		values.add("");
+
+		File dir = mContext.getExternalFilesDir(MAP_DIR);
+		File[] files = null;
+		if (dir != null)
+			files = dir.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String filename) {
+					return filename.endsWith(MAP_EXTENSION);
+				}
+			});
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				String name = file.getName();
+				entries.add(name.substring(0, name.length() - MAP_EXTENSION.length()));
+				values.add(file.getAbsolutePath());
+			}
+		}
+
+		setEntries(entries.toArray(new CharSequence[]{}));
+		setEntryValues(values.toArray(new CharSequence[]{}));
+		if ((entries.size() == 1) && (dir != null))
+			setSummary(mContext.getString(R.string.pref_map_file_none, dir.getAbsolutePath()));
+		else
+			setSummary("%s");
+	}
+}
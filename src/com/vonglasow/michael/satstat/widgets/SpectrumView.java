@@ -0,0 +1,164 @@
+package com.vonglasow.michael.satstat.widgets;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.vonglasow.michael.satstat.sensor.SpectrumAnalyzer;
+
+/**
+ * Displays a vibration spectrum as a line chart.
+ * <p>
+ * The horizontal axis spans frequencies from 0 to half the sample rate,
+ * the vertical axis amplitudes from 0 to a full scale which follows the
+ * highest amplitude: it rises immediately and decays slowly, so that the
+ * chart does not jump around with every update. Band edges are shown as
+ * vertical grid lines.
+ * <p>
+ * Coordinates are computed into preallocated arrays, so drawing does not
+ * allocate any objects.
+ */
+public class SpectrumView extends View {
+	/** Lowest full scale, in m/s² */
+	private static final float MIN_SCALE = 0.05f;
+
+	/** Factor by which the full scale decays per update */
+	private static final float SCALE_DECAY = 0.95f;
+
+	private SpectrumAnalyzer.Spectrum mSpectrum = null;
+	private float[] mBandEdges = new float[0];
+	private float mScale = MIN_SCALE;
+
+	private Paint linePaint;
+	private Paint gridPaint;
+	private Paint gridPaintStrong;
+	private float gridStrokeWidth;
+
+	/* Coordinates for Canvas.drawLines(), 4 per line */
+	private float[] lines = new float[0];
+	private float[] gridLines = new float[0];
+
+
+	public SpectrumView(Context context) {
+		super(context);
+		doInit();
+	}
+
+	public SpectrumView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		doInit();
+	}
+
+	public SpectrumView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+		doInit();
+	}
+
+	private void doInit() {
+		// 2 px at MDPI
+		gridStrokeWidth = Math.max(2 * getResources().getDisplayMetrics().density, 1);
+
+		linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		linePaint.setColor(Color.parseColor("#FF80CBC4")); // Teal 200
+		linePaint.setStyle(Paint.Style.STROKE);
+		linePaint.setStrokeWidth(gridStrokeWidth);
+
+		gridPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+		gridPaint.setColor(Color.parseColor("#FF424242")); // Gray 800
+		gridPaint.setStyle(Paint.Style.STROKE);
+		gridPaint.setStrokeWidth(gridStrokeWidth);
+
+		gridPaintStrong = new Paint(gridPaint);
+		gridPaintStrong.setColor(Color.parseColor("#FFFFFFFF"));
+	}
+
+	/**
+	 * Sets the edges of the frequency bands, which are drawn as grid lines.
+	 *
+	 * @param bandEdges Band edges in Hz
+	 */
+	public void setBandEdges(float[] bandEdges) {
+		mBandEdges = bandEdges.clone();
+		invalidate();
+	}
+
+	/**
+	 * Refreshes the view with a new spectrum.
+	 * <p>
+	 * The view keeps a reference to {@code spectrum} and uses it each time it
+	 * is redrawn, therefore the spectrum must only be modified on the UI thread.
+	 *
+	 * @param spectrum The spectrum, or null to clear the view
+	 */
+	public void showSpectrum(SpectrumAnalyzer.Spectrum spectrum) {
+		mSpectrum = spectrum;
+		if ((spectrum != null) && spectrum.isValid())
+			mScale = Math.max(MIN_SCALE, Math.max(spectrum.getMaxAmplitude(), mScale * SCALE_DECAY));
+		invalidate();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		//don't use Canvas.getWidth() and Canvas.getHeight() here, they may return incorrect values
+		int w = getWidth();
+		int h = getHeight();
+		float half = gridStrokeWidth / 2;
+
+		if ((mSpectrum != null) && mSpectrum.isValid()) {
+			int bins = mSpectrum.getBinCount();
+			float maxFrequency = mSpectrum.getFrequency(bins - 1);
+
+			if (gridLines.length < mBandEdges.length * 4)
+				gridLines = new float[mBandEdges.length * 4];
+			int gridCount = 0;
+			for (int i = 0; i < mBandEdges.length; i++) {
+				if ((mBandEdges[i] <= 0) || (mBandEdges[i] >= maxFrequency))
+					continue;
+				float x = half + mBandEdges[i] / maxFrequency * (w - gridStrokeWidth);
+				gridLines[gridCount++] = x;
+				gridLines[gridCount++] = 0;
+				gridLines[gridCount++] = x;
+				gridLines[gridCount++] = h;
+			}
+			canvas.drawLines(gridLines, 0, gridCount, gridPaint);
+
+			// one segment between each pair of adjacent bins, skipping the DC bin
+			if (lines.length < (bins - 2) * 4)
+				lines = new float[(bins - 2) * 4];
+			float y0 = h - gridStrokeWidth;
+			int count = 0;
+			float px = 0;
+			float py = 0;
+			for (int k = 1; k < bins; k++) {
+				float x = half + (float) k / (bins - 1) * (w - gridStrokeWidth);
+				float y = y0 * (1 - Math.min(mSpectrum.getAmplitude(k), mScale) / mScale);
+				if (k > 1) {
+					lines[count++] = px;
+					lines[count++] = py;
+					lines[count++] = x;
+					lines[count++] = y;
+				}
+				px = x;
+				py = y;
+			}
+			canvas.drawLines(lines, 0, count, linePaint);
+		}
+
+		// frame
+		canvas.drawLine(half, 0, half, h, gridPaintStrong);
+		canvas.drawLine(w - half, 0, w - half, h, gridPaintStrong);
+		canvas.drawLine(0, h - half, w, h - half, gridPaintStrong);
+	}
+
+	@Override
+	protected void onMeasure (int widthMeasureSpec, int heightMeasureSpec) {
+		int mHeight = (int) (MeasureSpec.getSize(widthMeasureSpec) * 0.3f);
+		// inside a ScrollView the height is unspecified
+		if (MeasureSpec.getMode(heightMeasureSpec) != MeasureSpec.UNSPECIFIED)
+			mHeight = Math.min(mHeight, MeasureSpec.getSize(heightMeasureSpec));
+		setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec), mHeight);
+	}
+}
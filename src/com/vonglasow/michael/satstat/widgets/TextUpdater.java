@@ -0,0 +1,133 @@
+package com.vonglasow.michael.satstat.widgets;
+
+import android.widget.TextView;
+
+import com.vonglasow.michael.satstat.util.CharFormatter;
+import com.vonglasow.michael.satstat.util.TextBuffer;
+
+/**
+ * Updates the text and color of a {@link TextView} only when they actually change.
+ * <p>
+ * Text is composed in a reusable {@link TextBuffer}: call {@link #begin()},
+ * then any of the {@code append} methods, then {@link #commit()}, which
+ * passes the text to the view through
+ * {@link TextView#setText(char[], int, int)} only if it differs from the
+ * text currently shown. Composing and comparing text does not allocate any
+ * objects, except for {@link #append(String)}, which needs a string in the
+ * first place.
+ * <p>
+ * {@code TextView} keeps a reference to the array passed to it. Therefore
+ * two buffers are used: one holds the text shown, the other one the text
+ * being composed, and they are swapped when the view is updated.
+ * <p>
+ * Decimal numbers use the decimal separator of the default locale, like
+ * {@code String.format()}.
+ */
+public class TextUpdater {
+	private final TextView view;
+
+	private TextBuffer buf = new TextBuffer();
+	private TextBuffer shown = new TextBuffer();
+	/** Whether {@link #shown} holds the text of the view */
+	private boolean isShown = false;
+	private int color = 0;
+	private boolean hasColor = false;
+
+	public TextUpdater(TextView view) {
+		this.view = view;
+	}
+
+	/**
+	 * Returns the view which is updated.
+	 */
+	public TextView getView() {
+		return view;
+	}
+
+	/**
+	 * Starts composing a new text.
+	 */
+	public TextUpdater begin() {
+		buf.begin();
+		return this;
+	}
+
+	/**
+	 * Appends a decimal number with a fixed number of decimals.
+	 *
+	 * @param decimals The number of decimals, between 0 and {@link CharFormatter#MAX_DECIMALS}
+	 */
+	public TextUpdater appendFixed(double value, int decimals) {
+		buf.appendFixed(value, decimals);
+		return this;
+	}
+
+	/**
+	 * Appends an integer.
+	 */
+	public TextUpdater appendLong(long value) {
+		buf.appendLong(value);
+		return this;
+	}
+
+	/**
+	 * Appends a single character.
+	 */
+	public TextUpdater append(char c) {
+		buf.append(c);
+		return this;
+	}
+
+	/**
+	 * Appends a string.
+	 */
+	public TextUpdater append(String s) {
+		buf.append(s);
+		return this;
+	}
+
+	/**
+	 * Shows the text composed since the last call to {@link #begin()}, unless it is already shown.
+	 *
+	 * @return Whether the view was updated
+	 */
+	public boolean commit() {
+		if (isShown && buf.contentEquals(shown))
+			return false;
+		TextBuffer tmp = shown;
+		shown = buf;
+		isShown = true;
+		buf = tmp;
+		view.setText(shown.getChars(), 0, shown.length());
+		return true;
+	}
+
+	/**
+	 * Shows a decimal number with a fixed number of decimals.
+	 *
+	 * @return Whether the view was updated
+	 */
+	public boolean setFixed(double value, int decimals) {
+		return begin().appendFixed(value, decimals).commit();
+	}
+
+	/**
+	 * Shows a string.
+	 *
+	 * @return Whether the view was updated
+	 */
+	public boolean setText(String s) {
+		return begin().append(s).commit();
+	}
+
+	/**
+	 * Sets the text color of the view, unless it is already set.
+	 */
+	public void setTextColor(int color) {
+		if (hasColor && (this.color == color))
+			return;
+		this.color = color;
+		hasColor = true;
+		view.setTextColor(color);
+	}
+}
@@ -0,0 +1,80 @@
+package com.vonglasow.michael.satstat.widgets;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.ListPreference;
+import android.preference.PreferenceManager;
+import android.util.AttributeSet;
+import android.util.Log;
+
+import com.vonglasow.michael.satstat.R;
+import com.vonglasow.michael.satstat.SettingsActivity;
+import com.vonglasow.michael.satstat.mapsforge.TileSourceRegistry;
+import com.vonglasow.michael.satstat.mapsforge.UrlTemplateTileSource;
+
+/**
+ * Lets the user choose the tile source for online maps.
+ * <p>
+ * Choices are the built-in tile sources of {@link TileSourceRegistry} and, if the user has entered a URL template
+ * in {@link SettingsActivity#KEY_PREF_MAP_SOURCE_URL}, a custom tile source. The value of the preference is the
+ * identifier of the tile source.
+ */
+public class TileSourcePreference extends ListPreference {
+	private static final String TAG = TileSourcePreference.class.getSimpleName();
+
+	private Context mContext;
+
+	public TileSourcePreference(Context context) {
+		super(context);
+		mContext = context;
+		updateTileSources();
+	}
+
+	public TileSourcePreference(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		mContext = context;
+		updateTileSources();
+	}
+
+	/**
+	 * Creates a registry with the built-in tile sources and the custom tile source, if one has been set.
+	 *
+	 * Custom URL templates containing {s} are given the subdomains a, b and c, which is what most tile servers use.
+	 */
+	public static TileSourceRegistry createRegistry(Context context, SharedPreferences sharedPreferences) {
+		TileSourceRegistry registry = new TileSourceRegistry();
+		String template = sharedPreferences.getString(SettingsActivity.KEY_PREF_MAP_SOURCE_URL, "").trim();
+		if (template.length() > 0)
+			try {
+				UrlTemplateTileSource source = new UrlTemplateTileSource(TileSourceRegistry.CUSTOM_SOURCE, template)
+						.setName(context.getString(R.string.pref_map_source_custom))
+						.setAttribution(Uri.parse(template).getHost());
+				if (template.contains("{s}"))
+					source.setSubdomains("a", "b", "c");
+				registry.register(source);
+			} catch (IllegalArgumentException e) {
+				Log.w(TAG, e.getMessage());
+			}
+		return registry;
+	}
+
+	/**
+	 * Regenerates the list of selectable tile sources, e.g. after the custom URL template has changed.
+	 */
+	public void updateTileSources() {
+		List<UrlTemplateTileSource> sources = createRegistry(mContext,
+				PreferenceManager.getDefaultSharedPreferences(mContext)).getSources();
+		CharSequence[] entries = new CharSequence[sources.size()];
+		CharSequence[] values = new CharSequence[sources.size()];
+		for (int i = 0; i < sources.size(); i++) {
+			entries[i] = sources.get(i).getName();
+			values[i] = sources.get(i).getId();
+		}
+		setEntries(entries);
+		setEntryValues(values);
+		setSummary("%s");
+	}
+}
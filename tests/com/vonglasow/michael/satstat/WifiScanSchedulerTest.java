@@ -0,0 +1,224 @@
+package com.vonglasow.michael.satstat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class WifiScanSchedulerTest {
+	/** Time from the start of a scan until its results arrive, in milliseconds */
+	private static final long SCAN_DURATION = 500;
+
+	/** Duration of each simulation, in milliseconds */
+	private static final long DURATION = 600000;
+
+	/** Interval between accelerometer readings, as delivered to the main thread, in milliseconds */
+	private static final long ACCELEROMETER_INTERVAL = 200;
+
+	/**
+	 * A device lying still with unchanging results backs off to the maximum interval.
+	 */
+	@Test
+	public void testStationary() {
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.start();
+		scheduler.advanceTo(DURATION);
+		report("stationary", scheduler);
+		assertEquals(WifiScanScheduler.MAX_INTERVAL, scheduler.getInterval());
+		// 1 + 2 + 4 + 8 + 16 s until the maximum is reached, then one scan per 32 s
+		assertTrue(scheduler.scans.size() <= 6 + DURATION / WifiScanScheduler.MAX_INTERVAL);
+		long last = scheduler.scans.get(scheduler.scans.size() - 1);
+		long previous = scheduler.scans.get(scheduler.scans.size() - 2);
+		assertEquals(WifiScanScheduler.MAX_INTERVAL, last - previous);
+	}
+
+	/**
+	 * While results keep changing, scans follow each other at the minimum interval.
+	 */
+	@Test
+	public void testChangingResults() {
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.isChanging = true;
+		scheduler.start();
+		scheduler.advanceTo(DURATION);
+		report("changing results", scheduler);
+		assertEquals(WifiScanScheduler.MIN_INTERVAL, scheduler.getInterval());
+		assertTrue(scheduler.scans.size() >= DURATION / WifiScanScheduler.MIN_INTERVAL - 1);
+	}
+
+	/**
+	 * When the device starts moving, the interval drops to the minimum even if results do not change.
+	 */
+	@Test
+	public void testMoving() {
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.start();
+		for (long t = 0; t < DURATION / 2; t += ACCELEROMETER_INTERVAL) {
+			scheduler.onAccelerometerChanged(0, 0, 9.81f);
+			scheduler.advanceTo(t);
+		}
+		assertFalse(scheduler.isMoving());
+		assertEquals(WifiScanScheduler.MAX_INTERVAL, scheduler.getInterval());
+		int stationaryScans = scheduler.scans.size();
+
+		// walking: acceleration varies by about 2 m/s² at 2 Hz
+		for (long t = DURATION / 2; t < DURATION; t += ACCELEROMETER_INTERVAL) {
+			scheduler.onAccelerometerChanged(0, 0, (float) (9.81 + 2 * Math.sin(t * 2 * Math.PI / 500)));
+			scheduler.advanceTo(t);
+			if (t == DURATION / 2 + 1000) {
+				assertTrue(scheduler.isMoving());
+				// the next scan is brought forward instead of waiting for the long interval
+				assertTrue(scheduler.scans.get(scheduler.scans.size() - 1) > DURATION / 2);
+			}
+		}
+		report("moving", scheduler);
+		assertTrue(scheduler.isMoving());
+		assertTrue(scheduler.scans.size() - stationaryScans >= DURATION / 2 / WifiScanScheduler.MIN_INTERVAL - 1);
+	}
+
+	/**
+	 * Wi-Fi broadcasts which do not indicate a change of connection, such as
+	 * repeated network state broadcasts while connected to the same access
+	 * point, do not shorten the interval. Connecting, disconnecting and
+	 * roaming do.
+	 */
+	@Test
+	public void testBroadcasts() {
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.start();
+		scheduler.onConnectionChanged(true, "00:11:22:33:44:55");
+		for (long t = 0; t < DURATION; t += 100) {
+			if (t % 3000 == 0) {
+				scheduler.requestScan();
+				scheduler.onConnectionChanged(true, "00:11:22:33:44:55");
+				// some broadcasts while connected carry no BSSID
+				scheduler.onConnectionChanged(true, null);
+			}
+			scheduler.advanceTo(t);
+		}
+		report("broadcasts", scheduler);
+		assertEquals(WifiScanScheduler.MAX_INTERVAL, scheduler.getInterval());
+		assertTrue(scheduler.scans.size() <= 6 + DURATION / WifiScanScheduler.MAX_INTERVAL);
+
+		// roaming to another access point
+		int scans = scheduler.scans.size();
+		scheduler.onConnectionChanged(true, "00:11:22:33:44:66");
+		assertEquals(WifiScanScheduler.MIN_INTERVAL, scheduler.getInterval());
+		scheduler.advanceTo(DURATION + WifiScanScheduler.MIN_INTERVAL);
+		assertTrue(scheduler.scans.size() > scans);
+
+		// disconnecting
+		scheduler.advanceTo(2 * DURATION);
+		assertEquals(WifiScanScheduler.MAX_INTERVAL, scheduler.getInterval());
+		scheduler.onConnectionChanged(false, null);
+		assertEquals(WifiScanScheduler.MIN_INTERVAL, scheduler.getInterval());
+		// repeated disconnected broadcasts change nothing
+		scheduler.advanceTo(3 * DURATION);
+		scheduler.onConnectionChanged(false, null);
+		assertEquals(WifiScanScheduler.MAX_INTERVAL, scheduler.getInterval());
+	}
+
+	/**
+	 * Results from scans started by other apps count as our own scans and delay our next scan.
+	 */
+	@Test
+	public void testForeignScans() {
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.start();
+		scheduler.advanceTo(DURATION);
+		int scans = scheduler.scans.size();
+		long last = scheduler.scans.get(scans - 1);
+		// another app scans before our next scan is due
+		long next = last + WifiScanScheduler.MAX_INTERVAL;
+		long foreign = (scheduler.now() + next) / 2;
+		scheduler.advanceTo(foreign);
+		assertEquals(scans, scheduler.scans.size());
+		scheduler.onScanResults(scheduler.signature);
+		scheduler.advanceTo(foreign + WifiScanScheduler.MAX_INTERVAL - 1);
+		assertEquals(scans, scheduler.scans.size());
+		scheduler.advanceTo(foreign + WifiScanScheduler.MAX_INTERVAL);
+		assertEquals(scans + 1, scheduler.scans.size());
+	}
+
+	private static void report(String name, TestScheduler scheduler) {
+		System.out.println(String.format(Locale.ROOT, "WifiScanScheduler %s: %d scans in %d s, interval %d ms",
+				name, scheduler.scans.size(), DURATION / 1000, scheduler.getInterval()));
+	}
+
+	/**
+	 * A scheduler running on a simulated clock, with scans which deliver their results after {@link #SCAN_DURATION}.
+	 */
+	private static class TestScheduler extends WifiScanScheduler {
+		private final Map<Runnable, Long> tasks = new LinkedHashMap<Runnable, Long>();
+		private long time = 0;
+
+		/** Start times of the scans */
+		final List<Long> scans = new ArrayList<Long>();
+
+		/** Whether every scan returns different results */
+		boolean isChanging = false;
+
+		long signature = 1;
+
+		TestScheduler() {
+			super(null, null);
+		}
+
+		/**
+		 * Runs all tasks which are due up to the given time, in order.
+		 */
+		void advanceTo(long until) {
+			while (true) {
+				Runnable next = null;
+				long due = Long.MAX_VALUE;
+				for (Map.Entry<Runnable, Long> entry : tasks.entrySet())
+					if (entry.getValue() < due) {
+						next = entry.getKey();
+						due = entry.getValue();
+					}
+				if ((next == null) || (due > until))
+					break;
+				tasks.remove(next);
+				time = Math.max(time, due);
+				next.run();
+			}
+			time = Math.max(time, until);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+
+		@Override
+		void post(Runnable task, long delayMillis) {
+			tasks.put(task, time + delayMillis);
+		}
+
+		@Override
+		void cancel(Runnable task) {
+			tasks.remove(task);
+		}
+
+		@Override
+		boolean startPlatformScan() {
+			scans.add(time);
+			post(new Runnable() {
+				@Override
+				public void run() {
+					if (isChanging)
+						signature++;
+					onScanResults(signature);
+				}
+			}, SCAN_DURATION);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.vonglasow.michael.satstat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CellDatabaseImporterTest {
+	private static final double DELTA = 1e-7;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("celldb", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private CellDatabase importString(String csv, int chunkSize) throws IOException {
+		File output = new File(dir, CellDatabase.FILE_NAME);
+		new CellDatabaseImporter(dir, chunkSize).importStream(new StringReader(csv), output);
+		return CellDatabase.open(output);
+	}
+
+	@Test
+	public void testOpenCellIdHeader() throws IOException {
+		CellDatabase db = importString(
+				"radio,mcc,net,area,cell,unit,lon,lat,range,samples,changeable,created,updated,averageSignal\n"
+				+ "GSM,262,1,4711,12345,0,13.4,52.5,1000,5,1,0,0,0\n"
+				+ "UMTS,262,2,4712,1234567,0,11.5,48.1,,5,1,0,0,0\n", 16);
+		try {
+			assertEquals(2, db.size());
+			int index = db.find(262, 1, 4711, 12345);
+			assertNotEquals(CellDatabase.NOT_FOUND, index);
+			assertEquals(52.5, db.getLatitude(index), DELTA);
+			assertEquals(13.4, db.getLongitude(index), DELTA);
+			assertEquals(1000, db.getRange(index));
+			index = db.find(262, 2, 4712, 1234567);
+			assertNotEquals(CellDatabase.NOT_FOUND, index);
+			assertEquals(0, db.getRange(index));
+			assertEquals(CellDatabase.NOT_FOUND, db.find(262, 1, 4711, 12346));
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void testPlainColumns() throws IOException {
+		CellDatabase db = importString("232,3,100,200,48.2,16.37,500\n", 16);
+		try {
+			int index = db.find(232, 3, 100, 200);
+			assertEquals(48.2, db.getLatitude(index), DELTA);
+			assertEquals(16.37, db.getLongitude(index), DELTA);
+			assertEquals(500, db.getRange(index));
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Per-country OpenCellID exports have no header but start each row with the radio type.
+	 */
+	@Test
+	public void testOpenCellIdWithoutHeader() throws IOException {
+		CellDatabase db = importString(
+				"GSM,262,1,4711,12345,0,13.4,52.5,1000,5,1,0,0,0\n"
+				+ "LTE,262,2,4712,1234567,0,11.5,48.1,,5,1,0,0,0\n"
+				+ "NR,262,2,4712,1234568,0,11.5,48.1,,5,1,0,0,0\n", 16);
+		try {
+			assertEquals(2, db.size());
+			int index = db.find(262, 1, 4711, 12345);
+			assertNotEquals(CellDatabase.NOT_FOUND, index);
+			assertEquals(52.5, db.getLatitude(index), DELTA);
+			assertEquals(13.4, db.getLongitude(index), DELTA);
+			assertEquals(1000, db.getRange(index));
+			assertEquals(CellDatabase.RADIO_GSM, db.getRadio(index));
+			index = db.find(262, 2, 4712, 1234567);
+			assertNotEquals(CellDatabase.NOT_FOUND, index);
+			assertEquals(48.1, db.getLatitude(index), DELTA);
+			assertEquals(CellDatabase.RADIO_LTE, db.getRadio(index));
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void testInvalidRowsSkipped() throws IOException {
+		File output = new File(dir, CellDatabase.FILE_NAME);
+		CellDatabaseImporter importer = new CellDatabaseImporter(dir, 16);
+		int count = importer.importStream(new StringReader("mcc,mnc,lac,cid,lat,lon\n"
+				+ "262,1,1,1,52,13\n"
+				+ "262,1,1,x,52,13\n"     // not a number
+				+ "262,1,70000,1,52,13\n" // LAC out of range
+				+ "262,1,1,2,91,13\n"     // latitude out of range
+				+ "262,1,1\n"), output);  // too few fields
+		assertEquals(1, count);
+		assertEquals(5, importer.getRowsRead());
+		assertEquals(4, importer.getRowsSkipped());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHeaderWithoutRequiredColumns() throws IOException {
+		importString("mcc,mnc,lac,lat,lon\n262,1,1,52,13\n", 16);
+	}
+
+	@Test
+	public void testGzip() throws IOException {
+		File csv = new File(dir, "cells.csv.gz");
+		Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(csv)), "US-ASCII");
+		try {
+			writer.write("mcc,mnc,lac,cid,lat,lon,range\n262,1,1,1,52,13,100\n");
+		} finally {
+			writer.close();
+		}
+		File output = new File(dir, CellDatabase.FILE_NAME);
+		assertEquals(1, new CellDatabaseImporter(dir).importFile(csv, output));
+		CellDatabase db = CellDatabase.open(output);
+		try {
+			assertEquals(100, db.getRange(db.find(262, 1, 1, 1)));
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Imports random cells in chunks much smaller than the input, so that
+	 * both the in-memory sort and the merge of many runs are exercised, and
+	 * verifies that every cell can be found again.
+	 */
+	@Test
+	public void testManyRuns() throws IOException {
+		int n = 5000;
+		Random random = new Random(42);
+		int[][] cells = new int[n][];
+		StringBuilder csv = new StringBuilder("mcc,mnc,lac,cid,lat,lon,range\n");
+		for (int i = 0; i < n; i++) {
+			// cid is unique, so there are no duplicates
+			cells[i] = new int[] {random.nextInt(1000), random.nextInt(1000), random.nextInt(0x10000), i * 53,
+					random.nextInt(180) - 90, random.nextInt(360) - 180, i};
+			csv.append(String.format("%d,%d,%d,%d,%d,%d,%d\n", cells[i][0], cells[i][1], cells[i][2], cells[i][3],
+					cells[i][4], cells[i][5], cells[i][6]));
+		}
+		CellDatabase db = importString(csv.toString(), 97);
+		try {
+			assertEquals(n, db.size());
+			for (int[] cell : cells) {
+				int index = db.find(cell[0], cell[1], cell[2], cell[3]);
+				if (index == CellDatabase.NOT_FOUND)
+					fail(String.format("cell %d/%d/%d/%d not found", cell[0], cell[1], cell[2], cell[3]));
+				assertEquals(cell[4], db.getLatitude(index), DELTA);
+				assertEquals(cell[5], db.getLongitude(index), DELTA);
+				assertEquals(cell[6], db.getRange(index));
+			}
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void testFirstDuplicateWins() throws IOException {
+		StringBuilder csv = new StringBuilder("mcc,mnc,lac,cid,lat,lon,range\n");
+		for (int i = 0; i < 100; i++)
+			csv.append(String.format("262,1,1,%d,52,13,%d\n", i % 10, i));
+		File output = new File(dir, CellDatabase.FILE_NAME);
+		// chunks of 7 rows put duplicates both within one run and across runs
+		CellDatabaseImporter importer = new CellDatabaseImporter(dir, 7);
+		assertEquals(10, importer.importStream(new StringReader(csv.toString()), output));
+		assertEquals(90, importer.getRowsDuplicate());
+		CellDatabase db = CellDatabase.open(output);
+		try {
+			for (int i = 0; i < 10; i++)
+				assertEquals(i, db.getRange(db.find(262, 1, 1, i)));
+		} finally {
+			db.close();
+		}
+	}
+}
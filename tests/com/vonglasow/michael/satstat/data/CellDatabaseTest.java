@@ -0,0 +1,167 @@
+package com.vonglasow.michael.satstat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CellDatabaseTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("celldb", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private CellDatabase importString(String csv) throws IOException {
+		File output = new File(dir, CellDatabase.FILE_NAME);
+		new CellDatabaseImporter(dir, 4).importStream(new StringReader(csv), output);
+		return CellDatabase.open(output);
+	}
+
+	/**
+	 * A GSM, a UMTS and an LTE cell with identical identifiers must not collide.
+	 */
+	@Test
+	public void testRadioTypes() throws IOException {
+		CellDatabase db = importString("radio,mcc,mnc,lac,cid,lat,lon,range\n"
+				+ "LTE,262,1,100,200,3,3,300\n"
+				+ "GSM,262,1,100,200,1,1,100\n"
+				+ "UMTS,262,1,100,200,2,2,200\n"
+				+ "NR,262,1,100,201,4,4,400\n");
+		try {
+			assertEquals(3, db.size());
+			assertEquals(100, db.getRange(db.find(262, 1, 100, 200, CellDatabase.RADIO_GSM)));
+			assertEquals(200, db.getRange(db.find(262, 1, 100, 200, CellDatabase.RADIO_UMTS)));
+			assertEquals(300, db.getRange(db.find(262, 1, 100, 200, CellDatabase.RADIO_LTE)));
+			assertEquals(CellDatabase.RADIO_LTE, db.getRadio(db.find(262, 1, 100, 200, CellDatabase.RADIO_LTE)));
+			assertEquals(CellDatabase.NOT_FOUND, db.find(262, 1, 100, 200, CellDatabase.RADIO_CDMA));
+			// unknown radio type matches the first record
+			assertEquals(CellDatabase.RADIO_GSM, db.getRadio(db.find(262, 1, 100, 200)));
+			// rows with unsupported radio types are skipped
+			assertEquals(CellDatabase.NOT_FOUND, db.find(262, 1, 100, 201));
+
+			CellTowerLte lte = new CellTowerLte(262, 1, 100, 200, CellTower.UNKNOWN);
+			assertEquals(300, db.getRange(db.find(lte)));
+			CellTowerGsm gsm = new CellTowerGsm(262, 1, 100, 200, CellTower.UNKNOWN);
+			gsm.setGeneration(3);
+			assertEquals(200, db.getRange(db.find(gsm)));
+			gsm.setGeneration(0);
+			assertEquals(100, db.getRange(db.find(gsm)));
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Records without a radio type match lookups for any radio type.
+	 */
+	@Test
+	public void testUnknownRadioType() throws IOException {
+		CellDatabase db = importString("mcc,mnc,lac,cid,lat,lon,range\n262,1,100,200,1,1,100\n");
+		try {
+			assertEquals(CellDatabase.RADIO_UNKNOWN, db.getRadio(0));
+			assertEquals(0, db.find(262, 1, 100, 200, CellDatabase.RADIO_LTE));
+			assertEquals(0, db.find(new CellTowerGsm(262, 1, 100, 200, CellTower.UNKNOWN)));
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Duplicates are resolved per radio type, keeping the first occurrence.
+	 */
+	@Test
+	public void testDuplicatesPerRadioType() throws IOException {
+		StringBuilder csv = new StringBuilder("radio,mcc,mnc,lac,cid,lat,lon,range\n");
+		for (int i = 0; i < 50; i++)
+			csv.append(String.format("%s,262,1,100,200,1,1,%d\n", (i % 2 == 0) ? "GSM" : "LTE", i));
+		CellDatabase db = importString(csv.toString());
+		try {
+			assertEquals(2, db.size());
+			assertEquals(0, db.getRange(db.find(262, 1, 100, 200, CellDatabase.RADIO_GSM)));
+			assertEquals(1, db.getRange(db.find(262, 1, 100, 200, CellDatabase.RADIO_LTE)));
+		} finally {
+			db.close();
+		}
+	}
+
+	@Test
+	public void testRangeClamped() throws IOException {
+		CellDatabase db = importString("radio,mcc,mnc,lac,cid,lat,lon,range\nLTE,262,1,1,1,1,1,99999999\n");
+		try {
+			assertEquals(CellDatabase.MAX_RANGE, db.getRange(0));
+			assertEquals(CellDatabase.RADIO_LTE, db.getRadio(0));
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Measures lookups in a database of realistic size.
+	 * <p>
+	 * Half of the lookups are for cells in the database, half for cells which
+	 * are not. The time per lookup is printed; the assertion only guards
+	 * against gross regressions, such as a linear scan.
+	 */
+	@Test
+	public void testLookupBenchmark() throws IOException {
+		int n = 500000;
+		int lookups = 1000000;
+		Random random = new Random(1);
+		StringBuilder csv = new StringBuilder(n * 40);
+		csv.append("radio,mcc,mnc,lac,cid,lat,lon,range\n");
+		int[][] cells = new int[n][];
+		for (int i = 0; i < n; i++) {
+			// a few networks with clustered LACs, as in real exports
+			cells[i] = new int[] {200 + random.nextInt(8), random.nextInt(4), random.nextInt(2000),
+					random.nextInt(0xFFFFFFF)};
+			csv.append(i % 3 == 0 ? "GSM" : "LTE").append(',').append(cells[i][0]).append(',').append(cells[i][1])
+					.append(',').append(cells[i][2]).append(',').append(cells[i][3]).append(",1,1,1\n");
+		}
+		File output = new File(dir, CellDatabase.FILE_NAME);
+		new CellDatabaseImporter(dir).importStream(new StringReader(csv.toString()), output);
+		csv = null;
+		CellDatabase db = CellDatabase.open(output);
+		try {
+			long[] keys = new long[lookups];
+			for (int i = 0; i < lookups; i++) {
+				int[] cell = cells[random.nextInt(n)];
+				keys[i] = CellDatabase.getKey(cell[0], cell[1], cell[2], (i % 2 == 0) ? cell[3] : cell[3] ^ 1);
+			}
+			// warm up
+			for (int i = 0; i < lookups; i++)
+				db.find(keys[i], CellDatabase.RADIO_LTE);
+			int found = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups; i++)
+				if (db.find(keys[i], CellDatabase.RADIO_LTE) != CellDatabase.NOT_FOUND)
+					found++;
+			long nanos = System.nanoTime() - start;
+			double perLookup = (double) nanos / lookups;
+			System.out.println(String.format("CellDatabase: %d cells, %.0f ns per lookup, %d of %d found",
+					db.size(), perLookup, found, lookups));
+			// at least the LTE cells among the existing ones must be found
+			assertTrue(found >= lookups / 2 * 2 / 3 * 9 / 10);
+			assertTrue("lookup too slow: " + perLookup + " ns", perLookup < 20000);
+		} finally {
+			db.close();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.vonglasow.michael.satstat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class GpsSnapshotPoolTest {
+	/**
+	 * A copied snapshot must not change when its source is reused.
+	 */
+	@Test
+	public void testObtainCopy() {
+		GpsSnapshotPool pool = new GpsSnapshotPool();
+		GpsSnapshot source = new GpsSnapshot();
+		source.add(5, 40, 120, 45, true);
+		source.add(70, 25, 300, 10, false);
+		source.setTime(1445241600000L);
+		source.setTimeToFirstFix(3000);
+
+		GpsSnapshot copy = pool.obtain(source);
+		assertNotSame(source, copy);
+		assertSame(copy, pool.getLast());
+		source.clear();
+		source.add(9, 10, 0, 0, false);
+
+		assertEquals(2, copy.getCount());
+		assertEquals(1, copy.getUsedCount());
+		assertEquals(70, copy.getPrn(1));
+		assertEquals(25, copy.getSnr(1), 0);
+		assertEquals(300, copy.getAzimuth(1), 0);
+		assertEquals(10, copy.getElevation(1), 0);
+		assertTrue(copy.isUsedInFix(0));
+		assertFalse(copy.isUsedInFix(1));
+		assertEquals(1445241600000L, copy.getTime());
+		assertEquals(3000, copy.getTimeToFirstFix());
+	}
+
+	/**
+	 * Snapshots are reused in turn, and remain unchanged until the pool wraps around.
+	 */
+	@Test
+	public void testRecycling() {
+		GpsSnapshotPool pool = new GpsSnapshotPool();
+		GpsSnapshot source = new GpsSnapshot();
+		GpsSnapshot[] obtained = new GpsSnapshot[GpsSnapshotPool.POOL_SIZE];
+		for (int i = 0; i < GpsSnapshotPool.POOL_SIZE; i++) {
+			source.setTime(i);
+			obtained[i] = pool.obtain(source);
+		}
+		for (int i = 0; i < GpsSnapshotPool.POOL_SIZE; i++)
+			assertEquals(i, obtained[i].getTime());
+		assertSame(obtained[0], pool.obtain(source));
+	}
+}
@@ -0,0 +1,114 @@
+package com.vonglasow.michael.satstat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SatelliteModelTest {
+	private static GpsSnapshot snapshot(int... prns) {
+		GpsSnapshot snapshot = new GpsSnapshot();
+		for (int prn : prns)
+			snapshot.add(prn, 30, 0, 0, false);
+		return snapshot;
+	}
+
+	@Test
+	public void testConstellations() {
+		assertEquals(SatelliteModel.CONSTELLATION_GPS, SatelliteModel.getConstellation(1));
+		assertEquals(SatelliteModel.CONSTELLATION_GPS, SatelliteModel.getConstellation(32));
+		assertEquals(SatelliteModel.CONSTELLATION_SBAS, SatelliteModel.getConstellation(33));
+		assertEquals(SatelliteModel.CONSTELLATION_SBAS, SatelliteModel.getConstellation(64));
+		assertEquals(SatelliteModel.CONSTELLATION_GLONASS, SatelliteModel.getConstellation(65));
+		assertEquals(SatelliteModel.CONSTELLATION_GLONASS, SatelliteModel.getConstellation(96));
+		// SBAS as reported by some devices
+		assertEquals(SatelliteModel.CONSTELLATION_SBAS, SatelliteModel.getConstellation(120));
+		assertEquals(SatelliteModel.CONSTELLATION_OTHER, SatelliteModel.getConstellation(100));
+		assertEquals(SatelliteModel.CONSTELLATION_QZSS, SatelliteModel.getConstellation(193));
+		assertEquals(SatelliteModel.CONSTELLATION_BEIDOU, SatelliteModel.getConstellation(201));
+		assertEquals(SatelliteModel.CONSTELLATION_BEIDOU, SatelliteModel.getConstellation(263));
+		assertEquals(SatelliteModel.CONSTELLATION_OTHER, SatelliteModel.getConstellation(264));
+		assertEquals(SatelliteModel.CONSTELLATION_GALILEO, SatelliteModel.getConstellation(301));
+		assertEquals(SatelliteModel.CONSTELLATION_OTHER, SatelliteModel.getConstellation(0));
+		assertEquals(SatelliteModel.CONSTELLATION_OTHER, SatelliteModel.getConstellation(-1));
+		assertEquals(SatelliteModel.CONSTELLATION_OTHER, SatelliteModel.getConstellation(SatelliteModel.MAX_NMEA_ID + 1));
+		assertEquals("Galileo", SatelliteModel.getConstellationName(SatelliteModel.CONSTELLATION_GALILEO));
+	}
+
+	/**
+	 * Without any satellites, only the GPS block is shown.
+	 */
+	@Test
+	public void testInitialLayout() {
+		SatelliteModel model = new SatelliteModel();
+		assertEquals(32, model.getBarCount());
+		assertEquals(1, model.getBarPosition(1));
+		assertEquals(32, model.getBarPosition(32));
+		assertEquals(0, model.getBarPosition(65));
+		assertEquals(8, model.getLineCount());
+		assertEquals(4, model.getLinePosition(0));
+		assertEquals(SatelliteModel.LINE_NORMAL, model.getLineType(0));
+		assertEquals(32, model.getLinePosition(7));
+		assertEquals(SatelliteModel.LINE_STRONG, model.getLineType(7));
+	}
+
+	/**
+	 * A satellite from an extension block shows the base block as well, and
+	 * the line between them is a normal one.
+	 */
+	@Test
+	public void testExtensionBlock() {
+		SatelliteModel model = new SatelliteModel();
+		assertTrue(model.update(snapshot(5, 90)));
+		// GPS (32) + GLONASS (24) + GLONASS extension (8)
+		assertEquals(64, model.getBarCount());
+		assertEquals(33, model.getBarPosition(65));
+		assertEquals(57, model.getBarPosition(89));
+		int strong = 0;
+		for (int i = 0; i < model.getLineCount(); i++) {
+			if (model.getLineType(i) == SatelliteModel.LINE_STRONG)
+				strong++;
+			if (model.getLinePosition(i) == 56)
+				assertEquals(SatelliteModel.LINE_NORMAL, model.getLineType(i));
+		}
+		assertEquals(2, strong);
+	}
+
+	/**
+	 * Blocks stay visible once shown, so bars do not move as satellites come and go.
+	 */
+	@Test
+	public void testBlocksStayVisible() {
+		SatelliteModel model = new SatelliteModel();
+		assertTrue(model.update(snapshot(3, 310)));
+		int galileo = model.getBarPosition(310);
+		assertEquals(32 + 10, galileo);
+		assertFalse(model.update(snapshot(3)));
+		assertFalse(model.update(snapshot(310, 311)));
+		assertEquals(galileo, model.getBarPosition(310));
+		assertTrue(model.update(snapshot(70)));
+		// GLONASS is inserted before Galileo
+		assertEquals(32 + 24 + 10, model.getBarPosition(310));
+	}
+
+	/**
+	 * Without a GPS satellite, GPS is not shown once another block is.
+	 */
+	@Test
+	public void testNoGps() {
+		SatelliteModel model = new SatelliteModel();
+		assertTrue(model.update(snapshot(201)));
+		assertEquals(0, model.getBarPosition(1));
+		assertEquals(1, model.getBarPosition(201));
+		assertEquals(35, model.getBarCount());
+	}
+
+	@Test
+	public void testUnsupportedIds() {
+		SatelliteModel model = new SatelliteModel();
+		assertFalse(model.update(snapshot(0, 270, 400)));
+		assertEquals(3, model.getUnsupportedCount());
+		assertEquals(0, model.getBarPosition(400));
+	}
+}
@@ -0,0 +1,186 @@
+package com.vonglasow.michael.satstat.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WifiApStoreTest {
+	private static final String BSSID = "00:11:22:33:44:55";
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("wifiaps", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private static WifiApStore open(File dir) throws InterruptedException {
+		WifiApStore store = new WifiApStore(dir);
+		store.awaitBackground();
+		assertTrue(store.isLoaded());
+		return store;
+	}
+
+	private static void close(WifiApStore store) throws InterruptedException {
+		store.close();
+		store.awaitTermination();
+	}
+
+	@Test
+	public void testParseBssid() {
+		assertEquals(0x001122334455L, WifiApStore.parseBssid(BSSID));
+		assertEquals(0xAABBCCDDEEFFL, WifiApStore.parseBssid("aa-bb-cc-dd-ee-ff"));
+		assertEquals(WifiApStore.NOT_FOUND, WifiApStore.parseBssid("00:11:22:33:44"));
+		assertEquals(WifiApStore.NOT_FOUND, WifiApStore.parseBssid("00:11:22:33:44:5g"));
+		assertEquals(WifiApStore.NOT_FOUND, WifiApStore.parseBssid(null));
+	}
+
+	@Test
+	public void testAggregate() throws InterruptedException {
+		WifiApStore store = open(dir);
+		try {
+			assertTrue(store.add(1000, BSSID, "home", 2412, -50, 0, 52.0, 13.0, 10));
+			assertTrue(store.add(2000, BSSID, "home", 2412, -50, 0, 52.0002, 13.0, 10));
+			assertFalse(store.add(3000, "invalid", "home", 2412, -50, 0, 52.0, 13.0, 10));
+			assertEquals(1, store.size());
+			int i = store.find(BSSID);
+			assertEquals(2, store.getObservations(i));
+			// equal weights, so the position is the midpoint
+			assertEquals(52.0001, store.getLatitude(i), 1e-9);
+			assertEquals(1000, store.getFirstSeen(i));
+			assertEquals(2000, store.getLastSeen(i));
+			assertEquals(BSSID, store.getBssid(i));
+			assertEquals("home", store.getSsid(i));
+			double[] result = new double[3];
+			assertTrue(store.lookup(BSSID, result));
+			assertEquals(52.0001, result[0], 1e-9);
+			assertEquals(13.0, result[1], 1e-9);
+			// the spread of observer positions is not the coverage radius, so the range is unknown
+			assertEquals(0, result[2], 0);
+			assertEquals(11.1, store.getRange(i), 0.1);
+		} finally {
+			close(store);
+		}
+	}
+
+	@Test
+	public void testNear() throws InterruptedException {
+		WifiApStore store = open(dir);
+		try {
+			store.add(1000, "00:00:00:00:00:01", "a", 2412, -60, 0, 52.0, 13.0, 10);
+			store.add(1000, "00:00:00:00:00:02", "b", 2412, -60, 0, 52.0009, 13.0, 10);  // 100 m north
+			store.add(1000, "00:00:00:00:00:03", "c", 2412, -60, 0, 52.0, 13.0147, 10);  // 1 km east
+			int[] result = new int[4];
+			assertEquals(2, store.near(52.0, 13.0, 200, result));
+			assertEquals(3, store.near(52.0, 13.0, 1100, result));
+			assertEquals(0, store.near(10.0, 10.0, 1000, result));
+		} finally {
+			close(store);
+		}
+	}
+
+	/**
+	 * Aggregates must survive a restart, both from the snapshot and, if
+	 * there is no snapshot, from the log.
+	 */
+	@Test
+	public void testPersistence() throws InterruptedException {
+		WifiApStore store = open(dir);
+		store.add(1000, BSSID, "home", 2412, -50, 0, 52.0, 13.0, 10);
+		store.add(2000, "00:00:00:00:00:01", "work", 5180, -70, 3, 48.0, 11.0, 20);
+		close(store);
+
+		store = open(dir);
+		assertEquals(2, store.size());
+		assertEquals("work", store.getSsid(store.find("00:00:00:00:00:01")));
+		assertEquals(3, store.getCapabilities(store.find("00:00:00:00:00:01")));
+		store.add(3000, BSSID, "home", 2412, -50, 0, 52.0002, 13.0, 10);
+		// stopping the last client writes pending data
+		store.start(this);
+		store.stop(this);
+		store.awaitBackground();
+		close(store);
+
+		assertTrue(new File(dir, WifiApStore.SNAPSHOT_FILE_NAME).delete());
+		store = open(dir);
+		try {
+			assertEquals(2, store.size());
+			int i = store.find(BSSID);
+			assertEquals(2, store.getObservations(i));
+			assertEquals(52.0001, store.getLatitude(i), 1e-9);
+			assertEquals("", store.getSsid(i));
+		} finally {
+			close(store);
+		}
+	}
+
+	/**
+	 * Observations added while the store is still loading are aggregated once loading has finished.
+	 */
+	@Test
+	public void testAddWhileLoading() throws InterruptedException {
+		WifiApStore store = open(dir);
+		for (int i = 0; i < 1000; i++)
+			store.add(i, String.format("00:00:00:00:%02x:%02x", i >> 8, i & 0xFF), "ap", 2412, -60, 0,
+					52.0 + i * 1e-4, 13.0, 10);
+		close(store);
+
+		store = new WifiApStore(dir);
+		try {
+			store.add(5000, BSSID, "new", 2412, -50, 0, 52.0, 13.0, 10);
+			store.awaitBackground();
+			assertEquals(1001, store.size());
+			assertEquals(1, store.getObservations(store.find(BSSID)));
+		} finally {
+			close(store);
+		}
+		store = open(dir);
+		try {
+			assertEquals(1001, store.size());
+		} finally {
+			close(store);
+		}
+	}
+
+	/**
+	 * A partial record at the end of the log is discarded, and new records are written after the last complete one.
+	 */
+	@Test
+	public void testTruncatedLog() throws IOException, InterruptedException {
+		WifiApStore store = open(dir);
+		store.add(1000, BSSID, "home", 2412, -50, 0, 52.0, 13.0, 10);
+		close(store);
+		new File(dir, WifiApStore.SNAPSHOT_FILE_NAME).delete();
+		File log = new File(dir, WifiApStore.LOG_FILE_NAME);
+		java.io.RandomAccessFile raf = new java.io.RandomAccessFile(log, "rw");
+		try {
+			raf.setLength(raf.length() + 7);
+		} finally {
+			raf.close();
+		}
+
+		store = open(dir);
+		try {
+			assertEquals(1, store.size());
+			assertEquals(0, log.length() % 30);
+		} finally {
+			close(store);
+		}
+	}
+}
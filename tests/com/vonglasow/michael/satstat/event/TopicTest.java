@@ -0,0 +1,263 @@
+package com.vonglasow.michael.satstat.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopicTest {
+	private ScheduledExecutorService fastExecutor;
+	private ScheduledExecutorService slowExecutor;
+	private DeliveryThread fastThread;
+	private DeliveryThread slowThread;
+
+	@Before
+	public void setUp() {
+		fastExecutor = Executors.newSingleThreadScheduledExecutor();
+		slowExecutor = Executors.newSingleThreadScheduledExecutor();
+		fastThread = new ExecutorDeliveryThread(fastExecutor);
+		slowThread = new ExecutorDeliveryThread(slowExecutor);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		fastExecutor.shutdownNow();
+		slowExecutor.shutdownNow();
+		fastExecutor.awaitTermination(1, TimeUnit.MINUTES);
+		slowExecutor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	@Test
+	public void testSubscribe() {
+		Topic<long[]> topic = new Topic<long[]>("test");
+		assertEquals("test", topic.getName());
+		assertNull(topic.getLatest());
+		TestListener listener = new TestListener(1, 0);
+		Subscription<long[]> subscription = topic.subscribe(listener, null, 0);
+		assertSame(topic, subscription.getTopic());
+		assertEquals(1, topic.getSubscriberCount());
+		// nothing published yet, so nothing delivered on subscribing
+		assertEquals(0, listener.count);
+
+		long[] event = {0, 1};
+		topic.publish(event);
+		assertSame(event, topic.getLatest());
+		assertEquals(1, topic.getPublishedCount());
+		assertEquals(1, listener.count);
+		assertEquals(1, subscription.getDeliveredCount());
+
+		// a late subscriber receives exactly the latest event
+		TestListener late = new TestListener(1, 0);
+		topic.subscribe(late, null, 0);
+		assertEquals(1, late.count);
+		assertSame(event, late.last);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testPublishNull() {
+		new Topic<long[]>("test").publish(null);
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		Topic<long[]> topic = new Topic<long[]>("test");
+		TestListener direct = new TestListener(1, 0);
+		TestListener threaded = new TestListener(1, 0);
+		Subscription<long[]> directSub = topic.subscribe(direct, null, 0);
+		Subscription<long[]> threadedSub = topic.subscribe(threaded, fastThread, 0);
+		TestListener other = new TestListener(1, 0);
+		topic.subscribe(other, null, 0);
+		directSub.cancel();
+		threadedSub.cancel();
+		// cancelling twice is harmless
+		threadedSub.cancel();
+		assertTrue(directSub.isCancelled());
+		assertEquals(1, topic.getSubscriberCount());
+		topic.publish(new long[] {0, 1});
+		Thread.sleep(50);
+		assertEquals(0, direct.count);
+		assertEquals(0, threaded.count);
+		assertEquals(1, other.count);
+	}
+
+	/**
+	 * Events published on a subscription without a delivery thread within the minimum interval are dropped.
+	 */
+	@Test
+	public void testDirectRateLimit() throws InterruptedException {
+		Topic<long[]> topic = new Topic<long[]>("test");
+		TestListener listener = new TestListener(1, 0);
+		Subscription<long[]> subscription = topic.subscribe(listener, null, 50);
+		for (int i = 1; i <= 10; i++)
+			topic.publish(new long[] {0, i});
+		assertEquals(1, subscription.getDeliveredCount());
+		assertEquals(9, subscription.getDroppedCount());
+		Thread.sleep(60);
+		topic.publish(new long[] {0, 11});
+		assertEquals(2, listener.count);
+		assertEquals(11, listener.last[1]);
+	}
+
+	/**
+	 * A slow subscriber on its own thread gets the latest event, with the ones in between conflated.
+	 */
+	@Test
+	public void testConflation() throws InterruptedException {
+		Topic<long[]> topic = new Topic<long[]>("test");
+		TestListener slow = new TestListener(1, 20);
+		Subscription<long[]> subscription = topic.subscribe(slow, slowThread, 0);
+		long[] last = null;
+		for (int i = 1; i <= 100; i++) {
+			last = new long[] {0, i};
+			topic.publish(last);
+		}
+		Thread.sleep(100);
+		assertSame(last, slow.last);
+		assertTrue(slow.isOrdered);
+		assertEquals(100, subscription.getDeliveredCount() + subscription.getConflatedCount());
+		assertTrue(subscription.getDeliveredCount() < 10);
+	}
+
+	/**
+	 * Exercises a topic with concurrent publishers and subscribers of different speeds.
+	 * <p>
+	 * Four threads publish 200000 events each. A fast subscriber on its own
+	 * thread, a slow one which takes 1 ms per event and a rate-limited one
+	 * (20 ms) must each end up with the last event, must never see events
+	 * of one publisher out of order and must never receive more events than
+	 * their speed allows. A subscriber on the publishing thread must receive
+	 * every event. The time per publish is printed.
+	 */
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final int publishers = 4;
+		final int eventsPerPublisher = 200000;
+		final Topic<long[]> topic = new Topic<long[]>("test");
+
+		TestListener fast = new TestListener(publishers, 0);
+		TestListener slow = new TestListener(publishers, 1);
+		TestListener limited = new TestListener(publishers, 0);
+		TestListener direct = new TestListener(publishers, 0);
+		Subscription<long[]> fastSub = topic.subscribe(fast, fastThread, 0);
+		Subscription<long[]> slowSub = topic.subscribe(slow, slowThread, 0);
+		Subscription<long[]> limitedSub = topic.subscribe(limited, fastThread, 20);
+		Subscription<long[]> directSub = topic.subscribe(direct, null, 0);
+		final long[][] lastEvents = new long[publishers][];
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(publishers);
+		for (int p = 0; p < publishers; p++) {
+			final int publisher = p;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long[] event = null;
+					for (int i = 1; i <= eventsPerPublisher; i++) {
+						event = new long[] {publisher, i};
+						topic.publish(event);
+					}
+					lastEvents[publisher] = event;
+					done.countDown();
+				}
+			}.start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		assertTrue(done.await(1, TimeUnit.MINUTES));
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		// concurrent publishers race for the latest event, so publish a final one after they are done
+		long[] last = new long[] {0, eventsPerPublisher + 1};
+		topic.publish(last);
+		// let pending deliveries complete
+		Thread.sleep(100);
+
+		long total = (long) publishers * eventsPerPublisher;
+		System.out.println(String.format("Topic: %d events in %.3f s (%.0f ns per publish with 4 subscribers), "
+				+ "fast %d delivered/%d conflated, slow %d/%d, limited %d/%d",
+				total, seconds, seconds * 1e9 / total * publishers,
+				fastSub.getDeliveredCount(), fastSub.getConflatedCount(),
+				slowSub.getDeliveredCount(), slowSub.getConflatedCount(),
+				limitedSub.getDeliveredCount(), limitedSub.getConflatedCount()));
+
+		assertSame(last, topic.getLatest());
+		assertEquals(total + 1, topic.getPublishedCount());
+		for (TestListener l : new TestListener[] {fast, slow, limited, direct}) {
+			assertSame(last, l.last);
+			assertTrue(l.isOrdered);
+		}
+		assertEquals(total + 1, direct.count);
+		assertEquals(0, directSub.getDroppedCount());
+		// the rate-limited subscriber may see one event per 20 ms, plus the initial one
+		assertTrue(limitedSub.getDeliveredCount() <= seconds * 1000 / 20 + 2);
+		// the slow subscriber may see one event per ms, plus the initial one
+		assertTrue(slowSub.getDeliveredCount() <= (seconds + 0.1) * 1000 + 2);
+		// each publisher's final event must be the latest event of its own sequence
+		for (long[] e : lastEvents)
+			assertEquals(eventsPerPublisher, e[1]);
+	}
+
+	/**
+	 * A delivery thread backed by an executor.
+	 */
+	private static class ExecutorDeliveryThread implements DeliveryThread {
+		private final ScheduledExecutorService executor;
+
+		ExecutorDeliveryThread(ScheduledExecutorService executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void post(Runnable task, long delayMillis) {
+			executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Records the events it receives, as pairs of publisher and sequence number.
+	 */
+	private static class TestListener implements Topic.Listener<long[]> {
+		private final long[] lastSeq;
+		private final long sleepMillis;
+		volatile long[] last = null;
+		volatile long count = 0;
+		volatile boolean isOrdered = true;
+
+		TestListener(int publishers, long sleepMillis) {
+			lastSeq = new long[publishers];
+			this.sleepMillis = sleepMillis;
+		}
+
+		@Override
+		public void onEvent(long[] value) {
+			synchronized (this) {
+				int publisher = (int) value[0];
+				if (value[1] <= lastSeq[publisher])
+					isOrdered = false;
+				lastSeq[publisher] = value[1];
+				last = value;
+				count++;
+			}
+			if (sleepMillis > 0)
+				try {
+					Thread.sleep(sleepMillis);
+				} catch (InterruptedException e) {
+					// NOP
+				}
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package com.vonglasow.michael.satstat.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PositionFilterTest {
+	private static final double EARTH_RADIUS = 6371000;
+	private static final double M_PER_DEG_LAT = Math.toRadians(EARTH_RADIUS);
+
+	/** Ratio between accuracy and standard deviation per axis, as used by the filter. */
+	private static final double ACCURACY_PER_SIGMA = 1.51;
+
+	/**
+	 * A list of fixes.
+	 */
+	private static class Track {
+		final long[] time;
+		final double[] lat;
+		final double[] lon;
+		final float[] acc;
+		int count = 0;
+
+		Track(int capacity) {
+			time = new long[capacity];
+			lat = new double[capacity];
+			lon = new double[capacity];
+			acc = new float[capacity];
+		}
+
+		void add(long time, double lat, double lon, float acc) {
+			this.time[count] = time;
+			this.lat[count] = lat;
+			this.lon[count] = lon;
+			this.acc[count] = acc;
+			count++;
+		}
+
+		/**
+		 * Adds a fix from another track with normally distributed errors.
+		 */
+		void addNoisy(Track source, int i, long delay, float acc, double sigma, Random random) {
+			double mPerDegLon = M_PER_DEG_LAT * Math.cos(Math.toRadians(source.lat[i]));
+			add(source.time[i] + delay,
+					source.lat[i] + random.nextGaussian() * sigma / M_PER_DEG_LAT,
+					source.lon[i] + random.nextGaussian() * sigma / mPerDegLon,
+					acc);
+		}
+
+		/**
+		 * Creates a drive with varying speed and direction, one fix per second.
+		 */
+		static Track simulateDrive(int seconds, Random random) {
+			Track track = new Track(seconds);
+			double la = 48.137;
+			double lo = 11.575;
+			double speed = 0;
+			double heading = 0;
+			double turnRate = 0;
+			for (int t = 0; t < seconds; t++) {
+				track.add(t * 1000L, la, lo, 5);
+				if (t % 60 == 0)
+					// new target speed between standstill and motorway, new turn rate
+					turnRate = (random.nextDouble() - 0.5) * 10;
+				double target = ((t / 60) % 5) * 8;
+				speed += Math.max(-3, Math.min(2, target - speed));
+				heading = Math.toRadians((Math.toDegrees(heading) + turnRate * Math.min(speed, 10) / 10) % 360);
+				la += speed * Math.cos(heading) / M_PER_DEG_LAT;
+				lo += speed * Math.sin(heading) / (M_PER_DEG_LAT * Math.cos(Math.toRadians(la)));
+			}
+			return track;
+		}
+	}
+
+	/**
+	 * Returns the distance between two points in meters (equirectangular approximation).
+	 */
+	private static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dLon = lon1 - lon2;
+		if (dLon > 180)
+			dLon -= 360;
+		else if (dLon < -180)
+			dLon += 360;
+		double dy = (lat1 - lat2) * M_PER_DEG_LAT;
+		double dx = dLon * M_PER_DEG_LAT * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	@Test
+	public void testFirstFix() {
+		PositionFilter filter = new PositionFilter();
+		assertFalse(filter.hasEstimate());
+		assertTrue(filter.update(1000, 52.5, 13.4, 10));
+		assertTrue(filter.hasEstimate());
+		assertEquals(1000, filter.getTime());
+		assertEquals(52.5, filter.getLatitude(), 1e-9);
+		assertEquals(13.4, filter.getLongitude(), 1e-9);
+		assertEquals(10, filter.getAccuracy(), 1e-3);
+		assertEquals(0, filter.getSpeed(), 0);
+	}
+
+	@Test
+	public void testInvalidFixes() {
+		PositionFilter filter = new PositionFilter();
+		assertFalse(filter.update(1000, Double.NaN, 13.4, 10));
+		assertFalse(filter.update(1000, 52.5, 13.4, 0));
+		assertFalse(filter.update(1000, 52.5, 13.4, Float.NaN));
+		assertFalse(filter.hasEstimate());
+		assertTrue(filter.update(2000, 52.5, 13.4, 10));
+		// out of order
+		assertFalse(filter.update(1000, 52.5, 13.4, 10));
+		// invalid fixes are not counted as rejected
+		assertEquals(1, filter.getUpdateCount());
+		assertEquals(1, filter.getRejectCount());
+	}
+
+	/**
+	 * Acceleration input advances the estimate to the time it was measured, so
+	 * a fix delivered afterwards can be older than the estimate. It is still
+	 * applied, while a fix older than the previous fix is not.
+	 */
+	@Test
+	public void testDelayedFix() {
+		PositionFilter filter = new PositionFilter();
+		assertTrue(filter.update(1000, 52.5, 13.4, 10));
+		assertTrue(filter.update(2000, 52.5, 13.4, 10));
+		filter.setAcceleration(2900, 0, 0);
+		assertEquals(2900, filter.getTime());
+		assertTrue(filter.update(2800, 52.5, 13.4, 10));
+		assertEquals(2900, filter.getTime());
+		assertFalse(filter.update(2500, 52.5, 13.4, 10));
+		// the reset interval counts from the last fix, not from the last acceleration input
+		for (long t = 3000; t < 400000; t += 1000)
+			filter.setAcceleration(t, 0, 0);
+		assertTrue(filter.update(400000, 52.6, 13.4, 10));
+		assertEquals(52.6, filter.getLatitude(), 1e-9);
+	}
+
+	/**
+	 * A single outlier is rejected, while a series of consistent fixes far
+	 * away resets the filter to the new position.
+	 */
+	@Test
+	public void testOutliersAndReset() {
+		PositionFilter filter = new PositionFilter();
+		for (int t = 0; t < 10; t++)
+			assertTrue(filter.update(t * 1000L, 52.5, 13.4, 5));
+		double jump = 2000 / M_PER_DEG_LAT;
+		assertFalse(filter.update(10000, 52.5 + jump, 13.4, 5));
+		assertEquals(52.5, filter.getLatitude(), 1e-6);
+		assertTrue(filter.update(11000, 52.5, 13.4, 5));
+		assertEquals(0, filter.getResetCount());
+
+		assertFalse(filter.update(12000, 52.5 + jump, 13.4, 5));
+		assertFalse(filter.update(13000, 52.5 + jump, 13.4, 5));
+		assertTrue(filter.update(14000, 52.5 + jump, 13.4, 5));
+		assertEquals(1, filter.getResetCount());
+		assertEquals(52.5 + jump, filter.getLatitude(), 1e-9);
+	}
+
+	/**
+	 * An imprecise fix barely moves a position established by precise fixes.
+	 */
+	@Test
+	public void testWeighting() {
+		PositionFilter filter = new PositionFilter();
+		for (int t = 0; t < 10; t++)
+			filter.update(t * 1000L, 52.5, 13.4, 5);
+		assertTrue(filter.update(10000, 52.5 + 500 / M_PER_DEG_LAT, 13.4, 1000));
+		assertTrue(distance(52.5, 13.4, filter.getLatitude(), filter.getLongitude()) < 5);
+	}
+
+	/**
+	 * Fixes moving due east at constant speed yield that speed and bearing,
+	 * also across the antimeridian.
+	 */
+	@Test
+	public void testConstantVelocity() {
+		PositionFilter filter = new PositionFilter();
+		double mPerDegLon = M_PER_DEG_LAT * Math.cos(Math.toRadians(-16.5));
+		// crosses the antimeridian after about 320 m
+		double lon = 179.997;
+		for (int t = 0; t < 60; t++) {
+			filter.update(t * 1000L, -16.5, lon, 3);
+			lon += 10 / mPerDegLon;
+			if (lon > 180)
+				lon -= 360;
+		}
+		assertEquals(10, filter.getSpeed(), 0.5);
+		assertEquals(90, filter.getBearing(), 3);
+		assertTrue(filter.getLongitude() < 0);
+		assertTrue(distance(-16.5, lon - 10 / mPerDegLon, filter.getLatitude(), filter.getLongitude()) < 5);
+	}
+
+	/**
+	 * Feeds a simulated drive with GPS noise, plus a network fix with large
+	 * errors every ten seconds, and compares the errors of the raw and the
+	 * filtered positions against the ground truth. The results and the time
+	 * per update are printed.
+	 */
+	@Test
+	public void testSimulatedDrive() {
+		Track truth = Track.simulateDrive(3600, new Random(1));
+		Random random = new Random(42);
+		Track obs = new Track(truth.count * 2);
+		int[] obsTruth = new int[truth.count * 2];
+		for (int i = 0; i < truth.count; i++) {
+			double gpsAcc = Math.max(truth.acc[i], 3);
+			obs.addNoisy(truth, i, 0, (float) gpsAcc, gpsAcc / ACCURACY_PER_SIGMA, random);
+			obsTruth[obs.count - 1] = i;
+			if (i % 10 == 5) {
+				float netAcc = 50 + random.nextInt(1500);
+				// network fixes are often biased, make errors larger than their accuracy claims
+				obs.addNoisy(truth, i, 1, netAcc, 1.5 * netAcc / ACCURACY_PER_SIGMA, random);
+				obsTruth[obs.count - 1] = i;
+			}
+		}
+
+		PositionFilter filter = new PositionFilter();
+		double rawSum = 0;
+		double filteredSum = 0;
+		double filteredMax = 0;
+		for (int i = 0; i < obs.count; i++) {
+			int t = obsTruth[i];
+			double rawError = distance(obs.lat[i], obs.lon[i], truth.lat[t], truth.lon[t]);
+			rawSum += rawError * rawError;
+			filter.update(obs.time[i], obs.lat[i], obs.lon[i], obs.acc[i]);
+			double error = distance(filter.getLatitude(), filter.getLongitude(), truth.lat[t], truth.lon[t]);
+			filteredSum += error * error;
+			filteredMax = Math.max(filteredMax, error);
+		}
+		double rawRms = Math.sqrt(rawSum / obs.count);
+		double filteredRms = Math.sqrt(filteredSum / obs.count);
+
+		// benchmark
+		long updates = 0;
+		long start = System.nanoTime();
+		while (updates < 1000000) {
+			filter.reset();
+			for (int i = 0; i < obs.count; i++)
+				filter.update(obs.time[i], obs.lat[i], obs.lon[i], obs.acc[i]);
+			updates += obs.count;
+		}
+		double nanos = (double) (System.nanoTime() - start) / updates;
+		System.out.println(String.format(Locale.ROOT,
+				"PositionFilter: %d fixes, raw RMS error %.1f m, filtered RMS error %.1f m, max %.1f m, %.0f ns/update",
+				obs.count, rawRms, filteredRms, filteredMax, nanos));
+		assertTrue(filteredRms < rawRms / 5);
+		assertTrue(filteredMax < 50);
+	}
+}
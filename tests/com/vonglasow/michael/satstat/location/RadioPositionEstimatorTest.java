@@ -0,0 +1,195 @@
+package com.vonglasow.michael.satstat.location;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RadioPositionEstimatorTest {
+	private static final double EARTH_RADIUS = 6371000;
+
+	/**
+	 * A transmitter in a fixture: offset from the true position in meters
+	 * (east, north), known range in meters (0 if unknown) and type.
+	 */
+	private static class Transmitter {
+		final int type;
+		final double east;
+		final double north;
+		final int range;
+
+		Transmitter(int type, double east, double north, int range) {
+			this.type = type;
+			this.east = east;
+			this.north = north;
+			this.range = range;
+		}
+	}
+
+	/** Four cells around the receiver, as in a town with dense coverage. */
+	private static final Transmitter[] URBAN_CELLS = {
+		new Transmitter(RadioPositionEstimator.TYPE_CELL, 600, 250, 2000),
+		new Transmitter(RadioPositionEstimator.TYPE_CELL, -450, 520, 2000),
+		new Transmitter(RadioPositionEstimator.TYPE_CELL, -300, -700, 3000),
+		new Transmitter(RadioPositionEstimator.TYPE_CELL, 900, -400, 0),
+	};
+
+	/** Access points in a residential street, plus the serving cell. */
+	private static final Transmitter[] STREET_WIFI = {
+		new Transmitter(RadioPositionEstimator.TYPE_WIFI, 15, 8, 0),
+		new Transmitter(RadioPositionEstimator.TYPE_WIFI, -22, 12, 0),
+		new Transmitter(RadioPositionEstimator.TYPE_WIFI, 5, -30, 0),
+		new Transmitter(RadioPositionEstimator.TYPE_WIFI, -40, -18, 0),
+		new Transmitter(RadioPositionEstimator.TYPE_WIFI, 48, -5, 0),
+		new Transmitter(RadioPositionEstimator.TYPE_CELL, 800, 300, 5000),
+	};
+
+	/**
+	 * Converts a distance into the signal strength predicted by the path
+	 * loss model of the estimator, so that fixtures without noise have an
+	 * exact solution.
+	 */
+	private static int dbm(int type, double distance) {
+		if (type == RadioPositionEstimator.TYPE_CELL)
+			return (int) Math.round(-50 - 35 * Math.log10(distance / 100));
+		else
+			return (int) Math.round(-40 - 30 * Math.log10(distance));
+	}
+
+	/**
+	 * Feeds a fixture into an estimator.
+	 *
+	 * @param noise Standard deviation of noise added to signal strengths, in dB
+	 */
+	private static void addFixture(RadioPositionEstimator estimator, double lat, double lon, Transmitter[] fixture,
+			double noise, Random random) {
+		double mPerDegLat = Math.toRadians(EARTH_RADIUS);
+		double mPerDegLon = mPerDegLat * Math.cos(Math.toRadians(lat));
+		for (Transmitter t : fixture) {
+			double tLon = lon + t.east / mPerDegLon;
+			if (tLon > 180)
+				tLon -= 360;
+			else if (tLon < -180)
+				tLon += 360;
+			double distance = Math.sqrt(t.east * t.east + t.north * t.north);
+			int signal = dbm(t.type, distance) + (int) Math.round(random.nextGaussian() * noise);
+			assertTrue(estimator.add(t.type, lat + t.north / mPerDegLat, tLon, signal, t.range));
+		}
+	}
+
+	/** Returns the distance between two points in meters. */
+	private static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dLon = lon2 - lon1;
+		if (dLon > 180)
+			dLon -= 360;
+		else if (dLon < -180)
+			dLon += 360;
+		double dx = Math.toRadians(dLon) * Math.cos(Math.toRadians((lat1 + lat2) / 2)) * EARTH_RADIUS;
+		double dy = Math.toRadians(lat2 - lat1) * EARTH_RADIUS;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	@Test
+	public void testNoObservations() {
+		RadioPositionEstimator estimator = new RadioPositionEstimator();
+		assertFalse(estimator.estimate());
+		assertTrue(Double.isNaN(estimator.getLatitude()));
+		assertTrue(Double.isNaN(estimator.getLongitude()));
+	}
+
+	@Test
+	public void testSingleTransmitter() {
+		RadioPositionEstimator estimator = new RadioPositionEstimator();
+		estimator.add(RadioPositionEstimator.TYPE_CELL, 52.5, 13.4, RadioPositionEstimator.SIGNAL_UNKNOWN, 1500);
+		assertTrue(estimator.estimate());
+		assertEquals(52.5, estimator.getLatitude(), 1e-9);
+		assertEquals(13.4, estimator.getLongitude(), 1e-9);
+		// without a signal strength, the range is the best guess for the distance
+		assertEquals(1500, estimator.getAccuracy(), 1);
+	}
+
+	@Test
+	public void testCapacity() {
+		RadioPositionEstimator estimator = new RadioPositionEstimator(2);
+		assertTrue(estimator.add(RadioPositionEstimator.TYPE_WIFI, 0, 0, -60, 0));
+		assertTrue(estimator.add(RadioPositionEstimator.TYPE_WIFI, 0, 0, -60, 0));
+		assertFalse(estimator.add(RadioPositionEstimator.TYPE_WIFI, 0, 0, -60, 0));
+		assertFalse(new RadioPositionEstimator().add(RadioPositionEstimator.TYPE_WIFI, Double.NaN, 0, -60, 0));
+		assertFalse(new RadioPositionEstimator().add(42, 0, 0, -60, 0));
+	}
+
+	@Test
+	public void testUrbanCellsExact() {
+		RadioPositionEstimator estimator = new RadioPositionEstimator();
+		addFixture(estimator, 52.52, 13.405, URBAN_CELLS, 0, new Random(0));
+		assertTrue(estimator.estimate());
+		double error = distance(52.52, 13.405, estimator.getLatitude(), estimator.getLongitude());
+		// signal strengths are rounded to whole dB, which is about 7% of the distance for cells
+		assertTrue("error " + error + " m", error < 60);
+		assertTrue(estimator.getIterations() > 0);
+	}
+
+	@Test
+	public void testStreetWifiExact() {
+		RadioPositionEstimator estimator = new RadioPositionEstimator();
+		addFixture(estimator, 48.137, 11.575, STREET_WIFI, 0, new Random(0));
+		assertTrue(estimator.estimate());
+		double error = distance(48.137, 11.575, estimator.getLatitude(), estimator.getLongitude());
+		assertTrue("error " + error + " m", error < 5);
+	}
+
+	/**
+	 * With noisy signal strengths, the true position should mostly lie within
+	 * the reported accuracy, and the estimate should be far better than the
+	 * spread of the transmitters.
+	 */
+	@Test
+	public void testStreetWifiNoisy() {
+		Random random = new Random(42);
+		RadioPositionEstimator estimator = new RadioPositionEstimator();
+		int runs = 200;
+		int withinAccuracy = 0;
+		double sumError = 0;
+		for (int i = 0; i < runs; i++) {
+			estimator.reset();
+			addFixture(estimator, 48.137, 11.575, STREET_WIFI, 4, random);
+			assertTrue(estimator.estimate());
+			double error = distance(48.137, 11.575, estimator.getLatitude(), estimator.getLongitude());
+			sumError += error;
+			if (error <= 2 * estimator.getAccuracy())
+				withinAccuracy++;
+		}
+		assertTrue("mean error " + sumError / runs + " m", sumError / runs < 20);
+		assertTrue(withinAccuracy + " of " + runs + " within accuracy", withinAccuracy >= runs * 8 / 10);
+	}
+
+	/**
+	 * Transmitters on both sides of the antimeridian must not pull the estimate to longitude 0.
+	 */
+	@Test
+	public void testAntimeridian() {
+		RadioPositionEstimator estimator = new RadioPositionEstimator();
+		addFixture(estimator, -16.5, 179.9995, STREET_WIFI, 0, new Random(0));
+		assertTrue(estimator.estimate());
+		double error = distance(-16.5, 179.9995, estimator.getLatitude(), estimator.getLongitude());
+		assertTrue("error " + error + " m", error < 5);
+		assertTrue(Math.abs(estimator.getLongitude()) > 179);
+	}
+
+	/**
+	 * The last result is kept after a reset, until the next estimate.
+	 */
+	@Test
+	public void testResetKeepsResult() {
+		RadioPositionEstimator estimator = new RadioPositionEstimator();
+		addFixture(estimator, 52.52, 13.405, URBAN_CELLS, 0, new Random(0));
+		assertTrue(estimator.estimate());
+		double lat = estimator.getLatitude();
+		estimator.reset();
+		assertEquals(0, estimator.getCount());
+		assertEquals(lat, estimator.getLatitude(), 0);
+	}
+}
@@ -0,0 +1,167 @@
+package com.vonglasow.michael.satstat.mapsforge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.rendertheme.ExternalRenderTheme;
+import org.mapsforge.map.rendertheme.InternalRenderTheme;
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+
+public class PersistentTileCacheTest {
+    private static final Tile TILE = new Tile(8800, 5373, (byte) 14);
+
+    private File cacheDirectory;
+    private File mapFile;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDirectory = File.createTempFile("tilecache", "");
+        assertTrue(cacheDirectory.delete());
+        assertTrue(cacheDirectory.mkdir());
+        mapFile = File.createTempFile("sample", ".map");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = cacheDirectory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        cacheDirectory.delete();
+        mapFile.delete();
+    }
+
+    private static PersistentTileCache createCache(File cacheDirectory) {
+        return new PersistentTileCache(16, cacheDirectory, new TileRenderBenchmarkTest.NullGraphicFactory());
+    }
+
+    private static RendererJob createJob(Tile tile, File mapFile, XmlRenderTheme theme) {
+        return new RendererJob(tile, mapFile, theme, new DisplayModel(), 1, false);
+    }
+
+    private static void putTile(File cacheDirectory, File mapFile) {
+        PersistentTileCache cache = createCache(cacheDirectory);
+        cache.put(createJob(TILE, mapFile, InternalRenderTheme.OSMARENDER),
+                new TileRenderBenchmarkTest.NullBitmap(256, 256));
+        cache.destroy();
+    }
+
+    @Test
+    public void testKey() {
+        String key = PersistentTileCache.getKey(createJob(TILE, mapFile, InternalRenderTheme.OSMARENDER));
+        assertTrue(key, key.startsWith("14_8800_5373_256_"));
+        // equal jobs have equal keys, regardless of the instances involved
+        assertEquals(key, PersistentTileCache.getKey(createJob(new Tile(8800, 5373, (byte) 14),
+                new File(mapFile.getPath()), InternalRenderTheme.OSMARENDER)));
+        assertFalse(key.equals(PersistentTileCache.getKey(createJob(new Tile(8801, 5373, (byte) 14),
+                mapFile, InternalRenderTheme.OSMARENDER))));
+    }
+
+    /**
+     * A tile put by one instance is found by a new instance on the same directory.
+     */
+    @Test
+    public void testNewInstance() {
+        putTile(cacheDirectory, mapFile);
+        PersistentTileCache cache = createCache(cacheDirectory);
+        RendererJob job = createJob(TILE, mapFile, InternalRenderTheme.OSMARENDER);
+        assertTrue(cache.containsKey(job));
+        assertNotNull(cache.get(job));
+    }
+
+    /**
+     * A tile put by another process is found. This is what {@link RendererJob#hashCode()} fails at, as it includes
+     * the identity hash code of the render theme.
+     */
+    @Test
+    public void testRestart() throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath(),
+                "-cp", System.getProperty("java.class.path"), ChildProcess.class.getName(),
+                cacheDirectory.getPath(), mapFile.getPath()).redirectErrorStream(true).start();
+        process.getInputStream().close();
+        assertEquals(0, process.waitFor());
+        assertEquals(1, cacheDirectory.listFiles(ImageFileNameFilter.INSTANCE).length);
+
+        PersistentTileCache cache = createCache(cacheDirectory);
+        RendererJob job = createJob(TILE, mapFile, InternalRenderTheme.OSMARENDER);
+        assertTrue(cache.containsKey(job));
+        assertNotNull(cache.get(job));
+    }
+
+    /**
+     * Tiles are rendered again when the map file changes.
+     */
+    @Test
+    public void testMapFileChanged() {
+        putTile(cacheDirectory, mapFile);
+        assertTrue(mapFile.setLastModified(mapFile.lastModified() - 60000));
+        PersistentTileCache cache = createCache(cacheDirectory);
+        RendererJob job = createJob(TILE, mapFile, InternalRenderTheme.OSMARENDER);
+        assertFalse(cache.containsKey(job));
+        assertNull(cache.get(job));
+    }
+
+    @Test
+    public void testThemeChanged() throws IOException {
+        putTile(cacheDirectory, mapFile);
+        File themeFile = File.createTempFile("theme", ".xml");
+        try {
+            XmlRenderTheme theme = new ExternalRenderTheme(themeFile);
+            PersistentTileCache cache = createCache(cacheDirectory);
+            assertFalse(cache.containsKey(createJob(TILE, mapFile, theme)));
+            // external themes are identified by their file
+            assertEquals(PersistentTileCache.getKey(createJob(TILE, mapFile, theme)),
+                    PersistentTileCache.getKey(createJob(TILE, mapFile, new ExternalRenderTheme(themeFile))));
+        } finally {
+            themeFile.delete();
+        }
+    }
+
+    /**
+     * Tiles stored under the numeric keys of earlier versions are deleted.
+     */
+    @Test
+    public void testLegacyFiles() throws IOException {
+        File legacy = new File(cacheDirectory, "-123456" + PersistentTileCache.FILE_EXTENSION);
+        assertTrue(legacy.createNewFile());
+        putTile(cacheDirectory, mapFile);
+        createCache(cacheDirectory);
+        assertFalse(legacy.exists());
+        assertEquals(1, cacheDirectory.listFiles(ImageFileNameFilter.INSTANCE).length);
+    }
+
+    /**
+     * Cache directories of earlier versions are deleted along with their tiles.
+     */
+    @Test
+    public void testDeleteDirectory() throws IOException {
+        putTile(cacheDirectory, mapFile);
+        assertTrue(new File(cacheDirectory, "-123456" + PersistentTileCache.FILE_EXTENSION).createNewFile());
+        assertTrue(PersistentTileCache.deleteDirectory(cacheDirectory));
+        assertFalse(cacheDirectory.exists());
+        // nothing left to delete
+        assertTrue(PersistentTileCache.deleteDirectory(cacheDirectory));
+    }
+
+    /**
+     * Puts a tile into the cache in a separate process, see {@link PersistentTileCacheTest#testRestart()}.
+     */
+    static class ChildProcess {
+        public static void main(String[] args) {
+            putTile(new File(args[0]), new File(args[1]));
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.vonglasow.michael.satstat.mapsforge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Downloads tiles from a local stand-in tile server with {@link TileFetcher} and checks the results.
+ * <p>
+ * The stand-in server serves generated tiles over HTTP/1.1 with keep-alive, answers a fraction of first requests
+ * with 503 and has no tiles above a certain zoom level. It is reached under two host names, {@code localhost} and
+ * {@code 127.0.0.1}, which serve as the subdomains of a {@link UrlTemplateTileSource}.
+ * <p>
+ * The benchmark downloads the tiles first with connections kept alive and then with a new connection for each
+ * request, and prints the metrics of each run. It checks that every tile arrives intact, that missing tiles are
+ * not retried, that each injected failure causes exactly one retry, that the number of concurrent requests to each
+ * host stays within the limit and that connections are reused.
+ */
+public class TileFetcherBenchmarkTest {
+    private static final int ZOOM = 16;
+    private static final int MISSING_ZOOM = 19;
+    private static final int MISSING_TILES = 10;
+    private static final int FAILURE_INTERVAL = 7;
+    private static final int CONNECTIONS_PER_HOST = 4;
+
+    /** Number of tiles per side of the square of tiles to download */
+    private static final int SIDE = 20;
+
+    /** Number of threads requesting tiles */
+    private static final int CLIENTS = 16;
+
+    /** Time the server waits before answering each request, in milliseconds */
+    private static final int DELAY = 5;
+
+    @Test
+    public void testDownload() throws IOException, InterruptedException, ExecutionException {
+        StandInTileServer server = new StandInTileServer(DELAY, MISSING_ZOOM, FAILURE_INTERVAL);
+        server.start();
+        try {
+            UrlTemplateTileSource tileSource = new UrlTemplateTileSource("stand-in",
+                    "http://{s}:" + server.getPort() + "/tiles/{z}/{x}/{y}.png")
+                    .setSubdomains("localhost", "127.0.0.1");
+
+            List<Tile> tiles = new ArrayList<Tile>();
+            for (int x = 0; x < SIDE; x++)
+                for (int y = 0; y < SIDE; y++)
+                    tiles.add(new Tile(x, y, (byte) ZOOM));
+            for (int i = 0; i < MISSING_TILES; i++)
+                tiles.add(new Tile(i, i, (byte) MISSING_ZOOM));
+
+            System.out.println(String.format(Locale.ROOT,
+                    "TileFetcher: %d tiles from 2 hosts, %d client threads, %d connections per host, "
+                    + "%d ms server delay", tiles.size(), CLIENTS, CONNECTIONS_PER_HOST, DELAY));
+
+            // warm up, so that the first run does not pay for class loading and compilation
+            download(new TileFetcher("SatStat-benchmark", CONNECTIONS_PER_HOST, 3, 10), tileSource, tiles);
+
+            run(server, tileSource, tiles, true);
+            run(server, tileSource, tiles, false);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Downloads all tiles with a new fetcher, prints the metrics and checks the results.
+     */
+    private static void run(StandInTileServer server, UrlTemplateTileSource tileSource, List<Tile> tiles,
+            boolean keepAlive) throws InterruptedException, ExecutionException {
+        server.reset();
+        TileFetcher fetcher = keepAlive
+                ? new TileFetcher("SatStat-benchmark", CONNECTIONS_PER_HOST, 3, 10)
+                : new NoKeepAliveTileFetcher("SatStat-benchmark", CONNECTIONS_PER_HOST, 3, 10);
+        long start = System.nanoTime();
+        int corrupt = download(fetcher, tileSource, tiles);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        TileFetcher.Metrics metrics = fetcher.getMetrics();
+
+        String mode = keepAlive ? "keep-alive" : "new connection per request";
+        System.out.println("TileFetcher " + mode + ": " + metrics);
+        System.out.println(String.format(Locale.ROOT,
+                "TileFetcher %s: %d ms, %d connections for %d requests, "
+                + "at most %d concurrent requests per host, %d failures injected",
+                mode, elapsed, server.getConnections(), server.getRequests(), server.getMaxConcurrency(),
+                server.getInjectedFailures()));
+
+        assertEquals(mode + ": tiles missing or corrupt", 0, corrupt);
+        assertEquals(mode, tiles.size() - MISSING_TILES, metrics.successes);
+        assertEquals(mode, MISSING_TILES, metrics.notFound);
+        assertEquals(mode, 0, metrics.failures);
+        assertEquals(mode + ": retries", server.getInjectedFailures(), metrics.retries);
+        assertTrue(mode + ": per-host limit exceeded", server.getMaxConcurrency() <= CONNECTIONS_PER_HOST);
+        if (keepAlive)
+            assertTrue(mode + ": connections not reused", server.getConnections() <= 4 * CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * Downloads all tiles and returns the number of tiles which are missing or have the wrong content.
+     */
+    private static int download(final TileFetcher fetcher, final UrlTemplateTileSource tileSource, List<Tile> tiles)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (final Tile tile : tiles)
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    byte[] data = fetcher.fetch(tileSource.getTileUrl(tile));
+                    if (tile.zoomLevel >= MISSING_ZOOM)
+                        return data == null;
+                    return Arrays.equals(data, StandInTileServer.getTile(tile.zoomLevel, tile.tileX, tile.tileY));
+                }
+            }));
+        int corrupt = 0;
+        for (Future<Boolean> result : results)
+            if (!result.get())
+                corrupt++;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return corrupt;
+    }
+
+    /**
+     * A tile fetcher which asks the server to close the connection after each request.
+     */
+    private static class NoKeepAliveTileFetcher extends TileFetcher {
+        NoKeepAliveTileFetcher(String userAgent, int connectionsPerHost, int maxRetries, long initialBackoff) {
+            super(userAgent, connectionsPerHost, maxRetries, initialBackoff);
+        }
+
+        @Override
+        protected HttpURLConnection openConnection(URL url) throws IOException {
+            HttpURLConnection connection = super.openConnection(url);
+            connection.setRequestProperty("Connection", "close");
+            return connection;
+        }
+    }
+
+    /**
+     * A minimal HTTP/1.1 tile server for testing.
+     * <p>
+     * Tiles are requested as {@code /tiles/z/x/y.png}. Their content is generated from the tile coordinates, see
+     * {@link #getTile(int, long, long)}. Tiles at or above a given zoom level do not exist. The first request for
+     * every n-th tile fails with 503.
+     */
+    static class StandInTileServer {
+        private static final int IDLE_TIMEOUT = 5000;
+
+        private final int delay;
+        private final int missingZoom;
+        private final int failureInterval;
+
+        private ServerSocket serverSocket;
+        private final List<Socket> sockets = new ArrayList<Socket>();
+        private final ConcurrentMap<String, Boolean> failed = new ConcurrentHashMap<String, Boolean>();
+        private final ConcurrentMap<String, AtomicInteger> concurrency = new ConcurrentHashMap<String, AtomicInteger>();
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger injectedFailures = new AtomicInteger();
+        private final AtomicInteger maxConcurrency = new AtomicInteger();
+
+        /**
+         * @param delay The time to wait before answering each request, in milliseconds
+         * @param missingZoom The lowest zoom level for which there are no tiles
+         * @param failureInterval The first request for every n-th tile fails
+         */
+        StandInTileServer(int delay, int missingZoom, int failureInterval) {
+            this.delay = delay;
+            this.missingZoom = missingZoom;
+            this.failureInterval = failureInterval;
+        }
+
+        /**
+         * Returns the content of a tile.
+         */
+        static byte[] getTile(int zoom, long x, long y) {
+            Random random = new Random((zoom * 31 + x) * 1000003 + y);
+            byte[] data = new byte[2048 + random.nextInt(14336)];
+            random.nextBytes(data);
+            return data;
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        int getInjectedFailures() {
+            return injectedFailures.get();
+        }
+
+        int getMaxConcurrency() {
+            return maxConcurrency.get();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        int getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * Closes all connections and resets the counters.
+         */
+        synchronized void reset() {
+            closeSockets();
+            failed.clear();
+            concurrency.clear();
+            connections.set(0);
+            requests.set(0);
+            injectedFailures.set(0);
+            maxConcurrency.set(0);
+        }
+
+        void start() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread acceptor = new Thread("StandInTileServer") {
+                @Override
+                public void run() {
+                    while (!serverSocket.isClosed())
+                        try {
+                            final Socket socket = serverSocket.accept();
+                            synchronized (StandInTileServer.this) {
+                                sockets.add(socket);
+                            }
+                            connections.incrementAndGet();
+                            Thread handler = new Thread() {
+                                @Override
+                                public void run() {
+                                    serve(socket);
+                                }
+                            };
+                            handler.setDaemon(true);
+                            handler.start();
+                        } catch (IOException e) {
+                            // server socket closed
+                        }
+                }
+            };
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        synchronized void stop() throws IOException {
+            serverSocket.close();
+            closeSockets();
+        }
+
+        private synchronized void closeSockets() {
+            for (Socket socket : sockets)
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            sockets.clear();
+        }
+
+        /**
+         * Reads a line terminated by CRLF, or returns null at the end of the stream.
+         */
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    int length = line.length();
+                    if ((length > 0) && (line.charAt(length - 1) == '\r'))
+                        line.setLength(length - 1);
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return (line.length() == 0) ? null : line.toString();
+        }
+
+        /**
+         * Answers requests on a connection until the client closes it or asks to close it.
+         */
+        private void serve(Socket socket) {
+            try {
+                socket.setSoTimeout(IDLE_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                while (true) {
+                    String requestLine = readLine(in);
+                    if (requestLine == null)
+                        break;
+                    String host = "";
+                    boolean close = false;
+                    String header;
+                    while (((header = readLine(in)) != null) && (header.length() > 0)) {
+                        String lower = header.toLowerCase(Locale.ROOT);
+                        if (lower.startsWith("host:"))
+                            host = header.substring(5).trim();
+                        else if (lower.startsWith("connection:") && lower.contains("close"))
+                            close = true;
+                    }
+                    requests.incrementAndGet();
+                    AtomicInteger hostConcurrency = concurrency.get(host);
+                    if (hostConcurrency == null) {
+                        concurrency.putIfAbsent(host, new AtomicInteger());
+                        hostConcurrency = concurrency.get(host);
+                    }
+                    int current = hostConcurrency.incrementAndGet();
+                    int max;
+                    while ((current > (max = maxConcurrency.get())) && !maxConcurrency.compareAndSet(max, current))
+                        ;
+                    byte[] response;
+                    try {
+                        response = respond(requestLine, close);
+                        /*
+                         * The request counts until the client has received the whole response, after which it may
+                         * send the next one. Hold back the last byte until the counter has been decremented, so
+                         * that this cannot happen before.
+                         */
+                        out.write(response, 0, response.length - 1);
+                        out.flush();
+                    } finally {
+                        hostConcurrency.decrementAndGet();
+                    }
+                    out.write(response, response.length - 1, 1);
+                    out.flush();
+                    if (close)
+                        break;
+                }
+            } catch (SocketTimeoutException e) {
+                // idle connection
+            } catch (IOException e) {
+                // connection closed by client or by reset()
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        /**
+         * Returns the complete response to a request, including the status line and headers.
+         */
+        private byte[] respond(String requestLine, boolean close) throws IOException {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            String[] parts = requestLine.split(" ");
+            String path = (parts.length > 1) ? parts[1] : "";
+            int status = 404;
+            byte[] body = new byte[0];
+            String[] segments = path.split("/");
+            if ((segments.length == 5) && "tiles".equals(segments[1]) && segments[4].endsWith(".png"))
+                try {
+                    int zoom = Integer.parseInt(segments[2]);
+                    long x = Long.parseLong(segments[3]);
+                    long y = Long.parseLong(segments[4].substring(0, segments[4].length() - 4));
+                    if (zoom >= missingZoom)
+                        status = 404;
+                    else if (((x * 31 + y) % failureInterval == 0) && (failed.putIfAbsent(path, true) == null)) {
+                        status = 503;
+                        body = "Try again".getBytes("US-ASCII");
+                        injectedFailures.incrementAndGet();
+                    } else {
+                        status = 200;
+                        body = getTile(zoom, x, y);
+                    }
+                } catch (NumberFormatException e) {
+                    status = 404;
+                }
+            String reason = (status == 200) ? "OK" : (status == 503) ? "Service Unavailable" : "Not Found";
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            head.append("Content-Type: ").append((status == 200) ? "image/png" : "text/plain").append("\r\n");
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+            if (status == 503)
+                head.append("Retry-After: 0\r\n");
+            head.append("Connection: ").append(close ? "close" : "keep-alive").append("\r\n\r\n");
+            ByteArrayOutputStream response = new ByteArrayOutputStream(head.length() + body.length);
+            response.write(head.toString().getBytes("US-ASCII"));
+            response.write(body);
+            return response.toByteArray();
+        }
+    }
+}
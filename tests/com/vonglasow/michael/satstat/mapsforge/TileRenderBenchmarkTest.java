@@ -0,0 +1,849 @@
+package com.vonglasow.michael.satstat.mapsforge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.mapsforge.core.graphics.Align;
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.Cap;
+import org.mapsforge.core.graphics.Color;
+import org.mapsforge.core.graphics.FillRule;
+import org.mapsforge.core.graphics.FontFamily;
+import org.mapsforge.core.graphics.FontStyle;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.Matrix;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.graphics.Path;
+import org.mapsforge.core.graphics.ResourceBitmap;
+import org.mapsforge.core.graphics.Style;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Dimension;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.MapPosition;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.LatLongUtils;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.cache.InMemoryTileCache;
+import org.mapsforge.map.layer.cache.TileCache;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.model.MapViewPosition;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.reader.MapReadResult;
+import org.mapsforge.map.reader.header.FileOpenResult;
+import org.mapsforge.map.reader.header.MapFileInfo;
+import org.mapsforge.map.rendertheme.InternalRenderTheme;
+
+/**
+ * Measures the tile rendering throughput of {@link ParallelTileRendererLayer} with different numbers of workers.
+ * <p>
+ * The map file is taken from the {@code mapFile} system property. If it is not set, a small sample map of a
+ * made-up town (streets, buildings, parks, water and points of interest) is generated in a temporary file. Tiles
+ * are requested through {@link ParallelTileRendererLayer#draw(BoundingBox, byte, Canvas, Point)} in chunks of
+ * one screen, like the map view does when panning, for zoom levels 14 to 16.
+ * <p>
+ * Tiles are rendered with a graphic factory which counts drawing operations but does not rasterize anything, as
+ * the Android graphics stack is not available on a plain JVM. The figures therefore cover reading the map file,
+ * matching the render theme and placing labels, but not drawing pixels. All runs must produce about the same
+ * number of drawing operations, which checks that workers do not interfere with each other. The numbers may differ
+ * slightly, as labels which cross tile borders depend on which tiles a worker has rendered before (see
+ * {@link ParallelTileRendererLayer}).
+ */
+public class TileRenderBenchmarkTest {
+    private static final byte[] ZOOM_LEVELS = {14, 15, 16};
+
+    /** Size of the area rendered around the center of the map, in degrees of latitude or longitude */
+    private static final double MAX_AREA_SIZE = 0.1;
+
+    /** Width and height of the chunks in which tiles are requested, in tiles */
+    private static final int SCREEN_TILES = 4;
+
+    /** Maximum time to wait for a chunk of tiles */
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private static final int TILE_SIZE = 256;
+
+    @Test
+    public void testThroughput() throws IOException, InterruptedException {
+        File mapFile;
+        String path = System.getProperty("mapFile");
+        if (path != null)
+            mapFile = new File(path);
+        else {
+            mapFile = File.createTempFile("sample", ".map");
+            mapFile.deleteOnExit();
+            SampleMapWriter.write(mapFile);
+            System.out.printf("TileRenderBenchmark: generated sample map, %d bytes%n", mapFile.length());
+        }
+
+        MapDatabase mapDatabase = new MapDatabase();
+        FileOpenResult result = mapDatabase.openFile(mapFile);
+        assertTrue("cannot open map file: " + result.getErrorMessage(), result.isSuccess());
+        MapFileInfo info = mapDatabase.getMapFileInfo();
+        BoundingBox area = getArea(info.boundingBox);
+        LatLong center = area.getCenterPoint();
+        MapReadResult data = mapDatabase.readMapData(new org.mapsforge.core.model.Tile(
+                MercatorProjection.longitudeToTileX(center.longitude, (byte) 14),
+                MercatorProjection.latitudeToTileY(center.latitude, (byte) 14), (byte) 14));
+        System.out.printf("TileRenderBenchmark: map data at center, %d ways, %d POIs%n",
+                data.ways.size(), data.pointOfInterests.size());
+        mapDatabase.closeFile();
+        assertTrue(data.ways.size() > 0);
+
+        // warm up the JIT with a single worker
+        render(mapFile, area, 1);
+
+        int cores = ParallelTileRendererLayer.getDefaultThreadCount();
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for (int threads = 1; threads < cores; threads *= 2)
+            threadCounts.add(threads);
+        threadCounts.add(cores);
+
+        double baseRate = 0;
+        long baseOps = -1;
+        for (int threads : threadCounts) {
+            Result r = render(mapFile, area, threads);
+            double rate = r.tiles / r.seconds;
+            if (baseRate == 0) {
+                baseRate = rate;
+                baseOps = r.drawOps;
+            }
+            System.out.printf("TileRenderBenchmark: %2d thread(s), %5d tiles in %6.3f s, %7.1f tiles/s, "
+                    + "speedup %.2f, %d draw ops%n", threads, r.tiles, r.seconds, rate, rate / baseRate, r.drawOps);
+            assertTrue("timed out with " + threads + " thread(s)", r.isComplete);
+            assertTrue(r.drawOps > 0);
+            assertEquals("draw ops with " + threads + " thread(s)", baseOps, r.drawOps, baseOps / 1000);
+        }
+    }
+
+    /**
+     * Returns the area to render: the bounding box of the map, limited to {@link #MAX_AREA_SIZE} around its
+     * center.
+     */
+    private static BoundingBox getArea(BoundingBox bbox) {
+        LatLong center = bbox.getCenterPoint();
+        double d = MAX_AREA_SIZE / 2;
+        return new BoundingBox(Math.max(bbox.minLatitude, center.latitude - d),
+                Math.max(bbox.minLongitude, center.longitude - d),
+                Math.min(bbox.maxLatitude, center.latitude + d),
+                Math.min(bbox.maxLongitude, center.longitude + d));
+    }
+
+    /**
+     * Renders all tiles of an area with a new layer and cache.
+     */
+    private static Result render(File mapFile, BoundingBox area, int threads) throws InterruptedException {
+        Result result = new Result();
+        NullGraphicFactory graphicFactory = new NullGraphicFactory();
+        CountingTileCache tileCache = new CountingTileCache(new InMemoryTileCache(4096));
+        DisplayModel displayModel = new DisplayModel();
+        MapViewPosition mapViewPosition = new MapViewPosition(displayModel);
+        ParallelTileRendererLayer layer = new ParallelTileRendererLayer(tileCache, mapViewPosition, false,
+                graphicFactory, threads);
+        layer.setMapFile(mapFile);
+        layer.setXmlRenderTheme(InternalRenderTheme.OSMARENDER);
+        layer.setDisplayModel(displayModel);
+        Canvas canvas = graphicFactory.createCanvas();
+
+        long start = System.nanoTime();
+        result.isComplete = true;
+        for (byte zoom : ZOOM_LEVELS) {
+            long left = MercatorProjection.longitudeToTileX(area.minLongitude, zoom);
+            long right = MercatorProjection.longitudeToTileX(area.maxLongitude, zoom);
+            long top = MercatorProjection.latitudeToTileY(area.maxLatitude, zoom);
+            long bottom = MercatorProjection.latitudeToTileY(area.minLatitude, zoom);
+            for (long y = top; y <= bottom; y += SCREEN_TILES)
+                for (long x = left; x <= right; x += SCREEN_TILES) {
+                    long x2 = Math.min(x + SCREEN_TILES - 1, right);
+                    long y2 = Math.min(y + SCREEN_TILES - 1, bottom);
+                    // keep the box inside the tiles, so that tiles of adjacent chunks are not requested twice
+                    double e = 1e-7;
+                    BoundingBox bbox = new BoundingBox(
+                            MercatorProjection.tileYToLatitude(y2 + 1, zoom) + e,
+                            MercatorProjection.tileXToLongitude(x, zoom) + e,
+                            MercatorProjection.tileYToLatitude(y, zoom) - e,
+                            MercatorProjection.tileXToLongitude(x2 + 1, zoom) - e);
+                    mapViewPosition.setMapPosition(new MapPosition(bbox.getCenterPoint(), zoom));
+                    result.tiles += (int) ((x2 - x + 1) * (y2 - y + 1));
+                    layer.draw(bbox, zoom, canvas, new Point(x * TILE_SIZE, y * TILE_SIZE));
+                    if (!tileCache.awaitPutCount(result.tiles, TIMEOUT_MILLIS)) {
+                        result.isComplete = false;
+                        break;
+                    }
+                }
+        }
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        layer.onDestroy();
+        mapViewPosition.destroy();
+        // drawing operations of the canvas passed to draw() are not rendering work
+        result.drawOps = graphicFactory.drawOps.get() - ((NullCanvas) canvas).ownDrawOps;
+        return result;
+    }
+
+    private static class Result {
+        int tiles;
+        double seconds;
+        long drawOps;
+        boolean isComplete;
+    }
+
+    /**
+     * A tile cache which counts the tiles put into it, so that the benchmark can tell when rendering is done.
+     */
+    private static class CountingTileCache implements TileCache {
+        private final TileCache tileCache;
+        private int putCount = 0;
+
+        CountingTileCache(TileCache tileCache) {
+            this.tileCache = tileCache;
+        }
+
+        synchronized boolean awaitPutCount(int count, long timeoutMillis) throws InterruptedException {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            while (putCount < count) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0)
+                    return false;
+                wait(wait);
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean containsKey(Job key) {
+            return tileCache.containsKey(key);
+        }
+
+        @Override
+        public synchronized void destroy() {
+            tileCache.destroy();
+        }
+
+        @Override
+        public synchronized TileBitmap get(Job key) {
+            return tileCache.get(key);
+        }
+
+        @Override
+        public int getCapacity() {
+            return tileCache.getCapacity();
+        }
+
+        @Override
+        public synchronized void put(Job key, TileBitmap bitmap) {
+            tileCache.put(key, bitmap);
+            putCount++;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes a small map file in version 3 of the mapsforge binary format.
+     * <p>
+     * The map covers 4 &times; 4 tiles at zoom level 14 and has a single sub-file for zoom levels 12 to 21. Each
+     * tile has a grid of named streets and a main road from zoom level 12, a park and possibly a lake from zoom
+     * level 13, buildings from zoom level 15 and restaurants and cafes from zoom level 16. Coordinates are
+     * generated from a fixed seed, so the file is the same on every run.
+     */
+    static class SampleMapWriter {
+        private static final byte BASE_ZOOM = 14;
+        private static final byte MIN_ZOOM = 12;
+        private static final byte MAX_ZOOM = 21;
+        private static final int TILES = 4;
+
+        private static final String[] POI_TAGS = {"amenity=restaurant", "amenity=cafe"};
+        private static final String[] WAY_TAGS = {"highway=primary", "highway=residential", "leisure=park",
+                "natural=water", "building=yes"};
+        private static final int PRIMARY = 0;
+        private static final int RESIDENTIAL = 1;
+        private static final int PARK = 2;
+        private static final int WATER = 3;
+        private static final int BUILDING = 4;
+
+        /** OSM layer 0, which is stored with an offset of 5 */
+        private static final int LAYER = 5 << 4;
+
+        private final long tileLeft;
+        private final long tileTop;
+        private final int[] bbox = new int[4];
+
+        private SampleMapWriter() {
+            tileLeft = MercatorProjection.longitudeToTileX(11.55, BASE_ZOOM);
+            tileTop = MercatorProjection.latitudeToTileY(48.15, BASE_ZOOM);
+            // stay one microdegree inside the tiles, so the reader does not expect an extra row or column
+            bbox[0] = LatLongUtils.degreesToMicrodegrees(
+                    MercatorProjection.tileYToLatitude(tileTop + TILES, BASE_ZOOM)) + 1;
+            bbox[1] = LatLongUtils.degreesToMicrodegrees(
+                    MercatorProjection.tileXToLongitude(tileLeft, BASE_ZOOM)) + 1;
+            bbox[2] = LatLongUtils.degreesToMicrodegrees(
+                    MercatorProjection.tileYToLatitude(tileTop, BASE_ZOOM)) - 1;
+            bbox[3] = LatLongUtils.degreesToMicrodegrees(
+                    MercatorProjection.tileXToLongitude(tileLeft + TILES, BASE_ZOOM)) - 1;
+        }
+
+        static void write(File file) throws IOException {
+            new SampleMapWriter().writeFile(file);
+        }
+
+        private void writeFile(File file) throws IOException {
+            byte[] subFile = writeSubFile();
+            // the header has a fixed length, so write it once to learn where the sub-file starts
+            int headerLength = writeHeader(0, 0).length;
+            long startAddress = 20 + 4 + headerLength;
+            byte[] header = writeHeader(startAddress, subFile.length);
+
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.write("mapsforge binary OSM".getBytes("UTF-8"));
+                out.writeInt(header.length);
+                out.write(header);
+                out.write(subFile);
+            } finally {
+                out.close();
+            }
+        }
+
+        private byte[] writeHeader(long startAddress, long subFileSize) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(3);
+            out.writeLong(startAddress + subFileSize);
+            out.writeLong(1400000000000L);
+            for (int value : bbox)
+                out.writeInt(value);
+            out.writeShort(TILE_SIZE);
+            writeString(out, "Mercator");
+            // no optional fields
+            out.writeByte(0);
+            out.writeShort(POI_TAGS.length);
+            for (String tag : POI_TAGS)
+                writeString(out, tag);
+            out.writeShort(WAY_TAGS.length);
+            for (String tag : WAY_TAGS)
+                writeString(out, tag);
+            out.writeByte(1);
+            out.writeByte(BASE_ZOOM);
+            out.writeByte(MIN_ZOOM);
+            out.writeByte(MAX_ZOOM);
+            out.writeLong(startAddress);
+            out.writeLong(subFileSize);
+            out.close();
+            return buffer.toByteArray();
+        }
+
+        /**
+         * Writes the tile index followed by the tile blocks.
+         */
+        private byte[] writeSubFile() throws IOException {
+            long left = MercatorProjection.longitudeToTileX(LatLongUtils.microdegreesToDegrees(bbox[1]), BASE_ZOOM);
+            long right = MercatorProjection.longitudeToTileX(LatLongUtils.microdegreesToDegrees(bbox[3]), BASE_ZOOM);
+            long top = MercatorProjection.latitudeToTileY(LatLongUtils.microdegreesToDegrees(bbox[2]), BASE_ZOOM);
+            long bottom = MercatorProjection.latitudeToTileY(LatLongUtils.microdegreesToDegrees(bbox[0]), BASE_ZOOM);
+            int blockCount = (int) ((right - left + 1) * (bottom - top + 1));
+
+            ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            long indexSize = 5L * blockCount;
+            for (long y = top; y <= bottom; y++)
+                for (long x = left; x <= right; x++) {
+                    long offset = indexSize + blocks.size();
+                    for (int shift = 32; shift >= 0; shift -= 8)
+                        index.write((int) (offset >> shift));
+                    blocks.write(writeBlock(x, y));
+                }
+            index.write(blocks.toByteArray());
+            return index.toByteArray();
+        }
+
+        private byte[] writeBlock(long tileX, long tileY) throws IOException {
+            Random random = new Random(tileX * 31 + tileY);
+            TileWriter tile = new TileWriter(tileX, tileY);
+            int rows = MAX_ZOOM - MIN_ZOOM + 1;
+            int[] poiCounts = new int[rows];
+            int[] wayCounts = new int[rows];
+            ByteArrayOutputStream pois = new ByteArrayOutputStream();
+            ByteArrayOutputStream ways = new ByteArrayOutputStream();
+
+            // ways must be sorted by the zoom level from which they are shown
+            int row = 0;
+            for (int i = 1; i < 6; i++) {
+                double f = i / 6.0;
+                tile.writeWay(ways, RESIDENTIAL, "Street " + (tileX % 100) + "-" + i, null, false,
+                        0, f, 1, f);
+                tile.writeWay(ways, RESIDENTIAL, "Avenue " + (tileY % 100) + "-" + i, null, false,
+                        f, 0, f, 1);
+                wayCounts[row] += 2;
+            }
+            tile.writeWay(ways, PRIMARY, "Main Road", "B 2", false,
+                    0, 0.02, 0.3, 0.25, 0.7, 0.4, 1, 0.55);
+            wayCounts[row]++;
+
+            row = 13 - MIN_ZOOM;
+            double px = 0.1 + 0.5 * random.nextDouble();
+            double py = 0.1 + 0.5 * random.nextDouble();
+            tile.writeWay(ways, PARK, "Park " + tileX + "/" + tileY, null, true,
+                    px, py, px + 0.25, py + 0.02, px + 0.3, py + 0.2, px + 0.05, py + 0.3);
+            wayCounts[row]++;
+            if (random.nextBoolean()) {
+                double wx = 0.1 + 0.6 * random.nextDouble();
+                double wy = 0.1 + 0.6 * random.nextDouble();
+                tile.writeWay(ways, WATER, "Lake", null, true,
+                        wx, wy, wx + 0.1, wy - 0.05, wx + 0.2, wy + 0.05, wx + 0.12, wy + 0.15, wx, wy + 0.1);
+                wayCounts[row]++;
+            }
+
+            row = 15 - MIN_ZOOM;
+            for (int i = 0; i < 150; i++) {
+                double bx = random.nextDouble() * 0.97;
+                double by = random.nextDouble() * 0.97;
+                double w = 0.005 + 0.02 * random.nextDouble();
+                double h = 0.005 + 0.02 * random.nextDouble();
+                tile.writeWay(ways, BUILDING, null, null, true,
+                        bx, by, bx + w, by, bx + w, by + h, bx, by + h);
+                wayCounts[row]++;
+            }
+
+            row = 16 - MIN_ZOOM;
+            for (int i = 0; i < 30; i++) {
+                int tag = random.nextInt(POI_TAGS.length);
+                tile.writePoi(pois, tag, ((tag == 0) ? "Restaurant " : "Cafe ") + i,
+                        random.nextDouble(), random.nextDouble());
+                poiCounts[row]++;
+            }
+
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            for (int i = 0; i < rows; i++) {
+                writeUnsigned(block, poiCounts[i]);
+                writeUnsigned(block, wayCounts[i]);
+            }
+            writeUnsigned(block, pois.size());
+            block.write(pois.toByteArray());
+            block.write(ways.toByteArray());
+            return block.toByteArray();
+        }
+
+        /**
+         * Converts positions within a tile to coordinates relative to the tile origin.
+         */
+        private static class TileWriter {
+            private final double latitude;
+            private final double longitude;
+            private final double height;
+            private final double width;
+
+            TileWriter(long tileX, long tileY) {
+                latitude = MercatorProjection.tileYToLatitude(tileY, BASE_ZOOM);
+                longitude = MercatorProjection.tileXToLongitude(tileX, BASE_ZOOM);
+                height = latitude - MercatorProjection.tileYToLatitude(tileY + 1, BASE_ZOOM);
+                width = MercatorProjection.tileXToLongitude(tileX + 1, BASE_ZOOM) - longitude;
+            }
+
+            /** Returns the latitude offset of a position, in microdegrees; y runs from 0 (top) to 1 (bottom). */
+            private int dLat(double y) {
+                return LatLongUtils.degreesToMicrodegrees(-Math.min(Math.max(y, 0), 1) * height);
+            }
+
+            /** Returns the longitude offset of a position, in microdegrees; x runs from 0 (left) to 1 (right). */
+            private int dLon(double x) {
+                return LatLongUtils.degreesToMicrodegrees(Math.min(Math.max(x, 0), 1) * width);
+            }
+
+            void writePoi(OutputStream out, int tag, String name, double x, double y) throws IOException {
+                writeSigned(out, dLat(y));
+                writeSigned(out, dLon(x));
+                out.write(LAYER | 1);
+                writeUnsigned(out, tag);
+                out.write(0x80);
+                writeString(out, name);
+            }
+
+            /**
+             * Writes a way with a single tag and the given nodes, as pairs of x and y within the tile.
+             */
+            void writeWay(OutputStream out, int tag, String name, String ref, boolean isClosed, double... xy)
+                    throws IOException {
+                ByteArrayOutputStream way = new ByteArrayOutputStream();
+                // the way is in all sub-tiles, as far as the reader is concerned
+                way.write(0xFF);
+                way.write(0xFF);
+                way.write(LAYER | 1);
+                writeUnsigned(way, tag);
+                way.write(((name != null) ? 0x80 : 0) | ((ref != null) ? 0x20 : 0));
+                if (name != null)
+                    writeString(way, name);
+                if (ref != null)
+                    writeString(way, ref);
+                int nodes = xy.length / 2;
+                // one coordinate block
+                writeUnsigned(way, 1);
+                writeUnsigned(way, isClosed ? nodes + 1 : nodes);
+                int lat = dLat(xy[1]);
+                int lon = dLon(xy[0]);
+                writeSigned(way, lat);
+                writeSigned(way, lon);
+                for (int i = 1; i <= (isClosed ? nodes : nodes - 1); i++) {
+                    int j = (i % nodes) * 2;
+                    int nextLat = dLat(xy[j + 1]);
+                    int nextLon = dLon(xy[j]);
+                    writeSigned(way, nextLat - lat);
+                    writeSigned(way, nextLon - lon);
+                    lat = nextLat;
+                    lon = nextLon;
+                }
+                writeUnsigned(out, way.size());
+                out.write(way.toByteArray());
+            }
+        }
+
+        private static void writeString(OutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            writeUnsigned(out, bytes.length);
+            out.write(bytes);
+        }
+
+        /** Writes a variable-length unsigned integer, 7 bits per byte. */
+        private static void writeUnsigned(OutputStream out, int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        /** Writes a variable-length signed integer, with the sign in the last byte. */
+        private static void writeSigned(OutputStream out, int value) throws IOException {
+            int magnitude = Math.abs(value);
+            while ((magnitude & ~0x3F) != 0) {
+                out.write((magnitude & 0x7F) | 0x80);
+                magnitude >>>= 7;
+            }
+            out.write(magnitude | ((value < 0) ? 0x40 : 0));
+        }
+    }
+
+    /**
+     * A graphic factory whose objects draw nothing, but count drawing operations.
+     */
+    static class NullGraphicFactory implements GraphicFactory {
+        final AtomicLong drawOps = new AtomicLong();
+
+        @Override
+        public Bitmap createBitmap(int width, int height) {
+            return new NullBitmap(width, height);
+        }
+
+        @Override
+        public Bitmap createBitmap(int width, int height, boolean isTransparent) {
+            return new NullBitmap(width, height);
+        }
+
+        @Override
+        public Canvas createCanvas() {
+            return new NullCanvas(drawOps);
+        }
+
+        @Override
+        public int createColor(Color color) {
+            return color.ordinal();
+        }
+
+        @Override
+        public int createColor(int alpha, int red, int green, int blue) {
+            return (alpha << 24) | (red << 16) | (green << 8) | blue;
+        }
+
+        @Override
+        public Matrix createMatrix() {
+            return new NullMatrix();
+        }
+
+        @Override
+        public Paint createPaint() {
+            return new NullPaint();
+        }
+
+        @Override
+        public Path createPath() {
+            return new NullPath();
+        }
+
+        @Override
+        public ResourceBitmap createResourceBitmap(InputStream inputStream, int hash) {
+            return new NullBitmap(16, 16);
+        }
+
+        @Override
+        public TileBitmap createTileBitmap(InputStream inputStream, int tileSize, boolean isTransparent) {
+            return new NullBitmap(tileSize, tileSize);
+        }
+
+        @Override
+        public TileBitmap createTileBitmap(int tileSize, boolean isTransparent) {
+            return new NullBitmap(tileSize, tileSize);
+        }
+
+        @Override
+        public InputStream platformSpecificSources(String relativePathPrefix, String src) {
+            // resources are loaded from the class path
+            return null;
+        }
+
+        @Override
+        public ResourceBitmap renderSvg(InputStream inputStream, float scaleFactor, int hash) {
+            return new NullBitmap(16, 16);
+        }
+    }
+
+    static class NullBitmap implements TileBitmap, ResourceBitmap {
+        private final int width;
+        private final int height;
+
+        NullBitmap(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void compress(OutputStream outputStream) {
+        }
+
+        @Override
+        public void decrementRefCount() {
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public void incrementRefCount() {
+        }
+
+        @Override
+        public void scaleTo(int width, int height) {
+        }
+
+        @Override
+        public void setBackgroundColor(int color) {
+        }
+    }
+
+    private static class NullCanvas implements Canvas {
+        private final AtomicLong drawOps;
+        /** Drawing operations of this canvas, which are also included in {@link #drawOps} */
+        long ownDrawOps = 0;
+        private Bitmap bitmap;
+
+        NullCanvas(AtomicLong drawOps) {
+            this.drawOps = drawOps;
+        }
+
+        private void count() {
+            drawOps.incrementAndGet();
+            ownDrawOps++;
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        @Override
+        public Dimension getDimension() {
+            return new Dimension(getWidth(), getHeight());
+        }
+
+        @Override
+        public int getHeight() {
+            return (bitmap == null) ? 0 : bitmap.getHeight();
+        }
+
+        @Override
+        public int getWidth() {
+            return (bitmap == null) ? 0 : bitmap.getWidth();
+        }
+
+        @Override
+        public void setBitmap(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, int left, int top) {
+            count();
+        }
+
+        @Override
+        public void drawBitmap(Bitmap bitmap, Matrix matrix) {
+            count();
+        }
+
+        @Override
+        public void drawCircle(int x, int y, int radius, Paint paint) {
+            count();
+        }
+
+        @Override
+        public void drawLine(int x1, int y1, int x2, int y2, Paint paint) {
+            count();
+        }
+
+        @Override
+        public void drawPath(Path path, Paint paint) {
+            count();
+        }
+
+        @Override
+        public void drawText(String text, int x, int y, Paint paint) {
+            count();
+        }
+
+        @Override
+        public void drawTextRotated(String text, int x1, int y1, int x2, int y2, Paint paint) {
+            count();
+        }
+
+        @Override
+        public void fillColor(Color color) {
+            count();
+        }
+
+        @Override
+        public void fillColor(int color) {
+            count();
+        }
+
+        @Override
+        public void resetClip() {
+        }
+
+        @Override
+        public void setClip(int left, int top, int width, int height) {
+        }
+    }
+
+    private static class NullPaint implements Paint {
+        private float textSize = 10;
+
+        @Override
+        public int getTextHeight(String text) {
+            return (int) textSize;
+        }
+
+        @Override
+        public int getTextWidth(String text) {
+            // a rough estimate, labels only need a plausible size for placement
+            return (int) (text.length() * textSize * 0.6f);
+        }
+
+        @Override
+        public boolean isTransparent() {
+            return false;
+        }
+
+        @Override
+        public void setBitmapShader(Bitmap bitmap) {
+        }
+
+        @Override
+        public void setColor(Color color) {
+        }
+
+        @Override
+        public void setColor(int color) {
+        }
+
+        @Override
+        public void setDashPathEffect(float[] strokeDasharray) {
+        }
+
+        @Override
+        public void setStrokeCap(Cap cap) {
+        }
+
+        @Override
+        public void setStrokeWidth(float strokeWidth) {
+        }
+
+        @Override
+        public void setStyle(Style style) {
+        }
+
+        @Override
+        public void setTextAlign(Align align) {
+        }
+
+        @Override
+        public void setTextSize(float textSize) {
+            this.textSize = textSize;
+        }
+
+        @Override
+        public void setTypeface(FontFamily fontFamily, FontStyle fontStyle) {
+        }
+    }
+
+    private static class NullPath implements Path {
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public void lineTo(float x, float y) {
+        }
+
+        @Override
+        public void moveTo(float x, float y) {
+        }
+
+        @Override
+        public void setFillRule(FillRule fillRule) {
+        }
+    }
+
+    private static class NullMatrix implements Matrix {
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public void rotate(float theta) {
+        }
+
+        @Override
+        public void rotate(float theta, float pivotX, float pivotY) {
+        }
+
+        @Override
+        public void scale(float scaleX, float scaleY) {
+        }
+
+        @Override
+        public void scale(float scaleX, float scaleY, float pivotX, float pivotY) {
+        }
+
+        @Override
+        public void translate(float translateX, float translateY) {
+        }
+    }
+}
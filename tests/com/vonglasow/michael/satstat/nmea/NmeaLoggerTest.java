@@ -0,0 +1,148 @@
+package com.vonglasow.michael.satstat.nmea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NmeaLoggerTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("nmea", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Creates a set of synthetic GGA, RMC and GSV sentences with valid checksums.
+	 */
+	static String[] createSyntheticSentences(int count) {
+		String[] result = new String[count];
+		for (int i = 0; i < count; i++) {
+			int sec = i / 3;
+			String time = String.format(Locale.US, "%02d%02d%02d.00", (sec / 3600) % 24, (sec / 60) % 60, sec % 60);
+			String body;
+			switch (i % 3) {
+			case 0:
+				body = String.format(Locale.US, "GPGGA,%s,4807.%03d,N,01131.%03d,E,1,08,0.9,545.4,M,46.9,M,,",
+						time, i % 1000, (i * 7) % 1000);
+				break;
+			case 1:
+				body = String.format(Locale.US, "GPRMC,%s,A,4807.%03d,N,01131.%03d,E,022.4,084.4,230394,003.1,W",
+						time, i % 1000, (i * 7) % 1000);
+				break;
+			default:
+				body = String.format(Locale.US, "GPGSV,3,1,11,%02d,03,111,%02d,04,15,270,00,06,01,010,00,13,06,292,00",
+						i % 32 + 1, i % 50);
+			}
+			int checksum = 0;
+			for (int j = 0; j < body.length(); j++)
+				checksum ^= body.charAt(j);
+			result[i] = String.format(Locale.US, "$%s*%02X\r\n", body, checksum);
+		}
+		return result;
+	}
+
+	/**
+	 * Logs at a rate typical for a multi-constellation receiver at 10 Hz and
+	 * checks that the file holds every sentence, in order. Drops and the
+	 * compression ratio are printed.
+	 */
+	@Test
+	public void testLog() throws IOException, InterruptedException {
+		String[] sentences = createSyntheticSentences(600);
+		NmeaLogger logger = new NmeaLogger(dir);
+		long time = System.currentTimeMillis();
+		for (int epoch = 0; epoch < 20; epoch++) {
+			for (int i = 0; i < 30; i++)
+				logger.onNmeaReceived(time + epoch * 100, sentences[epoch * 30 + i]);
+			Thread.sleep(100);
+		}
+		logger.close();
+		assertTrue(logger.awaitClose(1, TimeUnit.MINUTES));
+		assertNull(logger.getLastError());
+		assertEquals(600, logger.getSentenceCount());
+		assertEquals(0, logger.getDroppedCount());
+		System.out.println(String.format("NmeaLogger: %d sentences, %d bytes raw, %d bytes compressed (%.1f%%)",
+				logger.getSentenceCount(), logger.getRawBytesWritten(), logger.getBytesWritten(),
+				100.0 * logger.getBytesWritten() / Math.max(1, logger.getRawBytesWritten())));
+
+		File[] files = dir.listFiles();
+		assertEquals(1, files.length);
+		assertTrue(files[0].getName().startsWith(NmeaLogger.FILE_PREFIX));
+		assertTrue(files[0].getName().endsWith(NmeaLogger.FILE_SUFFIX));
+		assertEquals(logger.getBytesWritten(), files[0].length());
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new FileInputStream(files[0])), "US-ASCII"));
+		try {
+			for (int i = 0; i < 600; i++)
+				assertEquals(sentences[i].trim(), reader.readLine());
+			assertNull(reader.readLine());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * The tail covers the last seconds before the most recent sentence, including sentences already written.
+	 */
+	@Test
+	public void testTail() throws InterruptedException {
+		String[] sentences = createSyntheticSentences(300);
+		NmeaLogger logger = new NmeaLogger(dir);
+		StringBuilder out = new StringBuilder();
+		assertEquals(0, logger.getTail(5000, 100, out));
+		// 10 Hz, 3 sentences per epoch, starting at an arbitrary GPS time
+		long start = 1234567890000L;
+		for (int i = 0; i < sentences.length; i++)
+			logger.onNmeaReceived(start + i / 3 * 100, sentences[i]);
+		// let the writer consume them
+		Thread.sleep(2 * NmeaLogger.DRAIN_INTERVAL);
+		assertEquals(sentences.length, logger.getSentenceCount());
+		assertTrue(logger.getRawBytesWritten() > 0);
+
+		// 2 s back from the last epoch: 21 epochs
+		assertEquals(63, logger.getTail(2000, 100, out));
+		StringBuilder expected = new StringBuilder();
+		for (int i = sentences.length - 63; i < sentences.length; i++)
+			expected.append(sentences[i].trim()).append('\n');
+		assertEquals(expected.toString(), out.toString());
+		logger.close();
+		assertTrue(logger.awaitClose(1, TimeUnit.MINUTES));
+	}
+
+	/**
+	 * Sentences received after close are ignored, and closing twice does no harm.
+	 */
+	@Test
+	public void testClose() throws InterruptedException {
+		NmeaLogger logger = new NmeaLogger(dir);
+		logger.close();
+		logger.onNmeaReceived(0, "$GPGSA,A,3*00");
+		logger.close();
+		assertTrue(logger.awaitClose(1, TimeUnit.MINUTES));
+		assertEquals(0, logger.getSentenceCount());
+		assertEquals(0, dir.listFiles().length);
+	}
+}
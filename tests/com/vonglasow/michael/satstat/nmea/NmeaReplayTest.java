@@ -0,0 +1,234 @@
+package com.vonglasow.michael.satstat.nmea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+
+public class NmeaReplayTest {
+	/** 2015-10-19T08:00:00Z */
+	private static final long EPOCH_1 = 1445241600000L;
+
+	private static final double KNOTS = 1852.0 / 3600.0;
+
+	/**
+	 * Collects copies of the replayed data, as the replay reuses its instances.
+	 */
+	private static class Recorder implements NmeaReplay.Listener {
+		final List<GpsSnapshot> snapshots = new ArrayList<GpsSnapshot>();
+		final List<NmeaFix> fixes = new ArrayList<NmeaFix>();
+
+		@Override
+		public void onSatellites(GpsSnapshot snapshot) {
+			GpsSnapshot copy = new GpsSnapshot();
+			copy.set(snapshot);
+			snapshots.add(copy);
+		}
+
+		@Override
+		public void onFix(NmeaFix fix) {
+			NmeaFix copy = new NmeaFix();
+			copy.time = fix.time;
+			copy.latitude = fix.latitude;
+			copy.longitude = fix.longitude;
+			copy.altitude = fix.altitude;
+			copy.accuracy = fix.accuracy;
+			copy.speed = fix.speed;
+			copy.bearing = fix.bearing;
+			copy.hdop = fix.hdop;
+			copy.satsUsed = fix.satsUsed;
+			copy.satsInView = fix.satsInView;
+			fixes.add(copy);
+		}
+	}
+
+	/**
+	 * Builds a sentence with a valid checksum from its body.
+	 */
+	static String sentence(String body) {
+		int checksum = 0;
+		for (int i = 0; i < body.length(); i++)
+			checksum ^= body.charAt(i);
+		return String.format(Locale.US, "$%s*%02X\r\n", body, checksum);
+	}
+
+	private static Recorder replay(String log) throws IOException {
+		Recorder recorder = new Recorder();
+		new NmeaReplay(recorder).replay(new ByteArrayInputStream(log.getBytes("US-ASCII")));
+		return recorder;
+	}
+
+	/** A log with three epochs: a complete one, one without satellites and one without a fix. */
+	private static final String LOG = sentence("GPRMC,080000.00,A,5230.000,N,01324.000,E,010.0,090.0,191015,,,A")
+			+ sentence("GPGGA,080000.00,5230.000,N,01324.000,E,1,05,1.2,34.5,M,40.0,M,,")
+			+ sentence("GPGSA,A,3,05,12,,,,,,,,,,,2.0,1.2,1.6")
+			+ sentence("GPGSV,1,1,03,05,45,120,40,07,10,300,25,12,60,200,35")
+			+ sentence("GPGGA,080001.00,5230.060,N,01324.000,E,1,05,1.2,34.5,M,40.0,M,,")
+			+ sentence("GPGGA,080002.00,,,,,0,00,,,M,,M,,")
+			+ sentence("GPGSV,1,1,01,05,45,120,20");
+
+	@Test
+	public void testEpochs() throws IOException {
+		Recorder recorder = replay(LOG);
+		assertEquals(2, recorder.snapshots.size());
+		assertEquals(2, recorder.fixes.size());
+
+		GpsSnapshot snapshot = recorder.snapshots.get(0);
+		assertEquals(EPOCH_1, snapshot.getTime());
+		assertEquals(3, snapshot.getCount());
+		assertEquals(2, snapshot.getUsedCount());
+		assertEquals(7, snapshot.getPrn(1));
+		assertEquals(25, snapshot.getSnr(1), 0);
+		assertEquals(300, snapshot.getAzimuth(1), 0);
+		assertEquals(10, snapshot.getElevation(1), 0);
+		assertTrue(snapshot.isUsedInFix(0));
+		assertFalse(snapshot.isUsedInFix(1));
+		assertTrue(snapshot.isUsedInFix(2));
+		// a fix in the first epoch counts as the shortest possible time to first fix
+		assertEquals(1, snapshot.getTimeToFirstFix());
+
+		NmeaFix fix = recorder.fixes.get(0);
+		assertEquals(EPOCH_1, fix.time);
+		assertEquals(52.5, fix.latitude, 1e-9);
+		assertEquals(13.4, fix.longitude, 1e-9);
+		// ellipsoid height is MSL altitude plus geoid separation
+		assertEquals(74.5, fix.altitude, 1e-9);
+		assertEquals(1.2, fix.hdop, 1e-6);
+		assertEquals(1.2 * NmeaReplay.ACCURACY_PER_HDOP, fix.accuracy, 1e-5);
+		assertEquals(10 * KNOTS, fix.speed, 1e-3);
+		assertEquals(90, fix.bearing, 1e-6);
+		assertEquals(5, fix.satsUsed);
+		assertEquals(3, fix.satsInView);
+
+		// the second epoch has no date and no satellites
+		fix = recorder.fixes.get(1);
+		assertEquals(EPOCH_1 + 1000, fix.time);
+		assertEquals(52.501, fix.latitude, 1e-9);
+		assertTrue(Float.isNaN(fix.speed));
+		assertEquals(-1, fix.satsInView);
+
+		// the third epoch has satellites but no fix
+		snapshot = recorder.snapshots.get(1);
+		assertEquals(EPOCH_1 + 2000, snapshot.getTime());
+		assertEquals(1, snapshot.getCount());
+		assertEquals(0, snapshot.getUsedCount());
+		assertEquals(1, snapshot.getTimeToFirstFix());
+	}
+
+	@Test
+	public void testMidnight() throws IOException {
+		Recorder recorder = replay(sentence("GPRMC,235959.00,A,5230.000,N,01324.000,E,0.0,0.0,191015,,,A")
+				+ sentence("GPGGA,000000.00,5230.000,N,01324.000,E,1,05,1.2,34.5,M,40.0,M,,")
+				+ sentence("GPGGA,000001.00,5230.000,N,01324.000,E,1,05,1.2,34.5,M,40.0,M,,"));
+		assertEquals(3, recorder.fixes.size());
+		assertEquals(EPOCH_1 + 16 * 3600000L - 1000, recorder.fixes.get(0).time);
+		assertEquals(EPOCH_1 + 16 * 3600000L, recorder.fixes.get(1).time);
+		assertEquals(EPOCH_1 + 16 * 3600000L + 1000, recorder.fixes.get(2).time);
+	}
+
+	/**
+	 * Sentences with bad checksums, overlong lines and a final line without
+	 * a line break are handled without disturbing the other sentences.
+	 */
+	@Test
+	public void testMalformedInput() throws IOException {
+		StringBuilder log = new StringBuilder();
+		log.append(sentence("GPGGA,080000.00,5230.000,N,01324.000,E,1,05,1.2,34.5,M,40.0,M,,").replace("*", "0*"));
+		for (int i = 0; i < 300; i++)
+			log.append('x');
+		log.append('\n');
+		log.append(sentence("GPGGA,080001.00,5230.000,N,01324.000,E,1,05,1.2,34.5,M,40.0,M,,").trim());
+		Recorder recorder = new Recorder();
+		NmeaReplay replay = new NmeaReplay(recorder);
+		replay.replay(new ByteArrayInputStream(log.toString().getBytes("US-ASCII")));
+		assertEquals(1, recorder.fixes.size());
+		assertEquals(EPOCH_1 % 86400000L + 1000, recorder.fixes.get(0).time);
+		assertEquals(2, replay.getLineCount());
+		assertEquals(1, replay.getParser().getChecksumErrorCount());
+	}
+
+	@Test
+	public void testGzipFile() throws IOException {
+		File file = File.createTempFile("nmea", ".nmea.gz");
+		try {
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+			try {
+				out.write(LOG.getBytes("US-ASCII"));
+			} finally {
+				out.close();
+			}
+			Recorder recorder = new Recorder();
+			new NmeaReplay(recorder).replay(file);
+			assertEquals(2, recorder.fixes.size());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testCancel() throws IOException {
+		final NmeaReplay[] replay = new NmeaReplay[1];
+		final int[] fixes = new int[1];
+		replay[0] = new NmeaReplay(new NmeaReplay.Listener() {
+			@Override
+			public void onSatellites(GpsSnapshot snapshot) {
+			}
+
+			@Override
+			public void onFix(NmeaFix fix) {
+				fixes[0]++;
+				replay[0].cancel();
+			}
+		});
+		replay[0].replay(new ByteArrayInputStream(LOG.getBytes("US-ASCII")));
+		assertEquals(1, fixes[0]);
+	}
+
+	/**
+	 * Measures replay throughput on synthetic sentences. The result is
+	 * printed; the assertion only guards against gross regressions.
+	 */
+	@Test
+	public void testThroughput() throws IOException {
+		String[] sentences = NmeaLoggerTest.createSyntheticSentences(3000);
+		StringBuilder log = new StringBuilder();
+		for (String s : sentences)
+			log.append(s);
+		byte[] data = log.toString().getBytes("US-ASCII");
+		final long[] used = new long[1];
+		NmeaReplay replay = new NmeaReplay(new NmeaReplay.Listener() {
+			@Override
+			public void onSatellites(GpsSnapshot snapshot) {
+				used[0] += snapshot.getUsedCount();
+			}
+
+			@Override
+			public void onFix(NmeaFix fix) {
+			}
+		});
+		for (int i = 0; i < 100; i++)
+			replay.replay(new ByteArrayInputStream(data));
+		NmeaParser parser = replay.getParser();
+		System.out.println(String.format(Locale.ROOT,
+				"NmeaReplay: %d lines, %d checksum errors, %d format errors, %d epochs, %d fixes, %.0f lines/s",
+				replay.getLineCount(), parser.getChecksumErrorCount(), parser.getFormatErrorCount(),
+				replay.getEpochCount(), replay.getFixCount(), replay.getLinesPerSecond()));
+		assertEquals(300000, replay.getLineCount());
+		assertEquals(300000, parser.getParsedCount());
+		assertEquals(100000, replay.getFixCount());
+		assertTrue(replay.getLinesPerSecond() > 100000);
+	}
+}
@@ -0,0 +1,189 @@
+package com.vonglasow.michael.satstat.nmea;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class NmeaRingBufferTest {
+	private static final String GGA = "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47";
+
+	private static String drain(NmeaRingBuffer buffer) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		buffer.drainTo(out);
+		return out.toString("US-ASCII");
+	}
+
+	@Test
+	public void testOfferAndDrain() throws IOException {
+		NmeaRingBuffer buffer = new NmeaRingBuffer(1024);
+		assertTrue(buffer.offer(1, GGA + "\r\n"));
+		assertTrue(buffer.offer(2, "$GPGSA,A,3*00 "));
+		assertEquals(GGA + "\n$GPGSA,A,3*00\n", drain(buffer));
+		assertEquals(0, buffer.getPending());
+		assertEquals("", drain(buffer));
+		assertEquals(2, buffer.getOffered());
+		assertEquals(0, buffer.getDropped());
+	}
+
+	@Test
+	public void testTruncation() throws IOException {
+		StringBuilder sentence = new StringBuilder();
+		while (sentence.length() < 300)
+			sentence.append("$GPGSV,0123456789");
+		NmeaRingBuffer buffer = new NmeaRingBuffer(1024);
+		assertTrue(buffer.offer(1, sentence.toString()));
+		assertEquals(sentence.substring(0, NmeaRingBuffer.MAX_SENTENCE_LENGTH) + "\n", drain(buffer));
+	}
+
+	/**
+	 * A full buffer drops new sentences, and accepts them again once it has been drained.
+	 */
+	@Test
+	public void testFull() throws IOException {
+		NmeaRingBuffer buffer = new NmeaRingBuffer(1024);
+		int accepted = 0;
+		while (buffer.offer(accepted, GGA))
+			accepted++;
+		assertEquals(1024 / (GGA.length() + 10), accepted);
+		assertFalse(buffer.offer(accepted, GGA));
+		assertEquals(2, buffer.getDropped());
+		String drained = drain(buffer);
+		assertEquals(accepted * (GGA.length() + 1), drained.length());
+		assertTrue(buffer.offer(accepted, GGA));
+	}
+
+	/**
+	 * Sentences which wrap around the end of the array are returned intact.
+	 */
+	@Test
+	public void testWrapAround() throws IOException {
+		NmeaRingBuffer buffer = new NmeaRingBuffer(1024);
+		for (int i = 0; i < 200; i++) {
+			String sentence = GGA.substring(0, 20 + i % 40);
+			assertTrue(buffer.offer(i, sentence));
+			assertEquals(sentence + "\n", drain(buffer));
+		}
+	}
+
+	/**
+	 * The tail covers a time span, whether or not its sentences have been consumed.
+	 */
+	@Test
+	public void testTail() throws IOException {
+		NmeaRingBuffer buffer = new NmeaRingBuffer(4096);
+		StringBuilder out = new StringBuilder();
+		assertEquals(0, buffer.getTail(0, 100, out));
+		assertEquals(Long.MIN_VALUE, buffer.getLastTimestamp());
+		for (int i = 0; i < 40; i++) {
+			buffer.offer(i * 100, "$GPTXT," + i);
+			if (i == 20)
+				drain(buffer);
+		}
+		assertEquals(3900, buffer.getLastTimestamp());
+		assertEquals(10, buffer.getTail(3000, 100, out));
+		assertEquals(expectedTail(30, 40), out.toString());
+		// sentences consumed by the writer are still available
+		out.setLength(0);
+		assertEquals(25, buffer.getTail(1500, 100, out));
+		assertEquals(expectedTail(15, 40), out.toString());
+		// only the most recent ones if there are too many
+		out.setLength(0);
+		assertEquals(5, buffer.getTail(0, 5, out));
+		assertEquals(expectedTail(35, 40), out.toString());
+		// the tail does not consume anything
+		assertEquals(expectedTail(21, 40), drain(buffer));
+	}
+
+	/**
+	 * Once consumed sentences are overwritten, the tail starts with the oldest sentence which is still intact.
+	 */
+	@Test
+	public void testTailWrapAround() throws IOException {
+		NmeaRingBuffer buffer = new NmeaRingBuffer(1024);
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			assertTrue(buffer.offer(i, "$GPTXT," + i + GGA.substring(0, i % 40)));
+			if (i % 3 == 0)
+				drain(buffer);
+			out.setLength(0);
+			int count = buffer.getTail(0, 1000, out);
+			String[] lines = out.toString().split("\n");
+			assertEquals(count, lines.length);
+			// consecutive sentences up to the most recent one, filling most of the buffer
+			for (int j = 0; j < count; j++)
+				assertEquals("$GPTXT," + (i - count + 1 + j) + GGA.substring(0, (i - count + 1 + j) % 40), lines[j]);
+			if (i > 100)
+				assertTrue(count > 1024 / (10 + 7 + 3 + 40) - 1);
+		}
+	}
+
+	private static String expectedTail(int from, int to) {
+		StringBuilder result = new StringBuilder();
+		for (int i = from; i < to; i++)
+			result.append("$GPTXT,").append(i).append('\n');
+		return result.toString();
+	}
+
+	/**
+	 * Measures the throughput of the buffer with a consumer thread draining
+	 * it as fast as possible. The result is printed; the assertions only
+	 * check that no sentence is lost or corrupted once accepted.
+	 */
+	@Test
+	public void testThroughput() throws InterruptedException {
+		final String[] sentences = NmeaLoggerTest.createSyntheticSentences(1000);
+		final NmeaRingBuffer buffer = new NmeaRingBuffer(NmeaLogger.BUFFER_CAPACITY);
+		final long[] drained = new long[1];
+		final OutputStream counter = new OutputStream() {
+			// the buffer writes each line break separately
+			@Override
+			public void write(int b) {
+				if (b == '\n')
+					drained[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		final boolean[] done = new boolean[1];
+		Thread consumer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						boolean last;
+						synchronized (done) {
+							last = done[0];
+						}
+						buffer.drainTo(counter);
+						if (last)
+							break;
+					}
+				} catch (IOException e) {
+					// cannot happen
+				}
+			}
+		};
+		consumer.start();
+		int count = 2000000;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++)
+			buffer.offer(i, sentences[i % sentences.length]);
+		long elapsed = System.nanoTime() - start;
+		synchronized (done) {
+			done[0] = true;
+		}
+		consumer.join();
+		System.out.println(String.format("NmeaRingBuffer: %.0f sentences/s offered, %d dropped",
+				count * 1e9 / elapsed, buffer.getDropped()));
+		assertEquals(count, buffer.getOffered());
+		assertEquals(count - buffer.getDropped(), drained[0]);
+	}
+}
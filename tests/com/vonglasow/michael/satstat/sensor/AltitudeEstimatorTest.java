@@ -0,0 +1,178 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AltitudeEstimatorTest {
+	@Test
+	public void testPressureAltitude() {
+		assertEquals(0, AltitudeEstimator.getPressureAltitude(AltitudeEstimator.STANDARD_PRESSURE), 1e-6);
+		// standard atmosphere: 898.75 hPa at 1000 m, 795.01 hPa at 2000 m
+		assertEquals(1000, AltitudeEstimator.getPressureAltitude(898.75f), 1);
+		assertEquals(2000, AltitudeEstimator.getPressureAltitude(795.01f), 1);
+	}
+
+	/**
+	 * Until a GPS altitude has been supplied, the estimator reports pressure altitude.
+	 */
+	@Test
+	public void testUncalibrated() {
+		AltitudeEstimator estimator = new AltitudeEstimator();
+		assertFalse(estimator.hasPressure());
+		// ignored before the first pressure sample
+		estimator.onGpsAltitude(500, 10);
+		assertFalse(estimator.isCalibrated());
+		estimator.onPressure(0, 0);
+		assertFalse(estimator.hasPressure());
+
+		estimator.onPressure(0, 898.75f);
+		assertTrue(estimator.hasPressure());
+		assertFalse(estimator.isCalibrated());
+		assertEquals(1000, estimator.getAltitude(), 1);
+		assertEquals(estimator.getPressureAltitude(), estimator.getAltitude(), 0);
+		assertEquals(0, estimator.getVerticalSpeed(), 0);
+		assertTrue(Double.isInfinite(estimator.getAltitudeAccuracy()));
+		assertEquals(AltitudeEstimator.STANDARD_PRESSURE, estimator.getSeaLevelPressure(), 0);
+	}
+
+	@Test
+	public void testCalibration() {
+		AltitudeEstimator estimator = new AltitudeEstimator();
+		estimator.onPressure(0, 898.75f);
+		// invalid fixes are ignored
+		estimator.onGpsAltitude(Double.NaN, 10);
+		estimator.onGpsAltitude(500, 0);
+		assertFalse(estimator.isCalibrated());
+		// the first fix sets the offset
+		estimator.onGpsAltitude(1200, 10);
+		assertTrue(estimator.isCalibrated());
+		assertEquals(1200, estimator.getAltitude(), 1e-6);
+		assertEquals(10, estimator.getAltitudeAccuracy(), 0.1);
+		// a second fix of equal accuracy moves the offset halfway
+		estimator.onGpsAltitude(1210, 10);
+		assertEquals(1205, estimator.getAltitude(), 1e-6);
+		assertEquals(10 / Math.sqrt(2), estimator.getAltitudeAccuracy(), 0.1);
+		// 1205 m of true altitude at 898.75 hPa means higher sea-level pressure than standard
+		assertTrue(estimator.getSeaLevelPressure() > AltitudeEstimator.STANDARD_PRESSURE + 20);
+	}
+
+	/**
+	 * After a long gap between pressure samples, the altitude filter restarts instead of inferring a vertical speed.
+	 */
+	@Test
+	public void testGap() {
+		AltitudeEstimator estimator = new AltitudeEstimator();
+		for (int i = 0; i < 100; i++)
+			estimator.onPressure(i * 40000000L, 1000);
+		estimator.onPressure(60000000000L, 990);
+		assertEquals(AltitudeEstimator.getPressureAltitude(990), estimator.getPressureAltitude(), 1e-6);
+		assertEquals(0, estimator.getVerticalSpeed(), 0);
+	}
+
+	/**
+	 * Simulates a two-hour hike with changing weather and compares the estimate with GPS altitude alone.
+	 */
+	@Test
+	public void testHike() {
+		int minutes = 120;
+		Random random = new Random(42);
+		AltitudeEstimator estimator = new AltitudeEstimator();
+		int rate = 25;
+		double dt = 1.0 / rate;
+		double gpsError = 0;
+		double sumSqFused = 0;
+		double sumSqGps = 0;
+		double sumSqSpeed = 0;
+		int count = 0;
+		int gpsCount = 0;
+		for (int i = 0; i < minutes * 60 * rate; i++) {
+			double t = i * dt;
+			/*
+			 * True altitude: climb at 0.3 m/s, rest, descend at 0.5 m/s, rest, in
+			 * a 40-minute cycle. Sea-level pressure falls by 1 hPa per hour (about
+			 * 8 m of apparent climb per hour).
+			 */
+			double cycle = t % 2400;
+			double cycles = Math.floor(t / 2400);
+			double base = 500 + cycles * (0.3 * 1200 - 0.5 * 600);
+			double altitude;
+			double trueSpeed;
+			if (cycle < 1200) {
+				altitude = base + 0.3 * cycle;
+				trueSpeed = 0.3;
+			} else if (cycle < 1500) {
+				altitude = base + 360;
+				trueSpeed = 0;
+			} else if (cycle < 2100) {
+				altitude = base + 360 - 0.5 * (cycle - 1500);
+				trueSpeed = -0.5;
+			} else {
+				altitude = base + 60;
+				trueSpeed = 0;
+			}
+			double seaLevel = 1018 - t / 3600;
+			float p = (float) (seaLevel * Math.pow(1 - altitude / 44330.0, 5.255) + 0.04 * random.nextGaussian());
+			estimator.onPressure((long) (t * 1e9), p);
+
+			// GPS at 1 Hz: error correlated over about a minute, reported vertical accuracy 15 m
+			if (i % rate == 0) {
+				gpsError = gpsError * Math.exp(-1.0 / 60) + 1.5 * random.nextGaussian();
+				double gps = altitude + gpsError + 3 * random.nextGaussian();
+				estimator.onGpsAltitude(gps, 15);
+				if (t >= 600) {
+					sumSqGps += (gps - altitude) * (gps - altitude);
+					gpsCount++;
+				}
+			}
+
+			// skip the first 10 minutes while calibration converges
+			if (t >= 600) {
+				double e = estimator.getAltitude() - altitude;
+				sumSqFused += e * e;
+				double es = estimator.getVerticalSpeed() - trueSpeed;
+				sumSqSpeed += es * es;
+				count++;
+			}
+		}
+		double rmsFused = Math.sqrt(sumSqFused / count);
+		double rmsGps = Math.sqrt(sumSqGps / gpsCount);
+		double rmsSpeed = Math.sqrt(sumSqSpeed / count);
+		double seaLevelError = estimator.getSeaLevelPressure() - (1018 - minutes / 60.0);
+		System.out.println(String.format(Locale.US,
+				"AltitudeEstimator: %d min, altitude error %.2f m RMS (GPS alone %.2f m), "
+				+ "vertical speed error %.3f m/s RMS, sea-level pressure error %.2f hPa",
+				minutes, rmsFused, rmsGps, rmsSpeed, seaLevelError));
+		assertTrue(rmsFused < rmsGps / 2);
+		assertTrue(rmsSpeed < 0.15);
+		assertEquals(0, seaLevelError, 1);
+	}
+
+	/**
+	 * Measures the time per pressure sample. The assertion only guards against gross regressions.
+	 */
+	@Test
+	public void testBenchmark() {
+		AltitudeEstimator estimator = new AltitudeEstimator();
+		int iterations = 20000000;
+		long t = 0;
+		double perUpdate = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				t += 40000000;
+				estimator.onPressure(t, 950f + (i & 7) * 0.01f);
+			}
+			perUpdate = (double) (System.nanoTime() - start) / iterations;
+		}
+		System.out.println(String.format(Locale.US, "AltitudeEstimator: %.1f ns per update (altitude %.1f m)",
+				perUpdate, estimator.getAltitude()));
+		assertEquals(AltitudeEstimator.getPressureAltitude(950.035f), estimator.getAltitude(), 1);
+		assertTrue("update too slow: " + perUpdate + " ns", perUpdate < 2000);
+	}
+}
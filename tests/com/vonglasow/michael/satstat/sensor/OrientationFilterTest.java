@@ -0,0 +1,240 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OrientationFilterTest {
+	/** Horizontal and vertical components of the magnetic field at 60° inclination, in µT */
+	private static final float FIELD_H = 24;
+	private static final float FIELD_V = 41.6f;
+
+	@Test
+	public void testInitialization() {
+		OrientationFilter filter = new OrientationFilter(true, true);
+		assertFalse(filter.isInitialized());
+		assertFalse(filter.onGyroscope(0, 0, 0, 0));
+		// the accelerometer alone is not enough with a magnetometer
+		assertFalse(filter.onAccelerometer(0, 0, 0, 9.81f));
+		assertFalse(filter.isInitialized());
+		assertTrue(filter.onMagneticField(0, 0, FIELD_H, -FIELD_V));
+		assertTrue(filter.isInitialized());
+		// further samples only update the reference vectors
+		assertFalse(filter.onMagneticField(1000, 0, FIELD_H, -FIELD_V));
+		assertFalse(filter.onAccelerometer(1000, 0, 0, 9.81f));
+		assertTrue(filter.onGyroscope(10000000, 0, 0, 0));
+		// a repeated timestamp is not a step
+		assertFalse(filter.onGyroscope(10000000, 0, 0, 0));
+	}
+
+	@Test
+	public void testInvalidSamples() {
+		OrientationFilter filter = new OrientationFilter(true, true);
+		assertFalse(filter.onAccelerometer(0, 0, 0, 0));
+		assertFalse(filter.onMagneticField(0, 0, 0, 0));
+		// free fall: no usable direction of gravity
+		filter.onAccelerometer(0, 0, 0, 9.81f);
+		assertFalse(filter.onMagneticField(0, 0, 0, -FIELD_V));
+		assertFalse(filter.isInitialized());
+	}
+
+	/**
+	 * The initial orientation follows the conventions of {@code Sensor.TYPE_ORIENTATION}.
+	 */
+	@Test
+	public void testAngles() {
+		float[] q = new float[4];
+
+		// flat, top pointing north
+		OrientationFilter filter = initialized(0, 0, 9.81f, 0, FIELD_H, -FIELD_V);
+		assertEquals(0, Math.min(filter.getAzimuth(), 360 - filter.getAzimuth()), 0.1);
+		assertEquals(0, filter.getPitch(), 0.1);
+		assertEquals(0, filter.getRoll(), 0.1);
+		// device X is east and Y is north, a quarter turn around Z from the earth frame
+		filter.getQuaternion(q);
+		assertEquals(Math.sqrt(0.5), Math.abs(q[0]), 1e-4);
+		assertEquals(Math.sqrt(0.5), Math.abs(q[3]), 1e-4);
+
+		// flat, top pointing east: north is to the left of the device
+		filter = initialized(0, 0, 9.81f, -FIELD_H, 0, -FIELD_V);
+		assertEquals(90, filter.getAzimuth(), 0.1);
+
+		// flat, top pointing south-west
+		filter = initialized(0, 0, 9.81f, FIELD_H * 0.7071f, -FIELD_H * 0.7071f, -FIELD_V);
+		assertEquals(225, filter.getAzimuth(), 0.1);
+
+		// top raised by 30°, facing north
+		float g = 9.81f;
+		float s = 0.5f;
+		float c = 0.8660254f;
+		filter = initialized(0, g * s, g * c, 0, FIELD_H * c - FIELD_V * s, -FIELD_H * s - FIELD_V * c);
+		assertEquals(0, Math.min(filter.getAzimuth(), 360 - filter.getAzimuth()), 0.1);
+		assertEquals(-30, filter.getPitch(), 0.1);
+		assertEquals(0, filter.getRoll(), 0.1);
+
+		// right edge raised by 30°, so the X axis points partly up
+		filter = initialized(g * s, 0, g * c, 0, FIELD_H, -FIELD_V);
+		assertEquals(0, filter.getPitch(), 0.1);
+		assertEquals(30, filter.getRoll(), 0.1);
+	}
+
+	/**
+	 * Without a magnetometer, only the accelerometer is needed to initialize, and pitch and roll are still correct.
+	 */
+	@Test
+	public void testNoMagnetometer() {
+		OrientationFilter filter = new OrientationFilter(false, false);
+		assertTrue(filter.onAccelerometer(0, 0, 4.905f, 8.496f));
+		assertEquals(-30, filter.getPitch(), 0.1);
+		for (int i = 1; i <= 100; i++)
+			assertTrue(filter.onAccelerometer(i * 10000000L, 0, 4.905f, 8.496f));
+		assertEquals(-30, filter.getPitch(), 0.1);
+		assertEquals(0, filter.getRoll(), 0.1);
+	}
+
+	@Test
+	public void testWithGyroscope() {
+		simulate(60, true, 3, 10);
+	}
+
+	@Test
+	public void testWithoutGyroscope() {
+		simulate(60, false, 5, 15);
+	}
+
+	/**
+	 * Measures the time for a full MARG update per gyroscope sample. The
+	 * assertion only guards against gross regressions.
+	 */
+	@Test
+	public void testBenchmark() {
+		OrientationFilter filter = new OrientationFilter(true, true);
+		filter.onMagneticField(0, 20, 5, -40);
+		filter.onAccelerometer(0, 0.5f, 0.3f, 9.7f);
+		int iterations = 20000000;
+		long t = 0;
+		double perUpdate = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				t += 10000000;
+				filter.onGyroscope(t, 0.01f, -0.02f, 0.03f);
+			}
+			perUpdate = (double) (System.nanoTime() - start) / iterations;
+		}
+		System.out.println(String.format(Locale.US, "OrientationFilter: %.1f ns per update (azimuth %.1f)",
+				perUpdate, filter.getAzimuth()));
+		assertTrue(filter.getAzimuth() >= 0);
+		assertTrue("update too slow: " + perUpdate + " ns", perUpdate < 2000);
+	}
+
+	private static OrientationFilter initialized(float ax, float ay, float az, float mx, float my, float mz) {
+		OrientationFilter filter = new OrientationFilter(true, true);
+		filter.onAccelerometer(0, ax, ay, az);
+		assertTrue(filter.onMagneticField(0, mx, my, mz));
+		return filter;
+	}
+
+	/**
+	 * Runs the filter on a simulated motion and checks the error.
+	 * <p>
+	 * A device is moved through a series of rotations at 100 Hz. Gyroscope,
+	 * accelerometer and magnetometer readings are derived from its true
+	 * orientation, with noise and a gyroscope bias. The filter output is
+	 * compared to the true orientation.
+	 *
+	 * @param maxRms The limit for the RMS error, in degrees
+	 * @param maxMax The limit for the largest error, in degrees
+	 */
+	private static void simulate(int seconds, boolean withGyro, double maxRms, double maxMax) {
+		Random random = new Random(42);
+		OrientationFilter filter = new OrientationFilter(withGyro, true);
+		// true orientation, starting at 30° azimuth, slightly tilted
+		double[] q = {Math.cos(Math.toRadians(-15)), 0.05, -0.03, Math.sin(Math.toRadians(-15))};
+		normalize(q);
+		// magnetic field in the earth frame (north, west, up) with 60° inclination, in µT
+		double[] field = {48 * Math.cos(Math.toRadians(60)), 0, -48 * Math.sin(Math.toRadians(60))};
+		double[] v = new double[3];
+		float[] est = new float[4];
+		int rate = 100;
+		double dt = 1.0 / rate;
+		double sumSq = 0;
+		double maxError = 0;
+		int count = 0;
+		for (int i = 0; i < seconds * rate; i++) {
+			double t = i * dt;
+			long timestamp = (long) (t * 1e9);
+			/*
+			 * Alternate between still phases and turns, with angular rates up to
+			 * about 1 rad/s. Without a gyroscope the filter can only follow slow
+			 * motions, so use a tenth of the rate there.
+			 */
+			double speed = withGyro ? 1 : 0.1;
+			double phase = (t % 10) / 10;
+			double wx = (phase < 0.5) ? speed * 0.6 * Math.sin(2 * Math.PI * t / 5) : 0;
+			double wy = (phase < 0.5) ? speed * 0.4 * Math.cos(2 * Math.PI * t / 3) : 0;
+			double wz = (phase < 0.5) ? speed * 0.8 : 0;
+
+			// integrate the true orientation in small steps
+			for (int s = 0; s < 10; s++) {
+				double h = dt / 10 / 2;
+				double d0 = h * (-q[1] * wx - q[2] * wy - q[3] * wz);
+				double d1 = h * (q[0] * wx + q[2] * wz - q[3] * wy);
+				double d2 = h * (q[0] * wy - q[1] * wz + q[3] * wx);
+				double d3 = h * (q[0] * wz + q[1] * wy - q[2] * wx);
+				q[0] += d0;
+				q[1] += d1;
+				q[2] += d2;
+				q[3] += d3;
+				normalize(q);
+			}
+
+			// sensor readings: earth vectors rotated into the device frame
+			rotateToDevice(q, 0, 0, 9.81, v);
+			filter.onAccelerometer(timestamp, (float) (v[0] + 0.05 * random.nextGaussian()),
+					(float) (v[1] + 0.05 * random.nextGaussian()), (float) (v[2] + 0.05 * random.nextGaussian()));
+			rotateToDevice(q, field[0], field[1], field[2], v);
+			filter.onMagneticField(timestamp, (float) (v[0] + 0.5 * random.nextGaussian()),
+					(float) (v[1] + 0.5 * random.nextGaussian()), (float) (v[2] + 0.5 * random.nextGaussian()));
+			if (withGyro)
+				filter.onGyroscope(timestamp, (float) (wx + 0.01 + 0.005 * random.nextGaussian()),
+						(float) (wy - 0.005 + 0.005 * random.nextGaussian()), (float) (wz + 0.005 * random.nextGaussian()));
+
+			if (!filter.isInitialized() || (t < 2))
+				continue;
+			filter.getQuaternion(est);
+			double dot = Math.abs(est[0] * q[0] + est[1] * q[1] + est[2] * q[2] + est[3] * q[3]);
+			double error = Math.toDegrees(2 * Math.acos(Math.min(1, dot)));
+			sumSq += error * error;
+			maxError = Math.max(maxError, error);
+			count++;
+		}
+		double rms = Math.sqrt(sumSq / count);
+		System.out.println(String.format(Locale.US, "OrientationFilter %s gyroscope: RMS error %.2f°, max error %.2f°",
+				withGyro ? "with" : "without", rms, maxError));
+		// limits allow for the lag of the correction while turning
+		assertTrue("RMS error " + rms, rms < maxRms);
+		assertTrue("max error " + maxError, maxError < maxMax);
+	}
+
+	private static void normalize(double[] q) {
+		double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+		for (int i = 0; i < 4; i++)
+			q[i] /= norm;
+	}
+
+	/**
+	 * Rotates a vector from the earth frame into the device frame, i.e. multiplies it with the transposed rotation matrix.
+	 */
+	private static void rotateToDevice(double[] q, double x, double y, double z, double[] out) {
+		double w = q[0], a = q[1], b = q[2], c = q[3];
+		out[0] = (1 - 2 * (b * b + c * c)) * x + 2 * (a * b + w * c) * y + 2 * (a * c - w * b) * z;
+		out[1] = 2 * (a * b - w * c) * x + (1 - 2 * (a * a + c * c)) * y + 2 * (b * c + w * a) * z;
+		out[2] = 2 * (a * c + w * b) * x + 2 * (b * c - w * a) * y + (1 - 2 * (a * a + b * b)) * z;
+	}
+}
@@ -0,0 +1,232 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SensorLoggerTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("sensors", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	private static void close(SensorLogger logger) throws InterruptedException {
+		logger.close();
+		assertTrue(logger.awaitClose(1, TimeUnit.MINUTES));
+		assertNull(logger.getLastError());
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException, InterruptedException {
+		SensorLogger logger = new SensorLogger(dir, 1500000000000L, 123456789L);
+		logger.onSensorChanged(1, 1000, new float[] {1.5f, -2.5f, 9.81f});
+		logger.onSensorChanged(6, 2000, new float[] {1013.25f});
+		logger.onSensorChanged(11, 3000, new float[] {0.1f, 0.2f, 0.3f, 0.4f, 0.5f});
+		close(logger);
+		assertEquals(3, logger.getSampleCount());
+		assertEquals(3, logger.getSamplesWritten());
+		assertEquals(logger.getFile().length(), logger.getBytesWritten());
+		assertEquals("sensors-20170714-024000.bin", logger.getFile().getName());
+
+		SensorLogger.Reader reader = new SensorLogger.Reader(new FileInputStream(logger.getFile()));
+		try {
+			assertEquals(1500000000000L, reader.getWallTime());
+			assertEquals(123456789L, reader.getSensorTime());
+			assertTrue(reader.next());
+			assertEquals(1, reader.getType());
+			assertEquals(1000, reader.getTimestamp());
+			assertEquals(3, reader.getValueCount());
+			assertEquals(9.81f, reader.getValue(2), 0);
+			assertTrue(reader.next());
+			assertEquals(6, reader.getType());
+			assertEquals(1013.25f, reader.getValue(0), 0);
+			assertTrue(reader.next());
+			assertEquals(5, reader.getValueCount());
+			assertEquals(0.5f, reader.getValue(4), 0);
+			assertFalse(reader.next());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * A logger which never receives a sample does not create a file.
+	 */
+	@Test
+	public void testNoSamples() throws InterruptedException {
+		SensorLogger logger = new SensorLogger(dir, System.currentTimeMillis(), 0);
+		close(logger);
+		assertNull(logger.getFile());
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	/**
+	 * Samples beyond the capacity of the buffer are dropped, not blocked on,
+	 * and samples offered after closing are ignored.
+	 */
+	@Test
+	public void testOverflow() throws InterruptedException {
+		SensorLogger logger = new SensorLogger(dir, System.currentTimeMillis(), 0, 16);
+		float[] values = new float[3];
+		// the first drain is one interval away, so all of these land in the buffer at once
+		for (int i = 0; i < 1000; i++)
+			logger.onSensorChanged(1, i, values);
+		close(logger);
+		logger.onSensorChanged(1, 1000, values);
+		assertEquals(1000, logger.getSampleCount());
+		assertEquals(1000 - 16, logger.getDroppedCount());
+		assertEquals(16, logger.getSamplesWritten());
+	}
+
+	@Test
+	public void testMaxFiles() throws IOException, InterruptedException {
+		for (int i = 0; i < SensorLogger.MAX_FILES + 2; i++)
+			assertTrue(new File(dir, String.format(Locale.US, "%s20000101-0000%02d%s", SensorLogger.FILE_PREFIX, i,
+					SensorLogger.FILE_SUFFIX)).createNewFile());
+		File other = new File(dir, "other.bin");
+		assertTrue(other.createNewFile());
+		SensorLogger logger = new SensorLogger(dir, System.currentTimeMillis(), 0);
+		logger.onSensorChanged(1, 0, new float[3]);
+		close(logger);
+
+		String[] names = dir.list();
+		Arrays.sort(names);
+		assertEquals(SensorLogger.MAX_FILES + 1, names.length);
+		assertTrue(other.exists());
+		// the oldest files are gone, the newest ones and the new file are kept
+		assertFalse(new File(dir, SensorLogger.FILE_PREFIX + "20000101-000002" + SensorLogger.FILE_SUFFIX).exists());
+		assertTrue(new File(dir, SensorLogger.FILE_PREFIX + "20000101-000003" + SensorLogger.FILE_SUFFIX).exists());
+		assertTrue(logger.getFile().exists());
+	}
+
+	@Test
+	public void testInvalidFiles() throws IOException, InterruptedException {
+		try {
+			new SensorLogger.Reader(new ByteArrayInputStream(new byte[] {'S', 'S', 'S', 'X', 0, 1}));
+			fail("invalid header accepted");
+		} catch (IOException e) {
+			// expected
+		}
+
+		SensorLogger logger = new SensorLogger(dir, System.currentTimeMillis(), 0);
+		logger.onSensorChanged(1, 0, new float[3]);
+		close(logger);
+		RandomAccessFile raf = new RandomAccessFile(logger.getFile(), "rw");
+		try {
+			raf.setLength(raf.length() - 2);
+		} finally {
+			raf.close();
+		}
+		SensorLogger.Reader reader = new SensorLogger.Reader(new FileInputStream(logger.getFile()));
+		try {
+			reader.next();
+			fail("truncated sample accepted");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Simulates sensor event streams and checks that no samples are lost.
+	 * <p>
+	 * Accelerometer, gyroscope and magnetometer samples are generated at
+	 * 400 Hz and pressure at 50 Hz, in real time. Like a hardware FIFO with a
+	 * maximum report latency, they are delivered in bursts of one second. The
+	 * log file is then read back and every sample is checked for order and
+	 * content.
+	 */
+	@Test
+	public void testRealTimeStreams() throws IOException, InterruptedException {
+		int seconds = 3;
+		int batch = 1000;
+		// sensor type, rate in Hz, number of values (types as in android.hardware.Sensor)
+		int[][] streams = {{1, 400, 3}, {4, 400, 3}, {2, 400, 3}, {6, 50, 1}};
+		int tick = 400;
+		long startNanos = System.nanoTime();
+		SensorLogger logger = new SensorLogger(dir, System.currentTimeMillis(), startNanos);
+		float[][] values = new float[streams.length][];
+		for (int s = 0; s < streams.length; s++)
+			values[s] = new float[streams[s][2]];
+		long[] generated = new long[streams.length];
+
+		long start = System.nanoTime();
+		int ticksPerBatch = batch * tick / 1000;
+		for (int i = 0; i < seconds * tick; i += ticksPerBatch) {
+			long due = start + (long) (i + ticksPerBatch) * 1000000000L / tick;
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			for (int j = i; j < Math.min(i + ticksPerBatch, seconds * tick); j++)
+				for (int s = 0; s < streams.length; s++) {
+					if ((j % (tick / streams[s][1])) != 0)
+						continue;
+					long n = generated[s]++;
+					for (int v = 0; v < values[s].length; v++)
+						values[s][v] = (float) (n * 4 + v);
+					logger.onSensorChanged(streams[s][0], startNanos + j * (1000000000L / tick), values[s]);
+				}
+		}
+		close(logger);
+
+		long total = 0;
+		for (int s = 0; s < streams.length; s++)
+			total += generated[s];
+		System.out.println(String.format(Locale.US, "SensorLogger: %d samples, %d dropped, %d written, %d bytes",
+				total, logger.getDroppedCount(), logger.getSamplesWritten(), logger.getBytesWritten()));
+		assertEquals(0, logger.getDroppedCount());
+		assertEquals(total, logger.getSamplesWritten());
+
+		long[] seen = new long[streams.length];
+		long[] lastTimestamp = new long[streams.length];
+		Arrays.fill(lastTimestamp, Long.MIN_VALUE);
+		SensorLogger.Reader reader = new SensorLogger.Reader(new FileInputStream(logger.getFile()));
+		try {
+			while (reader.next()) {
+				int s = 0;
+				while ((s < streams.length) && (streams[s][0] != reader.getType()))
+					s++;
+				assertTrue("unexpected type " + reader.getType(), s < streams.length);
+				assertEquals(streams[s][2], reader.getValueCount());
+				long n = seen[s]++;
+				assertTrue(reader.getTimestamp() > lastTimestamp[s]);
+				for (int v = 0; v < reader.getValueCount(); v++)
+					assertEquals((float) (n * 4 + v), reader.getValue(v), 0);
+				lastTimestamp[s] = reader.getTimestamp();
+			}
+		} finally {
+			reader.close();
+		}
+		for (int s = 0; s < streams.length; s++)
+			assertEquals("type " + streams[s][0], generated[s], seen[s]);
+		assertNotNull(logger.getFile());
+	}
+}
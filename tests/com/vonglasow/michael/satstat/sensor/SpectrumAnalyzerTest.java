@@ -0,0 +1,166 @@
+package com.vonglasow.michael.satstat.sensor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.vonglasow.michael.satstat.util.Histogram;
+
+public class SpectrumAnalyzerTest {
+	private static void close(SpectrumAnalyzer analyzer) throws InterruptedException {
+		analyzer.close();
+		assertTrue(analyzer.awaitClose(1, TimeUnit.MINUTES));
+	}
+
+	/**
+	 * Feeds samples at 400 Hz without waiting, then waits for the analyzer to catch up.
+	 */
+	private static void feed(SpectrumAnalyzer analyzer, int count, double frequency, double amplitude)
+			throws InterruptedException {
+		float[] values = new float[3];
+		for (int j = 0; j < count; j++) {
+			values[2] = (float) (9.81 + amplitude * Math.sin(2 * Math.PI * frequency * j / 400));
+			analyzer.onSensorChanged(j * 2500000L, values);
+		}
+		Thread.sleep(5 * SpectrumAnalyzer.POLL_INTERVAL);
+	}
+
+	@Test
+	public void testSine() throws InterruptedException {
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+		try {
+			SpectrumAnalyzer.Spectrum spectrum = analyzer.createSpectrum();
+			assertFalse(spectrum.isValid());
+			assertFalse(analyzer.getSpectrum(spectrum));
+			// 50 Hz is exactly bin 32 at 400 Hz and 256 samples
+			feed(analyzer, SpectrumAnalyzer.DEFAULT_WINDOW_SIZE, 50, 1.0);
+			assertTrue(analyzer.getSpectrum(spectrum));
+			assertTrue(spectrum.isValid());
+			// nothing new since the last call
+			assertFalse(analyzer.getSpectrum(spectrum));
+			assertEquals(SpectrumAnalyzer.DEFAULT_WINDOW_SIZE / 2 + 1, spectrum.getBinCount());
+			assertEquals(400, spectrum.getSampleRate(), 2);
+			assertEquals(50, spectrum.getFrequency(32), 0.5);
+			assertEquals(50, spectrum.getDominantFrequency(), 0.5);
+			assertEquals(1.0, spectrum.getAmplitude(32), 0.02);
+			assertEquals(1.0, spectrum.getMaxAmplitude(), 0.02);
+			assertEquals(Math.sqrt(0.5), spectrum.getRms(), 0.02);
+			assertEquals(SpectrumAnalyzer.DEFAULT_BANDS.length - 1, spectrum.getBandCount());
+			assertEquals(Math.sqrt(0.5), spectrum.getBandRms(2), 0.02);
+			assertEquals(0, spectrum.getBandRms(0), 0.01);
+			// the mean (gravity) does not show up in the spectrum
+			assertEquals(0, spectrum.getAmplitude(0), 0.01);
+			assertEquals((SpectrumAnalyzer.DEFAULT_WINDOW_SIZE - 1) * 2500000L, spectrum.getTimestamp());
+		} finally {
+			close(analyzer);
+		}
+	}
+
+	@Test
+	public void testNoVibration() throws InterruptedException {
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+		try {
+			SpectrumAnalyzer.Spectrum spectrum = analyzer.createSpectrum();
+			feed(analyzer, SpectrumAnalyzer.DEFAULT_WINDOW_SIZE, 0, 0);
+			assertTrue(analyzer.getSpectrum(spectrum));
+			// only float rounding remains once the mean is subtracted
+			assertEquals(0, spectrum.getRms(), 1e-4);
+			assertEquals(0, spectrum.getMaxAmplitude(), 1e-4);
+		} finally {
+			close(analyzer);
+		}
+	}
+
+	/**
+	 * If the background thread falls behind, only the most recent window is analyzed.
+	 */
+	@Test
+	public void testSkip() throws InterruptedException {
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer(64, 16, SpectrumAnalyzer.DEFAULT_BANDS);
+		try {
+			feed(analyzer, 64, 50, 1.0);
+			assertEquals(1, analyzer.getWindowsAnalyzed());
+			// four hops at once, usually faster than the analyzer polls
+			feed(analyzer, 64, 50, 1.0);
+			assertTrue(analyzer.getWindowsSkipped() > 0);
+			// every window ending at a multiple of the hop is either analyzed or skipped
+			assertEquals(5, analyzer.getWindowsAnalyzed() + analyzer.getWindowsSkipped());
+			assertEquals(128, analyzer.getSampleCount());
+		} finally {
+			close(analyzer);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidHop() {
+		new SpectrumAnalyzer(64, 65, SpectrumAnalyzer.DEFAULT_BANDS);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBands() {
+		new SpectrumAnalyzer(64, 16, new float[] {1});
+	}
+
+	/**
+	 * Analyzes a synthetic signal in real time.
+	 * <p>
+	 * The signal consists of gravity, a 37 Hz vibration with an amplitude of
+	 * 0.5 m/s², a 90 Hz vibration of 0.2 m/s² and some noise, sampled at
+	 * 400 Hz and delivered in bursts of 10 milliseconds. The dominant
+	 * frequency and the band RMS values are checked against the expected
+	 * values, and analysis times are printed.
+	 */
+	@Test
+	public void testRealTime() throws InterruptedException {
+		int seconds = 3;
+		int rate = 400;
+		Random random = new Random(42);
+		SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+		SpectrumAnalyzer.Spectrum spectrum = analyzer.createSpectrum();
+		float[] values = new float[3];
+		long startNanos = System.nanoTime();
+		int burst = rate / 100;
+		long total = (long) seconds * rate;
+		for (long i = 0; i < total; i += burst) {
+			long due = startNanos + (i + burst) * 1000000000L / rate;
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			for (long j = i; j < Math.min(i + burst, total); j++) {
+				double t = (double) j / rate;
+				values[0] = (float) (0.01 * random.nextGaussian());
+				values[1] = (float) (0.01 * random.nextGaussian());
+				values[2] = (float) (9.81 + 0.5 * Math.sin(2 * Math.PI * 37 * t) + 0.2 * Math.sin(2 * Math.PI * 90 * t)
+						+ 0.01 * random.nextGaussian());
+				analyzer.onSensorChanged(startNanos + j * 1000000000L / rate, values);
+			}
+		}
+		Thread.sleep(2 * SpectrumAnalyzer.POLL_INTERVAL);
+		close(analyzer);
+		assertTrue(analyzer.getSpectrum(spectrum));
+
+		Histogram times = analyzer.getAnalysisTimes();
+		System.out.println(String.format(Locale.US,
+				"SpectrumAnalyzer: %d samples, %d windows analyzed, %d skipped, "
+				+ "analysis time median %d us, 99th percentile %d us, max %d us",
+				analyzer.getSampleCount(), analyzer.getWindowsAnalyzed(), analyzer.getWindowsSkipped(),
+				times.getValueAtPercentile(50), times.getValueAtPercentile(99), times.getMax()));
+
+		// expected: 37 Hz, RMS sqrt(0.5² / 2 + 0.2² / 2) in the 30–100 Hz band, nothing in the others
+		double expectedRms = Math.sqrt((0.5 * 0.5 + 0.2 * 0.2) / 2);
+		assertEquals(rate, spectrum.getSampleRate(), 1);
+		assertEquals(37, spectrum.getDominantFrequency(), 0.5);
+		assertEquals(expectedRms, spectrum.getBandRms(2), 0.02);
+		assertEquals(0, spectrum.getBandRms(0), 0.02);
+		assertEquals(0, spectrum.getBandRms(1), 0.02);
+		assertEquals(0, analyzer.getWindowsSkipped());
+		assertTrue(analyzer.getWindowsAnalyzed() >= (total - SpectrumAnalyzer.DEFAULT_WINDOW_SIZE)
+				/ SpectrumAnalyzer.DEFAULT_HOP);
+	}
+}
@@ -0,0 +1,135 @@
+package com.vonglasow.michael.satstat.stats;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.vonglasow.michael.satstat.data.GpsSnapshot;
+import com.vonglasow.michael.satstat.data.SatelliteModel;
+import com.vonglasow.michael.satstat.track.TrackFormat;
+
+public class FixStatisticsTest {
+	private static final long HOUR = 3600 * 1000L;
+
+	/** 2015-10-19T08:00:00Z */
+	private static final long T0 = 1445241600000L;
+
+	private static GpsSnapshot snapshot(int ttff, int... prnAndSnr) {
+		GpsSnapshot snapshot = new GpsSnapshot();
+		for (int i = 0; i < prnAndSnr.length; i += 2)
+			snapshot.add(prnAndSnr[i], prnAndSnr[i + 1], 0, 0, false);
+		snapshot.setTimeToFirstFix(ttff);
+		return snapshot;
+	}
+
+	/**
+	 * Starts are classified by the age of the last fix of the previous session.
+	 */
+	@Test
+	public void testStartTypes() {
+		FixStatistics stats = new FixStatistics();
+		// no previous fix
+		assertTrue(stats.onGpsSnapshot(snapshot(30000), T0, 0));
+		// the same TTFF is reported until the next session
+		assertFalse(stats.onGpsSnapshot(snapshot(30000), T0 + 1000, 0));
+		stats.onLocation(TrackFormat.PROVIDER_GPS, T0, 5, 8);
+		stats.onLocation(TrackFormat.PROVIDER_GPS, T0 + 1000, 5, 8);
+
+		// 2 hours later; the fix of the new session arrives before its TTFF is reported
+		stats.onLocation(TrackFormat.PROVIDER_GPS, T0 + 2 * HOUR, 5, 8);
+		assertTrue(stats.onGpsSnapshot(snapshot(5000), T0 + 2 * HOUR + 100, 0));
+
+		// 2 days later
+		assertTrue(stats.onGpsSnapshot(snapshot(20000), T0 + 50 * HOUR, 0));
+
+		assertEquals(1, stats.getTtffHistogram(FixStatistics.START_HOT).getTotalCount());
+		assertEquals(1, stats.getTtffHistogram(FixStatistics.START_WARM).getTotalCount());
+		assertEquals(1, stats.getTtffHistogram(FixStatistics.START_COLD).getTotalCount());
+		assertEquals(30000, stats.getTtffHistogram(FixStatistics.START_COLD).getMax(), 30000 / 64);
+	}
+
+	@Test
+	public void testAgpsAge() {
+		FixStatistics stats = new FixStatistics();
+		stats.onGpsSnapshot(snapshot(10000), T0, T0 - 2 * HOUR);
+		stats.onGpsSnapshot(snapshot(11000), T0 + HOUR, 0);
+		// AGPS data injected after the start does not count
+		stats.onGpsSnapshot(snapshot(12000), T0 + 2 * HOUR, T0 + 2 * HOUR);
+		assertEquals(1, stats.getAgpsAgeHistogram().getTotalCount());
+		assertEquals(1, stats.getTtffByAgpsAgeHistogram(1).getTotalCount());
+		assertEquals(2, stats.getTtffByAgpsAgeHistogram(FixStatistics.AGPS_AGE_COUNT - 1).getTotalCount());
+	}
+
+	/**
+	 * SNRs are sampled per constellation, at most once per sample interval.
+	 */
+	@Test
+	public void testSnr() {
+		FixStatistics stats = new FixStatistics();
+		GpsSnapshot snapshot = snapshot(0, 5, 40, 70, 30, 12, 0);
+		stats.onGpsSnapshot(snapshot, T0, 0);
+		stats.onGpsSnapshot(snapshot, T0 + FixStatistics.SNR_SAMPLE_INTERVAL / 2, 0);
+		stats.onGpsSnapshot(snapshot, T0 + FixStatistics.SNR_SAMPLE_INTERVAL, 0);
+		assertEquals(2, stats.getSnrHistogram(SatelliteModel.CONSTELLATION_GPS).getTotalCount());
+		assertEquals(400, stats.getSnrHistogram(SatelliteModel.CONSTELLATION_GPS).getMax());
+		assertEquals(2, stats.getSnrHistogram(SatelliteModel.CONSTELLATION_GLONASS).getTotalCount());
+	}
+
+	@Test
+	public void testLocations() {
+		FixStatistics stats = new FixStatistics();
+		stats.onLocation(TrackFormat.PROVIDER_GPS, T0, 4.5f, 9);
+		// duplicate from another listener
+		stats.onLocation(TrackFormat.PROVIDER_GPS, T0, 4.5f, 9);
+		stats.onLocation(TrackFormat.PROVIDER_NETWORK, T0, 1200, -1);
+		stats.onLocation(TrackFormat.PROVIDER_NETWORK, T0 + 1000, Float.NaN, -1);
+		stats.onLocation(42, T0, 10, -1);
+		assertEquals(1, stats.getAccuracyHistogram(TrackFormat.PROVIDER_GPS).getTotalCount());
+		assertEquals(45, stats.getAccuracyHistogram(TrackFormat.PROVIDER_GPS).getMax());
+		assertEquals(1, stats.getAccuracyHistogram(TrackFormat.PROVIDER_NETWORK).getTotalCount());
+		assertEquals(1, stats.getSatsUsedHistogram().getTotalCount());
+		assertEquals(9, stats.getSatsUsedHistogram().getMax());
+	}
+
+	@Test
+	public void testSerializationAndMerge() throws IOException {
+		FixStatistics stats = new FixStatistics();
+		stats.onGpsSnapshot(snapshot(30000, 5, 40), T0, T0 - HOUR / 2);
+		stats.onLocation(TrackFormat.PROVIDER_GPS, T0, 5, 8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		stats.writeTo(new DataOutputStream(bytes));
+		FixStatistics copy = FixStatistics.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		StringBuilder expected = new StringBuilder();
+		stats.appendCsv(expected);
+		StringBuilder actual = new StringBuilder();
+		copy.appendCsv(actual);
+		assertEquals(expected.toString(), actual.toString());
+		assertTrue(actual.toString().startsWith("histogram,lower,upper,count\nttff_cold_ms,"));
+
+		// the session state is restored, so the next start is classified as hot
+		copy.onGpsSnapshot(snapshot(3000), T0 + HOUR, 0);
+		assertEquals(1, copy.getTtffHistogram(FixStatistics.START_HOT).getTotalCount());
+
+		copy.merge(stats);
+		assertEquals(2, copy.getTtffHistogram(FixStatistics.START_COLD).getTotalCount());
+		assertEquals(2, copy.getSatsUsedHistogram().getTotalCount());
+		StringBuilder report = new StringBuilder();
+		copy.appendReport(report);
+		assertTrue(report.toString(), report.toString().contains("TTFF cold"));
+		assertTrue(report.toString(), report.toString().contains("n=2 "));
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidFile() throws IOException {
+		FixStatistics.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[16])));
+	}
+}
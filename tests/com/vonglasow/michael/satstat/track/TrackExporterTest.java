@@ -0,0 +1,145 @@
+package com.vonglasow.michael.satstat.track;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrackExporterTest {
+	/** 2015-10-19T08:00:00Z */
+	private static final long START = 1445241600000L;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("track", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Writes two segments: one with a complete GPS fix and one with a
+	 * network fix which has no altitude, speed, bearing or satellite data.
+	 */
+	private File[] writeSegments() throws InterruptedException {
+		TrackWriter writer = new TrackWriter(dir);
+		writer.add(TrackFormat.PROVIDER_GPS, START, 52.5, 13.4, 34.5f, 4.0f, 1.25f, 90.0f, 7, 11);
+		writer.close();
+		writer.awaitTermination();
+		writer = new TrackWriter(dir);
+		writer.add(TrackFormat.PROVIDER_NETWORK, START + 60000, 52.5001, 13.4002, Double.NaN, 30.0f, Float.NaN,
+				Float.NaN, -1, -1);
+		writer.close();
+		writer.awaitTermination();
+		File[] segments = TrackExporter.listSegments(dir);
+		assertEquals(2, segments.length);
+		return segments;
+	}
+
+	private static String export(TrackExporter exporter, File[] segments) throws IOException {
+		StringWriter out = new StringWriter();
+		assertEquals(2, exporter.export(segments, out));
+		return out.toString();
+	}
+
+	@Test
+	public void testGpx() throws IOException, InterruptedException {
+		String gpx = export(new TrackExporter(TrackExporter.FORMAT_GPX), writeSegments());
+		assertTrue(gpx, gpx.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<gpx version=\"1.1\""));
+		assertTrue(gpx, gpx.contains("<trkseg>\n<trkpt lat=\"52.5000000\" lon=\"13.4000000\"><ele>34.50</ele>"
+				+ "<time>2015-10-19T08:00:00.000Z</time><src>gps</src><sat>7</sat></trkpt>\n</trkseg>\n"));
+		assertTrue(gpx, gpx.contains("<trkseg>\n<trkpt lat=\"52.5001000\" lon=\"13.4002000\">"
+				+ "<time>2015-10-19T08:01:00.000Z</time><src>network</src></trkpt>\n</trkseg>\n"));
+		assertTrue(gpx, gpx.endsWith("</trk>\n</gpx>\n"));
+	}
+
+	@Test
+	public void testKml() throws IOException, InterruptedException {
+		String kml = export(new TrackExporter(TrackExporter.FORMAT_KML), writeSegments());
+		assertTrue(kml, kml.contains("<LineString>\n<coordinates>\n13.4000000,52.5000000,34.50\n</coordinates>\n"));
+		assertTrue(kml, kml.contains("<coordinates>\n13.4002000,52.5001000\n</coordinates>"));
+		assertTrue(kml, kml.endsWith("</MultiGeometry>\n</Placemark>\n</Document>\n</kml>\n"));
+	}
+
+	@Test
+	public void testCsv() throws IOException, InterruptedException {
+		TrackExporter exporter = new TrackExporter(TrackExporter.FORMAT_CSV);
+		exporter.setColumns(TrackExporter.COLUMN_UTM | TrackExporter.COLUMN_OSGB);
+		String[] lines = export(exporter, writeSegments()).split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("time,provider,latitude,longitude,altitude,accuracy,speed,bearing,sats_used,sats_in_view"
+				+ ",utm_zone,utm_easting,utm_northing,osgb_easting,osgb_northing", lines[0]);
+		assertTrue(lines[1], lines[1].startsWith(
+				"2015-10-19T08:00:00.000Z,gps,52.5000000,13.4000000,34.50,4.00,1.25,90.00,7,11,33U,"));
+		// Berlin is outside the OSGB grid
+		assertTrue(lines[1], lines[1].endsWith(",,"));
+		assertTrue(lines[2], lines[2].startsWith("2015-10-19T08:01:00.000Z,network,52.5001000,13.4002000,,30.00,,,,,"));
+	}
+
+	@Test
+	public void testInvalidSegmentSkipped() throws IOException, InterruptedException {
+		File[] segments = writeSegments();
+		File invalid = new File(dir, "invalid" + TrackFormat.FILE_SUFFIX);
+		assertTrue(invalid.createNewFile());
+		StringWriter out = new StringWriter();
+		long count = new TrackExporter(TrackExporter.FORMAT_GPX).export(
+				new File[] {segments[0], invalid, segments[1]}, out);
+		assertEquals(2, count);
+	}
+
+	/**
+	 * Measures export throughput for each format on a ten-hour track at
+	 * one fix per second. The throughput is printed; the assertion only
+	 * guards against gross regressions.
+	 */
+	@Test
+	public void testExportBenchmark() throws IOException, InterruptedException {
+		int n = 36000;
+		TrackWriter writer = new TrackWriter(dir, n);
+		for (int i = 0; i < n; i++)
+			writer.add(TrackFormat.PROVIDER_GPS, START + i * 1000L, 52.5 + i * 1e-5, 13.4 + Math.sin(i / 100.0) * 1e-3,
+					34.5 + i % 20, 5.0f, 1.5f, i % 360, 8, 12);
+		writer.close();
+		writer.awaitTermination();
+		File[] segments = TrackExporter.listSegments(dir);
+		String[] names = {"GPX", "KML", "CSV"};
+		for (int format = TrackExporter.FORMAT_GPX; format <= TrackExporter.FORMAT_CSV; format++) {
+			TrackExporter exporter = new TrackExporter(format);
+			// warm up
+			exporter.export(segments, new NullWriter());
+			assertEquals(n, exporter.export(segments, new NullWriter()));
+			System.out.println(String.format("TrackExporter: %s, %d fixes, %.0f fixes/s",
+					names[format], n, exporter.getPointsPerSecond()));
+			assertTrue(exporter.getPointsPerSecond() > 10000);
+		}
+	}
+
+	private static class NullWriter extends Writer {
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.vonglasow.michael.satstat.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class CharFormatterTest {
+	private final char[] buf = new char[64];
+
+	private String formatFixed(double value, int decimals) {
+		// start at an offset to check that the position is honored
+		int end = CharFormatter.formatFixed(buf, 3, value, decimals);
+		return new String(buf, 3, end - 3);
+	}
+
+	private String formatLong(long value) {
+		int end = CharFormatter.formatLong(buf, 3, value);
+		return new String(buf, 3, end - 3);
+	}
+
+	private String formatIsoTime(long millis) {
+		int end = CharFormatter.formatIsoTime(buf, 3, millis);
+		assertEquals(CharFormatter.ISO_TIME_LENGTH, end - 3);
+		return new String(buf, 3, end - 3);
+	}
+
+	private void assertFixed(double value, int decimals) {
+		assertEquals(value + " with " + decimals + " decimals",
+				String.format(Locale.ROOT, "%." + decimals + "f", value), formatFixed(value, decimals));
+	}
+
+	@Test
+	public void testLong() {
+		long[] values = {0, 1, -1, 9, 10, -10, 123456789, Integer.MAX_VALUE, Integer.MIN_VALUE,
+				Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+		for (long value : values)
+			assertEquals(String.format(Locale.ROOT, "%d", value), formatLong(value));
+	}
+
+	@Test
+	public void testFixed() {
+		double[] values = {0, -0.0, 1, -1, 0.5, -0.5, 1.5, 2.5, 0.125, 1.005, 265.335, -29.849999999999998,
+				52.5200066, -13.4049540, 179.9999999, -179.99999995, 0.04, -0.04, -0.4, 1e-10, -1e-10,
+				Double.MIN_VALUE, 8848.86, -10994.0};
+		for (double value : values)
+			for (int decimals = 0; decimals <= CharFormatter.MAX_DECIMALS; decimals++)
+				assertFixed(value, decimals);
+	}
+
+	@Test
+	public void testNegativeZero() {
+		// like String.format(), the sign is kept when rounding to zero
+		assertEquals("-0", formatFixed(-0.4, 0));
+		assertEquals("-0.0", formatFixed(-0.0, 1));
+		assertEquals("-0.000", formatFixed(-1e-4, 3));
+		assertEquals("0.000", formatFixed(1e-4, 3));
+	}
+
+	@Test
+	public void testRoundingCarry() {
+		assertEquals("10.0000000", formatFixed(9.9999999999, 7));
+		assertEquals("-10.0000000", formatFixed(-9.99999999, 7));
+		assertEquals("10.0000000", formatFixed(9.99999995, 7));
+		assertEquals("1000", formatFixed(999.5, 0));
+		assertEquals("1.00", formatFixed(0.995, 2));
+		for (int decimals = 0; decimals <= CharFormatter.MAX_DECIMALS; decimals++)
+			for (double value = 9.9999999; value < 1e7; value = value * 10 + 9)
+				assertFixed(value, decimals);
+	}
+
+	@Test
+	public void testLarge() {
+		double[] values = {1e6 + 0.5, 123456789.123456789, -987654321.987654321, 1e9, 4294967296.5,
+				1e11 + 0.1, -1e12 - 0.3, 9007199254740993.0, 1e15};
+		for (double value : values)
+			for (int decimals = 0; decimals <= CharFormatter.MAX_DECIMALS; decimals++)
+				if (Math.abs(value) < Long.MAX_VALUE / Math.pow(10, decimals))
+					assertFixed(value, decimals);
+	}
+
+	@Test
+	public void testNonFinite() {
+		assertEquals("NaN", formatFixed(Double.NaN, 2));
+		assertEquals("Infinity", formatFixed(Double.POSITIVE_INFINITY, 2));
+		assertEquals("-Infinity", formatFixed(Double.NEGATIVE_INFINITY, 2));
+	}
+
+	/**
+	 * Random values in the ranges used for coordinates, altitudes and speeds, with a share of values on or next to
+	 * rounding ties.
+	 */
+	@Test
+	public void testRandom() {
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			int decimals = random.nextInt(CharFormatter.MAX_DECIMALS + 1);
+			double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(8));
+			if (random.nextBoolean())
+				// a tie in decimal, usually not exactly representable in binary
+				value = (Math.floor(value * Math.pow(10, decimals)) + 0.5) / Math.pow(10, decimals);
+			assertFixed(value, decimals);
+		}
+	}
+
+	@Test
+	public void testIsoTime() {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT);
+		long[] times = {0, 1, -1, 999, 86399999, 86400000, -86400000, 951782400000L /* 2000-02-29 */,
+				951868800000L /* 2000-03-01 */, 1456833296789L, 4107542400000L /* 2100-03-01 */,
+				-2208988800000L /* 1900-01-01 */, 253402300799999L /* 9999-12-31T23:59:59.999 */};
+		for (long time : times) {
+			calendar.setTimeInMillis(time);
+			assertEquals(String.format(Locale.ROOT, "%tFT%<tT.%<tLZ", calendar), formatIsoTime(time));
+		}
+		Random random = new Random(1);
+		for (int i = 0; i < 10000; i++) {
+			long time = (long) (random.nextDouble() * 253402300800000L);
+			calendar.setTimeInMillis(time);
+			assertEquals(String.format(Locale.ROOT, "%tFT%<tT.%<tLZ", calendar), formatIsoTime(time));
+		}
+	}
+}
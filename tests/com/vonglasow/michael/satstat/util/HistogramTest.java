@@ -0,0 +1,97 @@
+package com.vonglasow.michael.satstat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	@Test
+	public void testEmpty() {
+		Histogram h = new Histogram(1000, 4);
+		assertEquals(0, h.getTotalCount());
+		assertEquals(0, h.getMin());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getValueAtPercentile(50));
+		assertTrue(Double.isNaN(h.getMean()));
+	}
+
+	/**
+	 * Buckets are contiguous, and each bucket is at most 2^(1 - precision) of its lower bound wide.
+	 */
+	@Test
+	public void testLayout() {
+		Histogram h = new Histogram(100000, 5);
+		assertEquals(0, h.getBucketLowerBound(0));
+		for (int i = 1; i < h.getBucketCount(); i++) {
+			long lower = h.getBucketLowerBound(i);
+			assertEquals(h.getBucketUpperBound(i - 1) + 1, lower);
+			if ((i < h.getBucketCount() - 1) && (lower >= 32))
+				assertTrue(h.getBucketUpperBound(i) - lower + 1 <= lower / 16);
+		}
+		assertEquals(Long.MAX_VALUE, h.getBucketUpperBound(h.getBucketCount() - 1));
+	}
+
+	/**
+	 * Percentiles of uniformly distributed values are within the relative
+	 * error of the layout.
+	 */
+	@Test
+	public void testPercentiles() {
+		Histogram h = new Histogram(1000000, 7);
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++)
+			h.record(random.nextInt(100000));
+		assertEquals(50000, h.getValueAtPercentile(50), 50000 / 64.0 + 500);
+		assertEquals(99000, h.getValueAtPercentile(99), 99000 / 64.0 + 500);
+		assertEquals(h.getMax(), h.getValueAtPercentile(100));
+		assertEquals(50000, h.getMean(), 500);
+	}
+
+	@Test
+	public void testClamping() {
+		Histogram h = new Histogram(100, 3);
+		h.record(-5);
+		h.record(1000);
+		assertEquals(0, h.getMin());
+		assertEquals(1000, h.getMax());
+		assertEquals(1, h.getBucketValueCount(0));
+		assertEquals(1, h.getBucketValueCount(h.getBucketCount() - 1));
+	}
+
+	@Test
+	public void testMergeAndSerialization() throws IOException {
+		Histogram a = new Histogram(1000, 4);
+		Histogram b = new Histogram(1000, 4);
+		a.record(10, 3);
+		b.record(500);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		b.writeTo(new DataOutputStream(bytes));
+		a.mergeFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(4, a.getTotalCount());
+		assertEquals(10, a.getMin());
+		assertEquals(500, a.getMax());
+		assertEquals(10, a.getValueAtPercentile(75));
+		a.merge(b);
+		assertEquals(5, a.getTotalCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMergeDifferentLayouts() {
+		new Histogram(1000, 4).merge(new Histogram(1000, 5));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMergeFromDifferentLayout() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new Histogram(1000, 4).writeTo(new DataOutputStream(bytes));
+		new Histogram(2000, 4).mergeFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+}
@@ -0,0 +1,89 @@
+package com.vonglasow.michael.satstat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RealFftTest {
+	/**
+	 * Compares the transform against a direct DFT for all sizes from 4 to 1024.
+	 */
+	@Test
+	public void testAccuracy() {
+		Random random = new Random(42);
+		for (int n = 4; n <= 1024; n <<= 1) {
+			RealFft fft = new RealFft(n);
+			assertEquals(n, fft.getSize());
+			assertEquals(n / 2 + 1, fft.getBinCount());
+			float[] x = new float[n];
+			for (int i = 0; i < n; i++)
+				x[i] = (float) random.nextGaussian();
+			float[] re = new float[fft.getBinCount()];
+			float[] im = new float[fft.getBinCount()];
+			fft.forward(x, re, im);
+			double maxError = 0;
+			for (int k = 0; k < fft.getBinCount(); k++) {
+				double sr = 0;
+				double si = 0;
+				for (int i = 0; i < n; i++) {
+					sr += x[i] * Math.cos(2 * Math.PI * k * i / n);
+					si -= x[i] * Math.sin(2 * Math.PI * k * i / n);
+				}
+				maxError = Math.max(maxError, Math.max(Math.abs(sr - re[k]), Math.abs(si - im[k])));
+			}
+			// float rounding grows with log(n) and the magnitude of the bins, which is about sqrt(n)
+			assertTrue(String.format(Locale.US, "size %d: max error %.2e", n, maxError),
+					maxError < 1e-5 * Math.sqrt(n) * (1 + Math.log(n)));
+		}
+	}
+
+	@Test
+	public void testConstant() {
+		RealFft fft = new RealFft(8);
+		float[] re = new float[5];
+		float[] im = new float[5];
+		fft.forward(new float[] {1, 1, 1, 1, 1, 1, 1, 1}, re, im);
+		assertEquals(8, re[0], 1e-6);
+		for (int k = 1; k < 5; k++) {
+			assertEquals(0, re[k], 1e-6);
+			assertEquals(0, im[k], 1e-6);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSize() {
+		new RealFft(48);
+	}
+
+	/**
+	 * Measures the time per transform for sizes from 64 to 4096. The
+	 * assertion only guards against gross regressions, such as a direct DFT.
+	 */
+	@Test
+	public void testBenchmark() {
+		Random random = new Random(42);
+		for (int n = 64; n <= 4096; n <<= 2) {
+			RealFft fft = new RealFft(n);
+			float[] x = new float[n];
+			for (int i = 0; i < n; i++)
+				x[i] = (float) random.nextGaussian();
+			float[] re = new float[fft.getBinCount()];
+			float[] im = new float[fft.getBinCount()];
+			int iterations = 20000000 / n;
+			// warm up
+			for (int i = 0; i < iterations; i++)
+				fft.forward(x, re, im);
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				fft.forward(x, re, im);
+			double perTransform = (double) (System.nanoTime() - start) / iterations;
+			System.out.println(String.format(Locale.US, "RealFft: size %4d, %.0f ns per transform", n, perTransform));
+			// a direct DFT of size 4096 would take tens of milliseconds
+			assertTrue("transform too slow: " + perTransform + " ns", perTransform < 200 * n);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.vonglasow.michael.satstat.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TextBufferTest {
+	/**
+	 * Creates a buffer for a locale, which only takes effect when the buffer is created.
+	 */
+	private static TextBuffer create(Locale locale) {
+		Locale defaultLocale = Locale.getDefault();
+		Locale.setDefault(locale);
+		try {
+			return new TextBuffer();
+		} finally {
+			Locale.setDefault(defaultLocale);
+		}
+	}
+
+	@Test
+	public void testCompose() {
+		TextBuffer buffer = create(Locale.ROOT);
+		Random random = new Random(7);
+		for (int i = 0; i < 10000; i++) {
+			double lat = (random.nextDouble() - 0.5) * 180;
+			double lon = (random.nextDouble() - 0.5) * 360;
+			double speed = random.nextDouble() * 50 - 1;
+			long count = random.nextInt() - random.nextInt();
+			buffer.begin().appendFixed(lat, 5).append('°').append(' ').appendFixed(lon, 7).append(" | ")
+					.appendFixed(speed, 0).append(" km/h, ").appendLong(count);
+			assertEquals(String.format(Locale.ROOT, "%.5f° %.7f | %.0f km/h, %d", lat, lon, speed, count),
+					buffer.toString());
+		}
+	}
+
+	@Test
+	public void testEdgeCases() {
+		TextBuffer buffer = create(Locale.ROOT);
+		double[] values = {0, -0.0, -0.3, 9.9999999, 9.99999999, -9.99999995, 0.125, 1.005, 1e9 + 0.5, -1e9 - 0.25};
+		for (double value : values)
+			for (int decimals = 0; decimals <= CharFormatter.MAX_DECIMALS; decimals++) {
+				buffer.begin().append('[').appendFixed(value, decimals).append(']');
+				assertEquals(String.format(Locale.ROOT, "[%." + decimals + "f]", value), buffer.toString());
+			}
+		buffer.begin().appendLong(Long.MIN_VALUE).append(',').appendLong(0).append(',').appendLong(Long.MAX_VALUE);
+		assertEquals(String.format(Locale.ROOT, "%d,%d,%d", Long.MIN_VALUE, 0, Long.MAX_VALUE), buffer.toString());
+	}
+
+	/**
+	 * The decimal separator is that of the default locale, as with {@code String.format()}.
+	 */
+	@Test
+	public void testDecimalSeparator() {
+		TextBuffer buffer = create(Locale.GERMANY);
+		buffer.begin().appendFixed(-52.520007, 5).append('/').appendFixed(13.5, 0);
+		assertEquals(String.format(Locale.GERMANY, "%.5f/%.0f", -52.520007, 13.5), buffer.toString());
+	}
+
+	@Test
+	public void testGrowAndCompare() {
+		TextBuffer a = create(Locale.ROOT);
+		TextBuffer b = create(Locale.ROOT);
+		StringBuilder expected = new StringBuilder();
+		a.begin();
+		for (int i = 0; i < 100; i++) {
+			a.appendFixed(i / 7.0, 9).append(';');
+			expected.append(String.format(Locale.ROOT, "%.9f;", i / 7.0));
+		}
+		assertEquals(expected.toString(), a.toString());
+		assertEquals(expected.length(), a.length());
+		b.begin().append(a);
+		assertTrue(a.contentEquals(b));
+		b.append('x');
+		assertFalse(a.contentEquals(b));
+		assertEquals('x', b.charAt(b.length() - 1));
+		assertEquals("0.000000000", a.subSequence(0, 11).toString());
+	}
+}